@@ -44,7 +44,7 @@ public final class EventLoop implements Runnable {
   NIODNSLocalResolver               _resolver;
   NIOSocketSelector                 _selector;
   Thread                            _eventThread;
-  TimerRegistry                     _timerRegistry     = new TimerRegistry(this);
+  TimerWheel                        _timerRegistry     = new TimerWheel(this);
   boolean                           _shutdown          = false;
   long                              _loopCount         = 0;
 
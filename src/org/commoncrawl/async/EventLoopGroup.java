@@ -0,0 +1,158 @@
+/**
+ * Copyright 2008 - CommonCrawl Foundation
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ **/
+package org.commoncrawl.async;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.commoncrawl.util.MurmurHash;
+
+/**
+ * A fixed set of EventLoops (each with its own selector, resolver and timers)
+ * used to spread socket I/O across cores.
+ *
+ * Loop 0 is the primary loop. It is usually the server's existing event loop,
+ * which the group does not own (start / stop only touch the secondary loops).
+ * Sockets are assigned to loops by consistent hashing of the remote host's
+ * ip address, so all connections to a given host land on the same loop.
+ * Anything that has to run in another loop's thread should be handed over via
+ * that loop's queueAsyncCallback.
+ *
+ * @author rana
+ *
+ */
+public final class EventLoopGroup {
+
+  /** logging **/
+  private static final Log LOG = LogFactory.getLog(EventLoopGroup.class);
+
+  /** virtual nodes per loop on the hash ring **/
+  static final int VIRTUAL_NODES_PER_LOOP = 64;
+
+  private EventLoop _loops[];
+  private boolean   _ownsPrimary;
+  /** sorted ring positions and the loop index owning each position **/
+  private int       _ringHashes[];
+  private int       _ringLoops[];
+
+  /**
+   * create a group of loopCount loops, using an existing (externally managed)
+   * event loop as the primary loop
+   */
+  public EventLoopGroup(EventLoop primaryLoop, int loopCount, ExecutorService resolverThreadPool) {
+    if (loopCount < 1) {
+      throw new IllegalArgumentException("Invalid Loop Count:" + loopCount);
+    }
+    _loops = new EventLoop[loopCount];
+    _ownsPrimary = (primaryLoop == null);
+    _loops[0] = (primaryLoop != null) ? primaryLoop : new EventLoop(resolverThreadPool);
+    for (int i = 1; i < loopCount; ++i) {
+      _loops[i] = new EventLoop(resolverThreadPool);
+    }
+    buildRing();
+  }
+
+  /** create a standalone group of loopCount loops **/
+  public EventLoopGroup(int loopCount, ExecutorService resolverThreadPool) {
+    this(null, loopCount, resolverThreadPool);
+  }
+
+  private void buildRing() {
+    int nodeCount = _loops.length * VIRTUAL_NODES_PER_LOOP;
+    long nodes[] = new long[nodeCount];
+    for (int loop = 0; loop < _loops.length; ++loop) {
+      for (int vnode = 0; vnode < VIRTUAL_NODES_PER_LOOP; ++vnode) {
+        int hash = MurmurHash.hashInt(loop * VIRTUAL_NODES_PER_LOOP + vnode, 0x5bd1e995);
+        // pack (hash,loop) so that a single sort orders the ring
+        nodes[loop * VIRTUAL_NODES_PER_LOOP + vnode] = ((long) hash << 32) | loop;
+      }
+    }
+    Arrays.sort(nodes);
+    _ringHashes = new int[nodeCount];
+    _ringLoops = new int[nodeCount];
+    for (int i = 0; i < nodeCount; ++i) {
+      _ringHashes[i] = (int) (nodes[i] >> 32);
+      _ringLoops[i] = (int) (nodes[i] & 0xFFFFFFFFL);
+    }
+  }
+
+  public void start() {
+    for (int i = (_ownsPrimary) ? 0 : 1; i < _loops.length; ++i) {
+      _loops[i].start();
+    }
+    LOG.info("Started EventLoopGroup with:" + _loops.length + " Loops");
+  }
+
+  public void stop() {
+    for (int i = (_ownsPrimary) ? 0 : 1; i < _loops.length; ++i) {
+      if (_loops[i].getEventThread() != null) {
+        _loops[i].stop();
+      }
+    }
+    LOG.info("Stopped EventLoopGroup");
+  }
+
+  public int getLoopCount() {
+    return _loops.length;
+  }
+
+  public EventLoop getLoop(int index) {
+    return _loops[index];
+  }
+
+  public EventLoop getPrimaryLoop() {
+    return _loops[0];
+  }
+
+  /**
+   * get the index of the loop that owns sockets connected to the specified
+   * (ipv4) address
+   */
+  public int getLoopIndexForAddress(int ipAddress) {
+    if (_loops.length == 1) {
+      return 0;
+    }
+    int hash = MurmurHash.hashInt(ipAddress, 0);
+    int pos = Arrays.binarySearch(_ringHashes, hash);
+    if (pos < 0) {
+      pos = -(pos + 1);
+    }
+    // wrap around the ring
+    if (pos == _ringHashes.length) {
+      pos = 0;
+    }
+    return _ringLoops[pos];
+  }
+
+  public EventLoop getLoopForAddress(int ipAddress) {
+    return _loops[getLoopIndexForAddress(ipAddress)];
+  }
+
+  /** get the index of the loop whose event thread is the calling thread, or -1 **/
+  public int getCurrentLoopIndex() {
+    Thread currentThread = Thread.currentThread();
+    for (int i = 0; i < _loops.length; ++i) {
+      if (_loops[i].getEventThread() == currentThread) {
+        return i;
+      }
+    }
+    return -1;
+  }
+}
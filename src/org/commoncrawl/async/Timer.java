@@ -36,6 +36,11 @@ public final class Timer implements Comparable<Timer> {
 	
 	private Callback _callback;
 	
+	/** TimerWheel bookkeeping - guarded by the wheel's lock **/
+	TimerWheel.Slot _wheelSlot;
+	Timer           _wheelNext;
+	Timer           _wheelPrev;
+	
 	public Timer(long delay,boolean periodic,Callback callback)  {
 		_delay = delay;
 		_periodic = periodic;
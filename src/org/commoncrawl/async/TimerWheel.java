@@ -0,0 +1,316 @@
+/**
+ * Copyright 2008 - CommonCrawl Foundation
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ **/
+package org.commoncrawl.async;
+
+import java.util.ArrayList;
+
+/**
+ *
+ * A hashed hierarchical timing wheel of timers that will fire inside an event
+ * loop. Drop in replacement for TimerRegistry.
+ *
+ * The wheel has LEVELS levels of SLOTS slots each, with a resolution of one
+ * millisecond per tick. Level N slots each span SLOTS^N ticks, so the wheel
+ * covers 2^30 ms (~12 days) before timers have to be parked in the last
+ * level and re-cascaded. Timers are kept in intrusive doubly linked lists
+ * (see the wheel fields in Timer), so set and cancel are O(1). Expiry
+ * detaches a whole slot at a time, and a per level occupancy bitmap lets the
+ * wheel skip over empty slots instead of visiting every tick.
+ *
+ * @author rana
+ *
+ */
+public final class TimerWheel {
+
+  static final int  SLOT_BITS = 6;
+  static final int  SLOTS     = 1 << SLOT_BITS;
+  static final int  SLOT_MASK = SLOTS - 1;
+  static final int  LEVELS    = 5;
+
+  /** a single wheel slot **/
+  static final class Slot {
+
+    Timer _head;
+    Timer _tail;
+    final int _level;
+    final int _index;
+
+    Slot(int level, int index) {
+      _level = level;
+      _index = index;
+    }
+  }
+
+  private EventLoop _eventLoop;
+  private Slot      _slots[][]    = new Slot[LEVELS][SLOTS];
+  /** bit N of _occupied[level] is set if slot N in that level is non-empty **/
+  private long      _occupied[]   = new long[LEVELS];
+  /** the next tick (absolute time in milliseconds) to be processed **/
+  private long      _currentTick;
+  /** number of timers in the wheel **/
+  private int       _timerCount   = 0;
+
+  public TimerWheel(EventLoop eventLoop) {
+    _eventLoop = eventLoop;
+    _currentTick = System.currentTimeMillis();
+    for (int level = 0; level < LEVELS; ++level) {
+      for (int index = 0; index < SLOTS; ++index) {
+        _slots[level][index] = new Slot(level, index);
+      }
+    }
+  }
+
+  public void setTimer(Timer t) {
+    synchronized (t) {
+      if (!t.isArmed()) {
+        t.arm();
+
+        synchronized (this) {
+          insert(t);
+        }
+        // wakeup event loop if current thread != event loop thread
+        if (Thread.currentThread() != _eventLoop.getEventThread()) {
+          _eventLoop.wakeup();
+        }
+      }
+    }
+  }
+
+  public void cancelTimer(Timer t) {
+    synchronized (t) {
+      if (t.isArmed()) {
+        t.disarm();
+        synchronized (this) {
+          if (t._wheelSlot != null) {
+            unlink(t);
+          }
+        }
+      }
+    }
+  }
+
+  /** number of timers currently in the wheel **/
+  public synchronized int getTimerCount() {
+    return _timerCount;
+  }
+
+  // fire the timer
+  long fireTimers() {
+
+    long currentTime = System.currentTimeMillis();
+
+    ArrayList<Timer> fireList = null;
+
+    synchronized (this) {
+      if (_timerCount != 0) {
+        fireList = advance(currentTime);
+      } else if (currentTime >= _currentTick) {
+        // nothing to do, just move the wheel forward
+        _currentTick = currentTime + 1;
+      }
+    }
+
+    if (fireList != null) {
+      // now in an unblocked manner ... iterate list and fire timers ...
+      for (Timer t : fireList) {
+        synchronized (t) {
+          // skip timers that were cancelled, or cancelled and set again (and
+          // thus already back in the wheel) since they were collected
+          if (t.isArmed() && t._wheelSlot == null) {
+            if (t.getNextFireTime() <= currentTime) {
+              t.fire();
+            }
+            // periodic timers are rearmed by fire, and a rearm call moves the
+            // fire time out. either way, the timer goes back into the wheel
+            if (t.isArmed() && t._wheelSlot == null) {
+              synchronized (this) {
+                insert(t);
+              }
+            }
+          }
+        }
+      }
+    }
+
+    synchronized (this) {
+      return nextFireTime();
+    }
+  }
+
+  /** add a timer to the proper slot based on its fire time **/
+  private void insert(Timer t) {
+
+    long fireTick = Math.max(t.getNextFireTime(), _currentTick);
+    long delta = fireTick - _currentTick;
+
+    int level = 0;
+    while (level < LEVELS - 1 && delta >= (1L << (SLOT_BITS * (level + 1)))) {
+      level++;
+    }
+    // past the end of the wheel, park it in the furthest slot. it gets
+    // cascaded (and re-parked if necessary) when the wheel gets there
+    if (delta >= (1L << (SLOT_BITS * LEVELS))) {
+      fireTick = _currentTick + (1L << (SLOT_BITS * LEVELS)) - 1;
+    }
+    Slot slot = _slots[level][(int) (fireTick >>> (SLOT_BITS * level)) & SLOT_MASK];
+
+    t._wheelSlot = slot;
+    t._wheelNext = null;
+    t._wheelPrev = slot._tail;
+    if (slot._tail != null) {
+      slot._tail._wheelNext = t;
+    } else {
+      slot._head = t;
+      _occupied[level] |= (1L << slot._index);
+    }
+    slot._tail = t;
+    _timerCount++;
+  }
+
+  /** remove a timer from its slot **/
+  private void unlink(Timer t) {
+    Slot slot = t._wheelSlot;
+
+    if (t._wheelPrev != null) {
+      t._wheelPrev._wheelNext = t._wheelNext;
+    } else {
+      slot._head = t._wheelNext;
+    }
+    if (t._wheelNext != null) {
+      t._wheelNext._wheelPrev = t._wheelPrev;
+    } else {
+      slot._tail = t._wheelPrev;
+    }
+    if (slot._head == null) {
+      _occupied[slot._level] &= ~(1L << slot._index);
+    }
+    t._wheelSlot = null;
+    t._wheelNext = null;
+    t._wheelPrev = null;
+    _timerCount--;
+  }
+
+  /** detach all timers in a slot, returning the head of the detached list **/
+  private Timer detach(Slot slot) {
+    Timer head = slot._head;
+    slot._head = null;
+    slot._tail = null;
+    _occupied[slot._level] &= ~(1L << slot._index);
+    return head;
+  }
+
+  /** move the timers in a higher level slot down to where they now belong **/
+  private void cascade(int level) {
+    Slot slot = _slots[level][(int) (_currentTick >>> (SLOT_BITS * level)) & SLOT_MASK];
+    Timer t = detach(slot);
+    while (t != null) {
+      Timer next = t._wheelNext;
+      _timerCount--;
+      t._wheelSlot = null;
+      insert(t);
+      t = next;
+    }
+  }
+
+  /**
+   * advance the wheel through the specified time, and collect all expired
+   * timers (in fire order)
+   **/
+  private ArrayList<Timer> advance(long currentTime) {
+
+    ArrayList<Timer> fireList = null;
+
+    while (_currentTick <= currentTime) {
+
+      // at a level 0 boundary, pull down timers from the higher levels
+      if ((_currentTick & SLOT_MASK) == 0) {
+        for (int level = 1; level < LEVELS; ++level) {
+          cascade(level);
+          if (((_currentTick >>> (SLOT_BITS * level)) & SLOT_MASK) != 0) {
+            break;
+          }
+        }
+      }
+
+      int index = (int) (_currentTick & SLOT_MASK);
+
+      if ((_occupied[0] & (1L << index)) != 0) {
+        Timer t = detach(_slots[0][index]);
+        if (fireList == null) {
+          fireList = new ArrayList<Timer>();
+        }
+        while (t != null) {
+          Timer next = t._wheelNext;
+          t._wheelSlot = null;
+          t._wheelNext = null;
+          t._wheelPrev = null;
+          _timerCount--;
+          fireList.add(t);
+          t = next;
+        }
+      }
+
+      // skip ahead to the next occupied slot in this rotation, or the next
+      // boundary, whichever comes first
+      long nextTick = (_currentTick | SLOT_MASK) + 1;
+      if (index != SLOT_MASK) {
+        long remaining = _occupied[0] & (-1L << (index + 1));
+        if (remaining != 0) {
+          nextTick = (_currentTick & ~((long) SLOT_MASK)) + Long.numberOfTrailingZeros(remaining);
+        }
+      }
+      _currentTick = Math.min(nextTick, currentTime + 1);
+    }
+    return fireList;
+  }
+
+  /**
+   * return the earliest time at which the wheel has work to do (either fire
+   * or cascade timers). Never later than the next actual fire time.
+   **/
+  private long nextFireTime() {
+
+    if (_timerCount == 0) {
+      return 0;
+    }
+
+    long earliest = Long.MAX_VALUE;
+
+    for (int level = 0; level < LEVELS; ++level) {
+      if (_occupied[level] != 0) {
+        int shift = SLOT_BITS * level;
+        long levelTick = _currentTick >>> shift;
+        int currentIndex = (int) (levelTick & SLOT_MASK);
+        int distance = Long.numberOfTrailingZeros(Long.rotateRight(_occupied[level], currentIndex));
+
+        long slotTick;
+        if (distance == 0 && level != 0 && (_currentTick & ((1L << shift) - 1)) != 0) {
+          // the current slot at this level was already cascaded, so
+          // anything in it now belongs to the next rotation
+          slotTick = (levelTick + SLOTS) << shift;
+        } else if (distance == 0) {
+          slotTick = _currentTick;
+        } else {
+          slotTick = (levelTick + distance) << shift;
+        }
+        earliest = Math.min(earliest, slotTick);
+      }
+    }
+    return earliest;
+  }
+}
@@ -0,0 +1,209 @@
+/**
+ * Copyright 2008 - CommonCrawl Foundation
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ **/
+package org.commoncrawl.async;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Compares the Vector backed TimerRegistry against the TimerWheel.
+ *
+ * For each timer count, measures: setting N long timeouts, cancel + re-set
+ * churn on a full queue (the connection timeout pattern), the expiry of N
+ * short timers (reporting the worst fire latency), and cancelling N timers.
+ *
+ * The benchmark runs inside the event thread, so neither implementation pays
+ * for selector wakeups.
+ *
+ * Usage: TimerWheelBenchmark [timerCount,timerCount,...] [churnOps]
+ *
+ * @author rana
+ *
+ */
+public class TimerWheelBenchmark {
+
+  /** minimal interface over both timer queue implementations **/
+  static abstract class TimerQueue {
+    abstract void setTimer(Timer t);
+
+    abstract void cancelTimer(Timer t);
+
+    abstract long fireTimers();
+  }
+
+  static class RegistryQueue extends TimerQueue {
+    TimerRegistry _registry;
+
+    RegistryQueue(EventLoop eventLoop) {
+      _registry = new TimerRegistry(eventLoop);
+    }
+
+    void setTimer(Timer t) {
+      _registry.setTimer(t);
+    }
+
+    void cancelTimer(Timer t) {
+      _registry.cancelTimer(t);
+    }
+
+    long fireTimers() {
+      return _registry.fireTimers();
+    }
+
+    public String toString() {
+      return "TimerRegistry";
+    }
+  }
+
+  static class WheelQueue extends TimerQueue {
+    TimerWheel _wheel;
+
+    WheelQueue(EventLoop eventLoop) {
+      _wheel = new TimerWheel(eventLoop);
+    }
+
+    void setTimer(Timer t) {
+      _wheel.setTimer(t);
+    }
+
+    void cancelTimer(Timer t) {
+      _wheel.cancelTimer(t);
+    }
+
+    long fireTimers() {
+      return _wheel.fireTimers();
+    }
+
+    public String toString() {
+      return "TimerWheel";
+    }
+  }
+
+  /** records how late each timer fired **/
+  static class LatencyCallback implements Timer.Callback {
+
+    long _expectedFireTime;
+    static int _fired = 0;
+    static long _maxLatency = 0;
+
+    public void timerFired(Timer timer) {
+      _fired++;
+      _maxLatency = Math.max(_maxLatency, System.currentTimeMillis() - _expectedFireTime);
+    }
+  }
+
+  static void runBenchmark(TimerQueue queue, int timerCount, int churnOps) {
+
+    Random random = new Random(timerCount);
+
+    Timer timers[] = new Timer[timerCount];
+    LatencyCallback callbacks[] = new LatencyCallback[timerCount];
+
+    // 1. set N long timeouts (1 to 10 minutes out)
+    for (int i = 0; i < timerCount; ++i) {
+      callbacks[i] = new LatencyCallback();
+      timers[i] = new Timer(60000 + random.nextInt(540000), false, callbacks[i]);
+    }
+    long timeStart = System.nanoTime();
+    for (int i = 0; i < timerCount; ++i) {
+      queue.setTimer(timers[i]);
+    }
+    queue.fireTimers();
+    long setTime = System.nanoTime() - timeStart;
+
+    // 2. churn - push out random timeouts, polling the queue the way the
+    // event loop does (every 100 operations)
+    timeStart = System.nanoTime();
+    for (int i = 0; i < churnOps; ++i) {
+      Timer t = timers[random.nextInt(timerCount)];
+      queue.cancelTimer(t);
+      queue.setTimer(t);
+      if (i % 100 == 0) {
+        queue.fireTimers();
+      }
+    }
+    long churnTime = System.nanoTime() - timeStart;
+
+    // 3. cancel all N
+    timeStart = System.nanoTime();
+    for (int i = 0; i < timerCount; ++i) {
+      queue.cancelTimer(timers[i]);
+    }
+    queue.fireTimers();
+    long cancelTime = System.nanoTime() - timeStart;
+
+    // 4. expiry - N timers spread over two seconds, starting one second out
+    // (so that the time it takes to set them does not skew the latency)
+    LatencyCallback._fired = 0;
+    LatencyCallback._maxLatency = 0;
+    for (int i = 0; i < timerCount; ++i) {
+      timers[i] = new Timer(1000 + random.nextInt(2000), false, callbacks[i]);
+      queue.setTimer(timers[i]);
+      callbacks[i]._expectedFireTime = System.currentTimeMillis() + timers[i].getDelay();
+    }
+    timeStart = System.nanoTime();
+    int fireCalls = 0;
+    while (LatencyCallback._fired < timerCount) {
+      queue.fireTimers();
+      fireCalls++;
+    }
+    long expiryTime = System.nanoTime() - timeStart;
+
+    System.out.println(String.format("%1$-14s timers:%2$8d set:%3$8.1fns/op churn:%4$10.1fns/op "
+        + "cancel:%5$8.1fns/op expiry:%6$6dms (%7$d fireTimers calls, max latency:%8$dms)", queue, timerCount,
+        (double) setTime / timerCount, (double) churnTime / churnOps, (double) cancelTime / timerCount,
+        expiryTime / 1000000, fireCalls, LatencyCallback._maxLatency));
+  }
+
+  public static void main(String[] args) throws Exception {
+
+    String counts[] = ((args.length > 0) ? args[0] : "10000,100000,1000000").split(",");
+    final int churnOps = (args.length > 1) ? Integer.parseInt(args[1]) : 20000;
+
+    final int timerCounts[] = new int[counts.length];
+    for (int i = 0; i < counts.length; ++i) {
+      timerCounts[i] = Integer.parseInt(counts[i]);
+    }
+
+    final EventLoop eventLoop = new EventLoop();
+    eventLoop.start();
+
+    final CountDownLatch done = new CountDownLatch(1);
+
+    eventLoop.queueAsyncCallback(new Callback() {
+      public void execute() {
+        try {
+          // warm up both implementations
+          runBenchmark(new RegistryQueue(eventLoop), 10000, 1000);
+          runBenchmark(new WheelQueue(eventLoop), 10000, 1000);
+          System.out.println("---");
+          for (int timerCount : timerCounts) {
+            runBenchmark(new RegistryQueue(eventLoop), timerCount, churnOps);
+            runBenchmark(new WheelQueue(eventLoop), timerCount, churnOps);
+          }
+        } finally {
+          done.countDown();
+        }
+      }
+    });
+
+    done.await();
+    eventLoop.stop();
+    System.exit(0);
+  }
+}
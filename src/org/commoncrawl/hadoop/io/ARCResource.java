@@ -26,7 +26,9 @@ import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.Writable;
 
 /**
- * The name and size in bytes of a gzipped ARC file.
+ * The name and size in bytes of a gzipped ARC file, along with the byte range
+ * of the file to process (the whole file unless the file has been split at
+ * record boundaries).
  * 
  * @author Albert Chern
  */
@@ -34,10 +36,39 @@ public class ARCResource implements Writable {
 
   private String name;
   private long size;
+  private long start;
+  private long end;
+
+  /**
+   * Default constructor for Hadoop.
+   */
+  public ARCResource() {
+  }
 
   public ARCResource(String name, long size) {
+    this(name, size, 0, size);
+  }
+
+  /**
+   * Constructs an <tt>ARCResource</tt> for a range of an ARC file.
+   * 
+   * @param name
+   *          the name of the ARC file
+   * @param size
+   *          the size in bytes of the ARC file
+   * @param start
+   *          the offset of the first gzip member in the range
+   * @param end
+   *          the offset just past the last gzip member in the range
+   */
+  public ARCResource(String name, long size, long start, long end) {
+    if (start < 0 || end < start || end > size) {
+      throw new IllegalArgumentException("Invalid range [" + start + "," + end + ") for " + name + " of size " + size);
+    }
     this.name = name;
     this.size = size;
+    this.start = start;
+    this.end = end;
   }
 
   /**
@@ -54,12 +85,42 @@ public class ARCResource implements Writable {
     return size;
   }
 
+  /**
+   * Returns the offset of the first byte of this resource to process.
+   */
+  public long getStart() {
+    return start;
+  }
+
+  /**
+   * Returns the offset just past the last byte of this resource to process.
+   */
+  public long getEnd() {
+    return end;
+  }
+
+  /**
+   * Returns the number of bytes of this resource to process.
+   */
+  public long getLength() {
+    return end - start;
+  }
+
+  /**
+   * Returns <tt>true</tt> if only part of the resource is to be processed.
+   */
+  public boolean isPartial() {
+    return start != 0 || end != size;
+  }
+
   /**
    * @inheritDoc
    */
   public void readFields(DataInput in) throws IOException {
     name = Text.readString(in);
     size = in.readLong();
+    start = in.readLong();
+    end = in.readLong();
   }
 
   /**
@@ -67,7 +128,7 @@ public class ARCResource implements Writable {
    */
   @Override
   public String toString() {
-    return name + " " + size;
+    return isPartial() ? name + " " + size + " [" + start + "," + end + ")" : name + " " + size;
   }
 
   /**
@@ -76,5 +137,7 @@ public class ARCResource implements Writable {
   public void write(DataOutput out) throws IOException {
     Text.writeString(out, name);
     out.writeLong(size);
+    out.writeLong(start);
+    out.writeLong(end);
   }
 }
@@ -22,7 +22,6 @@ import java.io.DataOutput;
 import java.io.IOException;
 import java.util.Arrays;
 
-import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapred.InputSplit;
 
 /**
@@ -76,7 +75,7 @@ public class ARCSplit implements InputSplit {
     this.resources = resources;
     this.hosts = hosts;
     for (ARCResource resource : resources) {
-      size += resource.getSize();
+      size += resource.getLength();
     }
   }
 
@@ -108,7 +107,8 @@ public class ARCSplit implements InputSplit {
     int nResources = in.readInt();
     resources = new ARCResource[nResources];
     for (int i = 0; i < nResources; i++) {
-      resources[i] = new ARCResource(Text.readString(in), in.readLong());
+      resources[i] = new ARCResource();
+      resources[i].readFields(in);
     }
     size = in.readLong();
     hosts = null;
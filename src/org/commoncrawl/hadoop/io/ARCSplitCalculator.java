@@ -18,18 +18,28 @@
 package org.commoncrawl.hadoop.io;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.LinkedList;
 import java.util.List;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.JobConfigurable;
+import org.commoncrawl.util.ArcFileIndex;
 
 /**
  * Calculates splits based on the desired number of files per split and the
  * desired size of each split.
  * 
  * <p>
+ * Files larger than the desired split size are split at record boundaries
+ * when an {@link ArcFileIndex} is available for them (see
+ * {@link #getARCFileIndex}), so a large ARC file can be processed by several
+ * map tasks.
+ * 
+ * <p>
  * Concrete implementations should override {@link #getARCResources}.
  * 
  * @author Albert Chern
@@ -52,6 +62,8 @@ public abstract class ARCSplitCalculator implements JobConfigurable {
    */
   public static final String P_MB_PER_SPLIT = "arc.split.calculator.mb.per.split";
 
+  private static final Log LOG = LogFactory.getLog(ARCSplitCalculator.class);
+
   /**
    * Sets the desired number of files per input split.
    * 
@@ -74,7 +86,8 @@ public abstract class ARCSplitCalculator implements JobConfigurable {
    * 
    * <p>
    * New files will be added to a split until the total size of the split
-   * exceeds this threshold. Default is no limit.
+   * exceeds this threshold. Indexed files larger than this are split at
+   * record boundaries. Default is no limit.
    * 
    * @param job
    *          the job to set the number of megabytes per split for
@@ -130,6 +143,53 @@ public abstract class ARCSplitCalculator implements JobConfigurable {
    */
   protected abstract Collection<ARCResource> getARCResources(JobConf job) throws IOException;
 
+  /**
+   * Returns the index of an ARC file, used to split files that are larger
+   * than the desired split size.
+   * 
+   * <p>
+   * The default implementation returns <tt>null</tt> (files are not split).
+   * 
+   * @param job
+   *          the job for which splits are being calculated
+   * @param resource
+   *          the (whole file) {@link ARCResource}
+   * 
+   * @return the {@link ArcFileIndex} of the file, or <tt>null</tt> if there
+   *         is none
+   * 
+   * @throws IOException
+   *           if an IO error occurs
+   */
+  protected ArcFileIndex getARCFileIndex(JobConf job, ARCResource resource) throws IOException {
+    return null;
+  }
+
+  /**
+   * Splits a resource into ranges of roughly the desired split size at record
+   * boundaries, if it is too large and it has an (up to date) index.
+   */
+  private List<ARCResource> splitResource(JobConf job, ARCResource resource) throws IOException {
+    List<ARCResource> parts = new ArrayList<ARCResource>(1);
+    if (resource.getSize() > bytesPerSplit) {
+      ArcFileIndex index = getARCFileIndex(job, resource);
+      if (index != null && index.getArcFileLength() == resource.getSize()) {
+        long start = 0;
+        for (long splitOffset : index.getSplitOffsets(bytesPerSplit)) {
+          parts.add(new ARCResource(resource.getName(), resource.getSize(), start, splitOffset));
+          start = splitOffset;
+        }
+        parts.add(new ARCResource(resource.getName(), resource.getSize(), start, resource.getSize()));
+        return parts;
+      } else if (index != null) {
+        LOG.warn("Ignoring stale index of " + resource.getName() + " (index length " + index.getArcFileLength()
+            + ", file size " + resource.getSize() + ")");
+      }
+    }
+    parts.add(resource);
+    return parts;
+  }
+
   /**
    * @inheritDoc
    */
@@ -141,14 +201,16 @@ public abstract class ARCSplitCalculator implements JobConfigurable {
     int nResources = 0;
     long length = 0;
 
-    for (ARCResource resource : getARCResources(job)) {
-      resources[nResources++] = resource;
-      length += resource.getSize();
-      // When the split is too big, add it
-      if (nResources >= filesPerSplit || length >= bytesPerSplit) {
-        addSplit(splits, resources, nResources);
-        nResources = 0;
-        length = 0;
+    for (ARCResource fileResource : getARCResources(job)) {
+      for (ARCResource resource : splitResource(job, fileResource)) {
+        resources[nResources++] = resource;
+        length += resource.getLength();
+        // When the split is too big, add it
+        if (nResources >= filesPerSplit || length >= bytesPerSplit) {
+          addSplit(splits, resources, nResources);
+          nResources = 0;
+          length = 0;
+        }
       }
     }
 
@@ -0,0 +1,327 @@
+/**
+ * Copyright 2008 - CommonCrawl Foundation
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ **/
+package org.commoncrawl.hadoop.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.JobConf;
+import org.commoncrawl.protocol.shared.ArcFileItem;
+import org.commoncrawl.util.ArcFileIndex;
+import org.commoncrawl.util.ArcFileIndexBuilder;
+import org.commoncrawl.util.ArcFileReader;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Writes a small gzipped ARC file, and checks its ArcFileIndex (as built by
+ * ArcFileIndexBuilder) against the records written, and the record aligned
+ * splits LocalARCSource calculates from it: the ranges cover the file
+ * exactly, start on record boundaries, and read back (via ARCSplitReader)
+ * every record exactly once.
+ *
+ * @author rana
+ *
+ */
+public class ARCSplitCalculatorUnitTest {
+
+  /** the (fixed) length of the member headers GZIPOutputStream writes **/
+  private static final int GZIP_HEADER_LENGTH = 10;
+
+  private static final String HTTP_HEADERS = "HTTP/1.1 200 OK\r\nContent-Type: application/octet-stream\r\n\r\n";
+
+  /** a record as written to the test arc file **/
+  private static final class TestRecord {
+    String url;
+    byte[] content;
+    long   offset;
+    int    length;
+  }
+
+  private static byte[] gzipMember(byte[] data) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    GZIPOutputStream out = new GZIPOutputStream(bytes);
+    out.write(data);
+    out.close();
+    return bytes.toByteArray();
+  }
+
+  /** write an arc file (a filedesc header, then one gzip member per record) of (mostly incompressible) records **/
+  private static ArrayList<TestRecord> writeArcFile(File file,String host,Random random,int recordCount) throws IOException {
+    ArrayList<TestRecord> records = new ArrayList<TestRecord>();
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      String version = "1 0 CommonCrawl\nURL IP-address Archive-date Content-type Archive-length\n";
+      String header = "filedesc://" + file.getName() + " 0.0.0.0 20120101000000 text/plain " + version.length() + "\n" + version;
+      byte headerMember[] = gzipMember(header.getBytes("ISO-8859-1"));
+      out.write(headerMember);
+      long offset = headerMember.length;
+
+      for (int i=0;i<recordCount;++i) {
+        TestRecord record = new TestRecord();
+        record.url = "http://" + host + "/page" + i + ".html";
+        record.content = new byte[1 + random.nextInt(40000)];
+        random.nextBytes(record.content);
+        byte httpHeaders[] = HTTP_HEADERS.getBytes("ISO-8859-1");
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        data.write((record.url + " 10.0.0.1 20120101000000 application/octet-stream " + (httpHeaders.length + record.content.length) + "\n").getBytes("ISO-8859-1"));
+        data.write(httpHeaders);
+        data.write(record.content);
+        byte member[] = gzipMember(data.toByteArray());
+        out.write(member);
+        record.offset = offset;
+        record.length = member.length;
+        offset += member.length;
+        records.add(record);
+      }
+    }
+    finally {
+      out.close();
+    }
+    return records;
+  }
+
+  private static ArcFileIndex buildIndex(File arcFile) throws IOException {
+    InputStream in = new FileInputStream(arcFile);
+    try {
+      return ArcFileIndexBuilder.build(in);
+    }
+    finally {
+      in.close();
+    }
+  }
+
+  private static void checkIndex(ArcFileIndex index,File arcFile,ArrayList<TestRecord> records) {
+    Assert.assertEquals(arcFile.length(),index.getArcFileLength());
+    Assert.assertEquals(records.size(),index.size());
+    for (int i=0;i<records.size();++i) {
+      TestRecord record = records.get(i);
+      Assert.assertEquals(ArcFileIndex.fingerprintFor(record.url),index.getFingerprint(i));
+      Assert.assertEquals(record.offset,index.getOffset(i));
+      Assert.assertEquals(record.length,index.getLength(i));
+      Assert.assertEquals(i,index.find(record.url));
+    }
+    Assert.assertEquals(-1,index.find("http://www.foo.com/missing.html"));
+  }
+
+  private static File createTempArcFile() throws IOException {
+    File file = File.createTempFile("ARCSplitCalculatorUnitTest",".arc.gz");
+    file.deleteOnExit();
+    new File(file.getPath() + ArcFileIndex.INDEX_SUFFIX).deleteOnExit();
+    return file;
+  }
+
+  private static void deleteArcFile(File file) {
+    file.delete();
+    new File(file.getPath() + ArcFileIndex.INDEX_SUFFIX).delete();
+  }
+
+  @Test
+  public void testIndexRoundTrip() throws Exception {
+    File arcFile = createTempArcFile();
+    try {
+      ArrayList<TestRecord> records = writeArcFile(arcFile,"www.foo.com",new Random(1),50);
+      ArcFileIndex index = buildIndex(arcFile);
+      checkIndex(index,arcFile,records);
+
+      // serialized and read back
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      index.write(new DataOutputStream(bytes));
+      ArcFileIndex readBack = ArcFileIndex.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+      checkIndex(readBack,arcFile,records);
+
+      // a record fetched via the index is the one written
+      FileSystem fs = FileSystem.getLocal(new Configuration());
+      TestRecord record = records.get(17);
+      ArcFileItem item = readBack.fetchItem(fs,new Path(arcFile.getAbsolutePath()),ArcFileIndex.fingerprintFor(record.url));
+      Assert.assertEquals(record.url,item.getUri());
+      Assert.assertEquals(record.offset,item.getArcFilePos());
+      Assert.assertArrayEquals(record.content,Arrays.copyOf(item.getContent().get(),item.getContent().getCount()));
+
+      // a damaged index is rejected
+      byte damaged[] = bytes.toByteArray();
+      damaged[0] ^= 1;
+      try {
+        ArcFileIndex.read(new DataInputStream(new ByteArrayInputStream(damaged)));
+        Assert.fail();
+      }
+      catch (IOException e) {
+      }
+    }
+    finally {
+      deleteArcFile(arcFile);
+    }
+  }
+
+  /** the resources of all the splits, in order **/
+  private static ArrayList<ARCResource> resourcesOf(ARCSplit splits[]) {
+    ArrayList<ARCResource> resources = new ArrayList<ARCResource>();
+    for (ARCSplit split : splits) {
+      resources.addAll(Arrays.asList(split.getResources()));
+    }
+    return resources;
+  }
+
+  /**
+   * calculate the splits of the given (canonical path to records) arc files,
+   * check them, and read them back
+   */
+  private static ARCSplit[] checkSplits(HashMap<String,ArrayList<TestRecord>> arcFiles,int filesPerSplit) throws Exception {
+    JobConf job = new JobConf();
+    LocalARCSource.setInputs(job,arcFiles.keySet().toArray(new String[0]));
+    ARCSplitCalculator.setMegabytesPerSplit(job,1);
+    ARCSplitCalculator.setFilesPerSplit(job,filesPerSplit);
+    LocalARCSource source = new LocalARCSource();
+    source.configure(job);
+    ARCSplit splits[] = source.getARCSplits(job);
+    for (ARCSplit split : splits) {
+      Assert.assertTrue(split.getResources().length <= filesPerSplit);
+    }
+
+    // the ranges of each file cover it exactly, and every range but the first starts on a record
+    HashMap<String,Long> expectedStarts = new HashMap<String,Long>();
+    for (ARCResource resource : resourcesOf(splits)) {
+      ArrayList<TestRecord> records = arcFiles.get(resource.getName());
+      Assert.assertNotNull(resource.getName(),records);
+      Long expectedStart = expectedStarts.get(resource.getName());
+      Assert.assertEquals((expectedStart != null) ? (long)expectedStart : 0L,resource.getStart());
+      Assert.assertEquals(new File(resource.getName()).length(),resource.getSize());
+      Assert.assertTrue(resource.getEnd() > resource.getStart());
+      if (resource.getStart() != 0) {
+        boolean onRecord = false;
+        for (TestRecord record : records) {
+          onRecord |= (record.offset == resource.getStart());
+        }
+        Assert.assertTrue(resource.toString(),onRecord);
+      }
+      expectedStarts.put(resource.getName(),resource.getEnd());
+    }
+    for (String arcFile : arcFiles.keySet()) {
+      Assert.assertEquals(new File(arcFile).length(),(long)expectedStarts.get(arcFile));
+    }
+
+    // and every record is read back exactly once, from its own member
+    HashMap<String,TestRecord> unread = new HashMap<String,TestRecord>();
+    for (ArrayList<TestRecord> records : arcFiles.values()) {
+      for (TestRecord record : records) {
+        unread.put(record.url,record);
+      }
+    }
+    for (ARCSplit split : splits) {
+      ARCSplitReader reader = new ARCSplitReader(job,split,source,ArcFileReader.DEFAULT_BLOCK_SIZE);
+      ArcFileItem item = new ArcFileItem();
+      while (reader.next(item)) {
+        TestRecord record = unread.remove(item.getUri());
+        Assert.assertNotNull("unexpected or repeated record:" + item.getUri(),record);
+        Assert.assertTrue(arcFiles.get(item.getArcFileName()).contains(record));
+        // the reader reports the position past the record's gzip member header, and the item ends with the member
+        Assert.assertEquals(record.offset + GZIP_HEADER_LENGTH,item.getArcFilePos());
+        Assert.assertEquals(record.offset + record.length,item.getArcFilePos() + item.getArcFileSize());
+        Assert.assertArrayEquals(record.content,Arrays.copyOf(item.getContent().get(),item.getContent().getCount()));
+        item = new ArcFileItem();
+      }
+      reader.close();
+    }
+    Assert.assertTrue(unread.keySet().toString(),unread.isEmpty());
+    return splits;
+  }
+
+  private static void writeIndex(File arcFile,ArcFileIndex index) throws IOException {
+    DataOutputStream out = new DataOutputStream(new FileOutputStream(arcFile.getPath() + ArcFileIndex.INDEX_SUFFIX));
+    try {
+      index.write(out);
+    }
+    finally {
+      out.close();
+    }
+  }
+
+  @Test
+  public void testSplitRanges() throws Exception {
+    File arcFile = createTempArcFile();
+    File smallArcFile = createTempArcFile();
+    try {
+      // ~4MB, so at one MB per split the file is split four or so ways
+      ArrayList<TestRecord> records = writeArcFile(arcFile,"www.foo.com",new Random(2),200);
+      writeIndex(arcFile,buildIndex(arcFile));
+      HashMap<String,ArrayList<TestRecord>> arcFiles = new HashMap<String,ArrayList<TestRecord>>();
+      arcFiles.put(arcFile.getCanonicalPath(),records);
+      Assert.assertTrue(checkSplits(arcFiles,1).length > 2);
+
+      // along with a file too small to split (with urls of its own), so a split holds a whole file and a range
+      ArrayList<TestRecord> smallRecords = writeArcFile(smallArcFile,"www.bar.com",new Random(3),10);
+      arcFiles.put(smallArcFile.getCanonicalPath(),smallRecords);
+      boolean mixedSplit = false;
+      for (ARCSplit split : checkSplits(arcFiles,3)) {
+        mixedSplit |= (split.getResources().length > 1);
+      }
+      Assert.assertTrue(mixedSplit);
+    }
+    finally {
+      deleteArcFile(arcFile);
+      deleteArcFile(smallArcFile);
+    }
+  }
+
+  @Test
+  public void testStaleIndexIsIgnored() throws Exception {
+    File arcFile = createTempArcFile();
+    try {
+      ArrayList<TestRecord> records = writeArcFile(arcFile,"www.foo.com",new Random(3),100);
+      ArcFileIndex index = buildIndex(arcFile);
+      index.setArcFileLength(arcFile.length() - 1);
+      DataOutputStream out = new DataOutputStream(new FileOutputStream(arcFile.getPath() + ArcFileIndex.INDEX_SUFFIX));
+      try {
+        index.write(out);
+      }
+      finally {
+        out.close();
+      }
+      JobConf job = new JobConf();
+      LocalARCSource.setInputs(job,arcFile.getAbsolutePath());
+      ARCSplitCalculator.setMegabytesPerSplit(job,1);
+      LocalARCSource source = new LocalARCSource();
+      source.configure(job);
+      ARCSplit splits[] = source.getARCSplits(job);
+      // the whole file, in one range
+      Assert.assertEquals(1,splits.length);
+      Assert.assertEquals(1,splits[0].getResources().length);
+      Assert.assertEquals(0,splits[0].getResources()[0].getStart());
+      Assert.assertEquals(arcFile.length(),splits[0].getResources()[0].getEnd());
+      Assert.assertTrue(records.size() > 0);
+    }
+    finally {
+      deleteArcFile(arcFile);
+    }
+  }
+}
@@ -49,7 +49,7 @@ public class ARCSplitReader implements RecordReader<Text, ArcFileItem> {
         ARCResource resource = split.getResources()[i];
         ArcFileReader reader = readers[i];
         InputStream stream = null;
-        long streamPosition = 0;
+        long streamPosition = resource.getStart();
         int failures = 0;
         Throwable lastError = null;
 
@@ -70,7 +70,10 @@ public class ARCSplitReader implements RecordReader<Text, ArcFileItem> {
               // reader is supposed to limit the number of buffers
               // it will accept and block when it is at the limit.
               ByteBuffer buffer = ByteBuffer.allocate(blockSize);
-              int bytesRead = channel.read(buffer);
+              // Stop at the end of the resource's range
+              int bytesToRead = (int) Math.min(blockSize, resource.getEnd() - streamPosition);
+              buffer.limit(bytesToRead);
+              int bytesRead = (bytesToRead == 0) ? -1 : channel.read(buffer);
 
               if (bytesRead > 0) {
                 streamPosition += bytesRead;
@@ -83,7 +86,7 @@ public class ARCSplitReader implements RecordReader<Text, ArcFileItem> {
                 // where the other thread tries to access the
                 // next reader before it is instantiated.
                 if (i + 1 < readers.length) {
-                  readers[i + 1] = new ArcFileReader();
+                  readers[i + 1] = createReader(split.getResources()[i + 1]);
                 }
                 reader.finished();
                 break;
@@ -138,13 +141,26 @@ public class ARCSplitReader implements RecordReader<Text, ArcFileItem> {
     this.source = source;
     this.blockSize = blockSize;
     this.readers = new ArcFileReader[split.getResources().length];
-    this.readers[0] = new ArcFileReader();
+    this.readers[0] = createReader(split.getResources()[0]);
     this.readerIndex = 0;
     this.totalBytesRead = 0;
     this.error = null;
     new IOThread().start();
   }
 
+  /**
+   * Creates the reader for a resource. A range that starts past the beginning
+   * of the file starts at a record boundary, after the ARC file header.
+   */
+  private static ArcFileReader createReader(ARCResource resource) {
+    ArcFileReader reader = new ArcFileReader();
+    if (resource.getStart() != 0) {
+      reader.setArcFileHasHeaderItemFlag(false);
+      reader.setStreamStartPos((int) resource.getStart());
+    }
+    return reader;
+  }
+
   /**
    * @inheritDoc
    */
@@ -17,6 +17,8 @@
  **/
 package org.commoncrawl.hadoop.io;
 
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Collection;
@@ -27,6 +29,7 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.JobConfigurable;
+import org.commoncrawl.util.ArcFileIndex;
 import org.commoncrawl.util.EscapeUtils;
 import org.jets3t.service.S3Service;
 import org.jets3t.service.S3ServiceException;
@@ -224,6 +227,9 @@ public class JetS3tARCSource extends ARCSplitCalculator implements ARCSource, Jo
       for (String prefix : getInputPrefixes(job)) {
         for (S3Object object : service.listObjects(bucket, prefix, null)) {
           String key = object.getKey();
+          if (ArcFileIndex.isIndexFile(key)) {
+            continue;
+          }
           resources.put(key, new ARCResource(key, object.getContentLength()));
         }
       }
@@ -233,6 +239,31 @@ public class JetS3tARCSource extends ARCSplitCalculator implements ARCSource, Jo
     }
   }
 
+  /**
+   * @inheritDoc
+   */
+  @Override
+  protected ArcFileIndex getARCFileIndex(JobConf job, ARCResource resource) throws IOException {
+    S3Object object;
+    try {
+      object = service.getObject(bucket, resource.getName() + ArcFileIndex.INDEX_SUFFIX);
+    } catch (S3ServiceException e) {
+      // No index (or no access to it), so the file is not split
+      LOG.debug("No index for " + resource.getName() + ": " + e.toString());
+      return null;
+    }
+    try {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(object.getDataInputStream()));
+      try {
+        return ArcFileIndex.read(in);
+      } finally {
+        in.close();
+      }
+    } catch (S3ServiceException e) {
+      throw new IOException(e.toString());
+    }
+  }
+
   /**
    * Gets a property from a job and throws an exception if it is not set.
    */
@@ -17,6 +17,8 @@
  **/
 package org.commoncrawl.hadoop.io;
 
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
@@ -27,6 +29,7 @@ import java.util.Map;
 
 import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.JobConfigurable;
+import org.commoncrawl.util.ArcFileIndex;
 import org.commoncrawl.util.EscapeUtils;
 
 /**
@@ -92,6 +95,9 @@ public class LocalARCSource extends ARCSplitCalculator implements ARCSource, Job
       File file = new File(input);
       File[] files = file.isDirectory() ? file.listFiles() : new File[] { file };
       for (File f : files) {
+        if (ArcFileIndex.isIndexFile(f.getName())) {
+          continue;
+        }
         String path = f.getCanonicalPath();
         resources.put(path, new ARCResource(path, f.length()));
       }
@@ -99,6 +105,23 @@ public class LocalARCSource extends ARCSplitCalculator implements ARCSource, Job
     return resources.values();
   }
 
+  /**
+   * @inheritDoc
+   */
+  @Override
+  protected ArcFileIndex getARCFileIndex(JobConf job, ARCResource resource) throws IOException {
+    File indexFile = new File(resource.getName() + ArcFileIndex.INDEX_SUFFIX);
+    if (!indexFile.exists()) {
+      return null;
+    }
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+    try {
+      return ArcFileIndex.read(in);
+    } finally {
+      in.close();
+    }
+  }
+
   /**
    * @inheritDoc
    */
@@ -110,11 +133,11 @@ public class LocalARCSource extends ARCSplitCalculator implements ARCSource, Job
       return null;
     }
 
+    FileInputStream stream = new FileInputStream(resource);
     if (streamPosition != 0) {
-      // This shouldn't happen, but we'll check just in case
-      throw new RuntimeException("Non-zero position requested");
+      // A split of part of the file
+      stream.getChannel().position(streamPosition);
     }
-
-    return new FileInputStream(resource);
+    return stream;
   }
 }
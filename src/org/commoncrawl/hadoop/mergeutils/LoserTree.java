@@ -0,0 +1,147 @@
+/**
+ * Copyright 2008 - CommonCrawl Foundation
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ **/
+package org.commoncrawl.hadoop.mergeutils;
+
+import java.util.Comparator;
+
+/**
+ * a tournament (loser) tree used to k-way merge a set of sorted sources
+ *
+ * each internal node holds the index of the source that lost the match played
+ * at that node, and node zero holds the overall winner. once the winning source
+ * has been advanced to its next record, adjustTop replays only the matches on
+ * the path from its leaf to the root, so each merged record costs log2(k)
+ * comparisons and no list or heap shuffling.
+ *
+ * sources are compared on their current record via the supplied comparator.
+ * ties are broken by source index, so records with equal keys come out in
+ * source order. exhausted sources lose every match.
+ *
+ * @author rana
+ *
+ * @param <SourceType>
+ */
+public final class LoserTree<SourceType> {
+
+  /** index used for the (virtual) minus infinity source while building **/
+  private static final int MIN_SOURCE = -1;
+
+  private SourceType _sources[];
+  private Comparator<? super SourceType> _comparator;
+  private int _tree[];
+  private boolean _exhausted[];
+  private int _activeCount;
+
+  /**
+   * build a tree over a set of sources, each of which must be positioned on its
+   * first record
+   *
+   * @param sources
+   * @param comparator
+   */
+  public LoserTree(SourceType[] sources, Comparator<? super SourceType> comparator) {
+    _sources = sources;
+    _comparator = comparator;
+    _exhausted = new boolean[sources.length];
+    _activeCount = sources.length;
+    _tree = new int[Math.max(1, sources.length)];
+    for (int i = 0; i < _tree.length; ++i) {
+      _tree[i] = MIN_SOURCE;
+    }
+    // replaying every leaf against the minus infinity sentinels leaves a real
+    // loser at every internal node and the real winner at the root
+    for (int i = sources.length - 1; i >= 0; --i) {
+      replay(i);
+    }
+  }
+
+  /** the number of sources in the tree (including exhausted ones) **/
+  public int getSourceCount() {
+    return _sources.length;
+  }
+
+  /** the number of sources that have not yet been exhausted **/
+  public int getActiveCount() {
+    return _activeCount;
+  }
+
+  public boolean isEmpty() {
+    return _activeCount == 0;
+  }
+
+  public boolean isExhausted(int sourceIndex) {
+    return _exhausted[sourceIndex];
+  }
+
+  public SourceType getSource(int sourceIndex) {
+    return _sources[sourceIndex];
+  }
+
+  /** the index of the source holding the smallest current record, or -1 **/
+  public int topIndex() {
+    return (_activeCount == 0) ? -1 : _tree[0];
+  }
+
+  /** the source holding the smallest current record, or null **/
+  public SourceType top() {
+    return (_activeCount == 0) ? null : _sources[_tree[0]];
+  }
+
+  /**
+   * call once the top source has been advanced to its next record, or with
+   * exhausted set if the top source has no more records
+   *
+   * @param exhausted
+   */
+  public void adjustTop(boolean exhausted) {
+    int winner = _tree[0];
+    if (exhausted && !_exhausted[winner]) {
+      _exhausted[winner] = true;
+      _activeCount--;
+    }
+    replay(winner);
+  }
+
+  /** replay the matches on the path from a source's leaf to the root **/
+  private void replay(int sourceIndex) {
+    int winner = sourceIndex;
+    for (int node = (sourceIndex + _sources.length) >> 1; node > 0; node >>= 1) {
+      if (beats(_tree[node], winner)) {
+        int loser = winner;
+        winner = _tree[node];
+        _tree[node] = loser;
+      }
+    }
+    _tree[0] = winner;
+  }
+
+  /** returns true if source a wins against (sorts before) source b **/
+  private boolean beats(int a, int b) {
+    if (a == MIN_SOURCE) {
+      return true;
+    } else if (b == MIN_SOURCE) {
+      return false;
+    } else if (_exhausted[a]) {
+      return false;
+    } else if (_exhausted[b]) {
+      return true;
+    }
+    int result = _comparator.compare(_sources[a], _sources[b]);
+    return (result < 0 || (result == 0 && a < b));
+  }
+}
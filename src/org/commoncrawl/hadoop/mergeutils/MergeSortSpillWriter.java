@@ -27,7 +27,14 @@ import java.io.OutputStream;
 import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.text.NumberFormat;
+import java.util.Arrays;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -55,6 +62,18 @@ import org.commoncrawl.util.FileUtils;
  * optimized key representation which can then be used for sorting within the
  * segment as well as during the final merge sort.
  * 
+ * If double buffering is enabled (SPILL_DOUBLE_BUFFER_PARAM), the configured
+ * index and data buffer space is split into two halves. While one half is
+ * being sorted and spilled on a background thread, the caller keeps adding
+ * records to the other half, and only blocks if it fills up before the
+ * previous spill completes. NOTE: In this mode the comparator (or optimized
+ * key generator's compare method) runs on the spill thread, concurrently with
+ * spillRecord calls on the caller's thread, so it must not share mutable state
+ * with the key generation code.
+ * 
+ * Long only optimized keys are sorted via an LSD radix sort (see
+ * SPILL_RADIX_SORT_PARAM), all other key types via the tuned quicksorts below.
+ * 
  * NOTE: IGNORE THE COMBINER OPTION FOR NOW. IT NEEDS MORE VETTING.
  * 
  * @author rana
@@ -94,6 +113,11 @@ public class MergeSortSpillWriter<KeyType extends WritableComparable, ValueType
   // the size of the data buffer used to accumulate key value pairs during the
   // sort / spill process
   public static final String SPILL_DATA_BUFFER_SIZE_PARAM = "commoncrawl.spill.databuffer.size";
+  // sort and spill on a background thread while the caller fills a second
+  // buffer
+  public static final String SPILL_DOUBLE_BUFFER_PARAM = "commoncrawl.spill.doublebuffer";
+  // use a radix sort (instead of quicksort) for long only optimized keys
+  public static final String SPILL_RADIX_SORT_PARAM = "commoncrawl.spill.radixsort";
 
   private static final int compareUsingRawComparator(RawKeyValueComparator comparator, byte[] keyValueData1,
       int offset1, byte[] keyValueData2, int offset2) throws IOException {
@@ -119,6 +143,10 @@ public class MergeSortSpillWriter<KeyType extends WritableComparable, ValueType
     return ((((bb[offset + 0] & 0xff) << 24) | ((bb[offset + 1] & 0xff) << 16) | ((bb[offset + 2] & 0xff) << 8) | ((bb[offset + 3] & 0xff) << 0)));
   }
 
+  static final long getLongB(byte[] bb, int offset) {
+    return (((long) getIntB(bb, offset)) << 32) | (getIntB(bb, offset + 4) & 0xFFFFFFFFL);
+  }
+
   public static InputStream newInputStream(final ByteBuffer buf) {
     return new InputStream() {
       @Override
@@ -165,13 +193,51 @@ public class MergeSortSpillWriter<KeyType extends WritableComparable, ValueType
     x[b] = t;
   }
 
+  /**
+   * a record index plus the data buffer it points into. records are
+   * accumulated into a SpillBuffer, which is then sorted and spilled as a unit
+   */
+  final class SpillBuffer {
+
+    int _spillIndexBuffer[];
+    ByteBuffer _spillDataBuffer;
+    byte[] _spillDataBufferBytes;
+    int _spillItemCount = 0;
+    DataOutputStream _outputStream;
+    DataInputStream _inputStream;
+    // used to read optimized key headers while spilling (the writer's key is
+    // in use by spillRecord)
+    OptimizedKey _spillKey;
+    // radix sort scratch space (lazily allocated)
+    long _radixKeys[];
+    long _radixScratchKeys[];
+    int _radixScratchIndex[];
+
+    SpillBuffer(int indexBufferSize, int dataBufferSize) {
+      _spillIndexBuffer = new int[indexBufferSize];
+      _spillDataBuffer = ByteBuffer.allocate(dataBufferSize);
+      _spillDataBufferBytes = _spillDataBuffer.array();
+      _spillDataBuffer.clear();
+      _outputStream = new DataOutputStream(newOutputStream(_spillDataBuffer));
+      _inputStream = new DataInputStream(newInputStream(_spillDataBuffer));
+      if (_optimizedKeyGenerator != null) {
+        _spillKey = new OptimizedKey(_optimizedKeyGenerator.getGeneratedKeyType());
+      }
+    }
+  }
+
   FileSystem _tempDataFileSystem;
   Configuration _conf;
 
-  int _spillIndexBuffer[];
-  ByteBuffer _spillDataBuffer;
-  byte[] _spillDataBufferBytes;
-  int _spillItemCount = 0;
+  /** the buffer spillRecord writes into **/
+  SpillBuffer _activeBuffer;
+  /** the second buffer (double buffered mode only) **/
+  SpillBuffer _standbyBuffer;
+  /** background sort and spill thread (double buffered mode only) **/
+  ExecutorService _spillThread;
+  /** the outstanding background spill (if any) **/
+  Future<Void> _pendingSpill;
+  boolean _useRadixSort = true;
   private NumberFormat NUMBER_FORMAT = NumberFormat.getInstance();
 
   Vector<Path> _mergeSegements = new Vector<Path>();
@@ -183,9 +249,6 @@ public class MergeSortSpillWriter<KeyType extends WritableComparable, ValueType
   Path _temporaryDirectoryPath;
   Class<KeyType> _keyClass;
   Class<ValueType> _valueClass;
-  DataOutputStream _outputStream;
-
-  DataInputStream _inputStream;
 
   boolean _compressOutput = false;
 
@@ -266,7 +329,14 @@ public class MergeSortSpillWriter<KeyType extends WritableComparable, ValueType
   public void close() throws IOException {
 
     LOG.info("Entering flushAndClose");
-    if (_spillItemCount == 0 && _mergeSegements.size() == 0) {
+    // wait for any background spill to complete first
+    try {
+      waitForPendingSpill();
+    } catch (IOException e) {
+      freeMemory();
+      throw e;
+    }
+    if (_activeBuffer._spillItemCount == 0 && _mergeSegements.size() == 0) {
       LOG.info("No Data to Merge. Exiting Prematurely");
 
       freeMemory();
@@ -275,15 +345,15 @@ public class MergeSortSpillWriter<KeyType extends WritableComparable, ValueType
     }
 
     // first check to see if anything left to sort
-    if (_spillItemCount != 0) {
+    if (_activeBuffer._spillItemCount != 0) {
 
-      LOG.info("Trailing Spill Data Items of Count:" + _spillItemCount);
+      LOG.info("Trailing Spill Data Items of Count:" + _activeBuffer._spillItemCount);
 
       // if no other merge segments ... spill directly to outer spill writer ...
       if (_mergeSegements.size() == 0) {
         LOG.info("Merge Segment Count is zero. Sorting and Spilling to output file directly");
         // go ahead and sort and then spill the buffered data
-        sortAndSpill(_outputSpillWriter);
+        sortAndSpill(_activeBuffer, _outputSpillWriter);
         // free memory ...
         freeMemory();
         // and return
@@ -292,13 +362,13 @@ public class MergeSortSpillWriter<KeyType extends WritableComparable, ValueType
       // otherwise do the normal spill to temporary file ...
       else {
         LOG.info("Merge Segment Count non-zero. Sorting and Spilling to temporary file");
-        sortAndSpill(null);
+        sortAndSpill(_activeBuffer, null);
       }
-
-      _spillItemCount = 0;
-
     }
 
+    // done with the spill buffers
+    freeMemory();
+
     if (_mergeSegements.size() != 0) {
       // now check to see how many spill files we have ...
       if (_mergeSegements.size() == 1) {
@@ -355,10 +425,10 @@ public class MergeSortSpillWriter<KeyType extends WritableComparable, ValueType
 
   private final int compareUsingOptimizedRawBufferValues(byte[] dataAsBytes, int lValueDataOffset, int rValueDataOffset)
       throws IOException {
-    int buffer1Len = _spillDataBuffer.getInt(lValueDataOffset);
-    int buffer2Len = _spillDataBuffer.getInt(rValueDataOffset);
-    int buffer1Offset = _spillDataBuffer.getInt(lValueDataOffset + 4);
-    int buffer2Offset = _spillDataBuffer.getInt(rValueDataOffset + 4);
+    int buffer1Len = getIntB(dataAsBytes, lValueDataOffset);
+    int buffer2Len = getIntB(dataAsBytes, rValueDataOffset);
+    int buffer1Offset = getIntB(dataAsBytes, lValueDataOffset + 4);
+    int buffer2Offset = getIntB(dataAsBytes, rValueDataOffset + 4);
 
     return _optimizedKeyGenerator.compareOptimizedBufferKeys(dataAsBytes, lValueDataOffset + buffer1Offset, buffer1Len,
         dataAsBytes, rValueDataOffset + buffer2Offset, buffer2Len);
@@ -366,12 +436,12 @@ public class MergeSortSpillWriter<KeyType extends WritableComparable, ValueType
 
   private final int compareUsingOptimizedRawLongAndBufferValues(byte[] dataAsBytes, int lValueDataOffset,
       int rValueDataOffset) throws IOException {
-    final long lValue = _spillDataBuffer.getLong(lValueDataOffset);
-    final long rValue = _spillDataBuffer.getLong(rValueDataOffset);
-    int buffer1Len = _spillDataBuffer.getInt(lValueDataOffset + 8);
-    int buffer2Len = _spillDataBuffer.getInt(rValueDataOffset + 8);
-    int buffer1Offset = _spillDataBuffer.getInt(lValueDataOffset + 12);
-    int buffer2Offset = _spillDataBuffer.getInt(rValueDataOffset + 12);
+    final long lValue = getLongB(dataAsBytes, lValueDataOffset);
+    final long rValue = getLongB(dataAsBytes, rValueDataOffset);
+    int buffer1Len = getIntB(dataAsBytes, lValueDataOffset + 8);
+    int buffer2Len = getIntB(dataAsBytes, rValueDataOffset + 8);
+    int buffer1Offset = getIntB(dataAsBytes, lValueDataOffset + 12);
+    int buffer2Offset = getIntB(dataAsBytes, rValueDataOffset + 12);
 
     int result = (lValue > rValue) ? 1 : (lValue < rValue) ? -1 : 0;
     if (result == 0) {
@@ -382,8 +452,13 @@ public class MergeSortSpillWriter<KeyType extends WritableComparable, ValueType
   }
 
   private void freeMemory() {
-    _spillDataBuffer = null;
-    _spillIndexBuffer = null;
+    if (_spillThread != null) {
+      _spillThread.shutdownNow();
+      _spillThread = null;
+    }
+    _pendingSpill = null;
+    _activeBuffer = null;
+    _standbyBuffer = null;
   }
 
   private Path getNextSpillFilePath() {
@@ -420,14 +495,76 @@ public class MergeSortSpillWriter<KeyType extends WritableComparable, ValueType
     LOG.info("SpillIndexBufferSize:" + _spillIndexBufferSize);
     _spillDataBufferSize = _conf.getInt(SPILL_DATA_BUFFER_SIZE_PARAM, DEFAULT_SPILL_DATA_BUFFER_SIZE);
     LOG.info("SpillDataBufferSize:" + _spillDataBufferSize);
+    _useRadixSort = _conf.getBoolean(SPILL_RADIX_SORT_PARAM, true);
     // now allocate memory ...
-    _spillIndexBuffer = new int[_spillIndexBufferSize];
-    _spillDataBuffer = ByteBuffer.allocate(_spillDataBufferSize);
-    _spillDataBufferBytes = _spillDataBuffer.array();
-    _spillDataBuffer.clear();
-    // initialize streams ...
-    _outputStream = new DataOutputStream(newOutputStream(_spillDataBuffer));
-    _inputStream = new DataInputStream(newInputStream(_spillDataBuffer));
+    if (_conf.getBoolean(SPILL_DOUBLE_BUFFER_PARAM, false)) {
+      LOG.info("Double Buffering Enabled. Splitting Index and Data Buffers in half");
+      // split the configured memory between the two buffers
+      _activeBuffer = new SpillBuffer(Math.max(1, _spillIndexBufferSize / 2), _spillDataBufferSize / 2);
+      _standbyBuffer = new SpillBuffer(Math.max(1, _spillIndexBufferSize / 2), _spillDataBufferSize / 2);
+      _spillThread = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "MergeSortSpillWriter-" + _temporaryDirectoryPath.getName());
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    } else {
+      _activeBuffer = new SpillBuffer(_spillIndexBufferSize, _spillDataBufferSize);
+    }
+  }
+
+  /**
+   * sort and spill the active buffer. In double buffered mode this hands the
+   * active buffer to the spill thread (after waiting for the previous spill to
+   * complete) and swaps in the standby buffer.
+   */
+  private void spillActiveBuffer() throws IOException {
+    if (_spillThread == null) {
+      sortAndSpill(_activeBuffer, null);
+    } else {
+      // the standby buffer is still being spilled if there is a pending spill
+      waitForPendingSpill();
+
+      final SpillBuffer bufferToSpill = _activeBuffer;
+      _activeBuffer = _standbyBuffer;
+      _standbyBuffer = bufferToSpill;
+
+      _pendingSpill = _spillThread.submit(new Callable<Void>() {
+
+        @Override
+        public Void call() throws Exception {
+          sortAndSpill(bufferToSpill, null);
+          return null;
+        }
+      });
+    }
+  }
+
+  /** wait for an outstanding background spill (if any) to complete **/
+  private void waitForPendingSpill() throws IOException {
+    if (_pendingSpill != null) {
+      long waitStartTime = System.currentTimeMillis();
+      try {
+        _pendingSpill.get();
+      } catch (InterruptedException e) {
+        throw new IOException(e);
+      } catch (ExecutionException e) {
+        LOG.error("Background Sort And Spill Failed:" + StringUtils.stringifyException(e.getCause()));
+        if (e.getCause() instanceof IOException) {
+          throw (IOException) e.getCause();
+        }
+        throw new IOException(e.getCause());
+      } finally {
+        _pendingSpill = null;
+      }
+      long waitTime = System.currentTimeMillis() - waitStartTime;
+      if (waitTime > 0) {
+        LOG.info("Waited:" + waitTime + " for Background Spill to Complete");
+      }
+    }
   }
 
   /**
@@ -453,11 +590,11 @@ public class MergeSortSpillWriter<KeyType extends WritableComparable, ValueType
   /**
    * Returns the index of the median of the three indexed longs.
    */
-  private final int med3UsingOptimizedComparatorWithLongs(int x[], int a, int b, int c) throws IOException {
+  private static final int med3UsingOptimizedComparatorWithLongs(byte[] spillData, int x[], int a, int b, int c) {
 
-    long aValue = _spillDataBuffer.getLong(x[a]);
-    long bValue = _spillDataBuffer.getLong(x[b]);
-    long cValue = _spillDataBuffer.getLong(x[c]);
+    long aValue = getLongB(spillData, x[a]);
+    long bValue = getLongB(spillData, x[b]);
+    long cValue = getLongB(spillData, x[c]);
 
     return (aValue < bValue ? (bValue < cValue ? b : aValue < cValue ? c : a) : (bValue > cValue ? b
         : aValue > cValue ? c : a));
@@ -524,32 +661,40 @@ public class MergeSortSpillWriter<KeyType extends WritableComparable, ValueType
 
   }
 
-  /** sort the current set of buffered records and spill **/
-  private void sortAndSpill(RawDataSpillWriter<KeyType, ValueType> optionalWriter) throws IOException {
+  /** sort the set of records buffered in the specified buffer and spill **/
+  private void sortAndSpill(SpillBuffer buffer, RawDataSpillWriter<KeyType, ValueType> optionalWriter)
+      throws IOException {
 
     // get byte pointer
-    byte[] bufferAsBytes = _spillDataBuffer.array();
+    byte[] bufferAsBytes = buffer._spillDataBufferBytes;
+    ByteBuffer spillDataBuffer = buffer._spillDataBuffer;
+    int spillIndexBuffer[] = buffer._spillIndexBuffer;
+    int spillItemCount = buffer._spillItemCount;
+    OptimizedKey spillKey = buffer._spillKey;
 
     long sortAndSpillTime = System.currentTimeMillis();
     long sortTimeStart = System.currentTimeMillis();
     // merge items in buffer
     if (_optimizedKeyGenerator != null) {
 
-      if (_optimizedKey.getKeyType() == OptimizedKey.KEY_TYPE_LONG) {
-        LOG.info("Sorting:" + _spillItemCount + " Items Using Optimized Long Comparator");
-        sortUsingOptimizedLongComparator(_spillIndexBuffer, 0, _spillItemCount);
-      } else if (_optimizedKey.getKeyType() == OptimizedKey.KEY_TYPE_BUFFER) {
-        LOG.info("Sorting:" + _spillItemCount + " Items Using Optimized Buffer Comparator");
-        sortUsingOptimizedBufferKeys(bufferAsBytes, _spillIndexBuffer, 0, _spillItemCount);
-      } else if (_optimizedKey.getKeyType() == OptimizedKey.KEY_TYPE_LONG_AND_BUFFER) {
-        LOG.info("Sorting:" + _spillItemCount + " Items Using Optimized Long And Buffer Only Comparator");
-        sortUsingOptimizedLongAndBufferKeys(bufferAsBytes, _spillIndexBuffer, 0, _spillItemCount);
+      if (spillKey.getKeyType() == OptimizedKey.KEY_TYPE_LONG && _useRadixSort) {
+        LOG.info("Sorting:" + spillItemCount + " Items Using Radix Sort on Optimized Long Keys");
+        sortUsingRadixSortOnLongKeys(buffer);
+      } else if (spillKey.getKeyType() == OptimizedKey.KEY_TYPE_LONG) {
+        LOG.info("Sorting:" + spillItemCount + " Items Using Optimized Long Comparator");
+        sortUsingOptimizedLongComparator(bufferAsBytes, spillIndexBuffer, 0, spillItemCount);
+      } else if (spillKey.getKeyType() == OptimizedKey.KEY_TYPE_BUFFER) {
+        LOG.info("Sorting:" + spillItemCount + " Items Using Optimized Buffer Comparator");
+        sortUsingOptimizedBufferKeys(bufferAsBytes, spillIndexBuffer, 0, spillItemCount);
+      } else if (spillKey.getKeyType() == OptimizedKey.KEY_TYPE_LONG_AND_BUFFER) {
+        LOG.info("Sorting:" + spillItemCount + " Items Using Optimized Long And Buffer Only Comparator");
+        sortUsingOptimizedLongAndBufferKeys(bufferAsBytes, spillIndexBuffer, 0, spillItemCount);
       } else {
         throw new IOException("Unknown Optimized Key Type!");
       }
     } else {
-      LOG.info("Sorting:" + _spillItemCount + " Items Using Raw Comparator");
-      sortUsingRawComparator(bufferAsBytes, _spillIndexBuffer, 0, _spillItemCount);
+      LOG.info("Sorting:" + spillItemCount + " Items Using Raw Comparator");
+      sortUsingRawComparator(bufferAsBytes, spillIndexBuffer, 0, spillItemCount);
     }
 
     LOG.info("Sort Took:" + (System.currentTimeMillis() - sortTimeStart));
@@ -585,32 +730,32 @@ public class MergeSortSpillWriter<KeyType extends WritableComparable, ValueType
       int valuePosition = 0;
       int optimizedBufferLen = 0;
 
-      for (i = 0; i < _spillItemCount; ++i) {
+      for (i = 0; i < spillItemCount; ++i) {
         try {
-          dataOffset = _spillIndexBuffer[i];
-          _spillDataBuffer.position(dataOffset);
+          dataOffset = spillIndexBuffer[i];
+          spillDataBuffer.position(dataOffset);
 
           // if optimized key ... we need to write optimized key value as well
           // as regular key value ...
           if (_optimizedKeyGenerator != null) {
             // init optimized key length
-            _optimizedKey.readHeader(_inputStream);
-            optimizedBufferLen = _optimizedKey.getDataBufferSize();
+            spillKey.readHeader(buffer._inputStream);
+            optimizedBufferLen = spillKey.getDataBufferSize();
           } else {
             optimizedBufferLen = 0;
           }
           // now read in key length
-          keyLen = _spillDataBuffer.getInt();
+          keyLen = spillDataBuffer.getInt();
           // mark key position
-          keyPos = _spillDataBuffer.position();
+          keyPos = spillDataBuffer.position();
           // now skip past key length
-          _spillDataBuffer.position(keyPos + keyLen);
+          spillDataBuffer.position(keyPos + keyLen);
           // read value length
-          valueLen = _spillDataBuffer.getInt();
+          valueLen = spillDataBuffer.getInt();
           // mark value position
-          valuePosition = _spillDataBuffer.position();
+          valuePosition = spillDataBuffer.position();
           // now skip past it (and optimized key data)...
-          _spillDataBuffer.position(valuePosition + valueLen + optimizedBufferLen);
+          spillDataBuffer.position(valuePosition + valueLen + optimizedBufferLen);
 
           // LOG.info("Spilling Raw Record: startPos:" + dataOffset +
           // " optKeyBufferSize:" + optimizedBufferLen + " keySize:" + keyLen +
@@ -626,7 +771,7 @@ public class MergeSortSpillWriter<KeyType extends WritableComparable, ValueType
           }
           // otherwise ... in the optimized key case ...
           else {
-            spillWriter.spillRawRecord(bufferAsBytes, dataOffset, keyLen + _optimizedKey.getHeaderSize() + 4,
+            spillWriter.spillRawRecord(bufferAsBytes, dataOffset, keyLen + spillKey.getHeaderSize() + 4,
                 bufferAsBytes, valuePosition, valueLen + optimizedBufferLen);
           }
           // increment progress...
@@ -639,8 +784,8 @@ public class MergeSortSpillWriter<KeyType extends WritableComparable, ValueType
         } catch (Exception e) {
           LOG.error("Error in Iteration. " + " DataOffset:" + dataOffset + " index:" + i + " keyLen:" + keyLen
               + " keyPos:" + keyPos + " valueLen:" + valueLen + " valuePos:" + valuePosition + " spillDataBufferSize:"
-              + _spillDataBuffer.capacity() + " spillDataPosition:" + _spillDataBuffer.position()
-              + " spillDataRemaining:" + _spillDataBuffer.remaining());
+              + spillDataBuffer.capacity() + " spillDataPosition:" + spillDataBuffer.position()
+              + " spillDataRemaining:" + spillDataBuffer.remaining());
 
           LOG.error(StringUtils.stringifyException(e));
           throw new IOException(e);
@@ -661,11 +806,82 @@ public class MergeSortSpillWriter<KeyType extends WritableComparable, ValueType
       _mergeSegements.add(spillFilePath);
     }
 
-    LOG.info("Spill and Sort for:" + _spillItemCount + " Took:" + (System.currentTimeMillis() - sortAndSpillTime));
+    LOG.info("Spill and Sort for:" + spillItemCount + " Took:" + (System.currentTimeMillis() - sortAndSpillTime));
     // reset spill data buffer
-    _spillDataBuffer.position(0);
+    spillDataBuffer.position(0);
     // reset spill item count
-    _spillItemCount = 0;
+    buffer._spillItemCount = 0;
+  }
+
+  /**
+   * sort long only optimized keys using an LSD radix sort (16 bits per pass,
+   * skipping passes where all keys share the same digit).
+   * 
+   * the long key is the first field in each record, so it is extracted once
+   * into a parallel array, and the key array and index array are permuted
+   * together on each pass.
+   */
+  private static void sortUsingRadixSortOnLongKeys(SpillBuffer buffer) {
+
+    final int count = buffer._spillItemCount;
+    final byte[] data = buffer._spillDataBufferBytes;
+
+    if (buffer._radixKeys == null || buffer._radixKeys.length < count) {
+      int scratchSize = buffer._spillIndexBuffer.length;
+      buffer._radixKeys = new long[scratchSize];
+      buffer._radixScratchKeys = new long[scratchSize];
+      buffer._radixScratchIndex = new int[scratchSize];
+    }
+
+    long keys[] = buffer._radixKeys;
+    int index[] = buffer._spillIndexBuffer;
+    long scratchKeys[] = buffer._radixScratchKeys;
+    int scratchIndex[] = buffer._radixScratchIndex;
+
+    // extract keys, flipping the sign bit so that signed order == unsigned
+    // digit order
+    for (int i = 0; i < count; ++i) {
+      keys[i] = getLongB(data, index[i]) ^ Long.MIN_VALUE;
+    }
+
+    int histogram[] = new int[1 << 16];
+
+    for (int shift = 0; shift < 64; shift += 16) {
+
+      Arrays.fill(histogram, 0);
+      for (int i = 0; i < count; ++i) {
+        histogram[(int) (keys[i] >>> shift) & 0xFFFF]++;
+      }
+      // skip the pass if every key has the same digit
+      if (count == 0 || histogram[(int) (keys[0] >>> shift) & 0xFFFF] == count) {
+        continue;
+      }
+      // convert counts to starting positions
+      int position = 0;
+      for (int digit = 0; digit < histogram.length; ++digit) {
+        int digitCount = histogram[digit];
+        histogram[digit] = position;
+        position += digitCount;
+      }
+      // scatter
+      for (int i = 0; i < count; ++i) {
+        int target = histogram[(int) (keys[i] >>> shift) & 0xFFFF]++;
+        scratchKeys[target] = keys[i];
+        scratchIndex[target] = index[i];
+      }
+      // swap source and destination
+      long tempKeys[] = keys;
+      keys = scratchKeys;
+      scratchKeys = tempKeys;
+      int tempIndex[] = index;
+      index = scratchIndex;
+      scratchIndex = tempIndex;
+    }
+
+    // if the sorted index ended up in the scratch array, copy it back
+    if (index != buffer._spillIndexBuffer) {
+      System.arraycopy(index, 0, buffer._spillIndexBuffer, 0, count);
+    }
   }
 
   /**
@@ -679,7 +895,7 @@ public class MergeSortSpillWriter<KeyType extends WritableComparable, ValueType
    */
   private void sortUsingOptimizedBufferKeys(byte[] dataBytes, int x[], int off, int len) throws IOException {
 
-    byte spillData[] = _spillDataBuffer.array();
+    byte spillData[] = dataBytes;
 
     // Insertion sort on smallest arrays
     if (len < 7) {
@@ -757,7 +973,7 @@ public class MergeSortSpillWriter<KeyType extends WritableComparable, ValueType
    */
   private void sortUsingOptimizedLongAndBufferKeys(byte[] dataBytes, int x[], int off, int len) throws IOException {
 
-    byte spillData[] = _spillDataBuffer.array();
+    byte spillData[] = dataBytes;
 
     // Insertion sort on smallest arrays
     if (len < 7) {
@@ -837,13 +1053,13 @@ public class MergeSortSpillWriter<KeyType extends WritableComparable, ValueType
    * degrade to quadratic performance.
    * 
    */
-  private void sortUsingOptimizedLongComparator(int x[], int off, int len) throws IOException {
+  private void sortUsingOptimizedLongComparator(byte[] dataBytes, int x[], int off, int len) throws IOException {
 
     // Insertion sort on smallest arrays
     if (len < 7) {
       for (int i = off; i < len + off; i++)
         // for (int j=i; j>off && x[j-1]>x[j]; j--)
-        for (int j = i; j > off && _spillDataBuffer.getLong(x[j - 1]) > _spillDataBuffer.getLong(x[j]); j--)
+        for (int j = i; j > off && getLongB(dataBytes, x[j - 1]) > getLongB(dataBytes, x[j]); j--)
           swap(x, j, j - 1);
       return;
     }
@@ -855,15 +1071,15 @@ public class MergeSortSpillWriter<KeyType extends WritableComparable, ValueType
       int n = off + len - 1;
       if (len > 40) { // Big arrays, pseudomedian of 9
         int s = len / 8;
-        l = med3UsingOptimizedComparatorWithLongs(x, l, l + s, l + 2 * s);
-        m = med3UsingOptimizedComparatorWithLongs(x, m - s, m, m + s);
-        n = med3UsingOptimizedComparatorWithLongs(x, n - 2 * s, n - s, n);
+        l = med3UsingOptimizedComparatorWithLongs(dataBytes, x, l, l + s, l + 2 * s);
+        m = med3UsingOptimizedComparatorWithLongs(dataBytes, x, m - s, m, m + s);
+        n = med3UsingOptimizedComparatorWithLongs(dataBytes, x, n - 2 * s, n - s, n);
       }
-      m = med3UsingOptimizedComparatorWithLongs(x, l, m, n); // Mid-size, med of
+      m = med3UsingOptimizedComparatorWithLongs(dataBytes, x, l, m, n); // Mid-size, med of
                                                              // 3
     }
 
-    long v = _spillDataBuffer.getLong(x[m]);
+    long v = getLongB(dataBytes, x[m]);
     // LOG.info("Debug:x[" + m + "]=" + v);
 
     // Establish Invariant: v* (<v)* (>v)* v*
@@ -871,18 +1087,18 @@ public class MergeSortSpillWriter<KeyType extends WritableComparable, ValueType
     while (true) {
       // while (b <= c && x[b] <= v) {
 
-      while (b <= c && _spillDataBuffer.getLong(x[b]) <= v) {
-        // LOG.info("Debug:x[" + b + "]=" + _spillDataBuffer.getLong(x[b]));
+      while (b <= c && getLongB(dataBytes, x[b]) <= v) {
+        // LOG.info("Debug:x[" + b + "]=" + getLongB(dataBytes, x[b]));
         // if (x[b] == v)
-        if (_spillDataBuffer.getLong(x[b]) == v)
+        if (getLongB(dataBytes, x[b]) == v)
           swap(x, a++, b);
         b++;
       }
       // while (c >= b && x[c] >= v) {
-      while (c >= b && _spillDataBuffer.getLong(x[c]) >= v) {
-        // LOG.info("Debug:x[" + c + "]=" + _spillDataBuffer.getLong(x[c]));
+      while (c >= b && getLongB(dataBytes, x[c]) >= v) {
+        // LOG.info("Debug:x[" + c + "]=" + getLongB(dataBytes, x[c]));
         // if (x[c] == v)
-        if (_spillDataBuffer.getLong(x[c]) == v)
+        if (getLongB(dataBytes, x[c]) == v)
           swap(x, c, d--);
         c--;
       }
@@ -900,9 +1116,9 @@ public class MergeSortSpillWriter<KeyType extends WritableComparable, ValueType
 
     // Recursively sort non-partition-elements
     if ((s = b - a) > 1)
-      sortUsingOptimizedLongComparator(x, off, s);
+      sortUsingOptimizedLongComparator(dataBytes, x, off, s);
     if ((s = d - c) > 1)
-      sortUsingOptimizedLongComparator(x, n - s, s);
+      sortUsingOptimizedLongComparator(dataBytes, x, n - s, s);
   }
 
   /**
@@ -1034,7 +1250,7 @@ public class MergeSortSpillWriter<KeyType extends WritableComparable, ValueType
    * 
    */
   private void sortUsingRawComparator(byte[] dataBytes, int x[], int off, int len) throws IOException {
-    byte spillData[] = _spillDataBuffer.array();
+    byte spillData[] = dataBytes;
 
     // Insertion sort on smallest arrays
     if (len < 7) {
@@ -1105,18 +1321,21 @@ public class MergeSortSpillWriter<KeyType extends WritableComparable, ValueType
   public void spillRecord(KeyType key, ValueType value) throws IOException {
 
     // if index is full , trigger merge as well
-    if (_spillItemCount == _spillIndexBufferSize) {
+    if (_activeBuffer._spillItemCount == _activeBuffer._spillIndexBuffer.length) {
       // LOG.info("Spill Item Count == " + SPILL_INDEX_BUFFER_SIZE +
       // ". Flushing");
-      sortAndSpill(null);
+      spillActiveBuffer();
     }
 
     boolean done = false;
 
     while (!done) {
 
+      ByteBuffer spillDataBuffer = _activeBuffer._spillDataBuffer;
+      DataOutputStream outputStream = _activeBuffer._outputStream;
+
       // mark buffer position ...
-      int startPositon = _spillDataBuffer.position();
+      int startPositon = spillDataBuffer.position();
       // LOG.info("Buffer start position:" + startPositon);
 
       boolean overflow = false;
@@ -1126,60 +1345,60 @@ public class MergeSortSpillWriter<KeyType extends WritableComparable, ValueType
           // gen optimized key
           _optimizedKeyGenerator.generateOptimizedKeyForPair(key, value, _optimizedKey);
           // ok skip header size for now ...
-          _spillDataBuffer.position(_spillDataBuffer.position() + _optimizedKey.getHeaderSize());
+          spillDataBuffer.position(spillDataBuffer.position() + _optimizedKey.getHeaderSize());
         }
         // save key size position
-        int keySizePos = _spillDataBuffer.position();
+        int keySizePos = spillDataBuffer.position();
         // LOG.info("keySizePos:" + keySizePos);
         // skip past key length
-        _spillDataBuffer.position(keySizePos + 4);
+        spillDataBuffer.position(keySizePos + 4);
         // next write key and value
-        key.write(_outputStream);
+        key.write(outputStream);
         // now save value size position
-        int valueSizePos = _spillDataBuffer.position();
+        int valueSizePos = spillDataBuffer.position();
         // and calculate key size
         int keySize = valueSizePos - keySizePos - 4;
         // reseek back
-        _spillDataBuffer.position(keySizePos);
+        spillDataBuffer.position(keySizePos);
         // write out real key size
-        _spillDataBuffer.putInt(keySize);
+        spillDataBuffer.putInt(keySize);
         // skip to value size position + 4
-        _spillDataBuffer.position(valueSizePos + 4);
+        spillDataBuffer.position(valueSizePos + 4);
         // write out actual value
-        value.write(_outputStream);
+        value.write(outputStream);
         // save end position
-        int endPosition = _spillDataBuffer.position();
+        int endPosition = spillDataBuffer.position();
         // calculate value size
         int valueSize = endPosition - valueSizePos - 4;
         // reseek back to value size pos
-        _spillDataBuffer.position(valueSizePos);
+        spillDataBuffer.position(valueSizePos);
         // write value size
-        _spillDataBuffer.putInt(valueSize);
+        spillDataBuffer.putInt(valueSize);
         // seek forward to end position
-        _spillDataBuffer.position(endPosition);
+        spillDataBuffer.position(endPosition);
         // and now if there is optional optimized key buffer data ...
         // append optimized key data buffer at end
 
         if (_optimizedKeyGenerator != null) {
           if (_optimizedKey.getDataBufferSize() != 0) {
             // update relative positon of data buffer in key
-            _optimizedKey.setDataBufferOffset(_spillDataBuffer.position() - startPositon);
+            _optimizedKey.setDataBufferOffset(spillDataBuffer.position() - startPositon);
             // write buffer to spill buffer
-            _optimizedKey.writeBufferToStream(_outputStream);
+            _optimizedKey.writeBufferToStream(outputStream);
           }
           // ok now record final data position
-          int nextItemPosition = _spillDataBuffer.position();
+          int nextItemPosition = spillDataBuffer.position();
           // seek back to begining ...
-          _spillDataBuffer.position(startPositon);
+          spillDataBuffer.position(startPositon);
           // rewrite header
-          _optimizedKey.writeHeaderToStream(_outputStream);
+          _optimizedKey.writeHeaderToStream(outputStream);
           // now back to next item position
-          _spillDataBuffer.position(nextItemPosition);
+          spillDataBuffer.position(nextItemPosition);
         }
         // store start position in index buffer
-        _spillIndexBuffer[_spillItemCount] = startPositon;
+        _activeBuffer._spillIndexBuffer[_activeBuffer._spillItemCount] = startPositon;
         // increment ...
-        _spillItemCount++;
+        _activeBuffer._spillItemCount++;
 
         // LOG.info("startPos:" + startPositon + " optKeyBufferSize:" +
         // optimizedKeyBufferSize + " keySizePos:" + keySizePos + " keySize:" +
@@ -1197,10 +1416,15 @@ public class MergeSortSpillWriter<KeyType extends WritableComparable, ValueType
         overflow = true;
       }
       if (overflow) {
+        // if overflow happened with start position at zero, the record is
+        // larger than the spill data buffer
+        if (startPositon == 0) {
+          throw new IOException("Record Size Exceeds Spill Data Buffer Size:" + spillDataBuffer.capacity());
+        }
         // reset to start position
-        _spillDataBuffer.position(startPositon);
+        spillDataBuffer.position(startPositon);
         // sort and spill
-        sortAndSpill(null);
+        spillActiveBuffer();
       }
     }
   }
@@ -90,6 +90,8 @@ public class MergeSortSpillWriterUnitTest {
 
     int _spillBufferSize = -1;
 
+    long _spillTime = -1;
+
     public BaseTest(String testName, int keySetSize, int indexBufferSize, int dataBufferSize, int spillBufferSize) {
       _testName = testName;
       _keySetSize = keySetSize;
@@ -102,6 +104,10 @@ public class MergeSortSpillWriterUnitTest {
         RawDataSpillWriter<IntWritable, Text> writer, FileSystem tempFileSystem, Path tempFilePath,
         RawKeyValueComparator<IntWritable, Text> comparator, Class keyClass, Class valueClass) throws IOException;
 
+    /** override to set additional merger options **/
+    protected void configure(Configuration conf) {
+    }
+
     public void runTest() throws IOException {
       LOG.info("*************** STARTING TEST:" + _testName);
       LOG.info("Set Size:" + _keySetSize);
@@ -218,17 +224,23 @@ public class MergeSortSpillWriterUnitTest {
       conf.setInt(MergeSortSpillWriter.SPILL_DATA_BUFFER_SIZE_PARAM, _dataBufferSize);
       // set spill write buffer size ...
       conf.setInt(SequenceFileSpillWriter.SPILL_WRITER_BUFFER_SIZE_PARAM, _spillBufferSize);
+      // test specific options
+      configure(conf);
 
       // ok create the spill writer
       MergeSortSpillWriter<IntWritable, Text> merger = constructMerger(conf, validatingSpillWriter, FileSystem
           .getLocal(conf), new Path("/tmp"), comparator, IntWritable.class, Text.class);
 
+      long spillStartTime = System.currentTimeMillis();
       // and finally ... spill the records in random order
       for (int i = 0; i < index.length; ++i) {
         merger.spillRecord(new IntWritable(index[i]), originalKeyValueMap.get(index[i]));
       }
       // ok close merger ...
       merger.close();
+      _spillTime = Math.max(1, System.currentTimeMillis() - spillStartTime);
+      LOG.info("Spill and Merge of:" + index.length + " Records Took:" + _spillTime + " Records/Sec:"
+          + ((long) index.length * 1000 / _spillTime));
       // now close the external spill writer ...
       validatingSpillWriter.close();
 
@@ -242,6 +254,11 @@ public class MergeSortSpillWriterUnitTest {
       super("OptimizedKeyGenerator - using Long ONLY Keys Test", 1000000, 10000, 10000 * 200, 1000000);
     }
 
+    public BasicOptimizedTest(String testName, int keySetSize, int indexBufferSize, int dataBufferSize,
+        int spillBufferSize) {
+      super(testName, keySetSize, indexBufferSize, dataBufferSize, spillBufferSize);
+    }
+
     @Override
     protected MergeSortSpillWriter<IntWritable, Text> constructMerger(Configuration conf,
         RawDataSpillWriter<IntWritable, Text> writer, FileSystem tempFileSystem, Path tempFilePath,
@@ -376,6 +393,10 @@ public class MergeSortSpillWriterUnitTest {
       super("Basic RawKeyValueComparator Test", 1000000, 10000, 10000 * 200, 1000000);
     }
 
+    public BasicTest(String testName, int keySetSize, int indexBufferSize, int dataBufferSize, int spillBufferSize) {
+      super(testName, keySetSize, indexBufferSize, dataBufferSize, spillBufferSize);
+    }
+
     @Override
     protected MergeSortSpillWriter<IntWritable, Text> constructMerger(Configuration conf,
         RawDataSpillWriter<IntWritable, Text> writer, FileSystem tempFileSystem, Path tempFilePath,
@@ -386,6 +407,62 @@ public class MergeSortSpillWriterUnitTest {
     }
   }
 
+  /**
+   * Long key test run with the double buffering / radix sort options
+   */
+  public static class LongKeyOptionsTest extends BasicOptimizedTest {
+
+    boolean _doubleBuffer;
+    boolean _radixSort;
+
+    public LongKeyOptionsTest(int keySetSize, int indexBufferSize, boolean doubleBuffer, boolean radixSort) {
+      super("OptimizedKeyGenerator - Long Keys DoubleBuffer:" + doubleBuffer + " RadixSort:" + radixSort, keySetSize,
+          indexBufferSize, indexBufferSize * 200, 1000000);
+      _doubleBuffer = doubleBuffer;
+      _radixSort = radixSort;
+    }
+
+    @Override
+    protected void configure(Configuration conf) {
+      conf.setBoolean(MergeSortSpillWriter.SPILL_DOUBLE_BUFFER_PARAM, _doubleBuffer);
+      conf.setBoolean(MergeSortSpillWriter.SPILL_RADIX_SORT_PARAM, _radixSort);
+    }
+  }
+
+  /**
+   * Raw comparator test run with double buffering
+   */
+  public static class DoubleBufferedRawComparatorTest extends BasicTest {
+
+    public DoubleBufferedRawComparatorTest() {
+      super("Double Buffered RawKeyValueComparator Test", 1000000, 10000, 10000 * 200, 1000000);
+    }
+
+    @Override
+    protected void configure(Configuration conf) {
+      conf.setBoolean(MergeSortSpillWriter.SPILL_DOUBLE_BUFFER_PARAM, true);
+    }
+  }
+
+  /**
+   * spill throughput benchmark - compares the serial quicksort path against
+   * radix sort and double buffering for the same long key workload
+   */
+  public static void runThroughputBenchmark(int keySetSize, int indexBufferSize) throws IOException {
+    boolean options[][] = { { false, false }, { false, true }, { true, false }, { true, true } };
+    long results[] = new long[options.length];
+    for (int i = 0; i < options.length; ++i) {
+      LongKeyOptionsTest test = new LongKeyOptionsTest(keySetSize, indexBufferSize, options[i][0], options[i][1]);
+      test.runTest();
+      results[i] = test._spillTime;
+    }
+    LOG.info("*************** THROUGHPUT BENCHMARK Records:" + keySetSize + " IndexBufferSize:" + indexBufferSize);
+    for (int i = 0; i < options.length; ++i) {
+      LOG.info("DoubleBuffer:" + options[i][0] + " RadixSort:" + options[i][1] + " Took:" + results[i]
+          + " Records/Sec:" + ((long) keySetSize * 1000 / results[i]));
+    }
+  }
+
   public static final Log LOG = LogFactory.getLog(MergeSortSpillWriterUnitTest.class);
 
   public static void main(String[] args) {
@@ -395,6 +472,11 @@ public class MergeSortSpillWriterUnitTest {
       new BasicOptimizedWithLongAndBufferTest().runTest();
       new BasicOptimizedWithBufferOnlyTest(1000000, 10000, 10000 * 200, 1000000).runTest();
       new BasicOptimizedWithBufferOnlyTest(1000000, 1000000, 1000000 * 200, 1000000).runTest();
+      new DoubleBufferedRawComparatorTest().runTest();
+      new LongKeyOptionsTest(1000000, 10000, true, true).runTest();
+      new LongKeyOptionsTest(1000000, 10000, true, false).runTest();
+      // throughput benchmark
+      runThroughputBenchmark(2000000, 250000);
       // new
       // BasicOptimizedWithBufferOnlyTest(10000000,1000000,1000000*200,1000000).runTest();
     } catch (IOException e) {
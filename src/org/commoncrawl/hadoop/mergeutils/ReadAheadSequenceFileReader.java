@@ -0,0 +1,331 @@
+/**
+ * Copyright 2008 - CommonCrawl Foundation
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ **/
+package org.commoncrawl.hadoop.mergeutils;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.SequenceFile.ValueBytes;
+import org.apache.hadoop.util.StringUtils;
+
+/**
+ * reads raw key / value records from a sequence file, a batch at a time, with
+ * the next batch being read in the background while the current one is
+ * consumed
+ *
+ * each reader owns two batches. while the caller walks one of them, the other
+ * is filled on a shared read-ahead executor, so a merge over many segments
+ * only blocks on the file system when it consumes records faster than the
+ * executor can read them. if no executor is supplied, batches are filled
+ * synchronously on the calling thread.
+ *
+ * mergers size the batches via getBatchSize, so that all of a merge's readers
+ * together buffer no more than the configured read-ahead budget.
+ *
+ * the key / value bytes returned by the accessors are only valid until the
+ * next call to next(), since the batch they live in is recycled.
+ *
+ * @author rana
+ *
+ */
+public class ReadAheadSequenceFileReader {
+
+  public static final Log LOG = LogFactory.getLog(ReadAheadSequenceFileReader.class);
+
+  /** enable background read-ahead in mergers **/
+  public static final String READAHEAD_ENABLED_PARAM = "commoncrawl.merger.readahead";
+  /** the maximum number of bytes read per batch (each reader has two) **/
+  public static final String READAHEAD_BATCH_SIZE_PARAM = "commoncrawl.merger.readahead.batchSize";
+  /** the total number of bytes buffered by all the readers of a merge **/
+  public static final String READAHEAD_BUDGET_PARAM = "commoncrawl.merger.readahead.budget";
+  /** the number of threads used to service read-ahead requests **/
+  public static final String READAHEAD_THREAD_COUNT_PARAM = "commoncrawl.merger.readahead.threads";
+
+  public static final int DEFAULT_BATCH_SIZE = 128 * 1024;
+  public static final long DEFAULT_BUDGET = 64 * 1024 * 1024;
+  public static final int MIN_BATCH_SIZE = 4096;
+  public static final int DEFAULT_THREAD_COUNT = 4;
+
+  private static final int INITIAL_RECORD_CAPACITY = 64;
+
+  /** a batch of records, stored back to back in a key and a value buffer **/
+  private static final class RecordBatch {
+
+    DataOutputBuffer keyData = new DataOutputBuffer();
+    DataOutputBuffer valueData = new DataOutputBuffer();
+    // end offset of each record's key and value in the buffers
+    int keyEnd[] = new int[INITIAL_RECORD_CAPACITY];
+    int valueEnd[] = new int[INITIAL_RECORD_CAPACITY];
+    int count = 0;
+    // position of the current record, -1 before the first call to next
+    int cursor = -1;
+    // true if the end of the file was reached while filling this batch
+    boolean eos = false;
+
+    void reset() {
+      keyData.reset();
+      valueData.reset();
+      count = 0;
+      cursor = -1;
+      eos = false;
+    }
+
+    void growIfNecessary() {
+      if (count == keyEnd.length) {
+        int newKeyEnd[] = new int[count * 2];
+        int newValueEnd[] = new int[count * 2];
+        System.arraycopy(keyEnd, 0, newKeyEnd, 0, count);
+        System.arraycopy(valueEnd, 0, newValueEnd, 0, count);
+        keyEnd = newKeyEnd;
+        valueEnd = newValueEnd;
+      }
+    }
+  }
+
+  /**
+   * create the executor used to service read-ahead requests, or return null
+   * if read-ahead is disabled in the config
+   *
+   * @param conf
+   * @param name
+   * @return executor or null
+   */
+  public static ExecutorService createReadAheadExecutor(Configuration conf, final String name) {
+    if (!conf.getBoolean(READAHEAD_ENABLED_PARAM, true)) {
+      return null;
+    }
+    int threadCount = Math.max(1, conf.getInt(READAHEAD_THREAD_COUNT_PARAM, DEFAULT_THREAD_COUNT));
+
+    return Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+
+      AtomicInteger _threadId = new AtomicInteger();
+
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, name + "-ReadAhead-" + _threadId.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  /**
+   * the batch size to use when merging the given number of files: the read-ahead
+   * budget split across the readers' batches, capped at the configured batch size
+   *
+   * @param conf
+   * @param readerCount
+   * @return batch size in bytes
+   */
+  public static int getBatchSize(Configuration conf, int readerCount) {
+    long budget = conf.getLong(READAHEAD_BUDGET_PARAM, DEFAULT_BUDGET);
+    long batchSize = Math.min(conf.getInt(READAHEAD_BATCH_SIZE_PARAM, DEFAULT_BATCH_SIZE),
+        budget / (2L * Math.max(1, readerCount)));
+    return (int) Math.max(MIN_BATCH_SIZE, batchSize);
+  }
+
+  private Path _path;
+  private SequenceFile.Reader _reader;
+  private ValueBytes _valueBytes;
+  private int _batchSize;
+  private ExecutorService _executor;
+  /** the batch being consumed **/
+  private RecordBatch _current = null;
+  /** the outstanding background fill, if read-ahead is enabled **/
+  private Future<RecordBatch> _pendingFill = null;
+  /** the batch to fill on demand, if read-ahead is disabled **/
+  private RecordBatch _pendingBatch = null;
+  private boolean _eos = false;
+
+  /**
+   * open a sequence file and immediately start reading its first batch
+   *
+   * @param fileSystem
+   * @param conf
+   * @param path
+   * @param batchSize
+   * @param optionalExecutor
+   *          executor used to read ahead, or null to read synchronously
+   * @throws IOException
+   */
+  public ReadAheadSequenceFileReader(FileSystem fileSystem, Configuration conf, Path path, int batchSize,
+      ExecutorService optionalExecutor) throws IOException {
+    _path = path;
+    _batchSize = batchSize;
+    _executor = optionalExecutor;
+    _reader = new SequenceFile.Reader(fileSystem, path, conf);
+    _valueBytes = _reader.createValueBytes();
+    scheduleFill(new RecordBatch());
+  }
+
+  public Path getPath() {
+    return _path;
+  }
+
+  public SequenceFile.Reader getReader() {
+    return _reader;
+  }
+
+  /**
+   * advance to the next record
+   *
+   * @return false if the end of the file has been reached
+   * @throws IOException
+   */
+  public boolean next() throws IOException {
+    while (!_eos) {
+      if (_current != null) {
+        if (++_current.cursor < _current.count) {
+          return true;
+        }
+        if (_current.eos) {
+          _eos = true;
+          break;
+        }
+      }
+      // current batch is exhausted ... swap in the read-ahead batch
+      RecordBatch exhausted = _current;
+      _current = waitForPendingFill();
+      // and start reading the next one into the batch we just finished with
+      if (!_current.eos) {
+        scheduleFill((exhausted != null) ? exhausted : new RecordBatch());
+      }
+    }
+    return false;
+  }
+
+  public byte[] getKeyData() {
+    return _current.keyData.getData();
+  }
+
+  public int getKeyOffset() {
+    return (_current.cursor == 0) ? 0 : _current.keyEnd[_current.cursor - 1];
+  }
+
+  public int getKeyLength() {
+    return _current.keyEnd[_current.cursor] - getKeyOffset();
+  }
+
+  public byte[] getValueData() {
+    return _current.valueData.getData();
+  }
+
+  public int getValueOffset() {
+    return (_current.cursor == 0) ? 0 : _current.valueEnd[_current.cursor - 1];
+  }
+
+  public int getValueLength() {
+    return _current.valueEnd[_current.cursor] - getValueOffset();
+  }
+
+  /**
+   * close the underlying reader, first waiting for any background read that
+   * might still be using it
+   *
+   * @throws IOException
+   */
+  public void close() throws IOException {
+    if (_pendingFill != null) {
+      try {
+        _pendingFill.get();
+      } catch (InterruptedException e) {
+        LOG.error("Interrupted waiting for ReadAhead on:" + _path);
+      } catch (ExecutionException e) {
+        // already at end of life. just log it
+        LOG.error("ReadAhead on:" + _path + " Failed with:" + StringUtils.stringifyException(e.getCause()));
+      }
+      _pendingFill = null;
+    }
+    _pendingBatch = null;
+    _current = null;
+    _eos = true;
+    if (_reader != null) {
+      _reader.close();
+      _reader = null;
+    }
+  }
+
+  private void scheduleFill(final RecordBatch batch) {
+    if (_executor != null) {
+      _pendingFill = _executor.submit(new Callable<RecordBatch>() {
+
+        @Override
+        public RecordBatch call() throws Exception {
+          fillBatch(batch);
+          return batch;
+        }
+      });
+    } else {
+      _pendingBatch = batch;
+    }
+  }
+
+  private RecordBatch waitForPendingFill() throws IOException {
+    if (_pendingFill != null) {
+      try {
+        return _pendingFill.get();
+      } catch (InterruptedException e) {
+        throw new IOException(e);
+      } catch (ExecutionException e) {
+        LOG.error("ReadAhead on:" + _path + " Failed with:" + StringUtils.stringifyException(e.getCause()));
+        if (e.getCause() instanceof IOException) {
+          throw (IOException) e.getCause();
+        }
+        throw new IOException(e.getCause());
+      } finally {
+        _pendingFill = null;
+      }
+    } else {
+      RecordBatch batch = _pendingBatch;
+      _pendingBatch = null;
+      fillBatch(batch);
+      return batch;
+    }
+  }
+
+  /** read records into the batch until it holds at least _batchSize bytes **/
+  private void fillBatch(RecordBatch batch) throws IOException {
+    batch.reset();
+    while (batch.keyData.getLength() + batch.valueData.getLength() < _batchSize) {
+      if (_reader.nextRawKey(batch.keyData) == -1) {
+        batch.eos = true;
+        break;
+      }
+      if (_reader.nextRawValue(_valueBytes) != 0) {
+        _valueBytes.writeUncompressedBytes(batch.valueData);
+      }
+      batch.growIfNecessary();
+      batch.keyEnd[batch.count] = batch.keyData.getLength();
+      batch.valueEnd[batch.count] = batch.valueData.getLength();
+      batch.count++;
+    }
+  }
+}
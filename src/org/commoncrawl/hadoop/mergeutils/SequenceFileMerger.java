@@ -19,30 +19,29 @@ package org.commoncrawl.hadoop.mergeutils;
 
 import java.io.IOException;
 import java.lang.reflect.Constructor;
-import java.util.Arrays;
 import java.util.Comparator;
 import java.util.Vector;
+import java.util.concurrent.ExecutorService;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
-import org.apache.hadoop.io.DataOutputBuffer;
-import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.DataInputBuffer;
 import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.io.WritableComparable;
-import org.apache.hadoop.io.SequenceFile.ValueBytes;
 import org.apache.hadoop.mapred.Reporter;
 import org.apache.hadoop.util.StringUtils;
 import org.commoncrawl.hadoop.mergeutils.OptimizedKeyGeneratorAndComparator.OptimizedKey;
-import org.commoncrawl.util.IntrusiveList;
-import org.commoncrawl.util.IntrusiveList.IntrusiveListElement;
 
 /**
  * merge sort a pre-sorted set of sequence files and spill them to output
  * 
- * 
+ * segments are merged via a tournament (loser) tree, and each segment's data
+ * is read ahead in the background (see ReadAheadSequenceFileReader), so the
+ * merge thread neither shuffles a sorted segment list nor waits on the file
+ * system for every record.
  * 
  * @author rana
  * 
@@ -51,12 +50,11 @@ import org.commoncrawl.util.IntrusiveList.IntrusiveListElement;
  */
 public class SequenceFileMerger<KeyType extends WritableComparable, ValueType extends Writable> {
 
-  private static class MergeResultSegment<KeyType extends Writable, ValueType extends Writable> extends
-      IntrusiveListElement<MergeResultSegment<KeyType, ValueType>> {
+  private static class MergeResultSegment<KeyType extends Writable, ValueType extends Writable> {
 
     private static final Class[] emptyArray = new Class[] {};
 
-    SequenceFile.Reader reader = null;
+    ReadAheadSequenceFileReader reader = null;
     KeyType key = null;
     ValueType value = null;
     Constructor<KeyType> keyConstructor = null;
@@ -65,9 +63,7 @@ public class SequenceFileMerger<KeyType extends WritableComparable, ValueType ex
     Path path;
     int index = -1;
     boolean useRawMode = false;
-    DataOutputBuffer rawKeyData = null;
-    DataOutputBuffer rawValueData = null;
-    ValueBytes valueBytes = null;
+    DataInputBuffer inputBuffer = null;
     OptimizedKeyGeneratorAndComparator<KeyType, ValueType> _optimizedGenerator = null;
     OptimizedKey _optimizedKey = null;
 
@@ -77,7 +73,8 @@ public class SequenceFileMerger<KeyType extends WritableComparable, ValueType ex
 
     public MergeResultSegment(FileSystem fileSystem, Configuration conf, Path inputFile, Class<KeyType> keyClass,
         Class<ValueType> valueClass, boolean useRawMode,
-        OptimizedKeyGeneratorAndComparator<KeyType, ValueType> optionalGenerator) throws IOException {
+        OptimizedKeyGeneratorAndComparator<KeyType, ValueType> optionalGenerator, ExecutorService readAheadExecutor,
+        int readAheadBatchSize) throws IOException {
       try {
         this.useRawMode = useRawMode;
         this._optimizedGenerator = optionalGenerator;
@@ -88,9 +85,8 @@ public class SequenceFileMerger<KeyType extends WritableComparable, ValueType ex
         this.keyConstructor.setAccessible(true);
         this.valConstructor = valueClass.getDeclaredConstructor(emptyArray);
         this.valConstructor.setAccessible(true);
-        if (useRawMode) {
-          rawKeyData = new DataOutputBuffer();
-          rawValueData = new DataOutputBuffer();
+        if (!useRawMode) {
+          inputBuffer = new DataInputBuffer();
         }
       } catch (SecurityException e) {
         LOG.error(StringUtils.stringifyException(e));
@@ -100,10 +96,7 @@ public class SequenceFileMerger<KeyType extends WritableComparable, ValueType ex
         throw new RuntimeException(e);
       }
       this.path = inputFile;
-      reader = new SequenceFile.Reader(fileSystem, inputFile, conf);
-      if (useRawMode) {
-        valueBytes = reader.createValueBytes();
-      }
+      reader = new ReadAheadSequenceFileReader(fileSystem, conf, inputFile, readAheadBatchSize, readAheadExecutor);
       index = -1;
     }
 
@@ -135,12 +128,32 @@ public class SequenceFileMerger<KeyType extends WritableComparable, ValueType ex
       return path;
     }
 
-    public DataOutputBuffer getRawKeyData() {
-      return rawKeyData;
+    /**
+     * raw key / value bytes of the current record. only valid until the next
+     * call to next()
+     */
+    public byte[] getRawKeyData() {
+      return reader.getKeyData();
+    }
+
+    public int getRawKeyOffset() {
+      return reader.getKeyOffset();
+    }
+
+    public int getRawKeyLength() {
+      return reader.getKeyLength();
+    }
+
+    public byte[] getRawValueData() {
+      return reader.getValueData();
+    }
+
+    public int getRawValueOffset() {
+      return reader.getValueOffset();
     }
 
-    public DataOutputBuffer getRawValueData() {
-      return rawValueData;
+    public int getRawValueLength() {
+      return reader.getValueLength();
     }
 
     public ValueType getValue() throws IOException {
@@ -156,31 +169,23 @@ public class SequenceFileMerger<KeyType extends WritableComparable, ValueType ex
 
     public boolean next() throws IOException {
       if (!eos) {
-        try {
+        eos = !reader.next();
+        if (!eos) {
           if (!useRawMode) {
-            key = keyConstructor.newInstance();
-            value = valConstructor.newInstance();
-          } else {
-            rawKeyData.reset();
-            rawValueData.reset();
-          }
-        } catch (Exception e) {
-          LOG.error("Failed to create key or value type with Exception:" + StringUtils.stringifyException(e));
-          throw new RuntimeException(e);
-        }
-        if (!useRawMode) {
-          eos = !reader.next(key, value);
-        } else {
-          eos = (reader.nextRawKey(this.rawKeyData) == -1);
-          if (!eos) {
-            if (reader.nextRawValue(valueBytes) != 0) {
-              valueBytes.writeUncompressedBytes(rawValueData);
-            }
-
-            if (!eos && _optimizedGenerator != null) {
-              _optimizedKey.initFromKeyValuePair(rawKeyData.getData(), 0, rawKeyData.getLength(), rawValueData
-                  .getData(), 0, rawValueData.getLength());
+            try {
+              key = keyConstructor.newInstance();
+              value = valConstructor.newInstance();
+            } catch (Exception e) {
+              LOG.error("Failed to create key or value type with Exception:" + StringUtils.stringifyException(e));
+              throw new RuntimeException(e);
             }
+            inputBuffer.reset(reader.getKeyData(), reader.getKeyOffset(), reader.getKeyLength());
+            key.readFields(inputBuffer);
+            inputBuffer.reset(reader.getValueData(), reader.getValueOffset(), reader.getValueLength());
+            value.readFields(inputBuffer);
+          } else if (_optimizedGenerator != null) {
+            _optimizedKey.initFromKeyValuePair(reader.getKeyData(), reader.getKeyOffset(), reader.getKeyLength(),
+                reader.getValueData(), reader.getValueOffset(), reader.getValueLength());
           }
         }
       }
@@ -195,7 +200,11 @@ public class SequenceFileMerger<KeyType extends WritableComparable, ValueType ex
 
   public static final Log LOG = LogFactory.getLog(SequenceFileMerger.class);
   // the set of input files (segments) to operate on
-  IntrusiveList<MergeResultSegment<KeyType, ValueType>> _segmentList = new IntrusiveList<MergeResultSegment<KeyType, ValueType>>();
+  MergeResultSegment<KeyType, ValueType> _segments[] = null;
+  // tournament tree used to pick the next segment to spill from
+  LoserTree<MergeResultSegment<KeyType, ValueType>> _mergeTree = null;
+  // executor used to read ahead segment data (null if read-ahead is disabled)
+  ExecutorService _readAheadExecutor = null;
   // the output spill writer
   SpillWriter<KeyType, ValueType> _writer = null;
   // a reference to the raw writer interface if _writer implements
@@ -288,81 +297,32 @@ public class SequenceFileMerger<KeyType extends WritableComparable, ValueType ex
     init(fileSystem, conf, inputSegments, spillWriter, keyClass, valueClass, comparator, null, optionalCombiner);
   }
 
-  // do a binary search in the map to find the right value
-  private final MergeResultSegment<KeyType, ValueType> _findInsertionPos(
-      MergeResultSegment<KeyType, ValueType> searchSegment, MergeResultSegment<KeyType, ValueType>[] array,
-      int arrayCount) throws IOException {
-
-    int low = 0;
-    int high = arrayCount - 1;
-
-    while (low <= high) {
-      int mid = low + ((high - low) / 2);
-
-      MergeResultSegment<KeyType, ValueType> segment = array[mid];
-
-      int compareResult = 0;
-      if (_optimizedKeyGenerator != null) {
-        if ((_optimizedKeyType & OptimizedKey.KEY_TYPE_LONG) != 0) {
-          compareResult = (int) (segment.getOptimizedKey().getLongKeyValue() - searchSegment.getOptimizedKey()
-              .getLongKeyValue());
-        }
-        if (compareResult == 0 && (_optimizedKeyType & OptimizedKey.KEY_TYPE_BUFFER) != 0) {
-          // compare buffers ...
-          compareResult = _optimizedKeyGenerator.compareOptimizedBufferKeys(segment.getOptimizedKey()
-              .getBufferKeyValue().get(), segment.getOptimizedKey().getBufferKeyValue().getOffset(), segment
-              .getOptimizedKey().getBufferKeyValue().getCount(), searchSegment.getOptimizedKey().getBufferKeyValue()
-              .get(), searchSegment.getOptimizedKey().getBufferKeyValue().getOffset(), searchSegment.getOptimizedKey()
-              .getBufferKeyValue().getCount());
-        }
-      } else if (_rawComparator != null) {
-        compareResult = _rawComparator.compareRaw(segment.getRawKeyData().getData(), 0, segment.getRawKeyData()
-            .getLength(), searchSegment.getRawKeyData().getData(), 0, searchSegment.getRawKeyData().getLength(),
-            segment.getRawValueData().getData(), 0, segment.getRawValueData().getLength(), searchSegment
-                .getRawValueData().getData(), 0, searchSegment.getRawValueData().getLength());
-
-      } else {
-        compareResult = _comparator.compare(segment.getKey(), segment.getValue(), searchSegment.getKey(), searchSegment
-            .getValue());
+  /**
+   * compare the current records of two segments
+   */
+  private final int compareSegments(MergeResultSegment<KeyType, ValueType> o1, MergeResultSegment<KeyType, ValueType> o2)
+      throws IOException {
+    if (_optimizedKeyGenerator != null) {
+      int result = 0;
+      if ((_optimizedKeyType & OptimizedKey.KEY_TYPE_LONG) != 0) {
+        long value1 = o1.getOptimizedKey().getLongKeyValue();
+        long value2 = o2.getOptimizedKey().getLongKeyValue();
+        result = (value1 < value2) ? -1 : (value1 == value2) ? 0 : 1;
       }
-
-      // LOG.info("Compare Between" + segment.getKey().toString() + " and " +
-      // searchSegment.getKey() + " returned:" + compareResult);
-      if (compareResult > 0) {
-        // LOG.info("Setting high to:" + (mid - 1));
-        high = mid - 1;
-      } else if (compareResult < 0) {
-        // LOG.info("Setting low to:" + (mid + 1));
-        low = mid + 1;
-      } else {
-        // LOG.info("Found match. returning item at:" + mid);
-        return array[mid]; // found
+      if (result == 0 && (_optimizedKeyType & OptimizedKey.KEY_TYPE_BUFFER) != 0) {
+        // compare buffers ...
+        result = _optimizedKeyGenerator.compareOptimizedBufferKeys(o1.getOptimizedKey().getBufferKeyValue().get(), o1
+            .getOptimizedKey().getBufferKeyValue().getOffset(), o1.getOptimizedKey().getBufferKeyValue().getCount(), o2
+            .getOptimizedKey().getBufferKeyValue().get(), o2.getOptimizedKey().getBufferKeyValue().getOffset(), o2
+            .getOptimizedKey().getBufferKeyValue().getCount());
       }
-
-    }
-    // not found ... return best insertion position ...
-    if (high == -1) {
-      // LOG.info("High == -1. Returning NULL");
-      return null;
+      return result;
+    } else if (_rawComparator != null) {
+      return _rawComparator.compareRaw(o1.getRawKeyData(), o1.getRawKeyOffset(), o1.getRawKeyLength(), o2
+          .getRawKeyData(), o2.getRawKeyOffset(), o2.getRawKeyLength(), o1.getRawValueData(), o1.getRawValueOffset(),
+          o1.getRawValueLength(), o2.getRawValueData(), o2.getRawValueOffset(), o2.getRawValueLength());
     } else {
-      // LOG.info("Returning element at index:" + high);
-      return array[high];
-    }
-  }
-
-  /**
-   * add merge segments to sort array
-   * 
-   * @param array
-   * @param list
-   */
-  private final void addItemsToArray(MergeResultSegment<KeyType, ValueType>[] array,
-      IntrusiveList<MergeResultSegment<KeyType, ValueType>> list) {
-    MergeResultSegment<KeyType, ValueType> current = list.getHead();
-    int pos = 0;
-    while (current != null) {
-      array[pos++] = current;
-      current = current.getNext();
+      return _comparator.compare(o1.getKey(), o1.getValue(), o2.getKey(), o2.getValue());
     }
   }
 
@@ -372,12 +332,22 @@ public class SequenceFileMerger<KeyType extends WritableComparable, ValueType ex
    * @throws IOException
    */
   public void close() throws IOException {
-    for (MergeResultSegment<KeyType, ValueType> segment : _segmentList) {
-      try {
-        segment.close();
-      } catch (IOException e) {
-        LOG.error(StringUtils.stringifyException(e));
+    if (_segments != null) {
+      for (int i = 0; i < _segments.length; ++i) {
+        // exhausted segments were closed during the merge
+        if (_mergeTree == null || !_mergeTree.isExhausted(i)) {
+          try {
+            _segments[i].close();
+          } catch (IOException e) {
+            LOG.error(StringUtils.stringifyException(e));
+          }
+        }
       }
+      _segments = null;
+    }
+    if (_readAheadExecutor != null) {
+      _readAheadExecutor.shutdown();
+      _readAheadExecutor = null;
     }
   }
 
@@ -413,72 +383,56 @@ public class SequenceFileMerger<KeyType extends WritableComparable, ValueType ex
     }
     _optionalCombiner = optionalCombiner;
 
-    try {
+    _readAheadExecutor = ReadAheadSequenceFileReader.createReadAheadExecutor(conf, "SequenceFileMerger");
+    // the read-ahead budget is shared by all the segments
+    int readAheadBatchSize = ReadAheadSequenceFileReader.getBatchSize(conf, inputSegments.size());
 
-      Vector<MergeResultSegment<KeyType, ValueType>> segments = new Vector<MergeResultSegment<KeyType, ValueType>>();
+    Vector<MergeResultSegment<KeyType, ValueType>> segments = new Vector<MergeResultSegment<KeyType, ValueType>>();
 
+    try {
+      // open all segments first, so that their initial reads overlap
       for (Path path : inputSegments) {
         // LOG.info("Loading QueryResultSegment:" + path);
-        MergeResultSegment<KeyType, ValueType> resultSegment = new MergeResultSegment<KeyType, ValueType>(fileSystem,
-            conf, path, keyClass, valueClass, _rawComparator != null || _optimizedKeyGenerator != null,
-            _optimizedKeyGenerator);
+        segments.add(new MergeResultSegment<KeyType, ValueType>(fileSystem, conf, path, keyClass, valueClass,
+            _rawComparator != null || _optimizedKeyGenerator != null, _optimizedKeyGenerator, _readAheadExecutor,
+            readAheadBatchSize));
+      }
+
+      Vector<MergeResultSegment<KeyType, ValueType>> validSegments = new Vector<MergeResultSegment<KeyType, ValueType>>();
+
+      for (MergeResultSegment<KeyType, ValueType> resultSegment : segments) {
         if (!resultSegment.next()) {
           // LOG.info("QueryResultSegment:" + path
           // +" returned EOS on initial next.Ignoring Segment");
           try {
             resultSegment.close();
           } catch (IOException e) {
-            LOG.error("QueryResultSegment:" + path + " Threw Exception:" + StringUtils.stringifyException(e));
+            LOG.error("QueryResultSegment:" + resultSegment.getPath() + " Threw Exception:"
+                + StringUtils.stringifyException(e));
           }
         } else {
           _inputRecordCount++;
-          segments.add(resultSegment);
+          resultSegment.setIndex(validSegments.size());
+          validSegments.add(resultSegment);
         }
       }
-
-      // create temporary array for sorting purposes ...
-      MergeResultSegment<KeyType, ValueType> segmentArray[] = segments.toArray(new MergeResultSegment[0]);
-      // sort the array ...
-      Arrays.sort(segmentArray, new Comparator<MergeResultSegment<KeyType, ValueType>>() {
-
-        @Override
-        public int compare(MergeResultSegment<KeyType, ValueType> o1, MergeResultSegment<KeyType, ValueType> o2) {
-          try {
-            if (_optimizedKeyGenerator != null) {
-              int result = 0;
-              if ((_optimizedKeyType & OptimizedKey.KEY_TYPE_LONG) != 0) {
-                result = (int) (o1.getOptimizedKey().getLongKeyValue() - o2.getOptimizedKey().getLongKeyValue());
-              }
-              if (result == 0 && ((_optimizedKeyType & OptimizedKey.KEY_TYPE_BUFFER) != 0)) {
-                // compare buffers ...
-                result = _optimizedKeyGenerator.compareOptimizedBufferKeys(o1.getOptimizedKey().getBufferKeyValue()
-                    .get(), o1.getOptimizedKey().getBufferKeyValue().getOffset(), o1.getOptimizedKey()
-                    .getBufferKeyValue().getCount(), o2.getOptimizedKey().getBufferKeyValue().get(), o2
-                    .getOptimizedKey().getBufferKeyValue().getOffset(), o2.getOptimizedKey().getBufferKeyValue()
-                    .getCount());
-
+      segments = validSegments;
+
+      _segments = segments.toArray(new MergeResultSegment[0]);
+      // build the merge tree ...
+      _mergeTree = new LoserTree<MergeResultSegment<KeyType, ValueType>>(_segments,
+          new Comparator<MergeResultSegment<KeyType, ValueType>>() {
+
+            @Override
+            public int compare(MergeResultSegment<KeyType, ValueType> o1, MergeResultSegment<KeyType, ValueType> o2) {
+              try {
+                return compareSegments(o1, o2);
+              } catch (IOException e) {
+                LOG.error(StringUtils.stringifyException(e));
+                throw new RuntimeException(e);
               }
-              return result;
-            } else if (_rawComparator != null) {
-              return _rawComparator.compareRaw(o1.getRawKeyData().getData(), 0, o1.getRawKeyData().getLength(), o2
-                  .getRawKeyData().getData(), 0, o2.getRawKeyData().getLength(), o1.getRawValueData().getData(), 0, o1
-                  .getRawValueData().getLength(), o2.getRawValueData().getData(), 0, o2.getRawValueData().getLength());
-            } else {
-              return _comparator.compare(o1.getKey(), o1.getValue(), o2.getKey(), o2.getValue());
             }
-          } catch (IOException e) {
-            LOG.error(StringUtils.stringifyException(e));
-            throw new RuntimeException(e);
-          }
-        }
-      });
-      // LOG.info("Initial sorted segment list is ....");
-      // now store the segments in sorted order ...
-      int index = 0;
-      for (MergeResultSegment<KeyType, ValueType> segment : segmentArray) {
-        segment.setIndex(index++);
-        _segmentList.addTail(segment);
-      }
+          });
 
       _writer = spillWriter;
       if (!(_writer instanceof RawDataSpillWriter)) {
@@ -489,13 +443,19 @@ public class SequenceFileMerger<KeyType extends WritableComparable, ValueType ex
     } catch (IOException e) {
       LOG.error(StringUtils.stringifyException(e));
 
-      for (MergeResultSegment<KeyType, ValueType> segment : _segmentList) {
+      for (MergeResultSegment<KeyType, ValueType> segment : segments) {
         try {
           segment.close();
         } catch (IOException e2) {
           LOG.error(StringUtils.stringifyException(e2));
         }
       }
+      _segments = null;
+      _mergeTree = null;
+      if (_readAheadExecutor != null) {
+        _readAheadExecutor.shutdown();
+        _readAheadExecutor = null;
+      }
       throw e;
     }
   }
@@ -510,17 +470,14 @@ public class SequenceFileMerger<KeyType extends WritableComparable, ValueType ex
   public void mergeAndSpill(Reporter reporter) throws IOException {
     long sortStartTime = System.currentTimeMillis();
 
-    // allocate our sort array
-    MergeResultSegment<KeyType, ValueType> sortArray[] = new MergeResultSegment[_segmentList.size() + 1];
-
     KeyType lastCombinerKey = null;
     Vector<ValueType> valueBuffer = new Vector<ValueType>();
 
-    while (_segmentList.getHead() != null) {
+    while (!_mergeTree.isEmpty()) {
       MergeResultSegment<KeyType, ValueType> spillSegment = null;
       try {
-        // get the head element
-        spillSegment = _segmentList.removeHead();
+        // get the winning segment
+        spillSegment = _mergeTree.top();
         // and spill its current key/value pair ...
         // LOG.info("Spilling Segment:" + spillSegment.getName() + " Key:" +
         // spillSegment.getKey().toString());
@@ -547,14 +504,17 @@ public class SequenceFileMerger<KeyType extends WritableComparable, ValueType ex
             // {original-key-len} preceeding the actual key bytes
             // and optional buffer data at tail end of value
 
-            _rawWriter.spillRawRecord(spillSegment.getRawKeyData().getData(), spillSegment.getOptimizedKey()
-                .getHeaderSize() + 4, spillSegment.getRawKeyData().getLength()
-                - spillSegment.getOptimizedKey().getHeaderSize() - 4, spillSegment.getRawValueData().getData(), 0,
-                spillSegment.getRawValueData().getLength() - spillSegment.getOptimizedKey().getDataBufferSize());
+            int keyPrefixSize = spillSegment.getOptimizedKey().getHeaderSize() + 4;
+
+            _rawWriter.spillRawRecord(spillSegment.getRawKeyData(), spillSegment.getRawKeyOffset() + keyPrefixSize,
+                spillSegment.getRawKeyLength() - keyPrefixSize, spillSegment.getRawValueData(), spillSegment
+                    .getRawValueOffset(), spillSegment.getRawValueLength()
+                    - spillSegment.getOptimizedKey().getDataBufferSize());
 
           } else if (_rawComparator != null) {
-            _rawWriter.spillRawRecord(spillSegment.getRawKeyData().getData(), 0, spillSegment.getRawKeyData()
-                .getLength(), spillSegment.getRawValueData().getData(), 0, spillSegment.getRawValueData().getLength());
+            _rawWriter.spillRawRecord(spillSegment.getRawKeyData(), spillSegment.getRawKeyOffset(), spillSegment
+                .getRawKeyLength(), spillSegment.getRawValueData(), spillSegment.getRawValueOffset(), spillSegment
+                .getRawValueLength());
           } else {
             _writer.spillRecord(spillSegment.getKey(), spillSegment.getValue());
           }
@@ -580,33 +540,15 @@ public class SequenceFileMerger<KeyType extends WritableComparable, ValueType ex
         // and see if there is a next item for the spilled segment
         if (spillSegment.next()) {
           _inputRecordCount++;
-          // yes, ok insert it back into the list at the appropriate position
-          // ...
-          if (_segmentList.size() == 0) {
-            _segmentList.addHead(spillSegment);
-          } else {
-            // first convert existing list to array
-            addItemsToArray(sortArray, _segmentList);
-            // next find insertion position
-            MergeResultSegment<KeyType, ValueType> insertionPos = _findInsertionPos(spillSegment, sortArray,
-                _segmentList.size());
-            // if null, add to head ...
-            if (insertionPos == null) {
-              // LOG.info("DEBUG:Adding Key:" + spillSegment.getKey().toString()
-              // + " Before:" + _segmentList.getHead().getKey().toString());
-              _segmentList.addHead(spillSegment);
-            } else {
-              // LOG.info("DEBUG:Adding Key:" + spillSegment.getKey().toString()
-              // + " After:" + insertionPos.getKey().toString());
-              _segmentList.insertAfter(insertionPos, spillSegment);
-            }
-          }
+          // yes, replay its path in the tree
+          _mergeTree.adjustTop(false);
         }
         // otherwise ...
         else {
-          // close the segment
+          // retire it from the tree and close the segment
           // LOG.info("Segment:" + spillSegment.getName() +
           // " Exhausted. Closing");
+          _mergeTree.adjustTop(true);
           try {
             spillSegment.close();
           } catch (IOException e) {
@@ -618,6 +560,13 @@ public class SequenceFileMerger<KeyType extends WritableComparable, ValueType ex
         if (spillSegment != null) {
           LOG.error("Error during splill of segment:" + spillSegment.getName() + " Exception:"
               + StringUtils.stringifyException(e));
+          // drop the failed segment from the merge
+          _mergeTree.adjustTop(true);
+          try {
+            spillSegment.close();
+          } catch (IOException e2) {
+            LOG.error(StringUtils.stringifyException(e2));
+          }
         }
       }
 
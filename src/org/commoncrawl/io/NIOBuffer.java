@@ -55,16 +55,15 @@ public final class NIOBuffer {
    */
 
   private static final int MAX_BUF_SIZE = 1024 << 10;
-  /** Global Buffer Allocation Pool */
-  private static final LinkedList<ByteBuffer> _bufferPool = new LinkedList<ByteBuffer>();
+  /**
+   * Global Buffer Allocation Pool (heap buffers only, since header parsing
+   * works on the backing array)
+   */
+  private static final NIOBufferPool _bufferPool = NIOBufferPool.getHeapPool();
 
   /** clear (release) the buffer pool */
   static public void flushBufferPool() {
-
-    synchronized (_bufferPool) {
-
-      _bufferPool.clear();
-    }
+    _bufferPool.flush();
   }
 
   /**
@@ -75,9 +74,7 @@ public final class NIOBuffer {
 
     // return a previously read buffer (obtained via direct read method)
     // to the pool
-    synchronized (_bufferPool) {
-      _bufferPool.addFirst(buffer);
-    }
+    _bufferPool.release(buffer);
   }
 
   static public boolean poolContainsBuffer(ByteBuffer target) {
@@ -119,10 +116,8 @@ public final class NIOBuffer {
 
       if (_readBuffer != null) {
         // if get here then readBuffer.remaining() == 0
-        synchronized (_bufferPool) {
-          // free the buffer ..
-          _bufferPool.addFirst(_readBuffer);
-        }
+        // free the buffer ..
+        _bufferPool.release(_readBuffer);
         _readBuffer = null;
       }
 
@@ -174,20 +169,9 @@ public final class NIOBuffer {
    */
   public final ByteBuffer allocateBuffer() throws IOException {
 
-    ByteBuffer bufferOut = null;
-
-    synchronized (_bufferPool) {
-
-      if (_bufferPool.size() != 0) {
-        bufferOut = _bufferPool.removeFirst();
-      } else {
-        int desiredAllocSize = Math.max(_minBufferSize, Math.min(_maxBufferSize, _lastWriteBufSize << 1));
+    int desiredAllocSize = Math.max(_minBufferSize, Math.min(_maxBufferSize, _lastWriteBufSize << 1));
 
-        bufferOut = ByteBuffer.allocate(desiredAllocSize);
-      }
-      bufferOut.clear();
-    }
-    return bufferOut;
+    return _bufferPool.allocate(desiredAllocSize);
   }
 
   /** Returns the number of readable bytes */
@@ -482,24 +466,19 @@ public final class NIOBuffer {
   /** Reset State (Release buffers) */
   public void reset() {
 
-    synchronized (_bufferPool) {
-
-      for (ByteBuffer b : _bufferList) {
-        b.position(0);
-        _bufferPool.addFirst(b);
-      }
-      _bufferList.clear();
+    for (ByteBuffer b : _bufferList) {
+      _bufferPool.release(b);
+    }
+    _bufferList.clear();
+    _bufferListBytes = 0;
 
-      if (_readBuffer != null) {
-        _readBuffer.position(0);
-        _bufferPool.addFirst(_readBuffer);
-        _readBuffer = null;
-      }
-      if (_writeBuffer != null) {
-        _writeBuffer.position(0);
-        _bufferPool.addFirst(_writeBuffer);
-        _writeBuffer = null;
-      }
+    if (_readBuffer != null) {
+      _bufferPool.release(_readBuffer);
+      _readBuffer = null;
+    }
+    if (_writeBuffer != null) {
+      _bufferPool.release(_writeBuffer);
+      _writeBuffer = null;
     }
   }
 
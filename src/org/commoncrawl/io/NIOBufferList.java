@@ -28,6 +28,11 @@ import java.util.concurrent.locks.ReentrantLock;
  * NIOBufferList - ByteBuffer container with separate read and write cursors (in
  * order to faciliate a producer / consumer io model )
  * 
+ * If a NIOBufferPool is set, buffers are allocated from (and exhausted read
+ * buffers are returned to) the pool. A buffer obtained via read() is owned by
+ * the caller, who should hand it back via release() once done with it. Pooled
+ * lists should not be used with a sink, since the sink takes the buffers.
+ * 
  * @author rana
  */
 
@@ -67,12 +72,17 @@ public final class NIOBufferList {
   private ReentrantLock _readLock = null;
 
   private Condition _readEvent = null;
+  /** optional buffer pool **/
+  private NIOBufferPool _pool = null;
 
   /** internal - get the next read buffer from the queue */
   private synchronized ByteBuffer _getNextReadBuf() throws IOException {
 
     while (_readBuffer == null || _readBuffer.hasRemaining() == false) {
 
+      if (_readBuffer != null && _pool != null) {
+        _pool.release(_readBuffer);
+      }
       _readBuffer = null;
 
       // once we reach here... we can recover the next buffer in the list ...
@@ -106,9 +116,31 @@ public final class NIOBufferList {
   public final ByteBuffer allocateBuffer() throws IOException {
 
     int desiredAllocSize = Math.max(_minBufferSize, Math.min(_maxBufferSize, _lastWriteBufSize << 1));
+    if (_pool != null) {
+      return _pool.allocate(desiredAllocSize);
+    }
     return ByteBuffer.allocate(desiredAllocSize);
   }
 
+  /**
+   * return a buffer previously obtained via read() to the pool (no-op if this
+   * list is not pooled)
+   */
+  public void release(ByteBuffer buffer) {
+    if (_pool != null && buffer != null) {
+      _pool.release(buffer);
+    }
+  }
+
+  /** set the buffer pool used to allocate buffers (null to use the heap) **/
+  public void setBufferPool(NIOBufferPool pool) {
+    _pool = pool;
+  }
+
+  public NIOBufferPool getBufferPool() {
+    return _pool;
+  }
+
   /** Returns the number of readable bytes */
   public int available() {
 
@@ -347,6 +379,17 @@ public final class NIOBufferList {
 
   /** Reset State (Release buffers) */
   public void reset() {
+    if (_pool != null) {
+      for (ByteBuffer buffer : _bufferList) {
+        _pool.release(buffer);
+      }
+      if (_readBuffer != null) {
+        _pool.release(_readBuffer);
+      }
+      if (_writeBuffer != null) {
+        _pool.release(_writeBuffer);
+      }
+    }
     _bufferList.clear();
     _bufferListBytes = 0;
     _readBuffer = null;
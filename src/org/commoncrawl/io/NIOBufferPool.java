@@ -0,0 +1,388 @@
+/**
+ * Copyright 2008 - CommonCrawl Foundation
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ **/
+package org.commoncrawl.io;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.commoncrawl.util.CCStringUtils;
+import org.commoncrawl.util.RuntimeStatsCollector;
+
+/**
+ * NIOBufferPool - size classed ByteBuffer allocator used by NIOBuffer and
+ * (optionally) NIOBufferList.
+ *
+ * Requests are rounded up to a power of two size class between 4K and 1MB.
+ * Larger requests are allocated exactly and never pooled. Each thread keeps a
+ * small cache of free buffers per size class, which it can use without any
+ * synchronization. Cache overflow (and underflow) goes to a lock-free shared
+ * free list per size class, which is capped by total bytes.
+ *
+ * A buffer handed out by allocate is owned by the caller until it is passed
+ * to release. Releasing a buffer twice, or releasing a buffer that is still
+ * referenced elsewhere, corrupts whoever allocates it next. With leak
+ * detection enabled (-Dorg.commoncrawl.io.bufferPool.trackLeaks=true) the
+ * pool tracks every outstanding buffer, rejects releases of buffers it did
+ * not hand out, and logs the allocation site of buffers that were garbage
+ * collected without being released.
+ *
+ * @author rana
+ *
+ */
+public final class NIOBufferPool {
+
+  private static final Log LOG = LogFactory.getLog(NIOBufferPool.class);
+
+  /** size classes are 1 << MIN_CLASS_SHIFT ... 1 << MAX_CLASS_SHIFT **/
+  static final int MIN_CLASS_SHIFT = 12;
+  static final int MAX_CLASS_SHIFT = 20;
+  static final int CLASS_COUNT = MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1;
+
+  public static final int MIN_CLASS_SIZE = 1 << MIN_CLASS_SHIFT;
+  public static final int MAX_CLASS_SIZE = 1 << MAX_CLASS_SHIFT;
+
+  public static final int DEFAULT_THREAD_CACHE_BYTES = 1 << 20;
+  public static final long DEFAULT_MAX_POOLED_BYTES = 64L << 20;
+
+  private static final int MAX_LOGGED_LEAKS = 100;
+
+  private static final boolean TRACK_LEAKS = Boolean.getBoolean("org.commoncrawl.io.bufferPool.trackLeaks");
+
+  private static NIOBufferPool _heapPool = null;
+  private static NIOBufferPool _directPool = null;
+
+  /** get the process wide heap buffer pool **/
+  public static synchronized NIOBufferPool getHeapPool() {
+    if (_heapPool == null) {
+      _heapPool = new NIOBufferPool(false, DEFAULT_THREAD_CACHE_BYTES, DEFAULT_MAX_POOLED_BYTES, TRACK_LEAKS);
+    }
+    return _heapPool;
+  }
+
+  /**
+   * get the process wide direct buffer pool. Direct buffers have no backing
+   * array, so only hand these to code that never calls ByteBuffer.array()
+   */
+  public static synchronized NIOBufferPool getDirectPool() {
+    if (_directPool == null) {
+      _directPool = new NIOBufferPool(true, DEFAULT_THREAD_CACHE_BYTES, DEFAULT_MAX_POOLED_BYTES, TRACK_LEAKS);
+    }
+    return _directPool;
+  }
+
+  /** per thread free lists **/
+  private static final class ThreadCache {
+
+    ByteBuffer _buffers[][];
+    int _counts[] = new int[CLASS_COUNT];
+
+    ThreadCache(int threadCacheBytes) {
+      _buffers = new ByteBuffer[CLASS_COUNT][];
+      for (int i = 0; i < CLASS_COUNT; ++i) {
+        // at least a couple of buffers per class, fewer for the large classes
+        _buffers[i] = new ByteBuffer[Math.max(2, threadCacheBytes >> (MIN_CLASS_SHIFT + i))];
+      }
+    }
+  }
+
+  /** tracks an outstanding buffer when leak detection is enabled **/
+  private static final class LeakTracker extends WeakReference<ByteBuffer> {
+
+    Integer _key;
+    int _capacity;
+    Throwable _allocationSite;
+    LeakTracker _next;
+
+    LeakTracker(ByteBuffer buffer, ReferenceQueue<ByteBuffer> queue) {
+      super(buffer, queue);
+      _key = System.identityHashCode(buffer);
+      _capacity = buffer.capacity();
+      _allocationSite = new Throwable("Buffer Allocation Site");
+    }
+  }
+
+  private final boolean _direct;
+  private final int _threadCacheBytes;
+  private final long _maxPooledBytes;
+
+  @SuppressWarnings("unchecked")
+  private final ConcurrentLinkedQueue<ByteBuffer> _shared[] = new ConcurrentLinkedQueue[CLASS_COUNT];
+
+  private final ThreadLocal<ThreadCache> _threadCache = new ThreadLocal<ThreadCache>() {
+    @Override
+    protected ThreadCache initialValue() {
+      return new ThreadCache(_threadCacheBytes);
+    }
+  };
+
+  /** leak detection **/
+  private final boolean _trackLeaks;
+  private final ReferenceQueue<ByteBuffer> _leakQueue;
+  private final Map<Integer, LeakTracker> _trackers;
+
+  /** stats **/
+  private final AtomicLong _allocatedCount = new AtomicLong();
+  private final AtomicLong _allocatedBytes = new AtomicLong();
+  private final AtomicLong _reuseCount = new AtomicLong();
+  private final AtomicLong _releaseCount = new AtomicLong();
+  private final AtomicLong _discardCount = new AtomicLong();
+  private final AtomicLong _outstandingCount = new AtomicLong();
+  private final AtomicLong _outstandingBytes = new AtomicLong();
+  private final AtomicLong _pooledBytes = new AtomicLong();
+  private final AtomicLong _leakCount = new AtomicLong();
+
+  public NIOBufferPool(boolean direct, int threadCacheBytes, long maxPooledBytes, boolean trackLeaks) {
+    _direct = direct;
+    _threadCacheBytes = threadCacheBytes;
+    _maxPooledBytes = maxPooledBytes;
+    _trackLeaks = trackLeaks;
+    _leakQueue = (trackLeaks) ? new ReferenceQueue<ByteBuffer>() : null;
+    _trackers = (trackLeaks) ? new HashMap<Integer, LeakTracker>() : null;
+    for (int i = 0; i < CLASS_COUNT; ++i) {
+      _shared[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+    }
+  }
+
+  public boolean isDirect() {
+    return _direct;
+  }
+
+  /** get the size class index for a requested size, or -1 if it is too large to pool **/
+  static int sizeClassFor(int size) {
+    if (size <= MIN_CLASS_SIZE) {
+      return 0;
+    } else if (size > MAX_CLASS_SIZE) {
+      return -1;
+    }
+    return (32 - Integer.numberOfLeadingZeros(size - 1)) - MIN_CLASS_SHIFT;
+  }
+
+  /** get the size class index of a buffer being released, or -1 if it does not fit any class **/
+  static int sizeClassOf(int capacity) {
+    if (capacity < MIN_CLASS_SIZE || capacity > MAX_CLASS_SIZE || Integer.bitCount(capacity) != 1) {
+      return -1;
+    }
+    return Integer.numberOfTrailingZeros(capacity) - MIN_CLASS_SHIFT;
+  }
+
+  /**
+   * allocate a cleared buffer of at least the requested size (the capacity is
+   * rounded up to the size class)
+   */
+  public ByteBuffer allocate(int size) {
+
+    int sizeClass = sizeClassFor(size);
+    ByteBuffer bufferOut = null;
+
+    if (sizeClass != -1) {
+      ThreadCache cache = _threadCache.get();
+      if (cache._counts[sizeClass] != 0) {
+        bufferOut = cache._buffers[sizeClass][--cache._counts[sizeClass]];
+        cache._buffers[sizeClass][cache._counts[sizeClass]] = null;
+      } else {
+        bufferOut = _shared[sizeClass].poll();
+        if (bufferOut != null) {
+          _pooledBytes.addAndGet(-bufferOut.capacity());
+        }
+      }
+    }
+
+    if (bufferOut != null) {
+      _reuseCount.incrementAndGet();
+      bufferOut.clear();
+    } else {
+      int allocationSize = (sizeClass != -1) ? (MIN_CLASS_SIZE << sizeClass) : size;
+      bufferOut = (_direct) ? ByteBuffer.allocateDirect(allocationSize) : ByteBuffer.allocate(allocationSize);
+      _allocatedCount.incrementAndGet();
+      _allocatedBytes.addAndGet(allocationSize);
+    }
+
+    _outstandingCount.incrementAndGet();
+    _outstandingBytes.addAndGet(bufferOut.capacity());
+
+    if (_trackLeaks) {
+      track(bufferOut);
+    }
+    return bufferOut;
+  }
+
+  /**
+   * return a buffer obtained via allocate to the pool. The caller must not
+   * touch the buffer (or any slice / duplicate of it) afterwards
+   */
+  public void release(ByteBuffer buffer) {
+
+    if (buffer == null) {
+      return;
+    }
+
+    // reject buffers we could never have handed out
+    if (buffer.isDirect() != _direct || buffer.isReadOnly() || (!_direct && buffer.arrayOffset() != 0)) {
+      LOG.error("Release of a Foreign Buffer Capacity:" + buffer.capacity() + " Direct:" + buffer.isDirect());
+      return;
+    }
+
+    if (_trackLeaks && !untrack(buffer)) {
+      LOG.error("Release of a Buffer not owned by the Pool (or a Double Release) Capacity:" + buffer.capacity()
+          + " Site:" + CCStringUtils.stringifyException(new Throwable()));
+      return;
+    }
+
+    int sizeClass = sizeClassOf(buffer.capacity());
+
+    _releaseCount.incrementAndGet();
+    _outstandingCount.decrementAndGet();
+    _outstandingBytes.addAndGet(-buffer.capacity());
+
+    if (sizeClass == -1) {
+      // oversized allocation - let the gc have it
+      _discardCount.incrementAndGet();
+      return;
+    }
+
+    ThreadCache cache = _threadCache.get();
+    if (cache._counts[sizeClass] < cache._buffers[sizeClass].length) {
+      cache._buffers[sizeClass][cache._counts[sizeClass]++] = buffer;
+    } else if (_pooledBytes.get() + buffer.capacity() <= _maxPooledBytes) {
+      _pooledBytes.addAndGet(buffer.capacity());
+      _shared[sizeClass].offer(buffer);
+    } else {
+      _discardCount.incrementAndGet();
+    }
+  }
+
+  /** drop all buffers in the shared free lists (thread caches are left alone) **/
+  public void flush() {
+    for (int i = 0; i < CLASS_COUNT; ++i) {
+      ByteBuffer buffer;
+      while ((buffer = _shared[i].poll()) != null) {
+        _pooledBytes.addAndGet(-buffer.capacity());
+      }
+    }
+  }
+
+  private void track(ByteBuffer buffer) {
+    LeakTracker tracker = new LeakTracker(buffer, _leakQueue);
+    synchronized (_trackers) {
+      tracker._next = _trackers.put(tracker._key, tracker);
+    }
+    pollLeaks();
+  }
+
+  private boolean untrack(ByteBuffer buffer) {
+    Integer key = System.identityHashCode(buffer);
+    synchronized (_trackers) {
+      LeakTracker prev = null;
+      for (LeakTracker tracker = _trackers.get(key); tracker != null; prev = tracker, tracker = tracker._next) {
+        if (tracker.get() == buffer) {
+          unlink(key, prev, tracker);
+          tracker.clear();
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  private void unlink(Integer key, LeakTracker prev, LeakTracker tracker) {
+    if (prev != null) {
+      prev._next = tracker._next;
+    } else if (tracker._next != null) {
+      _trackers.put(key, tracker._next);
+    } else {
+      _trackers.remove(key);
+    }
+  }
+
+  /** account for (and log) buffers that were collected without being released **/
+  private void pollLeaks() {
+    LeakTracker leaked;
+    while ((leaked = (LeakTracker) _leakQueue.poll()) != null) {
+      synchronized (_trackers) {
+        LeakTracker prev = null;
+        for (LeakTracker tracker = _trackers.get(leaked._key); tracker != null; prev = tracker, tracker = tracker._next) {
+          if (tracker == leaked) {
+            unlink(leaked._key, prev, tracker);
+            break;
+          }
+        }
+      }
+      _outstandingCount.decrementAndGet();
+      _outstandingBytes.addAndGet(-leaked._capacity);
+      if (_leakCount.incrementAndGet() <= MAX_LOGGED_LEAKS) {
+        LOG.error("Leaked Buffer of Capacity:" + leaked._capacity + " Allocated At:"
+            + CCStringUtils.stringifyException(leaked._allocationSite));
+      }
+    }
+  }
+
+  public long getAllocatedCount() {
+    return _allocatedCount.get();
+  }
+
+  public long getAllocatedBytes() {
+    return _allocatedBytes.get();
+  }
+
+  public long getReuseCount() {
+    return _reuseCount.get();
+  }
+
+  public long getReleaseCount() {
+    return _releaseCount.get();
+  }
+
+  public long getOutstandingCount() {
+    return _outstandingCount.get();
+  }
+
+  public long getOutstandingBytes() {
+    return _outstandingBytes.get();
+  }
+
+  public long getPooledBytes() {
+    return _pooledBytes.get();
+  }
+
+  public long getLeakCount() {
+    return _leakCount.get();
+  }
+
+  public void collectStats(RuntimeStatsCollector stats) {
+    if (_trackLeaks) {
+      pollLeaks();
+    }
+    stats.setStringValue(NIOBufferPoolStats.ID, NIOBufferPoolStats.Name.BufferPool_Type, (_direct) ? "direct" : "heap");
+    stats.setLongValue(NIOBufferPoolStats.ID, NIOBufferPoolStats.Name.BufferPool_AllocatedCount, _allocatedCount.get());
+    stats.setLongValue(NIOBufferPoolStats.ID, NIOBufferPoolStats.Name.BufferPool_AllocatedBytes, _allocatedBytes.get());
+    stats.setLongValue(NIOBufferPoolStats.ID, NIOBufferPoolStats.Name.BufferPool_ReuseCount, _reuseCount.get());
+    stats.setLongValue(NIOBufferPoolStats.ID, NIOBufferPoolStats.Name.BufferPool_ReleaseCount, _releaseCount.get());
+    stats.setLongValue(NIOBufferPoolStats.ID, NIOBufferPoolStats.Name.BufferPool_DiscardCount, _discardCount.get());
+    stats.setLongValue(NIOBufferPoolStats.ID, NIOBufferPoolStats.Name.BufferPool_OutstandingBuffers, _outstandingCount.get());
+    stats.setLongValue(NIOBufferPoolStats.ID, NIOBufferPoolStats.Name.BufferPool_OutstandingBytes, _outstandingBytes.get());
+    stats.setLongValue(NIOBufferPoolStats.ID, NIOBufferPoolStats.Name.BufferPool_PooledBytes, _pooledBytes.get());
+    stats.setLongValue(NIOBufferPoolStats.ID, NIOBufferPoolStats.Name.BufferPool_LeakCount, _leakCount.get());
+  }
+}
@@ -53,8 +53,7 @@ public class NIOClientUDPSocket extends NIOClientSocket {
 
   @Override
   public NIOSocketListener getListener() {
-    // TODO Auto-generated method stub
-    return null;
+    return _listener;
   }
 
   @Override
@@ -98,7 +97,8 @@ public class NIOClientUDPSocket extends NIOClientSocket {
     if (!bind_random(null)) { 
       throw new IOException("Unable to bind to random port!");
     }
-    _channel.socket().connect(remoteAddress);
+    _remoteAddress = remoteAddress;
+    _channel.connect(remoteAddress);
   }
 
   @Override
@@ -228,6 +228,9 @@ public final class NIODNSLocalResolver extends NIODNSResolver {
   /** dns server address **/
   private String                       _dnsServerAddress              = "127.0.0.1";
 
+  /** dns server port **/
+  private int                          _dnsServerPort                 = SimpleResolver.DEFAULT_PORT;
+
   /** context object **/
   private Object                       _context;
 
@@ -298,6 +301,11 @@ public final class NIODNSLocalResolver extends NIODNSResolver {
     _dnsServerAddress = serverAddressInDottedDecimal;
   }
 
+  /** set dns server port **/
+  public void setDNSServerPort(int port) {
+    _dnsServerPort = port;
+  }
+
   public long getQueryCount() {
     return _queryCount;
   }
@@ -384,6 +392,7 @@ public final class NIODNSLocalResolver extends NIODNSResolver {
 
         // allocate a simple resolver object ...
         SimpleResolver resolver = new SimpleResolver(_dnsServerAddress);
+        resolver.setPort(_dnsServerPort);
 
         // use tcp if requested ...
         if (useTCP)
@@ -471,6 +480,10 @@ public final class NIODNSLocalResolver extends NIODNSResolver {
 
     do {
 
+      // clear retry flag from the previous pass, otherwise a single retry
+      // spins this thread forever ...
+      retry = false;
+
       // Ask dnsjava for the inetaddress. Should be in its cache.
       Message response = null;
       InetAddress address = null;
@@ -503,6 +516,7 @@ public final class NIODNSLocalResolver extends NIODNSResolver {
         try {
 
           SimpleResolver resolver = new SimpleResolver(_dnsServerAddress);
+          resolver.setPort(_dnsServerPort);
           // allocate a simple resolver object ...
           //NIODNSSimpleResolverImpl resolver = new NIODNSSimpleResolverImpl(this, _dnsServerAddress);
 
@@ -510,8 +524,8 @@ public final class NIODNSLocalResolver extends NIODNSResolver {
           if (useTCP)
             resolver.setTCP(true);
 
-          // set the timeout ...
-          resolver.setTimeout(timeoutValue);
+          // set the timeout (dnsjava takes seconds + millis, ours is in millis) ...
+          resolver.setTimeout(timeoutValue / 1000, timeoutValue % 1000);
 
           // create appropriate data structures ...
           Name name = Name.fromString(hostName, Name.root);
@@ -0,0 +1,645 @@
+/**
+ * Copyright 2008 - CommonCrawl Foundation
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ **/
+
+package org.commoncrawl.io;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.commoncrawl.async.Callback;
+import org.commoncrawl.async.EventLoop;
+import org.commoncrawl.async.Timer;
+import org.commoncrawl.io.NIODNSQueryClient.Status;
+import org.commoncrawl.util.CCStringUtils;
+import org.commoncrawl.util.IPAddressUtils;
+import org.xbill.DNS.ARecord;
+import org.xbill.DNS.CNAMERecord;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.Header;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Rcode;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.Type;
+
+/**
+ * NIODNSPipelinedResolver - Non-blocking DNS Resolver that multiplexes many
+ * outstanding queries over a small set of shared UDP sockets registered with
+ * the EventLoop's selector. Responses are matched to queries via the DNS
+ * transaction id, and retries / timeouts are driven by a single sweep timer,
+ * so no worker thread is tied up per lookup.
+ *
+ * All socket and callback activity happens in the event thread. resolve may be
+ * called from any thread.
+ *
+ * @author rana
+ *
+ */
+public final class NIODNSPipelinedResolver extends NIODNSResolver implements Timer.Callback {
+
+  /** logging **/
+  static final Log LOG = LogFactory.getLog(NIODNSPipelinedResolver.class);
+
+  public static final int DEFAULT_SOCKET_COUNT = 4;
+  public static final int DEFAULT_MAX_INFLIGHT_PER_SOCKET = 2048;
+  public static final int DEFAULT_MAX_RETRIES = 2;
+  public static final int DNS_PORT = 53;
+
+  /** minimum time we wait on a single attempt **/
+  private static final int MIN_ATTEMPT_TIMEOUT = 250;
+  /** timeout / retry sweep interval **/
+  private static final int SWEEP_INTERVAL = 50;
+  /** max udp payload we accept (no EDNS0) **/
+  private static final int MAX_UDP_PACKET_SIZE = 512;
+
+  /**
+   * PipelinedQuery - a single outstanding (or queued) query. Doubles as the
+   * Future handed back to the caller.
+   */
+  public class PipelinedQuery implements Future<NIODNSQueryResult> {
+
+    String hostName;
+    Name name;
+    NIODNSQueryClient client;
+    NIODNSQueryResult result;
+    boolean useCache;
+    int attemptTimeout;
+    long deadline;
+    long attemptExpireTime;
+    int attempts = 0;
+    int qid;
+    byte[] wire;
+    ResolverSocket socket;
+    boolean cancelled = false;
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      return cancelled = true;
+    }
+
+    @Override
+    public NIODNSQueryResult get() throws InterruptedException, ExecutionException {
+      return result;
+    }
+
+    @Override
+    public NIODNSQueryResult get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException,
+        TimeoutException {
+      return result;
+    }
+
+    @Override
+    public boolean isCancelled() {
+      return cancelled;
+    }
+
+    @Override
+    public boolean isDone() {
+      return result != null;
+    }
+
+    @Override
+    public String toString() {
+      return "PipelinedQuery host:" + hostName + " qid:" + qid + " attempts:" + attempts;
+    }
+  }
+
+  /**
+   * ResolverSocket - one shared UDP socket and the set of queries currently in
+   * flight on it (keyed by transaction id)
+   */
+  class ResolverSocket implements NIOClientSocketListener {
+
+    int _index;
+    NIOClientUDPSocket _socket;
+    Map<Integer, PipelinedQuery> _inFlight = new HashMap<Integer, PipelinedQuery>();
+    ByteBuffer _readBuffer = ByteBuffer.allocate(MAX_UDP_PACKET_SIZE);
+
+    ResolverSocket(int index) {
+      _index = index;
+    }
+
+    boolean isOpen() {
+      return _socket != null && _socket.isOpen();
+    }
+
+    void open() throws IOException {
+      close();
+      _socket = new NIOClientUDPSocket();
+      _socket.setListener(this);
+      _socket.connect(_serverAddress);
+      _eventLoop.getSelector().registerForRead(_socket);
+    }
+
+    void close() {
+      if (_socket != null) {
+        _eventLoop.getSelector().cancelRegistration(_socket);
+        _socket.close();
+        _socket = null;
+      }
+    }
+
+    /** allocate an unused transaction id on this socket **/
+    int allocateQueryId() {
+      int qid;
+      do {
+        qid = _random.nextInt(0x10000);
+      } while (_inFlight.containsKey(qid));
+      return qid;
+    }
+
+    @Override
+    public void Connected(NIOClientSocket theSocket) throws IOException {
+    }
+
+    @Override
+    public int Readable(NIOClientSocket theSocket) throws IOException {
+      int totalBytesRead = 0;
+      while (_socket != null) {
+        _readBuffer.clear();
+        int bytesRead;
+        try {
+          bytesRead = theSocket.read(_readBuffer);
+        } catch (IOException e) {
+          // icmp port unreachable and friends surface here. the socket is
+          // still usable, and the queries will be retried by the sweep timer
+          LOG.error("Read on DNS Socket:" + _index + " failed with:" + e.toString());
+          break;
+        }
+        if (bytesRead <= 0)
+          break;
+        totalBytesRead += bytesRead;
+        _readBuffer.flip();
+        processResponsePacket(this, _readBuffer);
+      }
+      return totalBytesRead;
+    }
+
+    @Override
+    public void Writeable(NIOClientSocket theSocket) throws IOException {
+      drainPendingQueue();
+    }
+
+    @Override
+    public void Disconnected(NIOSocket theSocket, Exception optionalException) throws IOException {
+      resetSocket();
+    }
+
+    /** close the socket and put whatever was in flight back on the pending queue **/
+    void resetSocket() {
+      LOG.error("DNS Socket:" + _index + " Reset. Requeueing:" + _inFlight.size() + " Queries");
+      close();
+      for (PipelinedQuery query : _inFlight.values()) {
+        query.socket = null;
+        _pendingQueue.addFirst(query);
+      }
+      _inFlightCount -= _inFlight.size();
+      _inFlight.clear();
+    }
+
+    @Override
+    public void Excepted(NIOSocket socket, Exception e) {
+      LOG.error("DNS Socket:" + _index + " Excepted:" + CCStringUtils.stringifyException(e));
+    }
+  }
+
+  /** EventLoop under which this resolver is operating **/
+  private EventLoop _eventLoop;
+  /** dns server **/
+  private InetSocketAddress _serverAddress;
+  /** shared sockets **/
+  private ResolverSocket _sockets[];
+  /** round robin socket selector **/
+  private int _nextSocket = 0;
+  /** max queries in flight on any one socket **/
+  private int _maxInFlightPerSocket = DEFAULT_MAX_INFLIGHT_PER_SOCKET;
+  /** max retries per query **/
+  private int _maxRetries = DEFAULT_MAX_RETRIES;
+  /** queries waiting for a socket slot **/
+  private LinkedList<PipelinedQuery> _pendingQueue = new LinkedList<PipelinedQuery>();
+  /** sweep timer **/
+  private Timer _sweepTimer;
+  /** transaction id generator **/
+  private Random _random = new Random();
+
+  /** stats **/
+  private long _queryCount = 0;
+  private long _cacheMisses = 0;
+  private long _retryCount = 0;
+  private long _timeoutCount = 0;
+  private long _staleResponseCount = 0;
+  private int _inFlightCount = 0;
+
+  /** NIODNSPipelinedResolver Constructor **/
+  public NIODNSPipelinedResolver(EventLoop eventLoop, String serverAddress) throws IOException {
+    this(eventLoop, new InetSocketAddress(InetAddress.getByName(serverAddress), DNS_PORT), DEFAULT_SOCKET_COUNT);
+  }
+
+  /**
+   * NIODNSPipelinedResolver Constructor
+   *
+   * @param eventLoop
+   *          - the event loop that owns the sockets
+   * @param serverAddress
+   *          - dns server address and port
+   * @param socketCount
+   *          - number of shared udp sockets to spread queries across
+   */
+  public NIODNSPipelinedResolver(EventLoop eventLoop, InetSocketAddress serverAddress, int socketCount) {
+    _eventLoop = eventLoop;
+    _serverAddress = serverAddress;
+    _sockets = new ResolverSocket[Math.max(1, socketCount)];
+    for (int i = 0; i < _sockets.length; ++i) {
+      _sockets[i] = new ResolverSocket(i);
+    }
+    _sweepTimer = new Timer(SWEEP_INTERVAL, true, this);
+    _eventLoop.setTimer(_sweepTimer);
+    _dnsCache.enableIPAddressTracking();
+  }
+
+  public void setMaxInFlightPerSocket(int maxInFlight) {
+    _maxInFlightPerSocket = maxInFlight;
+  }
+
+  public void setMaxRetries(int maxRetries) {
+    _maxRetries = maxRetries;
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getName() + ":" + _serverAddress;
+  }
+
+  /** shutdown the resolver - fails all outstanding queries **/
+  public void shutdown() {
+    _eventLoop.cancelTimer(_sweepTimer);
+    for (ResolverSocket socket : _sockets) {
+      for (PipelinedQuery query : socket._inFlight.values()) {
+        _pendingQueue.add(query);
+      }
+      socket._inFlight.clear();
+      socket.close();
+    }
+    _inFlightCount = 0;
+    while (_pendingQueue.size() != 0) {
+      failQuery(_pendingQueue.removeFirst(), Status.RESOLVER_FAILURE, "Resolver Shutdown");
+    }
+  }
+
+  @Override
+  public Future<NIODNSQueryResult> resolve(NIODNSQueryClient client, String theHost, boolean noCache,
+      boolean highPriorityRequest, int timeoutValue) throws IOException {
+
+    final PipelinedQuery query = new PipelinedQuery();
+    query.client = client;
+    query.hostName = theHost;
+    query.useCache = !noCache;
+    query.attemptTimeout = Math.max(MIN_ATTEMPT_TIMEOUT, timeoutValue / (_maxRetries + 1));
+    query.deadline = System.currentTimeMillis() + timeoutValue;
+
+    final boolean addFirst = highPriorityRequest;
+
+    // even cache hits are delivered via the event loop, so that callers never
+    // see done() before resolve returns
+    _eventLoop.queueAsyncCallback(new Callback() {
+
+      @Override
+      public void execute() {
+        startQuery(query, addFirst);
+      }
+    });
+
+    return query;
+  }
+
+  private void startQuery(PipelinedQuery query, boolean highPriority) {
+    if (query.isCancelled())
+      return;
+
+    _queryCount++;
+
+    if (query.useCache) {
+      try {
+        NIODNSQueryResult cachedResult = checkCache(query.client, query.hostName);
+        if (cachedResult != null) {
+          _cacheHits.incrementAndGet();
+          completeQuery(query, cachedResult);
+          return;
+        }
+      } catch (IOException e) {
+        if (_logger != null)
+          _logger.logDNSException(query.hostName, CCStringUtils.stringifyException(e));
+      }
+    }
+
+    _cacheMisses++;
+
+    try {
+      query.name = Name.fromString(query.hostName, Name.root);
+      Record rec = Record.newRecord(query.name, Type.A, DClass.IN);
+      query.wire = Message.newQuery(rec).toWire();
+    } catch (IOException e) {
+      failQuery(query, Status.SERVER_FAILURE, CCStringUtils.stringifyException(e));
+      return;
+    }
+
+    if (highPriority)
+      _pendingQueue.addFirst(query);
+    else
+      _pendingQueue.addLast(query);
+
+    drainPendingQueue();
+  }
+
+  /** pick the next open socket with spare capacity (round robin) **/
+  private ResolverSocket selectSocket() {
+    for (int i = 0; i < _sockets.length; ++i) {
+      ResolverSocket candidate = _sockets[_nextSocket];
+      _nextSocket = (_nextSocket + 1) % _sockets.length;
+      if (!candidate.isOpen()) {
+        try {
+          candidate.open();
+        } catch (IOException e) {
+          LOG.error("Failed to open DNS Socket:" + candidate._index + " Exception:"
+              + CCStringUtils.stringifyException(e));
+          candidate.close();
+          continue;
+        }
+      }
+      if (candidate._inFlight.size() < _maxInFlightPerSocket) {
+        return candidate;
+      }
+    }
+    return null;
+  }
+
+  /** send as many queued queries as socket capacity allows **/
+  private void drainPendingQueue() {
+    while (_pendingQueue.size() != 0) {
+      PipelinedQuery query = _pendingQueue.getFirst();
+      if (query.isCancelled()) {
+        _pendingQueue.removeFirst();
+        continue;
+      }
+      ResolverSocket socket = selectSocket();
+      if (socket == null)
+        break;
+
+      query.qid = socket.allocateQueryId();
+      query.wire[0] = (byte) (query.qid >>> 8);
+      query.wire[1] = (byte) (query.qid & 0xFF);
+
+      int bytesWritten = 0;
+      try {
+        bytesWritten = socket._socket.write(ByteBuffer.wrap(query.wire));
+      } catch (IOException e) {
+        LOG.error("Write on DNS Socket:" + socket._index + " failed with:" + e.toString());
+        // requeue what was in flight and reopen on the next sweep
+        socket.resetSocket();
+        break;
+      }
+      if (bytesWritten == 0) {
+        // socket send buffer is full. wait for it to drain
+        try {
+          _eventLoop.getSelector().registerForWrite(socket._socket);
+        } catch (IOException e) {
+          LOG.error(CCStringUtils.stringifyException(e));
+        }
+        break;
+      }
+      _pendingQueue.removeFirst();
+      query.attempts++;
+      query.socket = socket;
+      query.attemptExpireTime = System.currentTimeMillis() + query.attemptTimeout;
+      socket._inFlight.put(query.qid, query);
+      _inFlightCount++;
+    }
+  }
+
+  /** timeout / retry sweep **/
+  @Override
+  public void timerFired(Timer timer) {
+    long now = System.currentTimeMillis();
+
+    LinkedList<PipelinedQuery> retryList = null;
+
+    for (ResolverSocket socket : _sockets) {
+      for (Iterator<PipelinedQuery> i = socket._inFlight.values().iterator(); i.hasNext();) {
+        PipelinedQuery query = i.next();
+        if (query.isCancelled()) {
+          i.remove();
+          _inFlightCount--;
+        } else if (now >= query.attemptExpireTime) {
+          i.remove();
+          _inFlightCount--;
+          query.socket = null;
+          if (query.attempts <= _maxRetries && now < query.deadline) {
+            _retryCount++;
+            if (retryList == null)
+              retryList = new LinkedList<PipelinedQuery>();
+            retryList.add(query);
+          } else {
+            _timeoutCount++;
+            if (_logger != null)
+              _logger.logDNSException(query.hostName, "Timeout");
+            failQuery(query, Status.RESOLVER_FAILURE, "Timeout");
+          }
+        }
+      }
+    }
+    // retries go to the head of the line
+    if (retryList != null) {
+      _pendingQueue.addAll(0, retryList);
+    }
+    drainPendingQueue();
+  }
+
+  private void processResponsePacket(ResolverSocket socket, ByteBuffer packet) {
+
+    if (packet.remaining() < Header.LENGTH) {
+      _staleResponseCount++;
+      return;
+    }
+    // match on transaction id before parsing, so that junk that is not ours
+    // does not cost us a full parse
+    int id = ((packet.get(0) & 0xFF) << 8) + (packet.get(1) & 0xFF);
+    PipelinedQuery query = socket._inFlight.get(id);
+    if (query == null) {
+      // late response to a query we already retried or timed out
+      _staleResponseCount++;
+      return;
+    }
+
+    Message response = null;
+    try {
+      byte[] payload = new byte[packet.remaining()];
+      packet.get(payload);
+      response = new Message(payload);
+    } catch (IOException e) {
+      LOG.error("Failed to parse DNS Response for Query:" + query + " Exception:" + e.toString());
+      socket._inFlight.remove(id);
+      _inFlightCount--;
+      failQuery(query, Status.SERVER_FAILURE, e.toString());
+      return;
+    }
+
+    // guard against a response to a different question colliding on the id
+    Record question = response.getQuestion();
+    if (question == null || !question.getName().equals(query.name)) {
+      _staleResponseCount++;
+      return;
+    }
+
+    socket._inFlight.remove(id);
+    _inFlightCount--;
+    query.socket = null;
+
+    if (response.getHeader().getFlag(Flags.TC)) {
+      failQuery(query, Status.RESOLVER_FAILURE, "Truncated UDP Response");
+      return;
+    }
+    processResponseMessage(query, response);
+  }
+
+  private void processResponseMessage(PipelinedQuery query, Message response) {
+    InetAddress address = null;
+    String cname = null;
+    long expireTime = -1;
+
+    if (response.getRcode() == Rcode.NOERROR) {
+      Record records[] = response.getSectionArray(Section.ANSWER);
+
+      if (records != null) {
+        for (Record record : records) {
+          // store CName for later use ...
+          if (record.getType() == Type.CNAME) {
+            cname = ((CNAMERecord) record).getAlias().toString();
+            if (cname != null && cname.endsWith(".")) {
+              cname = cname.substring(0, cname.length() - 1);
+            }
+          }
+          // otherwise look for A record
+          else if (record.getType() == Type.A && address == null) {
+            address = ((ARecord) record).getAddress();
+            expireTime = Math.max((System.currentTimeMillis() + (((ARecord) record).getTTL() * 1000)), System
+                .currentTimeMillis()
+                + MIN_TTL_VALUE);
+          }
+        }
+      }
+
+      if (address != null && query.useCache) {
+        _dnsCache.cacheIPAddressForHost(query.hostName, IPAddressUtils.IPV4AddressToInteger(address.getAddress()),
+            expireTime, cname);
+      }
+    }
+
+    NIODNSQueryResult result = new NIODNSQueryResult(this, query.client, query.hostName);
+
+    if (response.getRcode() != Rcode.NOERROR) {
+      result.setStatus(Status.SERVER_FAILURE);
+      result.setErrorDesc(Rcode.string(response.getRcode()));
+      if (_logger != null)
+        _logger.logDNSFailure(query.hostName, Rcode.string(response.getRcode()));
+    } else if (address != null) {
+      result.setStatus(Status.SUCCESS);
+      result.setAddress(address);
+      result.setCName(cname);
+      result.setTTL(expireTime);
+      if (_logger != null)
+        _logger.logDNSQuery(query.hostName, address, expireTime, cname);
+    } else {
+      result.setStatus(Status.SERVER_FAILURE);
+      result.setErrorDesc("UNKNOWN-NO A RECORD");
+      if (_logger != null)
+        _logger.logDNSFailure(query.hostName, "NOERROR");
+    }
+
+    if (result.getStatus() == Status.SERVER_FAILURE && result.getErrorDescription().equals("NXDOMAIN")) {
+      _badHostCache.cacheIPAddressForHost(query.hostName, 0, System.currentTimeMillis()
+          + NXDOMAIN_FAIL_BAD_HOST_LIFETIME, null);
+    }
+    completeQuery(query, result);
+  }
+
+  private void failQuery(PipelinedQuery query, Status status, String errorDesc) {
+    NIODNSQueryResult result = new NIODNSQueryResult(this, query.client, query.hostName);
+    result.setStatus(status);
+    result.setErrorDesc(errorDesc);
+    completeQuery(query, result);
+  }
+
+  private void completeQuery(PipelinedQuery query, NIODNSQueryResult result) {
+    query.result = result;
+    if (!query.isCancelled()) {
+      result.fireCallback();
+      if (query.client != null) {
+        query.client.done(this, query);
+      }
+    }
+  }
+
+  @Override
+  public int getQueuedItemCount() {
+    return _pendingQueue.size() + _inFlightCount;
+  }
+
+  @Override
+  public long getCacheHitCount() {
+    return _cacheHits.get();
+  }
+
+  public long getQueryCount() {
+    return _queryCount;
+  }
+
+  public long getCacheMissCount() {
+    return _cacheMisses;
+  }
+
+  public long getRetryCount() {
+    return _retryCount;
+  }
+
+  public long getTimeoutCount() {
+    return _timeoutCount;
+  }
+
+  public long getStaleResponseCount() {
+    return _staleResponseCount;
+  }
+
+  public int getInFlightCount() {
+    return _inFlightCount;
+  }
+}
@@ -0,0 +1,197 @@
+/**
+ * Copyright 2008 - CommonCrawl Foundation
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ **/
+
+package org.commoncrawl.io;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.commoncrawl.async.EventLoop;
+import org.xbill.DNS.ARecord;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Section;
+
+/**
+ * Compares the thread pool based NIODNSLocalResolver against the
+ * NIODNSPipelinedResolver, using an in-process stub DNS server that answers
+ * every A query with a synthetic address.
+ *
+ * Usage: NIODNSResolverBenchmark [queryCount] [maxOutstanding]
+ * [localResolverThreads] [stubDropEveryN]
+ *
+ * @author rana
+ *
+ */
+public class NIODNSResolverBenchmark {
+
+  /**
+   * StubDNSServer - single threaded udp responder. Optionally drops every Nth
+   * query to exercise the retry path.
+   */
+  static class StubDNSServer implements Runnable {
+
+    DatagramSocket _socket;
+    int _dropEveryN;
+    volatile boolean _shutdown = false;
+    Thread _thread;
+    AtomicInteger _queriesReceived = new AtomicInteger();
+
+    StubDNSServer(int dropEveryN) throws IOException {
+      _socket = new DatagramSocket(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+      _socket.setReceiveBufferSize(1 << 20);
+      _dropEveryN = dropEveryN;
+      _thread = new Thread(this);
+      _thread.setDaemon(true);
+      _thread.start();
+    }
+
+    int getPort() {
+      return _socket.getLocalPort();
+    }
+
+    void shutdown() {
+      _shutdown = true;
+      _socket.close();
+    }
+
+    public void run() {
+      byte[] buffer = new byte[512];
+      while (!_shutdown) {
+        try {
+          DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+          _socket.receive(packet);
+          int queryNumber = _queriesReceived.incrementAndGet();
+          if (_dropEveryN != 0 && queryNumber % _dropEveryN == 0) {
+            continue;
+          }
+          byte[] queryBytes = new byte[packet.getLength()];
+          System.arraycopy(packet.getData(), packet.getOffset(), queryBytes, 0, queryBytes.length);
+          Message query = new Message(queryBytes);
+          Record question = query.getQuestion();
+
+          Message response = new Message(query.getHeader().getID());
+          response.getHeader().setFlag(Flags.QR);
+          response.getHeader().setFlag(Flags.RA);
+          response.addRecord(question, Section.QUESTION);
+          int hash = question.getName().hashCode();
+          byte[] address = { 10, (byte) (hash >> 16), (byte) (hash >> 8), (byte) hash };
+          response.addRecord(new ARecord(question.getName(), DClass.IN, 3600, InetAddress.getByAddress(address)),
+              Section.ANSWER);
+
+          byte[] responseBytes = response.toWire();
+          _socket.send(new DatagramPacket(responseBytes, responseBytes.length, packet.getSocketAddress()));
+        } catch (IOException e) {
+          if (!_shutdown) {
+            e.printStackTrace();
+          }
+        }
+      }
+    }
+  }
+
+  static long runBenchmark(String name, NIODNSResolver resolver, int queryCount, int maxOutstanding)
+      throws IOException, InterruptedException {
+
+    final Semaphore outstanding = new Semaphore(maxOutstanding);
+    final CountDownLatch completed = new CountDownLatch(queryCount);
+    final AtomicInteger failures = new AtomicInteger();
+
+    NIODNSQueryClient client = new NIODNSQueryClient() {
+
+      @Override
+      public void AddressResolutionFailure(NIODNSResolver source, String hostName, Status status, String errorDesc) {
+        failures.incrementAndGet();
+      }
+
+      @Override
+      public void AddressResolutionSuccess(NIODNSResolver source, String hostName, String cName,
+          InetAddress address, long addressTTL) {
+      }
+
+      @Override
+      public void DNSResultsAvailable() {
+      }
+
+      @Override
+      public void done(NIODNSResolver source, Future<NIODNSQueryResult> task) {
+        outstanding.release();
+        completed.countDown();
+      }
+    };
+
+    long timeStart = System.currentTimeMillis();
+    for (int i = 0; i < queryCount; ++i) {
+      outstanding.acquire();
+      // skip the cache so that every query hits the wire
+      resolver.resolve(client, name + "-host" + i + ".bench.test", true, false, 5000);
+    }
+    completed.await();
+    long timeEnd = System.currentTimeMillis();
+
+    long elapsed = Math.max(1, timeEnd - timeStart);
+    System.out.println(name + ": " + queryCount + " queries in " + elapsed + "ms ("
+        + (queryCount * 1000L / elapsed) + " qps) failures:" + failures.get());
+    return elapsed;
+  }
+
+  public static void main(String[] args) throws Exception {
+    int queryCount = (args.length > 0) ? Integer.parseInt(args[0]) : 50000;
+    int maxOutstanding = (args.length > 1) ? Integer.parseInt(args[1]) : 1000;
+    int localResolverThreads = (args.length > 2) ? Integer.parseInt(args[2]) : 32;
+    int dropEveryN = (args.length > 3) ? Integer.parseInt(args[3]) : 0;
+
+    StubDNSServer stubServer = new StubDNSServer(dropEveryN);
+    System.out.println("Stub DNS Server listening on port:" + stubServer.getPort());
+
+    EventLoop eventLoop = new EventLoop();
+    eventLoop.start();
+
+    try {
+      ExecutorService threadPool = Executors.newFixedThreadPool(localResolverThreads);
+      NIODNSLocalResolver localResolver = new NIODNSLocalResolver("127.0.0.1", eventLoop, threadPool, threadPool, false);
+      localResolver.setDNSServerPort(stubServer.getPort());
+      long localTime = runBenchmark("NIODNSLocalResolver(" + localResolverThreads + " threads)", localResolver,
+          queryCount, maxOutstanding);
+      threadPool.shutdown();
+
+      NIODNSPipelinedResolver pipelinedResolver = new NIODNSPipelinedResolver(eventLoop, new InetSocketAddress(
+          "127.0.0.1", stubServer.getPort()), NIODNSPipelinedResolver.DEFAULT_SOCKET_COUNT);
+      long pipelinedTime = runBenchmark("NIODNSPipelinedResolver", pipelinedResolver, queryCount, maxOutstanding);
+      System.out.println("Pipelined Resolver Retries:" + pipelinedResolver.getRetryCount() + " Timeouts:"
+          + pipelinedResolver.getTimeoutCount() + " Stale Responses:" + pipelinedResolver.getStaleResponseCount());
+
+      System.out.println("Speedup:" + ((double) localTime / (double) pipelinedTime));
+    } finally {
+      eventLoop.stop();
+      stubServer.shutdown();
+    }
+    System.exit(0);
+  }
+}
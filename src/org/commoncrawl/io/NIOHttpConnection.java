@@ -37,6 +37,7 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.FutureTask;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLEngine;
@@ -190,12 +191,12 @@ public final class NIOHttpConnection implements NIOClientSocketListener, NIODNSQ
   
   /** cumilative bytes read **/
   public static long getCumilativeBytesRead() {
-    return _cumilativeRead;
+    return _cumilativeRead.get();
   }
 
   /** cumilative byte written */
   public static long getCumilativeBytesWritten() {
-    return _cumilativeWritten;
+    return _cumilativeWritten.get();
   }
 
   /** helper - get the response code given headers **/
@@ -331,9 +332,9 @@ public final class NIOHttpConnection implements NIOClientSocketListener, NIODNSQ
   /** resolver to use for DNS resolution */
   private NIODNSResolver _resolver = null;
   /** cumilative bytes read **/
-  private static long _cumilativeRead = 0;
+  private static AtomicLong _cumilativeRead = new AtomicLong();
   /** cumilative byte written */
-  private static long _cumilativeWritten = 0;
+  private static AtomicLong _cumilativeWritten = new AtomicLong();
   /** Statistic: total bytes written */
   private int _totalWritten = 0;
   /** Statistic: total bytes read */
@@ -460,6 +461,16 @@ public final class NIOHttpConnection implements NIOClientSocketListener, NIODNSQ
   /** static ssl engine context **/
   private static SSLContext _sslContext;
   
+  /** keep-alive support - request a persistent connection **/
+  private boolean _keepAlive = false;
+  /** true if this connection was handed an already connected (pooled) socket **/
+  private boolean _reusedSocket = false;
+  /** true once the socket has been handed back to a connection pool **/
+  private boolean _socketDetached = false;
+  /** true if the server closed its end of the connection **/
+  private boolean _remoteClosed = false;
+  /** true if the response was fully delimited by its headers / chunked encoding **/
+  private boolean _responseFramed = false;
 
   /** internal constructor - for test purposes **/
   private NIOHttpConnection() {
@@ -520,6 +531,36 @@ public final class NIOHttpConnection implements NIOClientSocketListener, NIODNSQ
     initSSLContext();
   }
 
+  /**
+   * 
+   * Constructor - reuses an idle, already connected keep-alive socket
+   * 
+   * @param theURL
+   *          - the target URL
+   * @param connectedSocket
+   *          - connected socket previously detached via detachSocket
+   * @param selector
+   *          - shared socket selector object
+   * @param resolver
+   *          - shared resolver object
+   * 
+   * */
+  public NIOHttpConnection(URL theURL, NIOClientSocket connectedSocket, NIOSocketSelector selector,
+      NIODNSResolver resolver, NIOHttpCookieStore cookieStore) throws IOException {
+    GoogleURL canonicalURL = new GoogleURL(theURL.toString());
+    _url = new URL(canonicalURL.getCanonicalURL());
+    _socket = connectedSocket;
+    _socket.setListener(this);
+    _sourceIP = _socket.getLocalSocketAddress();
+    _selector = selector;
+    _resolver = resolver;
+    _cookieStore = cookieStore;
+    _keepAlive = true;
+    _reusedSocket = true;
+
+    initSSLContext();
+  }
+
   void initSSLContext() throws IOException {
     synchronized (NIOHttpConnection.class) { 
       if (_sslContext == null) { 
@@ -577,7 +618,7 @@ public final class NIOHttpConnection implements NIOClientSocketListener, NIODNSQ
       _requestHeaders.setIfNotSet("Accept-Language", "en-us,en;q=0.5");
       _requestHeaders.setIfNotSet("Accept-Encoding", "gzip");
       _requestHeaders.setIfNotSet("Accept-Charset", "ISO-8859-1,utf-8;q=0.7,*;q=0.7");
-      _requestHeaders.setIfNotSet("Connection", "close");
+      _requestHeaders.setIfNotSet("Connection", (_keepAlive) ? "keep-alive" : "close");
       _requestHeaders.setIfNotSet("Cache-Control", "no-cache");
       _requestHeaders.setIfNotSet("Pragma", "no-cache");
 
@@ -634,13 +675,20 @@ public final class NIOHttpConnection implements NIOClientSocketListener, NIODNSQ
           if (currentBuffer.hasRemaining()) {
             // if trailing data in buffer , push it back for content phase
             _inBuf.putBack(currentBuffer);
+          } else {
+            // terminator was the last byte - buffer fully consumed
+            _inBuf.release(currentBuffer);
           }
           return true;
         } else {
-          if (headersMax != -1 && _incomingAccumulationBuffer.size() > headersMax)
+          if (headersMax != -1 && _incomingAccumulationBuffer.size() > headersMax) {
+            _inBuf.release(currentBuffer);
             throw new IOException("Header Size Limit Reached With No Terminator!");
+          }
         }
       }
+      // buffer fully consumed ...
+      _inBuf.release(currentBuffer);
     }
     return false;
   }
@@ -690,7 +738,7 @@ public final class NIOHttpConnection implements NIOClientSocketListener, NIODNSQ
 
     if (!_closed) {
 
-      if (_socket != null) {
+      if (_socket != null && !_socketDetached) {
         _selector.cancelRegistration(_socket);
         _socket.close();
       }
@@ -701,6 +749,11 @@ public final class NIOHttpConnection implements NIOClientSocketListener, NIODNSQ
         // if not in a done state when closing ... release content buffer ..
         _inBuf.reset();
       }
+      // release any partially assembled chunked content ...
+      if (_chunkContentBuffer != null) {
+        _chunkContentBuffer.reset();
+        _chunkContentBuffer = null;
+      }
       // release output buffer ...
       _outBuf.reset();
       
@@ -787,7 +840,11 @@ public final class NIOHttpConnection implements NIOClientSocketListener, NIODNSQ
         _inBuf.putBack(nextReadBuffer);
       }
       if (addBytesAsNewByteBuffer) {
-        _inBuf.putBack(ByteBuffer.wrap(statusLineBytes));
+        // allocate via the list so that the buffer can go back to the pool
+        ByteBuffer statusLineBuffer = _inBuf.allocateBuffer();
+        statusLineBuffer.put(statusLineBytes);
+        statusLineBuffer.flip();
+        _inBuf.putBack(statusLineBuffer);
       }
     }
     return detectedStatusLine;
@@ -842,6 +899,16 @@ public final class NIOHttpConnection implements NIOClientSocketListener, NIODNSQ
     return _inBuf;
   }
 
+  /**
+   * allocate response buffers from the specified pool. Once the connection
+   * reaches the DONE state, the consumer owns the content buffer and should
+   * reset it when done with it, so that the buffers make it back to the pool.
+   * Must be called before open.
+   */
+  public void setBufferPool(NIOBufferPool pool) {
+    _inBuf.setBufferPool(pool);
+  }
+
   /** get content length / download length **/
   public final int getContentLength() {
     return _contentLength;
@@ -1021,6 +1088,77 @@ public final class NIOHttpConnection implements NIOClientSocketListener, NIODNSQ
     return _contentTruncated;
   }
 
+  /** enable / disable keep-alive (persistent connection) mode **/
+  public final void setKeepAlive(boolean keepAlive) {
+    _keepAlive = keepAlive;
+  }
+
+  /** is keep-alive mode enabled **/
+  public final boolean isKeepAlive() {
+    return _keepAlive;
+  }
+
+  /** was this connection handed a previously used keep-alive socket **/
+  public final boolean isReusedSocket() {
+    return _reusedSocket;
+  }
+
+  /** total number of bytes read from the socket **/
+  public final int getTotalBytesRead() {
+    return _totalRead;
+  }
+
+  /** a response to a HEAD request or a 204 / 304 never carries a body **/
+  private boolean isBodylessResponse() {
+    int responseCode = getHttpResponseCode();
+    return _method.equalsIgnoreCase("HEAD") || responseCode == 204 || responseCode == 304;
+  }
+
+  /**
+   * check to see if the underlying socket can be reused for a subsequent
+   * request - the connection must be in keep-alive mode, the response must be
+   * complete and delimited by its headers, and the server must not have asked
+   * us to (or actually) close the connection
+   **/
+  public boolean isKeepAliveResponse() {
+
+    if (!_keepAlive || _state != State.DONE || !_responseFramed || _remoteClosed || _contentTruncated
+        || isHTTPs() || getProxyServer() != null || _socket == null || !_socket.isOpen()) {
+      return false;
+    }
+
+    String statusLine = _responseHeaders.getValue(0);
+    String connectionHeader = _responseHeaders.findValue("Connection");
+
+    if (statusLine == null || !statusLine.startsWith("HTTP/1.")) {
+      return false;
+    }
+    if (connectionHeader != null && connectionHeader.toLowerCase().indexOf("close") != -1) {
+      return false;
+    }
+    // http 1.0 servers have to explicitly opt into keep-alive
+    if (statusLine.startsWith("HTTP/1.0")
+        && (connectionHeader == null || !connectionHeader.equalsIgnoreCase("keep-alive"))) {
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * detach the socket from a completed keep-alive connection so that it can be
+   * pooled. Call this from the DONE state notification, BEFORE calling close.
+   * 
+   * @return the connected socket or null if the socket is not reusable
+   */
+  public NIOClientSocket detachSocket() {
+    if (!_socketDetached && isKeepAliveResponse()) {
+      _socketDetached = true;
+      _socket.setListener(null);
+      return _socket;
+    }
+    return null;
+  }
+
   /** does the response code indicate a redirect **/
   public boolean isRedirectResponse() {
     switch (getHttpResponseCode()) {
@@ -1073,6 +1211,19 @@ public final class NIOHttpConnection implements NIOClientSocketListener, NIODNSQ
 
     setState(State.AWAITING_RESOLUTION, null);
 
+    // if we were handed a connected keep-alive socket, skip resolution and
+    // connect and go straight to sending the request
+    if (_reusedSocket) {
+      InetSocketAddress remoteAddress = _socket.getSocketAddress();
+      if (_resolvedAddress == null) {
+        _resolvedAddress = remoteAddress.getAddress();
+      }
+      _destinationPort = remoteAddress.getPort();
+      _buildAndWriteRequestHeader();
+      Connected(_socket);
+      return;
+    }
+
     InetSocketAddress socketAddress = getProxyServer();
 
     if (socketAddress == null) {
@@ -1212,6 +1363,8 @@ public final class NIOHttpConnection implements NIOClientSocketListener, NIODNSQ
               amountWritten += readBuffer.remaining();
               // append as much as possible into the write buffer ...
               writeBuffer.put(readBuffer);
+              // and release the now empty read buffer
+              _inBuf.release(readBuffer);
             }
           }
 
@@ -1245,6 +1398,7 @@ public final class NIOHttpConnection implements NIOClientSocketListener, NIODNSQ
             // now if read buffer is expended ... release it and get another one
             // ...
             if (readBuffer.remaining() == 0) {
+              _inBuf.release(readBuffer);
               readBuffer = _inBuf.read();
             }
 
@@ -1280,6 +1434,8 @@ public final class NIOHttpConnection implements NIOClientSocketListener, NIODNSQ
           // fall through if chunk state is done ...
 
         case STATE_DONE: {
+          // the response is properly delimited iff nothing trails the trailer
+          _responseFramed = (_inBuf.available() == 0);
           // clear out existing input buffer ...
           _inBuf.reset();
           // flush chunk buffer ...
@@ -1366,6 +1522,7 @@ public final class NIOHttpConnection implements NIOClientSocketListener, NIODNSQ
             _chunkState = ChunkState.STATE_AWAITING_CHUNK_HEADER;
             _chunkLineBuffer = new StringBuffer(CHUNK_LINE_MAX);
             _chunkContentBuffer = new NIOBufferList();
+            _chunkContentBuffer.setBufferPool(_inBuf.getBufferPool());
           } else {
             LOG.error("Connection:[" + getId() + "] Unknown Transfer Encoding in Response Headers:"
                 + strTransferEncoding);
@@ -1374,6 +1531,13 @@ public final class NIOHttpConnection implements NIOClientSocketListener, NIODNSQ
         }
 
         if (_contentLength == 0) {
+          _responseFramed = (_inBuf.available() == 0);
+          setState(State.DONE, null);
+        }
+        // on a persistent connection the server will not close the socket
+        // after a response that carries no body, so we have to detect it here
+        else if (_keepAlive && !_chunked && isBodylessResponse()) {
+          _responseFramed = (_inBuf.available() == 0);
           setState(State.DONE, null);
         }
         return true;
@@ -1420,6 +1584,7 @@ public final class NIOHttpConnection implements NIOClientSocketListener, NIODNSQ
     // now if content length is specified and download length == content length,
     // we are done ..
     if (_contentLength != -1 && _downloadedContentLength >= _contentLength) {
+      _responseFramed = (_downloadedContentLength == _contentLength);
       setState(State.DONE, null);
     }
     return true;
@@ -1520,7 +1685,7 @@ public final class NIOHttpConnection implements NIOClientSocketListener, NIODNSQ
           if (singleReadAmount > 0) {
             _inBuf.write(buffer);
             _totalRead += singleReadAmount;
-            _cumilativeRead += singleReadAmount;
+            _cumilativeRead.addAndGet(singleReadAmount);
             totalBytesRead += singleReadAmount;
             if (isHTTPs()) { 
               // we need full read buffers to read from SSL 
@@ -1534,6 +1699,9 @@ public final class NIOHttpConnection implements NIOClientSocketListener, NIODNSQ
           overflow = true;
           _contentTruncated = true;
         }
+        if (singleReadAmount == -1) {
+          _remoteClosed = true;
+        }
       }
 
       if (totalBytesRead > 0) {
@@ -1616,7 +1784,7 @@ public final class NIOHttpConnection implements NIOClientSocketListener, NIODNSQ
       setState(State.ERROR, e);
 
     }
-    if (_socket.isOpen()) {
+    if (!_socketDetached && _socket.isOpen()) {
       // if we data to write ...
       if (_outBuf.isDataAvailable()) {
         _selector.registerForReadAndWrite(theSocket);
@@ -2127,7 +2295,7 @@ public final class NIOHttpConnection implements NIOClientSocketListener, NIODNSQ
           throw exception;
         }
         _totalWritten += amountWritten;
-        _cumilativeWritten += amountWritten;
+        _cumilativeWritten.addAndGet(amountWritten);
 
         // System.out.println("NIOHttpConnection->wrote:" + amountWritten +
         // "Bytes TotalWritten:" + _cumilativeWritten);
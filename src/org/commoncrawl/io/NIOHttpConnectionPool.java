@@ -0,0 +1,323 @@
+/**
+ * Copyright 2008 - CommonCrawl Foundation
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ **/
+
+package org.commoncrawl.io;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.commoncrawl.common.Environment;
+
+/**
+ * NIOHttpConnectionPool - holds idle keep-alive sockets handed back by
+ * NIOHttpConnection, keyed by (server ip, server port, local interface).
+ *
+ * While a socket sits in the pool, the pool acts as its listener, so a server
+ * side close (or any unsolicited data) evicts the socket immediately. Sockets
+ * that sit idle longer than the idle timeout are evicted by evictIdleSockets,
+ * which the owner is expected to call periodically from its own timer.
+ *
+ * Access is synchronized on the pool, since with an EventLoopGroup the owner
+ * checks sockets out in its own thread while idle socket events arrive in the
+ * thread of the loop that owns the selector.
+ *
+ * @author rana
+ *
+ */
+public final class NIOHttpConnectionPool {
+
+  private static final Log LOG = LogFactory.getLog(NIOHttpConnectionPool.class);
+
+  public static final int DEFAULT_MAX_IDLE_PER_KEY = 2;
+  public static final int DEFAULT_MAX_IDLE_TOTAL = 4096;
+  public static final long DEFAULT_IDLE_TIMEOUT = 15000;
+
+  /** pool key - server address + local interface **/
+  private static final class PoolKey {
+
+    InetAddress _serverAddress;
+    int _serverPort;
+    InetAddress _localAddress;
+
+    PoolKey(InetAddress serverAddress, int serverPort, InetSocketAddress localAddress) {
+      _serverAddress = serverAddress;
+      _serverPort = serverPort;
+      _localAddress = (localAddress != null) ? localAddress.getAddress() : null;
+    }
+
+    @Override
+    public int hashCode() {
+      int hash = _serverAddress.hashCode() * 31 + _serverPort;
+      if (_localAddress != null) {
+        hash = hash * 31 + _localAddress.hashCode();
+      }
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof PoolKey)) {
+        return false;
+      }
+      PoolKey other = (PoolKey) obj;
+      return _serverPort == other._serverPort && _serverAddress.equals(other._serverAddress)
+          && ((_localAddress == null) ? other._localAddress == null : _localAddress.equals(other._localAddress));
+    }
+
+    @Override
+    public String toString() {
+      return _serverAddress.getHostAddress() + ":" + _serverPort + "@"
+          + ((_localAddress != null) ? _localAddress.getHostAddress() : "*");
+    }
+  }
+
+  /** an idle socket sitting in the pool **/
+  private final class IdleSocket implements NIOClientSocketListener {
+
+    PoolKey _key;
+    NIOClientSocket _socket;
+    long _idleSince;
+
+    IdleSocket(PoolKey key, NIOClientSocket socket) {
+      _key = key;
+      _socket = socket;
+      _idleSince = System.currentTimeMillis();
+    }
+
+    // @Override
+    public void Connected(NIOClientSocket theSocket) throws IOException {
+    }
+
+    // @Override
+    public int Readable(NIOClientSocket theSocket) throws IOException {
+      // an idle http connection should never become readable unless the
+      // server closed it (or sent garbage) - either way it is no longer usable
+      if (Environment.detailLogEnabled()) {
+        LOG.info("Idle Socket to:" + _key + " became readable. Evicting");
+      }
+      evict(this);
+      // returning -1 causes the selector to close the socket
+      return -1;
+    }
+
+    // @Override
+    public void Writeable(NIOClientSocket theSocket) throws IOException {
+    }
+
+    // @Override
+    public void Disconnected(NIOSocket theSocket, Exception optionalException) throws IOException {
+      evict(this);
+    }
+
+    // @Override
+    public void Excepted(NIOSocket socket, Exception e) {
+      evict(this);
+    }
+  }
+
+  private NIOSocketSelector _selector;
+  private int _maxIdlePerKey = DEFAULT_MAX_IDLE_PER_KEY;
+  private int _maxIdleTotal = DEFAULT_MAX_IDLE_TOTAL;
+  private long _idleTimeout = DEFAULT_IDLE_TIMEOUT;
+
+  private Map<PoolKey, LinkedList<IdleSocket>> _idleSockets = new HashMap<PoolKey, LinkedList<IdleSocket>>();
+  private int _idleCount = 0;
+
+  /** stats **/
+  private long _hitCount = 0;
+  private long _missCount = 0;
+  private long _evictionCount = 0;
+
+  public NIOHttpConnectionPool(NIOSocketSelector selector) {
+    _selector = selector;
+  }
+
+  public NIOHttpConnectionPool(NIOSocketSelector selector, int maxIdlePerKey, int maxIdleTotal, long idleTimeout) {
+    _selector = selector;
+    _maxIdlePerKey = maxIdlePerKey;
+    _maxIdleTotal = maxIdleTotal;
+    _idleTimeout = idleTimeout;
+  }
+
+  /**
+   * checkout an idle socket connected to the specified server via the
+   * specified local interface
+   *
+   * @return a connected socket or null if none are available
+   */
+  public synchronized NIOClientSocket checkout(InetAddress serverAddress, int serverPort, InetSocketAddress localAddress) {
+
+    LinkedList<IdleSocket> list = _idleSockets.get(new PoolKey(serverAddress, serverPort, localAddress));
+
+    long currentTime = System.currentTimeMillis();
+
+    while (list != null && list.size() != 0) {
+      // most recently returned socket first, since it is the least likely to
+      // have been timed out by the server
+      IdleSocket candidate = list.removeLast();
+      _idleCount--;
+      if (list.size() == 0) {
+        _idleSockets.remove(candidate._key);
+      }
+      if (candidate._socket.isOpen() && currentTime - candidate._idleSince < _idleTimeout) {
+        candidate._socket.setListener(null);
+        _hitCount++;
+        return candidate._socket;
+      }
+      closeSocket(candidate);
+    }
+    _missCount++;
+    return null;
+  }
+
+  /**
+   * return a connected socket to the pool. The socket is closed instead if the
+   * pool is full, or if the caller does not expect to reuse it before the idle
+   * timeout elapses
+   *
+   * @param expectedIdleTime
+   *          - how long (in milliseconds) the caller expects to wait before the
+   *          next request to this server (i.e. the host's crawl delay)
+   */
+  public synchronized void checkin(NIOClientSocket socket, InetAddress serverAddress, int serverPort,
+      InetSocketAddress localAddress, long expectedIdleTime) {
+
+    PoolKey key = new PoolKey(serverAddress, serverPort, localAddress);
+    IdleSocket idleSocket = new IdleSocket(key, socket);
+
+    if (!socket.isOpen()) {
+      return;
+    }
+
+    if (expectedIdleTime >= _idleTimeout) {
+      closeSocket(idleSocket);
+      return;
+    }
+
+    // global limit - drop the oldest socket in the pool
+    if (_idleCount >= _maxIdleTotal) {
+      evictOldest();
+    }
+
+    LinkedList<IdleSocket> list = _idleSockets.get(key);
+    if (list == null) {
+      list = new LinkedList<IdleSocket>();
+      _idleSockets.put(key, list);
+    }
+    // per key limit - drop the oldest entry
+    if (list.size() >= _maxIdlePerKey) {
+      _idleCount--;
+      closeSocket(list.removeFirst());
+    }
+
+    socket.setListener(idleSocket);
+    try {
+      _selector.registerForRead(socket);
+    } catch (IOException e) {
+      LOG.error("registerForRead on idle socket to:" + key + " threw Exception:" + e.toString());
+      if (list.size() == 0) {
+        _idleSockets.remove(key);
+      }
+      closeSocket(idleSocket);
+      return;
+    }
+    list.addLast(idleSocket);
+    _idleCount++;
+  }
+
+  /** evict sockets that have been idle for longer than the idle timeout **/
+  public synchronized void evictIdleSockets() {
+
+    long currentTime = System.currentTimeMillis();
+
+    for (Iterator<LinkedList<IdleSocket>> i = _idleSockets.values().iterator(); i.hasNext();) {
+      LinkedList<IdleSocket> list = i.next();
+      // lists are ordered by idle time, oldest first
+      while (list.size() != 0 && currentTime - list.getFirst()._idleSince >= _idleTimeout) {
+        _idleCount--;
+        closeSocket(list.removeFirst());
+      }
+      if (list.size() == 0) {
+        i.remove();
+      }
+    }
+  }
+
+  /** close all idle sockets **/
+  public synchronized void shutdown() {
+    for (LinkedList<IdleSocket> list : _idleSockets.values()) {
+      for (IdleSocket idleSocket : list) {
+        closeSocket(idleSocket);
+      }
+    }
+    _idleSockets.clear();
+    _idleCount = 0;
+  }
+
+  public synchronized int getIdleCount() {
+    return _idleCount;
+  }
+
+  public synchronized long getHitCount() {
+    return _hitCount;
+  }
+
+  public synchronized long getMissCount() {
+    return _missCount;
+  }
+
+  public synchronized long getEvictionCount() {
+    return _evictionCount;
+  }
+
+  private synchronized void evict(IdleSocket idleSocket) {
+    LinkedList<IdleSocket> list = _idleSockets.get(idleSocket._key);
+    if (list != null && list.remove(idleSocket)) {
+      _idleCount--;
+      if (list.size() == 0) {
+        _idleSockets.remove(idleSocket._key);
+      }
+      closeSocket(idleSocket);
+    }
+  }
+
+  private void evictOldest() {
+    IdleSocket oldest = null;
+    for (LinkedList<IdleSocket> list : _idleSockets.values()) {
+      if (list.size() != 0 && (oldest == null || list.getFirst()._idleSince < oldest._idleSince)) {
+        oldest = list.getFirst();
+      }
+    }
+    if (oldest != null) {
+      evict(oldest);
+    }
+  }
+
+  private void closeSocket(IdleSocket idleSocket) {
+    _evictionCount++;
+    _selector.cancelRegistration(idleSocket._socket);
+    idleSocket._socket.close();
+  }
+}
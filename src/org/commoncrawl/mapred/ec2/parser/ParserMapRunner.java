@@ -1,52 +1,234 @@
 package org.commoncrawl.mapred.ec2.parser;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.MapRunner;
 import org.apache.hadoop.mapred.OutputCollector;
 import org.apache.hadoop.mapred.RecordReader;
 import org.apache.hadoop.mapred.Reporter;
 import org.commoncrawl.protocol.CrawlURL;
 import org.commoncrawl.protocol.ParseOutput;
+import org.commoncrawl.util.Tuples.Pair;
 
-/** 
- * Custom MapRunner, primarily to trap a successful execution of a map task 
- * (so that we can forward this information via the Task Data Client). 
- * 
+/**
+ * Custom MapRunner, primarily to trap a successful execution of a map task
+ * (so that we can forward this information via the Task Data Client).
+ *
+ * Documents are parsed on a pool of worker threads (parsing is cpu bound,
+ * and the EC2 instances have several cores). Each worker's output is
+ * buffered, and emitted in input order, and the mapper's progress/position
+ * only advances past a document once its output has been emitted, so an
+ * early termination still hands back an exact remainder of the split.
+ *
+ * A document that takes longer than the parse timeout to parse is
+ * abandoned (no output is emitted for it). If too many abandoned parses are
+ * still hogging threads, the mapper is terminated early.
+ *
  * @author rana
  *
  */
 public class ParserMapRunner extends MapRunner<Text,CrawlURL,Text,ParseOutput>{
 
+  private static final Log LOG = LogFactory.getLog(ParserMapRunner.class);
+
+  /** number of parse threads (defaults to the number of cores) **/
+  public static final String PARSER_THREADS_PROPERTY = "cc.parser.threads";
+  /** max documents read ahead of the last document emitted (defaults to threads * 2) **/
+  public static final String PARSER_READ_AHEAD_PROPERTY = "cc.parser.read.ahead";
+  /** max time allowed to parse a single document **/
+  public static final String PARSER_DOCUMENT_TIMEOUT_PROPERTY = "cc.parser.document.timeout";
+  public static final long   DEFAULT_PARSER_DOCUMENT_TIMEOUT = 2 * 60 * 1000;
+
+  // how often we wake up to check for timeouts (and report progress)
+  private static final long POLL_INTERVAL = 1000;
+
+  private int  _threadCount;
+  private int  _readAhead;
+  private long _documentTimeout;
+
+  @Override
+  public void configure(JobConf job) {
+    super.configure(job);
+    _threadCount = Math.max(1,job.getInt(PARSER_THREADS_PROPERTY, Runtime.getRuntime().availableProcessors()));
+    _readAhead = Math.max(_threadCount,job.getInt(PARSER_READ_AHEAD_PROPERTY, _threadCount * 2));
+    _documentTimeout = job.getLong(PARSER_DOCUMENT_TIMEOUT_PROPERTY, DEFAULT_PARSER_DOCUMENT_TIMEOUT);
+    LOG.info("Parser Threads:" + _threadCount + " ReadAhead:" + _readAhead + " Document Timeout:" + _documentTimeout);
+  }
+
+  /**
+   * a single document, parsed on a worker thread
+   */
+  private class ParseRequest implements Callable<ParseRequest>, OutputCollector<Text, ParseOutput> {
+
+    ParseRequest(Text key,CrawlURL value,float progress,long position,Reporter reporter) {
+      _key = key;
+      _value = value;
+      _progress = progress;
+      _position = position;
+      _reporter = reporter;
+    }
+
+    Text     _key;
+    CrawlURL _value;
+    float    _progress;
+    long     _position;
+    Reporter _reporter;
+    Future<ParseRequest> _future;
+    // set when the worker picks up the request
+    volatile long    _startTime = 0;
+    volatile boolean _finished = false;
+    // true if the mapper had terminated by the time map returned
+    boolean  _terminatedEarly = false;
+    ArrayList<Pair<Text,ParseOutput>> _output = new ArrayList<Pair<Text,ParseOutput>>(1);
+
+    @Override
+    public ParseRequest call() throws Exception {
+      _startTime = System.currentTimeMillis();
+      try {
+        getMapper().map(_key, _value, this, _reporter);
+        _terminatedEarly = ((ParserMapper)getMapper()).wasTerminatedEarly();
+      }
+      finally {
+        // release the document
+        _value = null;
+        _finished = true;
+      }
+      return this;
+    }
+
+    @Override
+    public void collect(Text key, ParseOutput value) throws IOException {
+      // ParserMapper allocates a new key and value per collect call
+      _output.add(new Pair<Text,ParseOutput>(key,value));
+    }
+  }
+
   @Override
   public void run(RecordReader<Text, CrawlURL> input,
       OutputCollector<Text, ParseOutput> output, Reporter reporter)
       throws IOException {
+
+    final AtomicInteger threadId = new AtomicInteger();
+
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(_threadCount, _threadCount, 0L, TimeUnit.MILLISECONDS,
+        new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+
+          @Override
+          public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r,"ParserThread-" + threadId.incrementAndGet());
+            // abandoned parses should not keep the task alive
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+
     try {
-      // allocate key & value instances that are re-used for all entries
-      Text key = input.createKey();
-      CrawlURL value = input.createValue();
-      
-      while (input.next(key, value)) {
-        // update progress first ... 
-        ((ParserMapper)getMapper()).updateProgressAndPosition(input.getProgress(),input.getPos());
-        // next map pair to output
-        getMapper().map(key, value, output, reporter);
-        // ok see if mapper terminated early ... 
-        if (((ParserMapper)getMapper()).wasTerminatedEarly()) { 
-          // skip processing remaining stream ... 
+      ParserMapper mapper = (ParserMapper)getMapper();
+      // documents in input order, up to _readAhead of them
+      LinkedList<ParseRequest> pending = new LinkedList<ParseRequest>();
+      // timed out requests whose threads may still be busy
+      LinkedList<ParseRequest> abandoned = new LinkedList<ParseRequest>();
+      boolean inputExhausted = false;
+
+      while (true) {
+        // read ahead ...
+        while (!inputExhausted && !mapper.wasTerminatedEarly() && pending.size() < _readAhead) {
+          // records are in flight concurrently, so each needs its own key & value
+          Text key = input.createKey();
+          CrawlURL value = input.createValue();
+          if (!input.next(key, value)) {
+            inputExhausted = true;
+            break;
+          }
+          ParseRequest request = new ParseRequest(key,value,input.getProgress(),input.getPos(),reporter);
+          request._future = executor.submit(request);
+          pending.add(request);
+        }
+
+        if (pending.size() == 0) {
+          break;
+        }
+
+        // wait for the next document in input order ...
+        ParseRequest next = pending.getFirst();
+        try {
+          next._future.get(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+        catch (TimeoutException e) {
+          reporter.progress();
+          if (next._startTime == 0 || System.currentTimeMillis() - next._startTime < _documentTimeout) {
+            continue;
+          }
+          LOG.error("Parse of URL:" + next._key + " timed out after:" + (System.currentTimeMillis() - next._startTime) + " MS. Skipping.");
+          reporter.incrCounter(ParserMapper.Counters.DOCUMENT_PARSE_TIMED_OUT, 1);
+          // the parser may not be interruptible, so give the pool a replacement thread
+          next._future.cancel(true);
+          abandoned.add(next);
+          executor.setMaximumPoolSize(executor.getMaximumPoolSize() + 1);
+          executor.setCorePoolSize(executor.getCorePoolSize() + 1);
+
+          for (Iterator<ParseRequest> i = abandoned.iterator(); i.hasNext();) {
+            if (i.next()._finished) {
+              i.remove();
+            }
+          }
+          if (abandoned.size() > _threadCount) {
+            LOG.error(abandoned.size() + " abandoned parses are still running. Terminating mapper early.");
+            mapper.terminateEarly();
+          }
+        }
+        catch (InterruptedException e) {
+          throw new IOException(e);
+        }
+        catch (ExecutionException e) {
+          if (e.getCause() instanceof IOException) {
+            throw (IOException)e.getCause();
+          }
+          throw new IOException(e.getCause());
+        }
+
+        // the document is done (or abandoned) - emit its output in order
+        pending.removeFirst();
+        mapper.updateProgressAndPosition(next._progress,next._position);
+        if (!next._future.isCancelled()) {
+          for (Pair<Text,ParseOutput> keyValue : next._output) {
+            output.collect(keyValue.e0, keyValue.e1);
+          }
+          // ok see if mapper terminated early ...
+          if (next._terminatedEarly) {
+            // skip processing remaining stream ...
+            break;
+          }
+        }
+        else if (mapper.wasTerminatedEarly()) {
           break;
         }
       }
-      
+
       // ok .. if we reach here without any exceptions ...
       // inform the TDC that this was a successful (potentially partially completed)
       // mapper task
-      ((ParserMapper)getMapper()).commitTask(reporter);
+      mapper.commitTask(reporter);
 
-      
     } finally {
+      // discard anything still in flight
+      executor.shutdownNow();
       getMapper().close();
     }
   }
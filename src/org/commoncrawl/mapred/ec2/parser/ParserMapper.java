@@ -25,6 +25,7 @@ import java.net.URL;
 import java.nio.charset.Charset;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 import org.apache.commons.logging.Log;
@@ -126,7 +127,9 @@ public class ParserMapper implements Mapper<Text,CrawlURL,Text,ParseOutput> {
     GOT_ATOM_FEED, TRYING_RSS_FEED_PARSER, EXCEPTION_DURING_FEED_PARSE,
     FAILED_TO_ID_FEED, FAILED_TO_PARSE_XML_AS_FEED, EXCEPTION_PARSING_LINK_JSON, SKIPPING_ROBOTS_TXT, ERROR_CANONICALIZING_LINK_URL,
     PARTIALLY_PROCESSED_SPLIT,
-    FULLY_PROCESSED_SPLIT, GOT_OUT_OF_MEMORY_ERROR
+    FULLY_PROCESSED_SPLIT, GOT_OUT_OF_MEMORY_ERROR, DOCUMENT_PARSE_TIMED_OUT,
+    CHARSET_FROM_HEADERS, CHARSET_FROM_META, CHARSET_FROM_UTF8_VALIDATOR,
+    CHARSET_FROM_DETECTOR, CHARSET_NO_MATCH
     
     
   }
@@ -839,6 +842,15 @@ public class ParserMapper implements Mapper<Text,CrawlURL,Text,ParseOutput> {
           crawlMeta.setCharsetDetected(decodeResult.e0.e1.toString());
           metadata.addProperty("charset_detector", decodeResult.e0.e0);
           crawlMeta.setCharsetDetector(decodeResult.e0.e0);
+          // track which path settled the charset 
+          switch (decodeResult.e0.e0) { 
+            case CharsetUtils.CHARSET_SRC_HEADERS: reporter.incrCounter(Counters.CHARSET_FROM_HEADERS, 1); break;
+            case CharsetUtils.CHARSET_SRC_META: reporter.incrCounter(Counters.CHARSET_FROM_META, 1); break;
+            case CharsetUtils.CHARSET_SRC_UTF8_VALIDATOR: reporter.incrCounter(Counters.CHARSET_FROM_UTF8_VALIDATOR, 1); break;
+            case CharsetUtils.CHARSET_SRC_MOZILLA_DETECTOR:
+            case CharsetUtils.CHARSET_SRC_ICU_DETECTOR: reporter.incrCounter(Counters.CHARSET_FROM_DETECTOR, 1); break;
+            default: reporter.incrCounter(Counters.CHARSET_NO_MATCH, 1); break;
+          }
           // add appropriate http header (for detected charset)
           finalHeaders.add(Constants.ARCFileHeader_DetectedCharset, decodeResult.e0.e1.toString());
           
@@ -929,14 +941,21 @@ public class ParserMapper implements Mapper<Text,CrawlURL,Text,ParseOutput> {
   
   private static String canonicalizeURL(String sourceURL) throws IOException {
     if (sourceURL != null) { 
+      String canonicalURL = URLUtils.fastCanonicalizeURL(sourceURL, false);
+      if (canonicalURL != null) { 
+        return canonicalURL;
+      }
       GoogleURL urlObject = new GoogleURL(sourceURL);
       return URLUtils.canonicalizeURL(urlObject, false);
     }
     return null;
   }
   
-  int mapCalls = 0;
+  AtomicInteger mapCalls = new AtomicInteger();
   
+  /** 
+   * map is safe to call from multiple threads (see ParserMapRunner)
+   */
   @Override
   public void map(Text sourceURL, CrawlURL value, OutputCollector<Text, ParseOutput> output,Reporter reporter) throws IOException {
     
@@ -957,8 +976,12 @@ public class ParserMapper implements Mapper<Text,CrawlURL,Text,ParseOutput> {
     else {
       // OK, disable this whole code path since we turned off speculative execution for now ... 
       // every 10 map calls ... check with tdc to see if we should fast fail this mapper ... 
-      if (++mapCalls % 10 == 0) { 
-        String badTaskDataValue = _taskDataClient.queryTaskData(BAD_TASK_TASKDATA_KEY);
+      if (mapCalls.incrementAndGet() % 10 == 0) { 
+        String badTaskDataValue;
+        // the tdc client supports one blocking call at a time 
+        synchronized (_taskDataClient) { 
+          badTaskDataValue = _taskDataClient.queryTaskData(BAD_TASK_TASKDATA_KEY);
+        }
         if (badTaskDataValue != null && badTaskDataValue.length() != 0) { 
           throw new IOException("Fast Failing Blacklisted (by TDC) Mapper");
         }
@@ -1138,13 +1161,13 @@ public class ParserMapper implements Mapper<Text,CrawlURL,Text,ParseOutput> {
     _lastPosition = position;
   }
   
-  double _lastProgressValue;
-  long   _lastPosition = 0L;
+  volatile double _lastProgressValue;
+  volatile long   _lastPosition = 0L;
   long _segmentId;
   long _startTime;
   long _killTime;
   long _maxRunTime;
-  boolean  _terminatedEarly = false;
+  volatile boolean  _terminatedEarly = false;
   
   TaskDataClient _taskDataClient;
   String _splitFile;
@@ -1158,6 +1181,13 @@ public class ParserMapper implements Mapper<Text,CrawlURL,Text,ParseOutput> {
   boolean wasTerminatedEarly() { 
     return _terminatedEarly;
   }
+  
+  /** 
+   * stop processing the remainder of the split (commitTask will hand it back)
+   */
+  void terminateEarly() { 
+    _terminatedEarly = true;
+  }
 
   /** 
    * 
@@ -294,7 +294,7 @@ public class ParserOutputFormat extends FileOutputFormat<Text,ParseOutput> imple
             
             ArcFileContentItem itemOut = buildArcFileItemFromParseOutput(url,value);
             if (itemOut != null) {
-              _arcWriter.writeRawArcFileItem(itemOut.getContentType(), itemOut.getContent().getReadOnlyBytes(), itemOut.getContent().getCount());
+              _arcWriter.writeRawArcFileItem(url, itemOut.getContentType(), itemOut.getContent().getReadOnlyBytes(), itemOut.getContent().getCount());
               
               // construct a record of the write ... 
               archiveInfo = new ArchiveInfo();
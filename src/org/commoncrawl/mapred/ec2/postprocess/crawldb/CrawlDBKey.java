@@ -20,6 +20,7 @@ package org.commoncrawl.mapred.ec2.postprocess.crawldb;
 
 import java.io.DataInput;
 import java.io.IOException;
+import java.util.Random;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -28,6 +29,7 @@ import org.apache.hadoop.io.DataOutputBuffer;
 import org.apache.hadoop.io.MD5Hash;
 import org.apache.hadoop.io.RawComparator;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparator;
 import org.apache.hadoop.io.WritableUtils;
 import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.Partitioner;
@@ -66,6 +68,20 @@ public class CrawlDBKey extends TextBytes {
     // delegate to super class 
     super.readFields(in);
     
+    if (isBinaryKey(this)) {
+      byte[] data = getBytes();
+      int offset = getOffset();
+      rootDomainHash = readSortableLong(data, offset + BINARY_KEY_ROOT_DOMAIN_HASH_OFFSET);
+      domainHash = readSortableLong(data, offset + BINARY_KEY_DOMAIN_HASH_OFFSET);
+      urlHash = readSortableLong(data, offset + BINARY_KEY_URL_HASH_OFFSET);
+      type = getBinaryKeyType(data, offset);
+      if (type == CrawlDBKey.Type.KEY_TYPE_CRAWL_STATUS.ordinal())
+        timestamp = readSortableLong(data, offset + BINARY_KEY_EXTRA_DATA_OFFSET);
+      else
+        extraData = new FlexBuffer(data, offset + BINARY_KEY_EXTRA_DATA_OFFSET, getLength() - BINARY_KEY_EXTRA_DATA_OFFSET);
+      return;
+    }
+
     synchronized (scanArray) {
       // read components 
       scanForComponents(this, ':', scanArray);
@@ -110,8 +126,42 @@ public class CrawlDBKey extends TextBytes {
     1,  // KEY_TYPE_SUBDOMAIN_METADATA_RECORD
     
   };
-      
-      
+
+  /**
+   * keys can also be encoded in a fixed width binary form:
+   *
+   * [marker:1][root domain hash:8][domain hash:8][url hash:8][type sort order:1][extra data:N]
+   *
+   * the hashes are stored big-endian with their sign bit flipped and the type is stored as
+   * its TypeSortOrder value, so an unsigned byte comparison of two binary keys yields the
+   * same order that LinkKeyComparator establishes for their text equivalents. The extra data
+   * of a crawl status key is its timestamp (encoded like the hashes). For all other types it
+   * is the extra data of the text key, verbatim.
+   *
+   * binary keys are still serialized as TextBytes, and start with a marker byte that can
+   * never start a text key, so both forms can be read (and compared) side by side.
+   */
+  public static final byte BINARY_KEY_MARKER = (byte)0xC1;
+
+  public static final int BINARY_KEY_ROOT_DOMAIN_HASH_OFFSET = 1;
+  public static final int BINARY_KEY_DOMAIN_HASH_OFFSET = 9;
+  public static final int BINARY_KEY_URL_HASH_OFFSET = 17;
+  public static final int BINARY_KEY_TYPE_OFFSET = 25;
+  public static final int BINARY_KEY_EXTRA_DATA_OFFSET = 26;
+  public static final int BINARY_KEY_TIMESTAMP_LENGTH = 8;
+
+  /** maps a TypeSortOrder value back to a Type ordinal **/
+  static final int TypeFromSortOrder[] = new int[16];
+
+  static {
+    for (int i=0;i<TypeFromSortOrder.length;++i) {
+      TypeFromSortOrder[i] = -1;
+    }
+    for (int i=0;i<TypeSortOrder.length;++i) {
+      TypeFromSortOrder[TypeSortOrder[i]] = i;
+    }
+  }
+
   public static FlexBuffer[] allocateScanArray() { 
     FlexBuffer[] array = new FlexBuffer[ComponentId.values().length];
     for (int i=0;i<array.length;++i) { 
@@ -212,7 +262,201 @@ public class CrawlDBKey extends TextBytes {
     return null;
   }
 
-  
+  /**
+   * binary equivalent of generateKey
+   */
+  public static TextBytes generateBinaryKey(URLFPV2 fp,CrawlDBKey.Type type,long timestamp) throws IOException {
+    if (fp != null) {
+      TextBytes keyOut = new TextBytes();
+      if (type == Type.KEY_TYPE_CRAWL_STATUS) {
+        encodeBinaryKey(fp.getRootDomainHash(),fp.getDomainHash(),fp.getUrlHash(),type.ordinal(),timestamp,null,0,0,keyOut);
+      }
+      else {
+        // the text form carries the timestamp as extra data, so we do the same
+        byte[] extraData = Long.toString(timestamp).getBytes();
+        encodeBinaryKey(fp.getRootDomainHash(),fp.getDomainHash(),fp.getUrlHash(),type.ordinal(),0,extraData,0,extraData.length,keyOut);
+      }
+      return keyOut;
+    }
+    return null;
+  }
+
+  /**
+   * binary equivalent of generateLinkKey
+   */
+  public static TextBytes generateBinaryLinkKey(URLFPV2 fp,CrawlDBKey.Type recordType,String md5Bytes) throws IOException {
+    if (fp != null) {
+      return toBinaryKey(generateLinkKey(fp, recordType, md5Bytes));
+    }
+    return null;
+  }
+
+  /**
+   * returns true if the key is in binary form
+   */
+  public static boolean isBinaryKey(TextBytes key) {
+    return isBinaryKey(key.getBytes(),key.getOffset(),key.getLength());
+  }
+
+  public static boolean isBinaryKey(byte[] data,int offset,int length) {
+    return length >= BINARY_KEY_EXTRA_DATA_OFFSET && data[offset] == BINARY_KEY_MARKER;
+  }
+
+  /**
+   * convert a text key to its binary form (binary keys are returned as is)
+   */
+  public static TextBytes toBinaryKey(TextBytes key) throws IOException {
+    if (isBinaryKey(key)) {
+      return key;
+    }
+    TextBytes keyOut = new TextBytes();
+    toBinaryKey(key,keyOut);
+    return keyOut;
+  }
+
+  /**
+   * convert a text key to its binary form. the output key will share the
+   * input key's buffer if the input key is already in binary form
+   */
+  public static void toBinaryKey(TextBytes key,TextBytes keyOut) throws IOException {
+    if (isBinaryKey(key)) {
+      keyOut.set(key.getBytes(),key.getOffset(),key.getLength());
+      return;
+    }
+
+    byte[] data = key.getBytes();
+    int scanPos = key.getOffset();
+    int endPos = key.getOffset() + key.getLength();
+    int tokenStart = scanPos;
+
+    long rootDomainHash = 0;
+    long domainHash = 0;
+    long urlHash = 0;
+    int type = 0;
+    int componentCount = 0;
+
+    // everything past the type component is extra data
+    while (scanPos < endPos && componentCount <= ComponentId.TYPE_COMPONENT_ID.ordinal()) {
+      if (data[scanPos] == ':') {
+        long value = ByteArrayUtils.parseLong(data, tokenStart, scanPos - tokenStart, 10);
+        switch (componentCount++) {
+          case 0: rootDomainHash = value; break;
+          case 1: domainHash = value; break;
+          case 2: urlHash = value; break;
+          default: type = (int)value; break;
+        }
+        tokenStart = scanPos + 1;
+      }
+      scanPos++;
+    }
+
+    if (componentCount <= ComponentId.TYPE_COMPONENT_ID.ordinal() || type < 0 || type >= TypeSortOrder.length) {
+      throw new IOException("Invalid CrawlDBKey:" + key);
+    }
+
+    if (type == Type.KEY_TYPE_CRAWL_STATUS.ordinal()) {
+      long timestamp = ByteArrayUtils.parseLong(data, tokenStart, endPos - tokenStart, 10);
+      encodeBinaryKey(rootDomainHash,domainHash,urlHash,type,timestamp,null,0,0,keyOut);
+    }
+    else {
+      encodeBinaryKey(rootDomainHash,domainHash,urlHash,type,0,data,tokenStart,endPos - tokenStart,keyOut);
+    }
+  }
+
+  /**
+   * convert a binary key back to its text form (text keys are returned as is)
+   */
+  public static TextBytes toTextKey(TextBytes key) {
+    if (!isBinaryKey(key)) {
+      return key;
+    }
+    byte[] data = key.getBytes();
+    int offset = key.getOffset();
+    int type = getBinaryKeyType(data, offset);
+
+    StringBuilder keyOut = new StringBuilder();
+    keyOut.append(readSortableLong(data,offset + BINARY_KEY_ROOT_DOMAIN_HASH_OFFSET)).append(':');
+    keyOut.append(readSortableLong(data,offset + BINARY_KEY_DOMAIN_HASH_OFFSET)).append(':');
+    keyOut.append(readSortableLong(data,offset + BINARY_KEY_URL_HASH_OFFSET)).append(':');
+    keyOut.append(type).append(':');
+    if (type == Type.KEY_TYPE_CRAWL_STATUS.ordinal()) {
+      keyOut.append(readSortableLong(data,offset + BINARY_KEY_EXTRA_DATA_OFFSET));
+      return new TextBytes(keyOut.toString());
+    }
+    else {
+      TextBytes textOut = new TextBytes(keyOut.toString());
+      textOut.append(data, offset + BINARY_KEY_EXTRA_DATA_OFFSET, key.getLength() - BINARY_KEY_EXTRA_DATA_OFFSET);
+      return textOut;
+    }
+  }
+
+  static void encodeBinaryKey(long rootDomainHash,long domainHash,long urlHash,int type,long timestamp,byte[] extraData,int extraDataOffset,int extraDataLength,TextBytes keyOut) {
+    boolean isCrawlStatus = (type == Type.KEY_TYPE_CRAWL_STATUS.ordinal());
+    int keyLength = BINARY_KEY_EXTRA_DATA_OFFSET + ((isCrawlStatus) ? BINARY_KEY_TIMESTAMP_LENGTH : extraDataLength);
+    // always allocate a new buffer, since the output key may share its current buffer with someone else
+    byte[] data = new byte[keyLength];
+    data[0] = BINARY_KEY_MARKER;
+    writeSortableLong(data, BINARY_KEY_ROOT_DOMAIN_HASH_OFFSET, rootDomainHash);
+    writeSortableLong(data, BINARY_KEY_DOMAIN_HASH_OFFSET, domainHash);
+    writeSortableLong(data, BINARY_KEY_URL_HASH_OFFSET, urlHash);
+    data[BINARY_KEY_TYPE_OFFSET] = (byte) TypeSortOrder[type];
+    if (isCrawlStatus) {
+      writeSortableLong(data, BINARY_KEY_EXTRA_DATA_OFFSET, timestamp);
+    }
+    else if (extraDataLength != 0) {
+      System.arraycopy(extraData, extraDataOffset, data, BINARY_KEY_EXTRA_DATA_OFFSET, extraDataLength);
+    }
+    keyOut.set(data,0,keyLength);
+  }
+
+  /**
+   * big-endian, sign bit flipped, so that unsigned byte order == signed long order
+   */
+  static void writeSortableLong(byte[] data,int offset,long value) {
+    value ^= Long.MIN_VALUE;
+    for (int i=7;i>=0;--i) {
+      data[offset + i] = (byte) value;
+      value >>>= 8;
+    }
+  }
+
+  static long readSortableLong(byte[] data,int offset) {
+    long value = 0;
+    for (int i=0;i<8;++i) {
+      value = (value << 8) | (data[offset + i] & 0xff);
+    }
+    return value ^ Long.MIN_VALUE;
+  }
+
+  static int getBinaryKeyType(byte[] data,int offset) {
+    return TypeFromSortOrder[data[offset + BINARY_KEY_TYPE_OFFSET] & 0xf];
+  }
+
+  /**
+   * compare a pair of keys, at least one of which is in binary form, by converting
+   * the other key (if necessary) and comparing the given byte range of both.
+   * a negative range length compares everything past the range offset.
+   */
+  static int compareMixedKeys(TextBytes key1,TextBytes key2,TextBytes scratch1,TextBytes scratch2,int rangeOffset,int rangeLength) {
+    try {
+      toBinaryKey(key1, scratch1);
+      toBinaryKey(key2, scratch2);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    return compareBinaryKeys(
+        scratch1.getBytes(),scratch1.getOffset(),scratch1.getLength(),
+        scratch2.getBytes(),scratch2.getOffset(),scratch2.getLength(),
+        rangeOffset,rangeLength);
+  }
+
+  static int compareBinaryKeys(byte[] b1,int s1,int l1,byte[] b2,int s2,int l2,int rangeOffset,int rangeLength) {
+    if (rangeLength < 0) {
+      return WritableComparator.compareBytes(b1, s1 + rangeOffset, l1 - rangeOffset, b2, s2 + rangeOffset, l2 - rangeOffset);
+    }
+    return WritableComparator.compareBytes(b1, s1 + rangeOffset, rangeLength, b2, s2 + rangeOffset, rangeLength);
+  }
+
   public static int scanForComponents(TextBytes key,int terminator,FlexBuffer[] parts) {
     
     int scanPos = key.getOffset();
@@ -308,20 +552,25 @@ public class CrawlDBKey extends TextBytes {
     TextBytes key1 = new TextBytes();
     TextBytes key2 = new TextBytes();
     
+    TextBytes scratch1 = new TextBytes();
+    TextBytes scratch2 = new TextBytes();
+    
     FlexBuffer scanArray1[] = allocateScanArray();
     FlexBuffer scanArray2[] = allocateScanArray();
-    DataInputBuffer inputBuffer = new DataInputBuffer();
     
     @Override
     public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
-      int keyLen;
       try {
-        inputBuffer.reset(b1,s1,l1);
-        keyLen = WritableUtils.readVInt(inputBuffer);
-        key1.set(b1,inputBuffer.getPosition(), keyLen);
-        inputBuffer.reset(b2,s2,l2);
-        keyLen = WritableUtils.readVInt(inputBuffer);
-        key2.set(b2,inputBuffer.getPosition(), keyLen);
+        int keyLen1 = WritableComparator.readVInt(b1, s1);
+        int keyPos1 = s1 + WritableUtils.decodeVIntSize(b1[s1]);
+        int keyLen2 = WritableComparator.readVInt(b2, s2);
+        int keyPos2 = s2 + WritableUtils.decodeVIntSize(b2[s2]);
+        
+        if (isBinaryKey(b1,keyPos1,keyLen1) && isBinaryKey(b2,keyPos2,keyLen2)) { 
+          return compareBinaryKeys(b1,keyPos1,keyLen1,b2,keyPos2,keyLen2,BINARY_KEY_DOMAIN_HASH_OFFSET,16);
+        }
+        key1.set(b1,keyPos1,keyLen1);
+        key2.set(b2,keyPos2,keyLen2);
         return compare(key1,key2);
         
       } catch (IOException e) {
@@ -332,6 +581,10 @@ public class CrawlDBKey extends TextBytes {
     @Override
     public int compare(TextBytes o1, TextBytes o2) {
 
+      if (isBinaryKey(o1) || isBinaryKey(o2)) { 
+        return compareMixedKeys(o1,o2,scratch1,scratch2,BINARY_KEY_DOMAIN_HASH_OFFSET,16);
+      }
+      
       scanForComponents(o1, ':',scanArray1);
       scanForComponents(o2, ':',scanArray2);
       
@@ -357,20 +610,25 @@ public class CrawlDBKey extends TextBytes {
     TextBytes key1 = new TextBytes();
     TextBytes key2 = new TextBytes();
     
+    TextBytes scratch1 = new TextBytes();
+    TextBytes scratch2 = new TextBytes();
+    
     FlexBuffer scanArray1[] = allocateScanArray();
     FlexBuffer scanArray2[] = allocateScanArray();
-    DataInputBuffer inputBuffer = new DataInputBuffer();
     
     @Override
     public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
-      int keyLen;
       try {
-        inputBuffer.reset(b1,s1,l1);
-        keyLen = WritableUtils.readVInt(inputBuffer);
-        key1.set(b1,inputBuffer.getPosition(), keyLen);
-        inputBuffer.reset(b2,s2,l2);
-        keyLen = WritableUtils.readVInt(inputBuffer);
-        key2.set(b2,inputBuffer.getPosition(), keyLen);
+        int keyLen1 = WritableComparator.readVInt(b1, s1);
+        int keyPos1 = s1 + WritableUtils.decodeVIntSize(b1[s1]);
+        int keyLen2 = WritableComparator.readVInt(b2, s2);
+        int keyPos2 = s2 + WritableUtils.decodeVIntSize(b2[s2]);
+        
+        if (isBinaryKey(b1,keyPos1,keyLen1) && isBinaryKey(b2,keyPos2,keyLen2)) { 
+          return compareBinaryKeys(b1,keyPos1,keyLen1,b2,keyPos2,keyLen2,BINARY_KEY_ROOT_DOMAIN_HASH_OFFSET,8);
+        }
+        key1.set(b1,keyPos1,keyLen1);
+        key2.set(b2,keyPos2,keyLen2);
         return compare(key1,key2);
         
       } catch (IOException e) {
@@ -381,6 +639,10 @@ public class CrawlDBKey extends TextBytes {
     @Override
     public int compare(TextBytes o1, TextBytes o2) {
 
+      if (isBinaryKey(o1) || isBinaryKey(o2)) { 
+        return compareMixedKeys(o1,o2,scratch1,scratch2,BINARY_KEY_ROOT_DOMAIN_HASH_OFFSET,8);
+      }
+      
       scanForComponents(o1, ':',scanArray1);
       scanForComponents(o2, ':',scanArray2);
       
@@ -437,7 +699,8 @@ public class CrawlDBKey extends TextBytes {
 
     TextBytes key1 = new TextBytes();
     TextBytes key2 = new TextBytes();
-    DataInputBuffer inputBuffer = new DataInputBuffer();
+    TextBytes scratch1 = new TextBytes();
+    TextBytes scratch2 = new TextBytes();
     
     FlexBuffer scanArray1[] = allocateScanArray();
     FlexBuffer scanArray2[] = allocateScanArray();
@@ -445,14 +708,17 @@ public class CrawlDBKey extends TextBytes {
     @Override
     public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
       
-      int keyLen;
       try {
-        inputBuffer.reset(b1,s1,l1);
-        keyLen = WritableUtils.readVInt(inputBuffer);
-        key1.set(b1,inputBuffer.getPosition(), keyLen);
-        inputBuffer.reset(b2,s2,l2);
-        keyLen = WritableUtils.readVInt(inputBuffer);
-        key2.set(b2,inputBuffer.getPosition(), keyLen);
+        int keyLen1 = WritableComparator.readVInt(b1, s1);
+        int keyPos1 = s1 + WritableUtils.decodeVIntSize(b1[s1]);
+        int keyLen2 = WritableComparator.readVInt(b2, s2);
+        int keyPos2 = s2 + WritableUtils.decodeVIntSize(b2[s2]);
+        
+        if (isBinaryKey(b1,keyPos1,keyLen1) && isBinaryKey(b2,keyPos2,keyLen2)) { 
+          return WritableComparator.compareBytes(b1,keyPos1,keyLen1,b2,keyPos2,keyLen2);
+        }
+        key1.set(b1,keyPos1,keyLen1);
+        key2.set(b2,keyPos2,keyLen2);
         
         return compare(key1,key2);
         
@@ -464,6 +730,10 @@ public class CrawlDBKey extends TextBytes {
     @Override
     public int compare(TextBytes o1, TextBytes o2) {
 
+      if (isBinaryKey(o1) || isBinaryKey(o2)) { 
+        return compareMixedKeys(o1,o2,scratch1,scratch2,0,-1);
+      }
+      
       scanForComponents(o1, ':',scanArray1);
       scanForComponents(o2, ':',scanArray2);
 
@@ -531,6 +801,10 @@ public class CrawlDBKey extends TextBytes {
     int offset  = key.getOffset();
     int length  = key.getLength();
     
+    if (isBinaryKey(data,offset,length)) { 
+      return getLongComponentFromBinaryKey(data, offset, length, componentId);
+    }
+    
     //long startTime = System.nanoTime();
     Pair<Integer,Integer> scanResult = scanAndTerminateOn(data, offset, length, ':', componentId.ordinal() + 1);
     
@@ -540,6 +814,25 @@ public class CrawlDBKey extends TextBytes {
     return result;
   }
 
+  static long getLongComponentFromBinaryKey(byte[] data,int offset,int length,ComponentId componentId) { 
+    switch (componentId) { 
+      case ROOT_DOMAIN_HASH_COMPONENT_ID: 
+        return readSortableLong(data, offset + BINARY_KEY_ROOT_DOMAIN_HASH_OFFSET);
+      case DOMAIN_HASH_COMPONENT_ID: 
+        return readSortableLong(data, offset + BINARY_KEY_DOMAIN_HASH_OFFSET);
+      case URL_HASH_COMPONENT_ID: 
+        return readSortableLong(data, offset + BINARY_KEY_URL_HASH_OFFSET);
+      case TYPE_COMPONENT_ID: 
+        return getBinaryKeyType(data, offset);
+      default: { 
+        if (getBinaryKeyType(data, offset) == Type.KEY_TYPE_CRAWL_STATUS.ordinal()) { 
+          return readSortableLong(data, offset + BINARY_KEY_EXTRA_DATA_OFFSET);
+        }
+        return ByteArrayUtils.parseLong(data, offset + BINARY_KEY_EXTRA_DATA_OFFSET, length - BINARY_KEY_EXTRA_DATA_OFFSET, 10);
+      }
+    }
+  }
+
   public static FlexBuffer getByteArrayFromComponentArray(FlexBuffer[] array,ComponentId componentId) { 
     return array[componentId.ordinal()];
   }
@@ -549,6 +842,14 @@ public class CrawlDBKey extends TextBytes {
     int offset  = key.getOffset();
     int length  = key.getLength();
     
+    if (isBinaryKey(data,offset,length)) {
+      if (componentId == ComponentId.EXTRA_DATA_COMPONENT_ID && getBinaryKeyType(data, offset) != Type.KEY_TYPE_CRAWL_STATUS.ordinal()) { 
+        return new FlexBuffer(data, offset + BINARY_KEY_EXTRA_DATA_OFFSET, length - BINARY_KEY_EXTRA_DATA_OFFSET);
+      }
+      // numeric components are returned in their text form 
+      return new FlexBuffer(Long.toString(getLongComponentFromBinaryKey(data, offset, length, componentId)).getBytes());
+    }
+    
     Pair<Integer,Integer> scanResult = scanAndTerminateOn(data, offset, length, ':', componentId.ordinal() + 1);
     
     return new FlexBuffer(data, scanResult.e0, scanResult.e1 - scanResult.e0 + 1);
@@ -713,4 +1014,201 @@ public class CrawlDBKey extends TextBytes {
         
     }
   }
+  
+  static TextBytes generateRandomKey(Random random,long[] hashPool) throws IOException { 
+    URLFPV2 fp = new URLFPV2();
+    fp.setRootDomainHash(hashPool[random.nextInt(hashPool.length)]);
+    fp.setDomainHash(hashPool[random.nextInt(hashPool.length)]);
+    fp.setUrlHash(hashPool[random.nextInt(hashPool.length)]);
+    
+    CrawlDBKey.Type type = CrawlDBKey.Type.values()[random.nextInt(CrawlDBKey.Type.values().length)];
+    
+    if (type == CrawlDBKey.Type.KEY_TYPE_CRAWL_STATUS) { 
+      return generateCrawlStatusKey(fp, (random.nextBoolean()) ? random.nextLong() : random.nextInt(4));
+    }
+    else if (random.nextInt(4) == 0) { 
+      return generateKey(fp, type, random.nextInt(3));
+    }
+    else { 
+      // the legacy comparator can't cope with empty extra data, so always emit at least one digit
+      return generateLinkKey(fp, type, Long.toHexString(random.nextLong() >>> random.nextInt(64)));
+    }
+  }
+  
+  static long[] generateHashPool(Random random) { 
+    long[] hashPool = new long[] { Long.MIN_VALUE, Long.MAX_VALUE, -1L, 0L, 1L, 0, 0, 0 };
+    for (int i=5;i<hashPool.length;++i) { 
+      hashPool[i] = random.nextLong();
+    }
+    return hashPool;
+  }
+  
+  @SuppressWarnings("unchecked")
+  @Test
+  public void validateBinaryKeys() throws Exception {
+    Random random = new Random(42);
+    long[] hashPool = generateHashPool(random);
+    
+    int keyCount = 1000;
+    TextBytes textKeys[] = new TextBytes[keyCount];
+    TextBytes binaryKeys[] = new TextBytes[keyCount];
+    
+    for (int i=0;i<keyCount;++i) { 
+      textKeys[i] = generateRandomKey(random, hashPool);
+      binaryKeys[i] = toBinaryKey(textKeys[i]);
+      
+      Assert.assertFalse(isBinaryKey(textKeys[i]));
+      Assert.assertTrue(isBinaryKey(binaryKeys[i]));
+      Assert.assertEquals(textKeys[i], toTextKey(binaryKeys[i]));
+      
+      long type = getLongComponentFromKey(textKeys[i], ComponentId.TYPE_COMPONENT_ID);
+      for (ComponentId componentId : ComponentId.values()) {
+        // link keys carry non numeric extra data 
+        if (componentId != ComponentId.EXTRA_DATA_COMPONENT_ID || type == CrawlDBKey.Type.KEY_TYPE_CRAWL_STATUS.ordinal()) { 
+          Assert.assertEquals(getLongComponentFromKey(textKeys[i], componentId),getLongComponentFromKey(binaryKeys[i], componentId));
+        }
+        Assert.assertEquals(0,getByteArrayComponentFromKey(textKeys[i], componentId).compareTo(getByteArrayComponentFromKey(binaryKeys[i], componentId)));
+      }
+      // binary and text keys have to land in the same partition
+      Assert.assertEquals(CrawlDBKeyPartitioner.hashCodeFromKey(textKeys[i]),CrawlDBKeyPartitioner.hashCodeFromKey(binaryKeys[i]));
+      Assert.assertEquals(PartitionBySuperDomainPartitioner.hashCodeFromKey(textKeys[i]),PartitionBySuperDomainPartitioner.hashCodeFromKey(binaryKeys[i]));
+      
+      // typed key 
+      DataOutputBuffer outputBuffer = new DataOutputBuffer();
+      textKeys[i].write(outputBuffer);
+      binaryKeys[i].write(outputBuffer);
+      DataInputBuffer inputBuffer = new DataInputBuffer();
+      inputBuffer.reset(outputBuffer.getData(), outputBuffer.getLength());
+      CrawlDBKey typedTextKey = new CrawlDBKey();
+      CrawlDBKey typedBinaryKey = new CrawlDBKey();
+      typedTextKey.readFields(inputBuffer);
+      typedBinaryKey.readFields(inputBuffer);
+      Assert.assertEquals(0, new CrawlDBKeyComparator().compare(typedTextKey, typedBinaryKey));
+    }
+    
+    // text generators vs. binary generators 
+    URLFPV2 fp = new URLFPV2();
+    fp.setRootDomainHash(hashPool[5]);
+    fp.setDomainHash(hashPool[6]);
+    fp.setUrlHash(hashPool[7]);
+    for (CrawlDBKey.Type type : CrawlDBKey.Type.values()) { 
+      Assert.assertEquals(toBinaryKey(generateKey(fp, type, 12345L)),generateBinaryKey(fp, type, 12345L));
+      if (type != CrawlDBKey.Type.KEY_TYPE_CRAWL_STATUS) { 
+        Assert.assertEquals(toBinaryKey(generateLinkKey(fp, type, "FOOBAR")),generateBinaryLinkKey(fp, type, "FOOBAR"));
+      }
+    }
+    
+    RawComparator<TextBytes> comparators[] = new RawComparator[] { 
+        new LinkKeyComparator(),
+        new CrawlDBKeyGroupByURLComparator(),
+        new CrawlDBKeyGroupByRootDomainComparator()
+    };
+    
+    for (RawComparator<TextBytes> comparator : comparators) { 
+      for (int i=0;i<keyCount;++i) { 
+        for (int j=0;j<keyCount;j+=7) { 
+          int expected = Integer.signum(comparator.compare(textKeys[i], textKeys[j]));
+          Assert.assertEquals(expected, Integer.signum(comparator.compare(binaryKeys[i], binaryKeys[j])));
+          Assert.assertEquals(expected, Integer.signum(comparator.compare(textKeys[i], binaryKeys[j])));
+          Assert.assertEquals(expected, Integer.signum(comparator.compare(binaryKeys[i], textKeys[j])));
+          
+          DataOutputBuffer outputBuffer1 = new DataOutputBuffer();
+          DataOutputBuffer outputBuffer2 = new DataOutputBuffer();
+          // offset the second key to make sure the raw comparators honor their start offsets 
+          outputBuffer2.write(0);
+          binaryKeys[i].write(outputBuffer1);
+          binaryKeys[j].write(outputBuffer2);
+          Assert.assertEquals(expected, Integer.signum(comparator.compare(outputBuffer1.getData(), 0, outputBuffer1.getLength(), outputBuffer2.getData(), 1, outputBuffer2.getLength() - 1)));
+          outputBuffer2.reset();
+          textKeys[j].write(outputBuffer2);
+          Assert.assertEquals(expected, Integer.signum(comparator.compare(outputBuffer1.getData(), 0, outputBuffer1.getLength(), outputBuffer2.getData(), 0, outputBuffer2.getLength())));
+        }
+      }
+    }
+  }
+  
+  private static long benchmarkRawComparator(RawComparator<TextBytes> comparator,DataOutputBuffer keyData,int[] keyOffsets,int[] pairs,int iterations) { 
+    byte[] data = keyData.getData();
+    long result = 0;
+    for (int iteration=0;iteration<iterations;++iteration) { 
+      for (int i=0;i<pairs.length;i+=2) { 
+        int key1 = pairs[i];
+        int key2 = pairs[i+1];
+        result += Integer.signum(comparator.compare(
+            data, keyOffsets[key1], keyOffsets[key1 + 1] - keyOffsets[key1],
+            data, keyOffsets[key2], keyOffsets[key2 + 1] - keyOffsets[key2]));
+      }
+    }
+    return result;
+  }
+  
+  /** 
+   * comparator microbenchmark - raw (shuffle style) comparisons of text vs. binary keys 
+   * 
+   * usage: CrawlDBKey [keyCount] [iterations]
+   */
+  @SuppressWarnings("unchecked")
+  public static void main(String[] args) throws IOException {
+    int keyCount = (args.length > 0) ? Integer.parseInt(args[0]) : 100000;
+    int iterations = (args.length > 1) ? Integer.parseInt(args[1]) : 10;
+    
+    Random random = new Random(42);
+    long[] hashPool = new long[1024];
+    for (int i=0;i<hashPool.length;++i) { 
+      hashPool[i] = random.nextLong();
+    }
+    
+    DataOutputBuffer textKeyData = new DataOutputBuffer();
+    DataOutputBuffer binaryKeyData = new DataOutputBuffer();
+    int textKeyOffsets[] = new int[keyCount + 1];
+    int binaryKeyOffsets[] = new int[keyCount + 1];
+    
+    for (int i=0;i<keyCount;++i) { 
+      TextBytes key = generateRandomKey(random, hashPool);
+      textKeyOffsets[i] = textKeyData.getLength();
+      key.write(textKeyData);
+      binaryKeyOffsets[i] = binaryKeyData.getLength();
+      toBinaryKey(key).write(binaryKeyData);
+    }
+    textKeyOffsets[keyCount] = textKeyData.getLength();
+    binaryKeyOffsets[keyCount] = binaryKeyData.getLength();
+    
+    // random pairs, biased towards keys that share a prefix (as they do in a sorted run)
+    int pairs[] = new int[keyCount * 2];
+    for (int i=0;i<keyCount;++i) { 
+      pairs[i * 2] = i;
+      pairs[i * 2 + 1] = (random.nextBoolean()) ? random.nextInt(keyCount) : Math.min(keyCount - 1, i + 1);
+    }
+    
+    System.out.println("Keys:" + keyCount 
+        + " Avg Text Key Size:" + (textKeyData.getLength() / keyCount) 
+        + " Avg Binary Key Size:" + (binaryKeyData.getLength() / keyCount));
+    
+    RawComparator<TextBytes> comparators[] = new RawComparator[] { 
+        new LinkKeyComparator(),
+        new CrawlDBKeyGroupByURLComparator(),
+        new CrawlDBKeyGroupByRootDomainComparator()
+    };
+    
+    for (RawComparator<TextBytes> comparator : comparators) {
+      // warm up 
+      benchmarkRawComparator(comparator, textKeyData, textKeyOffsets, pairs, 2);
+      benchmarkRawComparator(comparator, binaryKeyData, binaryKeyOffsets, pairs, 2);
+      
+      long textStart = System.nanoTime();
+      long textResult = benchmarkRawComparator(comparator, textKeyData, textKeyOffsets, pairs, iterations);
+      long textTime = System.nanoTime() - textStart;
+      
+      long binaryStart = System.nanoTime();
+      long binaryResult = benchmarkRawComparator(comparator, binaryKeyData, binaryKeyOffsets, pairs, iterations);
+      long binaryTime = System.nanoTime() - binaryStart;
+      
+      long compareCount = (long)keyCount * iterations;
+      System.out.println(comparator.getClass().getSimpleName() 
+          + " Text:" + (textTime / compareCount) + "ns/compare" 
+          + " Binary:" + (binaryTime / compareCount) + "ns/compare"
+          + " Speedup:" + ((double)textTime / (double)binaryTime)
+          + " (checksums:" + textResult + "/" + binaryResult + ")");
+    }
+  }
 }
@@ -0,0 +1,189 @@
+/**
+ * Copyright 2012 - CommonCrawl Foundation
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ **/
+
+package org.commoncrawl.mapred.ec2.postprocess.crawldb;
+
+import java.io.IOException;
+import java.util.Iterator;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.SequenceFile.CompressionType;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.compress.GzipCodec;
+import org.apache.hadoop.mapred.JobClient;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.Mapper;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Reducer;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.mapred.SequenceFileOutputFormat;
+import org.commoncrawl.util.CCStringUtils;
+import org.commoncrawl.util.JobBuilder;
+import org.commoncrawl.util.MultiFileMergeUtils;
+import org.commoncrawl.util.TextBytes;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Converts the keys of an existing crawldb (or any other sharded, CrawlDBKey keyed
+ * data set) between their text and binary forms (see CrawlDBKey).
+ *
+ * Since both key forms sort the same way, a sorted shard stays sorted after conversion,
+ * so each shard is streamed through a single reducer (via MultiFileMergeInputFormat)
+ * without a shuffle, and the output preserves the shard layout of the input.
+ *
+ * usage: CrawlDBKeyConversionJob [inputPath] [outputPath] [--toText]
+ *
+ * @author rana
+ *
+ */
+public class CrawlDBKeyConversionJob implements Reducer<IntWritable, Text ,TextBytes,TextBytes> {
+
+  static final Log LOG = LogFactory.getLog(CrawlDBKeyConversionJob.class);
+
+  /** convert binary keys back to text (vs. text to binary) **/
+  public static final String CONVERT_TO_TEXT_KEYS = "crawldb.keyconversion.toText";
+
+  enum Counters {
+    CONVERTED_KEYS, PASSED_THROUGH_KEYS
+  }
+
+  /**
+   * mapper that converts incoming keys to their binary form, so that
+   * the shuffle can use the binary comparators
+   */
+  public static class ToBinaryKeyMapper implements Mapper<TextBytes,TextBytes,TextBytes,TextBytes> {
+
+    TextBytes _binaryKey = new TextBytes();
+
+    @Override
+    public void configure(JobConf job) {
+
+    }
+
+    @Override
+    public void close() throws IOException {
+    }
+
+    @Override
+    public void map(TextBytes key, TextBytes value,OutputCollector<TextBytes, TextBytes> output, Reporter reporter) throws IOException {
+      CrawlDBKey.toBinaryKey(key, _binaryKey);
+      output.collect(_binaryKey, value);
+    }
+  }
+
+  public static void main(String[] args)throws IOException {
+    if (args.length < 2) {
+      System.out.println("usage: CrawlDBKeyConversionJob [inputPath] [outputPath] [--toText]");
+      return;
+    }
+    Path inputPath = new Path(args[0]);
+    Path outputPath = new Path(args[1]);
+    boolean toText = (args.length > 2 && args[2].equalsIgnoreCase("--toText"));
+
+    Configuration conf = new Configuration();
+
+    JobConf jobConf = new JobBuilder("Convert CrawlDB Keys to " + ((toText) ? "Text" : "Binary"), conf)
+    .inputs(Lists.newArrayList(inputPath))
+    .inputFormat(MultiFileMergeUtils.MultiFileMergeInputFormat.class)
+    .mapperKeyValue(IntWritable.class, Text.class)
+    .outputKeyValue(TextBytes.class, TextBytes.class)
+    .outputFormat(SequenceFileOutputFormat.class)
+    .reducer(CrawlDBKeyConversionJob.class,false)
+    .partition(MultiFileMergeUtils.MultiFileMergePartitioner.class)
+    .numReducers(CrawlDBCommon.NUM_SHARDS)
+    .speculativeExecution(true)
+    .output(outputPath)
+    .compressMapOutput(true)
+    .compressor(CompressionType.BLOCK, GzipCodec.class)
+    .maxMapAttempts(10)
+    .maxReduceAttempts(4)
+    .maxMapTaskFailures(1)
+    .reuseJVM(1)
+    .set(CONVERT_TO_TEXT_KEYS, Boolean.toString(toText))
+    .build();
+
+    LOG.info("Starting JOB:" + jobConf);
+    try {
+      JobClient.runJob(jobConf);
+      LOG.info("Finished JOB:" + jobConf);
+    }
+    catch (IOException e) {
+      LOG.error("Failed to Execute JOB:" + jobConf + " Exception:\n" + CCStringUtils.stringifyException(e));
+    }
+  }
+
+  JobConf _conf;
+  boolean _toText;
+
+  @Override
+  public void configure(JobConf job) {
+    _conf = job;
+    _toText = job.getBoolean(CONVERT_TO_TEXT_KEYS, false);
+  }
+
+  @Override
+  public void close() throws IOException {
+
+  }
+
+  @Override
+  public void reduce(IntWritable key, Iterator<Text> values,OutputCollector<TextBytes, TextBytes> collector, Reporter reporter)throws IOException {
+    // we expect a single path per shard here (a single input path)
+    Path inputPath = new Path(values.next().toString());
+    if (values.hasNext()) {
+      throw new IOException("Multiple Inputs for Shard:" + key.get() + " - Only One Input Path is Supported");
+    }
+
+    LOG.info("Converting Shard:" + key.get() + " Path:" + inputPath);
+
+    SequenceFile.Reader reader = new SequenceFile.Reader(FileSystem.get(inputPath.toUri(),_conf), inputPath, _conf);
+    try {
+      TextBytes inputKey = new TextBytes();
+      TextBytes inputValue = new TextBytes();
+      TextBytes outputKey = new TextBytes();
+
+      while (reader.next(inputKey,inputValue)) {
+        boolean isBinary = CrawlDBKey.isBinaryKey(inputKey);
+        if (isBinary == _toText) {
+          reporter.incrCounter(Counters.CONVERTED_KEYS, 1);
+        }
+        else {
+          reporter.incrCounter(Counters.PASSED_THROUGH_KEYS, 1);
+        }
+        if (_toText) {
+          collector.collect(CrawlDBKey.toTextKey(inputKey), inputValue);
+        }
+        else {
+          CrawlDBKey.toBinaryKey(inputKey, outputKey);
+          collector.collect(outputKey, inputValue);
+        }
+        reporter.progress();
+      }
+    }
+    finally {
+      reader.close();
+    }
+  }
+}
@@ -231,6 +231,8 @@ public class CrawlDBMergeJob {
     JobConf jobConf = new JobBuilder("Intermediate Merge for Segments:" + partitionIds, conf)
     .inputs(inputPaths)
     .inputFormat(SequenceFileInputFormat.class)
+    // shuffle binary keys, so that the sort and the partitioner don't have to parse text keys
+    .mapper(CrawlDBKeyConversionJob.ToBinaryKeyMapper.class)
     .mapperKeyValue(TextBytes.class, TextBytes.class)
     .outputKeyValue(TextBytes.class, TextBytes.class)
     .outputFormat(SequenceFileOutputFormat.class)
@@ -245,6 +247,8 @@ public class CrawlDBMergeJob {
     .maxReduceAttempts(3)
     .maxMapTaskFailures(1)
     .compressor(CompressionType.BLOCK, SnappyCodec.class)
+    // intermediate merges are only consumed by the final merge, so they can use the binary record format 
+    .set(CrawlDBMergingReducer.EMIT_BINARY_MERGED_RECORDS, "true")
     .build();
             
     LOG.info("Starting JOB:" + jobConf);
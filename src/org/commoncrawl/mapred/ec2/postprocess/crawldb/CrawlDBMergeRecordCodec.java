@@ -0,0 +1,754 @@
+/**
+ * Copyright 2012 - CommonCrawl Foundation
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ **/
+
+package org.commoncrawl.mapred.ec2.postprocess.crawldb;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.commoncrawl.rpc.base.shared.BinaryProtocol;
+import org.commoncrawl.util.TextBytes;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+
+/**
+ * reads and writes crawldb merge records in either their legacy JSON form or
+ * in the binary form defined by crawldb.jr (CrawlDBMergeRecord).
+ *
+ * binary records start with a marker byte that can never start a UTF-8 encoded
+ * JSON document, so both forms can be mixed in the same segment and readers
+ * can tell them apart by looking at the first byte. the top level record
+ * starts with the source url and a set of flags, which can be read via
+ * readHeader without decoding the rest of the record.
+ *
+ * the mapping between the two forms is lossless: JSON properties that are not
+ * modeled by the schema (or that are not of the modeled type) are carried
+ * verbatim in each record's extraJSON property. consumers that still expect
+ * JSON can use toJSON to read records in either form.
+ *
+ * instances are not thread safe.
+ *
+ * @author rana
+ *
+ */
+public class CrawlDBMergeRecordCodec implements CrawlDBCommon {
+
+  /** first byte of a binary record (0xC1 is not a valid UTF-8 lead byte) **/
+  public static final byte BINARY_RECORD_MARKER = (byte)0xC1;
+
+  private static final HashMap<String,Integer> crawlDetailFields = new HashMap<String,Integer>();
+  private static final HashMap<String,Integer> crawlSummaryFields = new HashMap<String,Integer>();
+  private static final HashMap<String,Integer> linkStatusFields = new HashMap<String,Integer>();
+
+  static {
+    crawlDetailFields.put(CRAWLDETAIL_ATTEMPT_TIME_PROPERTY, CrawlDBCrawlDetail.Field_ATTEMPTTIME);
+    crawlDetailFields.put(CRAWLDETAIL_HTTPRESULT_PROPERTY, CrawlDBCrawlDetail.Field_HTTPRESULT);
+    crawlDetailFields.put(CRAWLDETAIL_SERVERIP_PROPERTY, CrawlDBCrawlDetail.Field_SERVERIP);
+    crawlDetailFields.put(CRAWLDETAIL_HTTP_DATE_PROPERTY, CrawlDBCrawlDetail.Field_HTTPDATE);
+    crawlDetailFields.put(CRAWLDETAIL_HTTP_AGE_PROPERTY, CrawlDBCrawlDetail.Field_HTTPAGEJSON);
+    crawlDetailFields.put(CRAWLDETAIL_HTTP_LAST_MODIFIED_PROPERTY, CrawlDBCrawlDetail.Field_HTTPLASTMODIFIED);
+    crawlDetailFields.put(CRAWLDETAIL_HTTP_EXPIRES_PROPERTY, CrawlDBCrawlDetail.Field_HTTPEXPIRES);
+    crawlDetailFields.put(CRAWLDETAIL_HTTP_CACHE_CONTROL_PROPERTY, CrawlDBCrawlDetail.Field_HTTPCACHECONTROLJSON);
+    crawlDetailFields.put(CRAWLDETAIL_HTTP_PRAGMA_PROPERTY, CrawlDBCrawlDetail.Field_HTTPPRAGMAJSON);
+    crawlDetailFields.put(CRAWLDETAIL_HTTP_ETAG_PROPERTY, CrawlDBCrawlDetail.Field_HTTPETAGJSON);
+    crawlDetailFields.put(CRAWLDETAIL_CONTENTLEN_PROPERTY, CrawlDBCrawlDetail.Field_CONTENTLENGTH);
+    crawlDetailFields.put(CRAWLDETAIL_MIMETYPE_PROPERTY, CrawlDBCrawlDetail.Field_MIMETYPE);
+    crawlDetailFields.put(CRAWLDETAIL_MD5_PROPERTY, CrawlDBCrawlDetail.Field_MD5);
+    crawlDetailFields.put(CRAWLDETAIL_TEXTSIMHASH_PROPERTY, CrawlDBCrawlDetail.Field_TEXTSIMHASH);
+    crawlDetailFields.put(CRAWLDETAIL_PARSEDAS_PROPERTY, CrawlDBCrawlDetail.Field_PARSEDAS);
+    crawlDetailFields.put(CRAWLDETAIL_TITLE_PROPERTY, CrawlDBCrawlDetail.Field_TITLEJSON);
+    crawlDetailFields.put(CRAWLDETAIL_METATAGS_PROPERTY, CrawlDBCrawlDetail.Field_METATAGSJSON);
+    crawlDetailFields.put(CRAWLDETAIL_INTRADOMAIN_LINKS, CrawlDBCrawlDetail.Field_INTRADOMAINLINKS);
+    crawlDetailFields.put(CRAWLDETAIL_INTRAROOT_LINKS, CrawlDBCrawlDetail.Field_INTRAROOTLINKS);
+    crawlDetailFields.put(CRAWLDETAIL_INTERDOMAIN_LINKS, CrawlDBCrawlDetail.Field_INTERDOMAINLINKS);
+    crawlDetailFields.put(CRAWLDETAIL_UPDATED_PROPERTY, CrawlDBCrawlDetail.Field_UPDATED);
+    crawlDetailFields.put(RSS_MIN_PUBDATE_PROPERTY, CrawlDBCrawlDetail.Field_MINPUBDATE);
+    crawlDetailFields.put(RSS_MAX_PUBDATE_PROPERTY, CrawlDBCrawlDetail.Field_MAXPUBDATE);
+    crawlDetailFields.put(RSS_ITEM_COUNT_PROPERTY, CrawlDBCrawlDetail.Field_ITEMCOUNT);
+    crawlDetailFields.put(CRAWLDETAIL_REDIRECT_URL, CrawlDBCrawlDetail.Field_REDIRECTURL);
+    crawlDetailFields.put(CRAWLDETAIL_FAILURE, CrawlDBCrawlDetail.Field_FETCHFAILED);
+    crawlDetailFields.put(CRAWLDETAIL_FAILURE_REASON, CrawlDBCrawlDetail.Field_FAILUREREASON);
+    crawlDetailFields.put(CRAWLDETAIL_FAILURE_DETAIL, CrawlDBCrawlDetail.Field_FAILUREDETAIL);
+
+    crawlSummaryFields.put(SUMMARYRECORD_ATTEMPT_COUNT_PROPERTY, CrawlDBCrawlSummary.Field_ATTEMPTCOUNT);
+    crawlSummaryFields.put(SUMMARYRECORD_LATEST_ATTEMPT_PROPERTY, CrawlDBCrawlSummary.Field_LATESTATTEMPT);
+    crawlSummaryFields.put(SUMMARYRECORD_HTTP_RESULT_PROPERTY, CrawlDBCrawlSummary.Field_HTTPRESULT);
+    crawlSummaryFields.put(SUMMARYRECORD_LATEST_CRAWLTIME_PROPERTY, CrawlDBCrawlSummary.Field_LATESTCRAWLTIME);
+    crawlSummaryFields.put(SUMMARYRECORD_CRAWLCOUNT_PROPERTY, CrawlDBCrawlSummary.Field_CRAWLCOUNT);
+    crawlSummaryFields.put(SUMMARYRECORD_PARSEDAS_PROPERTY, CrawlDBCrawlSummary.Field_PARSEDAS);
+    crawlSummaryFields.put(SUMMARYRECORD_REDIRECT_URL_PROPERTY, CrawlDBCrawlSummary.Field_REDIRECTURL);
+    crawlSummaryFields.put(SUMMARYRECORD_EXTERNALLY_REFERENCED_URLS, CrawlDBCrawlSummary.Field_EXTURLS);
+    crawlSummaryFields.put(SUMMARYRECORD_EXTERNALLY_REFERENCED_URLS_TRUNCATED, CrawlDBCrawlSummary.Field_EXTURLSTRUNCATED);
+    crawlSummaryFields.put(SUMMARYRECORD_CRAWLDETAILS_ARRAY_PROPERTY, CrawlDBCrawlSummary.Field_CRAWLDETAILS);
+
+    linkStatusFields.put(LINKSTATUS_INTRADOMAIN_SOURCES_COUNT_PROPERTY, CrawlDBLinkStatus.Field_INTRADOMAINSOURCESCOUNT);
+    linkStatusFields.put(LINKSTATUS_EXTRADOMAIN_SOURCES_COUNT_PROPERTY, CrawlDBLinkStatus.Field_EXTRADOMAINSOURCESCOUNT);
+    linkStatusFields.put(LINKSTATUS_EARLIEST_DATE_PROPERTY, CrawlDBLinkStatus.Field_EARLIESTDATE);
+    linkStatusFields.put(LINKSTATUS_LATEST_DATE_PROPERTY, CrawlDBLinkStatus.Field_LATESTDATE);
+    linkStatusFields.put(LINKSTATUS_TYPEANDRELS_PROPERTY, CrawlDBLinkStatus.Field_TYPEANDRELS);
+  }
+
+  DataOutputBuffer _outputBuffer = new DataOutputBuffer();
+  DataInputBuffer  _inputBuffer = new DataInputBuffer();
+  CrawlDBMergeRecord _record = new CrawlDBMergeRecord();
+  JsonParser _parser = new JsonParser();
+
+  /**
+   * returns true if the value holds a binary (vs. JSON) merge record
+   **/
+  public static boolean isBinaryRecord(TextBytes value) {
+    return value.getLength() != 0 && value.getBytes()[value.getOffset()] == BINARY_RECORD_MARKER;
+  }
+
+  /**
+   * convenience method for consumers of merge records - returns a merge record
+   * in either form as a JSON object
+   *
+   * @param value
+   * @return
+   * @throws IOException
+   */
+  public static JsonObject toJSON(TextBytes value) throws IOException {
+    return new CrawlDBMergeRecordCodec().decodeToJSON(value);
+  }
+
+  /**
+   * decode a merge record in either form into a JSON object
+   *
+   * @param value
+   * @return
+   * @throws IOException
+   */
+  public JsonObject decodeToJSON(TextBytes value) throws IOException {
+    if (isBinaryRecord(value)) {
+      return mergeRecordToJSON(decode(value));
+    }
+    return _parser.parse(value.toString()).getAsJsonObject();
+  }
+
+  /**
+   * decode a binary merge record. the returned record is owned by the codec
+   * and is only valid until the next call to decode.
+   *
+   * @param value
+   * @return
+   * @throws IOException
+   */
+  public CrawlDBMergeRecord decode(TextBytes value) throws IOException {
+    if (!isBinaryRecord(value)) {
+      throw new IOException("Not a Binary Merge Record");
+    }
+    _inputBuffer.reset(value.getBytes(), value.getOffset() + 1, value.getLength() - 1);
+    _record.deserialize(_inputBuffer, new BinaryProtocol());
+    return _record;
+  }
+
+  /**
+   * read only the source url and flags of a binary merge record
+   *
+   * @param value
+   * @param sourceURLOut
+   * @return the record's flags (see CrawlDBMergeRecord.Flags)
+   * @throws IOException
+   */
+  public int readHeader(TextBytes value,TextBytes sourceURLOut) throws IOException {
+    if (!isBinaryRecord(value)) {
+      throw new IOException("Not a Binary Merge Record");
+    }
+    _inputBuffer.reset(value.getBytes(), value.getOffset() + 1, value.getLength() - 1);
+    BinaryProtocol protocol = new BinaryProtocol();
+    protocol.initializeSkipStream(_inputBuffer);
+
+    sourceURLOut.clear();
+    if (CrawlDBMergeRecord.skipTo(_inputBuffer, protocol, CrawlDBMergeRecord.Field_SOURCEURL) == CrawlDBMergeRecord.Field_SOURCEURL) {
+      protocol.readTextBytes(_inputBuffer, sourceURLOut);
+    }
+    if (CrawlDBMergeRecord.skipTo(_inputBuffer, protocol, CrawlDBMergeRecord.Field_FLAGS) == CrawlDBMergeRecord.Field_FLAGS) {
+      return protocol.readVInt(_inputBuffer);
+    }
+    return 0;
+  }
+
+  /**
+   * encode a JSON merge record in binary form
+   *
+   * @param mergeRecordJSON
+   * @return a new TextBytes instance holding the encoded record
+   * @throws IOException
+   */
+  public TextBytes encode(JsonObject mergeRecordJSON) throws IOException {
+    return encode(mergeRecordFromJSON(mergeRecordJSON));
+  }
+
+  /**
+   * encode a merge record in binary form
+   *
+   * @param record
+   * @return a new TextBytes instance holding the encoded record
+   * @throws IOException
+   */
+  public TextBytes encode(CrawlDBMergeRecord record) throws IOException {
+    _outputBuffer.reset();
+    _outputBuffer.writeByte(BINARY_RECORD_MARKER);
+    record.serialize(_outputBuffer, new BinaryProtocol());
+    TextBytes valueOut = new TextBytes();
+    valueOut.set(_outputBuffer.getData(), 0, _outputBuffer.getLength());
+    return valueOut;
+  }
+
+  ///////////////////////////////////////////////////////////////////////////
+  // JSON -> binary
+  ///////////////////////////////////////////////////////////////////////////
+
+  public static CrawlDBMergeRecord mergeRecordFromJSON(JsonObject json) {
+    CrawlDBMergeRecord record = new CrawlDBMergeRecord();
+    JsonObject extra = null;
+    int flags = 0;
+
+    for (Map.Entry<String,JsonElement> property : json.entrySet()) {
+      String name = property.getKey();
+      JsonElement value = property.getValue();
+
+      if (name.equals(TOPLEVEL_SOURCE_URL_PROPRETY) && isString(value)) {
+        record.setSourceURL(value.getAsString());
+      }
+      else if (name.equals(TOPLEVEL_SUMMARYRECORD_PROPRETY) && value.isJsonObject()) {
+        record.setCrawlStatus(crawlSummaryFromJSON(value.getAsJsonObject()));
+        flags |= CrawlDBMergeRecord.Flags.HAS_CRAWL_STATUS;
+      }
+      else if (name.equals(TOPLEVEL_LINKSTATUS_PROPERTY) && value.isJsonObject()) {
+        record.setLinkStatus(linkStatusFromJSON(value.getAsJsonObject()));
+        flags |= CrawlDBMergeRecord.Flags.HAS_LINK_STATUS;
+      }
+      else if (name.equals(TOPLEVEL_BLEKKO_METADATA_PROPERTY)) {
+        record.setBlekkoJSON(value.toString());
+        flags |= CrawlDBMergeRecord.Flags.HAS_BLEKKO_METADATA;
+      }
+      else {
+        extra = addExtraProperty(extra,name,value);
+      }
+    }
+    record.setFlags(flags);
+    if (extra != null) {
+      record.setExtraJSON(extra.toString());
+    }
+    return record;
+  }
+
+  public static CrawlDBCrawlSummary crawlSummaryFromJSON(JsonObject json) {
+    CrawlDBCrawlSummary summary = new CrawlDBCrawlSummary();
+    JsonObject extra = null;
+
+    for (Map.Entry<String,JsonElement> property : json.entrySet()) {
+      JsonElement value = property.getValue();
+      Integer fieldId = crawlSummaryFields.get(property.getKey());
+      boolean mapped = false;
+
+      if (fieldId != null) {
+        switch (fieldId) {
+          case CrawlDBCrawlSummary.Field_ATTEMPTCOUNT: {
+            if (mapped = isInt(value)) summary.setAttemptCount(value.getAsInt());
+          }
+          break;
+          case CrawlDBCrawlSummary.Field_LATESTATTEMPT: {
+            if (mapped = isLong(value)) summary.setLatestAttempt(value.getAsLong());
+          }
+          break;
+          case CrawlDBCrawlSummary.Field_HTTPRESULT: {
+            if (mapped = isInt(value)) summary.setHttpResult(value.getAsInt());
+          }
+          break;
+          case CrawlDBCrawlSummary.Field_LATESTCRAWLTIME: {
+            if (mapped = isLong(value)) summary.setLatestCrawlTime(value.getAsLong());
+          }
+          break;
+          case CrawlDBCrawlSummary.Field_CRAWLCOUNT: {
+            if (mapped = isInt(value)) summary.setCrawlCount(value.getAsInt());
+          }
+          break;
+          case CrawlDBCrawlSummary.Field_PARSEDAS: {
+            if (mapped = isString(value)) summary.setParsedAs(value.getAsString());
+          }
+          break;
+          case CrawlDBCrawlSummary.Field_REDIRECTURL: {
+            if (mapped = isString(value)) summary.setRedirectURL(value.getAsString());
+          }
+          break;
+          case CrawlDBCrawlSummary.Field_EXTURLS: {
+            if (mapped = isStringArray(value)) summary.setExtURLs(stringArrayToList(value.getAsJsonArray()));
+          }
+          break;
+          case CrawlDBCrawlSummary.Field_EXTURLSTRUNCATED: {
+            if (mapped = isBoolean(value)) summary.setExtURLsTruncated(value.getAsBoolean());
+          }
+          break;
+          case CrawlDBCrawlSummary.Field_CRAWLDETAILS: {
+            if (mapped = isObjectArray(value)) {
+              ArrayList<CrawlDBCrawlDetail> details = new ArrayList<CrawlDBCrawlDetail>();
+              for (JsonElement detail : value.getAsJsonArray()) {
+                details.add(crawlDetailFromJSON(detail.getAsJsonObject()));
+              }
+              summary.setCrawlDetails(details);
+            }
+          }
+          break;
+        }
+      }
+      if (!mapped) {
+        extra = addExtraProperty(extra,property.getKey(),value);
+      }
+    }
+    if (extra != null) {
+      summary.setExtraJSON(extra.toString());
+    }
+    return summary;
+  }
+
+  public static CrawlDBCrawlDetail crawlDetailFromJSON(JsonObject json) {
+    CrawlDBCrawlDetail detail = new CrawlDBCrawlDetail();
+    JsonObject extra = null;
+
+    for (Map.Entry<String,JsonElement> property : json.entrySet()) {
+      JsonElement value = property.getValue();
+      Integer fieldId = crawlDetailFields.get(property.getKey());
+      boolean mapped = false;
+
+      if (fieldId != null) {
+        switch (fieldId) {
+          case CrawlDBCrawlDetail.Field_ATTEMPTTIME: {
+            if (mapped = isLong(value)) detail.setAttemptTime(value.getAsLong());
+          }
+          break;
+          case CrawlDBCrawlDetail.Field_HTTPRESULT: {
+            if (mapped = isInt(value)) detail.setHttpResult(value.getAsInt());
+          }
+          break;
+          case CrawlDBCrawlDetail.Field_SERVERIP: {
+            if (mapped = isString(value)) detail.setServerIP(value.getAsString());
+          }
+          break;
+          case CrawlDBCrawlDetail.Field_HTTPDATE: {
+            if (mapped = isLong(value)) detail.setHttpDate(value.getAsLong());
+          }
+          break;
+          case CrawlDBCrawlDetail.Field_HTTPAGEJSON: {
+            mapped = true;
+            detail.setHttpAgeJSON(value.toString());
+          }
+          break;
+          case CrawlDBCrawlDetail.Field_HTTPLASTMODIFIED: {
+            if (mapped = isLong(value)) detail.setHttpLastModified(value.getAsLong());
+          }
+          break;
+          case CrawlDBCrawlDetail.Field_HTTPEXPIRES: {
+            if (mapped = isLong(value)) detail.setHttpExpires(value.getAsLong());
+          }
+          break;
+          case CrawlDBCrawlDetail.Field_HTTPCACHECONTROLJSON: {
+            mapped = true;
+            detail.setHttpCacheControlJSON(value.toString());
+          }
+          break;
+          case CrawlDBCrawlDetail.Field_HTTPPRAGMAJSON: {
+            mapped = true;
+            detail.setHttpPragmaJSON(value.toString());
+          }
+          break;
+          case CrawlDBCrawlDetail.Field_HTTPETAGJSON: {
+            mapped = true;
+            detail.setHttpETagJSON(value.toString());
+          }
+          break;
+          case CrawlDBCrawlDetail.Field_CONTENTLENGTH: {
+            if (mapped = isInt(value)) detail.setContentLength(value.getAsInt());
+          }
+          break;
+          case CrawlDBCrawlDetail.Field_MIMETYPE: {
+            if (mapped = isString(value)) detail.setMimeType(value.getAsString());
+          }
+          break;
+          case CrawlDBCrawlDetail.Field_MD5: {
+            if (mapped = isString(value)) detail.setMd5(value.getAsString());
+          }
+          break;
+          case CrawlDBCrawlDetail.Field_TEXTSIMHASH: {
+            if (mapped = isLong(value)) detail.setTextSimHash(value.getAsLong());
+          }
+          break;
+          case CrawlDBCrawlDetail.Field_PARSEDAS: {
+            if (mapped = isString(value)) detail.setParsedAs(value.getAsString());
+          }
+          break;
+          case CrawlDBCrawlDetail.Field_TITLEJSON: {
+            mapped = true;
+            detail.setTitleJSON(value.toString());
+          }
+          break;
+          case CrawlDBCrawlDetail.Field_METATAGSJSON: {
+            mapped = true;
+            detail.setMetaTagsJSON(value.toString());
+          }
+          break;
+          case CrawlDBCrawlDetail.Field_INTRADOMAINLINKS: {
+            if (mapped = isInt(value)) detail.setIntraDomainLinks(value.getAsInt());
+          }
+          break;
+          case CrawlDBCrawlDetail.Field_INTRAROOTLINKS: {
+            if (mapped = isInt(value)) detail.setIntraRootLinks(value.getAsInt());
+          }
+          break;
+          case CrawlDBCrawlDetail.Field_INTERDOMAINLINKS: {
+            if (mapped = isInt(value)) detail.setInterDomainLinks(value.getAsInt());
+          }
+          break;
+          case CrawlDBCrawlDetail.Field_UPDATED: {
+            if (mapped = isLong(value)) detail.setUpdated(value.getAsLong());
+          }
+          break;
+          case CrawlDBCrawlDetail.Field_MINPUBDATE: {
+            if (mapped = isLong(value)) detail.setMinPubDate(value.getAsLong());
+          }
+          break;
+          case CrawlDBCrawlDetail.Field_MAXPUBDATE: {
+            if (mapped = isLong(value)) detail.setMaxPubDate(value.getAsLong());
+          }
+          break;
+          case CrawlDBCrawlDetail.Field_ITEMCOUNT: {
+            if (mapped = isInt(value)) detail.setItemCount(value.getAsInt());
+          }
+          break;
+          case CrawlDBCrawlDetail.Field_REDIRECTURL: {
+            if (mapped = isString(value)) detail.setRedirectURL(value.getAsString());
+          }
+          break;
+          case CrawlDBCrawlDetail.Field_FETCHFAILED: {
+            if (mapped = isBoolean(value)) detail.setFetchFailed(value.getAsBoolean());
+          }
+          break;
+          case CrawlDBCrawlDetail.Field_FAILUREREASON: {
+            if (mapped = isString(value)) detail.setFailureReason(value.getAsString());
+          }
+          break;
+          case CrawlDBCrawlDetail.Field_FAILUREDETAIL: {
+            if (mapped = isString(value)) detail.setFailureDetail(value.getAsString());
+          }
+          break;
+        }
+      }
+      if (!mapped) {
+        extra = addExtraProperty(extra,property.getKey(),value);
+      }
+    }
+    if (extra != null) {
+      detail.setExtraJSON(extra.toString());
+    }
+    return detail;
+  }
+
+  public static CrawlDBLinkStatus linkStatusFromJSON(JsonObject json) {
+    CrawlDBLinkStatus linkStatus = new CrawlDBLinkStatus();
+    JsonObject extra = null;
+
+    for (Map.Entry<String,JsonElement> property : json.entrySet()) {
+      JsonElement value = property.getValue();
+      Integer fieldId = linkStatusFields.get(property.getKey());
+      boolean mapped = false;
+
+      if (fieldId != null) {
+        switch (fieldId) {
+          case CrawlDBLinkStatus.Field_INTRADOMAINSOURCESCOUNT: {
+            if (mapped = isInt(value)) linkStatus.setIntraDomainSourcesCount(value.getAsInt());
+          }
+          break;
+          case CrawlDBLinkStatus.Field_EXTRADOMAINSOURCESCOUNT: {
+            if (mapped = isInt(value)) linkStatus.setExtraDomainSourcesCount(value.getAsInt());
+          }
+          break;
+          case CrawlDBLinkStatus.Field_EARLIESTDATE: {
+            if (mapped = isLong(value)) linkStatus.setEarliestDate(value.getAsLong());
+          }
+          break;
+          case CrawlDBLinkStatus.Field_LATESTDATE: {
+            if (mapped = isLong(value)) linkStatus.setLatestDate(value.getAsLong());
+          }
+          break;
+          case CrawlDBLinkStatus.Field_TYPEANDRELS: {
+            if (mapped = isStringArray(value)) linkStatus.setTypeAndRels(stringArrayToList(value.getAsJsonArray()));
+          }
+          break;
+        }
+      }
+      if (!mapped) {
+        extra = addExtraProperty(extra,property.getKey(),value);
+      }
+    }
+    if (extra != null) {
+      linkStatus.setExtraJSON(extra.toString());
+    }
+    return linkStatus;
+  }
+
+  ///////////////////////////////////////////////////////////////////////////
+  // binary -> JSON
+  ///////////////////////////////////////////////////////////////////////////
+
+  public JsonObject mergeRecordToJSON(CrawlDBMergeRecord record) {
+    JsonObject json = new JsonObject();
+
+    if (record.isFieldDirty(CrawlDBMergeRecord.Field_SOURCEURL))
+      json.addProperty(TOPLEVEL_SOURCE_URL_PROPRETY, record.getSourceURL());
+    if ((record.getFlags() & CrawlDBMergeRecord.Flags.HAS_CRAWL_STATUS) != 0)
+      json.add(TOPLEVEL_SUMMARYRECORD_PROPRETY, crawlSummaryToJSON(record.getCrawlStatus()));
+    if ((record.getFlags() & CrawlDBMergeRecord.Flags.HAS_LINK_STATUS) != 0)
+      json.add(TOPLEVEL_LINKSTATUS_PROPERTY, linkStatusToJSON(record.getLinkStatus()));
+    if ((record.getFlags() & CrawlDBMergeRecord.Flags.HAS_BLEKKO_METADATA) != 0)
+      json.add(TOPLEVEL_BLEKKO_METADATA_PROPERTY, parseJSON(record.getBlekkoJSONAsTextBytes()));
+    if (record.isFieldDirty(CrawlDBMergeRecord.Field_EXTRAJSON))
+      addExtraProperties(json,record.getExtraJSONAsTextBytes());
+
+    return json;
+  }
+
+  public JsonObject crawlSummaryToJSON(CrawlDBCrawlSummary summary) {
+    JsonObject json = new JsonObject();
+
+    if (summary.isFieldDirty(CrawlDBCrawlSummary.Field_ATTEMPTCOUNT))
+      json.addProperty(SUMMARYRECORD_ATTEMPT_COUNT_PROPERTY, summary.getAttemptCount());
+    if (summary.isFieldDirty(CrawlDBCrawlSummary.Field_LATESTATTEMPT))
+      json.addProperty(SUMMARYRECORD_LATEST_ATTEMPT_PROPERTY, summary.getLatestAttempt());
+    if (summary.isFieldDirty(CrawlDBCrawlSummary.Field_HTTPRESULT))
+      json.addProperty(SUMMARYRECORD_HTTP_RESULT_PROPERTY, summary.getHttpResult());
+    if (summary.isFieldDirty(CrawlDBCrawlSummary.Field_LATESTCRAWLTIME))
+      json.addProperty(SUMMARYRECORD_LATEST_CRAWLTIME_PROPERTY, summary.getLatestCrawlTime());
+    if (summary.isFieldDirty(CrawlDBCrawlSummary.Field_CRAWLCOUNT))
+      json.addProperty(SUMMARYRECORD_CRAWLCOUNT_PROPERTY, summary.getCrawlCount());
+    if (summary.isFieldDirty(CrawlDBCrawlSummary.Field_PARSEDAS))
+      json.addProperty(SUMMARYRECORD_PARSEDAS_PROPERTY, summary.getParsedAs());
+    if (summary.isFieldDirty(CrawlDBCrawlSummary.Field_REDIRECTURL))
+      json.addProperty(SUMMARYRECORD_REDIRECT_URL_PROPERTY, summary.getRedirectURL());
+    if (summary.getExtURLs().size() != 0)
+      json.add(SUMMARYRECORD_EXTERNALLY_REFERENCED_URLS, listToStringArray(summary.getExtURLs()));
+    if (summary.isFieldDirty(CrawlDBCrawlSummary.Field_EXTURLSTRUNCATED))
+      json.addProperty(SUMMARYRECORD_EXTERNALLY_REFERENCED_URLS_TRUNCATED, summary.getExtURLsTruncated());
+    if (summary.getCrawlDetails().size() != 0) {
+      JsonArray details = new JsonArray();
+      for (CrawlDBCrawlDetail detail : summary.getCrawlDetails()) {
+        details.add(crawlDetailToJSON(detail));
+      }
+      json.add(SUMMARYRECORD_CRAWLDETAILS_ARRAY_PROPERTY, details);
+    }
+    if (summary.isFieldDirty(CrawlDBCrawlSummary.Field_EXTRAJSON))
+      addExtraProperties(json,summary.getExtraJSONAsTextBytes());
+
+    return json;
+  }
+
+  /**
+   * properties are emitted in the order in which the reducer adds them to a
+   * crawl detail record, so that a record survives a round trip unchanged
+   **/
+  public JsonObject crawlDetailToJSON(CrawlDBCrawlDetail detail) {
+    JsonObject json = new JsonObject();
+
+    if (detail.isFieldDirty(CrawlDBCrawlDetail.Field_ATTEMPTTIME))
+      json.addProperty(CRAWLDETAIL_ATTEMPT_TIME_PROPERTY, detail.getAttemptTime());
+    if (detail.isFieldDirty(CrawlDBCrawlDetail.Field_HTTPRESULT))
+      json.addProperty(CRAWLDETAIL_HTTPRESULT_PROPERTY, detail.getHttpResult());
+    if (detail.isFieldDirty(CrawlDBCrawlDetail.Field_SERVERIP))
+      json.addProperty(CRAWLDETAIL_SERVERIP_PROPERTY, detail.getServerIP());
+    if (detail.isFieldDirty(CrawlDBCrawlDetail.Field_HTTPDATE))
+      json.addProperty(CRAWLDETAIL_HTTP_DATE_PROPERTY, detail.getHttpDate());
+    if (detail.isFieldDirty(CrawlDBCrawlDetail.Field_HTTPAGEJSON))
+      json.add(CRAWLDETAIL_HTTP_AGE_PROPERTY, parseJSON(detail.getHttpAgeJSONAsTextBytes()));
+    if (detail.isFieldDirty(CrawlDBCrawlDetail.Field_HTTPLASTMODIFIED))
+      json.addProperty(CRAWLDETAIL_HTTP_LAST_MODIFIED_PROPERTY, detail.getHttpLastModified());
+    if (detail.isFieldDirty(CrawlDBCrawlDetail.Field_HTTPEXPIRES))
+      json.addProperty(CRAWLDETAIL_HTTP_EXPIRES_PROPERTY, detail.getHttpExpires());
+    if (detail.isFieldDirty(CrawlDBCrawlDetail.Field_HTTPCACHECONTROLJSON))
+      json.add(CRAWLDETAIL_HTTP_CACHE_CONTROL_PROPERTY, parseJSON(detail.getHttpCacheControlJSONAsTextBytes()));
+    if (detail.isFieldDirty(CrawlDBCrawlDetail.Field_HTTPPRAGMAJSON))
+      json.add(CRAWLDETAIL_HTTP_PRAGMA_PROPERTY, parseJSON(detail.getHttpPragmaJSONAsTextBytes()));
+    if (detail.isFieldDirty(CrawlDBCrawlDetail.Field_HTTPETAGJSON))
+      json.add(CRAWLDETAIL_HTTP_ETAG_PROPERTY, parseJSON(detail.getHttpETagJSONAsTextBytes()));
+    if (detail.isFieldDirty(CrawlDBCrawlDetail.Field_CONTENTLENGTH))
+      json.addProperty(CRAWLDETAIL_CONTENTLEN_PROPERTY, detail.getContentLength());
+    if (detail.isFieldDirty(CrawlDBCrawlDetail.Field_MIMETYPE))
+      json.addProperty(CRAWLDETAIL_MIMETYPE_PROPERTY, detail.getMimeType());
+    if (detail.isFieldDirty(CrawlDBCrawlDetail.Field_MD5))
+      json.addProperty(CRAWLDETAIL_MD5_PROPERTY, detail.getMd5());
+    if (detail.isFieldDirty(CrawlDBCrawlDetail.Field_TEXTSIMHASH))
+      json.addProperty(CRAWLDETAIL_TEXTSIMHASH_PROPERTY, detail.getTextSimHash());
+    if (detail.isFieldDirty(CrawlDBCrawlDetail.Field_PARSEDAS))
+      json.addProperty(CRAWLDETAIL_PARSEDAS_PROPERTY, detail.getParsedAs());
+    if (detail.isFieldDirty(CrawlDBCrawlDetail.Field_TITLEJSON))
+      json.add(CRAWLDETAIL_TITLE_PROPERTY, parseJSON(detail.getTitleJSONAsTextBytes()));
+    if (detail.isFieldDirty(CrawlDBCrawlDetail.Field_METATAGSJSON))
+      json.add(CRAWLDETAIL_METATAGS_PROPERTY, parseJSON(detail.getMetaTagsJSONAsTextBytes()));
+    if (detail.isFieldDirty(CrawlDBCrawlDetail.Field_INTRADOMAINLINKS))
+      json.addProperty(CRAWLDETAIL_INTRADOMAIN_LINKS, detail.getIntraDomainLinks());
+    if (detail.isFieldDirty(CrawlDBCrawlDetail.Field_INTRAROOTLINKS))
+      json.addProperty(CRAWLDETAIL_INTRAROOT_LINKS, detail.getIntraRootLinks());
+    if (detail.isFieldDirty(CrawlDBCrawlDetail.Field_INTERDOMAINLINKS))
+      json.addProperty(CRAWLDETAIL_INTERDOMAIN_LINKS, detail.getInterDomainLinks());
+    if (detail.isFieldDirty(CrawlDBCrawlDetail.Field_UPDATED))
+      json.addProperty(CRAWLDETAIL_UPDATED_PROPERTY, detail.getUpdated());
+    if (detail.isFieldDirty(CrawlDBCrawlDetail.Field_MINPUBDATE))
+      json.addProperty(RSS_MIN_PUBDATE_PROPERTY, detail.getMinPubDate());
+    if (detail.isFieldDirty(CrawlDBCrawlDetail.Field_MAXPUBDATE))
+      json.addProperty(RSS_MAX_PUBDATE_PROPERTY, detail.getMaxPubDate());
+    if (detail.isFieldDirty(CrawlDBCrawlDetail.Field_ITEMCOUNT))
+      json.addProperty(RSS_ITEM_COUNT_PROPERTY, detail.getItemCount());
+    if (detail.isFieldDirty(CrawlDBCrawlDetail.Field_REDIRECTURL))
+      json.addProperty(CRAWLDETAIL_REDIRECT_URL, detail.getRedirectURL());
+    if (detail.isFieldDirty(CrawlDBCrawlDetail.Field_FETCHFAILED))
+      json.addProperty(CRAWLDETAIL_FAILURE, detail.getFetchFailed());
+    if (detail.isFieldDirty(CrawlDBCrawlDetail.Field_FAILUREREASON))
+      json.addProperty(CRAWLDETAIL_FAILURE_REASON, detail.getFailureReason());
+    if (detail.isFieldDirty(CrawlDBCrawlDetail.Field_FAILUREDETAIL))
+      json.addProperty(CRAWLDETAIL_FAILURE_DETAIL, detail.getFailureDetail());
+    if (detail.isFieldDirty(CrawlDBCrawlDetail.Field_EXTRAJSON))
+      addExtraProperties(json,detail.getExtraJSONAsTextBytes());
+
+    return json;
+  }
+
+  public JsonObject linkStatusToJSON(CrawlDBLinkStatus linkStatus) {
+    JsonObject json = new JsonObject();
+
+    if (linkStatus.isFieldDirty(CrawlDBLinkStatus.Field_INTRADOMAINSOURCESCOUNT))
+      json.addProperty(LINKSTATUS_INTRADOMAIN_SOURCES_COUNT_PROPERTY, linkStatus.getIntraDomainSourcesCount());
+    if (linkStatus.isFieldDirty(CrawlDBLinkStatus.Field_EXTRADOMAINSOURCESCOUNT))
+      json.addProperty(LINKSTATUS_EXTRADOMAIN_SOURCES_COUNT_PROPERTY, linkStatus.getExtraDomainSourcesCount());
+    if (linkStatus.isFieldDirty(CrawlDBLinkStatus.Field_EARLIESTDATE))
+      json.addProperty(LINKSTATUS_EARLIEST_DATE_PROPERTY, linkStatus.getEarliestDate());
+    if (linkStatus.isFieldDirty(CrawlDBLinkStatus.Field_LATESTDATE))
+      json.addProperty(LINKSTATUS_LATEST_DATE_PROPERTY, linkStatus.getLatestDate());
+    if (linkStatus.getTypeAndRels().size() != 0)
+      json.add(LINKSTATUS_TYPEANDRELS_PROPERTY, listToStringArray(linkStatus.getTypeAndRels()));
+    if (linkStatus.isFieldDirty(CrawlDBLinkStatus.Field_EXTRAJSON))
+      addExtraProperties(json,linkStatus.getExtraJSONAsTextBytes());
+
+    return json;
+  }
+
+  ///////////////////////////////////////////////////////////////////////////
+  // helpers
+  ///////////////////////////////////////////////////////////////////////////
+
+  private JsonElement parseJSON(TextBytes jsonText) {
+    return _parser.parse(jsonText.toString());
+  }
+
+  private void addExtraProperties(JsonObject json,TextBytes extraJSON) {
+    for (Map.Entry<String,JsonElement> property : parseJSON(extraJSON).getAsJsonObject().entrySet()) {
+      json.add(property.getKey(), property.getValue());
+    }
+  }
+
+  private static JsonObject addExtraProperty(JsonObject extra,String name,JsonElement value) {
+    if (extra == null) {
+      extra = new JsonObject();
+    }
+    extra.add(name, value);
+    return extra;
+  }
+
+  private static boolean isString(JsonElement e) {
+    return e.isJsonPrimitive() && e.getAsJsonPrimitive().isString();
+  }
+
+  private static boolean isBoolean(JsonElement e) {
+    return e.isJsonPrimitive() && e.getAsJsonPrimitive().isBoolean();
+  }
+
+  /** only integral numbers whose text survives a round trip are mapped **/
+  private static boolean isLong(JsonElement e) {
+    if (e.isJsonPrimitive()) {
+      JsonPrimitive p = e.getAsJsonPrimitive();
+      if (p.isNumber()) {
+        String text = p.getAsString();
+        try {
+          return Long.toString(Long.parseLong(text)).equals(text);
+        }
+        catch (NumberFormatException ex) {
+        }
+      }
+    }
+    return false;
+  }
+
+  private static boolean isInt(JsonElement e) {
+    if (e.isJsonPrimitive()) {
+      JsonPrimitive p = e.getAsJsonPrimitive();
+      if (p.isNumber()) {
+        String text = p.getAsString();
+        try {
+          return Integer.toString(Integer.parseInt(text)).equals(text);
+        }
+        catch (NumberFormatException ex) {
+        }
+      }
+    }
+    return false;
+  }
+
+  /** empty arrays are not mapped, since the binary form does not distinguish empty from missing **/
+  private static boolean isStringArray(JsonElement e) {
+    if (!e.isJsonArray() || e.getAsJsonArray().size() == 0)
+      return false;
+    for (JsonElement item : e.getAsJsonArray()) {
+      if (!isString(item))
+        return false;
+    }
+    return true;
+  }
+
+  private static boolean isObjectArray(JsonElement e) {
+    if (!e.isJsonArray() || e.getAsJsonArray().size() == 0)
+      return false;
+    for (JsonElement item : e.getAsJsonArray()) {
+      if (!item.isJsonObject())
+        return false;
+    }
+    return true;
+  }
+
+  private static ArrayList<TextBytes> stringArrayToList(JsonArray array) {
+    ArrayList<TextBytes> list = new ArrayList<TextBytes>(array.size());
+    for (JsonElement item : array) {
+      list.add(new TextBytes(item.getAsString()));
+    }
+    return list;
+  }
+
+  private static JsonArray listToStringArray(ArrayList<TextBytes> list) {
+    JsonArray array = new JsonArray();
+    for (TextBytes item : list) {
+      array.add(new JsonPrimitive(item.toString()));
+    }
+    return array;
+  }
+}
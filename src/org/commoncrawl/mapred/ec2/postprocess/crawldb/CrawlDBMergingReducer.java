@@ -71,6 +71,9 @@ public class CrawlDBMergingReducer implements Reducer<TextBytes, TextBytes ,Text
   // The Summary object can contain zero to N CrawlDetail objects, one for each 
   // crawl attempt. The properties defined by CrawlDetail object are prefixed with 
   // the CRAWLDETAIL_ prefix.
+  // If EMIT_BINARY_MERGED_RECORDS is set, the same structure is emitted in the
+  // binary form defined in crawldb.jr instead (see CrawlDBMergeRecordCodec).
+  // Merged records are accepted in either form.
   
 
   
@@ -151,7 +154,7 @@ public class CrawlDBMergingReducer implements Reducer<TextBytes, TextBytes ,Text
     OUTPUT_KEY_FROM_EXTERNAL_LINK, GOT_HTTP_200_CRAWL_STATUS, GOT_REDIRECT_CRAWL_STATUS, BAD_REDIRECT_URL, GOT_MERGED_RECORD, MERGED_OBJECT_FIRST_OBJECT, ADOPTED_SOURCE_SUMMARY_RECORD, MERGED_SOURCE_SUMMARY_RECORD_INTO_DEST, ADOPTED_SOURCE_LINKSUMMARY_RECORD, MERGED_SOURCE_LINKSUMMARY_RECORD_INTO_DEST, ALLOCATED_TOP_LEVEL_OBJECT_IN_FLUSH, ENCOUNTERED_EXISTING_TOP_LEVEL_OBJECT_IN_FLUSH, ENCOUNTERED_SUMMARY_RECORD_IN_FLUSH, ENCOUNTERED_LINKSUMMARY_RECORD_IN_FLUSH, EMITTED_SOURCEINPUTS_RECORD, GOT_NULL_REDIRECT_URL, INTERDOMAIN_LINKS_LTEQ_100, INTERDOMAIN_LINKS_LTEQ_1000, INTERDOMAIN_LINKS_GT_1000, EMITTED_SOURCEINPUTS_DATA_BYTES_EMITTED,
     INPUT_RECORD_COUNT, ADOPTED_NEW_BLEKKO_METADATA_RECORD, BLEKKO_METADATA_WITH_NO_SOURCE_CC_RECORD, MERGE_RECORD_HAS_BLEKKO_METADATA, EMITTED_RECORD_WITH_BLEKKO_METADATA, BLEKKO_RECORD_ALREADY_IN_DATABASE
     
-  , BLEKKO_CRAWLED_CC_CRAWLED, BLEKKO_NOT_CRAWLED_CC_CRAWLED}
+  , BLEKKO_CRAWLED_CC_CRAWLED, BLEKKO_NOT_CRAWLED_CC_CRAWLED, GOT_BINARY_MERGED_RECORD, DEFERRED_BINARY_MERGED_RECORD, PASSED_THROUGH_BINARY_MERGED_RECORD}
   
   ///////////////////////////////////////////////////////////////////////////
   // Data Members 
@@ -162,6 +165,9 @@ public class CrawlDBMergingReducer implements Reducer<TextBytes, TextBytes ,Text
   public static final int  NUM_ELEMENTS = 1 << 26;
   public static final int  FLUSH_INTERVAL = 1 << 17;
 
+  /** emit merged records in binary (vs. JSON) form (see CrawlDBMergeRecordCodec) **/
+  public static final String EMIT_BINARY_MERGED_RECORDS = "crawldb.merge.emitBinaryRecords";
+
   private static final NumberFormat NUMBER_FORMAT = NumberFormat.getInstance();
   static {
     NUMBER_FORMAT.setMinimumIntegerDigits(5);
@@ -176,6 +182,18 @@ public class CrawlDBMergingReducer implements Reducer<TextBytes, TextBytes ,Text
   JsonObject _summaryRecord = null;
   // the current link summary record 
   JsonObject _linkSummaryRecord = null;
+  // binary merged record codec 
+  CrawlDBMergeRecordCodec _recordCodec = new CrawlDBMergeRecordCodec();
+  // emit merged records in binary form 
+  boolean _emitBinaryRecords = false;
+  // running as a map side combiner 
+  boolean _mapSide = false;
+  // emit keys in binary form (see CrawlDBKey) 
+  boolean _emitBinaryKeys = false;
+  // a binary merged record that has not been decoded yet (see processBinaryMergedRecord) 
+  TextBytes _pendingBinaryRecord = null;
+  // scratch buffer used to read the source url of a binary merged record 
+  TextBytes _binaryRecordSourceURL = new TextBytes();
   // collection of types detected for current url 
   HashSet<String> _types = new HashSet<String>();
   // collection of external references urls in current document  
@@ -219,6 +237,10 @@ public class CrawlDBMergingReducer implements Reducer<TextBytes, TextBytes ,Text
       _reporter = reporter;
     }
     
+    // a map side combiner has to emit keys in the form the mapper produced them in, so that the 
+    // shuffle can keep comparing binary keys. everything else emits text keys.
+    _emitBinaryKeys = _mapSide && CrawlDBKey.isBinaryKey(keyBytes);
+    
     // potentially transition to new url
     readFPCheckForTransition(keyBytes,output,reporter);
     
@@ -233,12 +255,22 @@ public class CrawlDBMergingReducer implements Reducer<TextBytes, TextBytes ,Text
       
       //LOG.debug("ValueBytes:"+ valueBytes.toString());
       
+      // anything but an incoming urls sample needs the deferred record (if any) decoded first
+      if (_pendingBinaryRecord != null && linkType != CrawlDBKey.Type.KEY_TYPE_INCOMING_URLS_SAMPLE.ordinal()) { 
+        decodePendingBinaryRecord(reporter);
+      }
+      
       if (linkType == CrawlDBKey.Type.KEY_TYPE_MERGED_RECORD.ordinal()) {
         reporter.incrCounter(Counters.GOT_MERGED_RECORD, 1);
-        JsonObject mergedObject = _parser.parse(valueBytes.toString()).getAsJsonObject();
-        if (mergedObject != null) { 
-          setSourceURLFromJSONObject(mergedObject,linkType);
-          processMergedRecord(mergedObject,_currentKey,reporter);
+        if (CrawlDBMergeRecordCodec.isBinaryRecord(valueBytes)) {
+          processBinaryMergedRecord(valueBytes,reporter);
+        }
+        else { 
+          JsonObject mergedObject = _parser.parse(valueBytes.toString()).getAsJsonObject();
+          if (mergedObject != null) { 
+            setSourceURLFromJSONObject(mergedObject,linkType);
+            processMergedRecord(mergedObject,_currentKey,reporter);
+          }
         }
       }
       else if (linkType == CrawlDBKey.Type.KEY_TYPE_CRAWL_STATUS.ordinal()) {
@@ -295,6 +327,8 @@ public class CrawlDBMergingReducer implements Reducer<TextBytes, TextBytes ,Text
     _sourceInputsBuffer = new DataOutputBuffer(EXT_SOURCE_SAMPLE_BUFFER_SIZE);
     _sourceInputsTrackingFilter = new URLFPBloomFilter(NUM_ELEMENTS, NUM_HASH_FUNCTIONS, NUM_BITS);
     _conf = job;
+    _emitBinaryRecords = job.getBoolean(EMIT_BINARY_MERGED_RECORDS, false);
+    _mapSide = job.getBoolean("mapred.task.is.map", false);
     try {
       _fs = FileSystem.get(_conf);
       _partitionId = _conf.getInt("mapred.task.partition", 0);
@@ -336,7 +370,7 @@ public class CrawlDBMergingReducer implements Reducer<TextBytes, TextBytes ,Text
       redirectJSON.addProperty("source_url",redirectObj.get("source_url").getAsString());
   
       // ok emit the redirect record ... 
-      TextBytes key = CrawlDBKey.generateKey(redirectFP,CrawlDBKey.Type.KEY_TYPE_CRAWL_STATUS,jsonObject.get("attempt_time").getAsLong());
+      TextBytes key = generateOutputKey(redirectFP,CrawlDBKey.Type.KEY_TYPE_CRAWL_STATUS,jsonObject.get("attempt_time").getAsLong());
       LOG.debug("!!!!!!Emitting Redirect Record:" + redirectJSON.toString());
 
       output.collect(key, new TextBytes(redirectJSON.toString()));
@@ -460,9 +494,7 @@ public class CrawlDBMergingReducer implements Reducer<TextBytes, TextBytes ,Text
         }
       }
       else if (keyType == CrawlDBKey.Type.KEY_TYPE_MERGED_RECORD.ordinal()) { 
-        _outputKeyString = sourceElement.getAsString();
-        _outputKeyURLObj = new GoogleURL(_outputKeyString);
-        _urlKeyForzen = true;
+        setSourceURLFromMergedRecord(sourceElement.getAsString());
       }
       else if (keyType >= CrawlDBKey.Type.KEY_TYPE_HTML_LINK.ordinal() && keyType <= CrawlDBKey.Type.KEY_TYPE_RSS_LINK.ordinal()) {
         if (_outputKeyString == null) { 
@@ -479,6 +511,19 @@ public class CrawlDBMergingReducer implements Reducer<TextBytes, TextBytes ,Text
     }
   }
   
+  /** 
+   * a merged record's source url always becomes the output key 
+   * 
+   * @param sourceURL
+   */
+  void setSourceURLFromMergedRecord(String sourceURL) { 
+    if (!_urlKeyForzen) { 
+      _outputKeyString = sourceURL;
+      _outputKeyURLObj = new GoogleURL(_outputKeyString);
+      _urlKeyForzen = true;
+    }
+  }
+  
   void mergeBlekkoMetadata(JsonObject newBlekkoMetadata,JsonObject existingTopLevelObj,Reporter reporter) { 
     if (newBlekkoMetadata != null) { 
       if (!existingTopLevelObj.has(TOPLEVEL_BLEKKO_METADATA_PROPERTY)) { 
@@ -607,6 +652,49 @@ public class CrawlDBMergingReducer implements Reducer<TextBytes, TextBytes ,Text
     }
   }
   
+  /** 
+   * process a merged record in binary form. if it is the first thing we see for the current url, 
+   * only its header is read and decoding the rest is deferred until something else needs to be 
+   * merged into it. a record that nothing gets merged into is passed through as is by 
+   * flushCurrentRecord (when emitting binary records), which is the common case when merging 
+   * new segments into a large crawldb. 
+   * 
+   * @param valueBytes
+   * @param reporter
+   * @throws IOException
+   */
+  void processBinaryMergedRecord(TextBytes valueBytes,Reporter reporter)throws IOException { 
+    reporter.incrCounter(Counters.GOT_BINARY_MERGED_RECORD, 1);
+    
+    if (_topLevelJSONObject == null && _summaryRecord == null && _linkSummaryRecord == null) { 
+      int flags = _recordCodec.readHeader(valueBytes, _binaryRecordSourceURL);
+      // blekko metadata needs to be looked at for stats purposes, so always decode those 
+      if ((flags & CrawlDBMergeRecord.Flags.HAS_BLEKKO_METADATA) == 0) {
+        reporter.incrCounter(Counters.DEFERRED_BINARY_MERGED_RECORD, 1);
+        setSourceURLFromMergedRecord(_binaryRecordSourceURL.toString());
+        // the value buffer may be reused by the iterator, so take a copy  
+        _pendingBinaryRecord = new TextBytes();
+        _pendingBinaryRecord.set(valueBytes.getBytes(),valueBytes.getOffset(),valueBytes.getLength());
+        return;
+      }
+    }
+    JsonObject mergedObject = _recordCodec.decodeToJSON(valueBytes);
+    setSourceURLFromJSONObject(mergedObject,CrawlDBKey.Type.KEY_TYPE_MERGED_RECORD.ordinal());
+    processMergedRecord(mergedObject,_currentKey,reporter);
+  }
+  
+  /** 
+   * decode a previously deferred binary merged record and make it the current top level record  
+   * 
+   * @param reporter
+   * @throws IOException
+   */
+  void decodePendingBinaryRecord(Reporter reporter)throws IOException { 
+    JsonObject mergedObject = _recordCodec.decodeToJSON(_pendingBinaryRecord);
+    _pendingBinaryRecord = null;
+    processMergedRecord(mergedObject,_currentKey,reporter);
+  }
+  
   /** 
    * given a incoming link record, track the link source and also update stats and 
    * also capture document type information (if available via the href).
@@ -1034,8 +1122,18 @@ public class CrawlDBMergingReducer implements Reducer<TextBytes, TextBytes ,Text
       }
     }
     else { 
-    
-      if (_topLevelJSONObject != null || _summaryRecord != null || _linkSummaryRecord != null) { 
+      
+      // a deferred binary record can only be passed through as is if we are emitting binary records 
+      if (_pendingBinaryRecord != null && !_emitBinaryRecords) { 
+        decodePendingBinaryRecord(reporter);
+      }
+      
+      if (_pendingBinaryRecord != null) { 
+        reporter.incrCounter(Counters.PASSED_THROUGH_BINARY_MERGED_RECORD, 1);
+        output.collect(generateOutputKey(_currentKey, CrawlDBKey.Type.KEY_TYPE_MERGED_RECORD, 0),_pendingBinaryRecord);
+        emitSourceInputsRecord(output,reporter);
+      }
+      else if (_topLevelJSONObject != null || _summaryRecord != null || _linkSummaryRecord != null) { 
         
         if (_topLevelJSONObject == null) {
           reporter.incrCounter(Counters.ALLOCATED_TOP_LEVEL_OBJECT_IN_FLUSH, 1);
@@ -1095,16 +1193,9 @@ public class CrawlDBMergingReducer implements Reducer<TextBytes, TextBytes ,Text
         }
         
         // output top level record ... 
-        output.collect(CrawlDBKey.generateKey(_currentKey, CrawlDBKey.Type.KEY_TYPE_MERGED_RECORD, 0),new TextBytes(_topLevelJSONObject.toString()));
-        // if there is link status available ...
-        if (_sourceSampleSize != 0) {
-          reporter.incrCounter(Counters.EMITTED_SOURCEINPUTS_RECORD, 1);
-          TextBytes sourceInputsText= new TextBytes();
-          sourceInputsText.set(_sourceInputsBuffer.getData(),0,_sourceInputsBuffer.getLength());
-          //System.out.println("Emitting Key:" + CrawlDBKey.generateKey(_currentKey, CrawlDBKey.Type.KEY_TYPE_INCOMING_URLS_SAMPLE, 0));
-          output.collect(CrawlDBKey.generateKey(_currentKey, CrawlDBKey.Type.KEY_TYPE_INCOMING_URLS_SAMPLE, 0),sourceInputsText);
-          reporter.incrCounter(Counters.EMITTED_SOURCEINPUTS_DATA_BYTES_EMITTED, sourceInputsText.getLength());
-        }
+        TextBytes valueOut = (_emitBinaryRecords) ? _recordCodec.encode(_topLevelJSONObject) : new TextBytes(_topLevelJSONObject.toString());
+        output.collect(generateOutputKey(_currentKey, CrawlDBKey.Type.KEY_TYPE_MERGED_RECORD, 0),valueOut);
+        emitSourceInputsRecord(output,reporter);
       }
       
       if (_urlsProcessed % FLUSH_INTERVAL == 0) { 
@@ -1117,6 +1208,7 @@ public class CrawlDBMergingReducer implements Reducer<TextBytes, TextBytes ,Text
     _topLevelJSONObject = null;
     _summaryRecord = null;
     _linkSummaryRecord = null;
+    _pendingBinaryRecord = null;
     _types.clear();
     _extHrefs.clear();
     _outputKeyString = null;
@@ -1125,6 +1217,34 @@ public class CrawlDBMergingReducer implements Reducer<TextBytes, TextBytes ,Text
   }
     
   
+  /** 
+   * generate an output key in the form dictated by _emitBinaryKeys 
+   */
+  private TextBytes generateOutputKey(URLFPV2 fp,CrawlDBKey.Type type,long timestamp) throws IOException { 
+    if (_emitBinaryKeys) 
+      return CrawlDBKey.generateBinaryKey(fp, type, timestamp);
+    return CrawlDBKey.generateKey(fp, type, timestamp);
+  }
+  
+  /** 
+   * emit the sample of referencing urls collected for the current url (if any) 
+   * 
+   * @param output
+   * @param reporter
+   * @throws IOException
+   */
+  private void emitSourceInputsRecord(OutputCollector<TextBytes, TextBytes> output, Reporter reporter)throws IOException {
+    // if there is link status available ...
+    if (_sourceSampleSize != 0) {
+      reporter.incrCounter(Counters.EMITTED_SOURCEINPUTS_RECORD, 1);
+      TextBytes sourceInputsText= new TextBytes();
+      sourceInputsText.set(_sourceInputsBuffer.getData(),0,_sourceInputsBuffer.getLength());
+      //System.out.println("Emitting Key:" + CrawlDBKey.generateKey(_currentKey, CrawlDBKey.Type.KEY_TYPE_INCOMING_URLS_SAMPLE, 0));
+      output.collect(generateOutputKey(_currentKey, CrawlDBKey.Type.KEY_TYPE_INCOMING_URLS_SAMPLE, 0),sourceInputsText);
+      reporter.incrCounter(Counters.EMITTED_SOURCEINPUTS_DATA_BYTES_EMITTED, sourceInputsText.getLength());
+    }
+  }
+  
   /** 
    * Extract the fingerprint from the incoming key and potentially trigger a flush if it is indicative of a 
    * primary key transition 
@@ -134,7 +134,10 @@ public class CrawlDBMergingReducerTests extends CrawlDBMergingReducer {
 
     @Override
     public void collect(TextBytes key, TextBytes value) throws IOException {
-      items.add(new Pair<TextBytes,TextBytes>(new TextBytes(key.toString()),new TextBytes(value.toString())));
+      // copy the value bytes as is (merged records may be binary)
+      TextBytes valueCopy = new TextBytes();
+      valueCopy.set(value.getBytes(),value.getOffset(),value.getLength());
+      items.add(new Pair<TextBytes,TextBytes>(new TextBytes(key.toString()),valueCopy));
     } 
   }
   
@@ -342,7 +345,7 @@ public class CrawlDBMergingReducerTests extends CrawlDBMergingReducer {
     }
     
     void updateModelGivenMergedRecord(TextBytes mergedJSON) throws IOException { 
-      JsonObject mergeObject = new JsonParser().parse(mergedJSON.toString()).getAsJsonObject();
+      JsonObject mergeObject = CrawlDBMergeRecordCodec.toJSON(mergedJSON);
       
       source_url = mergeObject.get(TOPLEVEL_SOURCE_URL_PROPRETY).getAsString();
       has_crawl_status = mergeObject.has(TOPLEVEL_SUMMARYRECORD_PROPRETY);
@@ -648,8 +651,7 @@ public class CrawlDBMergingReducerTests extends CrawlDBMergingReducer {
     for (Pair<TextBytes,TextBytes> outputTuple : items) { 
       System.out.println("Key:" + outputTuple.e0);
       try { 
-        JsonParser parser = new JsonParser();
-        JsonElement e = parser.parse(outputTuple.e1.toString());
+        JsonElement e = CrawlDBMergeRecordCodec.toJSON(outputTuple.e1);
         JSONUtils.prettyPrintJSON(e);
       }
       catch (Exception e) { 
@@ -662,6 +664,19 @@ public class CrawlDBMergingReducerTests extends CrawlDBMergingReducer {
   
   @Test
   public void testMerge()throws Exception  {
+    runMerge(false);
+  }
+  
+  /** 
+   * same as testMerge, but with the reducer emitting binary merged records after the first 
+   * step, so that both JSON and binary merged records are consumed 
+   */
+  @Test
+  public void testBinaryMerge()throws Exception  {
+    runMerge(true);
+  }
+  
+  List<Pair<TextBytes,TextBytes>> runMerge(boolean binaryRecords)throws Exception  {
     _sourceInputsBuffer = new DataOutputBuffer(16348*4);
     _sourceInputsTrackingFilter = new URLFPBloomFilter(100000, NUM_HASH_FUNCTIONS, NUM_BITS);
 
@@ -720,6 +735,8 @@ public class CrawlDBMergingReducerTests extends CrawlDBMergingReducer {
 
     // reset bloom filter ... 
     _sourceInputsTrackingFilter = new URLFPBloomFilter(100000, NUM_HASH_FUNCTIONS, NUM_BITS);
+    // switch output format (step 2 reads JSON merged records) 
+    _emitBinaryRecords = binaryRecords;
     // swap items ... 
     ArrayList<Pair<TextBytes,TextBytes>> tuples = collector.items;
     collector.items = new ArrayList<Pair<TextBytes,TextBytes>>();
@@ -773,5 +790,72 @@ public class CrawlDBMergingReducerTests extends CrawlDBMergingReducer {
     System.out.println("MODEL COMP STARTING#########################################");
     Assert.assertEquals(inputModel.compareTo(outputModel),0);
     System.out.println("MODEL COMP DONE    #########################################");
+    
+    return collector.items;
+  }
+  
+  /** 
+   * time decoding / re-encoding the merged records produced by the merge test in 
+   * JSON vs. binary form 
+   */
+  public static void main(String[] args)throws Exception {
+    int iterations = (args.length != 0) ? Integer.parseInt(args[0]) : 100000;
+    
+    ArrayList<JsonObject> mergedRecords = new ArrayList<JsonObject>();
+    for (Pair<TextBytes,TextBytes> tuple : new CrawlDBMergingReducerTests().runMerge(false)) {
+      if (CrawlDBKey.getLongComponentFromKey(tuple.e0,CrawlDBKey.ComponentId.TYPE_COMPONENT_ID) == CrawlDBKey.Type.KEY_TYPE_MERGED_RECORD.ordinal()) { 
+        mergedRecords.add(CrawlDBMergeRecordCodec.toJSON(tuple.e1));
+      }
+    }
+    
+    CrawlDBMergeRecordCodec codec = new CrawlDBMergeRecordCodec();
+    JsonParser parser = new JsonParser();
+    TextBytes jsonRecords[] = new TextBytes[mergedRecords.size()];
+    TextBytes binaryRecords[] = new TextBytes[mergedRecords.size()];
+    long jsonBytes = 0;
+    long binaryBytes = 0;
+    for (int i=0;i<mergedRecords.size();++i) { 
+      jsonRecords[i] = new TextBytes(mergedRecords.get(i).toString());
+      binaryRecords[i] = codec.encode(mergedRecords.get(i));
+      jsonBytes += jsonRecords[i].getLength();
+      binaryBytes += binaryRecords[i].getLength();
+    }
+    System.out.println("Records:" + mergedRecords.size() + " JSON Bytes:" + jsonBytes + " Binary Bytes:" + binaryBytes);
+    
+    for (int pass=0;pass<2;++pass) { 
+      // JSON parse + serialize (what the reducer used to do for every merged record) 
+      long startTime = System.nanoTime();
+      for (int i=0;i<iterations;++i) { 
+        for (TextBytes record : jsonRecords) { 
+          new TextBytes(parser.parse(record.toString()).getAsJsonObject().toString());
+        }
+      }
+      long jsonTime = System.nanoTime() - startTime;
+      
+      // binary decode + encode (a merged record that gets updated) 
+      startTime = System.nanoTime();
+      for (int i=0;i<iterations;++i) { 
+        for (TextBytes record : binaryRecords) { 
+          codec.encode(codec.decodeToJSON(record));
+        }
+      }
+      long binaryTime = System.nanoTime() - startTime;
+      
+      // header only (a merged record that is passed through) 
+      TextBytes sourceURL = new TextBytes();
+      startTime = System.nanoTime();
+      for (int i=0;i<iterations;++i) { 
+        for (TextBytes record : binaryRecords) { 
+          codec.readHeader(record, sourceURL);
+        }
+      }
+      long headerTime = System.nanoTime() - startTime;
+      
+      long recordCount = (long)iterations * mergedRecords.size();
+      System.out.println("Pass:" + pass 
+          + " JSON ns/record:" + (jsonTime / recordCount) 
+          + " Binary ns/record:" + (binaryTime / recordCount)
+          + " Header Only ns/record:" + (headerTime / recordCount));
+    }
   }
 }
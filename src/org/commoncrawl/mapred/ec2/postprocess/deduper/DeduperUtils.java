@@ -18,16 +18,21 @@
 
 package org.commoncrawl.mapred.ec2.postprocess.deduper;
 
+import java.io.BufferedReader;
 import java.io.DataInput;
 import java.io.DataOutput;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.Random;
 import java.util.TreeMap;
 
 import org.apache.commons.logging.Log;
@@ -40,7 +45,6 @@ import org.apache.hadoop.mapred.OutputCollector;
 import org.apache.hadoop.mapred.Reporter;
 import org.commoncrawl.protocol.URLFPV2;
 import org.commoncrawl.util.CCStringUtils;
-import org.commoncrawl.util.GoogleURL;
 import org.commoncrawl.util.IPAddressUtils;
 import org.commoncrawl.util.SimHash;
 import org.commoncrawl.util.TextBytes;
@@ -496,8 +500,6 @@ public class DeduperUtils {
     
     private DataOutputBuffer _dataBuffer = new DataOutputBuffer();
     private DataOutputBuffer _textDataBuffer = new DataOutputBuffer();
-    private int[] id;
-    private int   count;
     JSONSetBuilder setBuilder;
 
 
@@ -540,34 +542,174 @@ public class DeduperUtils {
       return textToPopulate;
     }
         
-    private void collectRoots(Map<Long,TextBytes> rootDomainMap,TextBytes urlSampler,int N,int rootItemIndex)throws IOException  {
-      // iterate the set looking for other items that have the same root
-      for (int j = 0; j < N; ++j) {
-        // ok found a match ... 
-        if (id[j] == rootItemIndex && j != rootItemIndex){
-          long rootDomainA = readLongComponent(_dataBuffer, rootItemIndex, ROOTHASH_COMPONENT_IDX);
-          // OK .. ONE BIG LAST MINUTE HACK :-( - Need to join by root domain text key, not the long value ... :-( 
-          // so we need to extract the key here... from the first matching hit url ... 
-          if (!rootDomainMap.containsKey(rootDomainA)) { 
-            textFromPackedLongInfo(urlSampler,readLongComponent(_dataBuffer, rootItemIndex,TEXT_DATA_COMPONENT_IDX));
-            String rootDomainStr = URLUtils.extractRootDomainName(new GoogleURL(urlSampler.toString()).getHost());
-            if (rootDomainStr != null) { 
-              rootDomainMap.put(rootDomainA, new TextBytes(rootDomainStr));
-            }
+    /**
+     * cluster simhash values, so that any two values within maxHammingDistance
+     * of each other (directly, or through other values) end up in the same set.
+     * 
+     * Rather than comparing every pair, identical values are grouped up front, 
+     * and the bits that vary across the remaining distinct values are split into 
+     * (at least) maxHammingDistance + 1 blocks. Two values within the distance 
+     * differ in at most maxHammingDistance bits, so they agree on every bit of at 
+     * least one block. Sorting the distinct values by each block in turn, and only 
+     * comparing values that share the block, finds exactly the same sets as 
+     * comparing every pair, but the work tracks the number of near matches 
+     * rather than the square of the bucket size.
+     * 
+     * Purely in memory, so it can also be used to re-check a single domain 
+     * outside of the job.
+     * 
+     * @return for each value, the index of the first (lowest indexed) value in its set
+     */
+    public static int[] cluster(long[] simhashes,int maxHammingDistance) {
+      int N = simhashes.length;
+      int parent[] = new int[N];
+      for (int i = 0; i < N; i++)
+        parent[i] = i;
+      
+      if (N != 0) { 
+        // collect distinct values ... 
+        long sorted[] = simhashes.clone();
+        Arrays.sort(sorted);
+        int distinctCount = 0;
+        for (int i=0;i<N;++i) { 
+          if (i == 0 || sorted[i] != sorted[i-1]) { 
+            sorted[distinctCount++] = sorted[i];
+          }
+        }
+        long distinct[] = Arrays.copyOf(sorted, distinctCount);
+        // identical values are trivially in the same set, so join them to the first item carrying the value 
+        int firstItem[] = new int[distinctCount];
+        Arrays.fill(firstItem, -1);
+        for (int i=0;i<N;++i) { 
+          int valueIndex = Arrays.binarySearch(distinct, simhashes[i]);
+          if (firstItem[valueIndex] == -1) { 
+            firstItem[valueIndex] = i;
+          }
+          else { 
+            union(parent,firstItem[valueIndex],i);
+          }
+        }
+        // and match up the distinct values 
+        if (distinctCount > 1) { 
+          clusterDistinctValues(distinct,firstItem,parent,maxHammingDistance);
+        }
+      }
+      
+      int setIds[] = new int[N];
+      for (int i = 0; i < N; i++)
+        setIds[i] = find(parent,i);
+      return setIds;
+    }
+    
+    private static void clusterDistinctValues(long[] distinct,int[] firstItem,int[] parent,int maxHammingDistance) {
+      int D = distinct.length;
+      // only bits that vary across the bucket matter (the rest is mostly the bucket's permutation key)
+      long varyingBits = 0;
+      for (int i=1;i<D;++i) { 
+        varyingBits |= distinct[i] ^ distinct[0];
+      }
+      int varyingBitCount = Long.bitCount(varyingBits);
+      
+      if (varyingBitCount <= maxHammingDistance) { 
+        // every value is within range of every other value
+        for (int i=1;i<D;++i) { 
+          union(parent,firstItem[0],firstItem[i]);
+        }
+        return;
+      }
+      
+      int varyingBitPositions[] = new int[varyingBitCount];
+      for (int bit = 0, i = 0; bit < 64; ++bit) { 
+        if ((varyingBits & (1L << bit)) != 0) { 
+          varyingBitPositions[i++] = bit;
+        }
+      }
+      
+      // block key and value index are packed into a single long for sorting, 
+      // so blocks may need to be narrower (i.e. more of them) for large buckets
+      int indexBits = 32 - Integer.numberOfLeadingZeros(D);
+      long indexMask = (1L << indexBits) - 1;
+      int maxBlockBits = 63 - indexBits;
+      int blockCount = Math.max(maxHammingDistance + 1, (varyingBitCount + maxBlockBits - 1) / maxBlockBits);
+      
+      long packed[] = new long[D];
+      
+      for (int block=0;block<blockCount;++block) { 
+        int blockStart = (block * varyingBitCount) / blockCount;
+        int blockEnd = ((block + 1) * varyingBitCount) / blockCount;
+        
+        for (int i=0;i<D;++i) { 
+          long blockKey = 0;
+          for (int j=blockStart;j<blockEnd;++j) { 
+            blockKey = (blockKey << 1) | ((distinct[i] >>> varyingBitPositions[j]) & 1L);
+          }
+          packed[i] = (blockKey << indexBits) | i;
+        }
+        Arrays.sort(packed);
+        
+        // compare values within each run of values sharing the block ... 
+        int runStart = 0;
+        while (runStart < D) { 
+          long blockKey = packed[runStart] >>> indexBits;
+          int runEnd = runStart + 1;
+          while (runEnd < D && (packed[runEnd] >>> indexBits) == blockKey) { 
+            runEnd++;
           }
-          // ok now do the same thing for the second component ... 
-          long rootDomainB = readLongComponent(_dataBuffer, j, ROOTHASH_COMPONENT_IDX);
-          if (rootDomainA != rootDomainB) { 
-            if (!rootDomainMap.containsKey(rootDomainB)) { 
-              textFromPackedLongInfo(urlSampler,readLongComponent(_dataBuffer, j,TEXT_DATA_COMPONENT_IDX));
-              String rootDomainStr = URLUtils.extractRootDomainName(new GoogleURL(urlSampler.toString()).getHost());
-              if (rootDomainStr != null) { 
-                rootDomainMap.put(rootDomainB, new TextBytes(rootDomainStr));
+          for (int i=runStart;i<runEnd;++i) { 
+            int valueA = (int)(packed[i] & indexMask);
+            for (int j=i+1;j<runEnd;++j) { 
+              int valueB = (int)(packed[j] & indexMask);
+              // if not already matched ... 
+              if (find(parent,firstItem[valueA]) != find(parent,firstItem[valueB])) { 
+                if (SimHash.hammingDistance(distinct[valueA], distinct[valueB]) <= maxHammingDistance) { 
+                  union(parent,firstItem[valueA],firstItem[valueB]);
+                }
               }
-            }                    
+            }
+          }
+          runStart = runEnd;
+        }
+      }
+    }
+    
+    /** 
+     * reference implementation of cluster (compares every pair)
+     */
+    static int[] clusterPairwise(long[] simhashes,int maxHammingDistance) { 
+      int N = simhashes.length;
+      int parent[] = new int[N];
+      for (int i = 0; i < N; i++)
+        parent[i] = i;
+      for (int i=0;i<N;++i) { 
+        for (int j=i+1;j<N;++j) { 
+          if (SimHash.hammingDistance(simhashes[i], simhashes[j]) <= maxHammingDistance) { 
+            union(parent,i,j);
           }
         }
       }
+      int setIds[] = new int[N];
+      for (int i = 0; i < N; i++)
+        setIds[i] = find(parent,i);
+      return setIds;
+    }
+    
+    // Return component identifier for component containing p (halving the path as we go)
+    private static int find(int[] parent,int p) {
+      while (parent[p] != p) { 
+        parent[p] = parent[parent[p]];
+        p = parent[p];
+      }
+      return p;
+    }
+    
+    // merge components containing p and q (the lowest index becomes the identifier)
+    private static void union(int[] parent,int p,int q) {
+      int pid = find(parent,p);
+      int qid = find(parent,q);
+      if (pid < qid) 
+        parent[qid] = pid;
+      else if (qid < pid)
+        parent[pid] = qid;
     }
     
     private static final int EXTRA_DOMAIN_MAX_SAMPLE_SIZE = 100;
@@ -606,88 +748,42 @@ public class DeduperUtils {
       
       if (itemCount < OVERFLOW_THRESHOLD) { 
         // count entries in data buffer 
-        int N = count = _dataBuffer.size() / SIZEOF_DATABUF_ENTRY;
-        // allocate id array 
-        id = new int[N];
-        // assume all sets are disjoint upfront ... 
-        for (int i = 0; i < N; i++)
-          id[i] = i;
-        // ok time to start iteration ... 
+        int N = _dataBuffer.size() / SIZEOF_DATABUF_ENTRY;
+        
+        long simhashes[] = new long[N];
         for (int i=0;i<N;++i) { 
-          // forward scan potential match candidates ... 
-          for (int j=i+1;j<N;++j) { 
-            // if not already matched ... 
-            if (id[i] != id[j]) { 
-              if (SimHash.hammingDistance(
-                  readLongComponent(_dataBuffer, i, SIMHASH_COMPONENT_IDX),
-                  readLongComponent(_dataBuffer, j, SIMHASH_COMPONENT_IDX)) <= maxHammingDistance) { 
-                // match ...
-                // union it ... 
-                union(j,i);
-              }
-            }
+          simhashes[i] = readLongComponent(_dataBuffer, i, SIMHASH_COMPONENT_IDX);
+        }
+        // build sets ... 
+        int setIds[] = cluster(simhashes, maxHammingDistance);
+        
+        // chain the members of each set together in index order (a set's id is its first member)
+        int nextMember[] = new int[N];
+        int lastMember[] = new int[N];
+        for (int i=0;i<N;++i) { 
+          nextMember[i] = -1;
+          if (setIds[i] == i) { 
+            lastMember[i] = i;
+          }
+          else { 
+            nextMember[lastMember[setIds[i]]] = i;
+            lastMember[setIds[i]] = i;
           }
         }
         
         // time to emit sets ... 
         for (int i = 0; i < N; ++i) {
-          // see if this is a root item 
-          if (id[i] == i) {
-            // allocate hash set to contain root Domains
-            HashMap<Long,TextBytes> rootDomainMap = new HashMap<Long,TextBytes>();
-            // and a text bytes to collect url data 
-            TextBytes urlSampler = new TextBytes();
-            // collect roots ... 
-            collectRoots(rootDomainMap, urlSampler, N, i);
-            
-            // ok walk roots... 
-            for (Map.Entry<Long,TextBytes> rootEntry : rootDomainMap.entrySet()) { 
-              // for each root ... walk items 
-              // reset set builder ... 
-              setBuilder.reset();
-              // reset extra domain item count 
-              int extraDomainItemCount = 0;
-              
-              // iterate the set 
-              for (int j = 0; j < N; ++j) {
-                // if in set ... 
-                if (id[j] == i){
-                  // get root domain of entry ... 
-                  long itemRootDomain = readLongComponent(_dataBuffer, j, ROOTHASH_COMPONENT_IDX);
-  
-                  // IFF pass 0 .. only process documents from our root domain ...
-                  if (itemRootDomain == rootEntry.getKey()) { 
-                    // add item no matter what ... 
-                    setBuilder.add( 
-                        readLongComponent(_dataBuffer, j, ROOTHASH_COMPONENT_IDX),
-                        readLongComponent(_dataBuffer, j, URLHASH_COMPONENT_IDX),
-                        readLongComponent(_dataBuffer, j, IP_AND_LEN_COMPONENT_IDX),
-                        textFromPackedLongInfo(urlSampler,readLongComponent(_dataBuffer, j,TEXT_DATA_COMPONENT_IDX)));
-                  }
-                  else { 
-                    if (extraDomainItemCount++ < EXTRA_DOMAIN_MAX_SAMPLE_SIZE) { 
-                      setBuilder.add( 
-                          readLongComponent(_dataBuffer, j, ROOTHASH_COMPONENT_IDX),
-                          readLongComponent(_dataBuffer, j, URLHASH_COMPONENT_IDX),
-                          readLongComponent(_dataBuffer, j, IP_AND_LEN_COMPONENT_IDX),
-                          textFromPackedLongInfo(urlSampler,readLongComponent(_dataBuffer, j,TEXT_DATA_COMPONENT_IDX)));
-                    }
-                  }
-                }
-              }
-              // emit data ...
-              TextBytes setDataOut = setBuilder.flush();
-              
-              collector.collect(rootEntry.getValue(), setDataOut);
-            }
+          // see if this is a root item of a set with more than one member
+          if (setIds[i] == i && nextMember[i] != -1) {
+            emitSet(i,nextMember,collector);
           }
         } 
       }
       else { 
         LOG.error("Hit too many items in set! - skipping");
-        reporter.incrCounter("", "skipping-overflow-set", 1);
-        
-        int N = count = _dataBuffer.size() / SIZEOF_DATABUF_ENTRY;
+        if (reporter != null) { 
+          reporter.incrCounter("", "skipping-overflow-set", 1);
+        }
         
         for (int i=0;i<100;++i) {
           TextBytes urlSampler = new TextBytes();
@@ -696,26 +792,94 @@ public class DeduperUtils {
         }
       }
     }
-
-    // Return component identifier for component containing p
-    int find(int p) {
-      return id[p];
-    }
-
-    // are elements p and q in the same component?
-    boolean connected(int p, int q) {
-      return id[p] == id[q];
+    
+    private void emitSet(int firstMember,int[] nextMember,OutputCollector<TextBytes,TextBytes> collector) throws IOException { 
+      // and a text bytes to collect url data 
+      TextBytes urlSampler = new TextBytes();
+      
+      int memberCount = 0;
+      for (int j = firstMember; j != -1; j = nextMember[j]) { 
+        memberCount++;
+      }
+      // members and their root domains, in index order
+      int members[] = new int[memberCount];
+      long memberRoots[] = new long[memberCount];
+      // allocate hash set to contain root Domains
+      HashMap<Long,TextBytes> rootDomainMap = new HashMap<Long,TextBytes>();
+      // and the positions (in members) of the members of each root 
+      HashMap<Long,ArrayList<Integer>> rootMembers = new HashMap<Long,ArrayList<Integer>>();
+      
+      int position = 0;
+      for (int j = firstMember; j != -1; j = nextMember[j], ++position) { 
+        long rootDomain = readLongComponent(_dataBuffer, j, ROOTHASH_COMPONENT_IDX);
+        members[position] = j;
+        memberRoots[position] = rootDomain;
+        
+        ArrayList<Integer> positions = rootMembers.get(rootDomain);
+        if (positions == null) { 
+          positions = new ArrayList<Integer>();
+          rootMembers.put(rootDomain, positions);
+        }
+        positions.add(position);
+        
+        // OK .. ONE BIG LAST MINUTE HACK :-( - Need to join by root domain text key, not the long value ... :-( 
+        // so we need to extract the key here... from the first matching hit url ... 
+        if (!rootDomainMap.containsKey(rootDomain)) { 
+          textFromPackedLongInfo(urlSampler,readLongComponent(_dataBuffer, j,TEXT_DATA_COMPONENT_IDX));
+          TextBytes rootDomainText = new TextBytes();
+          if (URLUtils.extractRootDomainNameGivenURL(urlSampler, rootDomainText)) { 
+            rootDomainMap.put(rootDomain, rootDomainText);
+          }
+        }
+      }
+      
+      // ok walk roots... 
+      for (Map.Entry<Long,TextBytes> rootEntry : rootDomainMap.entrySet()) { 
+        long rootDomain = rootEntry.getKey();
+        ArrayList<Integer> ownPositions = rootMembers.get(rootDomain);
+        // reset set builder ... 
+        setBuilder.reset();
+        // reset extra domain item count 
+        int extraDomainItemCount = 0;
+        int ownItemCount = 0;
+        
+        // all items from our root domain, plus a sample of items from other domains, in index order
+        position = 0;
+        while (position < memberCount) { 
+          if (memberRoots[position] == rootDomain) { 
+            addToSet(members[position],urlSampler);
+            ownItemCount++;
+            position++;
+          }
+          else { 
+            if (extraDomainItemCount++ < EXTRA_DOMAIN_MAX_SAMPLE_SIZE) { 
+              addToSet(members[position],urlSampler);
+            }
+            if (extraDomainItemCount < EXTRA_DOMAIN_MAX_SAMPLE_SIZE) { 
+              position++;
+            }
+            else { 
+              // sample is full - skip straight to the next item from our root domain
+              if (ownItemCount == ownPositions.size()) { 
+                break;
+              }
+              position = ownPositions.get(ownItemCount);
+            }
+          }
+        }
+        // emit data ...
+        TextBytes setDataOut = setBuilder.flush();
+        
+        collector.collect(rootEntry.getValue(), setDataOut);
+      }
     }
-
-    // merge components containing p and q
-    void union(int p, int q) {
-      if (connected(p, q))
-        return;
-      int pid = id[p];
-      for (int i = 0; i < id.length; i++)
-        if (id[i] == pid)
-          id[i] = id[q];
-      count--;
+    
+    private void addToSet(int index,TextBytes urlSampler) throws IOException { 
+      setBuilder.add( 
+          readLongComponent(_dataBuffer, index, ROOTHASH_COMPONENT_IDX),
+          readLongComponent(_dataBuffer, index, URLHASH_COMPONENT_IDX),
+          readLongComponent(_dataBuffer, index, IP_AND_LEN_COMPONENT_IDX),
+          textFromPackedLongInfo(urlSampler,readLongComponent(_dataBuffer, index,TEXT_DATA_COMPONENT_IDX)));
     }
   }
   
@@ -935,12 +1099,107 @@ public class DeduperUtils {
     }
     
   }
+  /**
+   * re-check a single domain (or any other set of documents) in memory. 
+   * 
+   * reads lines of the form url<tab>simhash (as a signed decimal long) and 
+   * prints the sets the dedupe job would emit for them.
+   */
+  static void recheck(String fileName,int maxHammingDistance) throws IOException { 
+    ArrayList<DeduperValue> values = new ArrayList<DeduperValue>();
+    BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(fileName),Charset.forName("UTF-8")));
+    try { 
+      String line;
+      while ((line = reader.readLine()) != null) { 
+        String parts[] = line.split("\t");
+        if (parts.length < 2) 
+          continue;
+        URLFPV2 fp = URLUtils.getURLFPV2FromURL(parts[0]);
+        if (fp == null) { 
+          System.err.println("Skipping Invalid URL:" + parts[0]);
+          continue;
+        }
+        values.add(new DeduperValue(Long.parseLong(parts[1].trim()),fp.getRootDomainHash(),fp.getUrlHash(),0,0,new TextBytes(parts[0])));
+      }
+    }
+    finally { 
+      reader.close();
+    }
+    
+    new SimhashMatcher().emitMatches(maxHammingDistance, values.iterator(), new OutputCollector<TextBytes, TextBytes>() {
+
+      @Override
+      public void collect(TextBytes key, TextBytes value) throws IOException {
+        System.out.println("Root:" + key 
+            + " JSON: " + value.toString() );
+      }
+    }, null);
+  }
+  
+  /** 
+   * time SimhashMatcher.cluster against the pairwise reference on skewed buckets 
+   * (a few heavily duplicated boilerplate pages plus random noise), checking that 
+   * both produce the same sets 
+   */
+  static void benchmarkClustering() { 
+    Random random = new Random(42);
+    int sizes[] = { 1000, 5000, 20000, 50000 };
+    for (int size : sizes) { 
+      // the bucket's permutation key
+      long keyBits = random.nextLong() & 0xFFFF000000000000L;
+      long boilerplate[] = new long[5];
+      for (int i=0;i<boilerplate.length;++i) { 
+        boilerplate[i] = keyBits | (random.nextLong() & 0x0000FFFFFFFFFFFFL);
+      }
+      long simhashes[] = new long[size];
+      for (int i=0;i<size;++i) { 
+        if (random.nextInt(10) < 8) { 
+          // near copy of a boilerplate page (skewed towards the first) 
+          long value = boilerplate[Math.min(random.nextInt(8),boilerplate.length - 1)];
+          int flips = random.nextInt(4);
+          for (int j=0;j<flips;++j) { 
+            value ^= 1L << random.nextInt(48);
+          }
+          simhashes[i] = value;
+        }
+        else { 
+          simhashes[i] = keyBits | (random.nextLong() & 0x0000FFFFFFFFFFFFL);
+        }
+      }
+      
+      long timeStart = System.currentTimeMillis();
+      int setIds[] = SimhashMatcher.cluster(simhashes, 3);
+      long clusterTime = System.currentTimeMillis() - timeStart;
+      
+      timeStart = System.currentTimeMillis();
+      int expectedSetIds[] = SimhashMatcher.clusterPairwise(simhashes, 3);
+      long pairwiseTime = System.currentTimeMillis() - timeStart;
+      
+      Assert.assertTrue(Arrays.equals(setIds, expectedSetIds));
+      System.out.println("Bucket Size:" + size + " Cluster Time:" + clusterTime + " MS Pairwise Time:" + pairwiseTime + " MS");
+    }
+  }
+  
   /** 
    * 
    * @param args
    */
   public static void main(String[] args) throws IOException {
     
+    if (args.length != 0 && args[0].equals("--benchmark")) { 
+      benchmarkClustering();
+      return;
+    }
+    else if (args.length != 0 && args[0].equals("--recheck")) { 
+      if (args.length < 2) { 
+        System.err.println("usage: DeduperUtils --recheck <url<tab>simhash file> [maxHammingDistance]");
+        return;
+      }
+      // default to the distance used by Stage1Reducer
+      recheck(args[1],(args.length > 2) ? Integer.parseInt(args[2]) : 2);
+      return;
+    }
+    
     URLFPBloomFilter filter = new URLFPBloomFilter(JSONSetBuilder.NUM_ELEMENTS, JSONSetBuilder.NUM_HASH_FUNCTIONS, JSONSetBuilder.NUM_BITS);
     DescriptiveStatistics filterClearStats = new DescriptiveStatistics();
     for (int i=0;i<1000;++i) { 
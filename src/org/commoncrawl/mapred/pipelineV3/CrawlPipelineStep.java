@@ -112,6 +112,18 @@ public abstract class CrawlPipelineStep {
     return new Path[0];
   }
 
+  /**
+   * the number of slots (out of the task's slot budget) this step occupies
+   * while running. overload for steps that launch more than one job at a time,
+   * or whose jobs take up most of the cluster. a task run as a step runs its
+   * own steps within this many slots.
+   * 
+   * @return
+   */
+  public int getRequiredSlots() {
+    return 1;
+  }
+
   public String getDescription() {
     if (_task != null) {
       return _task.getDescription() + " - Step(" + getName() + "):";
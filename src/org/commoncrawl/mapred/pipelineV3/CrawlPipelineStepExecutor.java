@@ -0,0 +1,345 @@
+/**
+ * Copyright 2012 - CommonCrawl Foundation
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ **/
+package org.commoncrawl.mapred.pipelineV3;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.util.StringUtils;
+
+/**
+ * Runs the steps of a task as a dependency graph, rather than one after
+ * another.
+ *
+ * A step depends on the sibling steps (or sub-tasks) that produce the paths
+ * returned by its getDependencies. Paths that no sibling produces are inputs
+ * from outside the task, and are only checked by isRunnable. A step that
+ * declares no dependencies at all depends on the step before it, so tasks
+ * whose steps don't declare their inputs still run in sequence.
+ *
+ * Ready steps are started as long as the slots they need (see
+ * CrawlPipelineStep.getRequiredSlots) fit in the task's slot budget. A step
+ * needing more slots than the budget runs on its own. A sub-task is charged
+ * its getRequiredSlots like any other step, and its own steps then share
+ * those slots, so nested tasks stay within the top level budget. Steps that
+ * are already complete are skipped, as before, so a failed run picks up where
+ * it left off. The wall time of each step is recorded, and the critical path
+ * logged when the task finishes.
+ *
+ * @author rana
+ *
+ */
+class CrawlPipelineStepExecutor {
+
+  /** the maximum number of slots a task's concurrently running steps may use **/
+  public static final String SLOT_BUDGET_PROPERTY = "org.commoncrawl.pipeline.slot.budget";
+  public static final int    DEFAULT_SLOT_BUDGET  = 1;
+
+  private static class StepNode {
+
+    StepNode(CrawlPipelineStep step, int index) {
+      this.step = step;
+      this.index = index;
+    }
+
+    final CrawlPipelineStep step;
+    final int               index;
+    final List<StepNode>    dependencies = new ArrayList<StepNode>();
+    final List<StepNode>    dependents   = new ArrayList<StepNode>();
+    int                     pendingDependencies;
+    boolean                 done         = false;
+    // wall time spent running the step (zero if it was already complete)
+    long                    wallTime     = 0;
+    // the end of the longest chain of steps ending with this one
+    long                    pathTime     = 0;
+    StepNode                criticalPredecessor;
+  }
+
+  private static class StepResult {
+
+    StepResult(StepNode node, long wallTime, IOException exception) {
+      this.node = node;
+      this.wallTime = wallTime;
+      this.exception = exception;
+    }
+
+    final StepNode    node;
+    final long        wallTime;
+    final IOException exception;
+  }
+
+  private final CrawlPipelineTask                _task;
+  private final int                              _slotBudget;
+  private final ArrayList<StepNode>              _nodes     = new ArrayList<StepNode>();
+  private final LinkedBlockingQueue<StepResult>  _completionQueue = new LinkedBlockingQueue<StepResult>();
+  private final Map<String, Long>                _wallTimes = new HashMap<String, Long>();
+
+  CrawlPipelineStepExecutor(CrawlPipelineTask task, List<CrawlPipelineStep> steps) throws IOException {
+    _task = task;
+    if (task._slotBudget != -1) {
+      // a sub-task, limited to the slots its parent charged it
+      _slotBudget = task._slotBudget;
+    } else {
+      _slotBudget = Math.max(1, task.getConf().getInt(SLOT_BUDGET_PROPERTY, DEFAULT_SLOT_BUDGET));
+    }
+
+    for (CrawlPipelineStep step : steps) {
+      _nodes.add(new StepNode(step, _nodes.size()));
+    }
+    buildGraph();
+  }
+
+  /** wall time (in milliseconds) of each step that was run, by step name **/
+  Map<String, Long> getStepWallTimes() {
+    return _wallTimes;
+  }
+
+  private void buildGraph() throws IOException {
+    // the output dir of each step (and of the steps within sub-tasks, which count as the sub-task's output)
+    Map<StepNode, List<Path>> outputs = new HashMap<StepNode, List<Path>>();
+    for (StepNode node : _nodes) {
+      List<Path> paths = new ArrayList<Path>();
+      collectOutputDirs(node.step, paths);
+      outputs.put(node, paths);
+    }
+
+    for (StepNode node : _nodes) {
+      Path dependencies[] = node.step.getDependencies();
+      if (dependencies.length == 0) {
+        // undeclared inputs - keep the original ordering
+        if (node.index != 0) {
+          addEdge(_nodes.get(node.index - 1), node);
+        }
+        continue;
+      }
+      for (Path dependency : dependencies) {
+        for (StepNode candidate : _nodes) {
+          if (candidate != node && producesPath(outputs.get(candidate), dependency)) {
+            if (candidate.index > node.index) {
+              throw new IOException(node.step.getDescription() + " depends on the output of a later step:"
+                  + candidate.step.getDescription());
+            }
+            addEdge(candidate, node);
+          }
+        }
+      }
+    }
+  }
+
+  private static void collectOutputDirs(CrawlPipelineStep step, List<Path> pathsOut) throws IOException {
+    pathsOut.add(step.getOutputDir());
+    if (step.isTask()) {
+      for (CrawlPipelineStep subStep : ((CrawlPipelineTask) step).getSteps()) {
+        collectOutputDirs(subStep, pathsOut);
+      }
+    }
+  }
+
+  private static boolean producesPath(List<Path> outputDirs, Path path) {
+    // compare paths without scheme and authority, as dependencies may or may not be qualified
+    String pathString = path.toUri().getPath();
+    for (Path outputDir : outputDirs) {
+      String outputString = outputDir.toUri().getPath();
+      if (pathString.equals(outputString) || pathString.startsWith(outputString + Path.SEPARATOR)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static void addEdge(StepNode from, StepNode to) {
+    if (!to.dependencies.contains(from)) {
+      to.dependencies.add(from);
+      from.dependents.add(to);
+      to.pendingDependencies++;
+    }
+  }
+
+  /**
+   * run the steps
+   *
+   * @return 0 if all steps completed, 1 otherwise
+   * @throws IOException
+   */
+  int run() throws IOException {
+
+    LinkedList<StepNode> readyList = new LinkedList<StepNode>();
+    for (StepNode node : _nodes) {
+      if (node.pendingDependencies == 0) {
+        readyList.add(node);
+      }
+    }
+
+    ExecutorService executor = Executors.newCachedThreadPool();
+
+    int slotsInUse = 0;
+    int runningCount = 0;
+    int doneCount = 0;
+    boolean failed = false;
+
+    try {
+      while (doneCount != _nodes.size()) {
+
+        // start whatever is ready and fits in the budget (in task order)
+        while (!failed && readyList.size() != 0) {
+          final StepNode node = readyList.getFirst();
+
+          if (node.step.isComplete()) {
+            readyList.removeFirst();
+            stepDone(node, 0, readyList);
+            doneCount++;
+            continue;
+          }
+
+          int slots = Math.min(_slotBudget, Math.max(1, node.step.getRequiredSlots()));
+          if (runningCount != 0 && slotsInUse + slots > _slotBudget) {
+            break;
+          }
+          readyList.removeFirst();
+
+          if (!node.step.isRunnable()) {
+            _task.getLogger().info(_task.getDescription() + " - Step:" + node.step.getName() + " is not runnable!");
+            failed = true;
+            break;
+          }
+          if (node.step.isTask()) {
+            // the sub-task runs its own steps within the slots it is charged here
+            ((CrawlPipelineTask) node.step)._slotBudget = slots;
+            ((CrawlPipelineTask) node.step).initTask(_task.getArgs());
+          }
+
+          _task.getLogger().info(_task.getDescription() + " - Running Step:" + node.step.getName()
+              + " Slots In Use:" + (slotsInUse + slots) + " of:" + _slotBudget);
+
+          slotsInUse += slots;
+          runningCount++;
+
+          executor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+              long startTime = System.currentTimeMillis();
+              IOException exception = null;
+              try {
+                node.step.doStep();
+              } catch (IOException e) {
+                exception = e;
+              } catch (Throwable e) {
+                exception = new IOException(e);
+              } finally {
+                // always post a result, or run would wait for this step forever
+                _completionQueue.add(new StepResult(node, System.currentTimeMillis() - startTime, exception));
+              }
+            }
+          });
+        }
+
+        if (runningCount == 0) {
+          if (failed || readyList.size() == 0) {
+            // failed, or nothing left that can run
+            break;
+          }
+          continue;
+        }
+
+        // wait for a running step to finish
+        StepResult result;
+        try {
+          result = _completionQueue.take();
+        } catch (InterruptedException e) {
+          throw new IOException(e);
+        }
+
+        runningCount--;
+        slotsInUse -= Math.min(_slotBudget, Math.max(1, result.node.step.getRequiredSlots()));
+
+        if (result.exception != null) {
+          _task.getLogger().error(
+              _task.getDescription() + " - Step:" + result.node.step.getName() + " failed with Exception:"
+                  + StringUtils.stringifyException(result.exception));
+          failed = true;
+        } else {
+          _task.getLogger().info(
+              _task.getDescription() + " - Finished Running Step:" + result.node.step.getName() + " in "
+                  + result.wallTime + " MS");
+          _wallTimes.put(result.node.step.getName(), result.wallTime);
+          stepDone(result.node, result.wallTime, readyList);
+          doneCount++;
+        }
+      }
+    } finally {
+      executor.shutdown();
+    }
+
+    logCriticalPath();
+
+    if (failed || doneCount != _nodes.size()) {
+      return 1;
+    }
+    return 0;
+  }
+
+  private void stepDone(StepNode node, long wallTime, LinkedList<StepNode> readyList) {
+    node.done = true;
+    node.wallTime = wallTime;
+    node.pathTime = wallTime;
+    for (StepNode dependency : node.dependencies) {
+      if (dependency.pathTime + wallTime > node.pathTime) {
+        node.pathTime = dependency.pathTime + wallTime;
+        node.criticalPredecessor = dependency;
+      }
+    }
+    for (StepNode dependent : node.dependents) {
+      if (--dependent.pendingDependencies == 0) {
+        // keep the ready list in task order
+        int insertAt = 0;
+        while (insertAt < readyList.size() && readyList.get(insertAt).index < dependent.index) {
+          insertAt++;
+        }
+        readyList.add(insertAt, dependent);
+      }
+    }
+  }
+
+  private void logCriticalPath() {
+    StepNode last = null;
+    for (StepNode node : _nodes) {
+      if (node.done && node.wallTime != 0 && (last == null || node.pathTime > last.pathTime)) {
+        last = node;
+      }
+    }
+    if (last != null) {
+      StringBuilder path = new StringBuilder();
+      for (StepNode node = last; node != null; node = node.criticalPredecessor) {
+        if (path.length() != 0) {
+          path.insert(0, " -> ");
+        }
+        path.insert(0, node.step.getName() + "(" + node.wallTime + " MS)");
+      }
+      _task.getLogger().info(_task.getDescription() + " - Critical Path (" + last.pathTime + " MS):" + path);
+    }
+  }
+}
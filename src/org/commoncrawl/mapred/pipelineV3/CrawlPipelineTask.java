@@ -34,7 +34,10 @@ import org.commoncrawl.crawl.common.internal.CrawlEnvironment;
 import com.google.common.collect.ImmutableList;
 
 /**
- * A Task, consisting of a set of map-reduce steps that are run in sequence
+ * A Task, consisting of a set of map-reduce steps. Steps run in sequence,
+ * unless they declare their inputs (via getDependencies), in which case
+ * independent steps may run concurrently, up to the task's slot budget (see
+ * CrawlPipelineStepExecutor).
  * 
  * @author rana
  * 
@@ -50,6 +53,8 @@ public abstract class CrawlPipelineTask extends CrawlPipelineStep implements
   protected String             _args[];
   protected Path _identityBasePath;
   protected Path _rootOutputDir;
+  /** the slots the parent task charged this task (when run as a step), or -1 for a top level task **/
+  int _slotBudget = -1;
 
   /**
    * constructor for top level task
@@ -328,36 +333,15 @@ public abstract class CrawlPipelineTask extends CrawlPipelineStep implements
       if (_steps.size() != 0) {
         CrawlPipelineStep finalStep = _steps.get(_steps.size() - 1);
 
-        for (CrawlPipelineStep step : _steps) {
-          // getLogger().info(getDescription() + " - Processing Step:" +
-          // step.getName());
-          if (!step.isComplete()) {
-            // getLogger().info(getDescription() + " - Step:" + step.getName() +
-            // " needs running. Checking dependencies");
-
-            if (!step.isRunnable()) {
-              getLogger().info(
-                  getDescription() + " - Step:" + step.getName()
-                      + " is not runnable!");
-              return 1;
-            } else {
-              if (step.isTask()) { 
-                ((CrawlPipelineTask)step).initTask(_args);
-              }
-              getLogger().info(
-                  getDescription() + " - Running Step:" + step.getName());
-              step.doStep();
-              getLogger().info(
-                  getDescription() + " - Finished Running Step:"
-                      + step.getName());
-            }
-          }
-          if (step == finalStep) {
-            getLogger().info(
-                getDescription() + " Final Step Complete - Calling Finalize");
-            finalStepComplete(step, step.getOutputDir());
-          }
+        CrawlPipelineStepExecutor executor = new CrawlPipelineStepExecutor(this, _steps);
+
+        int result = executor.run();
+        if (result != 0) {
+          return result;
         }
+        getLogger().info(
+            getDescription() + " Final Step Complete - Calling Finalize");
+        finalStepComplete(finalStep, finalStep.getOutputDir());
       }
     } catch (IOException e) {
       getLogger().error(
@@ -28,6 +28,7 @@ import org.commoncrawl.util.FlexBuffer;
 import org.commoncrawl.util.GoogleURL;
 import org.commoncrawl.util.SuperDomainList;
 import org.commoncrawl.util.TextBytes;
+import org.commoncrawl.util.URLCanonicalizer;
 import org.commoncrawl.util.URLUtils;
 
 import com.google.common.collect.Sets;
@@ -79,6 +80,25 @@ public class PartitionUtils {
 
   public static boolean generatePartitionKeyGivenURL(Set<Long> superDomainIdList, TextBytes urlKey, int type,
       TextBytes partitionKeyOut) {
+    // canonicalize straight from the key bytes if possible (avoids the String
+    // decode and the JNI round trip)
+    URLCanonicalizer canonicalizer = URLCanonicalizer.get();
+    int status = canonicalizer.canonicalize(urlKey);
+    if (status == URLCanonicalizer.INVALID) {
+      return false;
+    } else if (status == URLCanonicalizer.CANONICAL) {
+      String domain = canonicalizer.getHost();
+      String rootDomain = URLUtils.extractRootDomainName(domain);
+      if (rootDomain != null) {
+        long domainFP = SuperDomainList.domainFingerprintGivenName(rootDomain);
+        if (!superDomainIdList.contains(domainFP)) {
+          domain = rootDomain;
+        }
+        partitionKeyOut.set(domain + ":" + Integer.toString(type) + ":" + canonicalizer.getCanonicalURL());
+        return true;
+      }
+      return false;
+    }
     GoogleURL urlObject = new GoogleURL(urlKey.toString());
     if (urlObject.isValid()) {
       return generatePartitionKeyGivenURL(superDomainIdList, urlObject, type, partitionKeyOut);
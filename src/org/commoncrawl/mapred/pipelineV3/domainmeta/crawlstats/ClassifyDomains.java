@@ -39,6 +39,11 @@ public class ClassifyDomains extends CrawlPipelineStep {
     return LOG;
   }
 
+  @Override
+  public Path[] getDependencies() throws IOException {
+    return new Path[] { getOutputDirForStep(CollectSubDomainStatsStep.class) };
+  }
+
   @Override
   public void runStep(Path outputPathLocation) throws IOException {
     JobConf job = new JobBuilder("Classify Domains", new Configuration())
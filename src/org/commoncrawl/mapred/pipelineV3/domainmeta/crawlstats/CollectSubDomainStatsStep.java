@@ -58,6 +58,14 @@ public class CollectSubDomainStatsStep extends CrawlPipelineStep {
     return LOG;
   }
 
+  @Override
+  public Path[] getDependencies() throws IOException {
+    return new Path[] { 
+        getOutputDirForStep(JoinDomainMetadataStep.class),
+        new Path(getRootTask().getOutputDirForStep(GenSuperDomainListStep.class), "part-00000") 
+    };
+  }
+
   @Override
   public void runStep(Path outputPathLocation) throws IOException {
     Configuration conf = new Configuration();
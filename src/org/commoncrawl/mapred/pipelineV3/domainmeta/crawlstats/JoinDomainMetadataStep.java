@@ -55,6 +55,15 @@ public class JoinDomainMetadataStep extends CrawlPipelineStep {
   public static String TAG_BLEKKODATA = "2";
   public static String TAG_CRAWLSTATS = "3";
   
+  @Override
+  public Path[] getDependencies() throws IOException {
+    return new Path[] { 
+        getOutputDirForStep(GenDomainRankStep.class),
+        getOutputDirForStep(MergeNewDomainStatsStep.class),
+        new Path(CrawlDBCommon.BLEKKO_DOMAIN_METADATA_PATH) 
+    };
+  }
+  
   @Override
   public void runStep(Path outputPathLocation) throws IOException {
 
@@ -53,6 +53,11 @@ public class MergeNewDomainStatsStep extends CrawlPipelineStep {
     NUMBER_FORMAT.setGroupingUsed(false);
   }    
 
+  @Override
+  public Path[] getDependencies() throws IOException {
+    return new Path[] { getOutputDirForStep(NewCrawlStatsCollectorStep.class) };
+  }
+
   @Override
   public void runStep(Path outputPathLocation) throws IOException {
     
@@ -70,6 +70,18 @@ public class NewCrawlStatsCollectorStep extends CrawlPipelineStep{
     return LOG;
   }
 
+  @Override
+  public Path[] getDependencies() throws IOException {
+    DomainMetadataTask rootTask = (DomainMetadataTask) getRootTask();
+    
+    ImmutableList<Path> paths = new ImmutableList.Builder<Path>()
+      .addAll(rootTask.getRestrictedMergeDBDataPaths())
+      .add(new Path(getOutputDirForStep(GenSuperDomainListStep.class), "part-00000"))
+      .build();
+    
+    return paths.toArray(new Path[0]);
+  }
+
   @Override
   public void runStep(Path outputPathLocation) throws IOException {
     LOG.info("Task Identity Path is:" + getTaskIdentityPath());
@@ -64,6 +64,13 @@ public class TypeAndRelStatsCollectorStep extends CrawlPipelineStep  {
     return LOG;
   }
 
+  @Override
+  public Path[] getDependencies() throws IOException {
+    // only reads the merge db, so can run alongside the other stats steps
+    DomainMetadataTask rootTask = (DomainMetadataTask)getRootTask();
+    return rootTask.getRestrictedMergeDBDataPaths().toArray(new Path[0]);
+  }
+
   @Override
   public void runStep(Path outputPathLocation) throws IOException {
 
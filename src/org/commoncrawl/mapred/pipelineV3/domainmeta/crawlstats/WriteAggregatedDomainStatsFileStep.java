@@ -43,6 +43,11 @@ public class WriteAggregatedDomainStatsFileStep extends CrawlPipelineStep {
     return LOG;
   }
 
+  @Override
+  public Path[] getDependencies() throws IOException {
+    return new Path[] { getOutputDirForStep(CollectSubDomainStatsStep.class) };
+  }
+
   @Override
   public void runStep(Path outputPathLocation) throws IOException {
     JobConf job = new JobBuilder("Write Stats File", new Configuration())
@@ -19,22 +19,14 @@
 package org.commoncrawl.service.crawler;
 
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInput;
-import java.io.DataInputStream;
-import java.io.DataOutput;
-import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.LinkedList;
 import java.util.concurrent.Callable;
 import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.zip.CRC32;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -53,6 +45,7 @@ import org.commoncrawl.service.crawler.RobotRulesParser.RobotRuleSet;
 import org.commoncrawl.service.crawler.filters.FilterResults;
 import org.commoncrawl.service.statscollector.CrawlerStats;
 import org.commoncrawl.util.CCStringUtils;
+import org.commoncrawl.util.FPGenerator;
 import org.commoncrawl.util.FileUtils;
 import org.commoncrawl.util.IPAddressUtils;
 import org.commoncrawl.util.IntrusiveList;
@@ -118,10 +111,12 @@ public final class CrawlList extends IntrusiveList.IntrusiveListElement<CrawlLis
     }
   }  
   
-  private static PriorityBlockingQueue<DiskQueueEntry> _diskOperationQueue = new PriorityBlockingQueue<DiskQueueEntry>();
-  private static Thread  _diskOperationThread = null;
-  private static boolean _diskOpThreadShuttingDown = false;
-  private static long    _diskHeaderActiveVersionTimestamp = System.currentTimeMillis();
+  /** disk operations queued while the workers are not running **/
+  private static PriorityBlockingQueue<DiskQueueEntry> _diskOperationBacklog = new PriorityBlockingQueue<DiskQueueEntry>();
+  private static DiskQueueWorker[] _diskQueueWorkers = null;
+  private static volatile boolean _diskOpThreadShuttingDown = false;
+  /** shared store for targets spilled to disk **/
+  private static CrawlListOverflowStore _overflowStore = null;
   
     
   /** logging **/
@@ -205,8 +200,8 @@ public final class CrawlList extends IntrusiveList.IntrusiveListElement<CrawlLis
   private String    _lastFetchedRobotsHostName;
   /** last fetched robots data **/
   private String    _lastFetchedRobotsData;
-  /** crc calculator **/
-  private static CRC32 _crc32 = new CRC32();
+  /** node wide robots cache **/
+  private static RobotRuleSetCache _robotsCache = null;
   /** last request was io exception **/
   private boolean _lastRequestWasIOException = false;
   
@@ -365,6 +360,14 @@ public final class CrawlList extends IntrusiveList.IntrusiveListElement<CrawlLis
   	_server = server;
   }
   
+  /** node wide robots cache (shared by all lists) **/
+  static synchronized RobotRuleSetCache getRobotRuleSetCache() { 
+    if (_robotsCache == null) { 
+      _robotsCache = new RobotRuleSetCache((getServerSingleton() != null) ? getServerSingleton().getConfig() : null);
+    }
+    return _robotsCache;
+  }
+  
   public int getListId() { 
     return _baseListId;
   }
@@ -491,7 +494,7 @@ public final class CrawlList extends IntrusiveList.IntrusiveListElement<CrawlLis
     if (_pending.size() >= DISK_FLUSH_THRESHOLD || _queued.size() != 0) {
       if (!_diskRequestPending) {  
         _diskRequestPending = true;
-        _diskOperationQueue.add(new DiskQueueEntry(this,false));
+        queueDiskOperation(new DiskQueueEntry(this,false));
       }
     }
   }
@@ -508,6 +511,18 @@ public final class CrawlList extends IntrusiveList.IntrusiveListElement<CrawlLis
       
       // get the cached crc for the active domain if it exists ... 
       long cachedRobotsCRC = (domainInfo == null) ? -1 : domainInfo._robotsCRC;
+      boolean cachedRobotsReturned400 = (domainInfo == null) ? false : domainInfo._robotsReturned400;
+      boolean cachedRobotsReturned403 = (domainInfo == null) ? false : domainInfo._robotsReturned403;
+      
+      // if not known to this list, check the node wide cache (another list may have fetched it) 
+      if (cachedRobotsCRC == -1) { 
+        RobotRuleSetCache.HostEntry hostEntry = getRobotRuleSetCache().getHost(activeDomainName);
+        if (hostEntry != null) { 
+          cachedRobotsCRC = hostEntry._robotsCRC;
+          cachedRobotsReturned400 = hostEntry._robotsReturned400;
+          cachedRobotsReturned403 = hostEntry._robotsReturned403;
+        }
+      }
       
       // if cached crc found ...   
       if (cachedRobotsCRC != -1) { 
@@ -524,8 +539,8 @@ public final class CrawlList extends IntrusiveList.IntrusiveListElement<CrawlLis
             
             _robotsCRC = cachedRobotsCRC;
             _robotsHostName = activeDomainName;
-            _robotsReturned400 = domainInfo._robotsReturned400;
-            _robotsReturned403 = domainInfo._robotsReturned403;
+            _robotsReturned400 = cachedRobotsReturned400;
+            _robotsReturned403 = cachedRobotsReturned403;
             _ruleSet = RobotRulesParser.getEmptyRules();
             _robotsRetrieved = true;
             if (Environment.detailLogEnabled())
@@ -537,12 +552,16 @@ public final class CrawlList extends IntrusiveList.IntrusiveListElement<CrawlLis
             
             // check the rule set cache in the host (by crc)
             RobotRuleSet ruleSet = _host.getCachedRobotsEntry(cachedRobotsCRC);
+            // and then the node wide cache 
+            if (ruleSet == null) { 
+              ruleSet = getRobotRuleSetCache().getRuleSet(cachedRobotsCRC);
+            }
             // if cached object found .... 
             if (ruleSet != null) { 
               _robotsCRC = cachedRobotsCRC;
               _robotsHostName = activeDomainName;
-              _robotsReturned400 = domainInfo._robotsReturned400;
-              _robotsReturned403 = domainInfo._robotsReturned403;
+              _robotsReturned400 = cachedRobotsReturned400;
+              _robotsReturned403 = cachedRobotsReturned403;
               _ruleSet = ruleSet;
               _robotsRetrieved = true;
               
@@ -626,10 +645,14 @@ public final class CrawlList extends IntrusiveList.IntrusiveListElement<CrawlLis
   
   
   
-  private void updateRobotsCRCForDomain(long crc,String domainName,boolean robotsReturned400,boolean robotsReturned403) {
+  private void updateRobotsCRCForDomain(long crc,String domainName,boolean robotsReturned400,boolean robotsReturned403,boolean shareWithOtherLists) {
     getDomainInfoFromDomain(domainName)._robotsCRC = crc;
     getDomainInfoFromDomain(domainName)._robotsReturned400 = robotsReturned400;
     getDomainInfoFromDomain(domainName)._robotsReturned403 = robotsReturned403;
+    // and share it with the other lists (unless it is a transient failure) 
+    if (shareWithOtherLists) { 
+      getRobotRuleSetCache().cacheHost(domainName, crc, robotsReturned400, robotsReturned403);
+    }
   }
   
   private void resetRobotsState() { 
@@ -669,7 +692,7 @@ public final class CrawlList extends IntrusiveList.IntrusiveListElement<CrawlLis
       // cheat 
       _robotsRetrieved = true;
       // and update the robot info in the alias map 
-      updateRobotsCRCForDomain(_robotsCRC, _robotsHostName,_robotsReturned400,_robotsReturned403);
+      updateRobotsCRCForDomain(_robotsCRC, _robotsHostName,_robotsReturned400,_robotsReturned403,true);
     }
     else {
       // ok , the robots url is good 
@@ -998,7 +1021,7 @@ public final class CrawlList extends IntrusiveList.IntrusiveListElement<CrawlLis
   private void potentiallyQueueDiskLoad() { 
     if (_pending.size() <= DISK_LOAD_THRESHOLD && (!_diskRequestPending || _pending.size() ==0) && _offlineTargetCount != 0) { 
       _diskRequestPending = true;
-      _diskOperationQueue.add(new DiskQueueEntry(this,true));
+      queueDiskOperation(new DiskQueueEntry(this,true));
     }
   }
   
@@ -1187,13 +1210,19 @@ public final class CrawlList extends IntrusiveList.IntrusiveListElement<CrawlLis
                       RobotRuleResult result = new RobotRuleResult();
                       
                       if (contentData != null) { 
-                        synchronized (_crc32) { 
-                          _crc32.reset();
-                          _crc32.update(contentData.getBytes(),contentData.getOffset(),contentData.getLength());
-                          result.crcValue = _crc32.getValue();
+                        // a 64 bit fingerprint rather than a crc32, since it keys the node wide cache 
+                        result.crcValue = FPGenerator.std64.fp(contentData.getBytes(),contentData.getOffset(),contentData.getLength());
+                        // zero and -1 are reserved (empty rules / unknown)
+                        if (result.crcValue == 0 || result.crcValue == -1) { 
+                          result.crcValue = 1;
+                        }
+                        // identical robots files (typically across a site's subdomains) are only parsed once
+                        result.ruleSet = getRobotRuleSetCache().getRuleSet(result.crcValue);
+                        if (result.ruleSet == null) { 
+                          RobotRulesParser parser = new RobotRulesParser(getServerSingleton().getConfig());
+                          result.ruleSet = parser.parseRules(contentData.getBytes(),contentData.getOffset(),contentData.getLength()); 
+                          getRobotRuleSetCache().cacheRuleSet(result.crcValue, result.ruleSet);
                         }
-                        RobotRulesParser parser = new RobotRulesParser(getServerSingleton().getConfig());
-                        result.ruleSet = parser.parseRules(contentData.getBytes(),contentData.getOffset(),contentData.getLength()); 
                       }
                       else {
                         result.ruleSet = RobotRulesParser.getEmptyRules();
@@ -1272,9 +1301,9 @@ public final class CrawlList extends IntrusiveList.IntrusiveListElement<CrawlLis
                       LOG.info("####Robots RETRIEVED for Host:"+activeHost + " CrawlDelay IS:" + getCrawlDelay(false));
                     
                     if (originalHost != null && activeHost != null) { 
-	                    updateRobotsCRCForDomain(_robotsCRC, originalHost,_robotsReturned400,_robotsReturned403);
+	                    updateRobotsCRCForDomain(_robotsCRC, originalHost,_robotsReturned400,_robotsReturned403,true);
 	                    if (activeHost.compareToIgnoreCase(originalHost) != 0) { 
-	                      updateRobotsCRCForDomain(_robotsCRC, activeHost,_robotsReturned400,_robotsReturned403);
+	                      updateRobotsCRCForDomain(_robotsCRC, activeHost,_robotsReturned400,_robotsReturned403,true);
 	                    }
                     }
                       
@@ -1344,10 +1373,12 @@ public final class CrawlList extends IntrusiveList.IntrusiveListElement<CrawlLis
           // for now, assume no robots rules for any error conditions ... 
           _ruleSet = RobotRulesParser.getEmptyRules();
           
+          // a 4xx means there is no robots file, anything else (5xx etc.) may be transient, 
+          // so don't have the other lists treat the host as having no rules for the cache ttl 
           if (originalHost != null && activeHost != null) { 
-	          updateRobotsCRCForDomain(_robotsCRC, originalHost,_robotsReturned400,_robotsReturned403);
+	          updateRobotsCRCForDomain(_robotsCRC, originalHost,_robotsReturned400,_robotsReturned403,_robotsReturned400);
 	          if (activeHost.compareToIgnoreCase(originalHost) != 0) { 
-	            updateRobotsCRCForDomain(_robotsCRC, activeHost,_robotsReturned400,_robotsReturned403);
+	            updateRobotsCRCForDomain(_robotsCRC, activeHost,_robotsReturned400,_robotsReturned403,_robotsReturned400);
 	          }
           }
           
@@ -1702,7 +1733,7 @@ public final class CrawlList extends IntrusiveList.IntrusiveListElement<CrawlLis
         else { 
           if (!_diskRequestPending) { 
             _diskRequestPending = true;
-            _diskOperationQueue.add(new DiskQueueEntry(this,true));
+            queueDiskOperation(new DiskQueueEntry(this,true));
           }
           _disposition = Disposition.WaitingOnTime;
         }
@@ -1789,6 +1820,11 @@ public final class CrawlList extends IntrusiveList.IntrusiveListElement<CrawlLis
   /** indicates if robots file need to be retrieved for the specified host */
   public boolean robotsRetrieved() { return _robotsRetrieved; }
  
+  /** the crawl delay (in milliseconds) currently in effect for this list **/
+  public int getEffectiveCrawlDelay() { 
+    return getCrawlDelay(false);
+  }
+  
   /** */
   private final int getCrawlDelay(boolean checkForOverride) { 
     
@@ -1878,502 +1914,326 @@ public final class CrawlList extends IntrusiveList.IntrusiveListElement<CrawlLis
    * Disk Operation Support 
    */
     
+    /** default number of disk queue worker threads **/
+    public static final int DEFAULT_DISK_QUEUE_WORKER_COUNT = 2;
+  
+    /** a disk queue worker. each list is always routed to the same worker, so per list operations stay ordered **/
+    private static final class DiskQueueWorker extends Thread { 
+      
+      DiskQueueWorker(int workerIndex) { 
+        super("CrawlListDiskQueue-" + workerIndex);
+        _workerIndex = workerIndex;
+      }
+      
+      final int _workerIndex;
+      final PriorityBlockingQueue<DiskQueueEntry> _queue = new PriorityBlockingQueue<DiskQueueEntry>();
+      
+      @Override
+      public void run() {
+        
+        for (;;) { 
+          try {
+            
+            DiskQueueEntry entry = _queue.take();
+
+            // if buffer item is null... this is considered an eof condition ... break out ... 
+            if (entry.getListItem() == null) {
+              LOG.info("### DiskThread:" + _workerIndex + " Received Null Item ... Shutting down CrawlDomain Disk Queue Thread");
+              // now matter what ... break out ... 
+              break;
+            }
+            // otherwise .. figure out what to do with the domain ... 
+            else if (_diskOpThreadShuttingDown == false) {
+              processDiskQueueEntry(_overflowStore,_workerIndex,entry.getListItem());
+            }
+          } catch (InterruptedException e) {
+  
+          }
+          catch (Exception e) { 
+            LOG.fatal("### DiskThread: Encountered Unhandled Exception:" + CCStringUtils.stringifyException(e));
+          }
+        }
+        _overflowStore.closeWriter(_workerIndex);
+        LOG.info("### DiskThread:" + _workerIndex + " Exiting CrawlDomain Disk Queue Thread");
+      }
+    }
   
     public static int getPendingDiskOperationCount() { 
-      return _diskOperationQueue.size();
+      synchronized (_diskOperationBacklog) { 
+        int pendingCount = _diskOperationBacklog.size();
+        if (_diskQueueWorkers != null) { 
+          for (DiskQueueWorker worker : _diskQueueWorkers) { 
+            pendingCount += worker._queue.size();
+          }
+        }
+        return pendingCount;
+      }
+    }
+    
+    /** route a disk operation to the worker responsible for the list (or hold it in the backlog if the workers are not running) **/
+    private static void queueDiskOperation(DiskQueueEntry entry) { 
+      synchronized (_diskOperationBacklog) { 
+        if (_diskQueueWorkers == null) { 
+          _diskOperationBacklog.add(entry);
+        }
+        else { 
+          long listId = entry.getListItem().getUniqueListId();
+          int workerIndex = (int)((listId ^ (listId >>> 32)) & Integer.MAX_VALUE) % _diskQueueWorkers.length;
+          _diskQueueWorkers[workerIndex]._queue.add(entry);
+        }
+      }
+    }
+  
+    /** get the shared overflow store status (or null if the disk queue is not running) **/
+    public static String getOverflowStoreStatus() { 
+      CrawlListOverflowStore store = _overflowStore;
+      return (store != null) ? store.getStatusString() : null;
     }
   
     public static void stopDiskQueueingThread() { 
       
-      if (_diskOperationThread != null) {
+      DiskQueueWorker[] workers = null;
+      synchronized (_diskOperationBacklog) { 
+        workers = _diskQueueWorkers;
+        _diskQueueWorkers = null;
+      }
+      
+      if (workers != null) {
         _diskOpThreadShuttingDown = true;
-        LOG.info("shutting down Disk Queue Thread - sending null item to queue");
-        _diskOperationQueue.add(new DiskQueueEntry(null,false));
+        LOG.info("shutting down Disk Queue Threads - sending null item to queues");
+        for (DiskQueueWorker worker : workers) { 
+          worker._queue.add(new DiskQueueEntry(null,false));
+        }
         try {
-          LOG.info("Waiting for Disk Queue Thread to Die");
-          _diskOperationThread.join();
-          LOG.info("Done Waiting for Disk Queue Thread");
+          LOG.info("Waiting for Disk Queue Threads to Die");
+          for (DiskQueueWorker worker : workers) { 
+            worker.join();
+          }
+          LOG.info("Done Waiting for Disk Queue Threads");
         } catch (InterruptedException e) {
           e.printStackTrace();
         }
-        
+        LOG.info("Closing Overflow Store:" + _overflowStore.getStatusString());
+        _overflowStore.close();
+        _overflowStore = null;
         _diskOpThreadShuttingDown = false;
-        _diskOperationThread = null;
       }
     }
-    public static void startDiskQueueingThread(final EventLoop serverEventLoop,final File baseStoragePath) { 
-      
-      // figure out 
-      
-      // and finally start the blocking writer thread ...
-      _diskOperationThread = new Thread(new Runnable() {
     
-        public void run() {
-          
-          for (;;) { 
-            try {
-              
-              DiskQueueEntry entry = _diskOperationQueue.take();
-
-              // if buffer item is null... this is considered an eof condition ... break out ... 
-              if (entry.getListItem() == null) {
-                LOG.info("### DiskThread:Received Null Item ... Shutting down CrawlDomain Disk Queue Thread");
-                // now matter what ... break out ... 
-                break;
-              }
-              // otherwise .. figure out what to do with the domain ... 
-              else { 
-
-                if (_diskOpThreadShuttingDown == false) {
-                  
-                  final CrawlList domain = entry.getListItem();
-                  
-                  try {
-                    if (Environment.detailLogEnabled())
-                      LOG.info("### DiskThread: Got List:" + domain.getListName());
-                    // build a hierarchichal path for the given domain id ... 
-                    File logFilePath = null;
-                    String listName = null;
-                    synchronized(domain) { 
-                      logFilePath = FileUtils.buildHierarchicalPathForId(baseStoragePath,domain.getUniqueListId());
-                      listName = domain.getListName();
-                    }
-                    // get the immediate parent directory ... 
-                    File parentDirectory = logFilePath.getParentFile();
-                    // and recursively create the directory chain (if necessary).
-                    parentDirectory.mkdirs();
-                    
-                    IntrusiveList<CrawlTarget> flushList = null;
-                    
-                    int desiredLoadAmount = 0;
-
-                    boolean truncateFile = false;
-                    
-                    synchronized(domain) { 
-                      if (domain._offlineTargetCount == 0) { 
-                        truncateFile = true;
-                      }
-                    }
-                    
-                    if (truncateFile && logFilePath.exists()) { 
-                      
-                      if (Environment.detailLogEnabled())
-                        LOG.info("### DiskThread: Truncating Existing Log File for List:" + listName);
-                      
-                      LogFileHeader header = new LogFileHeader();
-                           
-                      RandomAccessFile file = new RandomAccessFile(logFilePath,"rw"); 
-                      
-                      try { 
-                          writeLogFileHeader(file,header);
-                      }
-                      finally { 
-                        file.close();
-                      }
-                    }
-                    
-                    // now lock access to the domain's pending queue
-                    synchronized(domain) { 
-                      
-                      // if a disk request was pending ...
-                      if (domain._diskRequestPending) { 
-                      
-                        // reset disk request pending flag here to prevent race condition ...
-                        domain._diskRequestPending = false;
-                        
-                        // figure out what action to take with respect to the domain ...
-                        
-                        // if list count exceeds flush threshold 
-                        if (domain._pending.size() >= DISK_FLUSH_THRESHOLD || domain._queued.size() != 0) {
-                         
-                          if (domain._queued.size() == 0) { 
-                            LinkedList<CrawlTarget> candidates = new LinkedList<CrawlTarget>();
-                            for (CrawlTarget candidate : domain._pending) { 
-                              if ((candidate.getFlags() & CrawlURL.Flags.IsHighPriorityURL) == 0) { 
-                                // add candidates in proper order ... 
-                                candidates.add(candidate);
-                              }
-                            }
-                            
-                            // if there are low priority candidates we can flush ... 
-                            if (candidates.size() != 0) {
-                              // create a new flush list ... 
-                              flushList = new IntrusiveList<CrawlTarget>();
-                              
-                              // reverse candidate list and start removing items from pending 
-                              for (CrawlTarget candidate : Lists.reverse(candidates)) { 
-                                domain._pending.removeElement(candidate);
-                                flushList.addHead(candidate);
-                                // if we are back to ideal target count bail ... 
-                                if (domain._pending.size() <= IDEAL_TARGET_COUNT)
-                                  break;
-                              }
-                              
-                              if (Environment.detailLogEnabled())
-                                LOG.info("### DiskThread: List:" + domain.getListName() + " Created FetchList FROM PENDING of Size:" + flushList.size());
-                              
-                              // increment offline target count ...
-                              domain._offlineTargetCount += flushList.size();
-                            }
-                          }
-                          else { 
-                            flushList = domain._queued.detach(domain._queued.getHead());
-                            
-                            if (Environment.detailLogEnabled())
-                              LOG.info("### DiskThread: List:" + domain.getListName() + " Created FetchList FROM QUEUED of Size:" + flushList.size());
-
-                            // increment offline target count ...
-                            domain._offlineTargetCount += flushList.size();
-                            
-                          }
-                          
-
-                          /*
-                          // walk one past IDEAL target item count... 
-                          int i=0;
-                          CrawlTarget target = domain._pending.getHead();  
-                          while (i<IDEAL_TARGET_COUNT) { 
-                            target = target.getNext();
-                            ++i;
-                          }
-                          
-                          // and extract a sub-list starting at the target ...  
-                          flushList = domain._pending.detach(target);
-                          */
-                          //and immediately update offline target count in domain ... 
-                          //domain._offlineTargetCount += flushList.size();
-                        }
-                        // otherwise ... 
-                        else { 
-                          // check queued size ... 
-                          if (domain._queued.size() != 0) {
-                            // if pending size <= DISK_LOAD_THRESHOLD 
-                            if (domain._offlineTargetCount == 0 && domain._pending.size() <= DISK_LOAD_THRESHOLD) {
-                              if (Environment.detailLogEnabled())
-                                LOG.info("### DiskThread: Moving Items from Queued List to Pending List for CrawlList:" + domain.getListName());
-                              // move over items from queued to pending 
-                              
-                              while (domain._queued.getHead() != null) { 
-                                domain._pending.addTail(domain._queued.removeHead());
-                                if (domain._pending.size() == (DISK_FLUSH_THRESHOLD - 1))
-                                  break;
-                              }
-                            }
-                            
-                            //now if domain queue exceeds flush threshold ... 
-                            if (domain._queued.size() >= IDEAL_TARGET_COUNT) { 
-                              if (Environment.detailLogEnabled())
-                                LOG.info("### DiskThread: Queued Size Exceed Flush Threshold. Flushing to Disk for CrawlList:" + domain.getListName());
-                              // extract a sub-list starting at head of queued list   
-                              flushList = domain._queued.detach(domain._queued.getHead());
-                              //and immediately update offline target count in domain ... 
-                              domain._offlineTargetCount += flushList.size();
-                            }
-                          }
-                          
-                          // check to see if a load is desired ...
-                          if (domain._pending.size() <= DISK_LOAD_THRESHOLD) { 
-                            // calculate load amount ... 
-                            desiredLoadAmount = IDEAL_TARGET_COUNT - domain._pending.size();
-                          }
-                        }
-                      }
-                      else { 
-                        if (Environment.detailLogEnabled())
-                          LOG.info("### DiskThread: Skipping List:" + domain.getListName());
-                      }
-                    }
-                    
-                    // now figure out what to do ... 
-                    if (flushList != null) {
-                      if (Environment.detailLogEnabled())
-                        LOG.info("### DiskThread: Flushing"+ flushList.size() + " Items To Disk for Domain:" + domain.getListName());
-                      // flush crawl targets to disk ... 
-                      appendTargetsToLogFile(logFilePath,flushList);
-                      // clear list ... 
-                      flushList.removeAll();
-                    }
-                    // ... if load is desired ... 
-                    if (desiredLoadAmount  != 0) { 
-                      
-                      IntrusiveList<CrawlTarget> loadList = new IntrusiveList<CrawlTarget>();
-
-                      int loadCount = readTargetsFromLogFile(domain,logFilePath,desiredLoadAmount,loadList);
-                      
-                      // if (Environment.detailLogEnabled())
-                        LOG.info("### DiskThread:Disk Queue Loaded: " + loadCount + "Items To Disk for Domain:" + domain.getListName());
-                      
-                      if (loadCount != 0) { 
-                        // time to lock domain again ... 
-                        synchronized(domain) { 
-                          // and reduce offline count ... 
-                          domain._offlineTargetCount -= loadList.size(); 
-                          // load new items into domain's list ... 
-                          domain._pending.attach(loadList);
-                        }
-                      }
-                    }
-                  }
-                  catch (IOException e) { 
-                    LOG.error("### DiskThread:" + CCStringUtils.stringifyException(e));
-                  }
-                }
-              }
-            } catch (InterruptedException e) {
-    
-            }
-            catch (Exception e) { 
-              LOG.fatal("### DiskThread: Encountered Unhandled Exception:" + CCStringUtils.stringifyException(e));
-            }
-          }
-         
-          LOG.info("### DiskThread: Exiting CrawlDomain Disk Queue Thread");
-        } 
-      });
-      // launch the writer thread ... 
-      _diskOperationThread.start();
+    public static void startDiskQueueingThread(final EventLoop serverEventLoop,final File baseStoragePath) { 
+      startDiskQueueingThreads(serverEventLoop,new File[] { baseStoragePath },DEFAULT_DISK_QUEUE_WORKER_COUNT);
     }
     
-    private static class LogFileHeader {
+    /**
+     * start the disk queue workers. spilled targets are written to a shared overflow store 
+     * spread across the given storage directories (one append stream per worker). 
+     */
+    public static void startDiskQueueingThreads(final EventLoop serverEventLoop,final File[] storagePaths,int workerCount) { 
       
-      public static final int LogFileHeaderBytes = 0xCC00CC00;
-      public static final int LogFileVersion         = 1;
+      workerCount = Math.max(1,workerCount);
       
-      public LogFileHeader() { 
-        _readPos = 0;
-        _writePos = 0;
-        _itemCount = 0;
+      try { 
+        _overflowStore = new CrawlListOverflowStore(storagePaths,workerCount);
       }
+      catch (IOException e) { 
+        LOG.fatal("### DiskThread: Failed to open Overflow Store:" + CCStringUtils.stringifyException(e));
+        throw new RuntimeException(e);
+      }
+      _overflowStore.start();
       
-      public long _readPos;
-      public long _writePos;
-      public int   _itemCount;
-      
-      public void writeHeader(DataOutput stream) throws IOException { 
-        stream.writeInt(LogFileHeaderBytes);
-        stream.writeInt(LogFileVersion);
-        stream.writeLong(_diskHeaderActiveVersionTimestamp);
-        stream.writeLong(_readPos);
-        stream.writeLong(_writePos);
-        stream.writeInt(_itemCount);
+      DiskQueueWorker[] workers = new DiskQueueWorker[workerCount];
+      for (int i=0;i<workerCount;++i) { 
+        workers[i] = new DiskQueueWorker(i);
       }
       
-      public void readHeader(DataInput stream) throws IOException { 
-        int headerBytes = stream.readInt();
-        int version         = stream.readInt();
-        long timestamp = stream.readLong();
-        
-        if (headerBytes != LogFileHeaderBytes && version !=LogFileVersion) { 
-          throw new IOException("Invalid CrawlLog File Header Detected!");
-        }
-        
-        _readPos     = stream.readLong();
-        _writePos     = stream.readLong();
-        _itemCount  = stream.readInt();
-        
-        // if timestamps don't match ... 
-        if (timestamp != _diskHeaderActiveVersionTimestamp) {
-          // then reset cursors .. eveything in the file is invalid ... 
-          _writePos = 0;
-          _readPos = 0;
-          _itemCount =0;
+      synchronized (_diskOperationBacklog) { 
+        _diskQueueWorkers = workers;
+        // and hand off anything that was queued while the workers were down 
+        DiskQueueEntry entry = null;
+        while ((entry = _diskOperationBacklog.poll()) != null) { 
+          if (entry.getListItem() != null) 
+            queueDiskOperation(entry);
         }
       }
-    }
-    
-    
-    private static final class CustomByteArrayOutputStream extends ByteArrayOutputStream { 
-      public CustomByteArrayOutputStream(int initialSize) { 
-        super(initialSize);
+      
+      LOG.info("### DiskThread: Starting " + workerCount + " Disk Queue Workers");
+      // and finally start the blocking worker threads ... 
+      for (DiskQueueWorker worker : workers) { 
+        worker.start();
       }
-      public byte[] getBuffer() { return buf; }
     }
     
-    private static void appendTargetsToLogFile(File logFileName,IntrusiveList<CrawlTarget> list)throws IOException { 
-      
-      LogFileHeader header = new LogFileHeader();
-      
-      boolean preExistingHeader = logFileName.exists();
-            
-      RandomAccessFile file = new RandomAccessFile(logFileName,"rw"); 
+    private static void processDiskQueueEntry(CrawlListOverflowStore store,int workerIndex,final CrawlList domain) { 
       
-      try { 
-        long headerOffset = 0;
-        
-        if(preExistingHeader) {
-          
-          headerOffset = readLogFileHeader(file, header);
-          
-          if (header._writePos == 0) { 
-            file.seek(headerOffset);
-          }
-          else {
-            // seelk to appropriate write position 
-            file.seek(header._writePos);
-          }
-        }
-        else { 
-          headerOffset = writeLogFileHeader(file,header);
-        }
-        
-  
-        CustomByteArrayOutputStream bufferOutputStream = new CustomByteArrayOutputStream(1 << 17);
-        DataOutputStream dataOutputStream = new DataOutputStream(bufferOutputStream);
-        CRC32 crc = new CRC32();
+      try {
+        if (Environment.detailLogEnabled())
+          LOG.info("### DiskThread: Got List:" + domain.getListName());
         
-        for (CrawlTarget target : list) { 
-          
-          PersistentCrawlTarget persistentTarget = target.createPersistentTarget();
-          
-          bufferOutputStream.reset();
-          // write to intermediate stream ... 
-          persistentTarget.write(dataOutputStream);
-          // and crc the data ... 
-          crc.reset();
-          crc.update(bufferOutputStream.getBuffer(),0,bufferOutputStream.size());
-          // write out length first 
-          file.writeInt(bufferOutputStream.size());
-          //crc next
-          long computedValue = crc.getValue();
-          //TODO: waste of space - write 32 bit values as long because having problems with java sign promotion rules during read...
-          file.writeLong(computedValue);
-          // and then the data 
-          file.write(bufferOutputStream.getBuffer(),0,bufferOutputStream.size());
+        long listId = 0;
+        String listName = null;
+        synchronized(domain) { 
+          listId = domain.getUniqueListId();
+          listName = domain.getListName();
         }
         
-        // now update header ... 
-        header._itemCount += list.size();
-        header._writePos   = file.getFilePointer();
+        IntrusiveList<CrawlTarget> flushList = null;
         
-        // now write out header anew ... 
-        writeLogFileHeader(file,header);
+        int desiredLoadAmount = 0;
+
+        boolean truncateFile = false;
         
-      }
-      finally { 
-        if (file != null) { 
-          file.close();
+        synchronized(domain) { 
+          if (domain._offlineTargetCount == 0) { 
+            truncateFile = true;
+          }
         }
-      }
-    }
-    
-    private static int readTargetsFromLogFile(CrawlList domain,File logFileName,int desiredReadAmount,IntrusiveList<CrawlTarget> targetsOut)throws IOException { 
-     
-      int itemsRead = 0;
-      
-      if (logFileName.exists()) { 
-       
-        RandomAccessFile file = new RandomAccessFile(logFileName,"rw");
         
-        LogFileHeader header = new LogFileHeader();     
+        if (truncateFile) { 
+          if (Environment.detailLogEnabled())
+            LOG.info("### DiskThread: Truncating Existing Overflow Queue for List:" + listName);
+          store.truncate(listId);
+        }
         
-        try { 
+        // now lock access to the domain's pending queue
+        synchronized(domain) { 
           
-          long headerOffset = readLogFileHeader(file, header);
-            
-          // seelk to appropriate write position 
-          if (header._readPos != 0)
-            file.seek(header._readPos);
-          
-          int itemsToRead  = Math.min(desiredReadAmount, header._itemCount);
-
-          PersistentCrawlTarget persistentTarget = new PersistentCrawlTarget();
-          CRC32 crc = new CRC32();
-          CustomByteArrayOutputStream buffer = new CustomByteArrayOutputStream(1 << 16);
+          // if a disk request was pending ...
+          if (domain._diskRequestPending) { 
           
-          for (int i=0;i<itemsToRead;++i) { 
-            // read length ... 
-            int urlDataLen     = file.readInt();
-            long urlDataCRC = file.readLong();
-
-            buffer.reset();
-            
-            if (urlDataLen > buffer.getBuffer().length) { 
-              buffer = new  CustomByteArrayOutputStream( ((urlDataLen / 65536) + 1) * 65536 );
-            }
-            file.read(buffer.getBuffer(), 0, urlDataLen);
-            crc.reset();
-            crc.update(buffer.getBuffer(), 0, urlDataLen);
+            // reset disk request pending flag here to prevent race condition ...
+            domain._diskRequestPending = false;
             
-            long computedValue = crc.getValue();
+            // figure out what action to take with respect to the domain ...
             
-            // validate crc values ... 
-            if (computedValue != urlDataCRC) { 
-              throw new IOException("Crawl Target Log File Corrupt");
+            // if list count exceeds flush threshold 
+            if (domain._pending.size() >= DISK_FLUSH_THRESHOLD || domain._queued.size() != 0) {
+             
+              if (domain._queued.size() == 0) { 
+                LinkedList<CrawlTarget> candidates = new LinkedList<CrawlTarget>();
+                for (CrawlTarget candidate : domain._pending) { 
+                  if ((candidate.getFlags() & CrawlURL.Flags.IsHighPriorityURL) == 0) { 
+                    // add candidates in proper order ... 
+                    candidates.add(candidate);
+                  }
+                }
+                
+                // if there are low priority candidates we can flush ... 
+                if (candidates.size() != 0) {
+                  // create a new flush list ... 
+                  flushList = new IntrusiveList<CrawlTarget>();
+                  
+                  // reverse candidate list and start removing items from pending 
+                  for (CrawlTarget candidate : Lists.reverse(candidates)) { 
+                    domain._pending.removeElement(candidate);
+                    flushList.addHead(candidate);
+                    // if we are back to ideal target count bail ... 
+                    if (domain._pending.size() <= IDEAL_TARGET_COUNT)
+                      break;
+                  }
+                  
+                  if (Environment.detailLogEnabled())
+                    LOG.info("### DiskThread: List:" + domain.getListName() + " Created FetchList FROM PENDING of Size:" + flushList.size());
+                  
+                  // increment offline target count ...
+                  domain._offlineTargetCount += flushList.size();
+                }
+              }
+              else { 
+                flushList = domain._queued.detach(domain._queued.getHead());
+                
+                if (Environment.detailLogEnabled())
+                  LOG.info("### DiskThread: List:" + domain.getListName() + " Created FetchList FROM QUEUED of Size:" + flushList.size());
+
+                // increment offline target count ...
+                domain._offlineTargetCount += flushList.size();
+                
+              }
             }
+            // otherwise ... 
             else { 
-              //populate a persistentTarget from the (in memory) data stream
-              DataInputStream bufferReader = new DataInputStream(new ByteArrayInputStream(buffer.getBuffer(),0,urlDataLen));
-              
-              persistentTarget.clear();
-              persistentTarget.readFields(bufferReader);
-
-              //populate a new crawl target structure ... 
-              CrawlTarget newTarget = new CrawlTarget(domain,persistentTarget);
+              // check queued size ... 
+              if (domain._queued.size() != 0) {
+                // if pending size <= DISK_LOAD_THRESHOLD 
+                if (domain._offlineTargetCount == 0 && domain._pending.size() <= DISK_LOAD_THRESHOLD) {
+                  if (Environment.detailLogEnabled())
+                    LOG.info("### DiskThread: Moving Items from Queued List to Pending List for CrawlList:" + domain.getListName());
+                  // move over items from queued to pending 
+                  
+                  while (domain._queued.getHead() != null) { 
+                    domain._pending.addTail(domain._queued.removeHead());
+                    if (domain._pending.size() == (DISK_FLUSH_THRESHOLD - 1))
+                      break;
+                  }
+                }
+                
+                //now if domain queue exceeds flush threshold ... 
+                if (domain._queued.size() >= IDEAL_TARGET_COUNT) { 
+                  if (Environment.detailLogEnabled())
+                    LOG.info("### DiskThread: Queued Size Exceed Flush Threshold. Flushing to Disk for CrawlList:" + domain.getListName());
+                  // extract a sub-list starting at head of queued list   
+                  flushList = domain._queued.detach(domain._queued.getHead());
+                  //and immediately update offline target count in domain ... 
+                  domain._offlineTargetCount += flushList.size();
+                }
+              }
               
-              targetsOut.addTail(newTarget);
+              // check to see if a load is desired ...
+              if (domain._pending.size() <= DISK_LOAD_THRESHOLD) { 
+                // calculate load amount ... 
+                desiredLoadAmount = IDEAL_TARGET_COUNT - domain._pending.size();
+              }
             }
           }
+          else { 
+            if (Environment.detailLogEnabled())
+              LOG.info("### DiskThread: Skipping List:" + domain.getListName());
+          }
+        }
+        
+        // now figure out what to do ... 
+        if (flushList != null) {
+          if (Environment.detailLogEnabled())
+            LOG.info("### DiskThread: Flushing"+ flushList.size() + " Items To Disk for Domain:" + domain.getListName());
+          // append crawl targets to the overflow store ... 
+          store.append(workerIndex,listId,flushList);
+          // clear list ... 
+          flushList.removeAll();
+        }
+        // ... if load is desired ... 
+        if (desiredLoadAmount  != 0) { 
           
-          itemsRead = itemsToRead;
+          IntrusiveList<CrawlTarget> loadList = new IntrusiveList<CrawlTarget>();
+
+          int loadCount = 0;
           
-          // now update header ... 
-          header._itemCount -= itemsRead;
-          // now if item count is non zero ... 
-          if (header._itemCount != 0) { 
-            // set read cursor to next record location 
-            header._readPos     = file.getFilePointer();
+          try { 
+            loadCount = store.read(domain,listId,desiredLoadAmount,loadList);
           }
-          // otherwise ... 
-          else { 
-            // reset both cursors ... 
-            header._readPos = 0;
-            header._writePos = 0;
+          catch (IOException e) { 
+            LOG.fatal("Encountered Exception Reading From Offline Queue for List:" + listName + ". Truncating Queue! \n" + CCStringUtils.stringifyException(e));
+            store.truncate(listId);
+            loadList.removeAll();
+            loadCount = 0;
           }
           
-          // now write out header anew ... 
-          writeLogFileHeader(file,header);
-        }
-        catch (IOException e) { 
-          LOG.fatal("Encountered Exception Reading From Offline Queue for LogFile:" + logFileName + ". Truncating Queue! \n" + CCStringUtils.stringifyException(e));
-          header._itemCount = 0;
-          header._readPos = 0;
-          header._writePos = 0;
+          // if (Environment.detailLogEnabled())
+            LOG.info("### DiskThread:Disk Queue Loaded: " + loadCount + "Items To Disk for Domain:" + domain.getListName());
           
-          writeLogFileHeader(file,header);
-        }
-        
-        finally { 
-          if (file != null) { 
-            file.close();
+          if (loadCount != 0) { 
+            // time to lock domain again ... 
+            synchronized(domain) { 
+              // and reduce offline count ... 
+              domain._offlineTargetCount -= loadList.size(); 
+              // load new items into domain's list ... 
+              domain._pending.attach(loadList);
+            }
           }
         }
       }
-      return itemsRead;
-    }
-
-    
-    private static long writeLogFileHeader(RandomAccessFile file, LogFileHeader header )throws IOException {
-      
-      // set the position at zero .. 
-      file.seek(0);
-      // and write header to disk ... 
-      header.writeHeader(file);
-      
-      //took sync out because it was becoming a sever bottleneck
-      // file.getFD().sync();
-      
-      return file.getFilePointer();
-    }
-    
-    private static long readLogFileHeader(RandomAccessFile file,LogFileHeader header) throws IOException {
-      
-      file.seek(0);
-      
-      header.readHeader(file);
-      
-      return file.getFilePointer();
+      catch (IOException e) { 
+        LOG.error("### DiskThread:" + CCStringUtils.stringifyException(e));
+      }
     }
-    
   
     
     public static class CrawlDomainTester { 
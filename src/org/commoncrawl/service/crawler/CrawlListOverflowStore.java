@@ -0,0 +1,607 @@
+/**
+ * Copyright 2008 - CommonCrawl Foundation
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.commoncrawl.service.crawler;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.commoncrawl.util.CCStringUtils;
+import org.commoncrawl.util.IntrusiveList;
+
+/**
+ * CrawlListOverflowStore - a shared, log structured store for the CrawlTargets
+ * that CrawlLists spill to disk.
+ *
+ * Instead of one file per list, targets are appended (in flush sized batches)
+ * to a small number of large segment files. Each disk queue worker owns its
+ * own active segment (workers can be spread across multiple directories /
+ * spindles), so appends never contend and are always sequential. Each list
+ * keeps an in memory index of the runs (segment,offset,count) it has written,
+ * in fifo order, so loads are positional reads against the oldest run.
+ *
+ * Consumed records are simply accounted for in the owning segment. Segments
+ * that become fully consumed are deleted outright, and a background thread
+ * compacts sparse segments by copying their live runs into a fresh segment
+ * and re-pointing the owning lists at the copies.
+ *
+ * Record format (unchanged from the per list log files): int length, long crc32,
+ * PersistentCrawlTarget bytes. Segments are not durable across restarts (the
+ * old log files were invalidated on restart as well), so any segments left
+ * behind by a previous instance are deleted on open.
+ *
+ * @author rana
+ *
+ */
+final class CrawlListOverflowStore {
+
+  /** logging **/
+  private static final Log LOG = LogFactory.getLog(CrawlListOverflowStore.class);
+
+  /** subdirectory (of each storage directory) segments are written to **/
+  public static final String OVERFLOW_DIR_NAME = "overflow";
+  /** an active segment is sealed (and a new one started) once it reaches this size **/
+  public static final long   SEGMENT_ROLL_SIZE = 64L * 1024 * 1024;
+  /** sealed segments whose live byte ratio drops below this are compacted **/
+  public static final float  COMPACTION_THRESHOLD = .25f;
+  /** how often the compaction thread looks for sparse segments **/
+  public static final long   COMPACTION_INTERVAL = 10000;
+  /** contiguous appends from the same list are coalesced into a single run up to this size **/
+  private static final long  MAX_RUN_BYTES = 4 * 1024 * 1024;
+  /** length + crc **/
+  private static final int   RECORD_HEADER_SIZE = 12;
+  private static final int   READ_BUFFER_SIZE = 1 << 16;
+
+  private static final String SEGMENT_PREFIX = "segment-";
+
+  /** a segment file **/
+  private static final class Segment {
+
+    Segment(int id,File file) throws IOException {
+      _id = id;
+      _file = file;
+      _file.delete();
+      _raf = new RandomAccessFile(file,"rw");
+      _channel = _raf.getChannel();
+    }
+
+    final int _id;
+    final File _file;
+    final RandomAccessFile _raf;
+    final FileChannel _channel;
+    /** bytes written to the segment **/
+    long _length = 0;
+    /** bytes still referenced by some list **/
+    long _liveBytes = 0;
+    /** number of readers (or the compactor) currently reading from the segment **/
+    int  _pins = 0;
+    /** sealed segments no longer receive appends **/
+    boolean _sealed = false;
+    boolean _deleted = false;
+    /** runs (across all lists) that currently point into this segment **/
+    final HashSet<Run> _runs = new HashSet<Run>();
+  }
+
+  /** a contiguous sequence of records belonging to a single list **/
+  private static final class Run {
+
+    Run(Segment segment,long offset) {
+      _segment = segment;
+      _offset = offset;
+    }
+
+    Segment _segment;
+    long    _offset;
+    int     _count = 0;
+    long    _bytes = 0;
+    /** set once the run has been consumed or truncated **/
+    boolean _dead = false;
+  }
+
+  /** an append context. each worker (and the compactor) owns one, and only the owner touches it **/
+  private final class Writer {
+
+    Writer(File directory) {
+      _directory = directory;
+    }
+
+    final File _directory;
+    Segment _active = null;
+
+    /** append data to the active segment (rolling it if necessary). returns the segment, and the offset via offsetOut **/
+    Segment append(byte[] data,int length,long[] offsetOut) throws IOException {
+      Segment segment = _active;
+      if (segment == null || segment._length >= SEGMENT_ROLL_SIZE) {
+        if (segment != null) {
+          sealSegment(segment);
+        }
+        segment = _active = createSegment(_directory);
+      }
+      long offset = segment._length;
+      ByteBuffer buffer = ByteBuffer.wrap(data,0,length);
+      long position = offset;
+      while (buffer.hasRemaining()) {
+        position += segment._channel.write(buffer,position);
+      }
+      synchronized (CrawlListOverflowStore.this) {
+        segment._length += length;
+      }
+      offsetOut[0] = offset;
+      return segment;
+    }
+
+    void close() {
+      if (_active != null) {
+        sealSegment(_active);
+        _active = null;
+      }
+    }
+  }
+
+  private final File[] _directories;
+  private final Writer[] _writers;
+  private final Writer _compactionWriter;
+  private final HashMap<Integer,Segment> _segments = new HashMap<Integer,Segment>();
+  private final HashMap<Long,ArrayDeque<Run>> _lists = new HashMap<Long,ArrayDeque<Run>>();
+  private int  _nextSegmentId = 0;
+  private long _liveRecordCount = 0;
+  private long _compactedBytes = 0;
+  private long _compactionCount = 0;
+  private Thread  _compactionThread = null;
+  private volatile boolean _shutdown = false;
+
+  /**
+   * open a store over the given storage directories, with one append context per worker.
+   * any segments left over from a previous instance are deleted.
+   */
+  CrawlListOverflowStore(File[] storageDirectories,int writerCount) throws IOException {
+    _directories = new File[storageDirectories.length];
+    for (int i=0;i<storageDirectories.length;++i) {
+      _directories[i] = new File(storageDirectories[i],OVERFLOW_DIR_NAME);
+      _directories[i].mkdirs();
+      if (!_directories[i].isDirectory()) {
+        throw new IOException("Unable to create Overflow Directory:" + _directories[i]);
+      }
+      File[] staleSegments = _directories[i].listFiles();
+      if (staleSegments != null) {
+        for (File staleSegment : staleSegments) {
+          if (staleSegment.getName().startsWith(SEGMENT_PREFIX)) {
+            staleSegment.delete();
+          }
+        }
+      }
+    }
+    _writers = new Writer[writerCount];
+    for (int i=0;i<writerCount;++i) {
+      _writers[i] = new Writer(_directories[i % _directories.length]);
+    }
+    _compactionWriter = new Writer(_directories[writerCount % _directories.length]);
+  }
+
+  /** start the background compaction thread **/
+  void start() {
+    _compactionThread = new Thread(new Runnable() {
+
+      @Override
+      public void run() {
+        while (!_shutdown) {
+          try {
+            Thread.sleep(COMPACTION_INTERVAL);
+          }
+          catch (InterruptedException e) {
+          }
+          if (!_shutdown) {
+            try {
+              compact();
+            }
+            catch (IOException e) {
+              LOG.error("### OverflowStore: Compaction Failed:" + CCStringUtils.stringifyException(e));
+            }
+          }
+        }
+      }
+    },"CrawlListOverflowCompactor");
+    _compactionThread.setDaemon(true);
+    _compactionThread.start();
+  }
+
+  /** stop the compaction thread and delete all segments. workers must have been stopped already **/
+  void close() {
+    _shutdown = true;
+    if (_compactionThread != null) {
+      _compactionThread.interrupt();
+      try {
+        _compactionThread.join();
+      } catch (InterruptedException e) {
+      }
+      _compactionThread = null;
+    }
+    synchronized (this) {
+      for (Segment segment : _segments.values()) {
+        closeAndDeleteSegment(segment);
+      }
+      _segments.clear();
+      _lists.clear();
+      _liveRecordCount = 0;
+    }
+  }
+
+  /** append the given targets to the list's offline queue, using the specified worker's append context **/
+  void append(int writerIndex,long listId,IntrusiveList<CrawlTarget> targets) throws IOException {
+
+    CustomByteArrayOutputStream batchStream = new CustomByteArrayOutputStream(1 << 17);
+    DataOutputStream batchOutput = new DataOutputStream(batchStream);
+    CustomByteArrayOutputStream recordStream = new CustomByteArrayOutputStream(1 << 12);
+    DataOutputStream recordOutput = new DataOutputStream(recordStream);
+    CRC32 crc = new CRC32();
+    int count = 0;
+
+    for (CrawlTarget target : targets) {
+      PersistentCrawlTarget persistentTarget = target.createPersistentTarget();
+      recordStream.reset();
+      persistentTarget.write(recordOutput);
+      crc.reset();
+      crc.update(recordStream.getBuffer(),0,recordStream.size());
+      batchOutput.writeInt(recordStream.size());
+      //TODO: waste of space - write 32 bit values as long because having problems with java sign promotion rules during read...
+      batchOutput.writeLong(crc.getValue());
+      batchOutput.write(recordStream.getBuffer(),0,recordStream.size());
+      ++count;
+    }
+
+    if (count == 0)
+      return;
+
+    long offsetOut[] = new long[1];
+    Segment segment = _writers[writerIndex].append(batchStream.getBuffer(),batchStream.size(),offsetOut);
+
+    synchronized (this) {
+      ArrayDeque<Run> runs = _lists.get(listId);
+      if (runs == null) {
+        runs = new ArrayDeque<Run>();
+        _lists.put(listId,runs);
+      }
+      Run run = runs.peekLast();
+      // coalesce with the list's last run if this batch immediately follows it
+      if (run == null || run._segment != segment || run._offset + run._bytes != offsetOut[0] || run._bytes >= MAX_RUN_BYTES) {
+        run = new Run(segment,offsetOut[0]);
+        runs.addLast(run);
+        segment._runs.add(run);
+      }
+      run._count += count;
+      run._bytes += batchStream.size();
+      segment._liveBytes += batchStream.size();
+      _liveRecordCount += count;
+    }
+  }
+
+  /**
+   * read (and consume) up to desiredReadAmount targets from the head of the list's offline queue.
+   * throws an IOException if corrupt data is encountered, in which case the caller should truncate
+   * the list's queue.
+   **/
+  int read(CrawlList list,long listId,int desiredReadAmount,IntrusiveList<CrawlTarget> targetsOut) throws IOException {
+    int itemsRead = 0;
+
+    while (itemsRead < desiredReadAmount) {
+
+      Run run;
+      Segment segment;
+      long offset;
+      int  itemsToRead;
+
+      synchronized (this) {
+        ArrayDeque<Run> runs = _lists.get(listId);
+        if (runs == null || runs.isEmpty())
+          break;
+        run = runs.peekFirst();
+        segment = run._segment;
+        offset = run._offset;
+        itemsToRead = Math.min(desiredReadAmount - itemsRead, run._count);
+        // pin the segment so that it can't be deleted (by compaction) while we read from it
+        segment._pins++;
+      }
+
+      long bytesConsumed = 0;
+      try {
+        bytesConsumed = readRecords(segment,offset,itemsToRead,list,targetsOut);
+      }
+      finally {
+        synchronized (this) {
+          segment._pins--;
+          if (bytesConsumed != 0 && !run._dead) {
+            consumeRun(listId,run,itemsToRead,bytesConsumed);
+          }
+          maybeDeleteSegment(segment);
+        }
+      }
+      itemsRead += itemsToRead;
+    }
+    return itemsRead;
+  }
+
+  /** drop everything queued for the given list **/
+  synchronized void truncate(long listId) {
+    ArrayDeque<Run> runs = _lists.remove(listId);
+    if (runs != null) {
+      for (Run run : runs) {
+        run._dead = true;
+        run._segment._runs.remove(run);
+        run._segment._liveBytes -= run._bytes;
+        _liveRecordCount -= run._count;
+        maybeDeleteSegment(run._segment);
+      }
+    }
+  }
+
+  /** seal the worker's active segment (called by the worker on shutdown) **/
+  void closeWriter(int writerIndex) {
+    _writers[writerIndex].close();
+  }
+
+  /** number of records currently held by the store **/
+  synchronized long getLiveRecordCount() {
+    return _liveRecordCount;
+  }
+
+  /** number of segment files currently on disk **/
+  synchronized int getSegmentCount() {
+    return _segments.size();
+  }
+
+  /** number of segments compacted so far **/
+  synchronized long getCompactionCount() {
+    return _compactionCount;
+  }
+
+  /** dump store stats **/
+  synchronized String getStatusString() {
+    long totalBytes = 0;
+    long liveBytes = 0;
+    for (Segment segment : _segments.values()) {
+      totalBytes += segment._length;
+      liveBytes += segment._liveBytes;
+    }
+    return "Segments:" + _segments.size() + " Lists:" + _lists.size() + " Records:" + _liveRecordCount
+      + " LiveBytes:" + liveBytes + " TotalBytes:" + totalBytes
+      + " Compactions:" + _compactionCount + " CompactedBytes:" + _compactedBytes;
+  }
+
+  /** compact all sealed segments whose live ratio has dropped below the threshold **/
+  void compact() throws IOException {
+    ArrayList<Segment> candidates = new ArrayList<Segment>();
+    synchronized (this) {
+      for (Segment segment : _segments.values()) {
+        if (segment._sealed && !segment._deleted && segment._liveBytes != 0
+            && segment._liveBytes < (long)(segment._length * COMPACTION_THRESHOLD)) {
+          candidates.add(segment);
+        }
+      }
+    }
+    for (Segment segment : candidates) {
+      if (_shutdown)
+        break;
+      compactSegment(segment);
+    }
+  }
+
+  private void compactSegment(Segment source) throws IOException {
+    ArrayList<Run> runs;
+    synchronized (this) {
+      runs = new ArrayList<Run>(source._runs);
+    }
+    long bytesMoved = 0;
+    long offsetOut[] = new long[1];
+
+    for (Run run : runs) {
+      long offset;
+      long length;
+      synchronized (this) {
+        if (run._dead || run._segment != source)
+          continue;
+        offset = run._offset;
+        length = run._bytes;
+        source._pins++;
+      }
+      Segment target = null;
+      try {
+        byte[] data = new byte[(int)length];
+        readFully(source._channel,ByteBuffer.wrap(data),offset);
+        target = _compactionWriter.append(data,data.length,offsetOut);
+      }
+      finally {
+        synchronized (this) {
+          source._pins--;
+          // the run may have been partially (or fully) consumed while we were copying it
+          if (target != null && !run._dead && run._segment == source) {
+            long delta = run._offset - offset;
+            source._runs.remove(run);
+            source._liveBytes -= run._bytes;
+            run._segment = target;
+            run._offset = offsetOut[0] + delta;
+            target._runs.add(run);
+            target._liveBytes += run._bytes;
+          }
+          maybeDeleteSegment(source);
+        }
+      }
+      bytesMoved += length;
+    }
+
+    synchronized (this) {
+      _compactionCount++;
+      _compactedBytes += bytesMoved;
+    }
+    LOG.info("### OverflowStore: Compacted Segment:" + source._id + " Moved:" + bytesMoved + " Bytes");
+  }
+
+  /** positional read of count records starting at offset. returns the number of bytes consumed **/
+  private static long readRecords(Segment segment,long offset,int count,CrawlList list,IntrusiveList<CrawlTarget> targetsOut) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    buffer.limit(0);
+    long position = offset;
+    long bytesConsumed = 0;
+
+    PersistentCrawlTarget persistentTarget = new PersistentCrawlTarget();
+    CRC32 crc = new CRC32();
+
+    for (int i=0;i<count;++i) {
+      buffer = ensureAvailable(segment._channel,buffer,RECORD_HEADER_SIZE,position);
+      position += RECORD_HEADER_SIZE;
+      int  urlDataLen = buffer.getInt();
+      long urlDataCRC = buffer.getLong();
+      if (urlDataLen < 0) {
+        throw new IOException("Crawl Target Overflow Segment Corrupt");
+      }
+      buffer = ensureAvailable(segment._channel,buffer,urlDataLen,position);
+      position += urlDataLen;
+
+      crc.reset();
+      crc.update(buffer.array(),buffer.position(),urlDataLen);
+
+      // validate crc values ...
+      if (crc.getValue() != urlDataCRC) {
+        throw new IOException("Crawl Target Overflow Segment Corrupt");
+      }
+      //populate a persistentTarget from the (in memory) data stream
+      DataInputStream bufferReader = new DataInputStream(new ByteArrayInputStream(buffer.array(),buffer.position(),urlDataLen));
+      persistentTarget.clear();
+      persistentTarget.readFields(bufferReader);
+      buffer.position(buffer.position() + urlDataLen);
+
+      targetsOut.addTail(new CrawlTarget(list,persistentTarget));
+
+      bytesConsumed += RECORD_HEADER_SIZE + urlDataLen;
+    }
+    return bytesConsumed;
+  }
+
+  /**
+   * make sure that at least bytesNeeded bytes are available in the buffer, refilling from the channel
+   * (and growing the buffer if necessary). nextPosition is the file position of the first byte past
+   * the buffer's remaining data.
+   **/
+  private static ByteBuffer ensureAvailable(FileChannel channel,ByteBuffer buffer,int bytesNeeded,long nextPosition) throws IOException {
+    if (buffer.remaining() >= bytesNeeded)
+      return buffer;
+    int remaining = buffer.remaining();
+    if (bytesNeeded > buffer.capacity()) {
+      ByteBuffer newBuffer = ByteBuffer.allocate(((bytesNeeded / READ_BUFFER_SIZE) + 1) * READ_BUFFER_SIZE);
+      newBuffer.put(buffer);
+      buffer = newBuffer;
+    }
+    else {
+      buffer.compact();
+    }
+    long readPosition = nextPosition + remaining;
+    while (buffer.position() < bytesNeeded) {
+      int bytesRead = channel.read(buffer,readPosition);
+      if (bytesRead == -1) {
+        throw new EOFException("Unexpected EOF in Crawl Target Overflow Segment");
+      }
+      readPosition += bytesRead;
+    }
+    buffer.flip();
+    return buffer;
+  }
+
+  private static void readFully(FileChannel channel,ByteBuffer buffer,long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      int bytesRead = channel.read(buffer,position);
+      if (bytesRead == -1) {
+        throw new EOFException("Unexpected EOF in Crawl Target Overflow Segment");
+      }
+      position += bytesRead;
+    }
+  }
+
+  /** account for records consumed from the head run of a list. caller holds the lock **/
+  private void consumeRun(long listId,Run run,int records,long bytes) {
+    run._offset += bytes;
+    run._count -= records;
+    run._bytes -= bytes;
+    run._segment._liveBytes -= bytes;
+    _liveRecordCount -= records;
+
+    if (run._count == 0) {
+      run._dead = true;
+      run._segment._runs.remove(run);
+      ArrayDeque<Run> runs = _lists.get(listId);
+      runs.pollFirst();
+      if (runs.isEmpty()) {
+        _lists.remove(listId);
+      }
+      maybeDeleteSegment(run._segment);
+    }
+  }
+
+  private synchronized Segment createSegment(File directory) throws IOException {
+    int segmentId = _nextSegmentId++;
+    Segment segment = new Segment(segmentId,new File(directory,SEGMENT_PREFIX + segmentId));
+    _segments.put(segmentId,segment);
+    return segment;
+  }
+
+  private synchronized void sealSegment(Segment segment) {
+    segment._sealed = true;
+    maybeDeleteSegment(segment);
+  }
+
+  /** delete a sealed segment once nothing references it. caller holds the lock **/
+  private void maybeDeleteSegment(Segment segment) {
+    if (segment._sealed && !segment._deleted && segment._liveBytes == 0 && segment._pins == 0) {
+      _segments.remove(segment._id);
+      closeAndDeleteSegment(segment);
+    }
+  }
+
+  private static void closeAndDeleteSegment(Segment segment) {
+    segment._deleted = true;
+    try {
+      segment._raf.close();
+    } catch (IOException e) {
+      LOG.error(CCStringUtils.stringifyException(e));
+    }
+    if (!segment._file.delete()) {
+      LOG.error("### OverflowStore: Failed to delete Segment:" + segment._file);
+    }
+  }
+
+  private static final class CustomByteArrayOutputStream extends ByteArrayOutputStream {
+    public CustomByteArrayOutputStream(int initialSize) {
+      super(initialSize);
+    }
+    public byte[] getBuffer() { return buf; }
+  }
+}
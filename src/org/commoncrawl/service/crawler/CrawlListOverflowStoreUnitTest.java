@@ -0,0 +1,376 @@
+/**
+ * Copyright 2008 - CommonCrawl Foundation
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ **/
+package org.commoncrawl.service.crawler;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.commoncrawl.util.IntrusiveList;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Checks that CrawlListOverflowStore hands back every record appended to a
+ * list exactly once and in order - across interleaved lists, writers and
+ * directories, and with compaction running alongside appends and reads - and
+ * that consumed and sparse segments are reclaimed.
+ *
+ * @author rana
+ *
+ */
+public class CrawlListOverflowStoreUnitTest {
+
+  private static File[] createTempDirectories(int count) throws IOException {
+    File directories[] = new File[count];
+    for (int i=0;i<count;++i) {
+      directories[i] = File.createTempFile("CrawlListOverflowStoreUnitTest",".dir");
+      directories[i].delete();
+      Assert.assertTrue(directories[i].mkdir());
+    }
+    return directories;
+  }
+
+  private static void delete(File file) {
+    File children[] = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+
+  /** the segment files currently on disk **/
+  private static ArrayList<String> segmentFiles(File[] directories) {
+    ArrayList<String> files = new ArrayList<String>();
+    for (File directory : directories) {
+      String names[] = new File(directory,CrawlListOverflowStore.OVERFLOW_DIR_NAME).list();
+      if (names != null) {
+        for (String name : names) {
+          files.add(directory.getName() + "/" + name);
+        }
+      }
+    }
+    return files;
+  }
+
+  private static String urlOf(long listId,int sequence) {
+    return "http://www.list" + listId + ".com/" + sequence;
+  }
+
+  /** append records [from,to) of the list as one batch **/
+  private static void append(CrawlListOverflowStore store,int writerIndex,long listId,int from,int to) throws IOException {
+    IntrusiveList<CrawlTarget> targets = new IntrusiveList<CrawlTarget>();
+    for (int i=from;i<to;++i) {
+      targets.addTail(CrawlTarget.createTestCrawlTarget(null,urlOf(listId,i)));
+    }
+    store.append(writerIndex,listId,targets);
+  }
+
+  /** read up to amount records of the list, checking they are the next ones in order. returns the number read **/
+  private static int read(CrawlListOverflowStore store,long listId,int amount,int nextExpected[]) throws IOException {
+    IntrusiveList<CrawlTarget> targets = new IntrusiveList<CrawlTarget>();
+    int itemsRead = store.read(null,listId,amount,targets);
+    Assert.assertEquals(itemsRead,targets.size());
+    Assert.assertTrue(itemsRead <= amount);
+    for (CrawlTarget target : targets) {
+      Assert.assertEquals(urlOf(listId,nextExpected[(int)listId]++),target.getOriginalURL());
+    }
+    return itemsRead;
+  }
+
+  @Test
+  public void testAppendAndDrain() throws Exception {
+    File directories[] = createTempDirectories(2);
+    CrawlListOverflowStore store = new CrawlListOverflowStore(directories,3);
+    try {
+      Random random = new Random(1);
+      int listCount = 12;
+      int appended[] = new int[listCount];
+      int nextExpected[] = new int[listCount];
+
+      // interleaved batches, with repeated batches for the same list (that coalesce into one run)
+      for (int batch=0;batch<600;++batch) {
+        int listId = random.nextInt(listCount);
+        int count = 1 + random.nextInt(50);
+        for (int repeat=random.nextInt(3);repeat>=0;--repeat) {
+          append(store,listId % 3,listId,appended[listId],appended[listId] + count);
+          appended[listId] += count;
+        }
+        // reads along the way
+        if (random.nextInt(4) == 0) {
+          int readListId = random.nextInt(listCount);
+          read(store,readListId,random.nextInt(40),nextExpected);
+        }
+        // and sealed segments
+        if (random.nextInt(50) == 0) {
+          store.closeWriter(random.nextInt(3));
+        }
+      }
+      // an empty batch is a no-op
+      append(store,0,0,appended[0],appended[0]);
+      long totalAppended = 0;
+      long totalRead = 0;
+      for (int listId=0;listId<listCount;++listId) {
+        totalAppended += appended[listId];
+        totalRead += nextExpected[listId];
+      }
+      Assert.assertEquals(totalAppended - totalRead,store.getLiveRecordCount());
+      Assert.assertTrue(store.getSegmentCount() > 3);
+
+      // drain every list, in reads of every size
+      for (int listId=0;listId<listCount;++listId) {
+        while (read(store,listId,1 + random.nextInt(100),nextExpected) != 0);
+        Assert.assertEquals(appended[listId],nextExpected[listId]);
+      }
+      Assert.assertEquals(0,store.getLiveRecordCount());
+
+      // consumed sealed segments are deleted as they empty, the active ones once they are sealed
+      Assert.assertTrue(store.getSegmentCount() <= 3);
+      for (int i=0;i<3;++i) {
+        store.closeWriter(i);
+      }
+      Assert.assertEquals(0,store.getSegmentCount());
+      Assert.assertEquals(new ArrayList<String>(),segmentFiles(directories));
+
+      // truncated lists give their space back too
+      append(store,0,0,0,100);
+      append(store,0,1,0,100);
+      store.closeWriter(0);
+      store.truncate(0);
+      Assert.assertEquals(100,store.getLiveRecordCount());
+      Assert.assertEquals(0,store.read(null,0,10,new IntrusiveList<CrawlTarget>()));
+      nextExpected[1] = 0;
+      Assert.assertEquals(100,read(store,1,1000,nextExpected));
+      Assert.assertEquals(0,store.getSegmentCount());
+    }
+    finally {
+      store.close();
+      for (File directory : directories) {
+        delete(directory);
+      }
+    }
+  }
+
+  @Test
+  public void testCompactionReclaimsSparseSegments() throws Exception {
+    File directories[] = createTempDirectories(1);
+    CrawlListOverflowStore store = new CrawlListOverflowStore(directories,1);
+    try {
+      int nextExpected[] = new int[3];
+      // list 0 takes up most of the segment, lists 1 and 2 a few percent each
+      for (int batch=0;batch<10;++batch) {
+        append(store,0,0,batch * 100,(batch + 1) * 100);
+        append(store,0,1,batch * 5,(batch + 1) * 5);
+        append(store,0,2,batch * 5,(batch + 1) * 5);
+      }
+      store.closeWriter(0);
+      ArrayList<String> sparseSegment = segmentFiles(directories);
+      Assert.assertEquals(1,sparseSegment.size());
+
+      // a segment that is mostly live is left alone
+      store.compact();
+      Assert.assertEquals(sparseSegment,segmentFiles(directories));
+      read(store,0,500,nextExpected);
+      store.compact();
+      Assert.assertEquals(sparseSegment,segmentFiles(directories));
+
+      // once it's sparse, the live records are moved out, and the segment is deleted
+      read(store,0,500,nextExpected);
+      read(store,1,3,nextExpected);
+      Assert.assertEquals(0,store.getCompactionCount());
+      store.compact();
+      Assert.assertEquals(1,store.getCompactionCount());
+      ArrayList<String> compactedSegment = segmentFiles(directories);
+      Assert.assertEquals(1,compactedSegment.size());
+      Assert.assertFalse(compactedSegment.equals(sparseSegment));
+      Assert.assertEquals(97,store.getLiveRecordCount());
+
+      // and read back from the copy, in order
+      Assert.assertEquals(47,read(store,1,1000,nextExpected));
+      Assert.assertEquals(50,read(store,2,1000,nextExpected));
+      Assert.assertEquals(0,store.getLiveRecordCount());
+      Assert.assertEquals(Arrays.asList(1000,50,50),Arrays.asList(nextExpected[0],nextExpected[1],nextExpected[2]));
+    }
+    finally {
+      store.close();
+      Assert.assertEquals(new ArrayList<String>(),segmentFiles(directories));
+      delete(directories[0]);
+    }
+  }
+
+  /**
+   * a thread that reads the list (up to maxRead records at a time) until a read
+   * returns nothing after writersDone[0] is set
+   */
+  private static Thread readerThread(final CrawlListOverflowStore store,final int listId,final int maxRead,
+      final int nextExpected[],final boolean writersDone[],final AtomicReference<Throwable> failure) {
+    return new Thread() {
+
+      @Override
+      public void run() {
+        try {
+          Random random = new Random(listId);
+          while (failure.get() == null) {
+            boolean done;
+            synchronized (writersDone) {
+              done = writersDone[0];
+            }
+            if (read(store,listId,1 + random.nextInt(maxRead),nextExpected) == 0) {
+              if (done)
+                break;
+              Thread.yield();
+            }
+          }
+        }
+        catch (Throwable e) {
+          failure.set(e);
+        }
+      }
+    };
+  }
+
+  private static void join(ArrayList<Thread> threads,AtomicReference<Throwable> failure) throws InterruptedException {
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    if (failure.get() != null) {
+      throw new AssertionError(failure.get());
+    }
+  }
+
+  @Test
+  public void testCompactionAlongsideReads() throws Exception {
+    final File directories[] = createTempDirectories(2);
+    final CrawlListOverflowStore store = new CrawlListOverflowStore(directories,2);
+    final int listCount = 16;
+    final int batchCount = 10;
+    final int appended[] = new int[listCount];
+    int nextExpected[] = new int[listCount];
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    final boolean writersDone[] = new boolean[1];
+
+    try {
+      // a writer per append context, each writing its own lists, and sealing its segment after every batch.
+      // lists 0,1,4,5,... get the larger batches
+      ArrayList<Thread> threads = new ArrayList<Thread>();
+      for (int writer=0;writer<2;++writer) {
+        final int writerIndex = writer;
+        threads.add(new Thread() {
+
+          @Override
+          public void run() {
+            try {
+              Random random = new Random(writerIndex);
+              for (int batch=0;batch<batchCount;++batch) {
+                for (int listId=writerIndex;listId<listCount;listId+=2) {
+                  int count = ((listId & 2) == 0) ? 2000 + random.nextInt(1000) : 1500 + random.nextInt(500);
+                  append(store,writerIndex,listId,appended[listId],appended[listId] + count);
+                  appended[listId] += count;
+                }
+                store.closeWriter(writerIndex);
+              }
+            }
+            catch (Throwable e) {
+              failure.set(e);
+            }
+          }
+        });
+      }
+      // with the large lists drained as they are written
+      for (int listId=0;listId<listCount;++listId) {
+        if ((listId & 2) == 0) {
+          threads.add(readerThread(store,listId,1000,nextExpected,writersDone,failure));
+        }
+      }
+      for (Thread thread : threads) {
+        thread.start();
+      }
+      threads.get(0).join();
+      threads.get(1).join();
+      synchronized (writersDone) {
+        writersDone[0] = true;
+      }
+      join(threads,failure);
+
+      // which leaves the remaining lists holding ~40% of every segment. read those a few records at a time while
+      // compacting, so that each segment turns sparse (and is copied) while its runs are being consumed
+      Assert.assertTrue(store.getSegmentCount() >= batchCount * 2);
+      Assert.assertEquals(0,store.getCompactionCount());
+      threads.clear();
+      for (int listId=0;listId<listCount;++listId) {
+        if ((listId & 2) != 0) {
+          threads.add(readerThread(store,listId,3,nextExpected,writersDone,failure));
+        }
+      }
+      final boolean readersDone[] = new boolean[1];
+      Thread compactor = new Thread() {
+
+        @Override
+        public void run() {
+          try {
+            while (failure.get() == null) {
+              synchronized (readersDone) {
+                if (readersDone[0])
+                  break;
+              }
+              store.compact();
+            }
+          }
+          catch (Throwable e) {
+            failure.set(e);
+          }
+        }
+      };
+      for (Thread thread : threads) {
+        thread.start();
+      }
+      compactor.start();
+      join(threads,failure);
+      synchronized (readersDone) {
+        readersDone[0] = true;
+      }
+      compactor.join();
+      if (failure.get() != null) {
+        throw new AssertionError(failure.get());
+      }
+
+      // every record came back, exactly once (in order, as checked by read)
+      for (int listId=0;listId<listCount;++listId) {
+        Assert.assertTrue(appended[listId] != 0);
+        Assert.assertEquals(appended[listId],nextExpected[listId]);
+      }
+      Assert.assertEquals(0,store.getLiveRecordCount());
+      Assert.assertTrue(store.getCompactionCount() > 0);
+      // and every sealed segment is gone. only the compactor's (unsealed, empty) active segment may be left
+      Assert.assertTrue(store.getSegmentCount() <= 1);
+      Assert.assertTrue(segmentFiles(directories).size() <= 1);
+    }
+    finally {
+      store.close();
+      Assert.assertEquals(new ArrayList<String>(),segmentFiles(directories));
+      for (File directory : directories) {
+        delete(directory);
+      }
+    }
+  }
+}
@@ -23,12 +23,10 @@ package org.commoncrawl.service.crawler;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Comparator;
 import java.util.LinkedList;
-import java.util.PriorityQueue;
 import java.util.Set;
-import java.util.TreeMap;
 
 import javax.servlet.jsp.JspWriter;
 
@@ -42,10 +40,12 @@ import org.commoncrawl.protocol.URLFP;
 import org.commoncrawl.protocol.CrawlURL.FailureReason;
 import org.commoncrawl.service.statscollector.CrawlerStats;
 import org.commoncrawl.util.CCStringUtils;
+import org.commoncrawl.util.IntObjectOpenHashMap;
 import org.commoncrawl.util.RuntimeStatsCollector;
 import org.commoncrawl.util.URLUtils;
 
 import com.google.common.collect.ImmutableSet;
+import com.google.common.primitives.Ints;
 
 /**
  * A queue that manages a set of Crawlable Hosts
@@ -56,7 +56,7 @@ import com.google.common.collect.ImmutableSet;
 public final class CrawlQueue {
 
     /** constants **/
-    private static final int SCHEDULER_QUEUE_INITIAL_SIZE = 10000;
+    private static final int HOST_MAP_INITIAL_SIZE = 10000;
     
     private static final int SCHEDULER_SCAN_INTERVAL = 1000;
     
@@ -80,26 +80,15 @@ public final class CrawlQueue {
     private long      _lastIdleCheckTime = -1;
     private long      _purgedHostCount = 0;
 
-    /** active host map **/
-    private TreeMap<Integer,CrawlQueueHost> _activeHosts    = new TreeMap<Integer,CrawlQueueHost>();
-    /** idle host map **/
-    private TreeMap<Integer,CrawlQueueHost> _idleHosts    = new TreeMap<Integer,CrawlQueueHost>();
+    /** active host map (by ip address) **/
+    private IntObjectOpenHashMap<CrawlQueueHost> _activeHosts = new IntObjectOpenHashMap<CrawlQueueHost>(HOST_MAP_INITIAL_SIZE);
+    /** idle host map (by ip address) **/
+    private IntObjectOpenHashMap<CrawlQueueHost> _idleHosts = new IntObjectOpenHashMap<CrawlQueueHost>(HOST_MAP_INITIAL_SIZE);
     
-    /** scheduled host priority queue **/
-    private PriorityQueue<CrawlQueueHost> _schedulerQueue = new PriorityQueue<CrawlQueueHost>(SCHEDULER_QUEUE_INITIAL_SIZE, 
-        
-        new Comparator<CrawlQueueHost>() {
-
-          public int compare(CrawlQueueHost host1, CrawlQueueHost host2) {
-            if (host1.getWaitTime() < host2.getWaitTime()) { 
-              return -1;
-            }
-            else if (host1.getWaitTime() > host2.getWaitTime()) { 
-              return 1;
-            }
-            return 0;
-          } 
-        });
+    /** hosts in a wait state, by wait time (keyed by ip address) **/
+    private HostScheduler<CrawlQueueHost> _scheduler = new HostScheduler<CrawlQueueHost>();
+    /** hosts that cleared the wait state in the current scheduler pass (reused) **/
+    private ArrayList<CrawlQueueHost> _readyList = new ArrayList<CrawlQueueHost>();
 
     public CrawlQueue(Protocol protocol,Fetcher fetcher) { 
       
@@ -113,34 +102,17 @@ public final class CrawlQueue {
 
         public void timerFired(Timer timer) {
           
-          // list of hosts that have cleared the wait state ... 
-          LinkedList<CrawlQueueHost> readyList = new LinkedList<CrawlQueueHost>();
+          long currentTime = System.currentTimeMillis();
           
-          CrawlQueueHost  item = null;
-          
-          Long currentTime = System.currentTimeMillis();
-          
-          while ( (item = _schedulerQueue.peek()) != null) { 
-            
-            // check to see if this host's timer has expired ... 
-            if (currentTime >= item.getWaitTime()) {
-              
-              // remove from queue ... 
-              _schedulerQueue.remove();
-
-              // add to ready list ... 
-              readyList.add(item);
-            }
-            else { 
-              // break out of loop
-              break;
-            }
-          }
+          // collect hosts whose timer has expired ... 
+          _scheduler.drain(currentTime, _readyList);
           
-          // now walk ready list and clear the host's wait state 
-          for (CrawlQueueHost readyHost : readyList) { 
-            readyHost.clearWaitState();
+          // now walk ready list and clear the host's wait state (this may 
+          // reschedule the host, which is why it is done after the drain)
+          for (int i=0;i<_readyList.size();++i) { 
+            _readyList.get(i).clearWaitState();
           }
+          _readyList.clear();
           
           if (_lastIdleCheckTime == -1 || System.currentTimeMillis() - _lastIdleCheckTime >= IDLE_SCAN_INTERVAL) { 
             
@@ -200,6 +172,8 @@ public final class CrawlQueue {
         host.purgeReferences();
         // and remove it from the map ... 
         _idleHosts.remove(host.getIPAddress());
+        // and drop its scheduler entry 
+        _scheduler.cancel(host.getIPAddress());
         // increment stats ... 
         ++_purgedHostCount;
       }
@@ -436,11 +410,12 @@ public final class CrawlQueue {
     }
     
     void setTimer(CrawlQueueHost host,long timeoutTime) { 
-      _schedulerQueue.add(host);
+      // a host that is already scheduled simply moves to the new time 
+      _scheduler.schedule(host.getIPAddress(),host,timeoutTime);
     }
     
     void killTimer(CrawlQueueHost host) { 
-      _schedulerQueue.remove(host);
+      _scheduler.cancel(host.getIPAddress());
     }
 
     /** clear / reset queue **/
@@ -459,7 +434,7 @@ public final class CrawlQueue {
       getEngine().incDecActiveHostCount(-_activeHosts.size());
       
       _activeHosts.clear();
-      _schedulerQueue.clear();
+      _scheduler.clear();
     }
     
     void shutdown() { 
@@ -484,13 +459,18 @@ public final class CrawlQueue {
     void collectStats(CrawlerStats crawlerStats,RuntimeStatsCollector stats) { 
     
       stats.setIntValue(CrawlerEngineStats.ID,CrawlerEngineStats.Name.CrawlQueue_ActiveHostsCount, _activeHosts.size());
-      stats.setIntValue(CrawlerEngineStats.ID,CrawlerEngineStats.Name.CrawlQueue_ScheduledHostsCount, _schedulerQueue.size());
+      stats.setIntValue(CrawlerEngineStats.ID,CrawlerEngineStats.Name.CrawlQueue_ScheduledHostsCount, _scheduler.size());
+      stats.setLongValue(CrawlerEngineStats.ID,CrawlerEngineStats.Name.CrawlQueue_ScheduleLagAvgMS, _scheduler.getAverageLag());
+      stats.setLongValue(CrawlerEngineStats.ID,CrawlerEngineStats.Name.CrawlQueue_ScheduleLagMaxMS, _scheduler.getMaxLag());
+      stats.setLongValue(CrawlerEngineStats.ID,CrawlerEngineStats.Name.CrawlQueue_LastReadyHostsCount, _scheduler.getLastDrainCount());
+      // lag stats cover the interval between stats collections 
+      _scheduler.resetLagStats();
       stats.setIntValue(CrawlerEngineStats.ID,CrawlerEngineStats.Name.CrawlQueue_IdledHostsCount,_idleHosts.size());
       stats.setLongValue(CrawlerEngineStats.ID,CrawlerEngineStats.Name.CrawlQueue_PurgedHostsCount,_purgedHostCount);
 
       synchronized(crawlerStats) { 
         crawlerStats.setActiveHosts(_activeHosts.size());
-        crawlerStats.setScheduledHosts(_schedulerQueue.size());
+        crawlerStats.setScheduledHosts(_scheduler.size());
         crawlerStats.setIdledHosts(_idleHosts.size());
       }
         
@@ -626,6 +606,6 @@ public final class CrawlQueue {
     }
     
     public Set<Integer> getActiveHostIPs() {
-    	return ImmutableSet.copyOf(_activeHosts.keySet()); 
+    	return ImmutableSet.copyOf(Ints.asList(_activeHosts.keys())); 
     }
 }
@@ -376,7 +376,7 @@ public final class CrawlerEngine implements SegmentLoader.CancelOperationCallbac
       }
 
       LOG.info("Starting CrawlDomain Disk Queueing Thread");
-      CrawlList.startDiskQueueingThread(this.getEventLoop(),getServer().getDomainQueueDir());
+      CrawlList.startDiskQueueingThreads(this.getEventLoop(),getServer().getOverflowStoreDirs(),getServer().getDiskQueueWorkerCount());
       LOG.info("Initialize HTTP Crawl Queue");
       HttpFetcher fetcher = new HttpFetcher(_maxTCPSockets,crawlInterfaceList,getServer().getHostName());
       _httpCrawlQueue = new CrawlQueue(CrawlQueue.Protocol.HTTP,fetcher);
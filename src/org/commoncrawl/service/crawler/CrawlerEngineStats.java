@@ -56,6 +56,9 @@ public final class CrawlerEngineStats extends RuntimeStatsCollector.Namespace {
     // CrawlQueue_ZombieList,
     CrawlQueue_CNameToFPCacheSize,
     CrawlQueue_PurgedHostsCount,
+    CrawlQueue_ScheduleLagAvgMS,
+    CrawlQueue_ScheduleLagMaxMS,
+    CrawlQueue_LastReadyHostsCount,
     
     
     // HTTP Fetcher Stats
@@ -78,6 +81,12 @@ public final class CrawlerEngineStats extends RuntimeStatsCollector.Namespace {
     HTTPFetcher_LaggingConnectionDetailArray,
     HTTPFetcher_CumilativeKBytesIN,
     HTTPFetcher_CumilativeKBytesOUT,
+    HTTPFetcher_KeepAliveIdleSockets,
+    HTTPFetcher_KeepAlivePoolHits,
+    HTTPFetcher_KeepAlivePoolMisses,
+    HTTPFetcher_KeepAlivePoolEvictions,
+    HTTPFetcher_KeepAliveRetries,
+    HTTPFetcher_IOLoopConnectionCounts,
     
     //DNS 
     DNS_TotalDNSQueries,
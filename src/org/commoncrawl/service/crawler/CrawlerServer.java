@@ -38,10 +38,13 @@ import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.DataInputBuffer;
 import org.apache.hadoop.io.WritableUtils;
+import org.commoncrawl.async.EventLoopGroup;
 import org.commoncrawl.async.Timer;
 import org.commoncrawl.async.ConcurrentTask.CompletionCallback;
 import org.commoncrawl.common.Environment;
 import org.commoncrawl.crawl.common.internal.CrawlEnvironment;
+import org.commoncrawl.io.NIOBufferPool;
+import org.commoncrawl.io.NIODNSPipelinedResolver;
 import org.commoncrawl.io.NIODNSResolver;
 import org.commoncrawl.io.NIOHttpConnection;
 import org.commoncrawl.protocol.ActiveHostInfo;
@@ -131,6 +134,9 @@ public class CrawlerServer extends CommonCrawlServer
   private AsyncClientChannel    _dnsServiceChannel;
   private DNSService.AsyncStub  _dnsServiceStub;
   private DNSServiceResolver    _dnsServiceResolver;
+  /** optional local (pipelined udp) resolver that bypasses the dns service **/
+  private String                _localDNSServer;
+  private NIODNSPipelinedResolver _localDNSResolver;
 	
   /** Directory Service Stub **/
   InetAddress                       _directoryServiceAddress;  
@@ -180,8 +186,18 @@ public class CrawlerServer extends CommonCrawlServer
 	
 	private String                     _unitTestName = null;
 	private File                       _domainQueueDirectory = null;
+	/** additional directories (spindles) the crawl list overflow store is spread across **/
+	private File[]                     _overflowDirectories = null;
+	/** number of crawl list disk queue worker threads **/
+	private int                        _diskQueueWorkerCount = CrawlList.DEFAULT_DISK_QUEUE_WORKER_COUNT;
 	private InetSocketAddress[]        _crawlInterface = null;
 	private InetSocketAddress          _proxyAddress = null;
+	private boolean                    _useKeepAlive = false;
+	/** number of event loops used for fetcher socket i/o (1 == server event loop only) **/
+	private int                        _ioLoopCount = 1;
+	private EventLoopGroup             _ioLoopGroup = null;
+	/** optional pool used for fetcher response buffers (null == plain heap allocation) **/
+	private NIOBufferPool              _fetchBufferPool = null;
 
   private static final int DEFAULT_DNS_HIGH_WATER_MARK = 500;
   private static final int DEFAULT_DNS_LOW_WATER_MARK  = 10;
@@ -240,8 +256,33 @@ public class CrawlerServer extends CommonCrawlServer
 	/** get the domain queue storage directory name **/
 	public File getDomainQueueDir() { return _domainQueueDirectory; }
 	
+	/** get the directories the crawl list overflow store is spread across (the domain queue dir first) **/
+	public File[] getOverflowStoreDirs() { 
+	  if (_overflowDirectories == null) 
+	    return new File[] { _domainQueueDirectory };
+	  File[] dirsOut = new File[_overflowDirectories.length + 1];
+	  dirsOut[0] = _domainQueueDirectory;
+	  System.arraycopy(_overflowDirectories, 0, dirsOut, 1, _overflowDirectories.length);
+	  return dirsOut;
+	}
+	
+	/** get the number of crawl list disk queue worker threads **/
+	public int getDiskQueueWorkerCount() { return _diskQueueWorkerCount; }
+	
 	/** get the dns service resolver **/
-	public NIODNSResolver getDNSServiceResolver() { return _dnsServiceResolver; }
+	public NIODNSResolver getDNSServiceResolver() { 
+	  return (_localDNSResolver != null) ? _localDNSResolver : _dnsServiceResolver; 
+	}
+	
+	/** get the buffer pool used for fetcher response buffers (or null if pooling is disabled) **/
+	public NIOBufferPool getFetchBufferPool() { 
+	  return _fetchBufferPool;
+	}
+	
+	/** get the event loop group used for fetcher socket i/o (loop 0 is the server event loop) **/
+	public EventLoopGroup getIOLoopGroup() { 
+	  return _ioLoopGroup;
+	}
 	
 	/** get directory service address **/
 	public InetAddress getDirectoryServiceAddress() { return _directoryServiceAddress; }
@@ -286,6 +327,10 @@ public class CrawlerServer extends CommonCrawlServer
         databasePath.delete();
     }    
 
+    // spin up additional i/o loops if requested 
+    _ioLoopGroup = new EventLoopGroup(_eventLoop,_ioLoopCount,registerThreadPool(DNS_POOL_NAME,1));
+    _ioLoopGroup.start();
+
     _crawlerStatus = new CrawlerStatus();
     _crawlerStatus.setActiveListNumber(0);
     _crawlerStatus.setCrawlerState(CrawlerStatus.CrawlerState.IDLE);
@@ -309,6 +354,11 @@ public class CrawlerServer extends CommonCrawlServer
       _dnsServiceStub = new DNSService.AsyncStub(_dnsServiceChannel);
       _dnsServiceResolver = new DNSServiceResolver(_dnsServiceStub);
       
+      if (_localDNSServer != null) { 
+        LOG.info("Using Local Pipelined DNS Resolver against:" + _localDNSServer);
+        _localDNSResolver = new NIODNSPipelinedResolver(_eventLoop, _localDNSServer);
+      }
+      
       LOG.info("Loading Filters");
       reloadFilters();
       
@@ -425,6 +475,11 @@ public class CrawlerServer extends CommonCrawlServer
           if (i+1 < argv.length) { 
             _dnsServiceAddress = new InetSocketAddress(argv[++i],CrawlEnvironment.DNS_SERVICE_RPC_PORT);
           }
+        }
+	      else if (argv[i].equalsIgnoreCase("--localDNS")) { 
+          if (i+1 < argv.length) { 
+            _localDNSServer = argv[++i];
+          }
         }
 	      else if (argv[i].equalsIgnoreCase("--maxSockets")) { 
           if (i+1 < argv.length) { 
@@ -452,6 +507,16 @@ public class CrawlerServer extends CommonCrawlServer
         else if (argv[i].equalsIgnoreCase("--domainQueueDir")) { 
           _domainQueueDirectory = new File(argv[++i]);
         }
+        else if (argv[i].equalsIgnoreCase("--overflowDirs")) { 
+          String dirList[] = argv[++i].split(";");
+          _overflowDirectories = new File[dirList.length];
+          for (int j=0;j<dirList.length;++j) { 
+            _overflowDirectories[j] = new File(dirList[j]);
+          }
+        }
+        else if (argv[i].equalsIgnoreCase("--diskQueueWorkers")) { 
+          _diskQueueWorkerCount = Math.max(1,Integer.parseInt(argv[++i]));
+        }
         else if (argv[i].equalsIgnoreCase("--crawlInterface")) { 
           String interfaceList[] = argv[++i].split(";");
           _crawlInterface = new InetSocketAddress[interfaceList.length];
@@ -467,6 +532,25 @@ public class CrawlerServer extends CommonCrawlServer
         else if (argv[i].equalsIgnoreCase("--useProxyServer")) { 
           _proxyAddress = CCStringUtils.parseSocketAddress(argv[++i]);
         }
+        else if (argv[i].equalsIgnoreCase("--keepAlive")) { 
+          _useKeepAlive = true;
+        }
+        else if (argv[i].equalsIgnoreCase("--ioLoops")) { 
+          _ioLoopCount = Math.max(1,Integer.parseInt(argv[++i]));
+        }
+        else if (argv[i].equalsIgnoreCase("--bufferPool")) { 
+          String poolType = argv[++i];
+          if (poolType.equalsIgnoreCase("direct")) { 
+            _fetchBufferPool = NIOBufferPool.getDirectPool();
+          }
+          else if (poolType.equalsIgnoreCase("heap")) { 
+            _fetchBufferPool = NIOBufferPool.getHeapPool();
+          }
+          else { 
+            LOG.error("Invalid Buffer Pool Type:" + poolType + " (expected heap or direct)");
+            return false;
+          }
+        }
         else if (argv[i].equalsIgnoreCase("--directoryserver")) { 
           if (i+1 < argv.length) { 
             try {
@@ -608,6 +692,11 @@ public class CrawlerServer extends CommonCrawlServer
   public InetSocketAddress getProxyAddress() { 
     return _proxyAddress;
   }
+
+  /** use persistent (keep-alive) http connections **/
+  public boolean useKeepAlive() { 
+    return _useKeepAlive;
+  }
   
   @Override
   public String getHostName() {
@@ -1259,6 +1348,11 @@ public class CrawlerServer extends CommonCrawlServer
   		_engine.stopCrawlerCleanly();
   		_engine = null;
   	}
+  	if (_ioLoopGroup != null) { 
+  	  LOG.info("Stopping I/O Loops");
+  	  _ioLoopGroup.stop();
+  	  _ioLoopGroup = null;
+  	}
   	LOG.info("CrawlerServer: Calling Super Stop");
   	super.stop();
   }
@@ -0,0 +1,285 @@
+/**
+ * Copyright 2008 - CommonCrawl Foundation
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ **/
+package org.commoncrawl.service.crawler;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.commoncrawl.util.IntObjectOpenHashMap;
+
+/**
+ * A calendar queue of hosts, keyed by the time at which each host is next
+ * eligible for a fetch.
+ *
+ * Time is divided into buckets of a fixed width, and the buckets form a ring
+ * (a calendar "year"), so a host lands in bucket (time / width) mod
+ * bucketCount. Each bucket is an intrusive doubly linked list of entries,
+ * and entries are found by host key via an int keyed open hash map, so
+ * schedule, reschedule (e.g. on a crawl-delay change) and cancel are all
+ * O(1). Draining visits only the buckets between the last drain and now.
+ * Hosts scheduled further out than a full year share buckets with nearer
+ * hosts and are simply skipped until their time comes around.
+ *
+ * A released host keeps its (unlinked) entry, since it is usually
+ * rescheduled right after its fetch, so the release / reschedule cycle
+ * doesn't touch the map. Entries are only dropped by cancel (or clear), so
+ * callers should cancel hosts they are done with. Dropped entries are
+ * recycled, so steady state scheduling doesn't allocate.
+ * Not thread safe (the crawl queue only touches it from the event thread).
+ *
+ * @author rana
+ *
+ */
+final class HostScheduler<T> {
+
+  public static final int DEFAULT_BUCKET_WIDTH_MS = 100;
+  /** 8192 x 100ms buckets ~= 13.6 minute year **/
+  public static final int DEFAULT_BUCKET_COUNT = 8192;
+
+  private static final long NOT_STARTED = Long.MIN_VALUE;
+  /** bucket value of an entry that is not currently scheduled **/
+  private static final int NO_BUCKET = -1;
+
+  /** a scheduled host **/
+  static final class Entry<T> {
+    int      _key;
+    T        _host;
+    long     _time;
+    int      _bucket;
+    Entry<T> _prev;
+    Entry<T> _next;
+  }
+
+  private final int _bucketWidth;
+  private final int _bucketMask;
+  private final Entry<T> _buckets[];
+  /** entries of scheduled and released (but not yet cancelled) hosts **/
+  private final IntObjectOpenHashMap<Entry<T>> _entries;
+  private int _scheduledCount = 0;
+  /** free entry list (linked via _next) **/
+  private Entry<T> _freeList = null;
+  /** absolute number (time / width) of the first bucket the next drain has to visit **/
+  private long _nextBucket = NOT_STARTED;
+
+  /** lag stats (how late hosts were released vs. their scheduled time) **/
+  private long _releasedCount = 0;
+  private long _totalLag = 0;
+  private long _maxLag = 0;
+  private long _lastDrainCount = 0;
+
+  public HostScheduler() {
+    this(DEFAULT_BUCKET_WIDTH_MS, DEFAULT_BUCKET_COUNT);
+  }
+
+  @SuppressWarnings("unchecked")
+  public HostScheduler(int bucketWidthMS, int bucketCount) {
+    if (bucketWidthMS <= 0 || bucketCount <= 0 || Integer.bitCount(bucketCount) != 1) {
+      throw new IllegalArgumentException("Invalid bucket width:" + bucketWidthMS + " or count (must be a power of 2):"
+          + bucketCount);
+    }
+    _bucketWidth = bucketWidthMS;
+    _bucketMask = bucketCount - 1;
+    _buckets = new Entry[bucketCount];
+    _entries = new IntObjectOpenHashMap<Entry<T>>(bucketCount);
+  }
+
+  /** number of hosts currently scheduled **/
+  public int size() {
+    return _scheduledCount;
+  }
+
+  /** returns true if a host with the given key is scheduled **/
+  public boolean isScheduled(int key) {
+    Entry<T> entry = _entries.get(key);
+    return entry != null && entry._bucket != NO_BUCKET;
+  }
+
+  /** returns the time a host is scheduled for, or -1 if it is not scheduled **/
+  public long getScheduledTime(int key) {
+    Entry<T> entry = _entries.get(key);
+    return (entry != null && entry._bucket != NO_BUCKET) ? entry._time : -1;
+  }
+
+  /**
+   * schedule a host to be released at (or after) the given time. If the host
+   * is already scheduled, it is moved to the new time.
+   */
+  public void schedule(int key, T host, long time) {
+    int bucket = bucketFor(time);
+    Entry<T> entry = _entries.get(key);
+    if (entry != null) {
+      entry._host = host;
+      entry._time = time;
+      if (entry._bucket == bucket) {
+        return;
+      }
+      if (entry._bucket != NO_BUCKET) {
+        unlink(entry);
+        _scheduledCount--;
+      }
+    } else {
+      entry = allocate();
+      entry._key = key;
+      entry._host = host;
+      entry._time = time;
+      _entries.put(key, entry);
+    }
+    link(entry, bucket);
+    _scheduledCount++;
+  }
+
+  /**
+   * unschedule a host (if scheduled) and drop its entry. returns false if the
+   * host was not scheduled
+   */
+  public boolean cancel(int key) {
+    Entry<T> entry = _entries.remove(key);
+    if (entry != null) {
+      boolean wasScheduled = (entry._bucket != NO_BUCKET);
+      if (wasScheduled) {
+        unlink(entry);
+        _scheduledCount--;
+      }
+      release(entry);
+      return wasScheduled;
+    }
+    return false;
+  }
+
+  /** unschedule all hosts **/
+  public void clear() {
+    for (Entry<T> entry : _entries.values()) {
+      release(entry);
+    }
+    _entries.clear();
+    Arrays.fill(_buckets, null);
+    _scheduledCount = 0;
+  }
+
+  /**
+   * remove all hosts whose scheduled time is at or before the specified time,
+   * and append them to readyOut. returns the number of hosts released.
+   */
+  public int drain(long currentTime, List<T> readyOut) {
+    long currentBucket = currentTime / _bucketWidth;
+    // a full year visits every bucket, so never go back further than that
+    long firstBucket = currentBucket - _bucketMask;
+    if (_nextBucket != NOT_STARTED && _nextBucket > firstBucket) {
+      firstBucket = Math.min(_nextBucket, currentBucket);
+    }
+
+    int released = 0;
+    if (_scheduledCount != 0) {
+      for (long bucket = firstBucket; bucket <= currentBucket; ++bucket) {
+        Entry<T> entry = _buckets[(int) (bucket & _bucketMask)];
+        while (entry != null) {
+          Entry<T> next = entry._next;
+          if (entry._time <= currentTime) {
+            long lag = currentTime - entry._time;
+            _totalLag += lag;
+            _maxLag = Math.max(_maxLag, lag);
+            _releasedCount++;
+
+            unlink(entry);
+            _scheduledCount--;
+            readyOut.add(entry._host);
+            ++released;
+          }
+          entry = next;
+        }
+      }
+    }
+    // the current bucket may still hold hosts due later in this bucket, so
+    // the next drain starts with it
+    _nextBucket = currentBucket;
+    _lastDrainCount = released;
+    return released;
+  }
+
+  /** number of hosts released by the last drain **/
+  public long getLastDrainCount() {
+    return _lastDrainCount;
+  }
+
+  /** average release lag (ms) since the last call to resetLagStats **/
+  public long getAverageLag() {
+    return (_releasedCount != 0) ? _totalLag / _releasedCount : 0;
+  }
+
+  /** max release lag (ms) since the last call to resetLagStats **/
+  public long getMaxLag() {
+    return _maxLag;
+  }
+
+  public void resetLagStats() {
+    _releasedCount = 0;
+    _totalLag = 0;
+    _maxLag = 0;
+  }
+
+  private int bucketFor(long time) {
+    long bucket = time / _bucketWidth;
+    // hosts that are already due go into the next bucket to be drained
+    if (_nextBucket != NOT_STARTED && bucket < _nextBucket) {
+      bucket = _nextBucket;
+    }
+    return (int) (bucket & _bucketMask);
+  }
+
+  private void link(Entry<T> entry, int bucket) {
+    Entry<T> head = _buckets[bucket];
+    entry._bucket = bucket;
+    entry._prev = null;
+    entry._next = head;
+    if (head != null) {
+      head._prev = entry;
+    }
+    _buckets[bucket] = entry;
+  }
+
+  private void unlink(Entry<T> entry) {
+    if (entry._prev != null) {
+      entry._prev._next = entry._next;
+    } else {
+      _buckets[entry._bucket] = entry._next;
+    }
+    if (entry._next != null) {
+      entry._next._prev = entry._prev;
+    }
+    entry._bucket = NO_BUCKET;
+    entry._prev = null;
+    entry._next = null;
+  }
+
+  private Entry<T> allocate() {
+    Entry<T> entry = _freeList;
+    if (entry != null) {
+      _freeList = entry._next;
+      entry._next = null;
+      return entry;
+    }
+    return new Entry<T>();
+  }
+
+  private void release(Entry<T> entry) {
+    entry._host = null;
+    entry._prev = null;
+    entry._next = _freeList;
+    _freeList = entry;
+  }
+}
@@ -0,0 +1,244 @@
+/**
+ * Copyright 2008 - CommonCrawl Foundation
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ **/
+package org.commoncrawl.service.crawler;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * Replays a simulated crawl against the legacy CrawlQueue scheduler (a
+ * PriorityQueue ordered by wait time, with remove(Object) to kill a timer)
+ * and the HostScheduler calendar queue.
+ *
+ * Every host starts in a wait state. Each scheduler tick (on a simulated
+ * clock) releases the hosts that are due, and each released host is put back
+ * into a wait state for its crawl delay. A fraction of the scheduled hosts
+ * get their crawl delay changed (robots.txt refresh, server errors) each
+ * tick, which kills and resets their timer. Crawl delays follow a rough
+ * production mix: mostly default politeness delays, some slower hosts,
+ * robots crawl-delay directives, and a tail of multi minute back-offs.
+ *
+ * Both schedulers see the same sequence of events, and the benchmark
+ * verifies that they release the same hosts on every tick.
+ *
+ * Usage: HostSchedulerBenchmark [hostCount] [ticks] [delayChangesPerTick]
+ *
+ * @author rana
+ *
+ */
+public class HostSchedulerBenchmark {
+
+  static final int TICK_INTERVAL_MS = 1000;
+
+  static final class SimulatedHost {
+    final int  _id;
+    final long _baseDelay;
+    long       _waitTime;
+    int        _fetchCount;
+
+    SimulatedHost(int id, long baseDelay) {
+      _id = id;
+      _baseDelay = baseDelay;
+    }
+
+    /** next crawl delay (base delay +/- 10%, a pure function of host and fetch count) **/
+    long nextDelay() {
+      long h = (((long) _id) << 32 | _fetchCount) * 0x9E3779B97F4A7C15L;
+      int jitter = (int) ((h >>> 40) % 21) - 10;
+      return _baseDelay + (_baseDelay * jitter) / 100;
+    }
+  }
+
+  /** minimal interface over both scheduler implementations **/
+  static abstract class Scheduler {
+    abstract void setTimer(SimulatedHost host, long time);
+
+    abstract void killTimer(SimulatedHost host);
+
+    abstract void drain(long currentTime, ArrayList<SimulatedHost> readyOut);
+
+    abstract int size();
+  }
+
+  /** the scheduler as implemented in CrawlQueue prior to HostScheduler **/
+  static class LegacyScheduler extends Scheduler {
+
+    PriorityQueue<SimulatedHost> _queue = new PriorityQueue<SimulatedHost>(10000, new Comparator<SimulatedHost>() {
+
+      public int compare(SimulatedHost host1, SimulatedHost host2) {
+        if (host1._waitTime < host2._waitTime) {
+          return -1;
+        } else if (host1._waitTime > host2._waitTime) {
+          return 1;
+        }
+        return 0;
+      }
+    });
+
+    void setTimer(SimulatedHost host, long time) {
+      host._waitTime = time;
+      _queue.add(host);
+    }
+
+    void killTimer(SimulatedHost host) {
+      _queue.remove(host);
+    }
+
+    void drain(long currentTime, ArrayList<SimulatedHost> readyOut) {
+      SimulatedHost item;
+      while ((item = _queue.peek()) != null && currentTime >= item._waitTime) {
+        _queue.remove();
+        readyOut.add(item);
+      }
+    }
+
+    int size() {
+      return _queue.size();
+    }
+  }
+
+  static class CalendarScheduler extends Scheduler {
+
+    HostScheduler<SimulatedHost> _scheduler = new HostScheduler<SimulatedHost>();
+
+    void setTimer(SimulatedHost host, long time) {
+      host._waitTime = time;
+      _scheduler.schedule(host._id, host, time);
+    }
+
+    void killTimer(SimulatedHost host) {
+      _scheduler.cancel(host._id);
+    }
+
+    void drain(long currentTime, ArrayList<SimulatedHost> readyOut) {
+      _scheduler.drain(currentTime, readyOut);
+    }
+
+    int size() {
+      return _scheduler.size();
+    }
+  }
+
+  /** crawl delay mix (ms) **/
+  static long randomBaseDelay(Random random) {
+    int bucket = random.nextInt(100);
+    if (bucket < 70) {
+      return 1000 + random.nextInt(2000);
+    } else if (bucket < 90) {
+      return 5000 + random.nextInt(10000);
+    } else if (bucket < 98) {
+      return 30000 + random.nextInt(90000);
+    } else {
+      return 600000 + random.nextInt(3000000);
+    }
+  }
+
+  static SimulatedHost[] createHosts(int hostCount) {
+    Random random = new Random(42);
+    SimulatedHost hosts[] = new SimulatedHost[hostCount];
+    for (int i = 0; i < hostCount; ++i) {
+      hosts[i] = new SimulatedHost(i, randomBaseDelay(random));
+    }
+    return hosts;
+  }
+
+  /**
+   * run the simulation, returning a checksum per tick of the released host
+   * ids (and storing the elapsed scheduler time in timeOut[0])
+   **/
+  static long[] run(Scheduler scheduler, int hostCount, int ticks, int delayChangesPerTick, long timeOut[]) {
+
+    SimulatedHost hosts[] = createHosts(hostCount);
+    long checksums[] = new long[ticks];
+    long currentTime = 1000000000000L;
+    ArrayList<SimulatedHost> readyList = new ArrayList<SimulatedHost>();
+
+    long timeStart = System.nanoTime();
+
+    for (SimulatedHost host : hosts) {
+      scheduler.setTimer(host, currentTime + host.nextDelay());
+    }
+
+    for (int tick = 0; tick < ticks; ++tick) {
+
+      currentTime += TICK_INTERVAL_MS;
+
+      // crawl delay changes (a robots refresh or a server error) ... the
+      // choice of hosts only depends on the tick, not the scheduler
+      Random random = new Random(tick);
+      for (int i = 0; i < delayChangesPerTick; ++i) {
+        SimulatedHost host = hosts[random.nextInt(hostCount)];
+        long newDelay = 1000 + random.nextInt(60000);
+        scheduler.killTimer(host);
+        scheduler.setTimer(host, currentTime + newDelay);
+      }
+
+      scheduler.drain(currentTime, readyList);
+
+      long checksum = readyList.size();
+      for (int i = 0; i < readyList.size(); ++i) {
+        SimulatedHost host = readyList.get(i);
+        checksum += host._id * 0x9E3779B97F4A7C15L;
+        // fetch, and go back into a wait state
+        host._fetchCount++;
+        scheduler.setTimer(host, currentTime + host.nextDelay());
+      }
+      readyList.clear();
+      checksums[tick] = checksum;
+    }
+
+    timeOut[0] = System.nanoTime() - timeStart;
+
+    if (scheduler.size() != hostCount) {
+      throw new RuntimeException("Expected " + hostCount + " scheduled hosts, found:" + scheduler.size());
+    }
+    return checksums;
+  }
+
+  public static void main(String[] args) {
+
+    int hostCount = (args.length > 0) ? Integer.parseInt(args[0]) : 500000;
+    int ticks = (args.length > 1) ? Integer.parseInt(args[1]) : 60;
+    int delayChangesPerTick = (args.length > 2) ? Integer.parseInt(args[2]) : 1000;
+
+    long time[] = new long[1];
+
+    // warm up
+    run(new CalendarScheduler(), Math.min(hostCount, 10000), ticks, 10, time);
+    run(new LegacyScheduler(), Math.min(hostCount, 10000), ticks, 10, time);
+
+    long calendarChecksums[] = run(new CalendarScheduler(), hostCount, ticks, delayChangesPerTick, time);
+    long calendarTime = time[0];
+    long legacyChecksums[] = run(new LegacyScheduler(), hostCount, ticks, delayChangesPerTick, time);
+    long legacyTime = time[0];
+
+    for (int tick = 0; tick < ticks; ++tick) {
+      if (calendarChecksums[tick] != legacyChecksums[tick]) {
+        throw new RuntimeException("Released hosts differ at tick:" + tick);
+      }
+    }
+
+    System.out.println("Hosts:" + hostCount + " Ticks:" + ticks + " DelayChangesPerTick:" + delayChangesPerTick);
+    System.out.println("Legacy   (PriorityQueue) : " + (legacyTime / 1000000) + " MS (" + (legacyTime / ticks / 1000)
+        + " us/tick)");
+    System.out.println("Calendar (HostScheduler) : " + (calendarTime / 1000000) + " MS (" + (calendarTime / ticks / 1000)
+        + " us/tick)");
+  }
+}
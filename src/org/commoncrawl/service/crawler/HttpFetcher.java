@@ -24,6 +24,7 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.UnknownHostException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.LinkedList;
 import java.util.Locale;
@@ -31,12 +32,17 @@ import java.util.SimpleTimeZone;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.commoncrawl.async.Callback;
+import org.commoncrawl.async.EventLoopGroup;
 import org.commoncrawl.async.Timer;
 import org.commoncrawl.common.Environment;
 import org.commoncrawl.crawl.common.internal.CrawlEnvironment;
 import org.commoncrawl.io.NIOBufferList;
+import org.commoncrawl.io.NIOBufferPool;
+import org.commoncrawl.io.NIOClientSocket;
 import org.commoncrawl.io.NIODNSResolver;
 import org.commoncrawl.io.NIOHttpConnection;
+import org.commoncrawl.io.NIOHttpConnectionPool;
 import org.commoncrawl.io.NIOSocketSelector;
 import org.commoncrawl.io.NIOHttpConnection.State;
 import org.commoncrawl.protocol.CrawlURL;
@@ -72,8 +78,10 @@ public final class HttpFetcher implements Fetcher , NIOHttpConnection.Listener {
   private boolean              _paused = false;
   /** max open sockets variable **/
   private int								   _maxSockets;
-  /** selector reference **/
-  NIOSocketSelector 	_selector;
+  /** i/o loops - loop 0 is the server event loop, which also owns all fetcher state **/
+  EventLoopGroup      _ioLoops;
+  /** per loop selector references **/
+  NIOSocketSelector 	_selectors[];
   /** resolver reference **/
   NIODNSResolver 		_resolver;
   /** timeout timer object **/
@@ -114,16 +122,25 @@ public final class HttpFetcher implements Fetcher , NIOHttpConnection.Listener {
 
   private InetSocketAddress _crawlInterfaces[];
 
+  /** optional per loop keep-alive connection pools (null if keep-alive is disabled) **/
+  private NIOHttpConnectionPool _connectionPools[] = null;
+  /** number of requests retried because a pooled socket went stale **/
+  private int _keepAliveRetryCount = 0;
+  /** optional pool for response buffers (null if pooling is disabled) **/
+  private NIOBufferPool _bufferPool = null;
 
   /** CrawlContext **/
   private static class CrawlContext { 
 
     CrawlTarget _url;
     int				 _index;
+    /** expected idle time before the next request to this host (its crawl delay) **/
+    long       _expectedIdleTime;
 
     public CrawlContext(CrawlTarget url, int index) { 
       _url = url;
       _index = index;
+      _expectedIdleTime = (url.getSourceList() != null) ? url.getSourceList().getEffectiveCrawlDelay() : 0;
     }
 
     public CrawlTarget getURL() {
@@ -137,6 +154,12 @@ public final class HttpFetcher implements Fetcher , NIOHttpConnection.Listener {
 
   /** active connections **/
   private NIOHttpConnection _active[] 				= null;
+  /** index of the i/o loop each active connection runs in **/
+  private int _activeLoops[] = null;
+  /** number of active connections per i/o loop **/
+  private int _activePerLoop[] = null;
+  /** per loop listeners that hand connection events back to the fetcher thread **/
+  private LoopBridge _loopBridges[] = null;
   /** active connection versions **/
   private short _activeVersions[] = null;
   /** trailing connection versions **/
@@ -162,11 +185,28 @@ public final class HttpFetcher implements Fetcher , NIOHttpConnection.Listener {
   public HttpFetcher(int maxOpenSockets,InetSocketAddress[] crawlInterfaceList,String crawlerName) { 
     _maxSockets = maxOpenSockets;
     _active 			= new NIOHttpConnection[_maxSockets];
+    _activeLoops  = new int[_maxSockets];
     _activeVersions = new short[_maxSockets];
     _trailingVersions = new short[_maxSockets];
 
-    _selector			= CrawlerServer.getServer().getEventLoop().getSelector();
+    _ioLoops = CrawlerServer.getServer().getIOLoopGroup();
+    if (_ioLoops == null) { 
+      _ioLoops = new EventLoopGroup(CrawlerServer.getServer().getEventLoop(),1,null);
+    }
+    _selectors = new NIOSocketSelector[_ioLoops.getLoopCount()];
+    _activePerLoop = new int[_ioLoops.getLoopCount()];
+    _loopBridges = new LoopBridge[_ioLoops.getLoopCount()];
+    for (int i=0;i<_selectors.length;++i) { 
+      _selectors[i] = _ioLoops.getLoop(i).getSelector();
+      if (i != 0) { 
+        _loopBridges[i] = new LoopBridge(i);
+      }
+    }
+    if (_selectors.length > 1) { 
+      LOG.info("Spreading " + _maxSockets + " sockets across " + _selectors.length + " I/O Loops");
+    }
     _resolver			= CrawlerServer.getServer().getDNSServiceResolver();
+    _bufferPool   = CrawlerServer.getServer().getFetchBufferPool();
 
     _urlsPerSecMovingAverage = new MovingAverage(200);
     _kbPerSecMovingAverage = new MovingAverage(200);
@@ -181,6 +221,14 @@ public final class HttpFetcher implements Fetcher , NIOHttpConnection.Listener {
 
     // set the default ccbot user agent string 
     NIOHttpConnection.setDefaultUserAgentString("CCBot/1.0 (+http://www.commoncrawl.org/bot.html)");
+
+    if (CrawlerServer.getServer().useKeepAlive()) { 
+      LOG.info("Keep-Alive Enabled. Pooling idle connections");
+      _connectionPools = new NIOHttpConnectionPool[_selectors.length];
+      for (int i=0;i<_selectors.length;++i) { 
+        _connectionPools[i] = new NIOHttpConnectionPool(_selectors[i]);
+      }
+    }
   }
 
 
@@ -189,6 +237,9 @@ public final class HttpFetcher implements Fetcher , NIOHttpConnection.Listener {
       for (int i=0;i<_active.length;++i) { 
         _active[i] = null;
       }
+      for (int i=0;i<_activePerLoop.length;++i) { 
+        _activePerLoop[i] = 0;
+      }
       _pending.clear();
     }
     else {
@@ -198,6 +249,11 @@ public final class HttpFetcher implements Fetcher , NIOHttpConnection.Listener {
 
   public void shutdown() { 
     clearQueues();
+    if (_connectionPools != null) { 
+      for (NIOHttpConnectionPool pool : _connectionPools) { 
+        pool.shutdown();
+      }
+    }
   }
 
 
@@ -232,6 +288,11 @@ public final class HttpFetcher implements Fetcher , NIOHttpConnection.Listener {
 
         fillQueue(true);
 
+        if (_connectionPools != null) { 
+          for (NIOHttpConnectionPool pool : _connectionPools) { 
+            pool.evictIdleSockets();
+          }
+        }
       }
     });
 
@@ -255,11 +316,10 @@ public final class HttpFetcher implements Fetcher , NIOHttpConnection.Listener {
 
         CrawlContext context = (CrawlContext) _active[i].getContext();
 
-        _active[i].setContext(null);
         // close the connection 
-        _active[i].close();
+        closeConnection(i);
         // null out the slot ... 
-        _active[i] = null;
+        releaseSlot(i);
         // and add the connection back to the pending queue ... 
         // add the item back to pending list ... 
         _pending.addFirst(context.getURL());
@@ -322,6 +382,139 @@ public final class HttpFetcher implements Fetcher , NIOHttpConnection.Listener {
   }
 
   private boolean fillSlot(int index,CrawlTarget optionalTarget) {
+    return fillSlot(index,optionalTarget,true);
+  }
+
+  /** get the i/o loop that owns connections to the specified server ip **/
+  private int getLoopIndexForAddress(int serverIP) { 
+    return _ioLoops.getLoopIndexForAddress(serverIP);
+  }
+
+  /** 
+   * pick the i/o loop for a crawl target. targets whose ip is already known are hashed by ip, so all 
+   * connections (and pooled sockets) for a host live in one loop. anything that still needs a dns 
+   * lookup stays in the server loop, since that is where the dns resolver delivers its results. 
+   **/
+  private int getLoopIndexForCrawlTarget(CrawlTarget crawlTarget) { 
+    if (_selectors.length == 1 || crawlTarget.getRedirectCount() != 0 
+        || crawlTarget.getServerIP() == 0 || crawlTarget.getServerIPTTL() < System.currentTimeMillis()) { 
+      return 0;
+    }
+    return getLoopIndexForAddress(crawlTarget.getServerIP());
+  }
+
+  /** close the connection in a slot (in the thread of the loop that owns its socket) **/
+  private void closeConnection(int index) { 
+    final NIOHttpConnection connection = _active[index];
+    connection.setContext(null);
+    if (_activeLoops[index] == 0) { 
+      connection.close();
+    }
+    else { 
+      _ioLoops.getLoop(_activeLoops[index]).queueAsyncCallback(new Callback() {
+
+        public void execute() {
+          connection.close();
+        }
+      });
+    }
+  }
+
+  /** empty a slot **/
+  private void releaseSlot(int index) { 
+    if (_active[index] != null) { 
+      _activePerLoop[_activeLoops[index]]--;
+    }
+    _active[index] = null;
+  }
+
+  /** open a connection (in the thread of the loop that owns its socket) **/
+  private void openConnection(final int index) throws IOException { 
+    if (_activeLoops[index] == 0) { 
+      _active[index].open();
+    }
+    else { 
+      final NIOHttpConnection connection = _active[index];
+
+      _ioLoops.getLoop(_activeLoops[index]).queueAsyncCallback(new Callback() {
+
+        public void execute() {
+          try {
+            connection.open();
+          }
+          catch (final IOException e) { 
+            // fail the fetch back in the fetcher thread 
+            _ioLoops.getPrimaryLoop().queueAsyncCallback(new Callback() {
+
+              public void execute() {
+                CrawlContext context = (CrawlContext) connection.getContext();
+                if (context != null && _active[index] == connection) { 
+                  if (Environment.detailLogEnabled())   
+                    LOG.error("IOException Processing URL:" + context.getURL().getActiveURL() + " Details:" + e.getMessage());
+                  closeConnection(index);
+                  releaseSlot(index);
+                  connectionCount--;
+                  failureCount++;
+                  context.getURL().fetchFailed(CrawlURL.FailureReason.IOException,e.getMessage());
+                  if (_active[index] == null) { 
+                    fillSlot(index,null);
+                  }
+                }
+              }
+            });
+          }
+        }
+      });
+    }
+  }
+
+  /** checkout a pooled keep-alive socket for the target (if one is available) **/
+  private NIOClientSocket checkoutPooledSocket(NIOHttpConnectionPool pool,CrawlTarget crawlTarget,URL fetchURL,InetSocketAddress crawlInterface) throws UnknownHostException { 
+    // only plain http, direct (non proxied) requests to a server whose ip we already know can be pooled 
+    if (!fetchURL.getProtocol().equalsIgnoreCase("http") || crawlTarget.getServerIP() == 0 || crawlTarget.getServerIPTTL() < System.currentTimeMillis()) {
+      return null;
+    }
+    if ((crawlTarget.getFlags() & CrawlURL.Flags.IsRobotsURL) == 0 && CrawlerServer.getServer().getProxyAddress() != null) { 
+      return null;
+    }
+    return pool.checkout(
+        IPAddressUtils.IntegerToInetAddress(crawlTarget.getServerIP()),
+        (fetchURL.getPort() == -1) ? 80 : fetchURL.getPort(),
+        crawlInterface);
+  }
+
+  /** 
+   * return a keep-alive socket to the pool once a fetch completes (if it is reusable). 
+   * called from the thread of the loop that owns the connection, so only use immutable context state here   
+   **/
+  private void checkinPooledSocket(NIOHttpConnection theConnection,CrawlContext context,int loopIndex) {
+
+    NIOClientSocket socket = theConnection.detachSocket();
+
+    if (socket != null) {
+      try { 
+        InetSocketAddress serverAddress = socket.getSocketAddress();
+        // the socket has to stay in the loop (and pool) that owns its selector. if that is not the loop 
+        // the host hashes to (i.e. the connection needed a dns lookup), the next request won't find it anyway 
+        if (getLoopIndexForAddress(IPAddressUtils.IPV4AddressToInteger(serverAddress.getAddress().getAddress())) != loopIndex) { 
+          _selectors[loopIndex].cancelRegistration(socket);
+          socket.close();
+          return;
+        }
+        NIOHttpConnectionPool pool = _connectionPools[loopIndex];
+        // key the socket by the crawl interface the target was assigned to (see getCrawlInterfaceForCrawlTarget)
+        InetSocketAddress crawlInterface = (_crawlInterfaces != null) ? _crawlInterfaces[Math.max(0,context.getURL().getCrawlInterface())] : null;
+        // don't bother holding on to the socket if the host's crawl delay will outlast the idle timeout 
+        pool.checkin(socket,serverAddress.getAddress(),serverAddress.getPort(),crawlInterface,context._expectedIdleTime);
+      }
+      catch (IOException e) { 
+        LOG.error("Failed to return socket to pool for URL:" + theConnection.getURL() + " Exception:" + CCStringUtils.stringifyException(e));
+        socket.close();
+      }
+    }
+  }
+
+  private boolean fillSlot(int index,CrawlTarget optionalTarget,boolean allowPooledSocket) {
 
     // dont fill slot in paused state ... 
     if (!isPaused() || optionalTarget != null) { 
@@ -339,19 +532,39 @@ public final class HttpFetcher implements Fetcher , NIOHttpConnection.Listener {
           URL originalURL = (crawlTarget.getRedirectCount() == 0) ? fetchURL : new URL(crawlTarget.getOriginalURL());
 
 
-          // open a new connection and assign it to the available slot ...
-          if (_crawlInterfaces!= null) { 
-            _active[index] = new NIOHttpConnection(fetchURL,_crawlInterfaces[getCrawlInterfaceForCrawlTarget(crawlTarget)],_selector,_resolver,crawlTarget.getCookieStore());
+          InetSocketAddress crawlInterface = (_crawlInterfaces != null) ? _crawlInterfaces[getCrawlInterfaceForCrawlTarget(crawlTarget)] : null;
+
+          int loopIndex = getLoopIndexForCrawlTarget(crawlTarget);
+          NIOSocketSelector selector = _selectors[loopIndex];
+
+          NIOClientSocket pooledSocket = null;
+          if (_connectionPools != null && allowPooledSocket) { 
+            pooledSocket = checkoutPooledSocket(_connectionPools[loopIndex],crawlTarget,fetchURL,crawlInterface);
+          }
+
+          // reuse a pooled keep-alive socket if we have one ... 
+          if (pooledSocket != null) { 
+            _active[index] = new NIOHttpConnection(fetchURL,pooledSocket,selector,_resolver,crawlTarget.getCookieStore());
+          }
+          // otherwise open a new connection and assign it to the available slot ...
+          else if (crawlInterface != null) { 
+            _active[index] = new NIOHttpConnection(fetchURL,crawlInterface,selector,_resolver,crawlTarget.getCookieStore());
           }
           else {  
-            _active[index] = new NIOHttpConnection(fetchURL,_selector,_resolver,crawlTarget.getCookieStore());
+            _active[index] = new NIOHttpConnection(fetchURL,selector,_resolver,crawlTarget.getCookieStore());
+          }
+          _activeLoops[index] = loopIndex;
+          _activePerLoop[loopIndex]++;
+          _active[index].setKeepAlive(_connectionPools != null);
+          if (_bufferPool != null) { 
+            _active[index].setBufferPool(_bufferPool);
           }
 
           // LOG.info("### FETCHER Alloc HTTPConnect to:" + fetchURL + " Slot:" + index);
 
           //TODO: MAJOR HACK
           // disable proxy requests for robots
-          if ((crawlTarget.getFlags() & CrawlURL.Flags.IsRobotsURL) == 0) {
+          if ((crawlTarget.getFlags() & CrawlURL.Flags.IsRobotsURL) == 0 && pooledSocket == null) {
             if (CrawlerServer.getServer().getProxyAddress() != null) {
               // check to see if we should be using a proxy server 
               _active[index].setProxyServer(CrawlerServer.getServer().getProxyAddress());
@@ -404,12 +617,12 @@ public final class HttpFetcher implements Fetcher , NIOHttpConnection.Listener {
             }
           }
 
-          _active[index].setListener(this);
+          _active[index].setListener((loopIndex == 0) ? this : _loopBridges[loopIndex]);
           _active[index].setContext(new CrawlContext(crawlTarget,index));
           _active[index].setDownloadMax(DOWNLOAD_LIMIT);
 
           if (!_failConnections) { 
-            _active[index].open();
+            openConnection(index);
             //LOG.info("### FETCHER called open on connection to:" + fetchURL + " slot:" + index);
           }
           else {  
@@ -433,10 +646,9 @@ public final class HttpFetcher implements Fetcher , NIOHttpConnection.Listener {
         catch (UnknownHostException e) { 
           //TODO: CLEAR SLOT BEFORE CALLING fetchFailed!!!!
           if (_active[index] != null) { 
-            _active[index].setContext(null);
-            _active[index].close();
+            closeConnection(index);
           }
-          _active[index] = null;
+          releaseSlot(index);
           if (Environment.detailLogEnabled())
             LOG.error("Maformed URL Exception Processing URL:" + crawlTarget.getActiveURL());
           crawlTarget.fetchFailed(CrawlURL.FailureReason.MalformedURL,e.toString());
@@ -447,10 +659,9 @@ public final class HttpFetcher implements Fetcher , NIOHttpConnection.Listener {
 
           //TODO: CLEAR SLOT BEFORE CALLING fetchFailed!!!!
           if (_active[index] != null) { 
-            _active[index].setContext(null);
-            _active[index].close();
+            closeConnection(index);
           }
-          _active[index] = null;
+          releaseSlot(index);
           if (Environment.detailLogEnabled())
             LOG.error("Maformed URL Exception Processing URL:" + crawlTarget.getActiveURL());
           crawlTarget.fetchFailed(CrawlURL.FailureReason.MalformedURL,e.toString());
@@ -463,10 +674,9 @@ public final class HttpFetcher implements Fetcher , NIOHttpConnection.Listener {
 
           //TODO: WATCH IT!!! - always clear slot FIRST because fetchFailed calls back into fillSlot!!!!
           if (_active[index] != null) { 
-            _active[index].setContext(null);
-            _active[index].close();
+            closeConnection(index);
           }
-          _active[index] = null;
+          releaseSlot(index);
 
           // LOG.debug("Fetch FAILED URL:"+ context.getURL().getURL() + " Code:"+ failureCode);
           // notify url of failure ... 
@@ -481,10 +691,9 @@ public final class HttpFetcher implements Fetcher , NIOHttpConnection.Listener {
 
           //TODO: WATCH IT!!! - always clear slot FIRST because fetchFailed calls back into fillSlot!!!!
           if (_active[index] != null) { 
-            _active[index].setContext(null);
-            _active[index].close();
+            closeConnection(index);
           }
-          _active[index] = null;
+          releaseSlot(index);
 
           // LOG.debug("Fetch FAILED URL:"+ context.getURL().getURL() + " Code:"+ failureCode);
           // notify url of failure ... 
@@ -499,66 +708,29 @@ public final class HttpFetcher implements Fetcher , NIOHttpConnection.Listener {
     return _active[index] != null;	
   }
 
+  @SuppressWarnings("unchecked")
   private void fillQueue(boolean checkForTimeout) { 
 
     // LOG.debug("fillQueue BEGIN- activeCount:"+connectionCount + " pendingCount:" + _pending.size());
 
+    // slots whose connections live in other loops have to be timeout checked in those loops 
+    ArrayList<Integer> remoteTimeoutChecks[] = null;
+
     for (int index=0;index<_active.length;++index) { 
 
       if (_active[index] != null && checkForTimeout) { 
 
-        if (_active[index].checkForTimeout()) { 
-
-          CrawlContext context = (CrawlContext)_active[index].getContext();
-
-          NIOHttpConnection theTimedOutConnection = _active[index];
-
-          if (context != null) {
-            if (Environment.detailLogEnabled())
-              LOG.error("Fetch TimedOut for Original URL:"+context.getURL().getOriginalURL() + " ActiveURL:" + context.getURL().getActiveURL());
-
-            switch (theTimedOutConnection.getTimeoutState()) { 
-
-              case AWAITING_RESOLUTION: 
-                // reduce resolving count if necessary ... 
-                resolvingCount--;
-                break;
-
-              case AWAITING_CONNECT:  
-                connectingCount--;
-                break;
-
-              case SENDING_REQUEST: 
-                sendingCount--;
-                break;
-
-              case RECEIVING_HEADERS: 
-                receivingCount--;
-                break;
-
-            }
-
-            //TODO: DO ALL SLOT OPERATIONS BEFORE CALLING fetchFailed since it is calling back into fillQueue!!! BAD!!!
-            _active[index].setContext(null);
-            _active[index].close();
-            _active[index] = null;
-            connectionCount--;
-            failureCount++;
-
-            if (theTimedOutConnection.getTimeoutState() == NIOHttpConnection.State.AWAITING_CONNECT) { 
-              context.getURL().fetchFailed(CrawlURL.FailureReason.ConnectTimeout, "TimedOut in Fill Queue AWAITING_CONNECT");
-            }
-            else if (theTimedOutConnection.getTimeoutState() == NIOHttpConnection.State.AWAITING_RESOLUTION){
-              context.getURL().fetchFailed(CrawlURL.FailureReason.DNSFailure, "TimedOut in Fill Queue AWAITING_RESOLUTION");
-            }
-            else { 
-              context.getURL().fetchFailed(CrawlURL.FailureReason.Timeout, "TimedOut in Fill Queue RECEIVING_DATA");
-            }
+        if (_activeLoops[index] != 0) { 
+          if (remoteTimeoutChecks == null) { 
+            remoteTimeoutChecks = new ArrayList[_selectors.length];
           }
-          else { 
-            LOG.error("Context NULL in fillQueue call");
-            throw new RuntimeException("Context Should NOT be NULL");
+          if (remoteTimeoutChecks[_activeLoops[index]] == null) { 
+            remoteTimeoutChecks[_activeLoops[index]] = new ArrayList<Integer>();
           }
+          remoteTimeoutChecks[_activeLoops[index]].add(index);
+        }
+        else if (_active[index].checkForTimeout()) { 
+          connectionTimedOut(index);
         }
       }
 
@@ -574,9 +746,166 @@ public final class HttpFetcher implements Fetcher , NIOHttpConnection.Listener {
       }
     }
 
+    if (remoteTimeoutChecks != null) { 
+      for (int loopIndex=1;loopIndex<remoteTimeoutChecks.length;++loopIndex) { 
+        if (remoteTimeoutChecks[loopIndex] != null) { 
+          checkForRemoteTimeouts(loopIndex,remoteTimeoutChecks[loopIndex]);
+        }
+      }
+    }
+
     // LOG.debug("fillQueue END- activeCount:"+connectionCount + " pendingCount:" + _pending.size());
   }
 
+  /** 
+   * run checkForTimeout on the given slots in the loop that owns their connections, and 
+   * process any timeouts back in the fetcher thread 
+   **/
+  private void checkForRemoteTimeouts(int loopIndex,final ArrayList<Integer> slots) { 
+
+    final NIOHttpConnection connections[] = new NIOHttpConnection[slots.size()];
+    for (int i=0;i<connections.length;++i) { 
+      connections[i] = _active[slots.get(i)];
+    }
+
+    _ioLoops.getLoop(loopIndex).queueAsyncCallback(new Callback() {
+
+      public void execute() {
+        final ArrayList<Integer> timedOut = new ArrayList<Integer>();
+        for (int i=0;i<connections.length;++i) { 
+          if (connections[i].checkForTimeout()) { 
+            timedOut.add(i);
+          }
+        }
+        if (timedOut.size() != 0) { 
+          _ioLoops.getPrimaryLoop().queueAsyncCallback(new Callback() {
+
+            public void execute() {
+              for (int i : timedOut) { 
+                int index = slots.get(i);
+                // the slot may have been released or refilled in the meantime 
+                if (_active[index] == connections[i]) { 
+                  connectionTimedOut(index);
+                  if (_running && _active[index] == null) { 
+                    fillSlot(index,null);
+                  }
+                }
+              }
+            }
+          });
+        }
+      }
+    });
+  }
+
+  /** release a timed out connection's slot and fail its target **/
+  private void connectionTimedOut(int index) { 
+
+    CrawlContext context = (CrawlContext)_active[index].getContext();
+
+    NIOHttpConnection theTimedOutConnection = _active[index];
+
+    if (context != null) {
+      if (Environment.detailLogEnabled())
+        LOG.error("Fetch TimedOut for Original URL:"+context.getURL().getOriginalURL() + " ActiveURL:" + context.getURL().getActiveURL());
+
+      switch (theTimedOutConnection.getTimeoutState()) { 
+
+        case AWAITING_RESOLUTION: 
+          // reduce resolving count if necessary ... 
+          resolvingCount--;
+          break;
+
+        case AWAITING_CONNECT:  
+          connectingCount--;
+          break;
+
+        case SENDING_REQUEST: 
+          sendingCount--;
+          break;
+
+        case RECEIVING_HEADERS: 
+          receivingCount--;
+          break;
+
+      }
+
+      //TODO: DO ALL SLOT OPERATIONS BEFORE CALLING fetchFailed since it is calling back into fillQueue!!! BAD!!!
+      closeConnection(index);
+      releaseSlot(index);
+      connectionCount--;
+      failureCount++;
+
+      if (theTimedOutConnection.getTimeoutState() == NIOHttpConnection.State.AWAITING_CONNECT) { 
+        context.getURL().fetchFailed(CrawlURL.FailureReason.ConnectTimeout, "TimedOut in Fill Queue AWAITING_CONNECT");
+      }
+      else if (theTimedOutConnection.getTimeoutState() == NIOHttpConnection.State.AWAITING_RESOLUTION){
+        context.getURL().fetchFailed(CrawlURL.FailureReason.DNSFailure, "TimedOut in Fill Queue AWAITING_RESOLUTION");
+      }
+      else { 
+        context.getURL().fetchFailed(CrawlURL.FailureReason.Timeout, "TimedOut in Fill Queue RECEIVING_DATA");
+      }
+    }
+    else { 
+      LOG.error("Context NULL in fillQueue call");
+      throw new RuntimeException("Context Should NOT be NULL");
+    }
+  }
+
+  /** 
+   * listener installed on connections that run in a secondary i/o loop. hands every 
+   * state change back to the fetcher (server loop) thread via queueAsyncCallback.
+   **/
+  private final class LoopBridge implements NIOHttpConnection.Listener { 
+
+    int _loopIndex;
+
+    LoopBridge(int loopIndex) { 
+      _loopIndex = loopIndex;
+    }
+
+    // @Override
+    public void HttpConnectionStateChanged(final NIOHttpConnection theConnection,final State oldState,final State state) {
+      if (state == State.DONE || state == State.ERROR) {
+        // the socket has to go back to the pool before the connection closes it, which happens 
+        // right after this callback returns (in this thread) 
+        CrawlContext context = (CrawlContext) theConnection.getContext();
+        if (_connectionPools != null && state == State.DONE && context != null) { 
+          checkinPooledSocket(theConnection,context,_loopIndex);
+        }
+        // defer the hand off until the connection is closed, so the fetcher thread never 
+        // touches a connection that is still doing i/o 
+        _ioLoops.getLoop(_loopIndex).queueAsyncCallback(new Callback() {
+
+          public void execute() {
+            postStateChange(theConnection,oldState,state);
+          }
+        });
+      }
+      else { 
+        postStateChange(theConnection,oldState,state);
+      }
+    }
+
+    private void postStateChange(final NIOHttpConnection theConnection,final State oldState,final State state) { 
+      _ioLoops.getPrimaryLoop().queueAsyncCallback(new Callback() {
+
+        public void execute() {
+          CrawlContext context = (CrawlContext) theConnection.getContext();
+          // drop events for connections the fetcher already released (timed out, stopped etc.) 
+          if (context != null && _active[context.getIndex()] == theConnection) { 
+            HttpFetcher.this.HttpConnectionStateChanged(theConnection,oldState,state);
+          }
+        }
+      });
+    }
+
+    // @Override
+    public void HttpContentAvailable(NIOHttpConnection theConnection,NIOBufferList contentBuffer) {
+      // NOOP
+    }
+  }
+
 
   /** NIOHttpConnection.Listener overloads **/
   // @Override
@@ -620,11 +949,15 @@ public final class HttpFetcher implements Fetcher , NIOHttpConnection.Listener {
           //TODO: RELEASE SLOT UPFRONT !!!
           if (Environment.detailLogEnabled())
             LOG.info("Releasing SLOT:" + context.getIndex() + " URL:" + _active[context.getIndex()].getURL());
+          // hand a reusable keep-alive socket back to the pool BEFORE closing the connection 
+          // (a no-op for connections in other loops, since their LoopBridge already did it)
+          if (_connectionPools != null && state == State.DONE) { 
+            checkinPooledSocket(theConnection,context,_activeLoops[context.getIndex()]);
+          }
           // either way, this connection is now dead ... 
-          _active[context.getIndex()].setContext(null);
-          _active[context.getIndex()].close();
+          closeConnection(context.getIndex());
 
-          _active[context.getIndex()] = null;
+          releaseSlot(context.getIndex());
           // decrement active count 
           connectionCount--;
 
@@ -748,6 +1081,12 @@ public final class HttpFetcher implements Fetcher , NIOHttpConnection.Listener {
             }
 
           }
+          // a pooled socket can be closed by the server just as we send our request. 
+          // if that happens before we see a single byte of response, retry once on a fresh connection 
+          else if (state == State.ERROR && theConnection.isReusedSocket() && theConnection.getTotalBytesRead() == 0) { 
+            _keepAliveRetryCount++;
+            fillSlot(context.getIndex(),context.getURL(),false);
+          }
           else if (state == State.ERROR) { 
 
             // increment failure count ... 
@@ -767,6 +1106,11 @@ public final class HttpFetcher implements Fetcher , NIOHttpConnection.Listener {
             context.getURL().fetchFailed(failureCode,(theConnection.getErrorDesc() != null) ? theConnection.getErrorDesc() : "ERROR During Connection State Change");
           }
 
+          // the content (if any) has been consumed by now, so hand its buffers back to the pool 
+          if (_bufferPool != null) { 
+            theConnection.getContentBuffer().reset();
+          }
+
           // repopulate slot (if possible)
           if (_active[context.getIndex()] == null) { 
             fillSlot(context.getIndex(),null);
@@ -820,6 +1164,38 @@ public final class HttpFetcher implements Fetcher , NIOHttpConnection.Listener {
     stats.setIntValue(CrawlerEngineStats.ID,CrawlerEngineStats.Name.HTTPFetcher_ConnectionsInSendingState,sendingCount );
     stats.setIntValue(CrawlerEngineStats.ID,CrawlerEngineStats.Name.HTTPFetcher_ConnectionsInRecevingState,receivingCount );
 
+    if (_connectionPools != null) { 
+      int idleCount = 0;
+      long hitCount = 0;
+      long missCount = 0;
+      long evictionCount = 0;
+      for (NIOHttpConnectionPool pool : _connectionPools) { 
+        idleCount += pool.getIdleCount();
+        hitCount += pool.getHitCount();
+        missCount += pool.getMissCount();
+        evictionCount += pool.getEvictionCount();
+      }
+      stats.setIntValue(CrawlerEngineStats.ID,CrawlerEngineStats.Name.HTTPFetcher_KeepAliveIdleSockets,idleCount);
+      stats.setLongValue(CrawlerEngineStats.ID,CrawlerEngineStats.Name.HTTPFetcher_KeepAlivePoolHits,hitCount);
+      stats.setLongValue(CrawlerEngineStats.ID,CrawlerEngineStats.Name.HTTPFetcher_KeepAlivePoolMisses,missCount);
+      stats.setLongValue(CrawlerEngineStats.ID,CrawlerEngineStats.Name.HTTPFetcher_KeepAlivePoolEvictions,evictionCount);
+      stats.setIntValue(CrawlerEngineStats.ID,CrawlerEngineStats.Name.HTTPFetcher_KeepAliveRetries,_keepAliveRetryCount);
+    }
+
+    if (_bufferPool != null) { 
+      _bufferPool.collectStats(stats);
+    }
+
+    if (_activePerLoop.length > 1) { 
+      StringBuffer loopCounts = new StringBuffer();
+      for (int i=0;i<_activePerLoop.length;++i) { 
+        loopCounts.append((i == 0) ? "[" : ",");
+        loopCounts.append(_activePerLoop[i]);
+      }
+      loopCounts.append("]");
+      stats.setStringValue(CrawlerEngineStats.ID,CrawlerEngineStats.Name.HTTPFetcher_IOLoopConnectionCounts,loopCounts.toString());
+    }
+
     if (snapShotTime != -1) {
       stats.setIntValue(CrawlerEngineStats.ID,CrawlerEngineStats.Name.HTTPFetcher_TimeDeltaBetweenSnapshots, (int)(curTime - snapShotTime));
     }
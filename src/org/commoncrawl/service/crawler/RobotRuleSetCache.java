@@ -0,0 +1,197 @@
+/**
+ * Copyright 2008 - CommonCrawl Foundation
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.commoncrawl.service.crawler;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.commoncrawl.service.crawler.RobotRulesParser.RobotRuleSet;
+
+/**
+ * Node wide cache of robots state, shared by all crawl lists.
+ *
+ * Maps a robots host name to the fingerprint of the robots file it last returned
+ * (plus the 400/403 status of the fetch), and a fingerprint to the parsed rule set,
+ * so lists crawling the same host don't each refetch robots, and hosts
+ * serving identical robots files (typically subdomains of a site) share a
+ * single parse. Entries expire after a TTL, and the cache is bounded by
+ * host count and by the (estimated) memory used by the rule sets, least
+ * recently used entries going first.
+ *
+ * Thread safe (rule sets are looked up from the robots parser threads).
+ *
+ * @author rana
+ *
+ */
+public final class RobotRuleSetCache {
+
+  public static final Log LOG = LogFactory.getLog(RobotRuleSetCache.class);
+
+  /** max number of host entries **/
+  public static final String MAX_HOSTS_PROPERTY = "http.robots.cache.max.hosts";
+  public static final int    DEFAULT_MAX_HOSTS = 250000;
+  /** max (estimated) bytes used by cached rule sets **/
+  public static final String MAX_BYTES_PROPERTY = "http.robots.cache.max.bytes";
+  public static final long   DEFAULT_MAX_BYTES = 64 * 1024 * 1024;
+  /** how long (in milliseconds) an entry is valid for **/
+  public static final String TTL_PROPERTY = "http.robots.cache.ttl";
+  public static final long   DEFAULT_TTL = 24 * 60 * 60 * 1000;
+
+  /**
+   * robots state of a host
+   */
+  public static class HostEntry {
+
+    HostEntry(long robotsCRC,boolean robotsReturned400,boolean robotsReturned403,long expireTime) {
+      _robotsCRC = robotsCRC;
+      _robotsReturned400 = robotsReturned400;
+      _robotsReturned403 = robotsReturned403;
+      _expireTime = expireTime;
+    }
+
+    /** 64 bit fingerprint of the robots file (zero means empty rules) **/
+    public final long    _robotsCRC;
+    public final boolean _robotsReturned400;
+    public final boolean _robotsReturned403;
+    final long           _expireTime;
+  }
+
+  private static class RuleSetEntry {
+
+    RuleSetEntry(RobotRuleSet ruleSet,long size,long expireTime) {
+      _ruleSet = ruleSet;
+      _size = size;
+      _expireTime = expireTime;
+    }
+
+    final RobotRuleSet _ruleSet;
+    final long         _size;
+    final long         _expireTime;
+  }
+
+  private final int  _maxHosts;
+  private final long _maxBytes;
+  private final long _ttl;
+
+  private long _ruleSetBytes = 0;
+  private long _hits = 0;
+  private long _misses = 0;
+
+  // both in access order, so the eldest entry is the least recently used
+  private final LinkedHashMap<String,HostEntry>  _hosts = new LinkedHashMap<String,HostEntry>(1024,0.75f,true);
+  private final LinkedHashMap<Long,RuleSetEntry> _ruleSets = new LinkedHashMap<Long,RuleSetEntry>(1024,0.75f,true);
+
+  /**
+   * @param conf the configuration to read limits from (or null for defaults)
+   */
+  public RobotRuleSetCache(Configuration conf) {
+    _maxHosts = (conf != null) ? conf.getInt(MAX_HOSTS_PROPERTY, DEFAULT_MAX_HOSTS) : DEFAULT_MAX_HOSTS;
+    _maxBytes = (conf != null) ? conf.getLong(MAX_BYTES_PROPERTY, DEFAULT_MAX_BYTES) : DEFAULT_MAX_BYTES;
+    _ttl = (conf != null) ? conf.getLong(TTL_PROPERTY, DEFAULT_TTL) : DEFAULT_TTL;
+    LOG.info("Robots Cache Max Hosts:" + _maxHosts + " Max Bytes:" + _maxBytes + " TTL:" + _ttl);
+  }
+
+  /**
+   * record the robots state of a host
+   */
+  public synchronized void cacheHost(String hostName,long robotsCRC,boolean robotsReturned400,boolean robotsReturned403) {
+    _hosts.put(hostName.toLowerCase(), new HostEntry(robotsCRC,robotsReturned400,robotsReturned403,System.currentTimeMillis() + _ttl));
+
+    if (_hosts.size() > _maxHosts) {
+      Iterator<HostEntry> i = _hosts.values().iterator();
+      i.next();
+      i.remove();
+    }
+  }
+
+  /**
+   * get the robots state of a host
+   *
+   * @return the state, or null if the host is not cached (or its entry has expired)
+   */
+  public synchronized HostEntry getHost(String hostName) {
+    String key = hostName.toLowerCase();
+    HostEntry entry = _hosts.get(key);
+    if (entry != null && entry._expireTime < System.currentTimeMillis()) {
+      _hosts.remove(key);
+      entry = null;
+    }
+    return entry;
+  }
+
+  /**
+   * cache a parsed rule set by the fingerprint of its robots file
+   */
+  public synchronized void cacheRuleSet(long robotsCRC,RobotRuleSet ruleSet) {
+    // the empty rule set (fingerprint zero) is a singleton
+    if (robotsCRC == 0)
+      return;
+
+    long size = ruleSet.getEstimatedSize();
+    if (size > _maxBytes)
+      return;
+
+    RuleSetEntry oldEntry = _ruleSets.put(robotsCRC, new RuleSetEntry(ruleSet,size,System.currentTimeMillis() + _ttl));
+    if (oldEntry != null) {
+      _ruleSetBytes -= oldEntry._size;
+    }
+    _ruleSetBytes += size;
+
+    // evict least recently used rule sets until we fit
+    Iterator<RuleSetEntry> i = _ruleSets.values().iterator();
+    while (_ruleSetBytes > _maxBytes && i.hasNext()) {
+      _ruleSetBytes -= i.next()._size;
+      i.remove();
+    }
+  }
+
+  /**
+   * get a parsed rule set given the fingerprint of its robots file
+   *
+   * @return the rule set, or null if not cached (or expired)
+   */
+  public synchronized RobotRuleSet getRuleSet(long robotsCRC) {
+    RuleSetEntry entry = _ruleSets.get(robotsCRC);
+    if (entry != null && entry._expireTime < System.currentTimeMillis()) {
+      _ruleSets.remove(robotsCRC);
+      _ruleSetBytes -= entry._size;
+      entry = null;
+    }
+    if (entry == null) {
+      _misses++;
+      return null;
+    }
+    _hits++;
+    return entry._ruleSet;
+  }
+
+  /** the (estimated) bytes used by the cached rule sets **/
+  synchronized long getRuleSetBytes() {
+    return _ruleSetBytes;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "Hosts:" + _hosts.size() + " RuleSets:" + _ruleSets.size() + " RuleSetBytes:" + _ruleSetBytes
+      + " Hits:" + _hits + " Misses:" + _misses;
+  }
+}
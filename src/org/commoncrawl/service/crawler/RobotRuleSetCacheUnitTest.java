@@ -0,0 +1,127 @@
+/**
+ * Copyright 2008 - CommonCrawl Foundation
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ **/
+package org.commoncrawl.service.crawler;
+
+import org.apache.hadoop.conf.Configuration;
+import org.commoncrawl.service.crawler.RobotRulesParser.RobotRuleSet;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Checks RobotRuleSetCache eviction (least recently used first), byte
+ * accounting and expiry.
+ *
+ * @author rana
+ *
+ */
+public class RobotRuleSetCacheUnitTest {
+
+  private static RobotRuleSet parse(String robotsFile) {
+    RobotRulesParser parser = new RobotRulesParser(new String[] { "ccbot" });
+    byte[] bytes = robotsFile.getBytes();
+    return parser.parseRules(bytes,0,bytes.length);
+  }
+
+  private static RobotRuleSet ruleSet(int id) {
+    // same size, different rules
+    return parse("User-agent: *\nDisallow: /dir" + id + "/\n");
+  }
+
+  @Test
+  public void testRuleSetLRU() throws Exception {
+    long size = ruleSet(1).getEstimatedSize();
+    Configuration conf = new Configuration();
+    // room for two rule sets
+    conf.setLong(RobotRuleSetCache.MAX_BYTES_PROPERTY, size * 2 + size / 2);
+    RobotRuleSetCache cache = new RobotRuleSetCache(conf);
+
+    RobotRuleSet one = ruleSet(1);
+    RobotRuleSet two = ruleSet(2);
+    RobotRuleSet three = ruleSet(3);
+    cache.cacheRuleSet(1, one);
+    cache.cacheRuleSet(2, two);
+    Assert.assertEquals(size * 2, cache.getRuleSetBytes());
+
+    // touch one, so two is the least recently used
+    Assert.assertSame(one, cache.getRuleSet(1));
+    cache.cacheRuleSet(3, three);
+    Assert.assertEquals(size * 2, cache.getRuleSetBytes());
+    Assert.assertSame(one, cache.getRuleSet(1));
+    Assert.assertNull(cache.getRuleSet(2));
+    Assert.assertSame(three, cache.getRuleSet(3));
+  }
+
+  @Test
+  public void testRuleSetByteAccounting() throws Exception {
+    RobotRuleSetCache cache = new RobotRuleSetCache(null);
+    RobotRuleSet small = ruleSet(1);
+    RobotRuleSet large = parse("User-agent: *\nDisallow: /a/very/long/path/\nDisallow: /another/long/path/\n");
+    Assert.assertTrue(large.getEstimatedSize() > small.getEstimatedSize());
+
+    // replacing an entry doesn't count the old one
+    cache.cacheRuleSet(1, small);
+    cache.cacheRuleSet(1, small);
+    Assert.assertEquals(small.getEstimatedSize(), cache.getRuleSetBytes());
+    cache.cacheRuleSet(1, large);
+    Assert.assertEquals(large.getEstimatedSize(), cache.getRuleSetBytes());
+
+    // the empty rule set isn't cached
+    cache.cacheRuleSet(0, small);
+    Assert.assertNull(cache.getRuleSet(0));
+    Assert.assertEquals(large.getEstimatedSize(), cache.getRuleSetBytes());
+
+    // nor is a rule set bigger than the whole cache
+    Configuration conf = new Configuration();
+    conf.setLong(RobotRuleSetCache.MAX_BYTES_PROPERTY, small.getEstimatedSize());
+    cache = new RobotRuleSetCache(conf);
+    cache.cacheRuleSet(2, large);
+    Assert.assertNull(cache.getRuleSet(2));
+    Assert.assertEquals(0, cache.getRuleSetBytes());
+  }
+
+  @Test
+  public void testExpiry() throws Exception {
+    Configuration conf = new Configuration();
+    conf.setLong(RobotRuleSetCache.TTL_PROPERTY, -1);
+    RobotRuleSetCache cache = new RobotRuleSetCache(conf);
+    cache.cacheRuleSet(1, ruleSet(1));
+    cache.cacheHost("www.foo.com", 1, false, false);
+    Assert.assertNull(cache.getRuleSet(1));
+    Assert.assertEquals(0, cache.getRuleSetBytes());
+    Assert.assertNull(cache.getHost("www.foo.com"));
+  }
+
+  @Test
+  public void testHostLRU() throws Exception {
+    Configuration conf = new Configuration();
+    conf.setInt(RobotRuleSetCache.MAX_HOSTS_PROPERTY, 2);
+    RobotRuleSetCache cache = new RobotRuleSetCache(conf);
+    cache.cacheHost("a.com", 1, false, false);
+    cache.cacheHost("B.com", 2, true, true);
+    // host names are case insensitive
+    RobotRuleSetCache.HostEntry entry = cache.getHost("b.com");
+    Assert.assertEquals(2, entry._robotsCRC);
+    Assert.assertTrue(entry._robotsReturned400);
+    Assert.assertTrue(entry._robotsReturned403);
+    // a.com is now the least recently used
+    cache.cacheHost("c.com", 3, false, false);
+    Assert.assertNull(cache.getHost("a.com"));
+    Assert.assertEquals(2, cache.getHost("b.com")._robotsCRC);
+    Assert.assertEquals(3, cache.getHost("c.com")._robotsCRC);
+  }
+}
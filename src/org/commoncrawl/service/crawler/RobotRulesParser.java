@@ -26,6 +26,7 @@ import java.io.IOException;
 import java.net.URL;
 import java.net.URLDecoder;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.StringTokenizer;
@@ -67,6 +68,13 @@ public final class RobotRulesParser implements Configurable {
   /**
    * This class holds the rules which were parsed from a robots.txt
    * file, and can test paths against those rules.
+   *
+   * The rules are compiled into a trie of path characters on first use, so
+   * testing a path costs one walk down the trie rather than a scan of every
+   * rule. As with the major search engines, the longest (most specific)
+   * matching rule wins, and Allow wins a tie. Rules may contain <code>*</code>
+   * wildcards, and may be anchored to the end of the path with a trailing
+   * <code>$</code>.
    */
   public static class RobotRuleSet  {
     ArrayList tmpEntries = new ArrayList();
@@ -74,10 +82,13 @@ public final class RobotRulesParser implements Configurable {
     long expireTime;
     long crawlDelay = -1;
     public boolean explicitMention = false;
+    // compiled rules (built on first use)
+    private volatile RuleNode root = null;
+    private int nodeCount = 0;
 
     /**
      */
-    private class RobotsEntry {
+    private static class RobotsEntry {
       String prefix;
       boolean allowed;
 
@@ -85,6 +96,36 @@ public final class RobotRulesParser implements Configurable {
         this.prefix= prefix;
         this.allowed= allowed;
       }
+      
+      /** true if this rule takes precedence over the other (matching) rule **/
+      boolean beats(RobotsEntry other) { 
+        return other == null 
+          || prefix.length() > other.prefix.length() 
+          || (prefix.length() == other.prefix.length() && allowed && !other.allowed);
+      }
+    }
+    
+    private static final char[] NO_CHARS = new char[0];
+    private static final RuleNode[] NO_NODES = new RuleNode[0];
+    
+    /**
+     * a node in the rule trie
+     */
+    private static class RuleNode {
+      // sorted child chars, and the corresponding child nodes
+      char[]        childChars = NO_CHARS;
+      RuleNode[]    children   = NO_NODES;
+      // the winning plain prefix rule ending at this node
+      RobotsEntry   prefixRule;
+      // the winning $ anchored rule ending at this node
+      RobotsEntry   exactRule;
+      // wildcard rules whose literal prefix (up to the first *) ends at this node
+      RobotsEntry[] wildcardRules;
+      
+      RuleNode child(char c) { 
+        int index = Arrays.binarySearch(childChars, c);
+        return (index >= 0) ? children[index] : null;
+      }
     }
 
     /**
@@ -100,6 +141,7 @@ public final class RobotRulesParser implements Configurable {
       }
 
       tmpEntries.add(new RobotsEntry(prefix, allow));
+      root = null;
     }
 
     /**
@@ -111,6 +153,142 @@ public final class RobotRulesParser implements Configurable {
       } else {
         tmpEntries.clear();
       }
+      root = null;
+    }
+    
+    /**
+     * compile the rules into the trie (if not already compiled). Rule sets 
+     * are shared between lists (see RobotRuleSetCache), so this is done once,
+     * before a parsed rule set is handed out.
+     */
+    synchronized void compile() { 
+      if (root != null)
+        return;
+      
+      if (entries == null) {
+        entries= new RobotsEntry[tmpEntries.size()];
+        entries= (RobotsEntry[]) 
+          tmpEntries.toArray(entries);
+        tmpEntries= null;
+      }
+      
+      RuleNode newRoot = new RuleNode();
+      nodeCount = 1;
+      for (RobotsEntry entry : entries) { 
+        String pattern = entry.prefix;
+        int wildcardPos = pattern.indexOf('*');
+        boolean anchored = (wildcardPos == -1 && pattern.endsWith("$"));
+        int literalEnd = (wildcardPos != -1) ? wildcardPos : (anchored) ? pattern.length() - 1 : pattern.length();
+        
+        RuleNode node = newRoot;
+        for (int i=0;i<literalEnd;++i) { 
+          node = addChild(node,pattern.charAt(i));
+        }
+        
+        if (wildcardPos != -1) { 
+          RobotsEntry[] existing = node.wildcardRules;
+          if (existing == null) { 
+            node.wildcardRules = new RobotsEntry[] { entry };
+          }
+          else { 
+            node.wildcardRules = Arrays.copyOf(existing, existing.length + 1);
+            node.wildcardRules[existing.length] = entry;
+          }
+        }
+        else if (anchored) { 
+          if (entry.beats(node.exactRule))
+            node.exactRule = entry;
+        }
+        else { 
+          if (entry.beats(node.prefixRule))
+            node.prefixRule = entry;
+        }
+      }
+      root = newRoot;
+    }
+    
+    private RuleNode addChild(RuleNode node,char c) { 
+      int index = Arrays.binarySearch(node.childChars, c);
+      if (index >= 0) 
+        return node.children[index];
+      
+      int insertAt = -(index + 1);
+      RuleNode child = new RuleNode();
+      
+      char[] childChars = new char[node.childChars.length + 1];
+      System.arraycopy(node.childChars, 0, childChars, 0, insertAt);
+      childChars[insertAt] = c;
+      System.arraycopy(node.childChars, insertAt, childChars, insertAt + 1, node.childChars.length - insertAt);
+      
+      RuleNode[] children = new RuleNode[node.children.length + 1];
+      System.arraycopy(node.children, 0, children, 0, insertAt);
+      children[insertAt] = child;
+      System.arraycopy(node.children, insertAt, children, insertAt + 1, node.children.length - insertAt);
+      
+      node.childChars = childChars;
+      node.children = children;
+      nodeCount++;
+      
+      return child;
+    }
+    
+    /**
+     * match a pattern (from patternPos) containing * wildcards and an 
+     * optional trailing $ against the path (from pathPos)
+     */
+    private static boolean wildcardMatch(String pattern,int patternPos,String path,int pathPos) {
+      int patternEnd = pattern.length();
+      boolean anchored = pattern.endsWith("$");
+      if (anchored)
+        patternEnd--;
+      
+      // where to resume after the last * seen (if any)
+      int starPatternPos = -1;
+      int starPathPos = -1;
+      
+      while (true) { 
+        if (patternPos < patternEnd && pattern.charAt(patternPos) == '*') { 
+          // collapse runs of * 
+          while (patternPos < patternEnd && pattern.charAt(patternPos) == '*') 
+            patternPos++;
+          if (patternPos == patternEnd && !anchored) 
+            return true;
+          starPatternPos = patternPos;
+          starPathPos = pathPos;
+        }
+        else if (patternPos == patternEnd) { 
+          if (!anchored || pathPos == path.length())
+            return true;
+          // anchored, but path continues - let the last * absorb more 
+          if (starPatternPos == -1 || starPathPos >= path.length())
+            return false;
+          patternPos = starPatternPos;
+          pathPos = ++starPathPos;
+        }
+        else if (pathPos < path.length() && path.charAt(pathPos) == pattern.charAt(patternPos)) { 
+          patternPos++;
+          pathPos++;
+        }
+        else { 
+          // mismatch - let the last * absorb one more char
+          if (starPatternPos == -1 || starPathPos >= path.length())
+            return false;
+          patternPos = starPatternPos;
+          pathPos = ++starPathPos;
+        }
+      }
+    }
+    
+    /** 
+     * rough size of the rule set in memory (in bytes)
+     */
+    long getEstimatedSize() { 
+      compile();
+      long size = 64 + nodeCount * 48;
+      for (RobotsEntry entry : entries) { 
+        size += 48 + entry.prefix.length() * 2;
+      }
+      return size;
     }
 
     /**
@@ -151,6 +329,11 @@ public final class RobotRulesParser implements Configurable {
       if ((path == null) || "".equals(path)) {
         path= "/";
       }
+      // rules (/*? , /*?sessionid= , $ anchors) apply to the query string too
+      String query = url.getQuery();
+      if (query != null) {
+        path = path + "?" + query;
+      }
       return isAllowed(path);
     }
     
@@ -167,28 +350,38 @@ public final class RobotRulesParser implements Configurable {
         // path prefixes
       }
       
-      if (entries == null) {
-        entries= new RobotsEntry[tmpEntries.size()];
-        entries= (RobotsEntry[]) 
-          tmpEntries.toArray(entries);
-        tmpEntries= null;
+      RuleNode node = root;
+      if (node == null) { 
+        compile();
+        node = root;
       }
-
-      int pos= 0;
-      int end= entries.length;
-      while (pos < end) {
-        if (path.startsWith(entries[pos].prefix))
-          return entries[pos].allowed;
-        pos++;
+      
+      // walk the path down the trie, keeping the winning rule so far
+      RobotsEntry best = null;
+      int depth = 0;
+      while (node != null) {
+        if (node.prefixRule != null && node.prefixRule.beats(best)) 
+          best = node.prefixRule;
+        if (depth == path.length() && node.exactRule != null && node.exactRule.beats(best))
+          best = node.exactRule;
+        if (node.wildcardRules != null) { 
+          for (RobotsEntry rule : node.wildcardRules) { 
+            if (rule.beats(best) && wildcardMatch(rule.prefix, depth, path, depth)) 
+              best = rule;
+          }
+        }
+        if (depth == path.length())
+          break;
+        node = node.child(path.charAt(depth++));
       }
 
-      return true;
+      return (best == null) ? true : best.allowed;
     }
 
     /**
      */
     public String toString() {
-      isAllowed("x");  // force String[] representation
+      compile();  // force String[] representation
       StringBuffer buf= new StringBuffer();
       for (int i= 0; i < entries.length; i++) 
         if (entries[i].allowed)
@@ -414,6 +607,8 @@ public final class RobotRulesParser implements Configurable {
 
     if (bestPrecedenceSoFar == NO_PRECEDENCE) 
       return EMPTY_RULES;
+    // compile up front, as parsed rule sets are shared 
+    bestRulesSoFar.compile();
     return bestRulesSoFar;
   }
 
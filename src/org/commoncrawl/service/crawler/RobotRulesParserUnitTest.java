@@ -0,0 +1,169 @@
+/**
+ * Copyright 2008 - CommonCrawl Foundation
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ **/
+package org.commoncrawl.service.crawler;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import org.commoncrawl.service.crawler.RobotRulesParser.RobotRuleSet;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Checks the compiled (trie) robots rules: longest match wins, Allow wins a
+ * tie, * wildcards and $ anchors, against a regex based reference.
+ *
+ * @author rana
+ *
+ */
+public class RobotRulesParserUnitTest {
+
+  private static RobotRuleSet parse(String robotsFile) {
+    RobotRulesParser parser = new RobotRulesParser(new String[] { "ccbot" });
+    byte[] bytes = robotsFile.getBytes();
+    return parser.parseRules(bytes,0,bytes.length);
+  }
+
+  @Test
+  public void testLongestMatch() throws Exception {
+    // order in the file doesn't matter, the longer rule does
+    RobotRuleSet rules = parse("User-agent: *\nAllow: /a/b\nDisallow: /a\n");
+    Assert.assertFalse(rules.isAllowed("/a"));
+    Assert.assertFalse(rules.isAllowed("/a/c"));
+    Assert.assertTrue(rules.isAllowed("/a/b"));
+    Assert.assertTrue(rules.isAllowed("/a/b/c"));
+    Assert.assertTrue(rules.isAllowed("/b"));
+
+    rules = parse("User-agent: *\nDisallow: /a\nAllow: /a/b\nDisallow: /a/b/c\n");
+    Assert.assertTrue(rules.isAllowed("/a/b/d"));
+    Assert.assertFalse(rules.isAllowed("/a/b/cd"));
+    Assert.assertFalse(rules.isAllowed("/a/x"));
+  }
+
+  @Test
+  public void testAllowWinsTie() throws Exception {
+    RobotRuleSet rules = parse("User-agent: *\nDisallow: /x\nAllow: /x\n");
+    Assert.assertTrue(rules.isAllowed("/x"));
+    Assert.assertTrue(rules.isAllowed("/xy"));
+    // the same, with the rules the other way round, and with wildcards
+    rules = parse("User-agent: *\nAllow: /x\nDisallow: /x\nDisallow: /*y\nAllow: /*y\n");
+    Assert.assertTrue(rules.isAllowed("/xy"));
+    Assert.assertTrue(rules.isAllowed("/ay"));
+  }
+
+  @Test
+  public void testWildcards() throws Exception {
+    RobotRuleSet rules = parse("User-agent: *\nDisallow: /*.php$\nDisallow: /fish*\nDisallow: /*a*b$\n");
+    Assert.assertFalse(rules.isAllowed("/index.php"));
+    Assert.assertTrue(rules.isAllowed("/index.php?x=1"));
+    // the first .php is not the one that must end the path
+    Assert.assertFalse(rules.isAllowed("/a.php.php"));
+    Assert.assertFalse(rules.isAllowed("/a.phpx.php"));
+    Assert.assertTrue(rules.isAllowed("/a.php.phpx"));
+    Assert.assertFalse(rules.isAllowed("/fish"));
+    Assert.assertFalse(rules.isAllowed("/fishheads"));
+    Assert.assertTrue(rules.isAllowed("/Fish"));
+    Assert.assertFalse(rules.isAllowed("/xaxbyb"));
+    Assert.assertTrue(rules.isAllowed("/xaxbyc"));
+    Assert.assertTrue(rules.isAllowed("/xbxa"));
+  }
+
+  @Test
+  public void testQueryStringViaURL() throws Exception {
+    RobotRuleSet rules = parse("User-agent: *\nDisallow: /*?\nAllow: /page.php$\nDisallow: /page\nDisallow: /*?sessionid=\n");
+    // the query is part of what the rules see
+    Assert.assertTrue(rules.isAllowed(new URL("http://www.foo.com/index.html")));
+    Assert.assertFalse(rules.isAllowed(new URL("http://www.foo.com/index.html?x=1")));
+    Assert.assertFalse(rules.isAllowed(new URL("http://www.foo.com/?sessionid=1")));
+    Assert.assertFalse(rules.isAllowed(new URL("http://www.foo.com?x=1")));
+    // $ anchors at the end of the query, not of the path
+    Assert.assertTrue(rules.isAllowed(new URL("http://www.foo.com/page.php")));
+    Assert.assertFalse(rules.isAllowed(new URL("http://www.foo.com/page.php?x=1")));
+    // the fragment is not
+    Assert.assertTrue(rules.isAllowed(new URL("http://www.foo.com/page.php#top")));
+    Assert.assertTrue(rules.isAllowed(new URL("http://www.foo.com")));
+
+    rules = parse("User-agent: *\nDisallow: /*?sessionid=\n");
+    Assert.assertTrue(rules.isAllowed(new URL("http://www.foo.com/a?id=1")));
+    Assert.assertFalse(rules.isAllowed(new URL("http://www.foo.com/a?sessionid=1")));
+  }
+
+  /** the rules as regexes, longest (in pattern length) match wins, Allow wins ties **/
+  private static boolean referenceIsAllowed(ArrayList<String> patterns,ArrayList<Boolean> allowed,String path) {
+    int bestLength = -1;
+    boolean bestAllowed = true;
+    for (int i=0;i<patterns.size();++i) {
+      String pattern = patterns.get(i);
+      boolean anchored = pattern.endsWith("$");
+      String body = (anchored) ? pattern.substring(0,pattern.length() - 1) : pattern;
+      StringBuilder regEx = new StringBuilder();
+      for (int j=0;j<body.length();++j) {
+        char c = body.charAt(j);
+        regEx.append((c == '*') ? ".*" : Pattern.quote(String.valueOf(c)));
+      }
+      if (!anchored) {
+        regEx.append(".*");
+      }
+      if (Pattern.compile(regEx.toString(),Pattern.DOTALL).matcher(path).matches()) {
+        if (pattern.length() > bestLength || (pattern.length() == bestLength && allowed.get(i) && !bestAllowed)) {
+          bestLength = pattern.length();
+          bestAllowed = allowed.get(i);
+        }
+      }
+    }
+    return bestAllowed;
+  }
+
+  @Test
+  public void testAgainstReference() throws Exception {
+    Random random = new Random(5);
+    String patternChars = "/ab.$*";
+    String pathChars = "/ab.$";
+
+    for (int trial=0;trial<5000;++trial) {
+      ArrayList<String> patterns = new ArrayList<String>();
+      ArrayList<Boolean> allowed = new ArrayList<Boolean>();
+      StringBuilder robotsFile = new StringBuilder("User-agent: *\n");
+      int ruleCount = random.nextInt(8);
+      for (int i=0;i<ruleCount;++i) {
+        StringBuilder pattern = new StringBuilder("/");
+        int length = random.nextInt(6);
+        for (int j=0;j<length;++j) {
+          pattern.append(patternChars.charAt(random.nextInt(patternChars.length())));
+        }
+        boolean allow = random.nextBoolean();
+        patterns.add(pattern.toString());
+        allowed.add(allow);
+        robotsFile.append((allow) ? "Allow: " : "Disallow: ").append(pattern).append('\n');
+      }
+      RobotRuleSet rules = parse(robotsFile.toString());
+
+      for (int i=0;i<20;++i) {
+        StringBuilder path = new StringBuilder("/");
+        int length = random.nextInt(8);
+        for (int j=0;j<length;++j) {
+          path.append(pathChars.charAt(random.nextInt(pathChars.length())));
+        }
+        Assert.assertEquals(robotsFile + " path:" + path,
+            referenceIsAllowed(patterns,allowed,path.toString()),rules.isAllowed(path.toString()));
+      }
+    }
+  }
+}
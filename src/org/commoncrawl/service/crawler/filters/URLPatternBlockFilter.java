@@ -2,7 +2,14 @@ package org.commoncrawl.service.crawler.filters;
 
 import static org.junit.Assert.*;
 
+import java.io.BufferedReader;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
@@ -62,7 +69,21 @@ public class URLPatternBlockFilter extends Filter {
   
   private Vector<DomainURLPatternItem> globalPatternList = new Vector<DomainURLPatternItem>();
   private TreeMultimap<String,DomainURLPatternItem> domainToPatternList = TreeMultimap.create();
+  // the rules above, compiled on first use (reset whenever the rules change) 
+  private volatile URLPatternMatcher matcher = null;
   
+  private URLPatternMatcher getMatcher() { 
+    URLPatternMatcher matcherOut = matcher;
+    if (matcherOut == null) { 
+      synchronized (this) {
+        if (matcher == null) { 
+          matcher = new URLPatternMatcher(globalPatternList, domainToPatternList.asMap());
+        }
+        matcherOut = matcher;
+      }
+    }
+    return matcherOut;
+  }
 
   @Override
   public void loadFilterItem(String filterItemLine) throws IOException {
@@ -84,6 +105,8 @@ public class URLPatternBlockFilter extends Filter {
 	      else {
 	        globalPatternList.add(new DomainURLPatternItem(subDomainRegExp,urlPattern));
 	      }
+	      // recompile on next use
+	      matcher = null;
     	}
     }
     else { 
@@ -108,6 +131,17 @@ public class URLPatternBlockFilter extends Filter {
 
   @Override
   public FilterResult filterItem(String rootDomainName,String fullyQualifiedDomainName, String urlPath,CrawlURLMetadata metadataIn,FilterResults resultsOut) {    
+    if (getMatcher().matches(rootDomainName, fullyQualifiedDomainName, urlPath)) { 
+      return FilterResult.Filter_Reject;
+    }
+    return FilterResult.Filter_NoAction;
+  }
+  
+  /** 
+   * the original (uncompiled) matching logic - runs every applicable regex. used to check and 
+   * benchmark the compiled matcher
+   */
+  FilterResult filterItemUncompiled(String rootDomainName,String fullyQualifiedDomainName, String urlPath) {    
 
     for (DomainURLPatternItem globalBoostItem : globalPatternList) {
     	if (globalBoostItem.domainPatternObj == null || globalBoostItem.domainPatternObj.matcher(fullyQualifiedDomainName).matches()) { 
@@ -130,17 +164,75 @@ public class URLPatternBlockFilter extends Filter {
     return FilterResult.Filter_NoAction;
   }
 
-
   @Override
   public void clear() {
     globalPatternList.clear();
     domainToPatternList.clear();
+    matcher = null;
   }
   
+  /**
+   * benchmark the compiled matcher against the original logic:
+   * 
+   * URLPatternBlockFilter [filterFile urlFile] 
+   * 
+   * where urlFile contains one url per line. with no args, just runs the unit test.
+   */
   public static void main(String[] args) {
   	URLPatternBlockFilter filter = new URLPatternBlockFilter();
   	try {
-	    filter.testFilter();
+  	  if (args.length < 2) { 
+  	    filter.testFilter();
+  	    return;
+  	  }
+  	  
+  	  long loadStart = System.currentTimeMillis();
+  	  Utils.loadFilterFromStream(new FileInputStream(args[0]), filter);
+  	  filter.getMatcher();
+  	  System.out.println("Loaded and compiled:" + filter.globalPatternList.size() + " global and:" 
+  	      + filter.domainToPatternList.size() + " domain rules in:" + (System.currentTimeMillis() - loadStart) + "MS");
+  	  
+  	  ArrayList<String[]> urls = new ArrayList<String[]>();
+  	  BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(args[1]),Charset.forName("UTF-8")));
+  	  String line;
+  	  while ((line = reader.readLine()) != null) { 
+  	    try { 
+  	      URL url = new URL(line.trim());
+  	      String rootDomain = URLUtils.extractRootDomainName(url.getHost());
+  	      if (rootDomain != null) { 
+  	        urls.add(new String[] { rootDomain, url.getHost(), url.getPath() });
+  	      }
+  	    }
+  	    catch (MalformedURLException e) { 
+  	    }
+  	  }
+  	  reader.close();
+  	  
+  	  // check, then time both 
+  	  int mismatches = 0;
+  	  for (String[] url : urls) { 
+  	    if (filter.filterItem(url[0],url[1],url[2],null,null) != filter.filterItemUncompiled(url[0], url[1], url[2])) { 
+  	      System.out.println("Mismatch for:" + url[1] + url[2]);
+  	      ++mismatches;
+  	    }
+  	  }
+  	  for (int pass=0;pass<2;++pass) { 
+  	    long start = System.nanoTime();
+  	    int rejected = 0;
+  	    for (String[] url : urls) { 
+  	      if (filter.filterItemUncompiled(url[0], url[1], url[2]) == FilterResult.Filter_Reject)
+  	        rejected++;
+  	    }
+  	    long uncompiledTime = System.nanoTime() - start;
+  	    start = System.nanoTime();
+  	    for (String[] url : urls) { 
+  	      filter.filterItem(url[0],url[1],url[2],null,null);
+  	    }
+  	    long compiledTime = System.nanoTime() - start;
+  	    System.out.println("Pass:" + pass + " URLS:" + urls.size() + " Rejected:" + rejected + " Mismatches:" + mismatches 
+  	        + " Uncompiled:" + (uncompiledTime / Math.max(1,urls.size())) + "ns/url" 
+  	        + " Compiled:" + (compiledTime / Math.max(1,urls.size())) + "ns/url");
+  	  }
     } catch (Exception e) {
 	    e.printStackTrace();
     }
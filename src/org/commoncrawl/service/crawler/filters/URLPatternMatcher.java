@@ -0,0 +1,460 @@
+package org.commoncrawl.service.crawler.filters;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.commoncrawl.service.crawler.filters.URLPatternBlockFilter.DomainURLPatternItem;
+import org.commoncrawl.util.LRUCache;
+import org.commoncrawl.util.MultiSubstringMatcher;
+
+/**
+ * The rules of a URLPatternBlockFilter, compiled for matching.
+ *
+ * Rules are grouped by root domain (the global rules form a group of their
+ * own), and within a group by host: rules with no host pattern, rules whose
+ * host pattern is a literal host name (hash lookup), and rules with a host
+ * regex. The rules that apply to a host are resolved once, and cached, so
+ * host regexes are not re-run for every url on a host.
+ *
+ * The path patterns of a host are then matched in one go: .* matches
+ * anything, literal patterns are looked up in a hash set, and the remaining
+ * patterns are pre-filtered by a literal that any match must contain. The
+ * literals of all of them are found in a single pass over the path (see
+ * MultiSubstringMatcher), and only the patterns whose literal was found are
+ * run. Patterns with no usable literal are folded into a few alternations.
+ * So the cost of a lookup depends on the path and the handful of candidate
+ * patterns, not on the size of the rule set.
+ *
+ * Immutable, and so thread safe, once built.
+ *
+ * @author rana
+ *
+ */
+final class URLPatternMatcher {
+
+  // number of hosts whose resolved rules are cached
+  private static final int HOST_CACHE_SIZE = 10000;
+  // max number of patterns folded into a single alternation
+  private static final int MAX_ALTERNATION_SIZE = 64;
+  // shorter literals match too many paths to be a useful filter
+  private static final int MIN_REQUIRED_LITERAL_LENGTH = 3;
+
+  /**
+   * the path patterns that apply to a host
+   */
+  static final class PathRules {
+
+    static final PathRules MATCH_ALL = new PathRules();
+    static {
+      MATCH_ALL._matchAll = true;
+    }
+
+    private boolean                _matchAll = false;
+    private HashSet<String>        _literals = null;
+    private MultiSubstringMatcher  _literalMatcher = null;
+    private Pattern                _filteredPatterns[] = null;
+    private Pattern                _unfilteredPatterns[] = null;
+
+    // build state
+    private ArrayList<String>      _requiredLiterals = new ArrayList<String>();
+    private ArrayList<Pattern>     _filteredPatternList = new ArrayList<Pattern>();
+    private ArrayList<String>      _unfilteredRegExs = new ArrayList<String>();
+
+    void add(String pathRegEx,Pattern pathPattern) {
+      if (_matchAll) {
+        return;
+      }
+      if (pathRegEx.equals(".*")) {
+        _matchAll = true;
+        return;
+      }
+      String literal = literalOf(pathRegEx);
+      if (literal != null) {
+        if (_literals == null) {
+          _literals = new HashSet<String>();
+        }
+        _literals.add(literal);
+        return;
+      }
+      String requiredLiteral = requiredLiteralOf(pathRegEx);
+      if (requiredLiteral != null) {
+        _requiredLiterals.add(requiredLiteral);
+        _filteredPatternList.add(pathPattern);
+      }
+      else {
+        _unfilteredRegExs.add(pathRegEx);
+      }
+    }
+
+    PathRules compile() {
+      if (_matchAll) {
+        return MATCH_ALL;
+      }
+      if (_requiredLiterals.size() != 0) {
+        _literalMatcher = new MultiSubstringMatcher(_requiredLiterals.toArray(new String[0]));
+        _filteredPatterns = _filteredPatternList.toArray(new Pattern[0]);
+      }
+      _unfilteredPatterns = buildAlternations(_unfilteredRegExs);
+
+      _requiredLiterals = null;
+      _filteredPatternList = null;
+      _unfilteredRegExs = null;
+
+      return this;
+    }
+
+    boolean isMatchAll() {
+      return _matchAll;
+    }
+
+    boolean matches(final String path) {
+      if (_matchAll) {
+        return true;
+      }
+      if (_literals != null && _literals.contains(path)) {
+        return true;
+      }
+      if (_literalMatcher != null) {
+        boolean matched = _literalMatcher.scan(path,new MultiSubstringMatcher.MatchHandler() {
+
+          @Override
+          public boolean onMatch(int patternIndex) {
+            return _filteredPatterns[patternIndex].matcher(path).matches();
+          }
+        });
+        if (matched) {
+          return true;
+        }
+      }
+      for (Pattern pattern : _unfilteredPatterns) {
+        if (pattern.matcher(path).matches()) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  /**
+   * the rules of a root domain (or the global rules), by host
+   */
+  static final class RuleGroup {
+
+    private PathRules                    _anyHost = null;
+    private HashMap<String,PathRules>    _byHost = null;
+    private Pattern                      _hostPatterns[] = null;
+    private PathRules                    _hostPatternRules[] = null;
+
+    // build state
+    private LinkedHashMap<String,Pattern>   _hostPatternMap = new LinkedHashMap<String,Pattern>();
+    private HashMap<String,PathRules>       _hostPatternRuleMap = new HashMap<String,PathRules>();
+
+    void add(DomainURLPatternItem item) {
+      PathRules rules;
+      if (item.domainPatternObj == null) {
+        if (_anyHost == null) {
+          _anyHost = new PathRules();
+        }
+        rules = _anyHost;
+      }
+      else {
+        String host = literalOf(item.domainRegEx);
+        if (host != null) {
+          if (_byHost == null) {
+            _byHost = new HashMap<String,PathRules>();
+          }
+          rules = _byHost.get(host);
+          if (rules == null) {
+            rules = new PathRules();
+            _byHost.put(host,rules);
+          }
+        }
+        else {
+          rules = _hostPatternRuleMap.get(item.domainRegEx);
+          if (rules == null) {
+            rules = new PathRules();
+            _hostPatternMap.put(item.domainRegEx,item.domainPatternObj);
+            _hostPatternRuleMap.put(item.domainRegEx,rules);
+          }
+        }
+      }
+      rules.add(item.pathRegEx,item.pathPatternObj);
+    }
+
+    RuleGroup compile() {
+      if (_anyHost != null) {
+        _anyHost = _anyHost.compile();
+      }
+      if (_byHost != null) {
+        for (Map.Entry<String,PathRules> entry : _byHost.entrySet()) {
+          entry.setValue(entry.getValue().compile());
+        }
+      }
+      if (_hostPatternMap.size() != 0) {
+        _hostPatterns = new Pattern[_hostPatternMap.size()];
+        _hostPatternRules = new PathRules[_hostPatternMap.size()];
+        int index = 0;
+        for (Map.Entry<String,Pattern> entry : _hostPatternMap.entrySet()) {
+          _hostPatterns[index] = entry.getValue();
+          _hostPatternRules[index] = _hostPatternRuleMap.get(entry.getKey()).compile();
+          index++;
+        }
+      }
+      _hostPatternMap = null;
+      _hostPatternRuleMap = null;
+      return this;
+    }
+
+    /** add the rules that apply to the given host **/
+    void collect(String host,ArrayList<PathRules> rulesOut) {
+      if (_anyHost != null) {
+        rulesOut.add(_anyHost);
+      }
+      if (_byHost != null) {
+        PathRules rules = _byHost.get(host);
+        if (rules != null) {
+          rulesOut.add(rules);
+        }
+      }
+      if (_hostPatterns != null) {
+        for (int i=0;i<_hostPatterns.length;++i) {
+          if (_hostPatterns[i].matcher(host).matches()) {
+            rulesOut.add(_hostPatternRules[i]);
+          }
+        }
+      }
+    }
+  }
+
+  private static final PathRules[] NO_RULES = new PathRules[0];
+  private static final PathRules[] ALL_RULES = new PathRules[] { PathRules.MATCH_ALL };
+
+  private final RuleGroup                     _globalRules;
+  private final HashMap<String,RuleGroup>     _domainRules = new HashMap<String,RuleGroup>();
+  private final LRUCache<String,PathRules[]>  _hostCache = new LRUCache<String,PathRules[]>(HOST_CACHE_SIZE);
+
+  URLPatternMatcher(Collection<DomainURLPatternItem> globalItems,Map<String,? extends Collection<DomainURLPatternItem>> domainItems) {
+    _globalRules = new RuleGroup();
+    for (DomainURLPatternItem item : globalItems) {
+      _globalRules.add(item);
+    }
+    _globalRules.compile();
+
+    for (Map.Entry<String,? extends Collection<DomainURLPatternItem>> entry : domainItems.entrySet()) {
+      RuleGroup group = new RuleGroup();
+      for (DomainURLPatternItem item : entry.getValue()) {
+        group.add(item);
+      }
+      _domainRules.put(entry.getKey(),group.compile());
+    }
+  }
+
+  /** true if any rule matches the url **/
+  boolean matches(String rootDomain,String host,String path) {
+    String hostKey = rootDomain + "," + host;
+    PathRules rules[] = _hostCache.get(hostKey);
+    if (rules == null) {
+      rules = resolveRules(rootDomain,host);
+      _hostCache.put(hostKey,rules);
+    }
+    for (PathRules pathRules : rules) {
+      if (pathRules.matches(path)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private PathRules[] resolveRules(String rootDomain,String host) {
+    ArrayList<PathRules> rules = new ArrayList<PathRules>();
+    _globalRules.collect(host,rules);
+    RuleGroup domainRules = _domainRules.get(rootDomain);
+    if (domainRules != null) {
+      domainRules.collect(host,rules);
+    }
+    if (rules.size() == 0) {
+      return NO_RULES;
+    }
+    for (PathRules pathRules : rules) {
+      if (pathRules.isMatchAll()) {
+        // every url on the host is blocked
+        return ALL_RULES;
+      }
+    }
+    return rules.toArray(new PathRules[rules.size()]);
+  }
+
+  private static Pattern[] buildAlternations(ArrayList<String> regExs) {
+    ArrayList<Pattern> patterns = new ArrayList<Pattern>();
+    StringBuilder alternation = new StringBuilder();
+    int alternationSize = 0;
+    for (String regEx : regExs) {
+      // back references are numbered, and group names must be unique within a
+      // pattern, so neither can be merged with other patterns
+      if (regEx.matches(".*\\\\([0-9]|k<).*") || regEx.matches(".*\\(\\?<[a-zA-Z].*")) {
+        patterns.add(Pattern.compile(regEx));
+        continue;
+      }
+      if (alternationSize != 0) {
+        alternation.append('|');
+      }
+      alternation.append("(?:").append(regEx).append(')');
+      if (++alternationSize == MAX_ALTERNATION_SIZE) {
+        patterns.add(Pattern.compile(alternation.toString()));
+        alternation.setLength(0);
+        alternationSize = 0;
+      }
+    }
+    if (alternationSize != 0) {
+      patterns.add(Pattern.compile(alternation.toString()));
+    }
+    return patterns.toArray(new Pattern[patterns.size()]);
+  }
+
+  private static final String META_CHARS = "[](){}.*+?^$|";
+  private static final String MULTI_CHAR_ESCAPES = "0123456789xucpPkN";
+
+  /**
+   * @return the string the regex matches, or null if the regex is not a plain
+   *         (possibly escaped) literal
+   */
+  static String literalOf(String regEx) {
+    StringBuilder literal = new StringBuilder(regEx.length());
+    for (int i=0;i<regEx.length();++i) {
+      char c = regEx.charAt(i);
+      if (c == '\\') {
+        if (++i == regEx.length()) {
+          return null;
+        }
+        c = regEx.charAt(i);
+        // \d, \w, \Q, back references etc.
+        if (Character.isLetterOrDigit(c)) {
+          return null;
+        }
+      }
+      else if (META_CHARS.indexOf(c) != -1) {
+        return null;
+      }
+      literal.append(c);
+    }
+    return literal.toString();
+  }
+
+  /**
+   * @return the longest literal that every string matching the regex must
+   *         contain, or null if there is none (long enough). conservative -
+   *         alternations, groups, classes and optional characters are not
+   *         looked into.
+   */
+  static String requiredLiteralOf(String regEx) {
+    if (regEx.indexOf('|') != -1 || regEx.indexOf("\\Q") != -1) {
+      return null;
+    }
+    // flags (case insensitivity in particular) change what a literal matches
+    for (int i=regEx.indexOf("(?");i != -1;i=regEx.indexOf("(?",i + 1)) {
+      if (i + 2 < regEx.length() && ":=!<".indexOf(regEx.charAt(i + 2)) == -1) {
+        return null;
+      }
+    }
+
+    String best = "";
+    StringBuilder run = new StringBuilder();
+    int depth = 0;
+
+    for (int i=0;i<regEx.length();++i) {
+      char c = regEx.charAt(i);
+      boolean isLiteral = false;
+
+      if (c == '\\') {
+        if (++i == regEx.length()) {
+          return null;
+        }
+        c = regEx.charAt(i);
+        // hex, unicode, octal, control char escapes, back references and
+        // properties span the characters that follow, so don't try to parse them
+        if (MULTI_CHAR_ESCAPES.indexOf(c) != -1) {
+          return null;
+        }
+        isLiteral = (depth == 0 && !Character.isLetterOrDigit(c));
+      }
+      else if (c == '[') {
+        i = endOfCharacterClass(regEx,i);
+        if (i == -1) {
+          return null;
+        }
+      }
+      else if (c == '{') {
+        i = regEx.indexOf('}',i);
+        if (i == -1) {
+          return null;
+        }
+      }
+      else if (c == '(') {
+        depth++;
+      }
+      else if (c == ')') {
+        depth--;
+      }
+      else {
+        isLiteral = (depth == 0 && META_CHARS.indexOf(c) == -1);
+      }
+
+      boolean endRun = !isLiteral;
+      if (isLiteral) {
+        char next = (i + 1 < regEx.length()) ? regEx.charAt(i + 1) : 0;
+        if (next == '?' || next == '*' || next == '{') {
+          // the character is optional
+          endRun = true;
+        }
+        else {
+          run.append(c);
+          // repeated, so whatever follows is not adjacent to it
+          endRun = (next == '+');
+        }
+      }
+      if (endRun) {
+        if (run.length() > best.length()) {
+          best = run.toString();
+        }
+        run.setLength(0);
+      }
+    }
+    if (run.length() > best.length()) {
+      best = run.toString();
+    }
+    return (best.length() >= MIN_REQUIRED_LITERAL_LENGTH) ? best : null;
+  }
+
+  /** index of the ] closing the character class starting at the given index, or -1 **/
+  private static int endOfCharacterClass(String regEx,int start) {
+    int i = start + 1;
+    if (i < regEx.length() && regEx.charAt(i) == '^') {
+      i++;
+    }
+    // a leading ] is part of the class
+    if (i < regEx.length() && regEx.charAt(i) == ']') {
+      i++;
+    }
+    int nesting = 0;
+    for (;i<regEx.length();++i) {
+      char c = regEx.charAt(i);
+      if (c == '\\') {
+        i++;
+      }
+      else if (c == '[') {
+        nesting++;
+      }
+      else if (c == ']') {
+        if (nesting-- == 0) {
+          return i;
+        }
+      }
+    }
+    return -1;
+  }
+}
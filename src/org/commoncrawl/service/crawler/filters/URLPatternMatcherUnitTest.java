@@ -0,0 +1,207 @@
+/**
+ * Copyright 2008 - CommonCrawl Foundation
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ **/
+package org.commoncrawl.service.crawler.filters;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import org.commoncrawl.service.crawler.filters.Filter.FilterResult;
+import org.commoncrawl.util.MultiSubstringMatcher;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Checks the literal extraction and the compiled URLPatternMatcher against
+ * the original (uncompiled) URLPatternBlockFilter logic.
+ *
+ * @author rana
+ *
+ */
+public class URLPatternMatcherUnitTest {
+
+  // regexes exercising escapes, classes, groups and quantifiers
+  private static final String[] REGEXES = {
+    "/review.php",
+    "/review\\.php.*",
+    ".*\\.gif",
+    ".*/cgi-bin/.*",
+    "/\\x41bc.*",
+    "/\\u00e9t\\u00e9.*",
+    "/\\0101bcd.*",
+    "/\\cXabcd.*",
+    "/(?<name>ab)\\k<name>cdef.*",
+    "/(ab)\\1cdef.*",
+    "/foo\\d+barbaz.*",
+    "/abcd?efg.*",
+    "/ab+cdef.*",
+    "/x{2}yzzy.*",
+    "/[abc]+shop/.*",
+    "/(?i)CaSeLeSs.*",
+    "/(?:one|two)three.*",
+    "/\\p{Lower}lower.*",
+    "/\\Qa.b\\E.*",
+    "/\\$dollar\\^.*",
+    "/(?=abc)abcdef.*",
+  };
+
+  private static final String ALPHABET = "abcdefgxyzABC/.$^0123456789\u00e9";
+
+  private static String randomString(Random random,int maxLength) {
+    StringBuilder string = new StringBuilder();
+    int length = random.nextInt(maxLength + 1);
+    for (int i=0;i<length;++i) {
+      string.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+    }
+    return string.toString();
+  }
+
+  /** paths built from fragments of the regexes, so that some of them match **/
+  private static ArrayList<String> candidatePaths(Random random) {
+    ArrayList<String> paths = new ArrayList<String>();
+    String fragments[] = {
+      "/", "review", ".php", ".gif", "cgi-bin", "Abc", "abc", "\u00e9t\u00e9", "Abcd", "\u0018abcd",
+      "ab", "abab", "cdef", "foo", "123", "barbaz", "abcefg", "abcdefg", "abbbcdef", "xxyzzy",
+      "cshop", "CASELESS", "caseless", "onethree", "twothree", "z", "lower", "a.b", "$dollar^", "abcdef"
+    };
+    for (int i=0;i<20000;++i) {
+      StringBuilder path = new StringBuilder("/");
+      int fragmentCount = random.nextInt(4);
+      for (int j=0;j<fragmentCount;++j) {
+        path.append(fragments[random.nextInt(fragments.length)]);
+      }
+      if (random.nextBoolean()) {
+        path.append(randomString(random,4));
+      }
+      paths.add(path.toString());
+    }
+    return paths;
+  }
+
+  @Test
+  public void testLiteralOf() throws Exception {
+    Assert.assertEquals("/review.php",URLPatternMatcher.literalOf("/review\\.php"));
+    Assert.assertNull(URLPatternMatcher.literalOf("/\\x41bc"));
+    Assert.assertNull(URLPatternMatcher.literalOf(".*\\.gif"));
+
+    Random random = new Random(1);
+    for (String regEx : REGEXES) {
+      String literal = URLPatternMatcher.literalOf(regEx);
+      if (literal == null)
+        continue;
+      Pattern pattern = Pattern.compile(regEx);
+      Assert.assertTrue(regEx,pattern.matcher(literal).matches());
+      for (String path : candidatePaths(random)) {
+        Assert.assertEquals(regEx + " " + path,pattern.matcher(path).matches(),path.equals(literal));
+      }
+    }
+  }
+
+  @Test
+  public void testRequiredLiteralOf() throws Exception {
+    // multi character escapes must not leak into the literal
+    Assert.assertNull(URLPatternMatcher.requiredLiteralOf("/\\x41bc"));
+    Assert.assertNull(URLPatternMatcher.requiredLiteralOf("/\\u00e9t\\u00e9"));
+    Assert.assertNull(URLPatternMatcher.requiredLiteralOf("/\\0101bcd"));
+    Assert.assertNull(URLPatternMatcher.requiredLiteralOf("/\\cXabcd"));
+    Assert.assertNull(URLPatternMatcher.requiredLiteralOf("/(?<name>ab)\\k<name>cdef"));
+    Assert.assertNull(URLPatternMatcher.requiredLiteralOf("/(?i)CaSeLeSs.*"));
+    Assert.assertEquals("barbaz",URLPatternMatcher.requiredLiteralOf("/foo\\d+barbaz.*"));
+    Assert.assertEquals("/cgi-bin/",URLPatternMatcher.requiredLiteralOf(".*/cgi-bin/.*"));
+    Assert.assertEquals(".gif",URLPatternMatcher.requiredLiteralOf(".*\\.gif"));
+
+    Random random = new Random(2);
+    ArrayList<String> paths = candidatePaths(random);
+    for (String regEx : REGEXES) {
+      String literal = URLPatternMatcher.requiredLiteralOf(regEx);
+      if (literal == null)
+        continue;
+      Pattern pattern = Pattern.compile(regEx);
+      for (String path : paths) {
+        if (pattern.matcher(path).matches()) {
+          Assert.assertTrue(regEx + " " + path + " " + literal,path.contains(literal));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testMultiSubstringMatcher() throws Exception {
+    Random random = new Random(3);
+    for (int trial=0;trial<200;++trial) {
+      final String strings[] = new String[1 + random.nextInt(20)];
+      for (int i=0;i<strings.length;++i) {
+        strings[i] = "a" + randomString(random,5);
+      }
+      MultiSubstringMatcher matcher = new MultiSubstringMatcher(strings);
+      for (int i=0;i<200;++i) {
+        final String input = randomString(random,40);
+        final boolean found[] = new boolean[strings.length];
+        matcher.scan(input,new MultiSubstringMatcher.MatchHandler() {
+
+          @Override
+          public boolean onMatch(int stringIndex) {
+            found[stringIndex] = true;
+            return false;
+          }
+        });
+        boolean any = false;
+        for (int j=0;j<strings.length;++j) {
+          Assert.assertEquals(strings[j] + " " + input,input.contains(strings[j]),found[j]);
+          any |= found[j];
+        }
+        Assert.assertEquals(any,matcher.matches(input));
+      }
+    }
+  }
+
+  @Test
+  public void testCompiledMatchesUncompiled() throws Exception {
+    Random random = new Random(4);
+    String hosts[] = { "", "www.foo.com", "photos.foo.com", "bar.com", "www.bar.com" };
+    String hostRegExs[] = { "", "", "www.foo.com", "photos\\.foo\\.com", ".*\\.bar\\.com" };
+    String roots[] = { "*", "foo.com", "bar.com" };
+
+    for (int trial=0;trial<20;++trial) {
+      URLPatternBlockFilter filter = new URLPatternBlockFilter();
+      int ruleCount = 1 + random.nextInt(REGEXES.length);
+      for (int i=0;i<ruleCount;++i) {
+        filter.loadFilterItem(roots[random.nextInt(roots.length)] + ","
+            + hostRegExs[random.nextInt(hostRegExs.length)] + ","
+            + REGEXES[random.nextInt(REGEXES.length)]);
+      }
+      for (String path : candidatePaths(random)) {
+        String root = roots[1 + random.nextInt(roots.length - 1)];
+        String host = hosts[random.nextInt(hosts.length)];
+        FilterResult expected = filter.filterItemUncompiled(root,host,path);
+        Assert.assertEquals(root + " " + host + " " + path,expected,filter.filterItem(root,host,path,null,null));
+      }
+    }
+  }
+
+  @Test
+  public void testNamedGroupsAreNotFolded() throws Exception {
+    // no required literals, so both end up in the same (unfiltered) alternation
+    URLPatternBlockFilter filter = new URLPatternBlockFilter();
+    filter.loadFilterItem("*,,/(?<id>[0-9]+)x.*");
+    filter.loadFilterItem("*,,/(?<id>[a-z]+)y");
+    Assert.assertEquals(FilterResult.Filter_Reject,filter.filterItem("foo.com","","/123x",null,null));
+    Assert.assertEquals(FilterResult.Filter_Reject,filter.filterItem("foo.com","","/abcy",null,null));
+    Assert.assertEquals(FilterResult.Filter_NoAction,filter.filterItem("foo.com","","/123y",null,null));
+  }
+}
@@ -51,6 +51,7 @@ import org.apache.log4j.spi.LoggingEvent;
 import org.commoncrawl.async.Timer;
 import org.commoncrawl.crawl.common.internal.CrawlEnvironment;
 import org.commoncrawl.io.NIODNSAsyncResolver;
+import org.commoncrawl.io.NIODNSPipelinedResolver;
 import org.commoncrawl.io.NIODNSQueryLogger;
 import org.commoncrawl.io.NIODNSQueryResult;
 import org.commoncrawl.io.NIODNSCache;
@@ -142,6 +143,8 @@ implements DNSService,
   long        _directoryServiceCallbackCookie = 0;
   long        _lastFullStatsDumpTime = -1;
   int         _resolverQueueSize = DEFAULT_RESOLVER_QUEUE_SIZE; 
+  /** use the udp pipelined resolver instead of one tcp socket per resolver **/
+  boolean     _usePipelinedResolver = false;
   
   AsyncClientChannel _directoryServiceChannel;
   DirectoryServiceServer.AsyncStub _directoryServiceStub;
@@ -318,6 +321,9 @@ implements DNSService,
       else if (argv[i].equalsIgnoreCase("--queueSize")) {
         _resolverQueueSize = Integer.parseInt(argv[++i]);
       }
+      else if (argv[i].equalsIgnoreCase("--pipelined")) {
+        _usePipelinedResolver = true;
+      }
     }
     return (_serversFile != null && _directoryServiceAddress != null);
   }
@@ -1024,8 +1030,16 @@ implements DNSService,
     _resolverQueue = new PriorityQueue<NIODNSResolver>(_resolverQueueSize);
     
     // populate resolvers queue 
-    for (int i=0;i<_resolverQueueSize;++i) { 
-      _resolverQueue.add(new NIODNSAsyncResolver(_eventLoop, servers.get(i%servers.size())));
+    if (_usePipelinedResolver) {
+      // a pipelined resolver multiplexes any number of queries, so one per server is enough
+      for (String server : servers) { 
+        _resolverQueue.add(new NIODNSPipelinedResolver(_eventLoop, server));
+      }
+    }
+    else { 
+      for (int i=0;i<_resolverQueueSize;++i) { 
+        _resolverQueue.add(new NIODNSAsyncResolver(_eventLoop, servers.get(i%servers.size())));
+      }
     }
   }
 
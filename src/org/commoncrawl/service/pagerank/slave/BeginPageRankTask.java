@@ -159,7 +159,12 @@ public class BeginPageRankTask extends PageRankTask<BeginPageRankTask.BeginPageR
       	// revert to iteration zero values file ... 
         valuesRemotePath = new Path(_config.getInputValuesPath(),PageRankUtils.makeUniqueFileName(Constants.PR_VALUE_FILE_PREFIX,0,_server.getNodeIndex()));
       }
-      result._valueMap.open(fileSystem,valuesRemotePath, rangeRemotePath);
+      // in mapped mode, the value map is copied to (and mapped from) the job's local directory
+      File localMapDirectory = null;
+      if (_server.getConfig().getBoolean(PRValueMap.MAPPED_MODE_PARAM, false)) { 
+        localMapDirectory = _server.getActiveJobLocalPath();
+      }
+      result._valueMap.open(fileSystem,valuesRemotePath, rangeRemotePath,localMapDirectory);
       
       // ok now if iteration number is non-zero,
       // recalculate rank from previous iteration's data ...
@@ -111,6 +111,18 @@ public class PageRankSlaveServer  extends CommonCrawlServer implements PageRankS
     return _valueMap;
   }
   
+  /** close the current value map (releasing its local copy if mapped) **/
+  private void releaseValueMap() { 
+    if (_valueMap != null) { 
+      try {
+        _valueMap.close();
+      } catch (IOException e) {
+        LOG.error(CCStringUtils.stringifyException(e));
+      }
+      _valueMap = null;
+    }
+  }
+  
   public int getNodeIndex() { 
     if (_baseConfig != null) {
       return _baseConfig.getSlaveId();
@@ -276,7 +288,7 @@ public class PageRankSlaveServer  extends CommonCrawlServer implements PageRankS
     _activeJobConfig = null;
     _activeTask = null;
     // zero out the value array 
-    _valueMap = null;
+    releaseValueMap();
     // initialize the file system ... 
     try {
       _fileSystem = CrawlEnvironment.getDefaultFileSystem();
@@ -344,6 +356,7 @@ public class PageRankSlaveServer  extends CommonCrawlServer implements PageRankS
             public void execute(BeginPageRankTaskResult result) {
               if (result.succeeded()) { 
                 LOG.error("BeginPageRankTask succeeded");
+                releaseValueMap();
                 _valueMap = result._valueMap;
                 
                 _slaveStatus.setActiveJobId(_activeJobConfig.getJobId());
@@ -353,7 +366,7 @@ public class PageRankSlaveServer  extends CommonCrawlServer implements PageRankS
               }
               else { 
                 LOG.error("BeginPageRankTask failed with Exception:" + result.getErrorDesc());
-                _valueMap = null;
+                releaseValueMap();
                 _slaveStatus.setState(SlaveStatus.State.ERROR);
               }
               LOG.info("Sending Response to Master");
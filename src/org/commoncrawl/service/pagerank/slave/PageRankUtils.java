@@ -30,6 +30,7 @@ import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
 import java.text.NumberFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -164,30 +165,77 @@ public class PageRankUtils {
   }
   
   
+  /**
+   * the values for a slave's shard, as a sorted run of (url fingerprint,float)
+   * items, plus a range file that indexes every VALUES_PER_RANGE'th item
+   *
+   * in heap mode (the default), both files are read into byte arrays, which
+   * limits the shard to 2GB. in mapped mode, the files are copied to a local
+   * directory and memory mapped, the value file in (overlapping) 1GB segments,
+   * so the shard can exceed 2GB and values are read and updated in place
+   * without ever being copied into the heap.
+   *
+   */
   public static final class PRValueMap {
     
+    /** if true, the slave opens its value map in mapped mode **/
+    public static final String MAPPED_MODE_PARAM = "pagerank.slave.mappedValueMap";
+    
     private static final int RANGE_ITEM_SIZE = 20;
     private static final int RANGE_FP_OFFSET = 8;
     private static final int RANGE_POS_OFFSET = 16;
     
+    private static final int VALUE_ITEM_SIZE = 12;
+    private static final int VALUE_FLOAT_OFFSET = 8;
+    
+    /** mapped segments start at 1GB boundaries **/
+    private static final int MAPPED_SEGMENT_SHIFT = 30;
+    /** the heap buffer is a single segment **/
+    private static final int HEAP_SEGMENT_SHIFT = 31;
+    /**
+     * each mapped segment overlaps the next by a full range, so an item (or
+     * range scan) starting in a segment never crosses the end of it
+     */
+    private static final int SEGMENT_OVERLAP = VALUES_PER_RANGE * VALUE_ITEM_SIZE;
+    
     private File rangeFilePath = null;
-    private ByteBuffer valueFileBuffer = null;
+    private File localValueFile = null;
+    private ByteBuffer valueSegments[] = null;
+    private int  segmentShift = HEAP_SEGMENT_SHIFT;
+    private long segmentMask  = (1L << HEAP_SEGMENT_SHIFT) - 1;
+    private long valueFileLength = 0;
     private ByteBuffer rangeFileBuffer = null;
     private int rangeItemCount = 0;
+    /** range indexes at which the (32 bit) range file offsets wrap **/
+    private int rangeOffsetWraps[] = new int[0];
     
     public PRValueMap() { 
-      
+    
     }
     
+    /** open the value map in heap mode **/
     public void open(FileSystem fs,Path valueFilePath,Path rangeFilePath)throws IOException {
-    	
-    	
+      open(fs,valueFilePath,rangeFilePath,null);
+    }
+    
+    /**
+     * open the value map
+     *
+     * @param fs
+     * @param valueFilePath
+     * @param rangeFilePath
+     * @param localMapDirectory if not null, the directory to copy the value and range files to before mapping them
+     * @throws IOException
+     */
+    public void open(FileSystem fs,Path valueFilePath,Path rangeFilePath,File localMapDirectory)throws IOException {
+    
+    
       LOG.info("OPENING PRValueMap - Available Memory:" + Runtime.getRuntime().freeMemory() + " TotalMemory:" + Runtime.getRuntime().totalMemory()) ;
-      
-      
+    
+    
       FileStatus valueFileStatus = fs.getFileStatus(valueFilePath);
       FileStatus rangeFileStatus = fs.getFileStatus(rangeFilePath);
-      
+    
       if (valueFileStatus == null) { 
       	LOG.error("Value File at Path:" + valueFilePath + " not Found!");
       	throw new FileNotFoundException();
@@ -196,10 +244,33 @@ public class PageRankUtils {
       	LOG.error("Range File at Path:" + rangeFilePath + " not Found!");
       	throw new FileNotFoundException();
       }
-      
+      if (rangeFileStatus.getLen() > Integer.MAX_VALUE) {
+        throw new IOException("Range File at Path:" + rangeFilePath + " exceeds 2GB. Size:" + rangeFileStatus.getLen());
+      }
+    
+      valueFileLength = valueFileStatus.getLen();
+    
+      if (localMapDirectory != null) {
+        openMapped(fs,valueFilePath,rangeFilePath,localMapDirectory);
+      }
+      else {
+        openInHeap(fs,valueFilePath,rangeFilePath,valueFileStatus,rangeFileStatus);
+      }
+      // calculate range item count
+      rangeItemCount = (int)rangeFileStatus.getLen() / RANGE_ITEM_SIZE;
+      // and locate the points at which range offsets wrap
+      findRangeOffsetWraps();
+    }
+    
+    private void openInHeap(FileSystem fs,Path valueFilePath,Path rangeFilePath,FileStatus valueFileStatus,FileStatus rangeFileStatus) throws IOException {
+    
+      if (valueFileStatus.getLen() > Integer.MAX_VALUE) {
+        throw new IOException("Value File at Path:" + valueFilePath + " exceeds 2GB. Size:" + valueFileStatus.getLen() + ". Use mapped mode (" + MAPPED_MODE_PARAM + ")");
+      }
+    
       FSDataInputStream valueFile = null;
       FSDataInputStream rangeFile = null;
-      
+    
       try {
         LOG.info("Create R/W Random Access File for values Path:" + valueFilePath);
         valueFile = fs.open(valueFilePath);
@@ -208,31 +279,30 @@ public class PageRankUtils {
         LOG.info("Allocating R/W Buffer of Size:" + valueFileStatus.getLen()  + " for Value File" + " Available Memory:" + Runtime.getRuntime().freeMemory());
         JVMStats.dumpMemoryStats();
         byte [] valueMapData = new byte[(int)valueFileStatus.getLen()];
-        //this.valueFileBuffer = ByteBuffer.allocate((int) valueFileStatus.getLen() );
-        this.valueFileBuffer = ByteBuffer.wrap(valueMapData);
+        ByteBuffer valueFileBuffer = ByteBuffer.wrap(valueMapData);
         LOG.info("Loading R/W Buffer From Value File");
         long loadStart = System.currentTimeMillis();
-        for (int offset=0,totalRead=0;offset<valueFileBuffer.capacity();) { 
-          int bytesToRead = Math.min(16384,valueFileBuffer.capacity() - totalRead);
-          valueFile.read(valueFileBuffer.array(),offset,bytesToRead);
+        for (int offset=0;offset<valueFileBuffer.capacity();) {
+          int bytesToRead = Math.min(16384,valueFileBuffer.capacity() - offset);
+          valueFile.readFully(valueFileBuffer.array(),offset,bytesToRead);
           offset+= bytesToRead;
-          totalRead += bytesToRead;
         }
         LOG.info("Load of Value File Buffer Took:" + (System.currentTimeMillis() - loadStart) + " MS");
-        
+    
+        this.valueSegments = new ByteBuffer[] { valueFileBuffer };
+        this.segmentShift = HEAP_SEGMENT_SHIFT;
+        this.segmentMask = (1L << HEAP_SEGMENT_SHIFT) - 1;
+    
         LOG.info("Mapping R-ONLY Buffer of Size:" + rangeFileStatus.getLen() + " for Range File");
         this.rangeFileBuffer = ByteBuffer.allocate((int) rangeFileStatus.getLen() );
         LOG.info("Loading RangeFile Buffer From Range File");
         loadStart = System.currentTimeMillis();
-        for (int offset=0,totalRead=0;offset<rangeFileBuffer.capacity();) { 
-          int bytesToRead = Math.min(16384,rangeFileBuffer.capacity() - totalRead);
-          rangeFile.read(rangeFileBuffer.array(),offset,bytesToRead);
+        for (int offset=0;offset<rangeFileBuffer.capacity();) {
+          int bytesToRead = Math.min(16384,rangeFileBuffer.capacity() - offset);
+          rangeFile.readFully(rangeFileBuffer.array(),offset,bytesToRead);
           offset+= bytesToRead;
-          totalRead += bytesToRead;
         }
         LOG.info("Load of Range File Buffer Took:" + (System.currentTimeMillis() - loadStart) + " MS");
-        // calculate range item count
-        rangeItemCount = (int)rangeFileStatus.getLen() / RANGE_ITEM_SIZE;
       }
       finally { 
         if (valueFile != null) 
@@ -242,26 +312,143 @@ public class PageRankUtils {
       }
     }
     
+    private void openMapped(FileSystem fs,Path valueFilePath,Path rangeFilePath,File localMapDirectory) throws IOException {
+    
+      localMapDirectory.mkdirs();
+    
+      // always work off of a private copy, since values are updated in place
+      localValueFile = new File(localMapDirectory,valueFilePath.getName() + ".mapped");
+      this.rangeFilePath = new File(localMapDirectory,rangeFilePath.getName() + ".mapped");
+    
+      long copyStart = System.currentTimeMillis();
+      LOG.info("Copying Value File:" + valueFilePath + " to:" + localValueFile);
+      copyToLocalFile(fs,valueFilePath,localValueFile);
+      LOG.info("Copying Range File:" + rangeFilePath + " to:" + this.rangeFilePath);
+      copyToLocalFile(fs,rangeFilePath,this.rangeFilePath);
+      LOG.info("Copy of Value and Range Files Took:" + (System.currentTimeMillis() - copyStart) + " MS");
+    
+      RandomAccessFile valueFile = null;
+      RandomAccessFile rangeFile = null;
+    
+      try {
+        valueFile = new RandomAccessFile(localValueFile,"rw");
+    
+        int segmentCount = (int)((valueFileLength + (1L << MAPPED_SEGMENT_SHIFT) - 1) >>> MAPPED_SEGMENT_SHIFT);
+        LOG.info("Mapping Value File of Size:" + valueFileLength + " in:" + segmentCount + " Segments");
+        this.valueSegments = new ByteBuffer[segmentCount];
+        for (int i=0;i<segmentCount;++i) {
+          long segmentStart = ((long)i) << MAPPED_SEGMENT_SHIFT;
+          long segmentLength = Math.min(valueFileLength - segmentStart,(1L << MAPPED_SEGMENT_SHIFT) + SEGMENT_OVERLAP);
+          valueSegments[i] = valueFile.getChannel().map(MapMode.READ_WRITE,segmentStart,segmentLength);
+        }
+        this.segmentShift = MAPPED_SEGMENT_SHIFT;
+        this.segmentMask = (1L << MAPPED_SEGMENT_SHIFT) - 1;
+    
+        LOG.info("Mapping R-ONLY Range File of Size:" + this.rangeFilePath.length());
+        rangeFile = new RandomAccessFile(this.rangeFilePath,"r");
+        this.rangeFileBuffer = rangeFile.getChannel().map(MapMode.READ_ONLY,0,rangeFile.length());
+      }
+      finally { 
+        // mappings remain valid once the files are closed
+        if (valueFile != null) 
+          valueFile.close();
+        if (rangeFile != null)
+          rangeFile.close();
+      }
+    }
+    
+    private static void copyToLocalFile(FileSystem fs,Path sourcePath,File destination) throws IOException {
+      // delete first, so that we never write through a stale mapping of a previous copy
+      destination.delete();
+    
+      FSDataInputStream input = fs.open(sourcePath);
+      try {
+        FileOutputStream output = new FileOutputStream(destination);
+        try {
+          byte buffer[] = new byte[65536];
+          int bytesRead;
+          while ((bytesRead = input.read(buffer)) != -1) {
+            output.write(buffer,0,bytesRead);
+          }
+        }
+        finally {
+          output.close();
+        }
+      }
+      finally { 
+        input.close();
+      }
+    }
+    
+    /**
+     * range offsets are stored as 32 bit ints, so in shards over 4GB they
+     * wrap. since offsets increase monotonically, each point at which an
+     * offset is smaller than its predecessor marks another 4GB
+     */
+    private void findRangeOffsetWraps() {
+      ArrayList<Integer> wraps = new ArrayList<Integer>();
+      long lastOffset = 0;
+      for (int i=0;i<rangeItemCount;++i) {
+        long offset = rangeFileBuffer.getInt(i*RANGE_ITEM_SIZE + RANGE_POS_OFFSET) & 0xFFFFFFFFL;
+        if (offset < lastOffset) {
+          wraps.add(i);
+        }
+        lastOffset = offset;
+      }
+      rangeOffsetWraps = new int[wraps.size()];
+      for (int i=0;i<rangeOffsetWraps.length;++i) {
+        rangeOffsetWraps[i] = wraps.get(i);
+      }
+    }
+    
+    public boolean isMapped() {
+      return localValueFile != null;
+    }
+    
     void flush(OutputStream stream) throws IOException { 
-      if (valueFileBuffer != null) { 
+      if (valueSegments != null) {
         LOG.info("Flushing valueBuffer");
-
-        LOG.info("Accessing underlying ByteArray");
-        valueFileBuffer.position(0);
-        byte array[] = valueFileBuffer.array();
+    
         long timeStart = System.currentTimeMillis();
-        stream.write(array);
+        if (!isMapped()) {
+          LOG.info("Accessing underlying ByteArray");
+          stream.write(valueSegments[0].array(),0,valueSegments[0].limit());
+        }
+        else {
+          byte buffer[] = new byte[65536];
+          for (int i=0;i<valueSegments.length;++i) {
+            // skip the overlap, it is written as part of the next segment
+            long segmentStart = ((long)i) << segmentShift;
+            int bytesToWrite = (int) Math.min(valueFileLength - segmentStart, 1L << segmentShift);
+            ByteBuffer source = valueSegments[i].duplicate();
+            source.position(0);
+            while (bytesToWrite != 0) {
+              int chunkSize = Math.min(buffer.length,bytesToWrite);
+              source.get(buffer,0,chunkSize);
+              stream.write(buffer,0,chunkSize);
+              bytesToWrite -= chunkSize;
+            }
+          }
+        }
         long timeEnd = System.currentTimeMillis();
-        LOG.info("ValueBuffer Flush took:" + (timeEnd-timeStart) + " Milliseconds - valueBufferSize:" + valueFileBuffer.limit());
+        LOG.info("ValueBuffer Flush took:" + (timeEnd-timeStart) + " Milliseconds - valueBufferSize:" + valueFileLength);
       }
     }
     
     void close() throws IOException { 
-
+    
       LOG.info("CLOSING PRValueMap");
-      
-      valueFileBuffer = null;
+    
+      valueSegments = null;
       rangeFileBuffer = null;
+    
+      if (localValueFile != null) {
+        // the pages stay mapped until the buffers are collected, but the
+        // files can go now
+        localValueFile.delete();
+        localValueFile = null;
+        rangeFilePath.delete();
+      }
     }
     
     enum GetSetOPType { 
@@ -277,19 +464,25 @@ public class PageRankUtils {
     public final void setPRValue(URLFPV2 urlItem, float value) throws IOException { 
       getSetPRValue(urlItem, GetSetOPType.SET, value);
     }
-
+    
     public final void addPRValue(URLFPV2 urlItem, float value) throws IOException { 
       getSetPRValue(urlItem, GetSetOPType.ADD, value);
     }
     
+    private final ByteBuffer segmentFor(long position) {
+      return valueSegments[(int)(position >>> segmentShift)];
+    }
+    
+    private final int segmentOffset(long position) {
+      return (int)(position & segmentMask);
+    }
+    
     public void zeroValues()throws IOException {
-      
-      valueFileBuffer.position(0);
-      while (valueFileBuffer.position() < valueFileBuffer.limit()) { 
-        valueFileBuffer.getLong();
+    
+      for (long position=0;position + VALUE_ITEM_SIZE <= valueFileLength;position += VALUE_ITEM_SIZE) {
         //TODO: SWITCH TO INT FOR TEST
         // valueFileBuffer.putShort((short)0);
-        valueFileBuffer.putFloat(0.0f);
+        segmentFor(position).putFloat(segmentOffset(position) + VALUE_FLOAT_OFFSET,0.0f);
       }
     }
     
@@ -298,82 +491,76 @@ public class PageRankUtils {
     static Map<Long,Float> debugMap = new TreeMap<Long,Float>();
     
     public void finalizePageRank()throws IOException {
-      valueFileBuffer.position(0);
-      
-      int itemCount = 0;
-      
-      while (valueFileBuffer.position() < valueFileBuffer.limit()) { 
-        long fingerprint = valueFileBuffer.getLong();
-        valueFileBuffer.mark();
+    
+      for (long position=0;position + VALUE_ITEM_SIZE <= valueFileLength;position += VALUE_ITEM_SIZE) {
+        ByteBuffer segment = segmentFor(position);
+        int valueOffset = segmentOffset(position) + VALUE_FLOAT_OFFSET;
         //TODO: SWITCH TO INT FOR TEST
         // int accumulatedRank = valueFileBuffer.getShort();
-        float accumulatedRank = valueFileBuffer.getFloat();
+        float accumulatedRank = segment.getFloat(valueOffset);
         // TODO: hack use default pr formula for now ...
         float finalRank =  (.150f + (.85f * (float)accumulatedRank));
-        
-        valueFileBuffer.reset();
-        valueFileBuffer.putFloat(finalRank);
+    
+        segment.putFloat(valueOffset,finalRank);
       }
     }
     
     final float getSetPRValue(URLFPV2 urlItem,GetSetOPType opType,float valueIn) throws IOException{
-      
+    
     	//long timeStart = System.currentTimeMillis();
       int rangeIdx = findRangePosition(urlItem);
       //long timeEnd = System.currentTimeMillis();
-      
+    
       if (rangeIdx == -1) { 
         throw new IOException("Unable to locate PR Value for domain:" + urlItem.getDomainHash() + " fingerprint:" + urlItem.getUrlHash());
       }
-      
+    
       //DBG
       if (1 == 0) { 
 	      URLFPV2 rangeFP = new URLFPV2();
 	      populateFPForRange(rangeFileBuffer,rangeFP, rangeIdx);
 	      //LOG.info("Range for Domain:" + urlItem.getDomainHash() + " FP:" + urlItem.getUrlHash() + " is Domain:" + rangeFP.getDomainHash() + " FP:" + rangeFP.getUrlHash() );
       }
-      
+    
       //get the search start positon via the range
-      int rangeOffset = rangeFileBuffer.getInt(rangeIdx*RANGE_ITEM_SIZE + RANGE_POS_OFFSET);
+      long rangeOffset = getRangeOffsetFromRangeIndex(rangeIdx);
       // now start walking items in range ... 
       //LOG.info("RangeOffset for domain:" + urlItem.getDomainHash() + " fingerprint:" + urlItem.getUrlHash() + " is:" + rangeOffset);
-      
-      // seek to range offset ... 
-      valueFileBuffer.position(rangeOffset);
-      
+    
+      // the whole range lives in the segment the range starts in  ...
+      ByteBuffer segment = segmentFor(rangeOffset);
+      int itemOffset = segmentOffset(rangeOffset);
+    
       //timeStart = System.currentTimeMillis();
-      
+    
       // walk up to max number of items in range ... 
       for (int itemIdx=0;itemIdx<VALUES_PER_RANGE;++itemIdx) { 
         // read the urlf fp ... 
-        long urlFPValue = valueFileBuffer.getLong();
-
+        long urlFPValue = segment.getLong(itemOffset);
+        int  valueOffset = itemOffset + VALUE_FLOAT_OFFSET;
+    
         if (urlItem.getUrlHash() == urlFPValue) { 
-        	
+    
         	//timeEnd = System.currentTimeMillis();
         	///LOG.info("Scan took:" + (timeEnd-timeStart));
           if (opType == GetSetOPType.SET) {
-            valueFileBuffer.putFloat(valueIn);
+            segment.putFloat(valueOffset,valueIn);
             return 0;
           }
           else if (opType == GetSetOPType.GET) {
-            return valueFileBuffer.getFloat();
+            return segment.getFloat(valueOffset);
           }
-          else { // ADD
-           valueFileBuffer.mark();
-           float value = valueFileBuffer.getFloat();
-           valueFileBuffer.reset();
-           valueFileBuffer.putFloat((Math.min(value + valueIn,Float.MAX_VALUE)));
+          else { // ADD (in place)
+           float value = segment.getFloat(valueOffset);
+           segment.putFloat(valueOffset,(Math.min(value + valueIn,Float.MAX_VALUE)));
            return 0;
           }
         }
         // otherwise skip the value ... 
-        else {
-          valueFileBuffer.getFloat();
-        }
-        
+        itemOffset += VALUE_ITEM_SIZE;
+    
         // if we reached trailing end of buffer ... we are done 
-        if(valueFileBuffer.remaining() == 0) { 
+        if(itemOffset >= segment.limit()) {
           throw new IOException("Reached end of Value Buffer Looking for Value");
         }
       }
@@ -386,29 +573,21 @@ public class PageRankUtils {
       	populateFPForRange(rangeFileBuffer,rangeFPDBG, rangeIdx + 1);
       	LOG.error("Range At Index:" + (rangeIdx + 1) + " DomainHash:" + rangeFPDBG.getDomainHash() + " URLHash:" + rangeFPDBG.getUrlHash());
       }
-      LOG.error("Dumping Next 600 bytes at offset:" + rangeOffset);
-
-      /*
-      // re-seek to range offset ... 
-      valueFileBuffer.position(rangeOffset);
-      LOG.error("\n" + dumpAsHex(valueFileBuffer, Math.min(600,valueFileBuffer.remaining())));
-      */
-      
-      LOG.error("Dumping Values:");
-      // re-seek to range offset ... 
-      valueFileBuffer.position(rangeOffset);
-      
-      
+    
+      LOG.error("Dumping Values at offset:" + rangeOffset);
+    
       // walk up to max number of items in range ... 
-      for (int itemIdx=0;itemIdx<VALUES_PER_RANGE  && valueFileBuffer.remaining() != 0;++itemIdx) { 
+      itemOffset = segmentOffset(rangeOffset);
+      for (int itemIdx=0;itemIdx<VALUES_PER_RANGE  && itemOffset + VALUE_ITEM_SIZE <= segment.limit();++itemIdx) {
         // read the urlf fp ... 
-        long urlFPValue = valueFileBuffer.getLong();
+        long urlFPValue = segment.getLong(itemOffset);
         // and the value 
-        float value = valueFileBuffer.getFloat();
+        float value = segment.getFloat(itemOffset + VALUE_FLOAT_OFFSET);
         LOG.error("Item:" + itemIdx +" FP:" + urlFPValue + " Value:" + value);
+        itemOffset += VALUE_ITEM_SIZE;
       }
       LOG.error("Dump Complete");
-        
+    
       throw new IOException("Reached the End of Range looking for designated PRValue");
     }
     
@@ -459,8 +638,12 @@ public class PageRankUtils {
         return buf.toString() ;
     }
     
-    int getRangeOffsetFromRangeIndex(int rangeIndex) { 
-      return rangeFileBuffer.getInt(rangeIndex*RANGE_ITEM_SIZE + RANGE_POS_OFFSET);
+    long getRangeOffsetFromRangeIndex(int rangeIndex) { 
+      long offset = rangeFileBuffer.getInt(rangeIndex*RANGE_ITEM_SIZE + RANGE_POS_OFFSET) & 0xFFFFFFFFL;
+      for (int i=0;i<rangeOffsetWraps.length && rangeOffsetWraps[i] <= rangeIndex;++i) { 
+        offset += 1L << 32;
+      }
+      return offset;
     }
     
     static final void populateFPForRange(ByteBuffer sourceBuffer, URLFPV2 placeHolder,int rangeIndex) { 
@@ -2961,17 +3144,25 @@ public class PageRankUtils {
       
       FileSystem fs = FileSystem.get(conf);
       
+      // optional local directory to map the value map from (mapped mode)
+      File localMapDir = (args.length > 5) ? new File(args[5]) : null;
+      LOG.info("LocalMapDir:" + localMapDir);
+      
       PRValueMap valueMap = new PRValueMap();
       
       LOG.info("Initializing Value Map");
-      valueMap.open(FileSystem.get(conf),valueFile, rangeFile);
-      LOG.info("Initialized Value Map");
+      long openStart = System.currentTimeMillis();
+      valueMap.open(FileSystem.get(conf),valueFile, rangeFile,localMapDir);
+      LOG.info("Initialized Value Map. Mapped:" + valueMap.isMapped() + " Took:" + (System.currentTimeMillis() - openStart) 
+          + " FreeMemory:" + Runtime.getRuntime().freeMemory() + " TotalMemory:" + Runtime.getRuntime().totalMemory());
       
       LOG.info("Calculating Rank");
       long timeStart = System.currentTimeMillis();
       calculateRank(conf,fs,valueMap, null, remoteOutputDir, 0, totalNodeCount, 0, superDomainFilter, null);
       long timeEnd = System.currentTimeMillis();
-      LOG.info("Done Calculating Rank. Took:" + (timeEnd-timeStart));
+      LOG.info("Done Calculating Rank. Mapped:" + valueMap.isMapped() + " Took:" + (timeEnd-timeStart));
+      
+      valueMap.close();
     }
     catch (IOException e) { 
       LOG.error(CCStringUtils.stringifyException(e));
@@ -21,4 +21,10 @@ package org.commoncrawl.service.queryserver;
 public final class Common {
   public static final int MAX_CONCURRENT_QUERIES = 100;
   public static final int MAX_CONCURRENT_SORT_THREADS = 10;
+  // shard results larger than this are spilled to hdfs instead of held for the master 
+  public static final int MAX_STREAMED_RESULTS_SIZE = 32 * 1024 * 1024;
+  // max size of a streamed results page 
+  public static final int STREAMED_RESULTS_PAGE_SIZE = 1024 * 1024;
+  // streamed results the master has not fetched within this interval are dropped 
+  public static final long STREAMED_RESULTS_EXPIRY_MS = 5 * 60 * 1000;
 }
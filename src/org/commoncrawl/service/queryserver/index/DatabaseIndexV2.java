@@ -93,6 +93,9 @@ public class DatabaseIndexV2 {
     public static String                                    INDEX_NAME_INLINK_DATA                         = "INLINK_DATA";
 
     private Map<String, ArrayList<ShardIndexHostNameTuple>> _indexToShardMapping                           = new TreeMap<String, ArrayList<ShardIndexHostNameTuple>>();
+    
+    // open readers and index files, shared across queries
+    private ShardReaderCache                                _readerCache;
 
     public MasterDatabaseIndex(Configuration conf, FileSystem remoteFS,
         int driveCount, long databaseTimestamp,Set<String> slavesList) throws IOException {
@@ -100,6 +103,7 @@ public class DatabaseIndexV2 {
       _remoteFS = remoteFS;
       _driveCount = driveCount;
       _databaseTimestamp = databaseTimestamp;
+      _readerCache = new ShardReaderCache("MasterDatabaseIndex-" + databaseTimestamp, conf);
 
       // ok populate affinity map indexes
       _indexToShardMapping.put(INDEX_NAME_URLFPV2,
@@ -156,6 +160,15 @@ public class DatabaseIndexV2 {
       return _indexToShardMapping.get(indexName);
     }
 
+    public ShardReaderCache getReaderCache() {
+      return _readerCache;
+    }
+
+    /** release cached readers **/
+    public void close() {
+      _readerCache.close();
+    }
+
     public final TextBytes queryURLGivenURLFP(URLFPV2 fingerprint)
         throws IOException {
       // establish parition id
@@ -168,7 +181,7 @@ public class DatabaseIndexV2 {
           + _databaseTimestamp + "/part-"
           + _numberFormat.get().format(paritionId) + ".index");
 
-      CompressURLListV2.Index.IndexFile index = new CompressURLListV2.Index.IndexFile(
+      CompressURLListV2.Index.IndexFile index = _readerCache.getIndexFile(
           new File(indexPath.toString()));
 
       return index.mapURLFPToURL(fingerprint, null);
@@ -210,7 +223,7 @@ public class DatabaseIndexV2 {
           + _databaseTimestamp + "/part-"
           + _numberFormat.get().format(paritionId) + ".index");
 
-      CompressURLListV2.Index.IndexFile index = new CompressURLListV2.Index.IndexFile(
+      CompressURLListV2.Index.IndexFile index = _readerCache.getIndexFile(
           new File(indexPath.toString()));
 
       TextBytes dataOut = index.mapURLFPToURL(fingerprint, null);
@@ -418,36 +431,27 @@ public class DatabaseIndexV2 {
           + indexName + "/" + _databaseTimestamp + "/part-"
           + _numberFormat.get().format(shardId));
 
-      // open file
-      FSDataInputStream inputStream = localFS.open(filePath);
+      // get the (shared) reader
+      ShardReaderCache.FileHandle handle = _readerCache.acquireTFile(localFS, filePath, _conf);
 
       try {
-
-        TFile.Reader reader = new TFile.Reader(inputStream, localFS
-            .getFileStatus(filePath).getLen(), _conf);
+        // scanner
+        TFile.Reader.Scanner scanner = handle.getReader().createScanner();
 
         try {
-          // scanner
-          TFile.Reader.Scanner scanner = reader.createScanner();
-
-          try {
-            // seek to key
-            if (scanner.seekTo(keyData.getData(), 0, keyData.getLength())) {
-              BytesWritable dataOut = new BytesWritable();
-              // ok return raw data
-              scanner.entry().getValue(dataOut);
-              // and return it
-              return new FlexBuffer(dataOut.getBytes(), 0, dataOut.getLength());
-            }
-          } finally {
-            scanner.close();
+          // seek to key
+          if (scanner.seekTo(keyData.getData(), 0, keyData.getLength())) {
+            BytesWritable dataOut = new BytesWritable();
+            // ok return raw data
+            scanner.entry().getValue(dataOut);
+            // and return it
+            return new FlexBuffer(dataOut.getBytes(), 0, dataOut.getLength());
           }
-
         } finally {
-          reader.close();
+          scanner.close();
         }
       } finally {
-        inputStream.close();
+        handle.release();
       }
       return null;
     }
@@ -737,6 +741,8 @@ public class DatabaseIndexV2 {
     FileSystem                       _fs;
     long                             _databaseTimestamp;
     int                              _shardIds[];
+    // open readers, shared across queries
+    ShardReaderCache                 _readerCache;
 
     static ThreadLocal<NumberFormat> _numberFormat = new ThreadLocal<NumberFormat>() {
                                                      protected NumberFormat initialValue() {
@@ -758,6 +764,16 @@ public class DatabaseIndexV2 {
       _conf = conf;
       _fs = remoteFS;
       _databaseTimestamp = databaseTimestamp;
+      _readerCache = new ShardReaderCache("SlaveDatabaseIndex-" + databaseTimestamp, conf);
+    }
+
+    public ShardReaderCache getReaderCache() {
+      return _readerCache;
+    }
+
+    /** release cached readers **/
+    public void close() {
+      _readerCache.close();
     }
 
     public FlexBuffer queryURLListSortedByName(long domainFP)
@@ -784,56 +800,49 @@ public class DatabaseIndexV2 {
           + "/" + indexName + "/IndexData"
           + _numberFormat.get().format(shardIndex));
 
-      FSDataInputStream indexInputStream = _fs.open(indexPath);
+      // get the (shared) index reader and data file
+      ShardReaderCache.FileHandle indexHandle = _readerCache.acquireTFile(_fs, indexPath, _conf);
       try {
-        FSDataInputStream indexDataInputStream = _fs.open(indexDataPath);
+        ShardReaderCache.FileHandle indexDataHandle = _readerCache.acquireFile(_fs, indexDataPath);
         try {
-          TFile.Reader reader = new TFile.Reader(indexInputStream, _fs
-              .getFileStatus(indexPath).getLen(), _conf);
+          TFile.Reader.Scanner scanner = indexHandle.getReader().createScanner();
+
           try {
-            TFile.Reader.Scanner scanner = reader.createScanner();
-
-            try {
-              DataOutputBuffer keyBuffer = new DataOutputBuffer();
-              keyBuffer.writeLong(domainFP);
-              if (scanner.seekTo(keyBuffer.getData(), 0, keyBuffer.getLength())) {
-                // establish data start ..
-                long dataPosStart = scanner.entry().getValueStream().readLong();
-                // now establish default end pos
-                long dataPosEnd = _fs.getFileStatus(indexDataPath).getLen();
-                // and if not last index item .. use next item as stop point
-                if (scanner.advance()) {
-                  dataPosEnd = scanner.entry().getValueStream().readLong();
-                }
-                // calculate size 
-                long dataSize = dataPosEnd - dataPosStart;
-                long itemCount = dataSize / 8;
-                if (itemCount > MAX_SPILLBUFFER_ITEM_COUNT) { 
-                  LOG.error("itemCount:"+ itemCount + " exceeds MAX_SPILLBUFFER_SIZE:" + MAX_SPILLBUFFER_ITEM_COUNT + " truncating.");
-                  dataSize = MAX_SPILLBUFFER_ITEM_COUNT * 8;
-                }
-                // all right .. we are read to spill out the fingerprints ..
-                
-                FlexBuffer bufferOut = new FlexBuffer(
-                    new byte[(int)dataSize]);
-                // seek to proper location ...
-                indexDataInputStream.seek(dataPosStart);
-                // and read entire contents ..
-                indexDataInputStream.read(bufferOut.get());
-
-                return bufferOut;
+            DataOutputBuffer keyBuffer = new DataOutputBuffer();
+            keyBuffer.writeLong(domainFP);
+            if (scanner.seekTo(keyBuffer.getData(), 0, keyBuffer.getLength())) {
+              // establish data start ..
+              long dataPosStart = scanner.entry().getValueStream().readLong();
+              // now establish default end pos
+              long dataPosEnd = indexDataHandle.getLength();
+              // and if not last index item .. use next item as stop point
+              if (scanner.advance()) {
+                dataPosEnd = scanner.entry().getValueStream().readLong();
               }
-            } finally {
-              scanner.close();
+              // calculate size 
+              long dataSize = dataPosEnd - dataPosStart;
+              long itemCount = dataSize / 8;
+              if (itemCount > MAX_SPILLBUFFER_ITEM_COUNT) { 
+                LOG.error("itemCount:"+ itemCount + " exceeds MAX_SPILLBUFFER_SIZE:" + MAX_SPILLBUFFER_ITEM_COUNT + " truncating.");
+                dataSize = MAX_SPILLBUFFER_ITEM_COUNT * 8;
+              }
+              // all right .. we are read to spill out the fingerprints ..
+              
+              FlexBuffer bufferOut = new FlexBuffer(
+                  new byte[(int)dataSize]);
+              // read entire contents (positioned, since the handle is shared) ..
+              indexDataHandle.readFully(dataPosStart, bufferOut.get(), 0, (int)dataSize);
+
+              return bufferOut;
             }
           } finally {
-            reader.close();
+            scanner.close();
           }
         } finally {
-          indexDataInputStream.close();
+          indexDataHandle.release();
         }
       } finally {
-        indexInputStream.close();
+        indexHandle.release();
       }
 
       return null;
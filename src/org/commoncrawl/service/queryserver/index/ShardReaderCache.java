@@ -0,0 +1,532 @@
+/**
+ * Copyright 2008 - CommonCrawl Foundation
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ **/
+
+package org.commoncrawl.service.queryserver.index;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PositionedReadable;
+import org.apache.hadoop.fs.Seekable;
+import org.apache.hadoop.io.file.tfile.TFile;
+import org.commoncrawl.util.CCStringUtils;
+import org.commoncrawl.util.CompressURLListV2;
+
+/**
+ * A shared cache of open shard files for the query server
+ *
+ * Holds three size bounded LRU caches:
+ *
+ * - open file handles (and their TFile readers) keyed by path. Handles are
+ * reference counted, so a handle evicted while a query is still using it is
+ * only closed once that query releases it.
+ *
+ * - loaded CompressURLListV2 index files, keyed by local path.
+ *
+ * - a block cache, which sits underneath each TFile reader and serves the
+ * reader's (index and data) block reads from memory. TFile does not expose
+ * its blocks, so blocks are cached at the stream level, as fixed size,
+ * aligned ranges of the underlying file.
+ *
+ * Shard files are immutable once written, so cached state never goes stale.
+ *
+ * @author rana
+ *
+ */
+public class ShardReaderCache {
+
+  public static final Log LOG = LogFactory.getLog(ShardReaderCache.class);
+
+  /** max number of open file handles **/
+  public static final String MAX_OPEN_HANDLES_PARAM   = "queryserver.readerCache.maxOpenHandles";
+  /** max number of loaded index files **/
+  public static final String MAX_INDEX_FILES_PARAM    = "queryserver.readerCache.maxIndexFiles";
+  /** block cache capacity in bytes (zero disables the block cache) **/
+  public static final String BLOCK_CACHE_SIZE_PARAM   = "queryserver.blockCache.size";
+  /** block cache block size in bytes **/
+  public static final String BLOCK_CACHE_BLOCK_SIZE_PARAM = "queryserver.blockCache.blockSize";
+
+  public static final int  DEFAULT_MAX_OPEN_HANDLES  = 256;
+  public static final int  DEFAULT_MAX_INDEX_FILES   = 256;
+  public static final long DEFAULT_BLOCK_CACHE_SIZE  = 256L * 1024 * 1024;
+  public static final int  DEFAULT_BLOCK_SIZE        = 64 * 1024;
+
+  /** all live caches, for the status servlet **/
+  private static final CopyOnWriteArrayList<ShardReaderCache> _caches = new CopyOnWriteArrayList<ShardReaderCache>();
+
+  /**
+   * an open shard file, with an optional TFile reader layered over the
+   * block cache. call release once done with it.
+   */
+  public final class FileHandle {
+
+    private String            _key;
+    private Path              _path;
+    private long              _length;
+    private FSDataInputStream _rawStream;
+    private TFile.Reader      _reader;
+    private int               _refCount = 0;
+    private boolean           _evicted  = false;
+
+    FileHandle(FileSystem fs, Path path, boolean openTFile, Configuration conf) throws IOException {
+      _key = fs.getUri() + path.toString();
+      _path = path;
+      _length = fs.getFileStatus(path).getLen();
+      _rawStream = fs.open(path);
+      if (openTFile) {
+        try {
+          FSDataInputStream cachedStream = new FSDataInputStream(new BlockCachedInputStream(_blockCache, _key, _rawStream, _length));
+          _reader = new TFile.Reader(cachedStream, _length, conf);
+        } catch (IOException e) {
+          _rawStream.close();
+          throw e;
+        }
+      }
+    }
+
+    public Path getPath() {
+      return _path;
+    }
+
+    public long getLength() {
+      return _length;
+    }
+
+    /** the shared TFile reader. create a scanner per query, and close it when done **/
+    public TFile.Reader getReader() {
+      return _reader;
+    }
+
+    /**
+     * read from the (uncached) underlying file. uses positioned reads, so it is
+     * safe to call from multiple threads
+     */
+    public void readFully(long position, byte[] buffer, int offset, int length) throws IOException {
+      _rawStream.readFully(position, buffer, offset, length);
+    }
+
+    public void release() {
+      releaseHandle(this);
+    }
+
+    void close() {
+      try {
+        if (_reader != null) {
+          _reader.close();
+        }
+        _rawStream.close();
+      } catch (IOException e) {
+        LOG.error("Error closing:" + _path + " Exception:" + CCStringUtils.stringifyException(e));
+      }
+    }
+  }
+
+  private String _name;
+  private int _maxOpenHandles;
+  private int _maxIndexFiles;
+  private BlockCache _blockCache;
+  private LinkedHashMap<String, FileHandle> _handles = new LinkedHashMap<String, FileHandle>(16, .75f, true);
+  private LinkedHashMap<String, CompressURLListV2.Index.IndexFile> _indexFiles = new LinkedHashMap<String, CompressURLListV2.Index.IndexFile>(16, .75f, true);
+  private long _indexFileBytes = 0;
+
+  // stats
+  private long _handleHits = 0;
+  private long _handleMisses = 0;
+  private long _handleEvictions = 0;
+  private long _indexFileHits = 0;
+  private long _indexFileMisses = 0;
+
+  public ShardReaderCache(String name, Configuration conf) {
+    _name = name;
+    _maxOpenHandles = Math.max(1, conf.getInt(MAX_OPEN_HANDLES_PARAM, DEFAULT_MAX_OPEN_HANDLES));
+    _maxIndexFiles = Math.max(1, conf.getInt(MAX_INDEX_FILES_PARAM, DEFAULT_MAX_INDEX_FILES));
+    _blockCache = new BlockCache(conf.getLong(BLOCK_CACHE_SIZE_PARAM, DEFAULT_BLOCK_CACHE_SIZE),
+        Math.max(4096, conf.getInt(BLOCK_CACHE_BLOCK_SIZE_PARAM, DEFAULT_BLOCK_SIZE)));
+    _caches.add(this);
+  }
+
+  /**
+   * get a TFile handle (with a reader) for the given path, opening it if
+   * necessary
+   */
+  public FileHandle acquireTFile(FileSystem fs, Path path, Configuration conf) throws IOException {
+    return acquire(fs, path, true, conf);
+  }
+
+  /** get a plain (data file) handle for the given path **/
+  public FileHandle acquireFile(FileSystem fs, Path path) throws IOException {
+    return acquire(fs, path, false, null);
+  }
+
+  private FileHandle acquire(FileSystem fs, Path path, boolean openTFile, Configuration conf) throws IOException {
+    String key = fs.getUri() + path.toString() + (openTFile ? "#tfile" : "");
+
+    synchronized (this) {
+      FileHandle handle = _handles.get(key);
+      if (handle != null) {
+        _handleHits++;
+        handle._refCount++;
+        return handle;
+      }
+      _handleMisses++;
+    }
+    // open outside the lock
+    FileHandle newHandle = new FileHandle(fs, path, openTFile, conf);
+
+    ArrayList<FileHandle> toClose = new ArrayList<FileHandle>();
+    FileHandle handle;
+    synchronized (this) {
+      handle = _handles.get(key);
+      if (handle != null) {
+        // lost a race with another opener
+        toClose.add(newHandle);
+      } else {
+        handle = newHandle;
+        _handles.put(key, handle);
+        evictHandles(toClose);
+      }
+      handle._refCount++;
+    }
+    for (FileHandle closeMe : toClose) {
+      closeMe.close();
+    }
+    return handle;
+  }
+
+  /** evict least recently used handles down to the limit. called with the lock held **/
+  private void evictHandles(ArrayList<FileHandle> toClose) {
+    Iterator<FileHandle> iterator = _handles.values().iterator();
+    while (_handles.size() > _maxOpenHandles && iterator.hasNext()) {
+      FileHandle eldest = iterator.next();
+      iterator.remove();
+      _handleEvictions++;
+      eldest._evicted = true;
+      if (eldest._refCount == 0) {
+        toClose.add(eldest);
+      }
+    }
+  }
+
+  private void releaseHandle(FileHandle handle) {
+    boolean close = false;
+    synchronized (this) {
+      if (--handle._refCount == 0 && handle._evicted) {
+        close = true;
+      }
+    }
+    if (close) {
+      handle.close();
+    }
+  }
+
+  /** get a loaded index file, loading it if necessary **/
+  public CompressURLListV2.Index.IndexFile getIndexFile(File indexFilePath) throws IOException {
+    String key = indexFilePath.getAbsolutePath();
+    synchronized (this) {
+      CompressURLListV2.Index.IndexFile indexFile = _indexFiles.get(key);
+      if (indexFile != null) {
+        _indexFileHits++;
+        return indexFile;
+      }
+      _indexFileMisses++;
+    }
+    // load outside the lock
+    CompressURLListV2.Index.IndexFile indexFile = new CompressURLListV2.Index.IndexFile(indexFilePath);
+
+    synchronized (this) {
+      CompressURLListV2.Index.IndexFile existing = _indexFiles.get(key);
+      if (existing != null) {
+        return existing;
+      }
+      _indexFiles.put(key, indexFile);
+      _indexFileBytes += indexFile._indexDataBuffer.capacity();
+
+      Iterator<CompressURLListV2.Index.IndexFile> iterator = _indexFiles.values().iterator();
+      while (_indexFiles.size() > _maxIndexFiles && iterator.hasNext()) {
+        _indexFileBytes -= iterator.next()._indexDataBuffer.capacity();
+        iterator.remove();
+      }
+    }
+    return indexFile;
+  }
+
+  /** close all handles and drop all cached state **/
+  public void close() {
+    _caches.remove(this);
+    ArrayList<FileHandle> toClose = new ArrayList<FileHandle>();
+    synchronized (this) {
+      for (FileHandle handle : _handles.values()) {
+        handle._evicted = true;
+        if (handle._refCount == 0) {
+          toClose.add(handle);
+        }
+      }
+      _handles.clear();
+      _indexFiles.clear();
+      _indexFileBytes = 0;
+    }
+    for (FileHandle handle : toClose) {
+      handle.close();
+    }
+    _blockCache.clear();
+  }
+
+  private static String formatRatio(long hits, long misses) {
+    long total = hits + misses;
+    return (total == 0) ? "n/a" : String.format("%.2f%%", (double) hits * 100.0 / (double) total);
+  }
+
+  public synchronized void dumpStatus(PrintWriter writer) {
+    writer.println("Cache:" + _name);
+    writer.println("  Handles       Open:" + _handles.size() + " Max:" + _maxOpenHandles + " Hits:" + _handleHits
+        + " Misses:" + _handleMisses + " HitRatio:" + formatRatio(_handleHits, _handleMisses) + " Evictions:" + _handleEvictions);
+    writer.println("  IndexFiles    Loaded:" + _indexFiles.size() + " Max:" + _maxIndexFiles + " Bytes:" + _indexFileBytes
+        + " Hits:" + _indexFileHits + " Misses:" + _indexFileMisses + " HitRatio:" + formatRatio(_indexFileHits, _indexFileMisses));
+    _blockCache.dumpStatus(writer);
+  }
+
+  /** dumps the status of all live caches **/
+  @SuppressWarnings("serial")
+  public static class StatusServlet extends HttpServlet {
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+      response.setContentType("text/plain");
+      PrintWriter writer = new PrintWriter(response.getWriter());
+      try {
+        if (_caches.isEmpty()) {
+          writer.println("No Active Caches");
+        }
+        for (ShardReaderCache cache : _caches) {
+          cache.dumpStatus(writer);
+        }
+      } finally {
+        writer.flush();
+      }
+    }
+  }
+
+  /**
+   * LRU cache of fixed size file blocks, bounded by total bytes
+   */
+  static final class BlockCache {
+
+    static final class BlockKey {
+      final String _file;
+      final long   _blockIndex;
+
+      BlockKey(String file, long blockIndex) {
+        _file = file;
+        _blockIndex = blockIndex;
+      }
+
+      @Override
+      public int hashCode() {
+        return _file.hashCode() * 31 + (int) (_blockIndex ^ (_blockIndex >>> 32));
+      }
+
+      @Override
+      public boolean equals(Object obj) {
+        if (!(obj instanceof BlockKey))
+          return false;
+        BlockKey other = (BlockKey) obj;
+        return _blockIndex == other._blockIndex && _file.equals(other._file);
+      }
+    }
+
+    private long _capacity;
+    private int  _blockSize;
+    private long _size = 0;
+    private long _hits = 0;
+    private long _misses = 0;
+    private long _evictions = 0;
+    private LinkedHashMap<BlockKey, byte[]> _blocks = new LinkedHashMap<BlockKey, byte[]>(1024, .75f, true);
+
+    BlockCache(long capacity, int blockSize) {
+      _capacity = capacity;
+      _blockSize = blockSize;
+    }
+
+    int getBlockSize() {
+      return _blockSize;
+    }
+
+    synchronized byte[] get(BlockKey key) {
+      byte[] block = _blocks.get(key);
+      if (block != null)
+        _hits++;
+      else
+        _misses++;
+      return block;
+    }
+
+    synchronized void put(BlockKey key, byte[] block) {
+      if (_capacity == 0 || block.length > _capacity)
+        return;
+      byte[] existing = _blocks.put(key, block);
+      if (existing != null) {
+        _size -= existing.length;
+      }
+      _size += block.length;
+      Iterator<Map.Entry<BlockKey, byte[]>> iterator = _blocks.entrySet().iterator();
+      while (_size > _capacity && iterator.hasNext()) {
+        _size -= iterator.next().getValue().length;
+        iterator.remove();
+        _evictions++;
+      }
+    }
+
+    synchronized void clear() {
+      _blocks.clear();
+      _size = 0;
+    }
+
+    synchronized void dumpStatus(PrintWriter writer) {
+      writer.println("  BlockCache    Blocks:" + _blocks.size() + " Bytes:" + _size + " Capacity:" + _capacity
+          + " BlockSize:" + _blockSize + " Hits:" + _hits + " Misses:" + _misses + " HitRatio:" + formatRatio(_hits, _misses)
+          + " Evictions:" + _evictions);
+    }
+  }
+
+  /**
+   * a seekable stream over a file, whose reads are served a block at a time
+   * from the block cache. misses are filled via positioned reads on the
+   * underlying stream, so multiple instances can share one underlying stream.
+   */
+  static final class BlockCachedInputStream extends InputStream implements Seekable, PositionedReadable {
+
+    private BlockCache        _cache;
+    private String            _file;
+    private FSDataInputStream _source;
+    private long              _length;
+    private long              _position = 0;
+
+    BlockCachedInputStream(BlockCache cache, String file, FSDataInputStream source, long length) {
+      _cache = cache;
+      _file = file;
+      _source = source;
+      _length = length;
+    }
+
+    private byte[] getBlock(long blockIndex) throws IOException {
+      BlockCache.BlockKey key = new BlockCache.BlockKey(_file, blockIndex);
+      byte[] block = _cache.get(key);
+      if (block == null) {
+        long blockStart = blockIndex * _cache.getBlockSize();
+        block = new byte[(int) Math.min(_cache.getBlockSize(), _length - blockStart)];
+        _source.readFully(blockStart, block, 0, block.length);
+        _cache.put(key, block);
+      }
+      return block;
+    }
+
+    @Override
+    public int read(long position, byte[] buffer, int offset, int length) throws IOException {
+      if (position >= _length)
+        return -1;
+      int totalRead = 0;
+      while (totalRead < length && position < _length) {
+        long blockIndex = position / _cache.getBlockSize();
+        int blockOffset = (int) (position % _cache.getBlockSize());
+        byte[] block = getBlock(blockIndex);
+        int bytesToCopy = Math.min(length - totalRead, block.length - blockOffset);
+        System.arraycopy(block, blockOffset, buffer, offset + totalRead, bytesToCopy);
+        totalRead += bytesToCopy;
+        position += bytesToCopy;
+      }
+      return totalRead;
+    }
+
+    @Override
+    public void readFully(long position, byte[] buffer, int offset, int length) throws IOException {
+      int bytesRead = read(position, buffer, offset, length);
+      if (bytesRead != length) {
+        throw new EOFException("Attempted to read past end of:" + _file);
+      }
+    }
+
+    @Override
+    public void readFully(long position, byte[] buffer) throws IOException {
+      readFully(position, buffer, 0, buffer.length);
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] singleByte = new byte[1];
+      return (read(singleByte, 0, 1) == -1) ? -1 : (singleByte[0] & 0xff);
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      if (length == 0)
+        return 0;
+      int bytesRead = read(_position, buffer, offset, length);
+      if (bytesRead > 0) {
+        _position += bytesRead;
+      }
+      return bytesRead;
+    }
+
+    @Override
+    public int available() throws IOException {
+      return (int) Math.min(Integer.MAX_VALUE, _length - _position);
+    }
+
+    @Override
+    public void seek(long position) throws IOException {
+      if (position > _length) {
+        throw new EOFException("Seek past end of:" + _file);
+      }
+      _position = position;
+    }
+
+    @Override
+    public long getPos() throws IOException {
+      return _position;
+    }
+
+    @Override
+    public boolean seekToNewSource(long targetPos) throws IOException {
+      return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+      // the underlying stream is owned by the file handle
+    }
+  }
+}
@@ -396,6 +396,25 @@ implements QueryServerMaster, ShardMapper, AsyncServerChannel.ConnectionCallback
     }
 
     try { 
+      // serve the client's page as soon as the streamed results allow, rather than waiting for the query to complete 
+      request.getSourceQuery().enableStreamedResults(remoteFileSystem,_configuration,getEventLoop(),getDefaultThreadPool(),_masterIndex,new QueryCompletionCallback() {
+
+        @Override
+        public void queryComplete(QueryRequest theRequest, QueryResult results) {
+          if (request.getRunState() == QueryRequest.RunState.RUNNING_REMOTE && !request.isResultDelivered()) { 
+            LOG.info("Query:" + request.getSourceQuery().getQueryId() + " served first page from streamed results");
+            request.setResultDelivered(true);
+            request.getCompletionCallback().queryComplete(request, results);
+          }
+        }
+
+        @Override
+        public void queryFailed(QueryRequest theRequest, String reason) {
+          // not fatal, the page will be served from the cache once the query completes 
+          LOG.error("Query:" + request.getSourceQuery().getQueryId() + " failed to serve page from streamed results:" + reason);
+        } 
+      });
+      
       request.getSourceQuery().startRemoteQuery(_slaveNameToOnlineStateMap,request.getSourceQuery().getShardIdToHostMapping(), 
           new QueryProgressCallback() {
 
@@ -417,7 +436,11 @@ implements QueryServerMaster, ShardMapper, AsyncServerChannel.ConnectionCallback
           try { 
             query.remoteDispatchComplete(remoteFileSystem,_configuration,request,resultCount);
 
-            if (resultCount > 0) { 
+            if (request.isResultDelivered()) { 
+              LOG.info("Remote Query:" + request.getSourceQuery().getQueryId() + " returned:" + resultCount  + " results (page already delivered)");
+              deactivateRequest(request);
+            }
+            else if (resultCount > 0) { 
               LOG.info("Remote Query:" + request.getSourceQuery().getQueryId() + " returned:" + resultCount  + " results");
               // deactive request first ...
               requeueRequest((QueryRequest)query.getContextObject());
@@ -441,7 +464,9 @@ implements QueryServerMaster, ShardMapper, AsyncServerChannel.ConnectionCallback
             // deactivate the request 
             deactivateRequest((QueryRequest)query.getContextObject());
 
-            request.getCompletionCallback().queryFailed(request, error);
+            if (!request.isResultDelivered()) { 
+              request.getCompletionCallback().queryFailed(request, error);
+            }
           }
         }
 
@@ -453,7 +478,9 @@ implements QueryServerMaster, ShardMapper, AsyncServerChannel.ConnectionCallback
           // deactivate the request 
           deactivateRequest((QueryRequest)query.getContextObject());
 
-          request.getCompletionCallback().queryFailed(request, reason);
+          if (!request.isResultDelivered()) { 
+            request.getCompletionCallback().queryFailed(request, reason);
+          }
         } 
       });
     }
@@ -69,6 +69,7 @@ import org.commoncrawl.service.queryserver.InlinkingDomainInfo;
 import org.commoncrawl.service.queryserver.InlinksByDomainQueryInfo;
 import org.commoncrawl.service.queryserver.URLLinkDetailQueryInfo;
 import org.commoncrawl.service.queryserver.index.DatabaseIndexV2.MasterDatabaseIndex.MetadataOut;
+import org.commoncrawl.service.queryserver.index.ShardReaderCache;
 import org.commoncrawl.service.queryserver.master.MasterServer.BlockingQueryResult;
 import org.commoncrawl.service.queryserver.query.DomainListQuery;
 import org.commoncrawl.service.queryserver.query.DomainURLListQuery;
@@ -116,6 +117,7 @@ public class QueryServerFE {
     _server.getWebServer().addServlet("getCrawlList","/getCrawlList.jsp",CrawlListServlet.class);
     LOG.info("Adding GetInverseByDomain Servet");
     _server.getWebServer().addServlet("getInverseByDomain","/getInverseLinksByDomain.jsp",InverseURLListByRootDomainQueryServlet.class);
+    _server.getWebServer().addServlet("indexCacheStatus","/indexCacheStatus.jsp",ShardReaderCache.StatusServlet.class);
     
     
     Context staticContext = new Context(_server.getWebServer().getContextHandlerCollection(),"/img");
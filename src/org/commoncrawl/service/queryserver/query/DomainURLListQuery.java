@@ -115,7 +115,18 @@ public class DomainURLListQuery extends Query<DomainURLListQueryInfo,URLFPV2,Cra
   		throw new IOException("Invalid Shard Id Count in Remote Dispatch");
   	}
   	
-    Path remoteURLListPath = getRemoteOutputFilePath(getClientQueryInfo(),getCommonQueryInfo().getRelevantShardIds().get(0)); 
+  	int shardId = getCommonQueryInfo().getRelevantShardIds().get(0);
+  	
+  	if (isStreamingResults(shardId)) { 
+  	  FlexBuffer urlListOut = queryURLList();
+  	  int length = (urlListOut != null) ? urlListOut.getCount() : 0;
+  	  // the url list is already in streamed record format 
+  	  streamResults(fileSystem,shardId,(urlListOut != null) ? urlListOut.get() : null,(urlListOut != null) ? urlListOut.getOffset() : 0,length);
+  	  LOG.info("Execute Remote for Query:" + getQueryId() +" streamed:" + (length / FP_RECORD_SIZE) + " results");
+  	  return length / FP_RECORD_SIZE;
+  	}
+  	
+    Path remoteURLListPath = getRemoteOutputFilePath(getClientQueryInfo(),shardId); 
     
     LOG.info("ExecuteRemote called for Query:" + getQueryId() + " Creating spill files:" +remoteURLListPath);
     FSDataOutputStream urlListWriter = fileSystem.create(remoteURLListPath);
@@ -126,16 +137,7 @@ public class DomainURLListQuery extends Query<DomainURLListQueryInfo,URLFPV2,Cra
 
       try {
         LOG.info("Execute Remote for Query:" + getQueryId() +" Calling executeURLListQuery");
-        FlexBuffer urlListOut = null;
-        if (getClientQueryInfo().getSortByField().compareTo(SORT_BY_NAME) == 0) { 
-        	urlListOut = _slaveDatabaseIndex.queryURLListSortedByName(getQueryData().getDomainId());
-        }
-        else if (getClientQueryInfo().getSortByField().compareTo(SORT_BY_PR) == 0) { 
-        	urlListOut = _slaveDatabaseIndex.queryURLListSortedByPR(getQueryData().getDomainId());
-        }
-        else { 
-        	throw new IOException("Invalid Sort Field:" + getClientQueryInfo().getSortByField()); 
-        }
+        FlexBuffer urlListOut = queryURLList();
         if (urlListOut != null) { 
         	urlListWriter.write(urlListOut.get(),urlListOut.getOffset(),urlListOut.getCount());
         	urlListWriter.flush();
@@ -159,6 +161,18 @@ public class DomainURLListQuery extends Query<DomainURLListQueryInfo,URLFPV2,Cra
     }
   }
 
+  private FlexBuffer queryURLList() throws IOException { 
+    if (getClientQueryInfo().getSortByField().compareTo(SORT_BY_NAME) == 0) { 
+    	return _slaveDatabaseIndex.queryURLListSortedByName(getQueryData().getDomainId());
+    }
+    else if (getClientQueryInfo().getSortByField().compareTo(SORT_BY_PR) == 0) { 
+    	return _slaveDatabaseIndex.queryURLListSortedByPR(getQueryData().getDomainId());
+    }
+    else { 
+    	throw new IOException("Invalid Sort Field:" + getClientQueryInfo().getSortByField()); 
+    }
+  }
+  
   @Override
   public void remoteDispatchComplete(FileSystem fileSystem,Configuration conf,QueryRequest<DomainURLListQueryInfo,URLFPV2,CrawlDatumAndMetadata> request, long resultCount) throws IOException {
     
@@ -180,6 +194,46 @@ public class DomainURLListQuery extends Query<DomainURLListQueryInfo,URLFPV2,Cra
   }
   
   static final int FP_RECORD_SIZE = 8;
+  
+  @Override
+  protected int getStreamedRecordSize() { 
+    return FP_RECORD_SIZE;
+  }
+  
+  @Override
+  protected Path getStreamedResultsCachePath(QueryRequest<DomainURLListQueryInfo,URLFPV2,CrawlDatumAndMetadata> theClientRequest) throws IOException {
+    return new Path(getLocalQueryResultsPathPrefix(theClientRequest)+getURLOutputFileNameBasedOnSortByField(theClientRequest.getClientQueryInfo().getSortByField()));
+  }
+  
+  @Override
+  protected long getRecordsNeededForPage(ClientQueryInfo clientQueryInfo,long totalRecordCount) {
+    // pr lists are read back to front (see readPaginatedResults)
+    if (clientQueryInfo.getSortByField().equals(SORT_BY_PR)) { 
+      if (clientQueryInfo.getSortOrder() == ClientQueryInfo.SortOrder.ASCENDING) { 
+        return totalRecordCount;
+      }
+      return Math.min(totalRecordCount,(long)(clientQueryInfo.getPaginationOffset() + 1) * clientQueryInfo.getPageSize());
+    }
+    return super.getRecordsNeededForPage(clientQueryInfo, totalRecordCount);
+  }
+  
+  @Override
+  protected void getStreamedResultsPage(DatabaseIndexV2.MasterDatabaseIndex masterIndex,QueryRequest<DomainURLListQueryInfo,URLFPV2,CrawlDatumAndMetadata> theClientRequest,FSDataInputStream partialResults,long totalRecordCount,QueryCompletionCallback<DomainURLListQueryInfo,URLFPV2,CrawlDatumAndMetadata> callback) throws IOException {
+    QueryResult<URLFPV2,CrawlDatumAndMetadata> resultOut = new QueryResult<URLFPV2,CrawlDatumAndMetadata>(); 
+    
+    readPaginatedResults(
+        masterIndex, 
+        getQueryData().getDomainId(), 
+        partialResults, totalRecordCount * FP_RECORD_SIZE,
+        theClientRequest.getClientQueryInfo().getSortByField(),
+        theClientRequest.getClientQueryInfo().getSortOrder(),
+        theClientRequest.getClientQueryInfo().getPaginationOffset(),
+        theClientRequest.getClientQueryInfo().getPageSize(),
+        resultOut);
+    
+    callback.queryComplete(theClientRequest,resultOut);
+  }
+  
   private static void readPaginatedResults(final DatabaseIndexV2.MasterDatabaseIndex masterIndex,long domainId, FSDataInputStream inputStream,long length,String sortByField,int sortOrder,int pageNumber,int pageSize,QueryResult<URLFPV2,CrawlDatumAndMetadata> resultOut) throws IOException { 
 	  // if descending sort order ... 
 	  // take pageNumber * pageSize as starting point
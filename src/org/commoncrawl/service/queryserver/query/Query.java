@@ -27,10 +27,13 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.record.Buffer;
@@ -41,12 +44,14 @@ import org.commoncrawl.rpc.base.internal.AsyncRequest.Callback;
 import org.commoncrawl.rpc.base.shared.BinaryProtocol;
 import org.commoncrawl.rpc.base.shared.RPCStruct;
 import org.commoncrawl.service.queryserver.ClientQueryInfo;
+import org.commoncrawl.service.queryserver.Common;
 import org.commoncrawl.service.queryserver.QueryCommon;
 import org.commoncrawl.service.queryserver.QueryStatus;
 import org.commoncrawl.service.queryserver.RemoteQueryInfo;
 import org.commoncrawl.service.queryserver.ShardIndexHostNameTuple;
 import org.commoncrawl.service.queryserver.index.DatabaseIndexV2;
 import org.commoncrawl.service.queryserver.master.QueryServerSlaveState;
+import org.commoncrawl.service.queryserver.slave.ShardResultStream;
 import org.commoncrawl.service.queryserver.slave.SlaveState;
 import org.commoncrawl.util.CCStringUtils;
 import org.commoncrawl.util.FileUtils;
@@ -100,6 +105,15 @@ public abstract class Query<DataType extends RPCStruct,ResultKeyType,ResultValue
   protected TreeMap<String,SlaveStatusInfo> _remoteQueryStates = null;
   protected RemoteQueryCompletionCallback _completionCallback;
 	protected ArrayList<ShardIndexHostNameTuple> _shardIdToHostMapping = new ArrayList<ShardIndexHostNameTuple>();
+	
+	// streamed results state (master only)
+	private FileSystem    _streamingFileSystem;
+	private Configuration _streamingConf;
+	private EventLoop     _streamingEventLoop;
+	private ExecutorService _streamingThreadPool;
+	private DatabaseIndexV2.MasterDatabaseIndex _streamingMasterIndex;
+	private QueryCompletionCallback<DataType,ResultKeyType,ResultValueType> _streamedPageCallback;
+	private StreamedQueryResults _streamedResults = null;
 
   
   /** master side query object constructor **/
@@ -153,6 +167,22 @@ public abstract class Query<DataType extends RPCStruct,ResultKeyType,ResultValue
   public Object getContextObject() { return _contextObj; }
   public void   setContext(Object context) { _contextObj = context; }
   
+  /** 
+   * have the next remote dispatch stream its results from the slaves, if this query supports it (master only).  
+   * pageCallback, if not null, is called with the client's page as soon as the leading results needed for it
+   * have arrived, which may be well before the remote query completes. spill files are read on threadPool.
+   */
+  public void enableStreamedResults(FileSystem remoteFileSystem,Configuration conf,EventLoop eventLoop,ExecutorService threadPool,DatabaseIndexV2.MasterDatabaseIndex masterIndex,QueryCompletionCallback<DataType,ResultKeyType,ResultValueType> pageCallback) { 
+    _streamingFileSystem  = remoteFileSystem;
+    _streamingConf        = conf;
+    _streamingEventLoop   = eventLoop;
+    _streamingThreadPool  = threadPool;
+    _streamingMasterIndex = masterIndex;
+    _streamedPageCallback = pageCallback;
+  }
+  
+  boolean hasStreamedPageCallback() { return _streamedPageCallback != null; }
+  
   /** start a slave query thread **/
   public void startSlaveQuery(
       final FileSystem fileSystem,
@@ -381,6 +411,17 @@ public abstract class Query<DataType extends RPCStruct,ResultKeyType,ResultValue
   		final QueryProgressCallback<DataType,ResultKeyType,ResultValueType> progressCallback, final RemoteQueryCompletionCallback completionCallback) throws IOException {
     LOG.info("Starting Remote(Master)Query for Query:" + getQueryId());
     
+    // set up streamed results if supported 
+    if (_streamingEventLoop != null && getStreamedRecordSize() != 0) { 
+      LOG.info("Streaming Results for Query:" + getQueryId());
+      _streamedResults = new StreamedQueryResults(this,slaveToOnlineStateMapping,shardIdMapping,
+          _streamingFileSystem,_streamingConf,_streamingEventLoop,_streamingThreadPool,getStreamedResultsCachePath((QueryRequest<DataType,ResultKeyType,ResultValueType>)getContextObject()));
+      getCommonQueryInfo().setQueryFlags(getCommonQueryInfo().getQueryFlags() | QueryCommon.QueryFlags.STREAM_RESULTS);
+    }
+    else { 
+      getCommonQueryInfo().setQueryFlags(getCommonQueryInfo().getQueryFlags() & ~QueryCommon.QueryFlags.STREAM_RESULTS);
+    }
+    
     // construct a query details object 
     _queryDetails = new RemoteQueryInfo();
     
@@ -504,11 +545,21 @@ public abstract class Query<DataType extends RPCStruct,ResultKeyType,ResultValue
     
     // if completed + failed count == slave count ... 
     if ( completedCount + failedCount == _remoteQueryStates.size() || (completedCount == 1 && totalResultCount == 1 && isSingleRequestQuery()) ) {
+      
+      if (failedCount == 0 && _streamedResults != null && _streamedResults.isActive()) { 
+        // the slaves are done, but their results are still streaming in 
+        return;
+      }
+      
       //TODO: right now partial failures are considered a complete failure ... 
       if (failedCount != 0) {
         
         LOG.info("Query:" + getQueryId() + " Had :" + failedCount + " Failures");
         
+        if (_streamedResults != null) { 
+          _streamedResults.cancel();
+        }
+        
         //if (completedCount == 0) { 
           // udpate query status 
           _queryStatus.setStatus(QueryStatus.Status.ERROR);
@@ -532,6 +583,76 @@ public abstract class Query<DataType extends RPCStruct,ResultKeyType,ResultValue
     }
   }
   
+  /** all streamed results have been merged into the local results file (master only) **/
+  void streamedResultsComplete(Map<String,Long> resultCountByHost) { 
+    for (SlaveStatusInfo slaveStatus : _remoteQueryStates.values()) { 
+      Long resultCount = resultCountByHost.get(slaveStatus.getOnlineState().getHostName());
+      // the last page of results implies the slave's query finished, so don't wait on its heartbeat
+      slaveStatus._queryStatus.setStatus(QueryStatus.Status.FINISHED);
+      slaveStatus._queryStatus.setOptResultCount((resultCount != null) ? resultCount : 0);
+    }
+    try {
+      updateMasterQueryStatus();
+    } catch (IOException e) {
+      LOG.error(CCStringUtils.stringifyException(e));
+    }
+  }
+  
+  /** streaming results failed (master only) **/
+  void streamedResultsFailed(String reason) { 
+    if (_remoteQueryStates.size() != 0) { 
+      _queryStatus.setStatus(QueryStatus.Status.ERROR);
+      _queryStatus.setOptErrorReason(reason);
+      _remoteQueryStates.clear();
+      _completionCallback.queryFailed(this,reason);
+    }
+  }
+  
+  /** serve the client's page from the partially streamed results in a background thread (master only) **/
+  void startStreamedPageQuery(final FSDataInputStream partialResults,final long totalRecordCount) { 
+    
+    final QueryRequest<DataType,ResultKeyType,ResultValueType> queryRequest = (QueryRequest<DataType,ResultKeyType,ResultValueType>)getContextObject();
+    
+    Thread pageThread = new Thread(new Runnable() {
+
+      @Override
+      public void run() {
+        try {
+          getStreamedResultsPage(_streamingMasterIndex,queryRequest,partialResults,totalRecordCount,new QueryCompletionCallback<DataType,ResultKeyType,ResultValueType>() {
+
+            @Override
+            public void queryComplete(QueryRequest<DataType,ResultKeyType,ResultValueType> request,final QueryResult<ResultKeyType,ResultValueType> queryResult) {
+              _streamingEventLoop.setTimer(new Timer(0,false,new Timer.Callback() {
+                @Override
+                public void timerFired(Timer timer) {
+                  _streamedPageCallback.queryComplete(queryRequest,queryResult);
+                }
+              }));
+            }
+
+            @Override
+            public void queryFailed(QueryRequest<DataType,ResultKeyType,ResultValueType> request,String reason) {
+              // the full results will still answer the request 
+              LOG.error("Streamed Page Query for Query:" + getQueryId() + " Failed with Error:" + reason);
+            }
+          });
+        }
+        catch (IOException e) { 
+          LOG.error("Streamed Page Query for Query:" + getQueryId() + " Failed with Error:" + CCStringUtils.stringifyException(e));
+        }
+        finally { 
+          try {
+            partialResults.close();
+          } catch (IOException e) {
+          }
+        }
+      } 
+    });
+    
+    LOG.info("Starting Streamed Page Query Thread for Query:" + getQueryId());
+    pageThread.start();
+  }
+  
  
   public long getQueryId() { return getCommonQueryInfo() .getQueryId(); }
   public void setQueryId(long queryId) { 
@@ -579,6 +700,10 @@ public abstract class Query<DataType extends RPCStruct,ResultKeyType,ResultValue
           } catch (CloneNotSupportedException e) {
           	// NOOP
           }
+          // start pulling results as soon as the slave has the query 
+          if (_streamedResults != null && request.getOutput().getStatus() != QueryStatus.Status.ERROR) { 
+            _streamedResults.slaveDispatched(slave.getOnlineState().getHostName());
+          }
         }
       } 
     });
@@ -624,6 +749,69 @@ public abstract class Query<DataType extends RPCStruct,ResultKeyType,ResultValue
   //TODO: AHAD - ELEMINATE THIS 
   public  boolean  isSingleRequestQuery() { return false; }
   
+  /** streamed results: size of the fixed width records the query streams from slaves to master, or 0 if it does not stream its results **/
+  protected int getStreamedRecordSize() { return 0; }
+  
+  /** streamed results: the order in which to merge the records of multiple shards, or null to concatenate them in shard order **/
+  protected StreamedResultMerger.RecordComparator getStreamedRecordComparator() { return null; }
+  
+  /** streamed results: the local file the merged results are written to, normally the cache file read by getCachedResults (runs on master only) **/
+  protected Path getStreamedResultsCachePath(QueryRequest<DataType,ResultKeyType,ResultValueType> theClientRequest) throws IOException { 
+    throw new IOException("Query:" + getClass().getName() + " does not stream results");
+  }
+  
+  /** streamed results: the number of leading records needed to serve the client's page (runs on master only) **/
+  protected long getRecordsNeededForPage(ClientQueryInfo clientQueryInfo,long totalRecordCount) { 
+    if (clientQueryInfo.getSortOrder() == ClientQueryInfo.SortOrder.ASCENDING) { 
+      return Math.min(totalRecordCount,(long)(clientQueryInfo.getPaginationOffset() + 1) * clientQueryInfo.getPageSize());
+    }
+    return totalRecordCount;
+  }
+  
+  /** streamed results: serve the client's page from the leading records of the results, given the final record count (runs on master only) **/
+  protected void getStreamedResultsPage(final DatabaseIndexV2.MasterDatabaseIndex masterIndex,final QueryRequest<DataType,ResultKeyType,ResultValueType> theClientRequest,FSDataInputStream partialResults,long totalRecordCount,final QueryCompletionCallback<DataType,ResultKeyType,ResultValueType> callback)throws IOException { 
+    throw new IOException("Query:" + getClass().getName() + " does not stream results");
+  }
+  
+  /** does the master want this query's results streamed (runs on slave) **/
+  protected boolean isStreamingResults(int shardId) { 
+    return _slaveState != null 
+      && (getCommonQueryInfo().getQueryFlags() & QueryCommon.QueryFlags.STREAM_RESULTS) != 0
+      && _slaveState.getResultStream(getQueryId(),shardId) != null;
+  }
+  
+  /** 
+   * hand a shard's results (in streamed record format) over to the master (runs on slave). 
+   * returns false if the master did not ask for streamed results, in which case the caller should write its 
+   * results to hdfs as usual. results larger than Common.MAX_STREAMED_RESULTS_SIZE are spilled to hdfs 
+   * rather than held in memory. the data array is referenced, so it must not be modified afterwards.
+   */
+  protected boolean streamResults(FileSystem fileSystem,int shardId,byte[] data,int offset,int length) throws IOException { 
+    if (!isStreamingResults(shardId)) { 
+      return false;
+    }
+    ShardResultStream stream = _slaveState.getResultStream(getQueryId(),shardId);
+    
+    if (length > Common.MAX_STREAMED_RESULTS_SIZE) { 
+      Path spillPath = getStreamedResultsSpillPath(shardId);
+      LOG.info("Query:" + getQueryId() + " Spilling:" + length + " bytes of Results for Shard:" + shardId + " to:" + spillPath);
+      FSDataOutputStream spillStream = fileSystem.create(spillPath);
+      try { 
+        spillStream.write(data,offset,length);
+      }
+      finally { 
+        spillStream.close();
+      }
+      stream.setSpilled(length);
+    }
+    else { 
+      stream.setResults(data,offset,length);
+    }
+    // answer the master's parked fetch 
+    _slaveState.resultStreamUpdated(stream);
+    return true;
+  }
+  
   
   //////////////////////////////////////////////////////////////////////////////////////////////////
   // internal methods ...   
@@ -635,6 +823,9 @@ public abstract class Query<DataType extends RPCStruct,ResultKeyType,ResultValue
   protected Path getHDFSQueryResultsFilePathForShard(int shardIndex) {
     return new Path(getHDFSQueryResultsPath(),getPartNameForSlave(shardIndex));
   }
+  protected Path getStreamedResultsSpillPath(int shardIndex) { 
+    return new Path(getHDFSQueryResultsPath(),"streamed-" + getPartNameForSlave(shardIndex));
+  }
   @SuppressWarnings("unchecked")
   static protected String getLocalQueryResultsPathPrefix(QueryRequest request) { return new Path(request.getLocalCacheDirectory().getAbsolutePath(),"QID_" + request.getSourceQuery().getQueryId() +"_").toString(); }
   
@@ -53,6 +53,8 @@ public class QueryRequest<DataType extends RPCStruct,KeyType,ValueType> {
   
   private RunState _runState 		 = RunState.IDLE;
   private RunState _lastRunningState = RunState.IDLE;
+  // set once the client's page has been served from streamed results, ahead of the query completing 
+  private boolean _resultDelivered = false;
   
   public QueryRequest(Query<DataType,KeyType,ValueType> query,ClientQueryInfo ClientQueryInfo,File localCacheDirectory,QueryCompletionCallback<DataType,KeyType,ValueType> callback) { 
     _querySource = query;
@@ -82,6 +84,8 @@ public class QueryRequest<DataType extends RPCStruct,KeyType,ValueType> {
   	return true;
   }
   public RunState getRunState() { return _runState; }
+  public boolean isResultDelivered() { return _resultDelivered; }
+  public void setResultDelivered(boolean resultDelivered) { _resultDelivered = resultDelivered; }
   
   
   
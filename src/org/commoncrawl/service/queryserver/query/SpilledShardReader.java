@@ -0,0 +1,156 @@
+/**
+ * Copyright 2008 - CommonCrawl Foundation
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ **/
+package org.commoncrawl.service.queryserver.query;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.commoncrawl.async.ConcurrentTask;
+import org.commoncrawl.async.EventLoop;
+import org.commoncrawl.util.CCStringUtils;
+
+/**
+ * Reads a shard's hdfs spill file a page at a time for the master.
+ *
+ * The file is opened and read on a thread from the given pool, and each
+ * filled page is handed back on the event thread, so a slow hdfs read never
+ * stalls the master's event loop. At most one read is outstanding at a time,
+ * and the page buffer is reused, so a page's data must be consumed (copied)
+ * before the next read is issued.
+ *
+ * Called from the event thread only.
+ *
+ * @author rana
+ *
+ */
+class SpilledShardReader {
+
+  private static final Log LOG = LogFactory.getLog(SpilledShardReader.class);
+
+  /** called on the event thread **/
+  interface Callback {
+    /** the next page of the spill file **/
+    void pageRead(byte[] data,int length);
+    void readFailed(IOException e);
+  }
+
+  private final FileSystem      _fileSystem;
+  private final Path            _path;
+  private final long            _totalBytes;
+  private final ExecutorService _threadPool;
+  private final EventLoop       _eventLoop;
+  private final byte            _buffer[];
+  /** only touched by the pool thread while a read is pending **/
+  private FSDataInputStream     _stream = null;
+  private long                  _offset = 0;
+  private boolean               _readPending = false;
+  private boolean               _closed = false;
+
+  SpilledShardReader(FileSystem fileSystem,Path path,long totalBytes,int pageSize,ExecutorService threadPool,EventLoop eventLoop) {
+    _fileSystem = fileSystem;
+    _path = path;
+    _totalBytes = totalBytes;
+    _threadPool = threadPool;
+    _eventLoop = eventLoop;
+    _buffer = new byte[(int) Math.max(0,Math.min(pageSize,totalBytes))];
+  }
+
+  boolean isReadPending() { return _readPending; }
+
+  /** bytes handed back so far **/
+  long getOffset() { return _offset; }
+
+  /** true once every byte of the file has been handed back **/
+  boolean isExhausted() { return _offset == _totalBytes; }
+
+  /** read the next page on the pool, and hand it to the callback on the event thread **/
+  void readNextPage(final Callback callback) {
+    if (_readPending || _closed) {
+      throw new IllegalStateException("Read Pending:" + _readPending + " Closed:" + _closed + " for Spill File:" + _path);
+    }
+    _readPending = true;
+    final int bytesToRead = (int) Math.min(_buffer.length,_totalBytes - _offset);
+
+    _threadPool.execute(new ConcurrentTask<Integer>(_eventLoop,new Callable<Integer>() {
+
+      @Override
+      public Integer call() throws Exception {
+        if (bytesToRead > 0) {
+          if (_stream == null) {
+            _stream = _fileSystem.open(_path);
+          }
+          _stream.readFully(_buffer,0,bytesToRead);
+        }
+        return bytesToRead;
+      }
+    },new ConcurrentTask.CompletionCallback<Integer>() {
+
+      @Override
+      public void taskComplete(Integer bytesRead) {
+        _readPending = false;
+        if (_closed) {
+          closeStream();
+        }
+        else {
+          _offset += bytesRead;
+          if (isExhausted()) {
+            closeStream();
+          }
+          callback.pageRead(_buffer,bytesRead);
+        }
+      }
+
+      @Override
+      public void taskFailed(Exception e) {
+        _readPending = false;
+        if (_closed) {
+          closeStream();
+        }
+        else {
+          callback.readFailed(new IOException("Read of Spill File:" + _path + " at:" + _offset + " Failed with Exception:" + CCStringUtils.stringifyException(e)));
+        }
+      }
+    }));
+  }
+
+  /** stop reading. if a read is pending, the file is closed once it completes **/
+  void close() {
+    _closed = true;
+    if (!_readPending) {
+      closeStream();
+    }
+  }
+
+  private void closeStream() {
+    if (_stream != null) {
+      try {
+        _stream.close();
+      }
+      catch (IOException e) {
+        LOG.error(CCStringUtils.stringifyException(e));
+      }
+      _stream = null;
+    }
+  }
+}
@@ -0,0 +1,355 @@
+/**
+ * Copyright 2008 - CommonCrawl Foundation
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ **/
+package org.commoncrawl.service.queryserver.query;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocalFileSystem;
+import org.apache.hadoop.fs.Path;
+import org.commoncrawl.async.EventLoop;
+import org.commoncrawl.rpc.base.internal.AsyncRequest;
+import org.commoncrawl.rpc.base.internal.AsyncRequest.Callback;
+import org.commoncrawl.service.queryserver.Common;
+import org.commoncrawl.service.queryserver.QueryResultsPage;
+import org.commoncrawl.service.queryserver.QueryResultsRequest;
+import org.commoncrawl.service.queryserver.ShardIndexHostNameTuple;
+import org.commoncrawl.service.queryserver.master.QueryServerSlaveState;
+import org.commoncrawl.util.CCStringUtils;
+import org.commoncrawl.util.ImmutableBuffer;
+
+/**
+ * Master side of a streamed query.
+ *
+ * Fetches the result pages of each of the query's shards from the slaves
+ * (the first fetch goes out right after the query is dispatched to a slave,
+ * and is held by the slave until the shard has results), and merges them
+ * into the query's local results file as they arrive. Shards whose results
+ * were too large for the slave to hold are read from their hdfs spill file
+ * instead - the file is opened and read on the server's thread pool, and
+ * each page is merged once it is handed back to the event thread. The
+ * results file is written under a temporary name, and renamed once every
+ * shard has been merged, at which point the query's cached results are
+ * available as usual.
+ *
+ * Runs on the master's event thread.
+ *
+ * @author rana
+ *
+ */
+class StreamedQueryResults {
+
+  private static final Log LOG = LogFactory.getLog(StreamedQueryResults.class);
+
+  private static final String PARTIAL_SUFFIX = ".streaming";
+
+  private static final class ShardState {
+
+    ShardState(int index,int shardId,QueryServerSlaveState slave) {
+      _index = index;
+      _shardId = shardId;
+      _slave = slave;
+    }
+
+    final int                   _index;
+    final int                   _shardId;
+    final QueryServerSlaveState _slave;
+    boolean                     _fetchStarted = false;
+    long                        _offset = 0;
+    long                        _totalBytes = -1;
+    SpilledShardReader          _spillReader = null;
+  }
+
+  private final Query<?,?,?>         _query;
+  private final FileSystem           _remoteFileSystem;
+  private final LocalFileSystem      _localFileSystem;
+  private final EventLoop            _eventLoop;
+  private final ExecutorService      _threadPool;
+  private final StreamedResultMerger _merger;
+  private final ShardState           _shards[];
+  private final Path                 _resultsPath;
+  private final Path                 _partialResultsPath;
+  private OutputStream               _resultsStream = null;
+  private boolean                    _complete = false;
+  private boolean                    _aborted = false;
+  private boolean                    _firstPageChecked = false;
+
+  StreamedQueryResults(Query<?,?,?> query,Map<String,QueryServerSlaveState> slaveToOnlineStateMapping,ArrayList<ShardIndexHostNameTuple> shardIdMapping,
+      FileSystem remoteFileSystem,Configuration conf,EventLoop eventLoop,ExecutorService threadPool,Path resultsPath) throws IOException {
+
+    _query = query;
+    _remoteFileSystem = remoteFileSystem;
+    _localFileSystem = FileSystem.getLocal(conf);
+    _eventLoop = eventLoop;
+    _threadPool = threadPool;
+    _resultsPath = resultsPath;
+    _partialResultsPath = new Path(resultsPath.toString() + PARTIAL_SUFFIX);
+
+    // merge (or concatenate) shards in shard id order
+    ArrayList<ShardIndexHostNameTuple> sortedMapping = new ArrayList<ShardIndexHostNameTuple>(shardIdMapping);
+    Collections.sort(sortedMapping,new Comparator<ShardIndexHostNameTuple>() {
+
+      @Override
+      public int compare(ShardIndexHostNameTuple o1, ShardIndexHostNameTuple o2) {
+        return (o1.getShardId() < o2.getShardId()) ? -1 : (o1.getShardId() > o2.getShardId()) ? 1 : 0;
+      }
+    });
+
+    _shards = new ShardState[sortedMapping.size()];
+    for (int i=0;i<_shards.length;++i) {
+      ShardIndexHostNameTuple tuple = sortedMapping.get(i);
+      QueryServerSlaveState slave = slaveToOnlineStateMapping.get(tuple.getHostName());
+      if (slave == null) {
+        throw new IOException("Failed to map host:" + tuple.getHostName() + " to OnlineState!");
+      }
+      _shards[i] = new ShardState(i,tuple.getShardId(),slave);
+    }
+    _merger = new StreamedResultMerger(_shards.length,query.getStreamedRecordSize(),query.getStreamedRecordComparator());
+
+    // results are written via the raw file system, so that the partial file can be read while it grows
+    _localFileSystem.delete(_partialResultsPath,false);
+    _resultsStream = new BufferedOutputStream(_localFileSystem.getRawFileSystem().create(_partialResultsPath),64 * 1024);
+  }
+
+  /** true until the results are complete, or streaming failed **/
+  boolean isActive() {
+    return !_complete && !_aborted;
+  }
+
+  /** the query was dispatched to the given slave - start fetching its shards' results **/
+  void slaveDispatched(String hostName) {
+    for (ShardState shard : _shards) {
+      if (isActive() && !shard._fetchStarted && shard._slave.getHostName().equals(hostName)) {
+        shard._fetchStarted = true;
+        fetchNextPage(shard);
+      }
+    }
+  }
+
+  /** stop streaming without notifying the query **/
+  void cancel() {
+    if (isActive()) {
+      _aborted = true;
+      cleanup();
+    }
+  }
+
+  private void fetchNextPage(final ShardState shard) {
+    QueryResultsRequest request = new QueryResultsRequest();
+
+    request.setQueryId(_query.getQueryId());
+    request.setShardId(shard._shardId);
+    request.setOffset(shard._offset);
+    request.setMaxBytes(Common.STREAMED_RESULTS_PAGE_SIZE);
+
+    try {
+      shard._slave.getRemoteStub().getQueryResults(request,new Callback<QueryResultsRequest,QueryResultsPage>() {
+
+        @Override
+        public void requestComplete(AsyncRequest<QueryResultsRequest,QueryResultsPage> request) {
+          if (isActive()) {
+            if (request.getStatus() != AsyncRequest.Status.Success) {
+              abort("Results Fetch for Shard:" + shard._shardId + " from Slave:" + shard._slave.getFullyQualifiedName() + " Failed with RPC Status:" + request.getStatus());
+            }
+            else {
+              pageReceived(shard,request.getOutput());
+            }
+          }
+        }
+      });
+    }
+    catch (IOException e) {
+      abort("Results Fetch for Shard:" + shard._shardId + " from Slave:" + shard._slave.getFullyQualifiedName() + " Failed with Exception:" + CCStringUtils.stringifyException(e));
+    }
+  }
+
+  private void pageReceived(ShardState shard,QueryResultsPage page) {
+    try {
+      if (page.getStatus() == QueryResultsPage.Status.OK) {
+        if (page.getOffset() != shard._offset) {
+          throw new IOException("Expected Page at Offset:" + shard._offset + " for Shard:" + shard._shardId + " Got:" + page.getOffset());
+        }
+        shard._totalBytes = page.getTotalBytes();
+
+        ImmutableBuffer data = page.getData();
+        _merger.add(shard._index,data.getReadOnlyBytes(),data.getOffset(),data.getCount());
+        shard._offset += data.getCount();
+
+        if (page.getDone()) {
+          if (shard._offset != shard._totalBytes) {
+            throw new IOException("Shard:" + shard._shardId + " ended at:" + shard._offset + " Expected:" + shard._totalBytes);
+          }
+          _merger.finish(shard._index);
+        }
+        else {
+          fetchNextPage(shard);
+        }
+      }
+      else if (page.getStatus() == QueryResultsPage.Status.SPILLED) {
+        LOG.info("Query:" + _query.getQueryId() + " Shard:" + shard._shardId + " Spilled:" + page.getTotalBytes() + " bytes to HDFS");
+        shard._totalBytes = page.getTotalBytes();
+        shard._spillReader = new SpilledShardReader(_remoteFileSystem,_query.getStreamedResultsSpillPath(shard._shardId),shard._totalBytes,
+            Common.STREAMED_RESULTS_PAGE_SIZE,_threadPool,_eventLoop);
+      }
+      else {
+        throw new IOException("Slave:" + shard._slave.getFullyQualifiedName() + " Failed to return Results for Shard:" + shard._shardId
+            + " Status:" + QueryResultsPage.Status.toString(page.getStatus()) + " Reason:" + page.getOptErrorReason());
+      }
+      pump();
+    }
+    catch (IOException e) {
+      abort(CCStringUtils.stringifyException(e));
+    }
+  }
+
+  private void pump() throws IOException {
+    _merger.merge(_resultsStream);
+
+    if (_merger.isDone()) {
+      complete();
+    }
+    else {
+      checkFirstPage();
+      readSpilledShards();
+    }
+  }
+
+  /** start a page read for every spilled shard the merge is waiting on (the page is merged when the read completes) **/
+  private void readSpilledShards() {
+    for (final ShardState shard : _shards) {
+      if (shard._spillReader != null && !shard._spillReader.isReadPending() && _merger.needsInput(shard._index)) {
+        shard._spillReader.readNextPage(new SpilledShardReader.Callback() {
+
+          @Override
+          public void pageRead(byte[] data,int length) {
+            if (isActive()) {
+              try {
+                _merger.add(shard._index,data,0,length);
+                shard._offset += length;
+                if (shard._spillReader.isExhausted()) {
+                  shard._spillReader = null;
+                  _merger.finish(shard._index);
+                }
+                pump();
+              }
+              catch (IOException e) {
+                abort(CCStringUtils.stringifyException(e));
+              }
+            }
+          }
+
+          @Override
+          public void readFailed(IOException e) {
+            abort("Spill Read for Shard:" + shard._shardId + " Failed with Error:" + e.getMessage());
+          }
+        });
+      }
+    }
+  }
+
+  /**
+   * once the total result count is known, and the leading records needed
+   * for the client's page have been merged, hand the partial results to the
+   * query to serve the page early.
+   */
+  private void checkFirstPage() throws IOException {
+    if (_firstPageChecked || !_query.hasStreamedPageCallback()) {
+      return;
+    }
+    long totalBytes = 0;
+    for (ShardState shard : _shards) {
+      if (shard._totalBytes == -1) {
+        return;
+      }
+      totalBytes += shard._totalBytes;
+    }
+    long totalRecordCount = totalBytes / _merger.getRecordSize();
+    long recordsNeeded = _query.getRecordsNeededForPage(_query.getClientQueryInfo(),totalRecordCount);
+    if (recordsNeeded >= totalRecordCount) {
+      // the page needs all the results anyway
+      _firstPageChecked = true;
+    }
+    else if (_merger.getMergedCount() >= recordsNeeded) {
+      _firstPageChecked = true;
+      _resultsStream.flush();
+      LOG.info("Query:" + _query.getQueryId() + " Serving First Page from:" + _merger.getMergedCount() + " of:" + totalRecordCount + " Streamed Results");
+      _query.startStreamedPageQuery(_localFileSystem.getRawFileSystem().open(_partialResultsPath),totalRecordCount);
+    }
+  }
+
+  private void complete() throws IOException {
+    _complete = true;
+
+    _resultsStream.close();
+    _resultsStream = null;
+
+    _localFileSystem.delete(_resultsPath,false);
+    if (!_localFileSystem.rename(_partialResultsPath,_resultsPath)) {
+      throw new IOException("Failed to rename:" + _partialResultsPath + " to:" + _resultsPath);
+    }
+    LOG.info("Query:" + _query.getQueryId() + " Streamed:" + _merger.getMergedCount() + " Results to:" + _resultsPath);
+
+    // record counts by host
+    Map<String,Long> recordCounts = new HashMap<String,Long>();
+    for (ShardState shard : _shards) {
+      Long count = recordCounts.get(shard._slave.getHostName());
+      long shardRecords = shard._totalBytes / _merger.getRecordSize();
+      recordCounts.put(shard._slave.getHostName(),(count == null) ? shardRecords : count + shardRecords);
+    }
+    _query.streamedResultsComplete(recordCounts);
+  }
+
+  private void abort(String reason) {
+    if (isActive()) {
+      LOG.error("Streaming Results for Query:" + _query.getQueryId() + " Failed with Error:" + reason);
+      _aborted = true;
+      cleanup();
+      _query.streamedResultsFailed(reason);
+    }
+  }
+
+  private void cleanup() {
+    try {
+      if (_resultsStream != null) {
+        _resultsStream.close();
+        _resultsStream = null;
+      }
+      _localFileSystem.delete(_partialResultsPath,false);
+    }
+    catch (IOException e) {
+      LOG.error(CCStringUtils.stringifyException(e));
+    }
+    for (ShardState shard : _shards) {
+      if (shard._spillReader != null) {
+        shard._spillReader.close();
+        shard._spillReader = null;
+      }
+    }
+  }
+}
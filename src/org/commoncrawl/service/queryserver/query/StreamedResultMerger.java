@@ -0,0 +1,196 @@
+/**
+ * Copyright 2008 - CommonCrawl Foundation
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ **/
+package org.commoncrawl.service.queryserver.query;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Incrementally merges the sorted, fixed width record streams of a query's
+ * shards as they arrive (in arbitrarily sized chunks) at the master.
+ *
+ * With a comparator, the shards are k-way merged, and a record is emitted as
+ * soon as every shard that is still streaming has at least one record
+ * buffered. Without one, the shards are concatenated in shard order. Either
+ * way, a prefix of the final results is written out long before the last
+ * shard finishes. Not thread safe.
+ *
+ * @author rana
+ *
+ */
+public class StreamedResultMerger {
+
+  /** compares the records starting at the given offsets **/
+  public interface RecordComparator {
+    int compare(byte[] data1,int offset1,byte[] data2,int offset2);
+  }
+
+  private static final byte[] EMPTY = new byte[0];
+
+  private static final class ShardBuffer {
+    byte[]  _data = EMPTY;
+    int     _start = 0;
+    int     _end = 0;
+    boolean _finished = false;
+
+    int available() { return _end - _start; }
+  }
+
+  private final int              _recordSize;
+  private final RecordComparator _comparator;
+  private final ShardBuffer      _shards[];
+  private long                   _mergedCount = 0;
+  // the shard being drained (concatenation only)
+  private int                    _currentShard = 0;
+
+  public StreamedResultMerger(int shardCount,int recordSize,RecordComparator comparator) {
+    if (shardCount <= 0 || recordSize <= 0) {
+      throw new IllegalArgumentException("Invalid Shard Count:" + shardCount + " or Record Size:" + recordSize);
+    }
+    _recordSize = recordSize;
+    _comparator = comparator;
+    _shards = new ShardBuffer[shardCount];
+    for (int i=0;i<shardCount;++i) {
+      _shards[i] = new ShardBuffer();
+    }
+  }
+
+  public int getShardCount() { return _shards.length; }
+
+  public int getRecordSize() { return _recordSize; }
+
+  /** number of records merged so far **/
+  public long getMergedCount() { return _mergedCount; }
+
+  /** append data to a shard's stream (a chunk need not end on a record boundary) **/
+  public void add(int shard,byte[] data,int offset,int length) {
+    ShardBuffer buffer = _shards[shard];
+    if (buffer._finished) {
+      throw new IllegalStateException("Shard:" + shard + " is already finished");
+    }
+    if (buffer._data.length - buffer._end < length) {
+      int available = buffer.available();
+      if (buffer._data.length - available < length) {
+        byte newData[] = new byte[Math.max(available + length,buffer._data.length * 2)];
+        System.arraycopy(buffer._data,buffer._start,newData,0,available);
+        buffer._data = newData;
+      }
+      else {
+        System.arraycopy(buffer._data,buffer._start,buffer._data,0,available);
+      }
+      buffer._start = 0;
+      buffer._end = available;
+    }
+    System.arraycopy(data,offset,buffer._data,buffer._end,length);
+    buffer._end += length;
+  }
+
+  /** mark the end of a shard's stream **/
+  public void finish(int shard) throws IOException {
+    ShardBuffer buffer = _shards[shard];
+    if (buffer.available() % _recordSize != 0) {
+      throw new IOException("Shard:" + shard + " ended with a partial record");
+    }
+    buffer._finished = true;
+  }
+
+  public boolean isFinished(int shard) {
+    return _shards[shard]._finished;
+  }
+
+  /** true if the merge can't make progress without more data from the given shard **/
+  public boolean needsInput(int shard) {
+    ShardBuffer buffer = _shards[shard];
+    if (buffer._finished || buffer.available() >= _recordSize) {
+      return false;
+    }
+    return _comparator != null || shard == _currentShard;
+  }
+
+  /** true once every shard is finished and all records have been merged **/
+  public boolean isDone() {
+    for (ShardBuffer buffer : _shards) {
+      if (!buffer._finished || buffer.available() != 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** write out every record whose position in the merged order is final. returns the number of records written **/
+  public int merge(OutputStream out) throws IOException {
+    int recordsOut = (_comparator == null) ? concatenate(out) : mergeSorted(out);
+    _mergedCount += recordsOut;
+    return recordsOut;
+  }
+
+  private int concatenate(OutputStream out) throws IOException {
+    int recordsOut = 0;
+    while (_currentShard < _shards.length) {
+      ShardBuffer buffer = _shards[_currentShard];
+      int length = buffer.available() - (buffer.available() % _recordSize);
+      if (length != 0) {
+        out.write(buffer._data,buffer._start,length);
+        consume(buffer,length);
+        recordsOut += length / _recordSize;
+      }
+      if (!buffer._finished) {
+        break;
+      }
+      buffer._data = EMPTY;
+      _currentShard++;
+    }
+    return recordsOut;
+  }
+
+  private int mergeSorted(OutputStream out) throws IOException {
+    int recordsOut = 0;
+    while (true) {
+      ShardBuffer next = null;
+      for (ShardBuffer buffer : _shards) {
+        if (buffer.available() < _recordSize) {
+          if (!buffer._finished) {
+            // the next record may yet come from this shard
+            return recordsOut;
+          }
+        }
+        // strictly less than, so ties go to the lower shard
+        else if (next == null || _comparator.compare(buffer._data,buffer._start,next._data,next._start) < 0) {
+          next = buffer;
+        }
+      }
+      if (next == null) {
+        return recordsOut;
+      }
+      out.write(next._data,next._start,_recordSize);
+      consume(next,_recordSize);
+      recordsOut++;
+    }
+  }
+
+  private static void consume(ShardBuffer buffer,int length) {
+    buffer._start += length;
+    if (buffer._start == buffer._end) {
+      buffer._start = 0;
+      buffer._end = 0;
+      if (buffer._finished) {
+        buffer._data = EMPTY;
+      }
+    }
+  }
+}
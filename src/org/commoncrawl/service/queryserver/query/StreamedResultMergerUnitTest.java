@@ -0,0 +1,443 @@
+/**
+ * Copyright 2008 - CommonCrawl Foundation
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ **/
+package org.commoncrawl.service.queryserver.query;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FilterFileSystem;
+import org.apache.hadoop.fs.Path;
+import org.commoncrawl.async.EventLoop;
+import org.commoncrawl.async.Timer;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Checks StreamedResultMerger's k-way merge and concatenation of shard
+ * streams arriving in arbitrary chunks, and the handoff of spill file pages
+ * read on a thread pool (via SpilledShardReader) back to the event thread.
+ *
+ * @author rana
+ *
+ */
+public class StreamedResultMergerUnitTest {
+
+  /** a record is a long key followed by the number of the shard it came from **/
+  private static final int RECORD_SIZE = 12;
+
+  private static final StreamedResultMerger.RecordComparator KEY_COMPARATOR = new StreamedResultMerger.RecordComparator() {
+
+    @Override
+    public int compare(byte[] data1,int offset1,byte[] data2,int offset2) {
+      long key1 = readLong(data1,offset1);
+      long key2 = readLong(data2,offset2);
+      return (key1 < key2) ? -1 : (key1 > key2) ? 1 : 0;
+    }
+  };
+
+  private static long readLong(byte[] data,int offset) {
+    long value = 0;
+    for (int i=0;i<8;++i) {
+      value = (value << 8) | (data[offset + i] & 0xff);
+    }
+    return value;
+  }
+
+  /** a shard's records, sorted by key (with duplicates) **/
+  private static byte[] shardRecords(Random random,int shard,int recordCount) throws IOException {
+    long keys[] = new long[recordCount];
+    for (int i=0;i<recordCount;++i) {
+      keys[i] = random.nextInt(recordCount * 2);
+    }
+    Arrays.sort(keys);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    for (long key : keys) {
+      out.writeLong(key);
+      out.writeInt(shard);
+    }
+    return bytes.toByteArray();
+  }
+
+  /** the records of all the shards, stably sorted by key (so ties are in shard order) **/
+  private static byte[] expectedMerge(byte[][] shards) throws IOException {
+    ArrayList<long[]> records = new ArrayList<long[]>();
+    for (byte[] shard : shards) {
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(shard));
+      for (int i=0;i<shard.length / RECORD_SIZE;++i) {
+        records.add(new long[] { in.readLong(),in.readInt() });
+      }
+    }
+    Collections.sort(records,new Comparator<long[]>() {
+
+      @Override
+      public int compare(long[] o1,long[] o2) {
+        return (o1[0] < o2[0]) ? -1 : (o1[0] > o2[0]) ? 1 : 0;
+      }
+    });
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    for (long[] record : records) {
+      out.writeLong(record[0]);
+      out.writeInt((int)record[1]);
+    }
+    return bytes.toByteArray();
+  }
+
+  private static byte[] concatenate(byte[][] shards) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    for (byte[] shard : shards) {
+      bytes.write(shard,0,shard.length);
+    }
+    return bytes.toByteArray();
+  }
+
+  /** feed the shards to the merger in random sized chunks, in random shard order, merging as we go **/
+  private static byte[] feed(Random random,byte[][] shards,StreamedResultMerger merger) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    int offsets[] = new int[shards.length];
+    int unfinished = shards.length;
+    while (unfinished != 0) {
+      int shard = random.nextInt(shards.length);
+      if (merger.isFinished(shard)) {
+        continue;
+      }
+      int length = Math.min(random.nextInt(RECORD_SIZE * 5),shards[shard].length - offsets[shard]);
+      merger.add(shard,shards[shard],offsets[shard],length);
+      offsets[shard] += length;
+      if (offsets[shard] == shards[shard].length) {
+        merger.finish(shard);
+        unfinished--;
+      }
+      long mergedBefore = merger.getMergedCount();
+      int recordsOut = merger.merge(out);
+      Assert.assertEquals(mergedBefore + recordsOut,merger.getMergedCount());
+      Assert.assertEquals(merger.getMergedCount() * RECORD_SIZE,out.size());
+    }
+    Assert.assertTrue(merger.isDone());
+    return out.toByteArray();
+  }
+
+  @Test
+  public void testMergeSorted() throws Exception {
+    Random random = new Random(1);
+    for (int trial=0;trial<200;++trial) {
+      byte[][] shards = new byte[1 + random.nextInt(6)][];
+      for (int i=0;i<shards.length;++i) {
+        // including empty shards
+        shards[i] = shardRecords(random,i,random.nextInt(50));
+      }
+      StreamedResultMerger merger = new StreamedResultMerger(shards.length,RECORD_SIZE,KEY_COMPARATOR);
+      Assert.assertArrayEquals(expectedMerge(shards),feed(random,shards,merger));
+    }
+  }
+
+  @Test
+  public void testMergeEmitsBeforeShardsFinish() throws Exception {
+    StreamedResultMerger merger = new StreamedResultMerger(2,RECORD_SIZE,KEY_COMPARATOR);
+    byte[] shard0 = shardRecords(new Random(2),0,10);
+    byte[] shard1 = shardRecords(new Random(3),1,10);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    // nothing can go out until every unfinished shard has a record
+    merger.add(0,shard0,0,shard0.length);
+    Assert.assertEquals(0,merger.merge(out));
+    Assert.assertTrue(merger.needsInput(1));
+    Assert.assertFalse(merger.needsInput(0));
+
+    // a partial record isn't enough either
+    merger.add(1,shard1,0,RECORD_SIZE - 1);
+    Assert.assertEquals(0,merger.merge(out));
+    Assert.assertTrue(merger.needsInput(1));
+
+    // once shard 1 has a record, everything up to its key is final
+    merger.add(1,shard1,RECORD_SIZE - 1,1);
+    Assert.assertTrue(merger.merge(out) > 0);
+    Assert.assertFalse(merger.isDone());
+    merger.add(1,shard1,RECORD_SIZE,shard1.length - RECORD_SIZE);
+    merger.finish(0);
+    merger.finish(1);
+    merger.merge(out);
+    Assert.assertTrue(merger.isDone());
+    Assert.assertArrayEquals(expectedMerge(new byte[][] { shard0,shard1 }),out.toByteArray());
+  }
+
+  @Test
+  public void testConcatenate() throws Exception {
+    Random random = new Random(4);
+    for (int trial=0;trial<200;++trial) {
+      byte[][] shards = new byte[1 + random.nextInt(6)][];
+      for (int i=0;i<shards.length;++i) {
+        shards[i] = shardRecords(random,i,random.nextInt(50));
+      }
+      StreamedResultMerger merger = new StreamedResultMerger(shards.length,RECORD_SIZE,null);
+      Assert.assertArrayEquals(concatenate(shards),feed(random,shards,merger));
+    }
+
+    // only the shard being drained needs input
+    StreamedResultMerger merger = new StreamedResultMerger(3,RECORD_SIZE,null);
+    Assert.assertTrue(merger.needsInput(0));
+    Assert.assertFalse(merger.needsInput(1));
+    byte[] shard1 = shardRecords(random,1,5);
+    merger.add(1,shard1,0,shard1.length);
+    merger.finish(1);
+    Assert.assertEquals(0,merger.merge(new ByteArrayOutputStream()));
+    merger.finish(0);
+    Assert.assertEquals(5,merger.merge(new ByteArrayOutputStream()));
+    Assert.assertTrue(merger.needsInput(2));
+  }
+
+  @Test
+  public void testPartialRecordAtFinish() throws Exception {
+    StreamedResultMerger merger = new StreamedResultMerger(1,RECORD_SIZE,KEY_COMPARATOR);
+    merger.add(0,new byte[RECORD_SIZE + 1],0,RECORD_SIZE + 1);
+    try {
+      merger.finish(0);
+      Assert.fail();
+    }
+    catch (IOException e) {
+    }
+  }
+
+  /** the local file system, noting the threads the spill file is opened on **/
+  private static final class ThreadRecordingFileSystem extends FilterFileSystem {
+
+    final ArrayList<Thread> _openThreads = new ArrayList<Thread>();
+
+    ThreadRecordingFileSystem(FileSystem fs) {
+      super(fs);
+    }
+
+    @Override
+    public FSDataInputStream open(Path f,int bufferSize) throws IOException {
+      synchronized (_openThreads) {
+        _openThreads.add(Thread.currentThread());
+      }
+      return super.open(f,bufferSize);
+    }
+  }
+
+  private static File writeSpillFile(byte[] data) throws IOException {
+    File file = File.createTempFile("StreamedResultMergerUnitTest",".spill");
+    file.deleteOnExit();
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(data);
+    }
+    finally {
+      out.close();
+    }
+    return file;
+  }
+
+  /** as the master does it: one shard's results arrive as rpc pages, the other's are read from its spill file **/
+  @Test
+  public void testSpillThenPageHandoff() throws Exception {
+    Random random = new Random(5);
+    final byte[][] shards = { shardRecords(random,0,500),shardRecords(random,1,2000) };
+    File spillFile = writeSpillFile(shards[1]);
+
+    final EventLoop eventLoop = new EventLoop();
+    ExecutorService threadPool = Executors.newFixedThreadPool(2);
+    ThreadRecordingFileSystem fileSystem = new ThreadRecordingFileSystem(FileSystem.getLocal(new Configuration()));
+    eventLoop.start();
+    try {
+      final StreamedResultMerger merger = new StreamedResultMerger(2,RECORD_SIZE,KEY_COMPARATOR);
+      // a page size that splits records
+      final SpilledShardReader reader = new SpilledShardReader(fileSystem,new Path(spillFile.getAbsolutePath()),shards[1].length,
+          RECORD_SIZE * 7 + 5,threadPool,eventLoop);
+      final ByteArrayOutputStream out = new ByteArrayOutputStream();
+      final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+      final CountDownLatch done = new CountDownLatch(1);
+
+      final Runnable pump = new Runnable() {
+
+        int _pageOffset = 0;
+
+        @Override
+        public void run() {
+          try {
+            Assert.assertSame(eventLoop.getEventThread(),Thread.currentThread());
+            merger.merge(out);
+            if (merger.isDone()) {
+              done.countDown();
+              return;
+            }
+            if (merger.needsInput(0)) {
+              // the next rpc page
+              int length = Math.min(RECORD_SIZE * 3 + 1,shards[0].length - _pageOffset);
+              merger.add(0,shards[0],_pageOffset,length);
+              _pageOffset += length;
+              if (_pageOffset == shards[0].length) {
+                merger.finish(0);
+              }
+              eventLoop.setTimer(new Timer(0,false,new Timer.Callback() {
+
+                @Override
+                public void timerFired(Timer timer) {
+                  run();
+                }
+              }));
+            }
+            if (!merger.isFinished(1) && !reader.isReadPending() && merger.needsInput(1)) {
+              final Runnable pump = this;
+              reader.readNextPage(new SpilledShardReader.Callback() {
+
+                @Override
+                public void pageRead(byte[] data,int length) {
+                  try {
+                    Assert.assertSame(eventLoop.getEventThread(),Thread.currentThread());
+                    merger.add(1,data,0,length);
+                    if (reader.isExhausted()) {
+                      merger.finish(1);
+                    }
+                    pump.run();
+                  }
+                  catch (Throwable e) {
+                    failure.set(e);
+                    done.countDown();
+                  }
+                }
+
+                @Override
+                public void readFailed(IOException e) {
+                  failure.set(e);
+                  done.countDown();
+                }
+              });
+            }
+          }
+          catch (Throwable e) {
+            failure.set(e);
+            done.countDown();
+          }
+        }
+      };
+      eventLoop.setTimer(new Timer(0,false,new Timer.Callback() {
+
+        @Override
+        public void timerFired(Timer timer) {
+          pump.run();
+        }
+      }));
+
+      Assert.assertTrue(done.await(60,TimeUnit.SECONDS));
+      if (failure.get() != null) {
+        throw new AssertionError(failure.get());
+      }
+      Assert.assertArrayEquals(expectedMerge(shards),out.toByteArray());
+      Assert.assertEquals(shards[1].length,reader.getOffset());
+      // the spill file was opened once, and not on the event thread
+      Assert.assertEquals(1,fileSystem._openThreads.size());
+      Assert.assertNotSame(eventLoop.getEventThread(),fileSystem._openThreads.get(0));
+    }
+    finally {
+      eventLoop.stop();
+      threadPool.shutdown();
+      spillFile.delete();
+    }
+  }
+
+  @Test
+  public void testCloseWhileReadPending() throws Exception {
+    File spillFile = writeSpillFile(shardRecords(new Random(6),0,100));
+    EventLoop eventLoop = new EventLoop();
+    ExecutorService threadPool = Executors.newSingleThreadExecutor();
+    eventLoop.start();
+    try {
+      final SpilledShardReader reader = new SpilledShardReader(FileSystem.getLocal(new Configuration()),new Path(spillFile.getAbsolutePath()),
+          spillFile.length(),RECORD_SIZE * 10,threadPool,eventLoop);
+      final CountDownLatch readIssued = new CountDownLatch(1);
+      final CountDownLatch blocker = new CountDownLatch(1);
+      final AtomicBoolean callbackFired = new AtomicBoolean(false);
+      // hold up the pool, so the read is still pending when the reader is closed
+      threadPool.execute(new Runnable() {
+
+        @Override
+        public void run() {
+          try {
+            blocker.await();
+          }
+          catch (InterruptedException e) {
+          }
+        }
+      });
+      eventLoop.setTimer(new Timer(0,false,new Timer.Callback() {
+
+        @Override
+        public void timerFired(Timer timer) {
+          reader.readNextPage(new SpilledShardReader.Callback() {
+
+            @Override
+            public void pageRead(byte[] data,int length) {
+              callbackFired.set(true);
+            }
+
+            @Override
+            public void readFailed(IOException e) {
+              callbackFired.set(true);
+            }
+          });
+          Assert.assertTrue(reader.isReadPending());
+          reader.close();
+          readIssued.countDown();
+        }
+      }));
+      Assert.assertTrue(readIssued.await(60,TimeUnit.SECONDS));
+      blocker.countDown();
+      threadPool.shutdown();
+      Assert.assertTrue(threadPool.awaitTermination(60,TimeUnit.SECONDS));
+
+      // the completion is posted to the event loop - wait for it to run
+      final CountDownLatch drained = new CountDownLatch(1);
+      eventLoop.setTimer(new Timer(100,false,new Timer.Callback() {
+
+        @Override
+        public void timerFired(Timer timer) {
+          drained.countDown();
+        }
+      }));
+      Assert.assertTrue(drained.await(60,TimeUnit.SECONDS));
+      Assert.assertFalse(reader.isReadPending());
+      Assert.assertFalse(callbackFired.get());
+    }
+    finally {
+      eventLoop.stop();
+      spillFile.delete();
+    }
+  }
+}
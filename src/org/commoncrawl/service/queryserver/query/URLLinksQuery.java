@@ -18,6 +18,7 @@
 
 package org.commoncrawl.service.queryserver.query;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.text.NumberFormat;
@@ -476,6 +477,21 @@ public class URLLinksQuery extends Query<URLLinkDetailQueryInfo,Writable,Writabl
     // ok, if the stream is valid ... 
     long recordCount = 0;
     
+    if (isStreamingResults(myShardIndex)) { 
+      // decode the fingerprint list into fixed width records here, rather than on the master
+      DataOutputBuffer recordsOut = new DataOutputBuffer();
+      if (linkDataOut != null && linkDataOut.getCount() != 0) { 
+        CompressedURLFPListV2.Reader reader = new CompressedURLFPListV2.Reader(new ByteArrayInputStream(linkDataOut.get(),linkDataOut.getOffset(),linkDataOut.getCount()));
+        while (reader.hasNext()) { 
+          URLFPV2 fingerprint = reader.next();
+          recordsOut.writeLong(fingerprint.getDomainHash());
+          recordsOut.writeLong(fingerprint.getUrlHash());
+        }
+      }
+      streamResults(fileSystem,myShardIndex,recordsOut.getData(),0,recordsOut.getLength());
+      return recordsOut.getLength() / FP_RECORD_SIZE;
+    }
+    
   	// ok create output stream 
   	Path remoteFilePath = new Path(getHDFSQueryResultsPath(),getPartNameForSlave(myShardIndex));
   	
@@ -557,6 +573,36 @@ public class URLLinksQuery extends Query<URLLinkDetailQueryInfo,Writable,Writabl
   }  
   
   static final int FP_RECORD_SIZE = 16;
+  
+  @Override
+  protected int getStreamedRecordSize() {
+    // the by domain queries need all the results to build their domain index 
+    if (getQueryData().getQueryType() == URLLinkDetailQueryInfo.QueryType.LINKS_QUERY || getQueryData().getQueryType() == URLLinkDetailQueryInfo.QueryType.INVERSE_QUERY) { 
+      return FP_RECORD_SIZE;
+    }
+    return 0;
+  }
+  
+  @Override
+  protected Path getStreamedResultsCachePath(QueryRequest<URLLinkDetailQueryInfo,Writable,Writable> theClientRequest) throws IOException {
+    return new Path(getLocalQueryResultsPathPrefix(theClientRequest)+"DATA");
+  }
+  
+  @Override
+  protected void getStreamedResultsPage(DatabaseIndexV2.MasterDatabaseIndex masterIndex,QueryRequest<URLLinkDetailQueryInfo,Writable,Writable> theClientRequest,FSDataInputStream partialResults,long totalRecordCount,QueryCompletionCallback<URLLinkDetailQueryInfo,Writable,Writable> callback) throws IOException {
+    QueryResult<Writable,Writable> resultOut = new QueryResult<Writable,Writable>(); 
+    
+    readPaginatedResults(
+        masterIndex, 
+        partialResults, totalRecordCount * FP_RECORD_SIZE,
+        theClientRequest.getClientQueryInfo().getSortOrder(),
+        theClientRequest.getClientQueryInfo().getPaginationOffset(),
+        theClientRequest.getClientQueryInfo().getPageSize(),
+        resultOut);
+    
+    callback.queryComplete(theClientRequest,resultOut);
+  }
+  
   private static void readPaginatedResults(final DatabaseIndexV2.MasterDatabaseIndex masterIndex,FSDataInputStream inputStream,long length,int sortOrder,int pageNumber,int pageSize,QueryResult<Writable,Writable> resultOut) throws IOException { 
 	  // if descending sort order ... 
 	  // take pageNumber * pageSize as starting point
@@ -0,0 +1,196 @@
+/**
+ * Copyright 2008 - CommonCrawl Foundation
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ **/
+package org.commoncrawl.service.queryserver.slave;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.commoncrawl.rpc.base.internal.AsyncContext;
+import org.commoncrawl.rpc.base.shared.RPCException;
+import org.commoncrawl.service.queryserver.Common;
+import org.commoncrawl.service.queryserver.QueryResultsPage;
+import org.commoncrawl.service.queryserver.QueryResultsRequest;
+import org.commoncrawl.util.FlexBuffer;
+
+/**
+ * The results of one shard of a streamed query, held by the slave until the
+ * master has fetched them (via getQueryResults).
+ *
+ * The stream is created when the query arrives, so a fetch that comes in
+ * before the query has produced its results is parked, and answered as soon
+ * as the results are set (or spilled, or the query fails). The master issues
+ * its first fetch right after dispatching the query, so in effect the slave
+ * pushes the first page the moment it has it.
+ *
+ * Results are set from the query thread. Requests are parked and answered on
+ * the server's event thread.
+ *
+ * @author rana
+ *
+ */
+public class ShardResultStream {
+
+  private static final Log LOG = LogFactory.getLog(ShardResultStream.class);
+
+  private enum State {
+    PENDING,
+    READY,
+    SPILLED,
+    FAILED
+  }
+
+  private final long _queryId;
+  private final int  _shardId;
+  private State      _state = State.PENDING;
+  private byte[]     _data;
+  private int        _dataOffset;
+  private int        _dataLength;
+  private long       _totalBytes;
+  private String     _errorReason;
+  // set once the last page (or the spill or failure notice) has been sent
+  private boolean    _exhausted = false;
+  private long       _lastAccessTime = System.currentTimeMillis();
+  private LinkedList<AsyncContext<QueryResultsRequest,QueryResultsPage>> _pendingRequests = new LinkedList<AsyncContext<QueryResultsRequest,QueryResultsPage>>();
+
+  public ShardResultStream(long queryId,int shardId) {
+    _queryId = queryId;
+    _shardId = shardId;
+  }
+
+  public long getQueryId() { return _queryId; }
+  public int  getShardId() { return _shardId; }
+
+  public synchronized boolean isPending() { return _state == State.PENDING; }
+  public synchronized boolean isExhausted() { return _exhausted; }
+  public synchronized boolean hasPendingRequests() { return _pendingRequests.size() != 0; }
+  public synchronized long getLastAccessTime() { return _lastAccessTime; }
+
+  /** set the shard's results (the array is referenced, not copied) **/
+  public synchronized void setResults(byte[] data,int offset,int length) {
+    if (_state == State.PENDING) {
+      _data = (data != null) ? data : new byte[0];
+      _dataOffset = offset;
+      _dataLength = length;
+      _totalBytes = length;
+      _state = State.READY;
+      _lastAccessTime = System.currentTimeMillis();
+    }
+  }
+
+  /** the shard's results were written to hdfs instead **/
+  public synchronized void setSpilled(long totalBytes) {
+    if (_state == State.PENDING) {
+      _totalBytes = totalBytes;
+      _state = State.SPILLED;
+      _lastAccessTime = System.currentTimeMillis();
+    }
+  }
+
+  /** fail the stream (if its results have not been set yet) **/
+  public synchronized void setFailed(String reason) {
+    if (_state == State.PENDING) {
+      _errorReason = reason;
+      _state = State.FAILED;
+    }
+  }
+
+  /** answer a page request, or park it until results are available (event thread) **/
+  public void requestPage(AsyncContext<QueryResultsRequest,QueryResultsPage> rpcContext) {
+    synchronized (this) {
+      _lastAccessTime = System.currentTimeMillis();
+      if (_state == State.PENDING) {
+        _pendingRequests.add(rpcContext);
+        return;
+      }
+    }
+    sendPage(rpcContext);
+  }
+
+  /** answer parked requests, if the stream is no longer pending (event thread) **/
+  public void servicePendingRequests() {
+    ArrayList<AsyncContext<QueryResultsRequest,QueryResultsPage>> requests;
+    synchronized (this) {
+      if (_state == State.PENDING || _pendingRequests.size() == 0) {
+        return;
+      }
+      requests = new ArrayList<AsyncContext<QueryResultsRequest,QueryResultsPage>>(_pendingRequests);
+      _pendingRequests.clear();
+    }
+    for (AsyncContext<QueryResultsRequest,QueryResultsPage> request : requests) {
+      sendPage(request);
+    }
+  }
+
+  private void sendPage(AsyncContext<QueryResultsRequest,QueryResultsPage> rpcContext) {
+    QueryResultsRequest request = rpcContext.getInput();
+    QueryResultsPage    page    = rpcContext.getOutput();
+
+    page.setQueryId(_queryId);
+    page.setShardId(_shardId);
+    page.setOffset(request.getOffset());
+
+    synchronized (this) {
+      if (_state == State.READY) {
+        if (request.getOffset() < 0 || request.getOffset() > _dataLength) {
+          page.setStatus(QueryResultsPage.Status.ERROR);
+          page.setOptErrorReason("Invalid Offset:" + request.getOffset() + " for Shard:" + _shardId + " of Query:" + _queryId);
+        }
+        else {
+          int maxBytes = Common.STREAMED_RESULTS_PAGE_SIZE;
+          if (request.getMaxBytes() > 0) {
+            maxBytes = Math.min(maxBytes,request.getMaxBytes());
+          }
+          int pageOffset = (int) request.getOffset();
+          int pageLength = Math.min(_dataLength - pageOffset,maxBytes);
+
+          page.setStatus(QueryResultsPage.Status.OK);
+          page.setTotalBytes(_totalBytes);
+          page.setData(new FlexBuffer(_data,_dataOffset + pageOffset,pageLength));
+          page.setDone(pageOffset + pageLength == _dataLength);
+          if (page.getDone()) {
+            _exhausted = true;
+          }
+        }
+      }
+      else if (_state == State.SPILLED) {
+        page.setStatus(QueryResultsPage.Status.SPILLED);
+        page.setTotalBytes(_totalBytes);
+        page.setDone(true);
+        _exhausted = true;
+      }
+      else {
+        page.setStatus(QueryResultsPage.Status.ERROR);
+        page.setOptErrorReason(_errorReason);
+        page.setDone(true);
+        _exhausted = true;
+      }
+      if (_exhausted) {
+        // release the results as soon as the last page is out
+        _data = null;
+      }
+    }
+
+    try {
+      rpcContext.completeRequest();
+    } catch (RPCException e) {
+      LOG.error("Failed to send Results Page for Shard:" + _shardId + " of Query:" + _queryId + " Error:" + e.getMessage());
+    }
+  }
+}
@@ -52,11 +52,14 @@ import org.commoncrawl.server.CommonCrawlServer;
 import org.commoncrawl.service.queryserver.BaseConfig;
 import org.commoncrawl.service.queryserver.Common;
 import org.commoncrawl.service.queryserver.QueryCommon;
+import org.commoncrawl.service.queryserver.QueryResultsPage;
+import org.commoncrawl.service.queryserver.QueryResultsRequest;
 import org.commoncrawl.service.queryserver.QueryServerSlave;
 import org.commoncrawl.service.queryserver.QueryStatus;
 import org.commoncrawl.service.queryserver.RemoteQueryInfo;
 import org.commoncrawl.service.queryserver.SlaveStatus;
 import org.commoncrawl.service.queryserver.index.DatabaseIndexV2;
+import org.commoncrawl.service.queryserver.index.ShardReaderCache;
 import org.commoncrawl.service.queryserver.query.Query;
 import org.commoncrawl.service.queryserver.query.QueryProgressCallback;
 import org.commoncrawl.service.queryserver.query.RemoteQueryCompletionCallback;
@@ -167,6 +170,9 @@ public class SlaveServer
     // register RPC services it supports ... 
     registerService(channel,QueryServerSlave.spec);
     
+    // index reader / block cache stats 
+    getWebServer().addServlet("indexCacheStatus","/indexCacheStatus.jsp",ShardReaderCache.StatusServlet.class);
+    
     // make job local directory 
     getJobLocalPath().mkdirs();
     
@@ -244,6 +250,10 @@ public class SlaveServer
             // clear query info 
             _activeQueries.clear();
             _pendingQueries.clear();
+            // and fail any results the master was still waiting on 
+            if (_slaveState != null) { 
+              _slaveState.failAllResultStreams("Slave Re-Initialized");
+            }
             
             // clear out state ... 
             _slaveStatus.clear();
@@ -280,6 +290,10 @@ public class SlaveServer
                 boolean loaded = false;
                 try { 
                   LOG.info("Loading SlaveDatabase Index");
+                  if (_index != null) { 
+                    // release readers held by the previous index
+                    _index.close();
+                  }
                   _index = new DatabaseIndexV2.SlaveDatabaseIndex(_configuration, _fileSystem, _baseConfig.getDatabaseTimestamp());
                   LOG.info("Loaded Database Index");    
                       
@@ -344,7 +358,7 @@ public class SlaveServer
     // and update slave status state 
     _slaveStatus.setState(SlaveStatus.State.READY);
     // create a slave state object ... 
-    _slaveState = new SlaveState(getHostName(),_index);
+    _slaveState = new SlaveState(getHostName(),_index,getEventLoop());
     
     sendStatusResponse(rpcContext);
   }
@@ -472,6 +486,12 @@ public class SlaveServer
       LOG.info("QueryId:" + rpcContext.getInput().getCommonInfo().getQueryId() + " Initializing QueryObject");
       // initialize query 
       queryObject.initializeRemoteQuery(rpcContext.getInput().getClientQueryData(), _slaveState,rpcContext.getInput().getShardMapping(),rpcContext.getInput().getCommonInfo(),queryData);
+      // if the master wants streamed results, set up a result stream per shard (before the query can run)
+      if ((queryObject.getCommonQueryInfo().getQueryFlags() & QueryCommon.QueryFlags.STREAM_RESULTS) != 0) { 
+        for (int shardId : queryObject.getCommonQueryInfo().getRelevantShardIds()) { 
+          _slaveState.createResultStream(queryObject.getQueryId(),shardId);
+        }
+      }
       LOG.info("QueryId:" + rpcContext.getInput().getCommonInfo().getQueryId() + " Adding to Pending Queue");
       //TODO: SEE IF WE CAN IMMEDIATELY EXECUTE QUERY ...
       if (queryObject.isHighPriorityQuery()) { 
@@ -505,6 +525,35 @@ public class SlaveServer
   public void heartbeat(AsyncContext<NullMessage, SlaveStatus> rpcContext)throws RPCException {
     //LOG.info("Got Heartbeat from Master - Sending Status to Master");
     sendStatusResponse(rpcContext);
+    // drop streamed results the master seems to have abandoned 
+    if (_slaveState != null) { 
+      _slaveState.expireResultStreams(System.currentTimeMillis());
+    }
+  }
+  
+  @Override
+  public void getQueryResults(AsyncContext<QueryResultsRequest, QueryResultsPage> rpcContext) throws RPCException {
+    long queryId = rpcContext.getInput().getQueryId();
+    int  shardId = rpcContext.getInput().getShardId();
+    
+    ShardResultStream stream = (_slaveState != null) ? _slaveState.getResultStream(queryId,shardId) : null;
+    
+    if (stream == null) { 
+      LOG.error("getQueryResults for unknown Query:" + queryId + " Shard:" + shardId);
+      rpcContext.getOutput().setQueryId(queryId);
+      rpcContext.getOutput().setShardId(shardId);
+      rpcContext.getOutput().setOffset(rpcContext.getInput().getOffset());
+      rpcContext.getOutput().setStatus(QueryResultsPage.Status.NOT_FOUND);
+      rpcContext.getOutput().setDone(true);
+      rpcContext.completeRequest();
+    }
+    else { 
+      // answered now, or parked until the query has produced the shard's results 
+      stream.requestPage(rpcContext);
+      if (stream.isExhausted()) { 
+        _slaveState.removeResultStream(stream);
+      }
+    }
   }
  
   private final void failRequest(AsyncContext<? extends RPCStruct,? extends RPCStruct> rpcContext,String reason) { 
@@ -612,6 +661,12 @@ public class SlaveServer
       updateSlaveStatusForQueryObject(theQueryObject);
       // remove the query from the active queue ... 
       _activeQueries.remove(theQueryObject.getQueryId());
+      // a streamed query should have set the results of all of its shards by now 
+      if (_slaveState != null) { 
+        _slaveState.failResultStreams(theQueryObject.getQueryId(),
+            "Query:" + theQueryObject.getQueryId() + " Completed with Status:" 
+            + QueryStatus.Status.toString(theQueryObject.getQueryStatus().getStatus()) + " without Streaming Results");
+      }
       
       FileUtils.recursivelyDeleteFile(getTempDirForQuery(theQueryObject.getQueryId()));
     }
@@ -635,6 +690,10 @@ public class SlaveServer
      updateSlaveStatusForQueryObject(theQueryObject);
      // remove the query from the active queue ... 
      _activeQueries.remove(theQueryObject.getQueryId());
+     // fail any results the master is waiting on 
+     if (_slaveState != null) { 
+       _slaveState.failResultStreams(theQueryObject.getQueryId(),reason);
+     }
      
      FileUtils.recursivelyDeleteFile(getTempDirForQuery(theQueryObject.getQueryId()));
    }
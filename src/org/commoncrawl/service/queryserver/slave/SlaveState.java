@@ -17,6 +17,15 @@
  **/
 package org.commoncrawl.service.queryserver.slave;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.commoncrawl.async.EventLoop;
+import org.commoncrawl.async.Timer;
+import org.commoncrawl.service.queryserver.Common;
 import org.commoncrawl.service.queryserver.index.DatabaseIndexV2;
 
 /**
@@ -30,14 +39,106 @@ public class SlaveState {
   private DatabaseIndexV2.SlaveDatabaseIndex _sharedIndex;
   // the name of this host  
   private String _hostName;
+  // the server's event loop 
+  private EventLoop _eventLoop;
+  // streamed query results by query id and shard id 
+  private Map<Long,Map<Integer,ShardResultStream>> _resultStreams = new HashMap<Long,Map<Integer,ShardResultStream>>();
   
-  public SlaveState(String hostName,DatabaseIndexV2.SlaveDatabaseIndex index) { 
+  public SlaveState(String hostName,DatabaseIndexV2.SlaveDatabaseIndex index,EventLoop eventLoop) { 
     _sharedIndex = index;
     _hostName = hostName;
+    _eventLoop = eventLoop;
   }
   
   public String getHostName() { return _hostName; }
   public DatabaseIndexV2.SlaveDatabaseIndex getSharedIndex() { return _sharedIndex; }
   
+  /** create the result stream for a shard of a streamed query **/
+  public synchronized ShardResultStream createResultStream(long queryId,int shardId) { 
+    Map<Integer,ShardResultStream> queryStreams = _resultStreams.get(queryId);
+    if (queryStreams == null) { 
+      queryStreams = new TreeMap<Integer,ShardResultStream>();
+      _resultStreams.put(queryId,queryStreams);
+    }
+    ShardResultStream stream = new ShardResultStream(queryId,shardId);
+    queryStreams.put(shardId,stream);
+    return stream;
+  }
+  
+  /** get the result stream for a shard of a query, or null if there is none **/
+  public synchronized ShardResultStream getResultStream(long queryId,int shardId) { 
+    Map<Integer,ShardResultStream> queryStreams = _resultStreams.get(queryId);
+    return (queryStreams != null) ? queryStreams.get(shardId) : null;
+  }
+  
+  public synchronized void removeResultStream(ShardResultStream stream) { 
+    Map<Integer,ShardResultStream> queryStreams = _resultStreams.get(stream.getQueryId());
+    if (queryStreams != null && queryStreams.get(stream.getShardId()) == stream) { 
+      queryStreams.remove(stream.getShardId());
+      if (queryStreams.size() == 0) { 
+        _resultStreams.remove(stream.getQueryId());
+      }
+    }
+  }
+  
+  /** notify the event thread that a stream's results were set (callable from any thread) **/
+  public void resultStreamUpdated(final ShardResultStream stream) { 
+    _eventLoop.setTimer(new Timer(0,false,new Timer.Callback() {
+
+      @Override
+      public void timerFired(Timer timer) {
+        stream.servicePendingRequests();
+        if (stream.isExhausted()) { 
+          removeResultStream(stream);
+        }
+      } 
+    }));
+  }
+  
+  /** fail the still pending result streams of a query (callable from any thread) **/
+  public void failResultStreams(long queryId,String reason) { 
+    ArrayList<ShardResultStream> streams = new ArrayList<ShardResultStream>();
+    synchronized (this) { 
+      Map<Integer,ShardResultStream> queryStreams = _resultStreams.get(queryId);
+      if (queryStreams != null) { 
+        streams.addAll(queryStreams.values());
+      }
+    }
+    for (ShardResultStream stream : streams) { 
+      if (stream.isPending()) { 
+        stream.setFailed(reason);
+        resultStreamUpdated(stream);
+      }
+    }
+  }
   
+  /** fail all pending result streams (callable from any thread) **/
+  public void failAllResultStreams(String reason) { 
+    ArrayList<Long> queryIds;
+    synchronized (this) { 
+      queryIds = new ArrayList<Long>(_resultStreams.keySet());
+    }
+    for (long queryId : queryIds) { 
+      failResultStreams(queryId,reason);
+    }
+  }
+  
+  /** drop result streams the master has not touched in a while **/
+  public synchronized void expireResultStreams(long currentTime) { 
+    Iterator<Map<Integer,ShardResultStream>> queryIterator = _resultStreams.values().iterator();
+    while (queryIterator.hasNext()) { 
+      Map<Integer,ShardResultStream> queryStreams = queryIterator.next();
+      Iterator<ShardResultStream> streamIterator = queryStreams.values().iterator();
+      while (streamIterator.hasNext()) { 
+        ShardResultStream stream = streamIterator.next();
+        if (!stream.isPending() && !stream.hasPendingRequests() 
+            && currentTime - stream.getLastAccessTime() > Common.STREAMED_RESULTS_EXPIRY_MS) { 
+          streamIterator.remove();
+        }
+      }
+      if (queryStreams.size() == 0) { 
+        queryIterator.remove();
+      }
+    }
+  }
 }
@@ -193,9 +193,17 @@ public class StatsServiceServer
             public ArrayList< KeyValueTuple<Long,BytesWritable> > call() throws Exception {
       
               if (!rpcContext.getInput().isFieldDirty(ReadStatsRecordsRequest.Field_IFLASTKEYNOT) || file.getLastRecordKey() != rpcContext.getInput().getIfLastKeyNot()) {
-                return file.readFromTail(rpcContext.getInput().getRecordCount(),
-                    rpcContext.getInput().isFieldDirty(ReadStatsRecordsRequest.Field_STOPIFKEYLESSTHAN) ? 
-                        rpcContext.getInput().getStopIfKeyLessThan() : -1);
+                int recordCount = rpcContext.getInput().getRecordCount();
+                if (rpcContext.getInput().isFieldDirty(ReadStatsRecordsRequest.Field_STOPIFKEYLESSTHAN)) {
+                  // read the requested time window via the file's time index, and return its newest recordCount records  
+                  ArrayList< KeyValueTuple<Long,BytesWritable> > window = file.readRange(rpcContext.getInput().getStopIfKeyLessThan(),Long.MAX_VALUE,-1);
+                  if (recordCount >= 0 && window.size() > recordCount) { 
+                    return new ArrayList< KeyValueTuple<Long,BytesWritable> >(window.subList(window.size() - recordCount,window.size()));
+                  }
+                  return window;
+                }
+                // no window - just the newest recordCount records 
+                return file.readFromTail(recordCount,-1);
               }
               else { 
                 return new ArrayList< KeyValueTuple<Long,BytesWritable>>(); 
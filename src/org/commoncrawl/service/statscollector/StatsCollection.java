@@ -146,8 +146,13 @@ public abstract class StatsCollection<ValueType extends Comparable> {
       @Override
       public void run() {
         try {
-          // get the result set ... 
-          ArrayList<KeyValueTuple<Long, BytesWritable>> tuples = _dailyEventsFile.readFromTail(maxDays, -1);
+          // the window starts at the first of the last maxDays days (daily values are keyed by the day's first millisecond) 
+          Day firstDay = new Day(new Date(System.currentTimeMillis()));
+          for (int i=0;i<maxDays;++i) { 
+            firstDay = (Day) firstDay.previous();
+          }
+          // get the result set via the file's time index ... 
+          ArrayList<KeyValueTuple<Long, BytesWritable>> tuples = _dailyEventsFile.readRange(firstDay.getFirstMillisecond(), Long.MAX_VALUE, -1);
           // walk items adding to builder 
           final ImmutableSortedMap.Builder<Day,ValueType> builder = new ImmutableSortedMap.Builder<Day, ValueType>(new Comparator<Day>() {
 
@@ -253,13 +258,13 @@ public abstract class StatsCollection<ValueType extends Comparable> {
       // convert to Day if valid ... 
       _lastDailyValue = new Day(new Date(lastDailyTimestamp));
     }
-    // ok now read up to 1000 events from events file  
-    ArrayList<KeyValueTuple<Long,BytesWritable>> events = _sequentialEventsFile.readFromTail(1000, -1);
-    
     // ok find latest day that is not today 
     Day   today = new Day(new Date(System.currentTimeMillis()));
     Hour  thisHour = new Hour(new Date(System.currentTimeMillis()));
     Day   yesterday = (Day) today.previous();
+    
+    // ok now read yesterday's and today's events from events file (via the file's time index) 
+    ArrayList<KeyValueTuple<Long,BytesWritable>> events = _sequentialEventsFile.readRange(yesterday.getFirstMillisecond(),Long.MAX_VALUE,-1);
      
     // walk events in reverse order  
     Iterable<KeyValueTuple<Long, BytesWritable>> reverseList = Lists.reverse(events);
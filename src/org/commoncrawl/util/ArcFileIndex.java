@@ -0,0 +1,324 @@
+/**
+ * Copyright 2008 - CommonCrawl Foundation
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ **/
+package org.commoncrawl.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.commoncrawl.protocol.shared.ArcFileItem;
+
+/**
+ * A sidecar index of the records in a gzipped ARC file.
+ *
+ * Each ARC record is its own gzip member, so a record can be decoded on its
+ * own given the offset and compressed length of its member. The index stores
+ * (url fingerprint, member offset, member length) for every record (but not
+ * for the leading filedesc header record), in file order, along with the
+ * length of the ARC file it was built for (so stale indexes can be detected).
+ * The fingerprint of a record is URLFingerprint.generate64BitURLFPrint of the
+ * url in the record's metadata line.
+ *
+ * The index lives next to the ARC file (arc file path + INDEX_SUFFIX). It is
+ * written by ArcFileWriter as it closes each ARC file, and can be built for
+ * existing ARC files via ArcFileIndexBuilder.
+ *
+ * Layout (big endian): int magic ('ARCI'), int version, long arc file length,
+ * int record count, then per record: long fingerprint, long offset, int
+ * length.
+ *
+ * @author rana
+ *
+ */
+public class ArcFileIndex {
+
+  public static final String INDEX_SUFFIX = ".idx";
+
+  static final int MAGIC = ('A' << 24) | ('R' << 16) | ('C' << 8) | 'I';
+  static final int VERSION = 1;
+
+  private static final int INITIAL_CAPACITY = 1024;
+
+  private long _arcFileLength = -1;
+  private int _count = 0;
+  private long _fingerprints[];
+  private long _offsets[];
+  private int _lengths[];
+  /** record indexes sorted by fingerprint (built lazily for lookups) **/
+  private int _fingerprintOrder[] = null;
+
+  public ArcFileIndex() {
+    this(INITIAL_CAPACITY);
+  }
+
+  public ArcFileIndex(int initialCapacity) {
+    initialCapacity = Math.max(initialCapacity, 1);
+    _fingerprints = new long[initialCapacity];
+    _offsets = new long[initialCapacity];
+    _lengths = new int[initialCapacity];
+  }
+
+  /** path of the index of the given arc file **/
+  public static Path getIndexPath(Path arcFilePath) {
+    return new Path(arcFilePath.getParent(), arcFilePath.getName() + INDEX_SUFFIX);
+  }
+
+  /** returns true if the given file name is that of an arc file index **/
+  public static boolean isIndexFile(String fileName) {
+    return fileName.endsWith(INDEX_SUFFIX);
+  }
+
+  /** the fingerprint the index uses for the given (metadata line) url **/
+  public static long fingerprintFor(String url) {
+    return URLFingerprint.generate64BitURLFPrint(url);
+  }
+
+  /** append a record. records must be added in file order **/
+  public void add(long fingerprint, long offset, int length) {
+    if (_count != 0 && offset < _offsets[_count - 1] + _lengths[_count - 1]) {
+      throw new IllegalArgumentException("Record at offset:" + offset + " overlaps previous record at offset:"
+          + _offsets[_count - 1]);
+    }
+    if (_count == _offsets.length) {
+      int newCapacity = _count * 2;
+      _fingerprints = Arrays.copyOf(_fingerprints, newCapacity);
+      _offsets = Arrays.copyOf(_offsets, newCapacity);
+      _lengths = Arrays.copyOf(_lengths, newCapacity);
+    }
+    _fingerprints[_count] = fingerprint;
+    _offsets[_count] = offset;
+    _lengths[_count] = length;
+    _count++;
+    _fingerprintOrder = null;
+  }
+
+  /** number of records in the index **/
+  public int size() {
+    return _count;
+  }
+
+  /** the length of the arc file this index describes (-1 if not known) **/
+  public long getArcFileLength() {
+    return _arcFileLength;
+  }
+
+  public void setArcFileLength(long arcFileLength) {
+    _arcFileLength = arcFileLength;
+  }
+
+  public long getFingerprint(int index) {
+    checkIndex(index);
+    return _fingerprints[index];
+  }
+
+  /** offset of the gzip member holding the record **/
+  public long getOffset(int index) {
+    checkIndex(index);
+    return _offsets[index];
+  }
+
+  /** compressed length of the gzip member holding the record **/
+  public int getLength(int index) {
+    checkIndex(index);
+    return _lengths[index];
+  }
+
+  private void checkIndex(int index) {
+    if (index < 0 || index >= _count) {
+      throw new IndexOutOfBoundsException("Index:" + index + " Size:" + _count);
+    }
+  }
+
+  /**
+   * find a record by url fingerprint. returns the record's index, or -1 if
+   * there is no such record (if a url occurs more than once, any one of its
+   * records is returned).
+   */
+  public int find(long fingerprint) {
+    int order[] = getFingerprintOrder();
+    int low = 0;
+    int high = _count - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      long midValue = _fingerprints[order[mid]];
+      if (midValue < fingerprint) {
+        low = mid + 1;
+      } else if (midValue > fingerprint) {
+        high = mid - 1;
+      } else {
+        return order[mid];
+      }
+    }
+    return -1;
+  }
+
+  /** find a record by url (see find(long)) **/
+  public int find(String url) {
+    return find(fingerprintFor(url));
+  }
+
+  private synchronized int[] getFingerprintOrder() {
+    if (_fingerprintOrder == null) {
+      Integer sorted[] = new Integer[_count];
+      for (int i = 0; i < _count; ++i) {
+        sorted[i] = i;
+      }
+      Arrays.sort(sorted, new Comparator<Integer>() {
+
+        @Override
+        public int compare(Integer o1, Integer o2) {
+          long fp1 = _fingerprints[o1];
+          long fp2 = _fingerprints[o2];
+          return (fp1 < fp2) ? -1 : (fp1 > fp2) ? 1 : 0;
+        }
+      });
+      int order[] = new int[_count];
+      for (int i = 0; i < _count; ++i) {
+        order[i] = sorted[i];
+      }
+      _fingerprintOrder = order;
+    }
+    return _fingerprintOrder;
+  }
+
+  /**
+   * compute record aligned split points for splitting the arc file into
+   * chunks of (at least) the given size. returns the start offsets of every
+   * chunk but the first (which starts at zero, with the arc file header).
+   */
+  public long[] getSplitOffsets(long bytesPerSplit) {
+    long splitOffsets[] = new long[0];
+    int splitCount = 0;
+    long chunkStart = 0;
+    for (int i = 0; i < _count; ++i) {
+      if (_offsets[i] - chunkStart >= bytesPerSplit) {
+        if (splitCount == splitOffsets.length) {
+          splitOffsets = Arrays.copyOf(splitOffsets, Math.max(splitCount * 2, 16));
+        }
+        splitOffsets[splitCount++] = _offsets[i];
+        chunkStart = _offsets[i];
+      }
+    }
+    return Arrays.copyOf(splitOffsets, splitCount);
+  }
+
+  public void write(DataOutput out) throws IOException {
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeLong(_arcFileLength);
+    out.writeInt(_count);
+    for (int i = 0; i < _count; ++i) {
+      out.writeLong(_fingerprints[i]);
+      out.writeLong(_offsets[i]);
+      out.writeInt(_lengths[i]);
+    }
+  }
+
+  public static ArcFileIndex read(DataInput in) throws IOException {
+    int magic = in.readInt();
+    if (magic != MAGIC) {
+      throw new IOException("Invalid ARC File Index Magic:" + Integer.toHexString(magic));
+    }
+    int version = in.readInt();
+    if (version != VERSION) {
+      throw new IOException("Unsupported ARC File Index Version:" + version);
+    }
+    long arcFileLength = in.readLong();
+    int count = in.readInt();
+    ArcFileIndex index = new ArcFileIndex(count);
+    index.setArcFileLength(arcFileLength);
+    for (int i = 0; i < count; ++i) {
+      long fingerprint = in.readLong();
+      long offset = in.readLong();
+      int length = in.readInt();
+      index.add(fingerprint, offset, length);
+    }
+    return index;
+  }
+
+  /** write the index of the given arc file **/
+  public void save(FileSystem fs, Path arcFilePath) throws IOException {
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fs.create(getIndexPath(arcFilePath))));
+    try {
+      write(out);
+    } finally {
+      out.close();
+    }
+  }
+
+  /** load the index of the given arc file, or return null if it has none **/
+  public static ArcFileIndex load(FileSystem fs, Path arcFilePath) throws IOException {
+    Path indexPath = getIndexPath(arcFilePath);
+    if (!fs.exists(indexPath)) {
+      return null;
+    }
+    DataInputStream in = new DataInputStream(new BufferedInputStream(fs.open(indexPath)));
+    try {
+      return read(in);
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * fetch the record with the given url fingerprint from the arc file (with a
+   * single ranged read). returns null if the index has no such record.
+   */
+  public ArcFileItem fetchItem(FileSystem fs, Path arcFilePath, long fingerprint) throws IOException {
+    int index = find(fingerprint);
+    if (index == -1) {
+      return null;
+    }
+    FSDataInputStream in = fs.open(arcFilePath);
+    try {
+      ArcFileItem item = readItem(in, _offsets[index], _lengths[index]);
+      item.setArcFileName(arcFilePath.getName());
+      return item;
+    } finally {
+      in.close();
+    }
+  }
+
+  /** read and decode the record stored in the gzip member at the given offset **/
+  public static ArcFileItem readItem(FSDataInputStream in, long offset, int length) throws IOException {
+    byte memberData[] = new byte[length];
+    in.readFully(offset, memberData);
+
+    StreamingArcFileReader reader = new StreamingArcFileReader(false);
+    reader.available(ByteBuffer.wrap(memberData));
+    reader.finished();
+
+    ArcFileItem item = reader.getNextItem();
+    if (item == null) {
+      throw new IOException("Failed to decode ARC record at offset:" + offset + " length:" + length);
+    }
+    item.setArcFilePos((int) offset);
+    item.setArcFileSize(length);
+    return item;
+  }
+}
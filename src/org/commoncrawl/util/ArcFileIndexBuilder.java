@@ -0,0 +1,295 @@
+/**
+ * Copyright 2008 - CommonCrawl Foundation
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ **/
+package org.commoncrawl.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Builds ArcFileIndex sidecars for existing gzipped ARC files.
+ *
+ * The ARC file is scanned once, member by member: each gzip member is
+ * inflated (to find where it ends precisely, rather than by scanning for the
+ * gzip magic, which can occur in compressed data) and the url is taken from
+ * the metadata line at the start of the record. The leading filedesc record
+ * is not indexed, so the index matches the one ArcFileWriter emits.
+ *
+ * usage: ArcFileIndexBuilder [--force] arcFileOrDirectory ...
+ *
+ * @author rana
+ *
+ */
+public class ArcFileIndexBuilder {
+
+  private static final Log LOG = LogFactory.getLog(ArcFileIndexBuilder.class);
+
+  private static final int GZIP_MAGIC = 0x8b1f;
+  private static final int FHCRC = 2;
+  private static final int FEXTRA = 4;
+  private static final int FNAME = 8;
+  private static final int FCOMMENT = 16;
+
+  private static final String ARC_FILE_HEADER_PREFIX = "filedesc://";
+  /** metadata lines longer than this are considered corrupt **/
+  private static final int MAX_METADATA_LINE_LENGTH = 8 * 1024;
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final InputStream _in;
+  private final byte _buffer[] = new byte[BUFFER_SIZE];
+  private int _bufferPos = 0;
+  private int _bufferLimit = 0;
+  /** offset in the stream of _buffer[0] **/
+  private long _bufferOffset = 0;
+
+  private final Inflater _inflater = new Inflater(true);
+  private final CRC32 _crc = new CRC32();
+  private final byte _inflateBuffer[] = new byte[BUFFER_SIZE];
+  private final byte _metadataLine[] = new byte[MAX_METADATA_LINE_LENGTH];
+  private int _metadataLineLength;
+  private boolean _metadataLineComplete;
+
+  private ArcFileIndexBuilder(InputStream in) {
+    _in = in;
+  }
+
+  /** build an index from a gzipped arc file stream (read to its end) **/
+  public static ArcFileIndex build(InputStream in) throws IOException {
+    return new ArcFileIndexBuilder(in).build();
+  }
+
+  /** build and save the index of the given arc file **/
+  public static ArcFileIndex buildIndex(FileSystem fs, Path arcFilePath) throws IOException {
+    InputStream in = fs.open(arcFilePath);
+    ArcFileIndex index;
+    try {
+      index = build(in);
+    } finally {
+      in.close();
+    }
+    index.save(fs, arcFilePath);
+    return index;
+  }
+
+  private ArcFileIndex build() throws IOException {
+    ArcFileIndex index = new ArcFileIndex();
+    try {
+      long memberStart;
+      while ((memberStart = position()) != -1) {
+        readMember();
+        long memberEnd = position();
+        if (memberEnd == -1) {
+          memberEnd = _bufferOffset + _bufferLimit;
+        }
+        String url = getMetadataURL();
+        if (url == null) {
+          throw new IOException("Invalid ARC metadata line in record at offset:" + memberStart);
+        }
+        if (!url.startsWith(ARC_FILE_HEADER_PREFIX)) {
+          index.add(ArcFileIndex.fingerprintFor(url), memberStart, (int) (memberEnd - memberStart));
+        }
+      }
+      index.setArcFileLength(_bufferOffset + _bufferLimit);
+    } finally {
+      _inflater.end();
+    }
+    return index;
+  }
+
+  /**
+   * the stream offset of the next unconsumed byte, or -1 if the stream is
+   * exhausted
+   */
+  private long position() throws IOException {
+    if (_bufferPos == _bufferLimit && !fill()) {
+      return -1;
+    }
+    return _bufferOffset + _bufferPos;
+  }
+
+  private boolean fill() throws IOException {
+    _bufferOffset += _bufferLimit;
+    _bufferPos = 0;
+    _bufferLimit = 0;
+    int bytesRead;
+    while ((bytesRead = _in.read(_buffer, 0, _buffer.length)) == 0)
+      ;
+    if (bytesRead == -1) {
+      return false;
+    }
+    _bufferLimit = bytesRead;
+    return true;
+  }
+
+  private int readUByte() throws IOException {
+    if (_bufferPos == _bufferLimit && !fill()) {
+      throw new EOFException("Unexpected EOF in ARC File at offset:" + (_bufferOffset + _bufferPos));
+    }
+    return _buffer[_bufferPos++] & 0xff;
+  }
+
+  private int readUShort() throws IOException {
+    int b = readUByte();
+    return (readUByte() << 8) | b;
+  }
+
+  private long readUInt() throws IOException {
+    long s = readUShort();
+    return ((long) readUShort() << 16) | s;
+  }
+
+  private void skipBytes(int count) throws IOException {
+    while (count-- > 0) {
+      readUByte();
+    }
+  }
+
+  /** consume one gzip member, capturing the record's metadata line **/
+  private void readMember() throws IOException {
+    long memberStart = _bufferOffset + _bufferPos;
+    // header
+    if (readUShort() != GZIP_MAGIC) {
+      throw new IOException("Not in GZIP format at offset:" + memberStart);
+    }
+    if (readUByte() != 8) {
+      throw new IOException("Unsupported compression method at offset:" + memberStart);
+    }
+    int flags = readUByte();
+    // mtime, xfl, os
+    skipBytes(6);
+    if ((flags & FEXTRA) == FEXTRA) {
+      skipBytes(readUShort());
+    }
+    if ((flags & FNAME) == FNAME) {
+      while (readUByte() != 0)
+        ;
+    }
+    if ((flags & FCOMMENT) == FCOMMENT) {
+      while (readUByte() != 0)
+        ;
+    }
+    if ((flags & FHCRC) == FHCRC) {
+      skipBytes(2);
+    }
+
+    // deflated data
+    _inflater.reset();
+    _crc.reset();
+    _metadataLineLength = 0;
+    _metadataLineComplete = false;
+    try {
+      while (!_inflater.finished()) {
+        if (_inflater.needsInput()) {
+          if (_bufferPos == _bufferLimit && !fill()) {
+            throw new EOFException("Unexpected EOF in ARC record at offset:" + memberStart);
+          }
+          _inflater.setInput(_buffer, _bufferPos, _bufferLimit - _bufferPos);
+        }
+        int inflated = _inflater.inflate(_inflateBuffer, 0, _inflateBuffer.length);
+        _bufferPos = _bufferLimit - _inflater.getRemaining();
+        if (inflated != 0) {
+          _crc.update(_inflateBuffer, 0, inflated);
+          captureMetadataLine(inflated);
+        } else if (_inflater.needsDictionary()) {
+          throw new IOException("Invalid ARC record (preset dictionary) at offset:" + memberStart);
+        }
+      }
+    } catch (DataFormatException e) {
+      throw new IOException("Corrupt ARC record at offset:" + memberStart + " " + e.getMessage());
+    }
+
+    // trailer
+    if (readUInt() != _crc.getValue()) {
+      throw new IOException("Corrupt GZIP trailer (CRC) in ARC record at offset:" + memberStart);
+    }
+    if (readUInt() != (_inflater.getBytesWritten() & 0xffffffffL)) {
+      throw new IOException("Corrupt GZIP trailer (size) in ARC record at offset:" + memberStart);
+    }
+  }
+
+  private void captureMetadataLine(int inflated) {
+    for (int i = 0; i < inflated && !_metadataLineComplete; ++i) {
+      byte b = _inflateBuffer[i];
+      if (b == '\n' || _metadataLineLength == _metadataLine.length) {
+        _metadataLineComplete = true;
+      } else {
+        _metadataLine[_metadataLineLength++] = b;
+      }
+    }
+  }
+
+  /** the url (first field) of the captured metadata line **/
+  private String getMetadataURL() throws IOException {
+    int urlLength = 0;
+    while (urlLength < _metadataLineLength && _metadataLine[urlLength] != ' ') {
+      urlLength++;
+    }
+    if (urlLength == 0 || urlLength == _metadataLineLength) {
+      return null;
+    }
+    return new String(_metadataLine, 0, urlLength, "UTF-8");
+  }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length == 0) {
+      System.out.println("usage: ArcFileIndexBuilder [--force] arcFileOrDirectory ...");
+      return;
+    }
+    Configuration conf = new Configuration();
+    boolean force = false;
+
+    for (String arg : args) {
+      if (arg.equals("--force")) {
+        force = true;
+        continue;
+      }
+      Path path = new Path(arg);
+      FileSystem fs = FileSystem.get(path.toUri(), conf);
+      FileStatus status = fs.getFileStatus(path);
+      FileStatus files[] = status.isDir() ? fs.listStatus(path) : new FileStatus[] { status };
+      for (FileStatus file : files) {
+        Path arcFilePath = file.getPath();
+        if (file.isDir() || ArcFileIndex.isIndexFile(arcFilePath.getName())) {
+          continue;
+        }
+        if (!force && fs.exists(ArcFileIndex.getIndexPath(arcFilePath))) {
+          LOG.info("Skipping ARC File:" + arcFilePath + " - Index Exists");
+          continue;
+        }
+        try {
+          long timeStart = System.currentTimeMillis();
+          ArcFileIndex index = buildIndex(fs, arcFilePath);
+          LOG.info("Indexed ARC File:" + arcFilePath + " Records:" + index.size() + " in "
+              + (System.currentTimeMillis() - timeStart) + " MS");
+        } catch (IOException e) {
+          LOG.error("Failed to Index ARC File:" + arcFilePath + " Exception:" + CCStringUtils.stringifyException(e));
+        }
+      }
+    }
+  }
+}
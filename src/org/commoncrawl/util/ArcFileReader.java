@@ -215,6 +215,15 @@ public final class ArcFileReader extends InflaterInputStream implements
     _hasHeaderItem = value;
   }
 
+  /**
+   * set the arc file offset of the first byte passed to the reader (when
+   * reading a range of an arc file that starts at a record boundary), so that
+   * item positions are reported relative to the start of the file
+   */
+  public void setStreamStartPos(int streamPos) {
+    _streamPos = streamPos;
+  }
+
   /**
    * Reset all interal variables and get the Reader ready to process a new
    * ArcFile
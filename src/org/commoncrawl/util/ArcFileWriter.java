@@ -268,6 +268,8 @@ public class ArcFileWriter {
 
     // failure exception ... if any ...
     private IOException                     _failureException         = null;
+    // index of the records written to this file ...
+    private ArcFileIndex                    _index                    = new ArcFileIndex();
 
     private void restartWrite() throws IOException {
       LOG.info("Restarting Write of File:" + _hdfsPath);
@@ -353,6 +355,8 @@ public class ArcFileWriter {
                   _hdfsStream.flush();
                   _hdfsStream.close();
                   _hdfsStream = null;
+                  // the file is complete ... write out its index
+                  writeIndex();
                   break;
                 } catch (IOException e) {
                   if (!_abort) {
@@ -444,6 +448,30 @@ public class ArcFileWriter {
       _hdfsWriterThread.start();
     }
 
+    /** record the position of an item written to this file **/
+    void addIndexEntry(long urlFingerprint, int itemPos, int compressedSize) {
+      _index.add(urlFingerprint, itemPos, compressedSize);
+    }
+
+    /**
+     * write out the index sidecar. a missing index only costs readers the
+     * ability to split the file or seek into it, so failures are not fatal
+     */
+    private void writeIndex() {
+      try {
+        _index.setArcFileLength(_bytesConsumed);
+        _index.save(_hdfs, _hdfsPath);
+      } catch (IOException e) {
+        LOG.error("Failed to write Index for File:" + _hdfsPath + " Exception:"
+            + CCStringUtils.stringifyException(e));
+        try {
+          _hdfs.delete(ArcFileIndex.getIndexPath(_hdfsPath), false);
+        } catch (IOException e2) {
+          LOG.error(CCStringUtils.stringifyException(e2));
+        }
+      }
+    }
+
     public void available(ByteBuffer availableReadBuffer) {
       try {
         queueLock.lock();
@@ -535,6 +563,7 @@ public class ArcFileWriter {
     public void delete() {
       try {
         _hdfs.delete(_hdfsPath,false);
+        _hdfs.delete(ArcFileIndex.getIndexPath(_hdfsPath),false);
       } catch (IOException e) {
         LOG.error(CCStringUtils.stringifyException(e));
       }
@@ -889,6 +918,9 @@ public class ArcFileWriter {
           // flush the gzip stream...
           postWriteRecordTasks();
         }
+        // and index the entry
+        getActiveFile().addIndexEntry(ArcFileIndex.fingerprintFor(encodedURI),
+            _lastItemPos, _lastItemCompressedSize);
       }
     }
 
@@ -1044,14 +1076,16 @@ public class ArcFileWriter {
   /**
    * append a pre-generated arcfile entry directly into the arc file writer
    * 
+   * @param url
+   *          - the url in the entry's metadata line (used to index the entry)
    * @param arcFileData
    *          - the compressed arc file entry
    * @param dataBufferLength
    *          - the entry length
    * @throws IOException
    */
-  public void writeRawArcFileItem(String contentType, byte[] arcFileData,
-      int dataBufferLength) throws IOException {
+  public void writeRawArcFileItem(String url, String contentType,
+      byte[] arcFileData, int dataBufferLength) throws IOException {
     // check to see if we need to start a new underlying file
     checkSize(0, dataBufferLength);
     // update stats
@@ -1073,6 +1107,9 @@ public class ArcFileWriter {
     _lastItemCompressedSize = (getActiveFile().getFileSize() - _lastItemPos);
     // update stats
     getActiveFile()._compressedBytesWritten += _lastItemCompressedSize;
+    // and index the entry
+    getActiveFile().addIndexEntry(ArcFileIndex.fingerprintFor(url),
+        _lastItemPos, _lastItemCompressedSize);
   }
 
   private void preWriteRecordTasks(int headerBytesLength,
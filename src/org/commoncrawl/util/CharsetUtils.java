@@ -18,13 +18,22 @@
 
 package org.commoncrawl.util;
 
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
 import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -57,7 +66,24 @@ public class CharsetUtils {
   public static final int CHARSET_SRC_META    = 1;
   public static final int CHARSET_SRC_MOZILLA_DETECTOR    = 3;
   public static final int CHARSET_SRC_ICU_DETECTOR    = 2;
+  public static final int CHARSET_SRC_UTF8_VALIDATOR  = 4;
   public static final int CHARSET_SRC_NO_MATCH = 10;  
+  
+  private static final Charset UTF8_CHARSET = Charset.forName("UTF-8");
+  
+  /** number of documents settled by each charset source (indexed by CHARSET_SRC_*) **/
+  private static final AtomicLong[] _detectionCounts = new AtomicLong[CHARSET_SRC_NO_MATCH + 1];
+  
+  static { 
+    for (int i=0;i<_detectionCounts.length;++i) { 
+      _detectionCounts[i] = new AtomicLong();
+    }
+  }
+  
+  /** number of documents whose charset was settled by the given source (CHARSET_SRC_*) **/
+  public static long getDetectionCount(int charsetSource) { 
+    return _detectionCounts[charsetSource].get();
+  }
 
   /** check for a normalized (java friendly) alias for the original charset name **/
   public static String aliasCharset(String inputCharset) {
@@ -72,8 +98,7 @@ public class CharsetUtils {
     
     if (charsetTuple != null) {
       try {
-        CharBuffer ucs2Chars = charsetTuple.e1.decode(ByteBuffer.wrap(crawlData,offset,length));
-        return new Pair<Pair<Integer,Charset>,String>(charsetTuple,ucs2Chars.toString());
+        return new Pair<Pair<Integer,Charset>,String>(charsetTuple,decodeBytes(charsetTuple.e1,crawlData,offset,length));
       } catch (Exception e) {
         LOG.error(CCStringUtils.stringifyException(e));
       }
@@ -86,6 +111,160 @@ public class CharsetUtils {
     return bestEffortDetectCharset(headers, crawlData, 0, crawlData.length);
   }
   
+  /** per thread decode state (buffers are reused across documents) **/
+  private static class DecodeState { 
+    CharBuffer _chars = CharBuffer.allocate(1 << 16);
+    HashMap<Charset,CharsetDecoder> _decoders = new HashMap<Charset, CharsetDecoder>();
+    
+    CharsetDecoder getDecoder(Charset charset) { 
+      CharsetDecoder decoder = _decoders.get(charset);
+      if (decoder == null) { 
+        // same error handling as Charset.decode
+        decoder = charset.newDecoder()
+          .onMalformedInput(CodingErrorAction.REPLACE)
+          .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        _decoders.put(charset, decoder);
+      }
+      return decoder;
+    }
+  }
+  
+  // don't hang on to buffers for unusually large documents 
+  private static final int MAX_RETAINED_DECODE_BUFFER = 1 << 22;
+  
+  private static final ThreadLocal<DecodeState> _decodeState = new ThreadLocal<DecodeState>() {
+    @Override
+    protected DecodeState initialValue() {
+      return new DecodeState();
+    }
+  };
+  
+  /**
+   * decode bytes using the given charset (equivalent to Charset.decode), 
+   * decoding into a per thread buffer rather than allocating one per call
+   */
+  public static String decodeBytes(Charset charset,byte[] data,int offset,int length) throws CharacterCodingException { 
+    DecodeState state = _decodeState.get();
+    CharsetDecoder decoder = state.getDecoder(charset);
+    
+    CharBuffer chars = state._chars;
+    int requiredChars = (int)(length * (double)decoder.maxCharsPerByte()) + 16;
+    if (chars.capacity() < requiredChars) { 
+      chars = CharBuffer.allocate(requiredChars);
+    }
+    
+    while (true) { 
+      chars.clear();
+      decoder.reset();
+      ByteBuffer bytes = ByteBuffer.wrap(data,offset,length);
+      CoderResult result = decoder.decode(bytes, chars, true);
+      if (!result.isOverflow()) { 
+        result = decoder.flush(chars);
+      }
+      if (result.isOverflow()) {
+        // grow and start over 
+        chars = CharBuffer.allocate(chars.capacity() * 2 + 16);
+        continue;
+      }
+      if (result.isError()) { 
+        result.throwException();
+      }
+      break;
+    }
+    
+    if (chars.capacity() <= MAX_RETAINED_DECODE_BUFFER) { 
+      state._chars = chars;
+    }
+    return new String(chars.array(),0,chars.position());
+  }
+  
+  private static final long HIGH_BITS = 0x8080808080808080L;
+  private static final long LOW_BITS  = 0x0101010101010101L;
+  
+  /**
+   * single pass check for (NUL free) ASCII or valid UTF-8 content, eight 
+   * bytes at a time while the content is ASCII. A multi-byte sequence cut 
+   * off by the end of the data (truncated content) is allowed. NULs are 
+   * rejected, as they usually indicate UTF-16 or binary content.
+   * 
+   * @return true if the content is ASCII or UTF-8
+   */
+  public static boolean isASCIIOrUTF8(byte[] data,int offset,int length) { 
+    int pos = offset;
+    int end = offset + length;
+    
+    while (pos < end) { 
+      // ascii fast path - a word at a time 
+      while (end - pos >= 8) { 
+        long word = (data[pos] & 0xFFL) 
+          | ((data[pos+1] & 0xFFL) << 8)
+          | ((data[pos+2] & 0xFFL) << 16)
+          | ((data[pos+3] & 0xFFL) << 24)
+          | ((data[pos+4] & 0xFFL) << 32)
+          | ((data[pos+5] & 0xFFL) << 40)
+          | ((data[pos+6] & 0xFFL) << 48)
+          | ((data[pos+7] & 0xFFL) << 56);
+        // any high bits set, or any zero bytes ? 
+        if ((word & HIGH_BITS) != 0 || ((word - LOW_BITS) & ~word & HIGH_BITS) != 0) 
+          break;
+        pos += 8;
+      }
+      if (pos == end)
+        break;
+      
+      int b = data[pos] & 0xFF;
+      if (b < 0x80) { 
+        if (b == 0)
+          return false;
+        pos++;
+        continue;
+      }
+      
+      // lead byte - figure out the sequence length and the valid range of the second byte 
+      // (ruling out overlong forms, surrogates and code points above U+10FFFF)
+      int sequenceLength;
+      int secondMin = 0x80;
+      int secondMax = 0xBF;
+      if (b >= 0xC2 && b <= 0xDF) { 
+        sequenceLength = 2;
+      }
+      else if (b >= 0xE0 && b <= 0xEF) { 
+        sequenceLength = 3;
+        if (b == 0xE0) 
+          secondMin = 0xA0;
+        else if (b == 0xED)
+          secondMax = 0x9F;
+      }
+      else if (b >= 0xF0 && b <= 0xF4) { 
+        sequenceLength = 4;
+        if (b == 0xF0) 
+          secondMin = 0x90;
+        else if (b == 0xF4)
+          secondMax = 0x8F;
+      }
+      else { 
+        return false;
+      }
+      
+      for (int i=1;i<sequenceLength;++i) { 
+        if (pos + i == end) { 
+          // truncated sequence at end of data
+          return true;
+        }
+        int continuation = data[pos + i] & 0xFF;
+        if (i == 1) { 
+          if (continuation < secondMin || continuation > secondMax)
+            return false;
+        }
+        else if ((continuation & 0xC0) != 0x80) { 
+          return false;
+        }
+      }
+      pos += sequenceLength;
+    }
+    return true;
+  }
+  
   
 
   
@@ -159,14 +338,20 @@ public class CharsetUtils {
   
         if (urlMetadata._contentType != null
             && MimeTypeFilter.isTextType(urlMetadata._contentType)) {
-  
-          // try to detect the charset from the stream ...
-          charsetMap.put(CHARSET_SRC_MOZILLA_DETECTOR,CharsetUtils
-              .detectCharacterEncoding(crawlDataBytes,offset,length,EncodingDetector.MOZILLA));
-          charsetMap.put(CHARSET_SRC_ICU_DETECTOR,CharsetUtils
-              .detectCharacterEncoding(crawlDataBytes,offset,length,EncodingDetector.ICU));
           
-          charsetMatch = resolveCharset(charsetMap);
+          // most content is ascii or utf-8, which we can settle in one pass 
+          if (isASCIIOrUTF8(crawlDataBytes, offset, length)) { 
+            charsetMatch = new Pair<Integer,Charset>(CHARSET_SRC_UTF8_VALIDATOR,UTF8_CHARSET);
+          }
+          else { 
+            // try to detect the charset from the stream ...
+            charsetMap.put(CHARSET_SRC_MOZILLA_DETECTOR,CharsetUtils
+                .detectCharacterEncoding(crawlDataBytes,offset,length,EncodingDetector.MOZILLA));
+            charsetMap.put(CHARSET_SRC_ICU_DETECTOR,CharsetUtils
+                .detectCharacterEncoding(crawlDataBytes,offset,length,EncodingDetector.ICU));
+            
+            charsetMatch = resolveCharset(charsetMap);
+          }
         }
       }
     }
@@ -174,6 +359,7 @@ public class CharsetUtils {
       // punt to latin one 
       charsetMatch = new Pair<Integer,Charset>(CHARSET_SRC_NO_MATCH,Charset.forName("ISO-8859-1"));
     }
+    _detectionCounts[charsetMatch.e0].incrementAndGet();
     return charsetMatch;
   }
 
@@ -248,6 +434,7 @@ public class CharsetUtils {
 
   }
 
+  // the detectors only look at a sample of this size
   private static int MAX_CHARS_TO_DETECT = 1 << 15; // 32K 
 
   public enum EncodingDetector { 
@@ -276,7 +463,8 @@ public class CharsetUtils {
         
         detector.Init(state);
   
-        boolean isAscii = detector.isAscii(contentBytes, length);
+        boolean isAscii = detector.isAscii(contentBytes, Math.min(length,
+            MAX_CHARS_TO_DETECT));
   
         if (!isAscii) {
           isAscii = detector.DoIt(contentBytes, Math.min(length,
@@ -299,7 +487,7 @@ public class CharsetUtils {
         // instantiate icu charset detector ... 
         CharsetDetector detector = new CharsetDetector();
         DataInputBuffer buffer = new DataInputBuffer();
-        buffer.reset(contentBytes,offset,length);
+        buffer.reset(contentBytes,offset,Math.min(length,MAX_CHARS_TO_DETECT));
         try {
           detector.setText(buffer);
           CharsetMatch matches[]  = detector.detectAll();
@@ -1043,5 +1231,81 @@ public class CharsetUtils {
     builder.put("ebcdic-is-871+euro", "IBM01149");
     aliasTable = builder.build();
   }
+  
+  private static void collectFiles(File file,ArrayList<File> filesOut) { 
+    if (file.isDirectory()) { 
+      File children[] = file.listFiles();
+      if (children != null) { 
+        for (File child : children) { 
+          collectFiles(child, filesOut);
+        }
+      }
+    }
+    else { 
+      filesOut.add(file);
+    }
+  }
 
+  /**
+   * benchmark - compare detect and decode times of the fast path against 
+   * always running the detectors, over a set of saved crawl pages (files, 
+   * or directories of files, each holding the raw bytes of a page)  
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length == 0) { 
+      System.out.println("Usage: CharsetUtils <page file or directory>+");
+      return;
+    }
+    ArrayList<File> files = new ArrayList<File>();
+    for (String arg : args) { 
+      collectFiles(new File(arg), files);
+    }
+    ArrayList<byte[]> pages = new ArrayList<byte[]>();
+    long totalBytes = 0;
+    for (File file : files) { 
+      byte data[] = new byte[(int)file.length()];
+      DataInputStream input = new DataInputStream(new FileInputStream(file));
+      try { 
+        input.readFully(data);
+      }
+      finally { 
+        input.close();
+      }
+      pages.add(data);
+      totalBytes += data.length;
+    }
+    System.out.println("Loaded " + pages.size() + " pages (" + totalBytes + " bytes)");
+    
+    // no declared charset, so every page takes the detection path
+    String headers = "HTTP/1.1 200 OK\r\nContent-Type: text/html\r\n";
+    
+    for (int pass=0;pass<3;++pass) { 
+      long timeStart = System.currentTimeMillis();
+      for (byte[] page : pages) { 
+        String mozilla = detectCharacterEncoding(page, 0, page.length, EncodingDetector.MOZILLA);
+        String icu = detectCharacterEncoding(page, 0, page.length, EncodingDetector.ICU);
+        String charsetName = (mozilla != null) ? mozilla : (icu != null) ? icu : "ISO-8859-1";
+        try { 
+          Charset.forName(charsetName).decode(ByteBuffer.wrap(page));
+        }
+        catch (Exception e) { 
+        }
+      }
+      long detectorTime = System.currentTimeMillis() - timeStart;
+      
+      timeStart = System.currentTimeMillis();
+      for (byte[] page : pages) { 
+        bestEffortDecodeBytes(headers, page, 0, page.length);
+      }
+      long fastPathTime = System.currentTimeMillis() - timeStart;
+      
+      System.out.println("Pass:" + pass + " Detectors:" + detectorTime + " MS Fast Path:" + fastPathTime + " MS");
+    }
+    System.out.println("Settled By Headers:" + getDetectionCount(CHARSET_SRC_HEADERS)
+        + " Meta:" + getDetectionCount(CHARSET_SRC_META)
+        + " UTF8 Validator:" + getDetectionCount(CHARSET_SRC_UTF8_VALIDATOR)
+        + " Mozilla:" + getDetectionCount(CHARSET_SRC_MOZILLA_DETECTOR)
+        + " ICU:" + getDetectionCount(CHARSET_SRC_ICU_DETECTOR)
+        + " No Match:" + getDetectionCount(CHARSET_SRC_NO_MATCH));
+  }
 }
@@ -0,0 +1,354 @@
+/**
+ * Copyright 2008 - CommonCrawl Foundation
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ **/
+package org.commoncrawl.util;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Checks CharsetUtils.isASCIIOrUTF8 against a strict (reporting) UTF-8
+ * decoder on random and mutated input, and on the edge cases (overlong
+ * forms, surrogates, code points past U+10FFFF, truncated sequences, NULs),
+ * and that decodeBytes decodes exactly as Charset.decode does.
+ *
+ * @author rana
+ *
+ */
+public class CharsetUtilsUnitTest {
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private static boolean strictlyDecodes(byte[] data,int offset,int length,boolean endOfInput,ByteBuffer remainderOut[]) {
+    CharsetDecoder decoder = UTF8.newDecoder()
+      .onMalformedInput(CodingErrorAction.REPORT)
+      .onUnmappableCharacter(CodingErrorAction.REPORT);
+    ByteBuffer bytes = ByteBuffer.wrap(data,offset,length);
+    CoderResult result = decoder.decode(bytes,CharBuffer.allocate(length + 1),endOfInput);
+    if (remainderOut != null) {
+      remainderOut[0] = bytes;
+    }
+    return !result.isError() && (!endOfInput || !bytes.hasRemaining());
+  }
+
+  /**
+   * NUL free, and valid UTF-8 (as decided by the jdk's decoder) up to at most
+   * a sequence cut off by the end of the data, that some continuation bytes
+   * would complete
+   */
+  private static boolean referenceIsASCIIOrUTF8(byte[] data,int offset,int length) {
+    for (int i=offset;i<offset + length;++i) {
+      if (data[i] == 0)
+        return false;
+    }
+    ByteBuffer remainder[] = new ByteBuffer[1];
+    // not end of input, so a trailing partial sequence is left in the buffer rather than reported
+    if (!strictlyDecodes(data,offset,length,false,remainder))
+      return false;
+    int partialLength = remainder[0].remaining();
+    if (partialLength == 0)
+      return true;
+    if (partialLength >= 4)
+      return false;
+    // the decoder doesn't rule out every invalid prefix (e.g. of a surrogate), so try completing it
+    for (int completionLength=1;partialLength + completionLength<=4;++completionLength) {
+      for (int next=0x80;next<=0xBF;++next) {
+        byte completed[] = new byte[partialLength + completionLength];
+        remainder[0].duplicate().get(completed,0,partialLength);
+        Arrays.fill(completed,partialLength,completed.length,(byte)0x80);
+        completed[partialLength] = (byte) next;
+        if (strictlyDecodes(completed,0,completed.length,true,null))
+          return true;
+      }
+    }
+    return false;
+  }
+
+  private static byte[] bytes(int... values) {
+    byte data[] = new byte[values.length];
+    for (int i=0;i<values.length;++i) {
+      data[i] = (byte) values[i];
+    }
+    return data;
+  }
+
+  private static void check(boolean expected,byte[] data) {
+    Assert.assertEquals(Arrays.toString(data),expected,CharsetUtils.isASCIIOrUTF8(data,0,data.length));
+    Assert.assertEquals(Arrays.toString(data),expected,referenceIsASCIIOrUTF8(data,0,data.length));
+    // and the same, somewhere in a larger buffer, past the word at a time fast path
+    byte padded[] = new byte[data.length + 21];
+    Arrays.fill(padded,(byte)'a');
+    padded[0] = (byte) 0xFF;
+    padded[padded.length - 1] = 0;
+    System.arraycopy(data,0,padded,13,data.length);
+    Assert.assertEquals(Arrays.toString(data),expected,CharsetUtils.isASCIIOrUTF8(padded,1,data.length + 12));
+  }
+
+  @Test
+  public void testEdgeCases() throws Exception {
+    check(true,bytes());
+    check(true,"plain old ascii, longer than a word".getBytes("US-ASCII"));
+    check(true,"gr\u00FC\u00DFe \u20AC \uD83D\uDE00 \u4E2D\u6587".getBytes("UTF-8"));
+
+    // overlong forms
+    check(false,bytes(0xC0,0x80,'a'));
+    check(false,bytes(0xC1,0xBF,'a'));
+    check(false,bytes(0xE0,0x80,0x80,'a'));
+    check(false,bytes(0xE0,0x9F,0xBF,'a'));
+    check(true,bytes(0xE0,0xA0,0x80,'a'));
+    check(false,bytes(0xF0,0x80,0x80,0x80,'a'));
+    check(false,bytes(0xF0,0x8F,0xBF,0xBF,'a'));
+    check(true,bytes(0xF0,0x90,0x80,0x80,'a'));
+
+    // surrogates (U+D800-U+DFFF), and their neighbours
+    check(false,bytes(0xED,0xA0,0x80,'a'));
+    check(false,bytes(0xED,0xBF,0xBF,'a'));
+    check(true,bytes(0xED,0x9F,0xBF,'a'));
+    check(true,bytes(0xEE,0x80,0x80,'a'));
+    // an encoded surrogate pair (CESU-8)
+    check(false,bytes(0xED,0xA0,0xBD,0xED,0xB8,0x80));
+
+    // past U+10FFFF
+    check(true,bytes(0xF4,0x8F,0xBF,0xBF,'a'));
+    check(false,bytes(0xF4,0x90,0x80,0x80,'a'));
+    check(false,bytes(0xF5,0x80,0x80,0x80,'a'));
+    check(false,bytes(0xF8,0x88,0x80,0x80,0x80,'a'));
+    check(false,bytes(0xFE));
+    check(false,bytes(0xFF));
+
+    // sequences cut off by the end of the data are allowed, elsewhere they are not
+    check(true,bytes('a',0xE2,0x82));
+    check(true,bytes('a',0xE2));
+    check(true,bytes('a',0xF0,0x9F,0x98));
+    check(true,bytes(0xC3));
+    check(false,bytes('a',0xE2,0x82,'a'));
+    check(false,bytes('a',0xF0,0x9F,0x98,'a'));
+    check(false,bytes(0xC3,0xC3,0xA9));
+    // but not if what there is of them is already invalid
+    check(false,bytes('a',0xE0,0x80));
+    check(false,bytes('a',0xED,0xA0));
+    check(false,bytes('a',0xF4,0x90));
+    check(false,bytes('a',0xF0,0x80,0x80));
+    check(false,bytes('a',0xE2,'a'));
+    // lone continuation bytes
+    check(false,bytes(0x80));
+    check(false,bytes('a',0xBF,'a'));
+    check(false,bytes(0xC3,0xA9,0xA9));
+  }
+
+  @Test
+  public void testNULAndHighBitInEveryWordPosition() throws Exception {
+    for (int length=1;length<=24;++length) {
+      for (int i=0;i<length;++i) {
+        byte data[] = new byte[length];
+        Arrays.fill(data,(byte)'x');
+        data[i] = 0;
+        check(false,data);
+        // a lone continuation byte
+        data[i] = (byte) 0x80;
+        check(false,data);
+        // a two byte sequence (cut off if it starts on the last byte)
+        data[i] = (byte) 0xC3;
+        if (i + 1 < length) {
+          data[i + 1] = (byte) 0xA9;
+        }
+        check(true,data);
+      }
+    }
+  }
+
+  /** a random mix of ascii (with the odd NUL), and one to four byte sequences, valid or not **/
+  private static byte[] randomText(Random random) {
+    StringBuilder text = new StringBuilder();
+    int length = random.nextInt(64);
+    for (int i=0;i<length;++i) {
+      switch (random.nextInt(6)) {
+        case 0: text.append((char)(random.nextInt(200) == 0 ? 0 : 1 + random.nextInt(0x7F))); break;
+        case 1: text.append((char)(0x80 + random.nextInt(0x800 - 0x80))); break;
+        case 2: text.append((char)(0x800 + random.nextInt(0xD800 - 0x800))); break;
+        case 3: text.append((char)(0xE000 + random.nextInt(0x10000 - 0xE000))); break;
+        case 4: text.appendCodePoint(0x10000 + random.nextInt(0x110000 - 0x10000)); break;
+        default: text.append("ascii text "); break;
+      }
+    }
+    byte data[] = text.toString().getBytes(UTF8);
+    // mutate some of them
+    int mutations = (random.nextBoolean()) ? 0 : 1 + random.nextInt(3);
+    for (int i=0;i<mutations && data.length != 0;++i) {
+      int pos = random.nextInt(data.length);
+      switch (random.nextInt(4)) {
+        case 0: data[pos] = (byte) random.nextInt(256); break;
+        case 1: data[pos] ^= (byte) (1 << random.nextInt(8)); break;
+        // lead bytes, continuation bytes, and the bytes around the edge cases
+        case 2: data[pos] = (byte) new int[] { 0x80, 0xBF, 0xC0, 0xC1, 0xC2, 0xDF, 0xE0, 0xED, 0xEF, 0xF0, 0xF4, 0xF5, 0xFF, 0x8F, 0x90, 0x9F, 0xA0 }[random.nextInt(17)]; break;
+        default: data = Arrays.copyOf(data,pos); break;
+      }
+    }
+    return data;
+  }
+
+  @Test
+  public void testAgainstStrictDecoder() throws Exception {
+    Random random = new Random(1);
+    int accepted = 0;
+    for (int trial=0;trial<200000;++trial) {
+      byte data[];
+      if (random.nextInt(10) == 0) {
+        data = new byte[random.nextInt(16)];
+        random.nextBytes(data);
+      }
+      else {
+        data = randomText(random);
+      }
+      // any sub range
+      int offset = (data.length == 0) ? 0 : random.nextInt(data.length);
+      int length = random.nextInt(data.length - offset + 1);
+      boolean expected = referenceIsASCIIOrUTF8(data,offset,length);
+      Assert.assertEquals(Arrays.toString(data) + " offset:" + offset + " length:" + length,
+          expected,CharsetUtils.isASCIIOrUTF8(data,offset,length));
+      accepted += (expected) ? 1 : 0;
+    }
+    // both outcomes are well covered
+    Assert.assertTrue(accepted > 50000 && accepted < 150000);
+  }
+
+  /**
+   * decodes each byte to three hex characters while claiming (at most) one
+   * character per byte, so a decode into a buffer sized from
+   * maxCharsPerByte overflows
+   */
+  private static class ExpandingCharset extends Charset {
+
+    ExpandingCharset() {
+      super("X-CommonCrawl-Test-Expanding",null);
+    }
+
+    @Override
+    public boolean contains(Charset cs) {
+      return false;
+    }
+
+    @Override
+    public CharsetDecoder newDecoder() {
+      return new CharsetDecoder(this,1.0f,1.0f) {
+
+        @Override
+        protected CoderResult decodeLoop(ByteBuffer in,CharBuffer out) {
+          while (in.hasRemaining()) {
+            if (out.remaining() < 3)
+              return CoderResult.OVERFLOW;
+            int b = in.get() & 0xFF;
+            out.put('%');
+            out.put(Character.forDigit(b >> 4,16));
+            out.put(Character.forDigit(b & 0xF,16));
+          }
+          return CoderResult.UNDERFLOW;
+        }
+      };
+    }
+
+    @Override
+    public CharsetEncoder newEncoder() {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  private static void checkDecode(Charset charset,byte[] data,int offset,int length) throws Exception {
+    Assert.assertEquals(charset + " " + Arrays.toString(data) + " offset:" + offset + " length:" + length,
+        charset.decode(ByteBuffer.wrap(data,offset,length)).toString(),
+        CharsetUtils.decodeBytes(charset,data,offset,length));
+  }
+
+  @Test
+  public void testDecodeBytesMatchesCharsetDecode() throws Exception {
+    Random random = new Random(2);
+    Charset charsets[] = new Charset[] {
+        UTF8, Charset.forName("ISO-8859-1"), Charset.forName("windows-1252"), Charset.forName("UTF-16LE"),
+        Charset.forName("UTF-16"), Charset.forName("Shift_JIS"), Charset.forName("GB18030"), Charset.forName("ISO-2022-JP")
+    };
+    for (int trial=0;trial<20000;++trial) {
+      Charset charset = charsets[random.nextInt(charsets.length)];
+      byte data[];
+      if (random.nextBoolean()) {
+        data = new byte[random.nextInt(100)];
+        random.nextBytes(data);
+      }
+      else {
+        data = randomText(random);
+      }
+      int offset = (data.length == 0) ? 0 : random.nextInt(data.length);
+      checkDecode(charset,data,offset,random.nextInt(data.length - offset + 1));
+    }
+
+    // documents larger than the (reused) buffer, then smaller ones again
+    byte large[] = new byte[300000];
+    random.nextBytes(large);
+    for (Charset charset : charsets) {
+      checkDecode(charset,large,0,large.length);
+      checkDecode(charset,large,1000,100);
+      checkDecode(charset,large,7,large.length - 7);
+    }
+    // documents larger than the buffer that is retained between calls
+    byte huge[] = new byte[(1 << 22) + 100];
+    Arrays.fill(huge,(byte)'a');
+    checkDecode(UTF8,huge,0,huge.length);
+    checkDecode(UTF8,huge,0,10);
+  }
+
+  @Test
+  public void testDecodeBytesGrowsBuffer() throws Exception {
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    // on a thread of its own, so it starts with the initial (64K char) decode buffer
+    Thread thread = new Thread() {
+
+      @Override
+      public void run() {
+        try {
+          Charset charset = new ExpandingCharset();
+          Random random = new Random(3);
+          // output from (well) inside the initial buffer to several times its size, and back
+          int lengths[] = new int[] { 0, 1, 5, 100, 30000, 70000, 200000, 10, 200000 };
+          for (int length : lengths) {
+            byte data[] = new byte[length + 10];
+            random.nextBytes(data);
+            checkDecode(charset,data,5,length);
+            Assert.assertEquals(length * 3,CharsetUtils.decodeBytes(charset,data,5,length).length());
+          }
+        }
+        catch (Throwable e) {
+          failure.set(e);
+        }
+      }
+    };
+    thread.start();
+    thread.join();
+    if (failure.get() != null) {
+      throw new AssertionError(failure.get());
+    }
+  }
+}
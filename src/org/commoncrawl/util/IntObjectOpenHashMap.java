@@ -0,0 +1,260 @@
+/**
+ * Copyright 2008 - CommonCrawl Foundation
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ **/
+package org.commoncrawl.util;
+
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * An open addressing (linear probing) hash map from primitive int keys to
+ * objects, for large maps keyed by ip address and the like, where a TreeMap
+ * or HashMap costs an Integer plus an entry object per mapping.
+ *
+ * Null values are not supported (a null value marks an empty slot). Removal
+ * shifts subsequent entries of the probe run back, so there are no
+ * tombstones and lookups don't degrade under churn. The table grows by
+ * doubling and is never shrunk. Not thread safe.
+ *
+ * Iteration is over values, in table order.
+ *
+ * @author rana
+ *
+ */
+public class IntObjectOpenHashMap<V> implements Iterable<V> {
+
+  public static final int   DEFAULT_INITIAL_SIZE = 16;
+  public static final float DEFAULT_LOAD_FACTOR  = .5f;
+
+  private int      _keys[];
+  private Object   _values[];
+  private int      _mask;
+  private int      _size;
+  private int      _maxFill;
+  private int      _modCount;
+  private final float _loadFactor;
+
+  public IntObjectOpenHashMap() {
+    this(DEFAULT_INITIAL_SIZE, DEFAULT_LOAD_FACTOR);
+  }
+
+  public IntObjectOpenHashMap(int expectedSize) {
+    this(expectedSize, DEFAULT_LOAD_FACTOR);
+  }
+
+  public IntObjectOpenHashMap(int expectedSize, float loadFactor) {
+    if (loadFactor <= 0 || loadFactor >= 1) {
+      throw new IllegalArgumentException("Load factor must be in (0,1):" + loadFactor);
+    }
+    _loadFactor = loadFactor;
+    allocate(tableSizeFor((int) Math.ceil(Math.max(expectedSize, 1) / loadFactor)));
+  }
+
+  private static int tableSizeFor(int capacity) {
+    int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+    if (size <= 0) {
+      throw new IllegalArgumentException("Capacity too large:" + capacity);
+    }
+    return size;
+  }
+
+  private void allocate(int tableSize) {
+    _keys = new int[tableSize];
+    _values = new Object[tableSize];
+    _mask = tableSize - 1;
+    _maxFill = Math.min(tableSize - 1, (int) (tableSize * _loadFactor));
+  }
+
+  /** spread the key bits (ip addresses and the like are far from random) **/
+  private static int slotFor(int key, int mask) {
+    int h = key * 0x9E3779B9;
+    return (h ^ (h >>> 16)) & mask;
+  }
+
+  public int size() {
+    return _size;
+  }
+
+  public boolean isEmpty() {
+    return _size == 0;
+  }
+
+  @SuppressWarnings("unchecked")
+  public V get(int key) {
+    int slot = slotFor(key, _mask);
+    Object value;
+    while ((value = _values[slot]) != null) {
+      if (_keys[slot] == key) {
+        return (V) value;
+      }
+      slot = (slot + 1) & _mask;
+    }
+    return null;
+  }
+
+  public boolean containsKey(int key) {
+    return get(key) != null;
+  }
+
+  /** add or replace a mapping, returning the previous value (if any) **/
+  @SuppressWarnings("unchecked")
+  public V put(int key, V value) {
+    if (value == null) {
+      throw new IllegalArgumentException("Null values are not supported");
+    }
+    int slot = slotFor(key, _mask);
+    Object existing;
+    while ((existing = _values[slot]) != null) {
+      if (_keys[slot] == key) {
+        _values[slot] = value;
+        return (V) existing;
+      }
+      slot = (slot + 1) & _mask;
+    }
+    _keys[slot] = key;
+    _values[slot] = value;
+    _modCount++;
+    if (++_size > _maxFill) {
+      rehash(_values.length << 1);
+    }
+    return null;
+  }
+
+  /** remove a mapping, returning the removed value (if any) **/
+  @SuppressWarnings("unchecked")
+  public V remove(int key) {
+    int slot = slotFor(key, _mask);
+    Object value;
+    while ((value = _values[slot]) != null) {
+      if (_keys[slot] == key) {
+        shiftBack(slot);
+        _size--;
+        _modCount++;
+        return (V) value;
+      }
+      slot = (slot + 1) & _mask;
+    }
+    return null;
+  }
+
+  /**
+   * close the hole left at the given slot by moving back any subsequent
+   * entries of the probe run that would otherwise become unreachable
+   */
+  private void shiftBack(int hole) {
+    int slot = hole;
+    while (true) {
+      slot = (slot + 1) & _mask;
+      if (_values[slot] == null) {
+        break;
+      }
+      int home = slotFor(_keys[slot], _mask);
+      // the entry can move into the hole only if its home slot is not
+      // (cyclically) in between the hole and its current slot
+      if (((slot - home) & _mask) >= ((slot - hole) & _mask)) {
+        _keys[hole] = _keys[slot];
+        _values[hole] = _values[slot];
+        hole = slot;
+      }
+    }
+    _values[hole] = null;
+  }
+
+  private void rehash(int newTableSize) {
+    int oldKeys[] = _keys;
+    Object oldValues[] = _values;
+    allocate(newTableSize);
+    for (int i = 0; i < oldValues.length; ++i) {
+      if (oldValues[i] != null) {
+        int slot = slotFor(oldKeys[i], _mask);
+        while (_values[slot] != null) {
+          slot = (slot + 1) & _mask;
+        }
+        _keys[slot] = oldKeys[i];
+        _values[slot] = oldValues[i];
+      }
+    }
+  }
+
+  public void clear() {
+    if (_size != 0) {
+      Arrays.fill(_values, null);
+      _size = 0;
+      _modCount++;
+    }
+  }
+
+  /** returns a copy of the keys currently in the map **/
+  public int[] keys() {
+    int keysOut[] = new int[_size];
+    int index = 0;
+    for (int i = 0; i < _values.length; ++i) {
+      if (_values[i] != null) {
+        keysOut[index++] = _keys[i];
+      }
+    }
+    return keysOut;
+  }
+
+  /** the values in the map (a view, for symmetry with java.util.Map) **/
+  public Iterable<V> values() {
+    return this;
+  }
+
+  /** iterate the values in the map. the map must not be modified while iterating **/
+  @Override
+  public Iterator<V> iterator() {
+    return new Iterator<V>() {
+
+      int _next = advance(0);
+      final int _expectedModCount = _modCount;
+
+      private int advance(int slot) {
+        while (slot < _values.length && _values[slot] == null) {
+          slot++;
+        }
+        return slot;
+      }
+
+      @Override
+      public boolean hasNext() {
+        return _next < _values.length;
+      }
+
+      @SuppressWarnings("unchecked")
+      @Override
+      public V next() {
+        if (_modCount != _expectedModCount) {
+          throw new ConcurrentModificationException();
+        }
+        if (_next >= _values.length) {
+          throw new NoSuchElementException();
+        }
+        V value = (V) _values[_next];
+        _next = advance(_next + 1);
+        return value;
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+}
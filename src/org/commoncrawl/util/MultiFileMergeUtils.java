@@ -41,7 +41,7 @@ import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -57,7 +57,6 @@ import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.io.RawComparator;
 import org.apache.hadoop.io.SequenceFile;
 import org.apache.hadoop.io.SequenceFile.CompressionType;
-import org.apache.hadoop.io.SequenceFile.ValueBytes;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.io.WritableComparable;
@@ -72,6 +71,8 @@ import org.apache.hadoop.mapreduce.JobContext;
 import org.apache.hadoop.mapreduce.TaskAttemptContext;
 import org.apache.hadoop.util.Progressable;
 import org.apache.hadoop.util.ReflectionUtils;
+import org.commoncrawl.hadoop.mergeutils.LoserTree;
+import org.commoncrawl.hadoop.mergeutils.ReadAheadSequenceFileReader;
 import org.commoncrawl.util.MultiFileMergeUtils.MultiFileInputReader.KeyAndValueData;
 import org.commoncrawl.util.MultiFileMergeUtils.MultiFileInputReader.RawRecordValue;
 import org.commoncrawl.util.Tuples.Pair;
@@ -382,9 +383,12 @@ public class MultiFileMergeUtils {
     public static final String MULTIFILE_COMPARATOR_CLASS = "mutlifile.compaarator.class";
     public static final String MULTIFILE_KEY_CLASS 				= "mutlifile.key.class";
 
+    // tournament tree over the input sources, ordered by their current keys
     @SuppressWarnings("rawtypes")
-    PriorityQueue<InputSource> _inputs = new PriorityQueue<InputSource>(1); 
-    
+    LoserTree<InputSource> _inputs = null;
+    // executor used to read ahead input data (null if read-ahead is disabled)
+    ExecutorService _readAheadExecutor = null;
+    int _readAheadBatchSize;
     
     Configuration _conf;
     @SuppressWarnings("rawtypes")
@@ -438,20 +442,51 @@ public class MultiFileMergeUtils {
       _keyObject = (KeyClassType)ReflectionUtils.newInstance(_keyClass, conf); 
       LOG.info("Constructed Key Object Of Type:" + _keyClass.getName());
 
-      for (Path path : inputPaths) {
-        LOG.info("Adding Stream at Path:" + path);
-        InputSource inputSource = new InputSource(fs, _conf, path,(_rawComparator == null) ? _keyClass : null);
+      _readAheadExecutor = ReadAheadSequenceFileReader.createReadAheadExecutor(conf, "MultiFileInputReader");
+      _readAheadBatchSize = ReadAheadSequenceFileReader.getBatchSize(conf,inputPaths.size());
+
+      ArrayList<InputSource> sources = new ArrayList<InputSource>();
+      
+      try { 
+        // open all streams first, so that their initial reads overlap
+        for (Path path : inputPaths) {
+          LOG.info("Adding Stream at Path:" + path);
+          sources.add(new InputSource(fs, _conf, path,(_rawComparator == null) ? _keyClass : null));
+        }
         
-        // advance to first item 
-        if (inputSource.next() == false) {
-          LOG.error("Stream At Path:" + path  + " contains zero entries!");
+        ArrayList<InputSource> validSources = new ArrayList<InputSource>();
+        
+        for (InputSource inputSource : sources) { 
+          // advance to first item 
+          if (inputSource.next() == false) {
+            LOG.error("Stream At Path:" + inputSource._path  + " contains zero entries!");
+            inputSource.close();
+          }
+          else {
+            LOG.info("Stream at Path:" + inputSource._path + " is VALID");
+            validSources.add(inputSource);
+          }
+        }
+        sources = validSources;
+      }
+      catch (IOException e) { 
+        LOG.error(CCStringUtils.stringifyException(e));
+        for (InputSource inputSource : sources) { 
           inputSource.close();
         }
-        else {
-          LOG.info("Stream at Path:" + path + " is VALID");
-          _inputs.add(inputSource);
+        if (_readAheadExecutor != null) { 
+          _readAheadExecutor.shutdown();
         }
+        throw e;
       }
+      
+      _inputs = new LoserTree<InputSource>(sources.toArray(new InputSource[0]),new Comparator<InputSource>() {
+
+        @Override
+        public int compare(InputSource o1, InputSource o2) {
+          return o1.compareTo(o2);
+        }
+      });
       LOG.info("Finished With Initial Sort");
     }
 
@@ -467,8 +502,8 @@ public class MultiFileMergeUtils {
       @Override
       public boolean hasNext() {
         if (_currentValue == null) { 
-          // peek at the top most item in the queue
-          InputSource nextSource = _inputs.peek();
+          // peek at the top most item in the tree
+          InputSource nextSource = _inputs.top();
           if (nextSource != null) { 
             // ok now compare against next item to see if there is a match 
             int result = (_rawComparator != null) ? 
@@ -480,27 +515,12 @@ public class MultiFileMergeUtils {
             if (result == 0) { 
               // save the current value ... 
               _currentValue = nextSource._value;
-              // pop source ... 
-              _inputs.remove();
-              // advance it (potentially) 
+              // advance the source (potentially) 
               try  {
-                if (!nextSource.next()) {
-                  // if no more data .. gracefully close the source ... 
-                  nextSource.close();
-                }
-                // otherwise resinsert in priority queue 
-                else { 
-                  _inputs.add(nextSource);
-                }
+                advanceTopSource();
               }
               catch (IOException e) { 
                 LOG.error(CCStringUtils.stringifyException(e));
-                try { 
-                  nextSource.close();
-                }
-                catch (Exception e2) { 
-                  
-                }
                 return false;
               }
             }
@@ -530,8 +550,8 @@ public class MultiFileMergeUtils {
     @SuppressWarnings({ "rawtypes", "unchecked" })
     public Pair<KeyAndValueData<KeyClassType>,Iterable<RawRecordValue>> getNextItemIterator() throws IOException { 
 
-      // pop the top most item in the queue
-      InputSource nextSource = _inputs.poll();
+      // get the top most source in the tree
+      InputSource nextSource = _inputs.top();
       
 
       // if data available ... 
@@ -566,14 +586,8 @@ public class MultiFileMergeUtils {
           //LOG.info("Using Input:" + _inputs[0]._path + " as primary key");
 
           // advance input zero 
-          if (!nextSource.next()) {
-            // if no more data .. gracefully close the source ... 
-            nextSource.close();
-          }
-          // otherwise resinsert in priority queue 
-          else { 
-            _inputs.add(nextSource);
-          }
+          nextSource = null;
+          advanceTopSource();
 
           // return tuple ... 
           return new Pair<KeyAndValueData<KeyClassType>, Iterable<RawRecordValue>>(_keyAndValueData,new RawValueIterator(initialValue));
@@ -581,11 +595,8 @@ public class MultiFileMergeUtils {
         catch (IOException e) { 
           LOG.error(CCStringUtils.stringifyException(e));
           
-          try {
-            nextSource.close(); 
-          }
-          catch (Exception e2) { 
-            
+          if (nextSource != null) { 
+            retireTopSource();
           }
           
           throw e;
@@ -599,8 +610,8 @@ public class MultiFileMergeUtils {
     @SuppressWarnings({ "rawtypes", "unchecked" })
     public KeyAndValueData<KeyClassType> readNextItem() throws IOException {
 
-      // pop the top most item in the queue
-      InputSource nextSource = _inputs.poll();
+      // get the top most source in the tree
+      InputSource nextSource = _inputs.top();
       
       if (nextSource != null) { 
         try { 
@@ -628,15 +639,8 @@ public class MultiFileMergeUtils {
 
           //LOG.info("Using Input:" + _inputs[0]._path + " as primary key");
           // advance input zero 
-          if (!nextSource.next()) {
-            // if no more data .. gracefully close the source ... 
-            nextSource.close();
-          }
-          // otherwise resinsert in priority queue 
-          else { 
-            _inputs.add(nextSource);
-          }
           nextSource = null;
+          advanceTopSource();
           // create an interator ... 
           RawValueIterator iterator = new RawValueIterator(initialValue);
           // iterator ...
@@ -648,11 +652,7 @@ public class MultiFileMergeUtils {
         catch (IOException e) {
           LOG.error(CCStringUtils.stringifyException(e));
           if (nextSource != null) { 
-            try {
-              nextSource.close();
-            }
-            catch (Exception e2) { 
-            }
+            retireTopSource();
           }
           throw e;
         }
@@ -665,16 +665,57 @@ public class MultiFileMergeUtils {
 
     @SuppressWarnings({ "rawtypes", "unchecked" })
     public void close() {
-      InputSource nextSource = null;
-      while ((nextSource = _inputs.poll()) != null) { 
-        try { 
-          nextSource.close();
+      for (int i=0;i<_inputs.getSourceCount();++i) { 
+        // exhausted sources have already been closed 
+        if (!_inputs.isExhausted(i)) { 
+          try { 
+            _inputs.getSource(i).close();
+          }
+          catch (Exception e) { 
+            LOG.error(CCStringUtils.stringifyException(e));
+          }
         }
-        catch (Exception e) { 
-          LOG.error(CCStringUtils.stringifyException(e));
+      }
+      _inputs = new LoserTree<InputSource>(new InputSource[0],null);
+      if (_readAheadExecutor != null) { 
+        _readAheadExecutor.shutdown();
+        _readAheadExecutor = null;
+      }
+    }
+    
+    /** 
+     * advance the top most source in the tree, retiring (and closing) it if it
+     * has no more data or fails 
+     */
+    @SuppressWarnings("rawtypes")
+    private void advanceTopSource() throws IOException { 
+      InputSource source = _inputs.top();
+      boolean exhausted = true;
+      try { 
+        exhausted = !source.next();
+      }
+      finally { 
+        _inputs.adjustTop(exhausted);
+        if (exhausted) { 
+          // if no more data .. gracefully close the source ... 
+          source.close();
         }
       }
     }
+    
+    /** 
+     * drop the top most source from the tree and close it 
+     */
+    @SuppressWarnings("rawtypes")
+    private void retireTopSource() { 
+      InputSource source = _inputs.top();
+      _inputs.adjustTop(true);
+      try { 
+        source.close();
+      }
+      catch (Exception e) { 
+      }
+    }
 
     private static final Class<?>[] EMPTY_ARRAY = new Class[]{};
 
@@ -684,20 +725,18 @@ public class MultiFileMergeUtils {
       
       boolean 					  eos = false;
       Path 								_path;
-      SequenceFile.Reader _reader;
+      ReadAheadSequenceFileReader _reader;
       DataOutputBuffer    _keyData = null;
       DataInputBuffer 	  _keyDataReader = new DataInputBuffer();
       Class				  _keyClass;
       Constructor   _keyObjectConstructor;
       private KeyClassType			  _keyObject;
       RawRecordValue 	  _value;
-      ValueBytes       	  _valueBytes = null;
 
 
       public InputSource(FileSystem fs,Configuration conf,Path inputPath,Class optKeyClass) throws IOException { 
         _path = inputPath;
-        _reader = new SequenceFile.Reader(fs,_path,conf);
-        _valueBytes = _reader.createValueBytes();
+        _reader = new ReadAheadSequenceFileReader(fs,conf,_path,_readAheadBatchSize,_readAheadExecutor);
         _keyClass = optKeyClass;
         if (_keyClass != null) { 
           try {
@@ -729,11 +768,10 @@ public class MultiFileMergeUtils {
           _keyData = _value.key;
           _value.source = _path;
 
-          eos = (_reader.nextRawKey(_keyData) == -1);
+          eos = !_reader.next();
           if (!eos) { 
-            if (_reader.nextRawValue(_valueBytes) != 0) { 
-              _valueBytes.writeUncompressedBytes(_value.data);
-            }
+            _keyData.write(_reader.getKeyData(), _reader.getKeyOffset(), _reader.getKeyLength());
+            _value.data.write(_reader.getValueData(), _reader.getValueOffset(), _reader.getValueLength());
             // now if key object is present ... 
             if (_keyObject != null) { 
               _keyDataReader.reset(_keyData.getData(), _keyData.getLength());
@@ -896,10 +934,13 @@ public class MultiFileMergeUtils {
       
     // two passes... one using raw comparator, one using simple Comparator
     // (code paths for two scenarios are different, so we need to validate both)
-    for (int pass=0;pass<2;++pass) { 
+    // each repeated with and without background read-ahead 
+    for (int pass=0;pass<4;++pass) { 
 
+      conf.setBoolean(ReadAheadSequenceFileReader.READAHEAD_ENABLED_PARAM, pass < 2);
+      
       // setup merger ... 
-      if (pass == 0) { 
+      if (pass % 2 == 0) { 
         System.out.println("******Using Raw Comparator");
         conf.setClass(MultiFileInputReader.MULTIFILE_COMPARATOR_CLASS, IntWritable.Comparator.class,Comparator.class);
       }
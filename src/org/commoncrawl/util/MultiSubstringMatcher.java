@@ -0,0 +1,194 @@
+/**
+ * Copyright 2008 - CommonCrawl Foundation
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ **/
+package org.commoncrawl.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Finds all occurrences of a (potentially very large) set of strings in an
+ * input string, in a single pass over the input (an Aho-Corasick automaton).
+ *
+ * Each string is identified by the index it was added with. Immutable, and so
+ * thread safe, once built.
+ *
+ * @author rana
+ *
+ */
+public class MultiSubstringMatcher {
+
+  /** receives the index of each string found in the input **/
+  public interface MatchHandler {
+    /** return true to stop the scan **/
+    boolean onMatch(int stringIndex);
+  }
+
+  private static final char[] NO_CHARS = new char[0];
+  private static final int[]  NO_NODES = new int[0];
+
+  // per node: sorted child chars, and the corresponding child nodes
+  private char[][] _childChars;
+  private int[][]  _childNodes;
+  // per node: the longest proper suffix of the node's string that is also in the trie
+  private int[]    _fail;
+  // per node: the next node along the fail chain that ends one or more strings (or -1)
+  private int[]    _outputLink;
+  // per node: the strings ending at the node (or null)
+  private int[][]  _outputs;
+
+  /**
+   * build a matcher over the given strings. empty (and null) strings are
+   * ignored.
+   */
+  public MultiSubstringMatcher(String[] strings) {
+    ArrayList<char[]> childChars = new ArrayList<char[]>();
+    ArrayList<int[]>  childNodes = new ArrayList<int[]>();
+    ArrayList<int[]>  outputs = new ArrayList<int[]>();
+
+    // root
+    childChars.add(NO_CHARS);
+    childNodes.add(NO_NODES);
+    outputs.add(null);
+
+    for (int i=0;i<strings.length;++i) {
+      String string = strings[i];
+      if (string == null || string.length() == 0) {
+        continue;
+      }
+      int node = 0;
+      for (int j=0;j<string.length();++j) {
+        char c = string.charAt(j);
+        char chars[] = childChars.get(node);
+        int  index = Arrays.binarySearch(chars,c);
+        if (index >= 0) {
+          node = childNodes.get(node)[index];
+        }
+        else {
+          int insertAt = -(index + 1);
+          int newNode = childChars.size();
+          childChars.add(NO_CHARS);
+          childNodes.add(NO_NODES);
+          outputs.add(null);
+          childChars.set(node,insert(chars,insertAt,c));
+          childNodes.set(node,insert(childNodes.get(node),insertAt,newNode));
+          node = newNode;
+        }
+      }
+      int existing[] = outputs.get(node);
+      outputs.set(node,(existing == null) ? new int[] { i } : insert(existing,existing.length,i));
+    }
+
+    int nodeCount = childChars.size();
+    _childChars = childChars.toArray(new char[nodeCount][]);
+    _childNodes = childNodes.toArray(new int[nodeCount][]);
+    _outputs = outputs.toArray(new int[nodeCount][]);
+    _fail = new int[nodeCount];
+    _outputLink = new int[nodeCount];
+    _outputLink[0] = -1;
+
+    // breadth first, so a node's fail target is always resolved before the node
+    int queue[] = new int[nodeCount];
+    int head = 0;
+    int tail = 0;
+    for (int child : _childNodes[0]) {
+      _fail[child] = 0;
+      _outputLink[child] = -1;
+      queue[tail++] = child;
+    }
+    while (head != tail) {
+      int node = queue[head++];
+      char chars[] = _childChars[node];
+      int  children[] = _childNodes[node];
+      for (int i=0;i<chars.length;++i) {
+        int child = children[i];
+        int fail = _fail[node];
+        int target;
+        while ((target = childOf(fail,chars[i])) == -1 && fail != 0) {
+          fail = _fail[fail];
+        }
+        _fail[child] = (target == -1) ? 0 : target;
+        _outputLink[child] = (_outputs[_fail[child]] != null) ? _fail[child] : _outputLink[_fail[child]];
+        queue[tail++] = child;
+      }
+    }
+  }
+
+  private static char[] insert(char[] array,int index,char value) {
+    char newArray[] = new char[array.length + 1];
+    System.arraycopy(array,0,newArray,0,index);
+    newArray[index] = value;
+    System.arraycopy(array,index,newArray,index + 1,array.length - index);
+    return newArray;
+  }
+
+  private static int[] insert(int[] array,int index,int value) {
+    int newArray[] = new int[array.length + 1];
+    System.arraycopy(array,0,newArray,0,index);
+    newArray[index] = value;
+    System.arraycopy(array,index,newArray,index + 1,array.length - index);
+    return newArray;
+  }
+
+  private int childOf(int node,char c) {
+    int index = Arrays.binarySearch(_childChars[node],c);
+    return (index >= 0) ? _childNodes[node][index] : -1;
+  }
+
+  /** number of trie nodes (a rough measure of the matcher's size) **/
+  public int getNodeCount() {
+    return _fail.length;
+  }
+
+  /**
+   * scan the input, passing the index of every string found to the handler
+   * (once per occurrence), until the handler asks to stop.
+   *
+   * @return true if the handler stopped the scan
+   */
+  public boolean scan(String input,MatchHandler handler) {
+    int node = 0;
+    for (int i=0;i<input.length();++i) {
+      char c = input.charAt(i);
+      int next;
+      while ((next = childOf(node,c)) == -1 && node != 0) {
+        node = _fail[node];
+      }
+      node = (next == -1) ? 0 : next;
+
+      for (int output = (_outputs[node] != null) ? node : _outputLink[node]; output != -1; output = _outputLink[output]) {
+        for (int stringIndex : _outputs[output]) {
+          if (handler.onMatch(stringIndex)) {
+            return true;
+          }
+        }
+      }
+    }
+    return false;
+  }
+
+  /** true if the input contains any of the strings **/
+  public boolean matches(String input) {
+    return scan(input,new MatchHandler() {
+
+      @Override
+      public boolean onMatch(int stringIndex) {
+        return true;
+      }
+    });
+  }
+}
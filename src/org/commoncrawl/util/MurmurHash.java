@@ -63,6 +63,47 @@ public class MurmurHash {
     return hash(bytes, bytes.length, seed);
   }
 
+  /**
+   * same result as hash() over the 16 byte big-endian encoding of v1 followed
+   * by v2, without materializing the bytes
+   */
+  public static final int hashBigEndian(long v1, long v2, int seed) {
+    int h = seed ^ 16;
+    h = mix(h, Integer.reverseBytes((int) (v1 >>> 32)));
+    h = mix(h, Integer.reverseBytes((int) v1));
+    h = mix(h, Integer.reverseBytes((int) (v2 >>> 32)));
+    h = mix(h, Integer.reverseBytes((int) v2));
+    return finish(h);
+  }
+
+  /**
+   * same result as hash() over the 12 byte big-endian encoding of v1 followed
+   * by v2, without materializing the bytes
+   */
+  public static final int hashBigEndian(int v1, long v2, int seed) {
+    int h = seed ^ 12;
+    h = mix(h, Integer.reverseBytes(v1));
+    h = mix(h, Integer.reverseBytes((int) (v2 >>> 32)));
+    h = mix(h, Integer.reverseBytes((int) v2));
+    return finish(h);
+  }
+
+  private static final int mix(int h, int k) {
+    k *= m;
+    k ^= k >>> r;
+    k *= m;
+    h *= m;
+    h ^= k;
+    return h;
+  }
+
+  private static final int finish(int h) {
+    h ^= h >>> 13;
+    h *= m;
+    h ^= h >>> 15;
+    return h;
+  }
+
   public static final int hash(byte[] data, int length, int seed) {
     return hash(data, 0, length, seed);
   }
@@ -85,6 +85,9 @@ public class OpenBitSet implements Serializable {
    */
   protected static final int PAGE_SIZE= 4096; 
 
+  /** offset of the first element of a long[] (see atomicSet) **/
+  private static final long LONG_ARRAY_BASE_OFFSET = ByteArrayUtils.theUnsafe.arrayBaseOffset(long[].class);
+
   /** Constructs an OpenBitSet large enough to hold numBits.
    *
    * @param numBits
@@ -249,6 +252,25 @@ public class OpenBitSet implements Serializable {
     bits[ wordNum / PAGE_SIZE ][ wordNum % PAGE_SIZE ] |= bitmask;
   }
 
+  /** Atomically sets the bit at the specified index, so that concurrent sets of
+   * bits that share a word don't get lost. Returns true if the bit was not set before.
+   * The index should be less than the OpenBitSet size.
+   */
+  public boolean atomicSet(long index) {
+    int wordNum = (int)(index >> 6);
+    int bit = (int)index & 0x3f;
+    long bitmask = 1L << bit;
+    long[] page = bits[ wordNum / PAGE_SIZE ];
+    long address = LONG_ARRAY_BASE_OFFSET + ((long)(wordNum % PAGE_SIZE) << 3);
+    while (true) {
+      long word = ByteArrayUtils.theUnsafe.getLongVolatile(page, address);
+      if ((word & bitmask) != 0)
+        return false;
+      if (ByteArrayUtils.theUnsafe.compareAndSwapLong(page, address, word, word | bitmask))
+        return true;
+    }
+  }
+
   /** Sets a range of bits, expanding the set size if necessary
    *
    * @param startIndex lower index
@@ -532,8 +554,12 @@ public class OpenBitSet implements Serializable {
   public long cardinality() 
   {
     long bitCount = 0L;
-    for (int i=getPageCount();i-->0;)
-        bitCount+=BitUtil.pop_array(bits[i],0,wlen);
+    for (int i=getPageCount();i-->0;) {
+        // only the last page is partially used 
+        int pageWords = Math.min(PAGE_SIZE, wlen - i * PAGE_SIZE);
+        if (pageWords > 0)
+          bitCount+=BitUtil.pop_array(bits[i],0,pageWords);
+    }
     
     return bitCount;
   }
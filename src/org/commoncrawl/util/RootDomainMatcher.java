@@ -0,0 +1,428 @@
+/**
+ * Copyright 2008 - CommonCrawl Foundation
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ **/
+package org.commoncrawl.util;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * The effective tld rule set (conf/effective_tld_list.txt) compiled into a
+ * reversed label trie, used to locate the root domain of a host name directly
+ * in a byte buffer.
+ *
+ * Trie nodes live in an open addressed hash table keyed by (parent node,
+ * label bytes), so a lookup walks at most three labels from the right hand
+ * side of the host and never allocates. The matching rules are exactly those
+ * of the original URLUtils.extractRootDomainName implementation (including
+ * its treatment of empty labels and wildcard / exception rules).
+ *
+ * @author rana
+ *
+ */
+public final class RootDomainMatcher {
+
+  private static final Log LOG = LogFactory.getLog(RootDomainMatcher.class);
+
+  /** tld node flags **/
+  private static final int HAS_RULES     = 1 << 0;  // tld has at least one rule
+  private static final int HAS_EMPTY     = 1 << 1;  // bare tld rule ("com")
+  private static final int HAS_STAR      = 1 << 2;  // "*.tld"
+  /** second level node flags **/
+  private static final int SECONDARY     = 1 << 3;  // "label.tld"
+  private static final int EXCEPTION     = 1 << 4;  // "!label.tld"
+  private static final int WILDCARD      = 1 << 5;  // "*.label.tld"
+  /** third level node flags **/
+  private static final int EXCEPTION2    = 1 << 6;  // "!label3.label2.tld"
+
+  private static final int ROOT = 0;
+
+  /** node data **/
+  private int[]  _nodeFlags      = new int[1024];
+  private int[]  _nodeParent     = new int[1024];
+  private int[]  _nodeLabelStart = new int[1024];
+  private int[]  _nodeLabelLen   = new int[1024];
+  private int    _nodeCount      = 1; // ROOT
+  /** label bytes **/
+  private byte[] _labelPool      = new byte[16384];
+  private int    _labelPoolSize  = 0;
+  /** hash table of node ids (0 == empty slot) **/
+  private int[]  _table;
+  private int    _tableMask;
+
+  private static final class Holder {
+    static final RootDomainMatcher INSTANCE = loadDefault();
+  }
+
+  /** the matcher built from /conf/effective_tld_list.txt **/
+  public static RootDomainMatcher get() {
+    return Holder.INSTANCE;
+  }
+
+  private static RootDomainMatcher loadDefault() {
+    try {
+      InputStream inputStream = RootDomainMatcher.class.getResourceAsStream("/conf/effective_tld_list.txt");
+      try {
+        return new RootDomainMatcher(new InputStreamReader(inputStream, Charset.forName("UTF-8")));
+      } finally {
+        inputStream.close();
+      }
+    } catch (IOException e) {
+      LOG.error(CCStringUtils.stringifyException(e));
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * compile the rules in the given reader (effective_tld_list.txt format, as
+   * parsed by TLDNamesCollection)
+   */
+  public RootDomainMatcher(Reader rules) throws IOException {
+    BufferedReader reader = new BufferedReader(rules);
+    ArrayList<String[]> entries = new ArrayList<String[]>();
+    String line = null;
+    while ((line = reader.readLine()) != null) {
+      if (!line.startsWith("//")) {
+        if (line.length() != 0) {
+          int indexOfDot = line.lastIndexOf(".");
+          if (indexOfDot == -1) {
+            entries.add(new String[] { line.trim(), "" });
+          } else {
+            entries.add(new String[] { line.substring(indexOfDot + 1).trim(), line.substring(0, indexOfDot).trim() });
+          }
+        }
+      }
+    }
+    allocateTable(entries.size() * 2);
+    for (String[] entry : entries) {
+      addRule(entry[0], entry[1]);
+    }
+  }
+
+  /**
+   * locate the root domain in the given host name bytes.
+   *
+   * @return the offset of the first byte of the root domain, or -1 if the
+   *         host has none. The root domain ends at offset + length, less one
+   *         if the host ends in a '.' (see {@link #rootDomainEnd}).
+   */
+  public int findRootDomain(byte[] host, int offset, int length) {
+    int end = offset + length;
+
+    // special case for ip addresses
+    if (isIPAddress(host, offset, end)) {
+      return offset;
+    }
+    // strip trailing dot and leading wildcard
+    if (end > offset && host[end - 1] == '.') {
+      end--;
+    }
+    int begin = offset;
+    if (end - begin > 1 && host[begin] == '*') {
+      begin++;
+    }
+    if (begin == end) {
+      return -1;
+    }
+    for (int i = begin; i < end; ++i) {
+      if (!isValidDomainChar(host[i]))
+        return -1;
+    }
+    // trailing empty labels are dropped
+    int labelsEnd = end;
+    while (labelsEnd > begin && host[labelsEnd - 1] == '.')
+      labelsEnd--;
+    if (labelsEnd == begin)
+      return -1;
+    int start = matchLabels(host, begin, labelsEnd);
+    if (start == -1)
+      return -1;
+    // the root domain length is measured from the end of the host, so any
+    // dropped (extra) trailing dots shift its start accordingly
+    return start + (end - labelsEnd);
+  }
+
+  private int matchLabels(byte[] host, int begin, int labelsEnd) {
+
+    // right most labels (tld first)
+    int tldStart = labelStart(host, begin, labelsEnd);
+    if (tldStart == begin)
+      return -1; // single label
+    int secondEnd = tldStart - 1;
+    int secondStart = labelStart(host, begin, secondEnd);
+    // label count is 2, 3 or >= 4
+    int thirdEnd = secondStart - 1;
+    int thirdStart = (secondStart > begin) ? labelStart(host, begin, thirdEnd) : -1;
+    int fourthEnd = thirdStart - 1;
+    boolean hasThird = thirdStart != -1;
+    boolean hasFourth = hasThird && thirdStart > begin;
+
+    int tld = lookup(ROOT, host, tldStart, labelsEnd - tldStart);
+    if (tld == 0 || (_nodeFlags[tld] & HAS_RULES) == 0) {
+      return -1;
+    }
+    int tldFlags = _nodeFlags[tld];
+    int second = lookup(tld, host, secondStart, secondEnd - secondStart);
+    int secondFlags = (second != 0) ? _nodeFlags[second] : 0;
+
+    if ((secondFlags & SECONDARY) != 0 || (tldFlags & HAS_STAR) != 0) {
+      if ((secondFlags & EXCEPTION) != 0) {
+        // explicit override. second to last label is NOT part of the tld
+        return secondStart;
+      } else if (hasThird) {
+        return thirdStart;
+      }
+    } else if ((secondFlags & WILDCARD) != 0) {
+      if (hasThird) {
+        int third = lookup(second, host, thirdStart, thirdEnd - thirdStart);
+        if (third != 0 && (_nodeFlags[third] & EXCEPTION2) != 0) {
+          return thirdStart;
+        } else if (hasFourth) {
+          return labelStart(host, begin, fourthEnd);
+        }
+      }
+    } else if ((tldFlags & HAS_EMPTY) != 0) {
+      return secondStart;
+    }
+    return -1;
+  }
+
+  /** the (exclusive) end of the root domain located by findRootDomain **/
+  public static int rootDomainEnd(byte[] host, int offset, int length) {
+    int end = offset + length;
+    if (end > offset && host[end - 1] == '.' && !isIPAddress(host, offset, end))
+      end--;
+    return end;
+  }
+
+  /**
+   * extract the root domain of the given host name
+   *
+   * @return the root domain or null (same as URLUtils.extractRootDomainName)
+   */
+  public String extractRootDomainName(String candidate) {
+    int length = candidate.length();
+    byte[] buffer = _threadBuffer.get();
+    if (buffer.length < length) {
+      buffer = new byte[Math.max(length, buffer.length * 2)];
+      _threadBuffer.set(buffer);
+    }
+    for (int i = 0; i < length; ++i) {
+      char c = candidate.charAt(i);
+      // non-ascii is always invalid
+      if (c >= 0x80)
+        return null;
+      buffer[i] = (byte) c;
+    }
+    int start = findRootDomain(buffer, 0, length);
+    if (start == -1)
+      return null;
+    int end = rootDomainEnd(buffer, 0, length);
+    if (start == 0 && end == length)
+      return candidate;
+    return candidate.substring(start, end);
+  }
+
+  /**
+   * extract the root domain of the given host name into rootDomainOut (which
+   * will reference the host's bytes)
+   *
+   * @return true if the host has a root domain
+   */
+  public boolean extractRootDomainName(TextBytes host, TextBytes rootDomainOut) {
+    return extractRootDomainName(host.getBytes(), host.getOffset(), host.getLength(), rootDomainOut);
+  }
+
+  public boolean extractRootDomainName(byte[] host, int offset, int length, TextBytes rootDomainOut) {
+    int start = findRootDomain(host, offset, length);
+    if (start == -1)
+      return false;
+    rootDomainOut.set(host, start, rootDomainEnd(host, offset, length) - start);
+    return true;
+  }
+
+  private static final ThreadLocal<byte[]> _threadBuffer = new ThreadLocal<byte[]>() {
+    @Override
+    protected byte[] initialValue() {
+      return new byte[256];
+    }
+  };
+
+  /** [0-9a-z\-\._] **/
+  private static boolean isValidDomainChar(byte b) {
+    return (b >= 'a' && b <= 'z') || (b >= '0' && b <= '9') || b == '.' || b == '-' || b == '_';
+  }
+
+  /** ^[0-9]+\.[0-9]+\.[0-9]+\.[0-9]+$ **/
+  private static boolean isIPAddress(byte[] host, int offset, int end) {
+    int dots = 0;
+    int digits = 0;
+    for (int i = offset; i < end; ++i) {
+      byte b = host[i];
+      if (b >= '0' && b <= '9') {
+        digits++;
+      } else if (b == '.' && digits != 0 && dots < 3) {
+        dots++;
+        digits = 0;
+      } else {
+        return false;
+      }
+    }
+    return dots == 3 && digits != 0;
+  }
+
+  /** start of the label ending at labelEnd (labels may be empty) **/
+  private static int labelStart(byte[] host, int begin, int labelEnd) {
+    int i = labelEnd;
+    while (i > begin && host[i - 1] != '.')
+      i--;
+    return i;
+  }
+
+  /*************************************************************************
+   * rule compilation
+   **/
+
+  private void addRule(String tldName, String secondaryName) {
+    int tld = addNode(ROOT, tldName);
+    addFlags(tld, HAS_RULES);
+
+    if (secondaryName.equals("*")) {
+      addFlags(tld, HAS_STAR);
+    } else if (secondaryName.startsWith("!")) {
+      String excluded = secondaryName.substring(1);
+      int dot = excluded.indexOf('.');
+      if (dot == -1) {
+        addFlags(addNode(tld, excluded), EXCEPTION);
+      } else if (excluded.indexOf('.', dot + 1) == -1) {
+        int second = addNode(tld, excluded.substring(dot + 1));
+        addFlags(addNode(second, excluded.substring(0, dot)), EXCEPTION2);
+      }
+      // deeper exclusions can never match
+    } else if (secondaryName.startsWith("*.")) {
+      String wildcarded = secondaryName.substring(2);
+      if (wildcarded.indexOf('.') == -1) {
+        addFlags(addNode(tld, wildcarded), WILDCARD);
+      }
+    } else if (secondaryName.indexOf('.') == -1) {
+      // includes the bare tld rule (the empty secondary name)
+      addFlags(addNode(tld, secondaryName), SECONDARY);
+      if (secondaryName.length() == 0) {
+        addFlags(tld, HAS_EMPTY);
+      }
+    }
+    // multi label secondary names are never consulted
+  }
+
+  private void addFlags(int node, int flags) {
+    _nodeFlags[node] |= flags;
+  }
+
+  private void allocateTable(int expectedNodes) {
+    int capacity = 16;
+    while (capacity < expectedNodes * 2)
+      capacity <<= 1;
+    _table = new int[capacity];
+    _tableMask = capacity - 1;
+  }
+
+  private int addNode(int parent, String label) {
+    byte[] labelBytes = label.getBytes(Charset.forName("UTF-8"));
+    int existing = lookup(parent, labelBytes, 0, labelBytes.length);
+    if (existing != 0)
+      return existing;
+
+    if (_nodeCount == _nodeFlags.length) {
+      int newSize = _nodeCount * 2;
+      _nodeFlags = grow(_nodeFlags, newSize);
+      _nodeParent = grow(_nodeParent, newSize);
+      _nodeLabelStart = grow(_nodeLabelStart, newSize);
+      _nodeLabelLen = grow(_nodeLabelLen, newSize);
+    }
+    if (_labelPoolSize + labelBytes.length > _labelPool.length) {
+      byte[] newPool = new byte[Math.max(_labelPool.length * 2, _labelPoolSize + labelBytes.length)];
+      System.arraycopy(_labelPool, 0, newPool, 0, _labelPoolSize);
+      _labelPool = newPool;
+    }
+    int node = _nodeCount++;
+    _nodeParent[node] = parent;
+    _nodeLabelStart[node] = _labelPoolSize;
+    _nodeLabelLen[node] = labelBytes.length;
+    System.arraycopy(labelBytes, 0, _labelPool, _labelPoolSize, labelBytes.length);
+    _labelPoolSize += labelBytes.length;
+
+    if (_nodeCount * 2 > _table.length) {
+      rehash();
+    }
+    insert(node);
+    return node;
+  }
+
+  private static int[] grow(int[] array, int newSize) {
+    int[] newArray = new int[newSize];
+    System.arraycopy(array, 0, newArray, 0, array.length);
+    return newArray;
+  }
+
+  private void rehash() {
+    allocateTable(_nodeCount * 2);
+    for (int node = 1; node < _nodeCount - 1; ++node) {
+      insert(node);
+    }
+  }
+
+  private void insert(int node) {
+    int slot = hash(_nodeParent[node], _labelPool, _nodeLabelStart[node], _nodeLabelLen[node]) & _tableMask;
+    while (_table[slot] != 0)
+      slot = (slot + 1) & _tableMask;
+    _table[slot] = node;
+  }
+
+  private static int hash(int parent, byte[] label, int offset, int length) {
+    int hash = parent * 0x9E3779B1;
+    for (int i = offset; i < offset + length; ++i) {
+      hash = 31 * hash + label[i];
+    }
+    return hash ^ (hash >>> 16);
+  }
+
+  /** find the child of parent with the given label, 0 if none **/
+  private int lookup(int parent, byte[] label, int offset, int length) {
+    int slot = hash(parent, label, offset, length) & _tableMask;
+    int node;
+    while ((node = _table[slot]) != 0) {
+      if (_nodeParent[node] == parent && _nodeLabelLen[node] == length) {
+        int labelStart = _nodeLabelStart[node];
+        int i = 0;
+        while (i < length && _labelPool[labelStart + i] == label[offset + i])
+          ++i;
+        if (i == length)
+          return node;
+      }
+      slot = (slot + 1) & _tableMask;
+    }
+    return 0;
+  }
+}
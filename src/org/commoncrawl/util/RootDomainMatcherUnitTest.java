@@ -0,0 +1,293 @@
+/**
+ * Copyright 2008 - CommonCrawl Foundation
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ **/
+package org.commoncrawl.util;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Checks RootDomainMatcher against the original regex / split based root
+ * domain extraction code, over host names generated from every rule in the
+ * effective tld list, random mutations of those, and (optionally) the host
+ * names in the file named by the commoncrawl.rootdomain.corpus system
+ * property.
+ *
+ * Run main to benchmark the two implementations.
+ *
+ * @author rana
+ *
+ */
+public class RootDomainMatcherUnitTest {
+
+  /** the original (regex / split based) URLUtils.extractRootDomainName **/
+  static String legacyExtractRootDomainName(String candidate) {
+
+    // special case for ip addresses
+    if (URLUtils.ipAddressRegEx.matcher(candidate).matches()) {
+      return candidate;
+    }
+
+    if (candidate.endsWith(".")) {
+      candidate = candidate.substring(0, candidate.length() - 1);
+    }
+    if (candidate.startsWith("*") && candidate.length() > 1) {
+      candidate = candidate.substring(1);
+    }
+    if (candidate.length() != 0) {
+      if (!URLUtils.invalidDomainCharactersRegEx.matcher(candidate).find()) {
+        String parts[] = candidate.split("\\.");
+        if (parts.length >= 2) {
+          Collection<String> secondaryNames = TLDNamesCollection
+              .getSecondaryNames(parts[parts.length - 1]);
+
+          if (secondaryNames.size() != 0) {
+            // see if second to last part matches secondary names for this TLD
+            // or there is a wildcard expression for secondary name in rule set
+            if (secondaryNames.contains(parts[parts.length - 2])
+                || secondaryNames.contains("*")) {
+              // ok secondary part is potentianlly part of secondary name ...
+
+              // check to see the part in not explicitly excluded ...
+              if (secondaryNames.contains("!" + parts[parts.length - 2])) {
+                // in this case, this is an explicit override. second to last
+                // part is NOT part of secondary name
+                return buildRootNameString(candidate, parts, parts.length - 2);
+              } else {
+                // otherwise, we need at least three parts
+                if (parts.length >= 3) {
+                  return buildRootNameString(candidate, parts, parts.length - 3);
+                }
+              }
+            }
+            // ok second to last part does not match set of known secondary
+            // names
+            else {
+              // make a wildcard string matching secondary name
+              String extendedWildcard = "*." + parts[parts.length - 2];
+              // if match, then this implies secondary name has two components
+              if (secondaryNames.contains(extendedWildcard)) {
+
+                if (parts.length >= 3) {
+                  // this implies that there must be four parts to the name to
+                  // extract root
+                  // unless exlusion rule applies
+                  String exclusionRule2 = "!" + parts[parts.length - 3] + "."
+                      + parts[parts.length - 2];
+
+                  // if exclusion rule is present ...
+                  if (secondaryNames.contains(exclusionRule2)) {
+                    // third part is NOT part of secondary name
+                    return buildRootNameString(candidate, parts,
+                        parts.length - 3);
+                  } else {
+                    // ok extended wildcard matched. we need 4 parts minimum
+                    if (parts.length >= 4) {
+                      return buildRootNameString(candidate, parts,
+                          parts.length - 4);
+                    }
+                  }
+                }
+              }
+              // at this point ... if the null name exists ...
+              else if (secondaryNames.contains("")) {
+                // return second part as root name
+                return buildRootNameString(candidate, parts, parts.length - 2);
+              }
+            }
+          }
+        }
+      }
+    }
+    return null;
+  }
+
+  private static String buildRootNameString(String candidateString,
+      String[] parts, int rootNameIndex) {
+    int partsToInclude = parts.length - rootNameIndex;
+    int dotsToInclude = partsToInclude - 1;
+
+    // initial root name length is dot count
+    int rootNameLength = dotsToInclude;
+    for (int i = rootNameIndex; i < parts.length; ++i) {
+      rootNameLength += parts[i].length();
+    }
+    return candidateString.substring(candidateString.length() - rootNameLength);
+  }
+
+  static ArrayList<String> loadRules() throws IOException {
+    ArrayList<String> rules = new ArrayList<String>();
+    InputStream inputStream = RootDomainMatcherUnitTest.class.getResourceAsStream("/conf/effective_tld_list.txt");
+    try {
+      BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, Charset.forName("UTF-8")));
+      String line = null;
+      while ((line = reader.readLine()) != null) {
+        if (!line.startsWith("//") && line.trim().length() != 0) {
+          rules.add(line.trim());
+        }
+      }
+    } finally {
+      inputStream.close();
+    }
+    return rules;
+  }
+
+  static final String[] prefixes = { "", "a.", "www.", "www.foo.", "a.b.c.", "*.", "*", ".", "foo..", "x-y_z." };
+  static final String[] suffixes = { "", ".", "..", "..." };
+
+  /** host names derived from the rule set, plus the ip / malformed edge cases **/
+  static ArrayList<String> buildHostNames() throws IOException {
+    ArrayList<String> hosts = new ArrayList<String>();
+    for (String rule : loadRules()) {
+      String host = rule;
+      if (host.startsWith("!")) {
+        host = host.substring(1);
+      }
+      host = host.replace("*", "wild");
+      for (String prefix : prefixes) {
+        for (String suffix : suffixes) {
+          hosts.add(prefix + host + suffix);
+        }
+      }
+    }
+    String[] edgeCases = { "", ".", "..", "*", "*.", "**.com", "com", ".com", "com.", "a..com", "a...com",
+        "192.168.0.1", "192.168.0.1.", "1.2.3", "1.2.3.4.5", "01.2.3.4", "FOO.COM", "foo.com\n", "foo .com",
+        "f\u00f6o.com", "foo.com/", "foo.co.uk", "www.foo.co.uk", "city.kawasaki.jp", "www.city.kawasaki.jp",
+        "foo.bar.kawasaki.jp", "a.foo.bar.kawasaki.jp", "www.ret.gov.au", "www.ne.jp", "www.jobshop.ro" };
+    for (String edgeCase : edgeCases) {
+      hosts.add(edgeCase);
+    }
+    return hosts;
+  }
+
+  static void checkHost(RootDomainMatcher matcher, String host) {
+    String expected = legacyExtractRootDomainName(host);
+    Assert.assertEquals(host, expected, matcher.extractRootDomainName(host));
+
+    TextBytes hostBytes = new TextBytes(host);
+    TextBytes rootOut = new TextBytes();
+    boolean found = matcher.extractRootDomainName(hostBytes, rootOut);
+    // non-ascii hosts never have a root domain, so the byte path agrees
+    Assert.assertEquals(host, expected != null, found);
+    if (found) {
+      Assert.assertEquals(host, expected, rootOut.toString());
+    }
+  }
+
+  @Test
+  public void testRuleDerivedHosts() throws Exception {
+    RootDomainMatcher matcher = RootDomainMatcher.get();
+    for (String host : buildHostNames()) {
+      checkHost(matcher, host);
+    }
+  }
+
+  @Test
+  public void testRandomHosts() throws Exception {
+    RootDomainMatcher matcher = RootDomainMatcher.get();
+    ArrayList<String> hosts = buildHostNames();
+    Random random = new Random(42);
+    String alphabet = "abcwxyz019-_.*A";
+    for (int i = 0; i < 200000; ++i) {
+      StringBuilder host = new StringBuilder(hosts.get(random.nextInt(hosts.size())));
+      int mutations = random.nextInt(4);
+      for (int j = 0; j < mutations; ++j) {
+        int position = random.nextInt(host.length() + 1);
+        switch (random.nextInt(3)) {
+          case 0:
+            host.insert(position, alphabet.charAt(random.nextInt(alphabet.length())));
+            break;
+          case 1:
+            host.insert(position, '.');
+            break;
+          case 2:
+            if (position < host.length())
+              host.deleteCharAt(position);
+            break;
+        }
+      }
+      checkHost(matcher, host.toString());
+    }
+  }
+
+  @Test
+  public void testCorpus() throws Exception {
+    String corpusFile = System.getProperty("commoncrawl.rootdomain.corpus");
+    if (corpusFile != null) {
+      RootDomainMatcher matcher = RootDomainMatcher.get();
+      BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(corpusFile), "UTF-8"));
+      try {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          checkHost(matcher, line);
+        }
+      } finally {
+        reader.close();
+      }
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    ArrayList<String> hosts = buildHostNames();
+    int iterations = (args.length != 0) ? Integer.parseInt(args[0]) : 1000000;
+    RootDomainMatcher matcher = RootDomainMatcher.get();
+
+    byte[][] hostBytes = new byte[hosts.size()][];
+    for (int i = 0; i < hosts.size(); ++i) {
+      hostBytes[i] = hosts.get(i).getBytes("UTF-8");
+    }
+
+    for (int pass = 0; pass < 3; ++pass) {
+      int found = 0;
+      long startTime = System.nanoTime();
+      for (int i = 0; i < iterations; ++i) {
+        if (legacyExtractRootDomainName(hosts.get(i % hosts.size())) != null)
+          found++;
+      }
+      long legacyTime = System.nanoTime() - startTime;
+
+      startTime = System.nanoTime();
+      for (int i = 0; i < iterations; ++i) {
+        if (matcher.extractRootDomainName(hosts.get(i % hosts.size())) != null)
+          found++;
+      }
+      long stringTime = System.nanoTime() - startTime;
+
+      startTime = System.nanoTime();
+      for (int i = 0; i < iterations; ++i) {
+        byte[] host = hostBytes[i % hostBytes.length];
+        if (matcher.findRootDomain(host, 0, host.length) != -1)
+          found++;
+      }
+      long bytesTime = System.nanoTime() - startTime;
+
+      System.out.println("legacy: " + (legacyTime / iterations) + "ns/host matcher(String): "
+          + (stringTime / iterations) + "ns/host matcher(byte[]): " + (bytesTime / iterations) + "ns/host (" + found
+          + ")");
+    }
+  }
+}
@@ -1,6 +1,6 @@
 /**
  * Copyright 2008 - CommonCrawl Foundation
- * 
+ *
  *    This program is free software: you can redistribute it and/or modify
  *    it under the terms of the GNU General Public License as published by
  *    the Free Software Foundation, either version 3 of the License, or
@@ -23,29 +23,49 @@ import java.io.DataOutput;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.zip.CRC32;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.io.DataInputBuffer;
 import org.apache.hadoop.io.DataOutputBuffer;
-import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.io.WritableUtils;
-import org.apache.hadoop.record.Buffer;
 
 /** quick and dirty (for now) way to write writable records to a local disk file 
- * 
+ *
+ * Records are keyed by time (or any non-decreasing long key) and chained
+ * backwards, so the tail of the file can be read without an index. A sparse
+ * index (one entry every INDEX_INTERVAL records, kept in a sidecar file) lets
+ * readRange seek straight to the first record of a time range.
+ *
+ * Reads never take the file's lock: appends publish an immutable snapshot
+ * (header values, index and a read only mapping of the file), and readers work
+ * off the latest snapshot. Keep one instance per file.
+ *
  * @author rana
  *
  */
 public class TimeSeriesDataFile<ValueType extends Writable> {
   
+  private static final Log LOG = LogFactory.getLog(TimeSeriesDataFile.class);
+  
   private static final int SyncBytes = 0xCC00CC00;
-  private CRC32 crc = new CRC32();
   private File  fileName=null;
   private static final int RECORD_HEADER_LENGTH = 4 * 4;
   private Class valueClass;
-
+  
+  /** records per sparse index entry **/
+  private static final int INDEX_INTERVAL = 128;
+  private static final int INDEX_ENTRY_SIZE = 16;
+  private static final String INDEX_FILE_SUFFIX = ".index";
+  /** remap the file once this many bytes have been appended past the mapped region **/
+  private static final long REMAP_THRESHOLD = 4 * 1024 * 1024;
+  
   
   public static class KeyValueTuple<KeyType,ValueType> { 
     
@@ -59,6 +79,59 @@ public class TimeSeriesDataFile<ValueType extends Writable> {
     public long recordPos;
   }
   
+  /** an immutable view of the file, published by the writer for lock free reads **/
+  private static final class Snapshot { 
+    
+    Snapshot(FileChannel channel,MappedByteBuffer mapped,long mappedLength,long headerOffset,LogFileHeader header,long[] indexKeys,long[] indexPositions,int indexSize) { 
+      this.channel          = channel;
+      this.mapped           = mapped;
+      this.mappedLength     = mappedLength;
+      this.headerOffset     = headerOffset;
+      this.writePos         = header._writePos;
+      this.itemCount        = header._itemCount;
+      this.lastRecordLength = header._lastRecordLength;
+      this.lastRecordKey    = header._lastRecordKey;
+      this.indexKeys        = indexKeys;
+      this.indexPositions   = indexPositions;
+      this.indexSize        = indexSize;
+    }
+    
+    final FileChannel      channel;
+    final MappedByteBuffer mapped;
+    final long             mappedLength;
+    final long             headerOffset;
+    final long             writePos;
+    final int              itemCount;
+    final int              lastRecordLength;
+    final long             lastRecordKey;
+    // the arrays are only ever appended to past indexSize, or replaced
+    final long[]           indexKeys;
+    final long[]           indexPositions;
+    final int              indexSize;
+  }
+  
+  private static interface RecordVisitor { 
+    /** return false to stop the scan **/
+    boolean visit(long key,long recordPos,DataInputBuffer valueData) throws IOException;
+  }
+  
+  // writer state - guarded by this
+  private RandomAccessFile   _file = null;
+  private FileChannel        _channel = null;
+  private LogFileHeader      _header = null;
+  private long               _headerOffset;
+  private MappedByteBuffer   _mapped = null;
+  private long               _mappedLength = 0;
+  private RandomAccessFile   _indexFile = null;
+  private long[]             _indexKeys = new long[16];
+  private long[]             _indexPositions = new long[16];
+  private int                _indexSize = 0;
+  // the largest key written so far (index entries carry it, so that a range start is never skipped)
+  private long               _maxKey = Long.MIN_VALUE;
+  private CRC32              _writeCRC = new CRC32();
+  
+  private volatile Snapshot  _snapshot = null;
+  
   /** constructor
    * 
    * @param fileName the output path (file will be created if it doesn't exist)
@@ -68,7 +141,6 @@ public class TimeSeriesDataFile<ValueType extends Writable> {
     this.valueClass = valueClass;
   }
   
-
   /** append a record to the file ...  
    * 
    * @param key
@@ -77,81 +149,58 @@ public class TimeSeriesDataFile<ValueType extends Writable> {
    */
   public synchronized long appendRecordToLogFile(long key,Writable value)throws IOException { 
     
-    LogFileHeader header = new LogFileHeader();
+    openForWrite();
     
-    boolean preExistingHeader = fileName.exists();
-          
-    RandomAccessFile file = new RandomAccessFile(fileName,"rw");
+    long recordPositionOut = (_header._writePos == 0) ? _headerOffset : _header._writePos;
     
-    long recordPositionOut = -1;
+    DataOutputBuffer buffer = new DataOutputBuffer();
     
-    try { 
-      
-      if(preExistingHeader) {
-        
-        long headerOffset = readLogFileHeader(file, header);
-        
-        if (header._writePos == 0) { 
-          recordPositionOut = headerOffset;
-        }
-        else {
-          recordPositionOut = header._writePos;
-        }
-        // seelk to appropriate write position 
-        file.seek(recordPositionOut);
-
-      }
-      else { 
-        recordPositionOut = writeLogFileHeader(file,header);
-      }
-      
-
-      DataOutputBuffer buffer = new DataOutputBuffer();
-
-      // write out sync bytes ... 
-      buffer.writeInt(SyncBytes);
-      // write out placeholder for record length 
-      buffer.writeInt(0);
-      // write out placeholder for crc 
-      buffer.writeLong(0);
-      // write out key + value to buffer
-      WritableUtils.writeVLong(buffer,key);
-      // write out value ... 
-      value.write(buffer);
-      // write out trailing record size (4 bytes sync + 4 bytes record length + 4 bytes crc + key/value buffer +  
-      buffer.writeInt(buffer.getLength());
-      // reset crc 
-      crc.reset();
-      //calc crc 
-      crc.update(buffer.getData(),RECORD_HEADER_LENGTH,buffer.getLength()-RECORD_HEADER_LENGTH);
-      // ok fix up record ... 
-      // write out record length
-      // total length - sync bytes(4) - record length(4), at offset 4
-      writeInt(buffer.getLength() - 8,4,buffer.getData());
-      // and write out crc
-      // at offset 8 (after sync(4) and length(4)
-      writeLong(crc.getValue(),8,buffer.getData());
-      
-      // and then the data 
-      file.write(buffer.getData(),0,buffer.getLength());
-      
-      // now update header ... 
-      header._itemCount += 1;
-      header._writePos   = file.getFilePointer();
-      header._lastRecordLength = buffer.getLength() - 4;
-      header._lastRecordKey = key;
-      // now write out header anew ... 
-      writeLogFileHeader(file,header);
-      
-    }
-    finally { 
-      if (file != null) { 
-        file.close();
-      }
+    // write out sync bytes ...
+    buffer.writeInt(SyncBytes);
+    // write out placeholder for record length
+    buffer.writeInt(0);
+    // write out placeholder for crc
+    buffer.writeLong(0);
+    // write out key + value to buffer
+    WritableUtils.writeVLong(buffer,key);
+    // write out value ...
+    value.write(buffer);
+    // write out trailing record size (4 bytes sync + 4 bytes record length + 4 bytes crc + key/value buffer +
+    buffer.writeInt(buffer.getLength());
+    // reset crc
+    _writeCRC.reset();
+    //calc crc
+    _writeCRC.update(buffer.getData(),RECORD_HEADER_LENGTH,buffer.getLength()-RECORD_HEADER_LENGTH);
+    // ok fix up record ...
+    // write out record length
+    // total length - sync bytes(4) - record length(4), at offset 4
+    writeInt(buffer.getLength() - 8,4,buffer.getData());
+    // and write out crc
+    // at offset 8 (after sync(4) and length(4)
+    writeLong(_writeCRC.getValue(),8,buffer.getData());
+    
+    // and then the data
+    writeFully(_channel,buffer.getData(),0,buffer.getLength(),recordPositionOut);
+    
+    // now update header ...
+    _header._itemCount += 1;
+    _header._writePos   = recordPositionOut + buffer.getLength();
+    _header._lastRecordLength = buffer.getLength() - 4;
+    _header._lastRecordKey = key;
+    // now write out header anew ...
+    writeLogFileHeader(_channel,_header);
+    
+    // index every INDEX_INTERVAL'th record
+    _maxKey = Math.max(_maxKey,key);
+    if ((_header._itemCount - 1) % INDEX_INTERVAL == 0) { 
+      addIndexEntry(_maxKey,recordPositionOut,true);
     }
     
+    publishSnapshot();
+    
     return recordPositionOut;
   }
+  
   /**
    * read given a position 
    * 
@@ -161,38 +210,24 @@ public class TimeSeriesDataFile<ValueType extends Writable> {
    * @return a vector of KeyValueTuples
    * @throws IOException
    */
-  public synchronized ArrayList <KeyValueTuple<Long,ValueType> > readFromPos(long position,int maxNumberOfRecords,long optionalMinKeyValue) throws IOException { 
+  public ArrayList <KeyValueTuple<Long,ValueType> > readFromPos(long position,int maxNumberOfRecords,long optionalMinKeyValue) throws IOException { 
     ArrayList< KeyValueTuple<Long,ValueType> > valuesOut = new ArrayList< KeyValueTuple<Long,ValueType> >();
     
-    LogFileHeader header = new LogFileHeader();
+    Snapshot snapshot = getSnapshot();
     
-    if (fileName.exists()) { 
-
-      RandomAccessFile file = new RandomAccessFile(fileName,"r"); 
+    if (snapshot != null) { 
       
-      try { 
-
-        //read header ... 
-        long headerOffset = readLogFileHeader(file, header);
-  
-        long endOfPrevRecord = position;
+      long endOfPrevRecord = position;
+      
+      if (position > snapshot.headerOffset && position <= snapshot.writePos) { 
         
-        if (position > headerOffset) { 
-          
-          file.seek(endOfPrevRecord - 4);
-          
-          // read previous record length 
-          int currentRecordLength = file.readInt();
-          
-          // delegate to common read
-          doCommonRead(valuesOut,file,headerOffset,endOfPrevRecord,currentRecordLength,maxNumberOfRecords,optionalMinKeyValue);
-          
-        }
-      }
-      finally { 
-        if (file != null) { 
-          file.close();
-        }        
+        // read previous record length
+        byte lengthBytes[] = new byte[4];
+        readFully(snapshot,endOfPrevRecord - 4,lengthBytes,0,4);
+        int currentRecordLength = readInt(lengthBytes,0);
+        
+        // delegate to common read
+        doCommonRead(valuesOut,snapshot,endOfPrevRecord,currentRecordLength,maxNumberOfRecords,optionalMinKeyValue);
       }
     }
     return valuesOut;
@@ -205,70 +240,76 @@ public class TimeSeriesDataFile<ValueType extends Writable> {
    * @return a list of records at the tail end of the file  
    * @throws IOException
    */
-  public synchronized ArrayList< KeyValueTuple<Long,ValueType> > readFromTail(int maxNumberOfRecords,long optionalMinKeyValue)throws IOException { 
+  public ArrayList< KeyValueTuple<Long,ValueType> > readFromTail(int maxNumberOfRecords,long optionalMinKeyValue)throws IOException { 
     
     ArrayList< KeyValueTuple<Long,ValueType> > valuesOut = new ArrayList< KeyValueTuple<Long,ValueType> >();
     
-    LogFileHeader header = new LogFileHeader();
+    Snapshot snapshot = getSnapshot();
     
-    if (fileName.exists()) { 
-          
-      RandomAccessFile file = new RandomAccessFile(fileName,"r"); 
-      
-
-      try { 
+    if (snapshot != null && snapshot.itemCount != 0 && maxNumberOfRecords != 0) { 
+      // delegate to common read
+      doCommonRead(valuesOut,snapshot,snapshot.writePos,snapshot.lastRecordLength,maxNumberOfRecords,optionalMinKeyValue);
+    }
+    
+    return valuesOut;
+  }
   
-        //read header ... 
-        long headerOffset = readLogFileHeader(file, header);
-        // figure out how many records we can read ... 
-        int recordsToRead = maxNumberOfRecords;
+  /**
+   * read the records whose keys fall in [fromKey,toKey], oldest first. uses the
+   * sparse index to find the first record, so the cost is O(log n + k) rather
+   * than a walk back from the tail.
+   * 
+   * @param fromKey the minimum key (inclusive)
+   * @param toKey the maximum key (inclusive)
+   * @param maxNumberOfRecords maximum number of records to read, or -1 for no limit
+   * @return a list of records in file order
+   * @throws IOException
+   */
+  public ArrayList< KeyValueTuple<Long,ValueType> > readRange(final long fromKey,final long toKey,final int maxNumberOfRecords) throws IOException { 
+    
+    final ArrayList< KeyValueTuple<Long,ValueType> > valuesOut = new ArrayList< KeyValueTuple<Long,ValueType> >();
+    
+    Snapshot snapshot = getSnapshot();
+    
+    if (snapshot != null && snapshot.itemCount != 0 && maxNumberOfRecords != 0 && fromKey <= toKey) { 
+      scan(snapshot,fromKey,toKey,new RecordVisitor() { 
         
-        if (recordsToRead != 0) { 
-          
-          long endOfPrevRecord = header._writePos;  
-
-          // read in first record length ... 
-          int currentRecordLength = header._lastRecordLength;
-         
-          // delegate to common read
-          doCommonRead(valuesOut,file,headerOffset,endOfPrevRecord,currentRecordLength,recordsToRead,optionalMinKeyValue);
-        }
-      }
-      finally { 
-        if (file != null) { 
-          file.close();
+        @Override
+        public boolean visit(long key, long recordPos, DataInputBuffer valueData) throws IOException { 
+          KeyValueTuple<Long,ValueType> tuple = new KeyValueTuple<Long, ValueType>(key, readValue(valueData));
+          tuple.recordPos = recordPos;
+          valuesOut.add(tuple);
+          return maxNumberOfRecords == -1 || valuesOut.size() < maxNumberOfRecords;
         }
-      }
+      });
     }
-    
     return valuesOut;
   }
   
-  
   private void doCommonRead(
       ArrayList< KeyValueTuple<Long,ValueType> > valuesOut,
-      RandomAccessFile file,
-      long headerOffset,
+      Snapshot snapshot,
       long endOfPrevRecord,
       int currentRecordLength,
       int recordsToRead,
       long optionalMinKeyValue) throws IOException {
     
-    Buffer  recordBuffer = new Buffer();
+    byte recordBuffer[] = new byte[0];
     DataInputBuffer inputBuffer = new DataInputBuffer();
+    CRC32 crc = new CRC32();
     
     // ok start walking backwards ... 
     while (recordsToRead != 0) { 
       // setup new previous record pos pointer  
       endOfPrevRecord = endOfPrevRecord - currentRecordLength - 4;
-      // and seek to it endOfLastRecord - 4
-      file.seek(endOfPrevRecord - 4);
-       
-      recordBuffer.setCapacity(currentRecordLength + 8);
-      // read in proper amount of data ...
-      file.read(recordBuffer.get(),0,currentRecordLength + 8);
+      
+      if (recordBuffer.length < currentRecordLength + 8) { 
+        recordBuffer = new byte[currentRecordLength + 8];
+      }
+      // read in proper amount of data, starting at endOfLastRecord - 4 ...
+      readFully(snapshot,endOfPrevRecord - 4,recordBuffer,0,currentRecordLength + 8);
       // ok initialize input buffer ... 
-      inputBuffer.reset(recordBuffer.get(), currentRecordLength + 8);
+      inputBuffer.reset(recordBuffer, currentRecordLength + 8);
       // now read next record length first ... 
       int nextRecordLength = inputBuffer.readInt();
       // next read sync bytes ... 
@@ -288,58 +329,98 @@ public class TimeSeriesDataFile<ValueType extends Writable> {
         throw new IOException("CRC Mismatch!");
       }
       // ok now read key and value 
-      try {
-        long key = WritableUtils.readVLong(inputBuffer);
-        
-        if (optionalMinKeyValue != -1 && key < optionalMinKeyValue) { 
-          break;
-        }
-        
-        ValueType value = (ValueType) valueClass.newInstance();
-        value.readFields(inputBuffer);
-        KeyValueTuple tuple = new KeyValueTuple<Long, ValueType>(key, value);
-        tuple.recordPos = endOfPrevRecord;
-        valuesOut.add(0,tuple);
-        
-      } catch (Exception e) {
-        throw new IOException(e);
+      long key = WritableUtils.readVLong(inputBuffer);
+      
+      if (optionalMinKeyValue != -1 && key < optionalMinKeyValue) { 
+        break;
       }
-
+      
+      KeyValueTuple<Long,ValueType> tuple = new KeyValueTuple<Long, ValueType>(key, readValue(inputBuffer));
+      tuple.recordPos = endOfPrevRecord;
+      valuesOut.add(0,tuple);
+      
       currentRecordLength = nextRecordLength;
       
       recordsToRead--;
       
-      if (endOfPrevRecord == headerOffset)
+      if (endOfPrevRecord == snapshot.headerOffset)
         break;
     }
   }
   
   /**
-   * get the key value of the last record in the file 
-   * @return record key as a long or -1 if zero records in file 
-   * @throws IOException
+   * walk forward from the last index entry before fromKey, visiting records with
+   * keys in [fromKey,toKey]. keys are expected to be appended in non decreasing
+   * order, so the scan stops at the first key past toKey.
    */
-  public synchronized long getLastRecordKey() throws IOException{ 
-    LogFileHeader header = new LogFileHeader();
+  private void scan(Snapshot snapshot,long fromKey,long toKey,RecordVisitor visitor) throws IOException { 
     
-    if (fileName.exists()) { 
-          
-      RandomAccessFile file = new RandomAccessFile(fileName,"r"); 
+    long position = snapshot.headerOffset;
+    
+    // find the last index entry whose (running max) key is below fromKey. every record
+    // before it has a smaller key.
+    int low = 0;
+    int high = snapshot.indexSize - 1;
+    while (low <= high) { 
+      int mid = (low + high) >>> 1;
+      if (snapshot.indexKeys[mid] < fromKey) { 
+        position = snapshot.indexPositions[mid];
+        low = mid + 1;
+      }
+      else { 
+        high = mid - 1;
+      }
+    }
+    
+    byte headerBytes[] = new byte[8];
+    byte recordBuffer[] = new byte[0];
+    DataInputBuffer inputBuffer = new DataInputBuffer();
+    CRC32 crc = new CRC32();
+    
+    while (position < snapshot.writePos) { 
+      readFully(snapshot,position,headerBytes,0,8);
+      if (readInt(headerBytes,0) != SyncBytes) { 
+        throw new IOException("Corrupt Record Detected at:" + position);
+      }
+      int realRecordBytes = readInt(headerBytes,4);
+      if (realRecordBytes < 8 || position + 8 + realRecordBytes > snapshot.writePos) { 
+        throw new IOException("Invalid Record Length:" + realRecordBytes + " at:" + position);
+      }
+      if (recordBuffer.length < realRecordBytes) { 
+        recordBuffer = new byte[realRecordBytes];
+      }
+      // crc + key/value + trailing record size
+      readFully(snapshot,position + 8,recordBuffer,0,realRecordBytes);
+      long crcValue = readLong(recordBuffer,0);
+      crc.reset();
+      crc.update(recordBuffer,8,realRecordBytes - 8);
+      if (crcValue != crc.getValue()) { 
+        throw new IOException("CRC Mismatch!");
+      }
+      inputBuffer.reset(recordBuffer,8,realRecordBytes - 12);
+      long key = WritableUtils.readVLong(inputBuffer);
       
-      Buffer  recordBuffer = new Buffer();
-      DataInputBuffer inputBuffer = new DataInputBuffer();
-      try { 
-  
-        //read header ... 
-        long headerOffset = readLogFileHeader(file, header);
-        
-        return header._lastRecordKey;
+      if (key > toKey) { 
+        break;
       }
-      finally { 
-        if (file != null) { 
-          file.close();
+      if (key >= fromKey) { 
+        if (!visitor.visit(key,position,inputBuffer)) { 
+          break;
         }
       }
+      position += 8 + realRecordBytes;
+    }
+  }
+  
+  /**
+   * get the key value of the last record in the file 
+   * @return record key as a long or -1 if zero records in file 
+   * @throws IOException
+   */
+  public long getLastRecordKey() throws IOException{ 
+    Snapshot snapshot = getSnapshot();
+    if (snapshot != null) { 
+      return snapshot.lastRecordKey;
     }
     return -1;
   }
@@ -350,36 +431,244 @@ public class TimeSeriesDataFile<ValueType extends Writable> {
    * @return record count in file 
    * @throws IOException
    */
-  public synchronized int getRecordCount() throws IOException { 
+  public int getRecordCount() throws IOException { 
+    Snapshot snapshot = getSnapshot();
+    if (snapshot != null) { 
+      return snapshot.itemCount;
+    }
+    return 0;
+  }
+  
+  /**
+   * close the file (it is reopened on next use)
+   */
+  public synchronized void close() throws IOException { 
+    _snapshot = null;
+    _mapped = null;
+    _mappedLength = 0;
+    _header = null;
+    try { 
+      if (_indexFile != null) { 
+        _indexFile.close();
+      }
+      if (_file != null) { 
+        _file.close();
+      }
+    }
+    finally { 
+      _indexFile = null;
+      _file = null;
+      _channel = null;
+    }
+  }
+  
+  /** get the current snapshot, opening the file on first use. null if the file does not exist **/
+  private Snapshot getSnapshot() throws IOException { 
+    Snapshot snapshot = _snapshot;
+    if (snapshot == null) { 
+      synchronized (this) { 
+        if (_snapshot == null && fileName.exists()) { 
+          openForWrite();
+        }
+        snapshot = _snapshot;
+      }
+    }
+    return snapshot;
+  }
+  
+  /** open (or create) the file and load its index, if not already open **/
+  private void openForWrite() throws IOException { 
+    if (_file != null) { 
+      return;
+    }
     
-    LogFileHeader header = new LogFileHeader();
+    boolean preExistingHeader = fileName.exists() && fileName.length() != 0;
+    
+    RandomAccessFile file = new RandomAccessFile(fileName,"rw");
     
-    if (fileName.exists()) { 
-          
-      RandomAccessFile file = new RandomAccessFile(fileName,"r"); 
+    try { 
+      FileChannel channel = file.getChannel();
+      LogFileHeader header = new LogFileHeader();
       
-      Buffer  recordBuffer = new Buffer();
-      DataInputBuffer inputBuffer = new DataInputBuffer();
-      try { 
-  
-        //read header ... 
-        long headerOffset = readLogFileHeader(file, header);
-        
-        return header._itemCount;
+      if (preExistingHeader) { 
+        _headerOffset = readLogFileHeader(channel,header);
+      }
+      else { 
+        _headerOffset = writeLogFileHeader(channel,header);
       }
-      finally { 
-        if (file != null) { 
-          file.close();
+      
+      _file    = file;
+      _channel = channel;
+      _header  = header;
+      file = null;
+    }
+    finally { 
+      if (file != null) { 
+        file.close();
+      }
+    }
+    
+    loadIndex();
+    publishSnapshot();
+  }
+  
+  /** load the sparse index, and index any records appended since it was last written **/
+  private void loadIndex() throws IOException { 
+    _indexSize = 0;
+    _maxKey = Long.MIN_VALUE;
+    
+    long writePos = (_header._writePos == 0) ? _headerOffset : _header._writePos;
+    
+    _indexFile = new RandomAccessFile(new File(fileName.getPath() + INDEX_FILE_SUFFIX),"rw");
+    
+    long entryCount = _indexFile.length() / INDEX_ENTRY_SIZE;
+    
+    if (entryCount != 0) { 
+      byte entries[] = new byte[(int)(entryCount * INDEX_ENTRY_SIZE)];
+      _indexFile.seek(0);
+      _indexFile.readFully(entries);
+      for (int i=0;i<entryCount;++i) { 
+        long key = readLong(entries,i * INDEX_ENTRY_SIZE);
+        long pos = readLong(entries,i * INDEX_ENTRY_SIZE + 8);
+        // stop at the first entry that is out of order or past the end of the data (a crash between writes)
+        if (pos < _headerOffset || pos >= writePos || (_indexSize != 0 && (pos <= _indexPositions[_indexSize - 1] || key < _indexKeys[_indexSize - 1]))) { 
+          break;
         }
+        addIndexEntry(key,pos,false);
       }
     }
-    return 0;
+    // drop any trailing entries we did not trust
+    _indexFile.setLength((long)_indexSize * INDEX_ENTRY_SIZE);
+    
+    // now catch up with records appended after the last index entry
+    long position = _headerOffset;
+    long recordNumber = 0;
+    if (_indexSize != 0) { 
+      position = _indexPositions[_indexSize - 1];
+      recordNumber = (long)(_indexSize - 1) * INDEX_INTERVAL;
+      _maxKey = _indexKeys[_indexSize - 1];
+    }
+    
+    byte headerBytes[] = new byte[8];
+    byte keyBytes[] = new byte[9];
+    DataInputBuffer keyInput = new DataInputBuffer();
+    
+    int recordsIndexed = 0;
+    
+    while (position < writePos) { 
+      readFully(_channel,position,headerBytes,0,8);
+      if (readInt(headerBytes,0) != SyncBytes) { 
+        throw new IOException("Corrupt Record Detected at:" + position + " in:" + fileName);
+      }
+      int realRecordBytes = readInt(headerBytes,4);
+      // key is a vlong right after the crc
+      int keyLength = Math.min(keyBytes.length,realRecordBytes - 8);
+      readFully(_channel,position + RECORD_HEADER_LENGTH,keyBytes,0,keyLength);
+      keyInput.reset(keyBytes,keyLength);
+      long key = WritableUtils.readVLong(keyInput);
+      _maxKey = Math.max(_maxKey,key);
+      
+      if (recordNumber % INDEX_INTERVAL == 0 && (_indexSize == 0 || _indexPositions[_indexSize - 1] < position)) { 
+        addIndexEntry(_maxKey,position,true);
+        recordsIndexed++;
+      }
+      recordNumber++;
+      position += 8 + realRecordBytes;
+    }
+    if (recordsIndexed != 0) { 
+      LOG.info("Added " + recordsIndexed + " Index Entries for:" + fileName);
+    }
+  }
+  
+  private void addIndexEntry(long key,long position,boolean persist) throws IOException { 
+    if (_indexSize == _indexKeys.length) { 
+      // copy rather than grow in place, readers may be holding the old arrays
+      long newKeys[] = new long[_indexKeys.length * 2];
+      long newPositions[] = new long[_indexPositions.length * 2];
+      System.arraycopy(_indexKeys,0,newKeys,0,_indexSize);
+      System.arraycopy(_indexPositions,0,newPositions,0,_indexSize);
+      _indexKeys = newKeys;
+      _indexPositions = newPositions;
+    }
+    _indexKeys[_indexSize] = key;
+    _indexPositions[_indexSize] = position;
+    
+    if (persist) { 
+      byte entry[] = new byte[INDEX_ENTRY_SIZE];
+      writeLong(key,0,entry);
+      writeLong(position,8,entry);
+      writeFully(_indexFile.getChannel(),entry,0,INDEX_ENTRY_SIZE,(long)_indexSize * INDEX_ENTRY_SIZE);
+    }
+    _indexSize++;
+  }
+  
+  /** publish the writer's state to readers, remapping the file if it has grown enough **/
+  private void publishSnapshot() throws IOException { 
+    long writePos = (_header._writePos == 0) ? _headerOffset : _header._writePos;
+    long mapLength = Math.min(writePos,Integer.MAX_VALUE);
+    if (_mapped == null || mapLength - _mappedLength >= REMAP_THRESHOLD) { 
+      _mapped = _channel.map(FileChannel.MapMode.READ_ONLY,0,mapLength);
+      _mappedLength = mapLength;
+    }
+    LogFileHeader header = new LogFileHeader();
+    header._writePos = writePos;
+    header._itemCount = _header._itemCount;
+    header._lastRecordLength = _header._lastRecordLength;
+    header._lastRecordKey = _header._lastRecordKey;
+    
+    _snapshot = new Snapshot(_channel,_mapped,_mappedLength,_headerOffset,header,_indexKeys,_indexPositions,_indexSize);
+  }
+  
+  @SuppressWarnings("unchecked")
+  private ValueType readValue(DataInput input) throws IOException { 
+    try { 
+      ValueType value = (ValueType) valueClass.newInstance();
+      value.readFields(input);
+      return value;
+    } catch (InstantiationException e) { 
+      throw new IOException(e);
+    } catch (IllegalAccessException e) { 
+      throw new IOException(e);
+    }
+  }
+  
+  /** read from the mapped region where possible, otherwise with a positional read (neither moves a shared file pointer) **/
+  private static void readFully(Snapshot snapshot,long position,byte[] data,int offset,int length) throws IOException { 
+    if (position < 0 || position + length > snapshot.writePos) { 
+      throw new IOException("Invalid Read at:" + position + " Length:" + length + " File Length:" + snapshot.writePos);
+    }
+    if (position + length <= snapshot.mappedLength) { 
+      ByteBuffer buffer = snapshot.mapped.duplicate();
+      buffer.position((int)position);
+      buffer.get(data,offset,length);
+    }
+    else { 
+      readFully(snapshot.channel,position,data,offset,length);
+    }
+  }
+  
+  private static void readFully(FileChannel channel,long position,byte[] data,int offset,int length) throws IOException { 
+    ByteBuffer buffer = ByteBuffer.wrap(data,offset,length);
+    while (buffer.hasRemaining()) { 
+      int bytesRead = channel.read(buffer,position + (buffer.position() - offset));
+      if (bytesRead == -1) { 
+        throw new IOException("Unexpected EOF at:" + (position + (buffer.position() - offset)));
+      }
+    }
+  }
+  
+  private static void writeFully(FileChannel channel,byte[] data,int offset,int length,long position) throws IOException { 
+    ByteBuffer buffer = ByteBuffer.wrap(data,offset,length);
+    while (buffer.hasRemaining()) { 
+      channel.write(buffer,position + (buffer.position() - offset));
+    }
   }
   
   private static class LogFileHeader {
     
     public static final int LogFileHeaderBytes = SyncBytes;
     public static final int LogFileVersion         = 1;
+    public static final int LogFileHeaderSize      = 4 + 4 + 8 + 4 + 4 + 8;
     
     public LogFileHeader() { 
       _writePos = 0;
@@ -413,36 +702,38 @@ public class TimeSeriesDataFile<ValueType extends Writable> {
       _lastRecordLength = stream.readInt();
       _lastRecordKey    = stream.readLong();
     }
-  }  
-  private static long writeLogFileHeader(RandomAccessFile file, LogFileHeader header )throws IOException {
+  }
+  private static long writeLogFileHeader(FileChannel channel, LogFileHeader header )throws IOException { 
     
-    // set the position at zero .. 
-    file.seek(0);
-    // and write header to disk ... 
-    header.writeHeader(file);
+    DataOutputBuffer buffer = new DataOutputBuffer(LogFileHeader.LogFileHeaderSize);
+    header.writeHeader(buffer);
+    // write header to disk at position zero ...
+    writeFully(channel,buffer.getData(),0,buffer.getLength(),0);
     
     //took sync out because it was becoming a sever bottleneck
-    // file.getFD().sync();
+    // channel.force(false);
     
-    return file.getFilePointer();
+    return buffer.getLength();
   }
   
-  private static long readLogFileHeader(RandomAccessFile file,LogFileHeader header) throws IOException {
+  private static long readLogFileHeader(FileChannel channel,LogFileHeader header) throws IOException { 
     
-    file.seek(0);
+    byte headerBytes[] = new byte[LogFileHeader.LogFileHeaderSize];
+    readFully(channel,0,headerBytes,0,headerBytes.length);
+    DataInputBuffer buffer = new DataInputBuffer();
+    buffer.reset(headerBytes,headerBytes.length);
+    header.readHeader(buffer);
     
-    header.readHeader(file);
-    
-    return file.getFilePointer();
+    return buffer.getPosition();
   }
-
+  
   static void writeInt(int value,int atOffset, byte[] intoBytes) throws IOException {
     intoBytes[atOffset + 0] = (byte) ((value >>> 24) & 0xFF);
     intoBytes[atOffset + 1] = (byte) ((value >>> 16) & 0xFF);
     intoBytes[atOffset + 2] = (byte) ((value >>> 8) & 0xFF);
     intoBytes[atOffset + 3] = (byte) ((value >>> 0) & 0xFF);
   }
-
+  
   static void writeLong(long value,int atOffset, byte[] intoBytes) throws IOException {
     intoBytes[atOffset + 0] = (byte) ((value >>> 56) & 0xFF);
     intoBytes[atOffset + 1] = (byte) ((value >>> 48) & 0xFF);
@@ -453,4 +744,15 @@ public class TimeSeriesDataFile<ValueType extends Writable> {
     intoBytes[atOffset + 6] = (byte) ((value >>> 8) & 0xFF);
     intoBytes[atOffset + 7] = (byte) ((value >>> 0) & 0xFF);
   }
+  
+  static int readInt(byte[] fromBytes,int atOffset) { 
+    return ((fromBytes[atOffset + 0] & 0xFF) << 24)
+      | ((fromBytes[atOffset + 1] & 0xFF) << 16)
+      | ((fromBytes[atOffset + 2] & 0xFF) << 8)
+      | ((fromBytes[atOffset + 3] & 0xFF) << 0);
+  }
+  
+  static long readLong(byte[] fromBytes,int atOffset) { 
+    return ((long)readInt(fromBytes,atOffset) << 32) | (readInt(fromBytes,atOffset + 4) & 0xFFFFFFFFL);
+  }
 }
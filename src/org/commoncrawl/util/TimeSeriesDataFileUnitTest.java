@@ -0,0 +1,280 @@
+/**
+ * Copyright 2008 - CommonCrawl Foundation
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ **/
+package org.commoncrawl.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.hadoop.io.Writable;
+import org.commoncrawl.util.TimeSeriesDataFile.KeyValueTuple;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Checks TimeSeriesDataFile's indexed range reads against the records
+ * written, reads racing appends (across remaps of the file), and recovery of
+ * a missing, damaged or stale index.
+ *
+ * @author rana
+ *
+ */
+public class TimeSeriesDataFileUnitTest {
+
+  /** a record number plus some padding **/
+  public static class TestValue implements Writable {
+
+    public TestValue() {
+    }
+
+    public TestValue(long id,int paddingLength) {
+      this.id = id;
+      this.padding = new byte[paddingLength];
+    }
+
+    long   id;
+    byte[] padding = new byte[0];
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+      out.writeLong(id);
+      out.writeInt(padding.length);
+      out.write(padding);
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+      id = in.readLong();
+      padding = new byte[in.readInt()];
+      in.readFully(padding);
+    }
+  }
+
+  private static File createTempFile() throws IOException {
+    File file = File.createTempFile("TimeSeriesDataFileUnitTest", ".data");
+    file.delete();
+    file.deleteOnExit();
+    new File(file.getPath() + ".index").deleteOnExit();
+    return file;
+  }
+
+  private static void deleteFile(File file) {
+    file.delete();
+    new File(file.getPath() + ".index").delete();
+  }
+
+  /** key of the i'th record - non decreasing, with runs of equal keys **/
+  private static long keyOf(long recordNumber) {
+    return (recordNumber / 3) * 10;
+  }
+
+  private static void append(TimeSeriesDataFile<TestValue> file,int from,int to) throws IOException {
+    for (int i=from;i<to;++i) {
+      file.appendRecordToLogFile(keyOf(i),new TestValue(i,i % 7));
+    }
+  }
+
+  /** check readRange against the keys of records [0,recordCount) **/
+  private static void checkRanges(TimeSeriesDataFile<TestValue> file,int recordCount,Random random) throws IOException {
+    Assert.assertEquals(recordCount,file.getRecordCount());
+    long maxKey = keyOf(recordCount - 1);
+    for (int trial=0;trial<200;++trial) {
+      long fromKey = random.nextInt((int)maxKey + 40) - 20;
+      long toKey = fromKey + random.nextInt((int)maxKey / 4 + 1);
+      int max = (random.nextInt(4) == 0) ? 1 + random.nextInt(50) : -1;
+
+      ArrayList<Long> expected = new ArrayList<Long>();
+      for (int i=0;i<recordCount && (max == -1 || expected.size() < max);++i) {
+        if (keyOf(i) >= fromKey && keyOf(i) <= toKey) {
+          expected.add((long)i);
+        }
+      }
+      ArrayList<KeyValueTuple<Long,TestValue>> tuples = file.readRange(fromKey,toKey,max);
+      Assert.assertEquals(fromKey + "-" + toKey + " max:" + max,expected.size(),tuples.size());
+      for (int i=0;i<tuples.size();++i) {
+        Assert.assertEquals((long)expected.get(i),tuples.get(i).value.id);
+        Assert.assertEquals(keyOf(expected.get(i)),(long)tuples.get(i).key);
+      }
+    }
+    // a range of one key
+    if (recordCount >= 6) {
+      ArrayList<KeyValueTuple<Long,TestValue>> tuples = file.readRange(10,10,-1);
+      Assert.assertEquals(3,tuples.size());
+      Assert.assertEquals(3,tuples.get(0).value.id);
+    }
+    // ranges outside the file
+    Assert.assertEquals(0,file.readRange(maxKey + 1,Long.MAX_VALUE,-1).size());
+    Assert.assertEquals(0,file.readRange(Long.MIN_VALUE,-1,-1).size());
+    Assert.assertEquals(0,file.readRange(20,10,-1).size());
+  }
+
+  @Test
+  public void testReadRange() throws Exception {
+    File fileName = createTempFile();
+    try {
+      TimeSeriesDataFile<TestValue> file = new TimeSeriesDataFile<TestValue>(fileName,TestValue.class);
+      Assert.assertEquals(0,file.readRange(0,Long.MAX_VALUE,-1).size());
+      Random random = new Random(1);
+      // below, at and past the index interval
+      append(file,0,1);
+      checkRanges(file,1,random);
+      append(file,1,128);
+      checkRanges(file,128,random);
+      append(file,128,1000);
+      checkRanges(file,1000,random);
+
+      // the backwards readers see the same records
+      ArrayList<KeyValueTuple<Long,TestValue>> tail = file.readFromTail(10,-1);
+      Assert.assertEquals(10,tail.size());
+      Assert.assertEquals(990,tail.get(0).value.id);
+      Assert.assertEquals(999,tail.get(9).value.id);
+      ArrayList<KeyValueTuple<Long,TestValue>> fromPos = file.readFromPos(tail.get(5).recordPos,5,-1);
+      Assert.assertEquals(5,fromPos.size());
+      Assert.assertEquals(990,fromPos.get(0).value.id);
+
+      // and all of them survive a reopen
+      file.close();
+      file = new TimeSeriesDataFile<TestValue>(fileName,TestValue.class);
+      checkRanges(file,1000,random);
+      file.close();
+    }
+    finally {
+      deleteFile(fileName);
+    }
+  }
+
+  @Test
+  public void testReadsDuringAppends() throws Exception {
+    File fileName = createTempFile();
+    try {
+      final TimeSeriesDataFile<TestValue> file = new TimeSeriesDataFile<TestValue>(fileName,TestValue.class);
+      // write one record, so readers find the file
+      file.appendRecordToLogFile(keyOf(0),new TestValue(0,0));
+
+      final int recordCount = 2000;
+      final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+      Thread reader = new Thread() {
+
+        @Override
+        public void run() {
+          try {
+            int lastCount = 0;
+            while (lastCount < recordCount) {
+              // every read sees a prefix of the records, and never fewer than the last one
+              ArrayList<KeyValueTuple<Long,TestValue>> tuples = file.readRange(Long.MIN_VALUE,Long.MAX_VALUE,-1);
+              Assert.assertTrue(tuples.size() >= lastCount);
+              for (int i=0;i<tuples.size();++i) {
+                Assert.assertEquals(i,tuples.get(i).value.id);
+              }
+              ArrayList<KeyValueTuple<Long,TestValue>> tail = file.readFromTail(1,-1);
+              Assert.assertTrue(tail.get(0).value.id >= tuples.size() - 1);
+              lastCount = tuples.size();
+            }
+          }
+          catch (Throwable e) {
+            failure.set(e);
+          }
+        }
+      };
+      reader.start();
+
+      // large enough records that the file is remapped a few times
+      for (int i=1;i<recordCount;++i) {
+        file.appendRecordToLogFile(keyOf(i),new TestValue(i,8192));
+      }
+      reader.join();
+      if (failure.get() != null) {
+        throw new AssertionError(failure.get());
+      }
+      Assert.assertEquals(recordCount,file.readRange(Long.MIN_VALUE,Long.MAX_VALUE,-1).size());
+      file.close();
+    }
+    finally {
+      deleteFile(fileName);
+    }
+  }
+
+  @Test
+  public void testIndexRecovery() throws Exception {
+    File fileName = createTempFile();
+    File indexName = new File(fileName.getPath() + ".index");
+    try {
+      Random random = new Random(2);
+      TimeSeriesDataFile<TestValue> file = new TimeSeriesDataFile<TestValue>(fileName,TestValue.class);
+      append(file,0,1000);
+      file.close();
+      long fullIndexLength = indexName.length();
+      Assert.assertTrue(fullIndexLength != 0);
+
+      // a missing index is rebuilt
+      Assert.assertTrue(indexName.delete());
+      file = new TimeSeriesDataFile<TestValue>(fileName,TestValue.class);
+      checkRanges(file,1000,random);
+      file.close();
+      Assert.assertEquals(fullIndexLength,indexName.length());
+
+      // a torn last entry, and entries that are out of order or point past the data, are dropped and rebuilt
+      RandomAccessFile indexFile = new RandomAccessFile(indexName,"rw");
+      indexFile.setLength(fullIndexLength - 16 * 2 - 5);
+      indexFile.close();
+      file = new TimeSeriesDataFile<TestValue>(fileName,TestValue.class);
+      checkRanges(file,1000,random);
+      file.close();
+      Assert.assertEquals(fullIndexLength,indexName.length());
+
+      indexFile = new RandomAccessFile(indexName,"rw");
+      indexFile.seek(fullIndexLength - 16 * 2);
+      // key lower than the previous entry's
+      indexFile.writeLong(0);
+      indexFile.writeLong(Long.MAX_VALUE);
+      indexFile.close();
+      file = new TimeSeriesDataFile<TestValue>(fileName,TestValue.class);
+      checkRanges(file,1000,random);
+      file.close();
+      Assert.assertEquals(fullIndexLength,indexName.length());
+
+      // records appended after the index was last written (e.g. a crash) are indexed on open
+      byte staleIndex[] = new byte[(int)indexName.length()];
+      indexFile = new RandomAccessFile(indexName,"r");
+      indexFile.readFully(staleIndex);
+      indexFile.close();
+      file = new TimeSeriesDataFile<TestValue>(fileName,TestValue.class);
+      append(file,1000,1500);
+      file.close();
+      indexFile = new RandomAccessFile(indexName,"rw");
+      indexFile.setLength(0);
+      indexFile.write(staleIndex);
+      indexFile.close();
+      file = new TimeSeriesDataFile<TestValue>(fileName,TestValue.class);
+      checkRanges(file,1500,random);
+      // and appends carry on from there
+      append(file,1500,1700);
+      checkRanges(file,1700,random);
+      file.close();
+    }
+    finally {
+      deleteFile(fileName);
+    }
+  }
+}
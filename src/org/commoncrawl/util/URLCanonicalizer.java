@@ -0,0 +1,1047 @@
+/**
+ * Copyright 2008 - CommonCrawl Foundation
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ **/
+package org.commoncrawl.util;
+
+import java.net.MalformedURLException;
+import java.nio.charset.Charset;
+
+/**
+ * A pure java port of the (standard url) parse and canonicalization paths of
+ * the googleurl library behind {@link GoogleURL}, that works directly on
+ * String or raw (utf-8) byte input and canonicalizes into reusable buffers.
+ *
+ * Only the common case is handled natively: http and https urls whose input is
+ * 7-bit ascii and whose host requires no unescaping (and hence no IDN
+ * conversion). Everything else is reported as {@link #UNSUPPORTED}, and
+ * callers are expected to fall back to GoogleURL, so results always match
+ * GoogleURL exactly.
+ *
+ * Instances are NOT thread safe (see {@link #get()} for a per thread instance).
+ *
+ * @author rana
+ *
+ */
+public final class URLCanonicalizer {
+
+  /** the url was canonicalized **/
+  public static final int CANONICAL   = 0;
+  /** the url is invalid (GoogleURL.isValid() would return false) **/
+  public static final int INVALID     = 1;
+  /** the url can't be handled by this class (use GoogleURL) **/
+  public static final int UNSUPPORTED = 2;
+
+  /** component indexes (same order as GoogleURL.ComponentType) **/
+  public static final int SCHEME   = 0;
+  public static final int USERNAME = 1;
+  public static final int PASSWORD = 2;
+  public static final int HOST     = 3;
+  public static final int PORT     = 4;
+  public static final int PATH     = 5;
+  public static final int QUERY    = 6;
+  public static final int REF      = 7;
+
+  private static final int COMPONENT_COUNT = 8;
+
+  private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+  private static final ThreadLocal<URLCanonicalizer> _threadInstance = new ThreadLocal<URLCanonicalizer>() {
+    @Override
+    protected URLCanonicalizer initialValue() {
+      return new URLCanonicalizer();
+    }
+  };
+
+  /** get the canonicalizer instance associated with the current thread **/
+  public static URLCanonicalizer get() {
+    return _threadInstance.get();
+  }
+
+  /** input (whitespace stripped) **/
+  private char[]     _in        = new char[256];
+  private int        _inLength  = 0;
+  /** googleurl canonical form **/
+  private byte[]     _out       = new byte[256];
+  private int        _outLength = 0;
+  /** commoncrawl canonical form **/
+  private byte[]     _cc        = new byte[256];
+  private int        _ccLength  = 0;
+
+  /** parsed input components (len == -1 means unspecified) **/
+  private final int[] _inBegin  = new int[COMPONENT_COUNT];
+  private final int[] _inLen    = new int[COMPONENT_COUNT];
+  /** canonical output components **/
+  private final int[] _outBegin = new int[COMPONENT_COUNT];
+  private final int[] _outLen   = new int[COMPONENT_COUNT];
+
+  /** ipv4 scratch **/
+  private final int[] _ipBegin  = new int[4];
+  private final int[] _ipLen    = new int[4];
+  private final long[] _ipValue = new long[4];
+
+  private int _status = UNSUPPORTED;
+
+  /**
+   * canonicalize the given url.
+   *
+   * @return CANONICAL, INVALID or UNSUPPORTED
+   */
+  public int canonicalize(String url) {
+    int length = url.length();
+    ensureInputCapacity(length);
+    _inLength = 0;
+    for (int i = 0; i < length; ++i) {
+      if (!appendInputChar(url.charAt(i))) {
+        return _status = UNSUPPORTED;
+      }
+    }
+    return _status = canonicalizeInput();
+  }
+
+  /**
+   * canonicalize the given (utf-8) url bytes.
+   *
+   * @return CANONICAL, INVALID or UNSUPPORTED
+   */
+  public int canonicalize(byte[] utf8, int offset, int length) {
+    ensureInputCapacity(length);
+    _inLength = 0;
+    for (int i = 0; i < length; ++i) {
+      // high bit set means non-ascii input
+      if (!appendInputChar((char) utf8[offset + i])) {
+        return _status = UNSUPPORTED;
+      }
+    }
+    return _status = canonicalizeInput();
+  }
+
+  /** canonicalize the given url **/
+  public int canonicalize(TextBytes url) {
+    return canonicalize(url.getBytes(), url.getOffset(), url.getLength());
+  }
+
+  /** status of the last canonicalize call **/
+  public int getStatus() {
+    return _status;
+  }
+
+  public boolean isValid() {
+    return _status == CANONICAL;
+  }
+
+  /** the googleurl canonical form (GoogleURL.getCanonicalURL) backing buffer **/
+  public byte[] getCanonicalBytes() {
+    return _out;
+  }
+
+  public int getCanonicalLength() {
+    return _outLength;
+  }
+
+  /** the googleurl canonical form (same as GoogleURL.getCanonicalURL) **/
+  public String getCanonicalURL() {
+    return new String(_out, 0, _outLength, ISO_8859_1);
+  }
+
+  /** offset of the given component in the canonical buffer **/
+  public int getComponentBegin(int component) {
+    return _outBegin[component];
+  }
+
+  /** length of the given component in the canonical buffer (-1 if unspecified) **/
+  public int getComponentLength(int component) {
+    return _outLen[component];
+  }
+
+  /** the given component as a String (GoogleURL.emptyString if empty or unspecified) **/
+  public String getComponent(int component) {
+    if (_status != CANONICAL || _outLen[component] <= 0)
+      return GoogleURL.emptyString;
+    return new String(_out, _outBegin[component], _outLen[component], ISO_8859_1);
+  }
+
+  public String getHost() {
+    return getComponent(HOST);
+  }
+
+  /**
+   * produce the commoncrawl canonical form (see URLUtils.canonicalizeURL) of
+   * the last url canonicalized. the result is also available via
+   * getCCCanonicalBytes / getCCCanonicalLength
+   */
+  public String getCCCanonicalURL(boolean stripLeadingWWW) throws MalformedURLException {
+    if (_status != CANONICAL) {
+      throw new MalformedURLException("URL is invalid");
+    }
+    _ccLength = 0;
+
+    appendCC(_out, _outBegin[SCHEME], _outLen[SCHEME]);
+    appendCC((byte) ':');
+    appendCC((byte) '/');
+    appendCC((byte) '/');
+
+    if (_outLen[USERNAME] > 0) {
+      appendCC(_out, _outBegin[USERNAME], _outLen[USERNAME]);
+      if (_outLen[PASSWORD] > 0) {
+        appendCC((byte) ':');
+        appendCC(_out, _outBegin[PASSWORD], _outLen[PASSWORD]);
+      }
+      appendCC((byte) '@');
+    }
+
+    int hostBegin = _outBegin[HOST];
+    int hostLen = Math.max(0, _outLen[HOST]);
+    if (hostLen != 0 && _out[hostBegin + hostLen - 1] == '.') {
+      hostLen--;
+    }
+    if (stripLeadingWWW && hostLen >= 4 && _out[hostBegin] == 'w' && _out[hostBegin + 1] == 'w'
+        && _out[hostBegin + 2] == 'w' && _out[hostBegin + 3] == '.') {
+      String host = new String(_out, hostBegin, hostLen, ISO_8859_1);
+      // if root name is null or root name does not equal full host name ...
+      String rootName = URLUtils.extractRootDomainName(host);
+      if (rootName == null || !rootName.equals(host)) {
+        hostBegin += 4;
+        hostLen -= 4;
+      }
+    }
+    appendCC(_out, hostBegin, hostLen);
+
+    if (_outLen[PORT] > 0
+        && !(_outLen[PORT] == 2 && _out[_outBegin[PORT]] == '8' && _out[_outBegin[PORT] + 1] == '0')) {
+      appendCC((byte) ':');
+      appendCC(_out, _outBegin[PORT], _outLen[PORT]);
+    }
+    if (_outLen[PATH] > 0) {
+      int pathLen = 0;
+      while (pathLen < _outLen[PATH] && _out[_outBegin[PATH] + pathLen] != ';')
+        ++pathLen;
+      appendCC(_out, _outBegin[PATH], pathLen);
+    }
+    if (_outLen[QUERY] > 0) {
+      appendCC((byte) '?');
+      appendCC(_out, _outBegin[QUERY], _outLen[QUERY]);
+    }
+
+    String canonicalizedURL = new String(_cc, 0, _ccLength, ISO_8859_1);
+
+    // phase 2 - remove common session id patterns (skipped if none of the
+    // normalizer's markers are present)
+    if (mayContainSessionId(_cc, _ccLength)) {
+      String normalizedURL = URLUtils.sessionIdNormalizer.normalize(canonicalizedURL, "");
+      if (normalizedURL != canonicalizedURL) {
+        canonicalizedURL = normalizedURL;
+        _ccLength = 0;
+        for (int i = 0; i < normalizedURL.length(); ++i) {
+          appendCC((byte) normalizedURL.charAt(i));
+        }
+      }
+    }
+
+    // phase 3 - stir back in ref if #!
+    if (_outLen[REF] > 0 && _out[_outBegin[REF]] == '!') {
+      appendCC((byte) '#');
+      appendCC(_out, _outBegin[REF], _outLen[REF]);
+      canonicalizedURL = new String(_cc, 0, _ccLength, ISO_8859_1);
+    }
+    return canonicalizedURL;
+  }
+
+  /** the commoncrawl canonical form backing buffer (valid after getCCCanonicalURL) **/
+  public byte[] getCCCanonicalBytes() {
+    return _cc;
+  }
+
+  public int getCCCanonicalLength() {
+    return _ccLength;
+  }
+
+  /**
+   * the session id normalizer only ever rewrites urls that contain (case
+   * insensitive) "sid", "ssion" or ".php".
+   */
+  static boolean mayContainSessionId(byte[] data, int length) {
+    for (int i = 0; i + 2 < length; ++i) {
+      int c0 = data[i] | 0x20;
+      int c1 = data[i + 1] | 0x20;
+      int c2 = data[i + 2] | 0x20;
+      if (c0 == 's') {
+        if (c1 == 'i' && c2 == 'd')
+          return true;
+        if (c1 == 's' && c2 == 'i' && i + 4 < length && (data[i + 3] | 0x20) == 'o' && (data[i + 4] | 0x20) == 'n')
+          return true;
+      } else if (data[i] == '.' && c1 == 'p' && c2 == 'h' && i + 3 < length && (data[i + 3] | 0x20) == 'p') {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /*************************************************************************
+   * input
+   **/
+
+  private void ensureInputCapacity(int length) {
+    if (_in.length < length) {
+      _in = new char[Math.max(length, _in.length * 2)];
+    }
+  }
+
+  /** append an input char, stripping tabs and newlines (RemoveURLWhitespace) **/
+  private boolean appendInputChar(char c) {
+    // non ascii input requires utf-8 escaping (and maybe IDN), and nulls would
+    // be truncated by the JNI layer, so leave both to GoogleURL
+    if (c >= 0x80 || c == 0) {
+      return false;
+    }
+    if (c != '\r' && c != '\n' && c != '\t') {
+      _in[_inLength++] = c;
+    }
+    return true;
+  }
+
+  /*************************************************************************
+   * parsing (url_parse.cc)
+   **/
+
+  private static boolean isAuthorityTerminator(char c) {
+    return c == '/' || c == '\\' || c == '?' || c == '#';
+  }
+
+  private static boolean isURLSlash(char c) {
+    return c == '/' || c == '\\';
+  }
+
+  private void setInput(int component, int begin, int len) {
+    _inBegin[component] = begin;
+    _inLen[component] = len;
+  }
+
+  private void resetInput(int component) {
+    _inBegin[component] = 0;
+    _inLen[component] = -1;
+  }
+
+  private void setOutput(int component, int begin, int len) {
+    _outBegin[component] = begin;
+    _outLen[component] = len;
+  }
+
+  private void resetOutput(int component) {
+    _outBegin[component] = 0;
+    _outLen[component] = -1;
+  }
+
+  private int canonicalizeInput() {
+    for (int i = 0; i < COMPONENT_COUNT; ++i) {
+      resetInput(i);
+      resetOutput(i);
+    }
+    _outLength = 0;
+
+    // ExtractScheme
+    int begin = 0;
+    while (begin < _inLength && _in[begin] <= ' ')
+      begin++;
+    if (begin == _inLength)
+      return INVALID;
+    int schemeEnd = -1;
+    for (int i = begin; i < _inLength; i++) {
+      if (_in[i] == ':') {
+        schemeEnd = i;
+        break;
+      } else if (isAuthorityTerminator(_in[i])) {
+        break;
+      }
+    }
+    if (schemeEnd == -1)
+      return INVALID;
+
+    int defaultPort;
+    if (schemeEquals(begin, schemeEnd, "http")) {
+      defaultPort = 80;
+    } else if (schemeEquals(begin, schemeEnd, "https")) {
+      defaultPort = 443;
+    } else {
+      return UNSUPPORTED;
+    }
+
+    // ParseStandardURL. trims trailing whitespace and control chars. the
+    // scheme colon is the one found above, since the scheme contains no '@'
+    // or '['
+    int specLen = _inLength;
+    while (specLen > begin && _in[specLen - 1] <= ' ')
+      specLen--;
+    setInput(SCHEME, begin, schemeEnd - begin);
+    parseAfterScheme(schemeEnd + 1, specLen);
+
+    return canonicalizeStandardURL(defaultPort);
+  }
+
+  private boolean schemeEquals(int begin, int end, String scheme) {
+    if (end - begin != scheme.length())
+      return false;
+    for (int i = begin; i < end; ++i) {
+      char c = _in[i];
+      if (c >= 'A' && c <= 'Z')
+        c += 'a' - 'A';
+      if (c != scheme.charAt(i - begin))
+        return false;
+    }
+    return true;
+  }
+
+  private void parseAfterScheme(int afterScheme, int specLen) {
+    int afterSlashes = afterScheme;
+    while (afterSlashes < specLen && isURLSlash(_in[afterSlashes]))
+      afterSlashes++;
+
+    int endAuth = afterSlashes;
+    while (endAuth < specLen && !isAuthorityTerminator(_in[endAuth]))
+      endAuth++;
+
+    parseAuthority(afterSlashes, endAuth - afterSlashes);
+
+    if (endAuth == specLen) {
+      resetInput(PATH);
+      resetInput(QUERY);
+      resetInput(REF);
+    } else {
+      parsePath(endAuth, specLen);
+    }
+  }
+
+  private void parseAuthority(int begin, int len) {
+    if (len == 0) {
+      resetInput(USERNAME);
+      resetInput(PASSWORD);
+      resetInput(HOST);
+      resetInput(PORT);
+      return;
+    }
+    // search backwards for @, which separates the user info from the server info
+    int i = begin + len - 1;
+    while (i > begin && _in[i] != '@')
+      i--;
+
+    if (_in[i] == '@') {
+      parseUserInfo(begin, i - begin);
+      parseServerInfo(i + 1, begin + len - (i + 1));
+    } else {
+      resetInput(USERNAME);
+      resetInput(PASSWORD);
+      parseServerInfo(begin, len);
+    }
+  }
+
+  private void parseUserInfo(int begin, int len) {
+    int colonOffset = 0;
+    while (colonOffset < len && _in[begin + colonOffset] != ':')
+      colonOffset++;
+
+    if (colonOffset < len) {
+      setInput(USERNAME, begin, colonOffset);
+      setInput(PASSWORD, begin + colonOffset + 1, len - (colonOffset + 1));
+    } else {
+      setInput(USERNAME, begin, len);
+      resetInput(PASSWORD);
+    }
+  }
+
+  private void parseServerInfo(int begin, int len) {
+    if (len == 0) {
+      resetInput(HOST);
+      resetInput(PORT);
+      return;
+    }
+    // search backwards for a ':' but stop on ']' (IPv6 address literal delimiter)
+    int i = begin + len - 1;
+    int colon = -1;
+    int bracket = -1;
+    while (i >= begin && colon < 0) {
+      char c = _in[i];
+      if (c == ']') {
+        bracket = i;
+      } else if (c == ':' && bracket < 0) {
+        colon = i;
+      }
+      i--;
+    }
+
+    if (colon >= 0) {
+      int hostLen = colon - begin;
+      if (hostLen != 0)
+        setInput(HOST, begin, hostLen);
+      else
+        resetInput(HOST);
+      setInput(PORT, colon + 1, begin + len - (colon + 1));
+    } else {
+      setInput(HOST, begin, len);
+      resetInput(PORT);
+    }
+  }
+
+  private void parsePath(int begin, int end) {
+    int querySeparator = -1;
+    int refSeparator = -1;
+    for (int i = begin; i < end; i++) {
+      char c = _in[i];
+      if (c == '?') {
+        if (refSeparator < 0 && querySeparator < 0)
+          querySeparator = i;
+      } else if (c == '#') {
+        if (refSeparator < 0)
+          refSeparator = i;
+      }
+    }
+
+    int fileEnd;
+    int queryEnd;
+    if (refSeparator >= 0) {
+      fileEnd = queryEnd = refSeparator;
+      setInput(REF, refSeparator + 1, end - (refSeparator + 1));
+    } else {
+      fileEnd = queryEnd = end;
+      resetInput(REF);
+    }
+
+    if (querySeparator >= 0) {
+      fileEnd = querySeparator;
+      setInput(QUERY, querySeparator + 1, queryEnd - (querySeparator + 1));
+    } else {
+      resetInput(QUERY);
+    }
+
+    if (fileEnd != begin)
+      setInput(PATH, begin, fileEnd - begin);
+    else
+      resetInput(PATH);
+  }
+
+  /*************************************************************************
+   * canonicalization (url_canon_*.cc)
+   **/
+
+  private static final char[] HEX_CHARS = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C',
+      'D', 'E', 'F' };
+
+  private static final int CHAR_IPV4 = 1;
+  private static final int CHAR_HEX  = 2;
+  private static final int CHAR_DEC  = 4;
+  private static final int CHAR_OCT  = 8;
+
+  private static final byte[] CHAR_TYPES = new byte[0x80];
+
+  /** canonical host chars (lower cased), 0 if disallowed. space is disallowed in our build **/
+  private static final char[] HOST_CHARS = new char[0x80];
+
+  /** path char flags **/
+  private static final int PATH_PASS     = 0;
+  private static final int PATH_SPECIAL  = 1;
+  private static final int PATH_ESCAPE   = 2 | PATH_SPECIAL;
+  private static final int PATH_UNESCAPE = 4;
+  private static final int PATH_INVALID  = 8 | PATH_SPECIAL;
+
+  private static final byte[] PATH_CHARS = new byte[0x100];
+
+  static {
+    for (char c = '0'; c <= '9'; ++c) {
+      CHAR_TYPES[c] = (byte) (CHAR_IPV4 | CHAR_HEX | CHAR_DEC | ((c <= '7') ? CHAR_OCT : 0));
+    }
+    for (char c = 'a'; c <= 'f'; ++c) {
+      CHAR_TYPES[c] = (byte) (CHAR_IPV4 | CHAR_HEX);
+      CHAR_TYPES[c - 'a' + 'A'] = (byte) (CHAR_IPV4 | CHAR_HEX);
+    }
+    CHAR_TYPES['.'] = CHAR_IPV4;
+    CHAR_TYPES['x'] = CHAR_IPV4;
+    CHAR_TYPES['X'] = CHAR_IPV4;
+
+    for (char c = '0'; c <= '9'; ++c)
+      HOST_CHARS[c] = c;
+    for (char c = 'a'; c <= 'z'; ++c) {
+      HOST_CHARS[c] = c;
+      HOST_CHARS[c - 'a' + 'A'] = c;
+    }
+    HOST_CHARS['+'] = '+';
+    HOST_CHARS['-'] = '-';
+    HOST_CHARS['.'] = '.';
+    HOST_CHARS['['] = '[';
+    HOST_CHARS[']'] = ']';
+    HOST_CHARS['_'] = '_';
+
+    // control chars and high bit chars are escaped, NULL is invalid
+    for (int i = 0; i < 0x100; ++i)
+      PATH_CHARS[i] = PATH_ESCAPE;
+    PATH_CHARS[0] = PATH_INVALID;
+    for (char c = '0'; c <= '9'; ++c)
+      PATH_CHARS[c] = PATH_UNESCAPE;
+    for (char c = 'a'; c <= 'z'; ++c) {
+      PATH_CHARS[c] = PATH_UNESCAPE;
+      PATH_CHARS[c - 'a' + 'A'] = PATH_UNESCAPE;
+    }
+    PATH_CHARS['-'] = PATH_UNESCAPE;
+    PATH_CHARS['@'] = PATH_UNESCAPE;
+    PATH_CHARS['_'] = PATH_UNESCAPE;
+    PATH_CHARS['~'] = PATH_UNESCAPE;
+    PATH_CHARS['.'] = PATH_SPECIAL;
+    for (char c : "!$&'()*+,/:;=[]".toCharArray())
+      PATH_CHARS[c] = PATH_PASS;
+    // ' ', '"', '#', '%', '<', '>', '?', '\\', '^', '`', '{', '|', '}' and 0x7f keep PATH_ESCAPE
+  }
+
+  private void ensureOutputCapacity(int additional) {
+    if (_outLength + additional > _out.length) {
+      byte[] newOut = new byte[Math.max(_out.length * 2, _outLength + additional)];
+      System.arraycopy(_out, 0, newOut, 0, _outLength);
+      _out = newOut;
+    }
+  }
+
+  private void append(char c) {
+    if (_outLength == _out.length)
+      ensureOutputCapacity(1);
+    _out[_outLength++] = (byte) c;
+  }
+
+  private void appendEscaped(int c) {
+    ensureOutputCapacity(3);
+    _out[_outLength++] = '%';
+    _out[_outLength++] = (byte) HEX_CHARS[(c >> 4) & 0xf];
+    _out[_outLength++] = (byte) HEX_CHARS[c & 0xf];
+  }
+
+  /** AppendInvalidNarrowString (ascii input only) **/
+  private void appendInvalidNarrowString(int begin, int end) {
+    for (int i = begin; i < end; i++) {
+      char c = _in[i];
+      if (c <= ' ' || c == 0x7f)
+        appendEscaped(c);
+      else
+        append(c);
+    }
+  }
+
+  private int canonicalizeStandardURL(int defaultPort) {
+    // scheme (known to be http or https)
+    _outBegin[SCHEME] = _outLength;
+    for (int i = _inBegin[SCHEME]; i < _inBegin[SCHEME] + _inLen[SCHEME]; ++i) {
+      char c = _in[i];
+      append((c >= 'A' && c <= 'Z') ? (char) (c + ('a' - 'A')) : c);
+    }
+    _outLen[SCHEME] = _outLength - _outBegin[SCHEME];
+    append(':');
+
+    boolean success = true;
+    boolean haveAuthority;
+    if (_inLen[USERNAME] != -1 || _inLen[PASSWORD] != -1 || _inLen[HOST] > 0 || _inLen[PORT] != -1) {
+      haveAuthority = true;
+      append('/');
+      append('/');
+
+      canonicalizeUserInfo();
+
+      int hostResult = canonicalizeHost();
+      if (hostResult == UNSUPPORTED)
+        return UNSUPPORTED;
+      success &= (hostResult == CANONICAL);
+
+      success &= canonicalizePort(defaultPort);
+    } else {
+      haveAuthority = false;
+      success = false;
+    }
+
+    if (_inLen[PATH] != -1) {
+      success &= canonicalizePath();
+    } else if (haveAuthority || _inLen[QUERY] != -1 || _inLen[REF] != -1) {
+      setOutput(PATH, _outLength, 1);
+      append('/');
+    }
+
+    // query
+    if (_inLen[QUERY] >= 0) {
+      append('?');
+      _outBegin[QUERY] = _outLength;
+      int end = _inBegin[QUERY] + _inLen[QUERY];
+      for (int i = _inBegin[QUERY]; i < end; ++i) {
+        char c = _in[i];
+        if (c <= 0x20 || c >= 0x7f)
+          appendEscaped(c);
+        else
+          append(c);
+      }
+      _outLen[QUERY] = _outLength - _outBegin[QUERY];
+    }
+
+    // ref (ascii is copied as is)
+    if (_inLen[REF] >= 0) {
+      append('#');
+      _outBegin[REF] = _outLength;
+      int end = _inBegin[REF] + _inLen[REF];
+      for (int i = _inBegin[REF]; i < end; ++i) {
+        append(_in[i]);
+      }
+      _outLen[REF] = _outLength - _outBegin[REF];
+    }
+    return success ? CANONICAL : INVALID;
+  }
+
+  private void canonicalizeUserInfo() {
+    if (_inLen[USERNAME] <= 0 && _inLen[PASSWORD] <= 0) {
+      return;
+    }
+    _outBegin[USERNAME] = _outLength;
+    if (_inLen[USERNAME] > 0) {
+      appendInvalidNarrowString(_inBegin[USERNAME], _inBegin[USERNAME] + _inLen[USERNAME]);
+    }
+    _outLen[USERNAME] = _outLength - _outBegin[USERNAME];
+
+    if (_inLen[PASSWORD] > 0) {
+      append(':');
+      _outBegin[PASSWORD] = _outLength;
+      appendInvalidNarrowString(_inBegin[PASSWORD], _inBegin[PASSWORD] + _inLen[PASSWORD]);
+      _outLen[PASSWORD] = _outLength - _outBegin[PASSWORD];
+    }
+    append('@');
+  }
+
+  private int canonicalizeHost() {
+    int len = _inLen[HOST];
+    if (len <= 0) {
+      return CANONICAL;
+    }
+    int begin = _inBegin[HOST];
+    int end = begin + len;
+    for (int i = begin; i < end; ++i) {
+      // escaped hosts have to be unescaped, and may then require IDN
+      if (_in[i] == '%')
+        return UNSUPPORTED;
+    }
+
+    _outBegin[HOST] = _outLength;
+    boolean success = true;
+    if (!canonicalizeIPv4Address(begin, end)) {
+      for (int i = begin; i < end; i++) {
+        char c = _in[i];
+        char replacement = HOST_CHARS[c];
+        if (replacement == 0) {
+          appendEscaped(c);
+          success = false;
+        } else {
+          append(replacement);
+        }
+      }
+    }
+    _outLen[HOST] = _outLength - _outBegin[HOST];
+    return success ? CANONICAL : INVALID;
+  }
+
+  /** url_canon_ip.cc - appends the canonical ipv4 address and returns true if the host is one **/
+  private boolean canonicalizeIPv4Address(int begin, int end) {
+    // FindIPv4Components
+    int component = 0;
+    int componentBegin = begin;
+    for (int i = begin;; i++) {
+      if (i == end || _in[i] == '.') {
+        int componentLen = i - componentBegin;
+        _ipBegin[component] = componentBegin;
+        _ipLen[component] = componentLen;
+        componentBegin = i + 1;
+        component++;
+
+        if (componentLen == 0 && (i != end || component == 1))
+          return false;
+        if (i == end)
+          break;
+        if (component == 4) {
+          if (_in[i] == '.' && i + 1 == end)
+            break;
+          return false;
+        }
+      } else if ((CHAR_TYPES[_in[i]] & CHAR_IPV4) == 0) {
+        return false;
+      }
+    }
+    while (component < 4)
+      _ipLen[component++] = -1;
+
+    // IPv4ComponentToNumber
+    int existingComponents = 0;
+    for (int i = 0; i < 4; i++) {
+      if (_ipLen[i] <= 0)
+        continue;
+      int componentStart = _ipBegin[i];
+      int componentLen = _ipLen[i];
+      int base;
+      int basePrefixLen = 0;
+      int baseType;
+      if (_in[componentStart] == '0') {
+        if (componentLen == 1) {
+          base = 10;
+          baseType = CHAR_DEC;
+        } else if (_in[componentStart + 1] == 'X' || _in[componentStart + 1] == 'x') {
+          base = 16;
+          baseType = CHAR_HEX;
+          basePrefixLen = 2;
+        } else {
+          base = 8;
+          baseType = CHAR_OCT;
+          basePrefixLen = 1;
+        }
+      } else {
+        base = 10;
+        baseType = CHAR_DEC;
+      }
+      if (componentLen - basePrefixLen > 16)
+        return false;
+      // no hex, decimal, or octal number can overflow 64 bits in <= 16 chars
+      long value = 0;
+      for (int j = basePrefixLen; j < componentLen; j++) {
+        char c = _in[componentStart + j];
+        if ((CHAR_TYPES[c] & baseType) == 0)
+          return false;
+        value = value * base + Character.digit(c, 16);
+      }
+      _ipValue[existingComponents++] = value & 0xFFFFFFFFL;
+    }
+
+    // fill all but the last component by truncating to one byte, and the rest from the last component
+    int address[] = new int[4];
+    for (int i = 0; i < existingComponents - 1; i++)
+      address[i] = (int) (_ipValue[i] & 0xFF);
+    long lastValue = _ipValue[existingComponents - 1];
+    if (existingComponents == 1)
+      address[0] = (int) ((lastValue & 0xFF000000L) >> 24);
+    if (existingComponents <= 2)
+      address[1] = (int) ((lastValue & 0x00FF0000L) >> 16);
+    if (existingComponents <= 3)
+      address[2] = (int) ((lastValue & 0x0000FF00L) >> 8);
+    address[3] = (int) (lastValue & 0xFF);
+
+    for (int i = 0; i < 4; i++) {
+      appendDecimal(address[i]);
+      if (i != 3)
+        append('.');
+    }
+    return true;
+  }
+
+  private void appendDecimal(int value) {
+    if (value >= 10)
+      appendDecimal(value / 10);
+    append((char) ('0' + (value % 10)));
+  }
+
+  private boolean canonicalizePort(int defaultPort) {
+    int begin = _inBegin[PORT];
+    int len = _inLen[PORT];
+    // ParsePort
+    int portNumber;
+    if (len <= 0) {
+      portNumber = -1; // unspecified
+    } else {
+      int digitsBegin = begin + len;
+      for (int i = 0; i < len; i++) {
+        if (_in[begin + i] != '0') {
+          digitsBegin = begin + i;
+          break;
+        }
+      }
+      int digitsLen = begin + len - digitsBegin;
+      if (digitsLen == 0) {
+        portNumber = 0;
+      } else if (digitsLen > 5) {
+        portNumber = -2; // invalid
+      } else {
+        portNumber = 0;
+        for (int i = digitsBegin; i < digitsBegin + digitsLen; ++i) {
+          char c = _in[i];
+          if (c < '0' || c > '9') {
+            portNumber = -2;
+            break;
+          }
+          portNumber = portNumber * 10 + (c - '0');
+        }
+        if (portNumber > 65535)
+          portNumber = -2;
+      }
+    }
+
+    if (portNumber == -1 || portNumber == defaultPort) {
+      return true;
+    }
+    append(':');
+    _outBegin[PORT] = _outLength;
+    if (portNumber == -2) {
+      appendInvalidNarrowString(begin, begin + len);
+      _outLen[PORT] = _outLength - _outBegin[PORT];
+      return false;
+    }
+    appendDecimal(portNumber);
+    _outLen[PORT] = _outLength - _outBegin[PORT];
+    return true;
+  }
+
+  /** IsDot - 1 for a literal dot, 3 for an escaped dot, 0 otherwise **/
+  private int isDot(int offset, int end) {
+    if (_in[offset] == '.') {
+      return 1;
+    } else if (_in[offset] == '%' && offset + 3 <= end && _in[offset + 1] == '2'
+        && (_in[offset + 2] == 'e' || _in[offset + 2] == 'E')) {
+      return 3;
+    }
+    return 0;
+  }
+
+  private static final int NOT_A_DIRECTORY = 0;
+  private static final int DIRECTORY_CUR   = 1;
+  private static final int DIRECTORY_UP    = 2;
+
+  /** ClassifyAfterDot. returns the disposition in the low bits, and the consumed length << 2 **/
+  private int classifyAfterDot(int afterDot, int end) {
+    if (afterDot == end) {
+      return DIRECTORY_CUR;
+    }
+    if (isURLSlash(_in[afterDot])) {
+      return DIRECTORY_CUR | (1 << 2);
+    }
+    int secondDotLen = isDot(afterDot, end);
+    if (secondDotLen != 0) {
+      int afterSecondDot = afterDot + secondDotLen;
+      if (afterSecondDot == end) {
+        return DIRECTORY_UP | (secondDotLen << 2);
+      }
+      if (isURLSlash(_in[afterSecondDot])) {
+        return DIRECTORY_UP | ((secondDotLen + 1) << 2);
+      }
+    }
+    return NOT_A_DIRECTORY;
+  }
+
+  private void backUpToPreviousSlash(int pathBegin) {
+    int i = _outLength - 1;
+    if (i == pathBegin)
+      return;
+    i--;
+    while (_out[i] != '/' && i > pathBegin)
+      i--;
+    _outLength = i + 1;
+  }
+
+  private static int hexValue(char c) {
+    if (c >= '0' && c <= '9')
+      return c - '0';
+    if (c >= 'a' && c <= 'f')
+      return c - 'a' + 10;
+    if (c >= 'A' && c <= 'F')
+      return c - 'A' + 10;
+    return -1;
+  }
+
+  private boolean canonicalizePath() {
+    int begin = _inBegin[PATH];
+    int end = begin + _inLen[PATH];
+    int pathBegin = _outLength;
+    _outBegin[PATH] = pathBegin;
+
+    // parsed paths always start with a slash (or backslash)
+    if (!isURLSlash(_in[begin]))
+      append('/');
+
+    boolean success = true;
+    for (int i = begin; i < end; i++) {
+      char c = _in[i];
+      int flags = PATH_CHARS[c];
+      if ((flags & PATH_SPECIAL) == 0) {
+        append(c);
+        continue;
+      }
+      int dotLen = isDot(i, end);
+      if (dotLen > 0) {
+        if (_outLength > pathBegin && _out[_outLength - 1] == '/') {
+          int disposition = classifyAfterDot(i + dotLen, end);
+          int consumedLen = disposition >> 2;
+          switch (disposition & 3) {
+            case NOT_A_DIRECTORY:
+              append('.');
+              i += dotLen - 1;
+              break;
+            case DIRECTORY_CUR:
+              i += dotLen + consumedLen - 1;
+              break;
+            case DIRECTORY_UP:
+              backUpToPreviousSlash(pathBegin);
+              i += dotLen + consumedLen - 1;
+              break;
+          }
+        } else {
+          append('.');
+          i += dotLen - 1;
+        }
+      } else if (c == '\\') {
+        append('/');
+      } else if (c == '%') {
+        int high = (i + 3 <= end) ? hexValue(_in[i + 1]) : -1;
+        int low = (i + 3 <= end) ? hexValue(_in[i + 2]) : -1;
+        if (high != -1 && low != -1) {
+          int unescaped = (high << 4) + low;
+          int unescapedFlags = PATH_CHARS[unescaped];
+          i += 2;
+          if ((unescapedFlags & PATH_UNESCAPE) != 0) {
+            append((char) unescaped);
+          } else if ((unescapedFlags & 8) != 0) {
+            // invalid escaped char (NULL)
+            append('%');
+            success = false;
+          } else {
+            // keep it escaped, preserving the case of the hex digits
+            append('%');
+            append(_in[i - 1]);
+            append(_in[i]);
+          }
+        } else {
+          append('%');
+        }
+      } else if ((flags & 8) != 0) {
+        appendEscaped(c);
+        success = false;
+      } else if ((flags & 2) != 0) {
+        appendEscaped(c);
+      }
+    }
+    _outLen[PATH] = _outLength - pathBegin;
+    return success;
+  }
+
+  private void appendCC(byte b) {
+    if (_ccLength == _cc.length) {
+      byte[] newBuffer = new byte[_cc.length * 2];
+      System.arraycopy(_cc, 0, newBuffer, 0, _ccLength);
+      _cc = newBuffer;
+    }
+    _cc[_ccLength++] = b;
+  }
+
+  private void appendCC(byte[] data, int offset, int length) {
+    if (_ccLength + length > _cc.length) {
+      byte[] newBuffer = new byte[Math.max(_cc.length * 2, _ccLength + length)];
+      System.arraycopy(_cc, 0, newBuffer, 0, _ccLength);
+      _cc = newBuffer;
+    }
+    System.arraycopy(data, offset, _cc, _ccLength, length);
+    _ccLength += length;
+  }
+}
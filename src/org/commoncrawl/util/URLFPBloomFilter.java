@@ -39,6 +39,18 @@ import org.commoncrawl.protocol.URLFP;
 import org.commoncrawl.protocol.URLFPV2;
 
 /**
+ * bloom filter over url fingerprints.
+ * 
+ * add and isPresent don't lock and don't allocate, so a filter can be shared 
+ * by any number of threads. bits are set via a CAS on the containing word, and 
+ * since bits are never cleared (short of clear), a lookup that races an add 
+ * can at worst miss that add. 
+ * 
+ * a filter can optionally be blocked, in which case all the bits of a key 
+ * are confined to a single 512 bit block (one cache line), trading a slightly 
+ * higher false positive rate for a single cache miss per lookup. blocked 
+ * filters are flagged in the (previously unused) version field of the 
+ * serialized form, so non blocked filters serialize exactly as before.
  * 
  * @author rana
  *
@@ -51,64 +63,175 @@ public class URLFPBloomFilter {
   int  bucketsPerElement = 0;
   int  hashCount = 0;
   OpenBitSet bits = null;
-  long hashResults[] = null;
+  boolean blocked = false;
+  long numBlocks = 0;
   
   static final int BUCKETS_PER_WORD = 16;
+  
+  static final int BLOCK_SIZE_BITS = 512;
+  static final int BLOCK_BIT_MASK = BLOCK_SIZE_BITS - 1;
+  
+  static final int SERIALIZATION_VERSION = 0;
+  static final int SERIALIZATION_VERSION_BLOCKED = 1;
 
   
   public URLFPBloomFilter(int numElements,int hashCount, int bucketsPerElement){
+    this(numElements,hashCount,bucketsPerElement,false);
+  }
+  
+  public URLFPBloomFilter(int numElements,int hashCount, int bucketsPerElement,boolean blocked){
     this.numElements = numElements;
     this.bucketsPerElement = bucketsPerElement;
     this.hashCount = hashCount; 
     this.nbits = (long)numElements * (long)bucketsPerElement + 20;
     this.bits  = new OpenBitSet(nbits,true);
-    this.hashResults = new long[hashCount];
+    this.blocked = blocked;
+    this.numBlocks = Math.max(1L, nbits / BLOCK_SIZE_BITS);
   }
   
-  public final synchronized boolean isPresent(URLFP key) {
+  public final boolean isPresent(URLFP key) {
     if (key == null) 
       return false;
-    for (long bucketIndex : getHashBuckets(key,hashCount,nbits)){
-      if (!bits.fastGet(bucketIndex))
-        return false;
+    int hash1 = MurmurHash.hashBigEndian(key.getDomainHash(), key.getUrlHash(), 0);
+    int hash2 = MurmurHash.hashBigEndian(key.getDomainHash(), key.getUrlHash(), hash1);
+    if (blocked) { 
+      return testBlock(hash1, hash2, MurmurHash.hashBigEndian(key.getDomainHash(), key.getUrlHash(), hash2));
     }
-    return true;
+    return testBits(hash1, hash2);
   }
 
-  public final synchronized boolean isPresent(URLFPV2 key) {
+  public final boolean isPresent(URLFPV2 key) {
     if (key == null) 
       return false;
-    for (long bucketIndex : getHashBuckets(key,hashCount,nbits)){
-      if (!bits.fastGet(bucketIndex))
-        return false;
+    return isPresent(key.getDomainHash(),key.getUrlHash());
+  }
+  
+  public final boolean isPresent(long domainHash,long urlHash) {
+    int hash1 = MurmurHash.hashBigEndian(domainHash, urlHash, 0);
+    int hash2 = MurmurHash.hashBigEndian(domainHash, urlHash, hash1);
+    if (blocked) { 
+      return testBlock(hash1, hash2, MurmurHash.hashBigEndian(domainHash, urlHash, hash2));
     }
-    return true;
+    return testBits(hash1, hash2);
   }
 
-  public final synchronized void add(URLFP key) {
-  		if (key != null) { 
-	      for (long bucketIndex : getHashBuckets(key,hashCount,nbits)) {
-	        bits.fastSet(bucketIndex);
-	      }
-  		}
+  public final void add(URLFP key) {
+    if (key != null) { 
+      int hash1 = MurmurHash.hashBigEndian(key.getDomainHash(), key.getUrlHash(), 0);
+      int hash2 = MurmurHash.hashBigEndian(key.getDomainHash(), key.getUrlHash(), hash1);
+      if (blocked) { 
+        setBlock(hash1, hash2, MurmurHash.hashBigEndian(key.getDomainHash(), key.getUrlHash(), hash2));
+      }
+      else { 
+        setBits(hash1, hash2);
+      }
+    }
   }  
 
-  public final synchronized void add(URLFPV2 key) {
+  public final void add(URLFPV2 key) {
     if (key != null) { 
-      for (long bucketIndex : getHashBuckets(key,hashCount,nbits)) {
-        bits.fastSet(bucketIndex);
-      }
+      add(key.getDomainHash(),key.getUrlHash());
+    }
+  }
+  
+  public final void add(long domainHash,long urlHash) {
+    int hash1 = MurmurHash.hashBigEndian(domainHash, urlHash, 0);
+    int hash2 = MurmurHash.hashBigEndian(domainHash, urlHash, hash1);
+    if (blocked) { 
+      setBlock(hash1, hash2, MurmurHash.hashBigEndian(domainHash, urlHash, hash2));
+    }
+    else { 
+      setBits(hash1, hash2);
+    }
+  }
+  
+  /** 
+   * add count fingerprints, packed as (domainHash,urlHash) pairs starting at offset   
+   */
+  public final void addAll(long[] fingerprints,int offset,int count) { 
+    int end = offset + count * 2;
+    for (int i=offset;i<end;i+=2) { 
+      add(fingerprints[i],fingerprints[i+1]);
+    }
+  }
+  
+  /** 
+   * returns true if all count fingerprints, packed as (domainHash,urlHash) pairs 
+   * starting at offset, are present  
+   */
+  public final boolean containsAll(long[] fingerprints,int offset,int count) { 
+    int end = offset + count * 2;
+    for (int i=offset;i<end;i+=2) { 
+      if (!isPresent(fingerprints[i],fingerprints[i+1]))
+        return false;
     }
+    return true;
   }
   
+  /** 
+   * test count fingerprints, packed as (domainHash,urlHash) pairs starting at offset, 
+   * and store the result for each in presentOut. returns the number of fingerprints present   
+   */
+  public final int containsAll(long[] fingerprints,int offset,int count,boolean[] presentOut) { 
+    int presentCount = 0;
+    for (int i=0,pos=offset;i<count;++i,pos+=2) { 
+      presentOut[i] = isPresent(fingerprints[pos],fingerprints[pos+1]);
+      if (presentOut[i])
+        ++presentCount;
+    }
+    return presentCount;
+  }
+  
+  private final boolean testBits(int hash1,int hash2) { 
+    for (int i = 0; i < hashCount; i++) {
+      if (!bits.fastGet(Math.abs(((long)hash1 + i * (long)hash2) % nbits)))
+        return false;
+    }
+    return true;
+  }
+  
+  private final void setBits(int hash1,int hash2) { 
+    for (int i = 0; i < hashCount; i++) {
+      bits.atomicSet(Math.abs(((long)hash1 + i * (long)hash2) % nbits));
+    }
+  }
+  
+  // blocks are word aligned and never straddle a page, and an odd stride 
+  // guarantees distinct bits within a block (for up to 512 hash functions)
+  
+  private final boolean testBlock(int hash1,int hash2,int hash3) { 
+    long blockStart = ((hash1 & Integer.MAX_VALUE) % numBlocks) * BLOCK_SIZE_BITS;
+    int stride = hash3 | 1;
+    for (int i = 0; i < hashCount; i++) {
+      if (!bits.fastGet(blockStart + ((hash2 + i * stride) & BLOCK_BIT_MASK)))
+        return false;
+    }
+    return true;
+  }
+  
+  private final void setBlock(int hash1,int hash2,int hash3) { 
+    long blockStart = ((hash1 & Integer.MAX_VALUE) % numBlocks) * BLOCK_SIZE_BITS;
+    int stride = hash3 | 1;
+    for (int i = 0; i < hashCount; i++) {
+      bits.atomicSet(blockStart + ((hash2 + i * stride) & BLOCK_BIT_MASK));
+    }
+  }
+  
+  /** 
+   * clear all bits. not safe to call while other threads are adding keys 
+   */
   public final synchronized void clear() {
     if (bits != null) {
       bits.clear();
     }
   }
 
+  /** 
+   * copy the bits of this filter to an identically sized filter. keys added 
+   * concurrently with the copy may or may not make it into the destination. 
+   */
   public synchronized void copyBitsTo(URLFPBloomFilter destination)throws IOException { 
-    if (this.nbits != destination.nbits || bits.getNumWords() != destination.bits.getNumWords()) { 
+    if (this.nbits != destination.nbits || bits.getNumWords() != destination.bits.getNumWords() || this.blocked != destination.blocked) { 
       throw new IOException("Source and Destination BloomFilters are sized differently!");
     }
 
@@ -154,10 +277,14 @@ public class URLFPBloomFilter {
     }
   }
   
+  /** 
+   * serialize the filter. as with copyBitsTo, keys added concurrently with 
+   * the serialization may or may not make it into the serialized form. 
+   */
   public final synchronized void serialize(OutputStream outputStream) throws IOException { 
 
     DataOutputStream dataOut = new DataOutputStream(outputStream);
-    dataOut.writeInt(0); // version placeholder
+    dataOut.writeInt((blocked) ? SERIALIZATION_VERSION_BLOCKED : SERIALIZATION_VERSION);
     dataOut.writeInt(numElements);
     dataOut.writeInt(hashCount);
     dataOut.writeInt(bucketsPerElement);
@@ -167,10 +294,13 @@ public class URLFPBloomFilter {
 
   public static URLFPBloomFilter load(InputStream inputStream) throws IOException { 
     DataInputStream dataIn = new DataInputStream(inputStream);
-    // skip version bytes ... 
-    dataIn.readInt();
+    // the version tells us if the filter is blocked  
+    int version = dataIn.readInt();
+    if (version != SERIALIZATION_VERSION && version != SERIALIZATION_VERSION_BLOCKED) { 
+      throw new IOException("Unknown BloomFilter Version:" + version);
+    }
     // initialize filter ... 
-    URLFPBloomFilter filter = new URLFPBloomFilter(dataIn.readInt(),dataIn.readInt(),dataIn.readInt());
+    URLFPBloomFilter filter = new URLFPBloomFilter(dataIn.readInt(),dataIn.readInt(),dataIn.readInt(),version == SERIALIZATION_VERSION_BLOCKED);
     // read bits
     if (inputStream instanceof FSDataInputStream) {
       filter.deserializeBits((FSDataInputStream)inputStream);
@@ -182,63 +312,6 @@ public class URLFPBloomFilter {
     return filter;
   }  
   
-  final long[] getHashBuckets(URLFP key, int hashCount, long max) {
-      byte[] b = new byte[12];
-      b[0] = (byte)((key.getDomainHash() >>> 24) & 0xFF);
-      b[1] = (byte)((key.getDomainHash() >>> 16) & 0xFF);
-      b[2] = (byte)((key.getDomainHash() >>> 8) & 0xFF);
-      b[3] = (byte)((key.getDomainHash()) & 0xFF);
-      
-      b[4] = (byte)((key.getUrlHash() >>> 56) & 0xFF);
-      b[5] = (byte)((key.getUrlHash()>>> 48) & 0xFF);
-      b[6] = (byte)((key.getUrlHash() >>> 40) & 0xFF);
-      b[7] = (byte)((key.getUrlHash() >>> 32) & 0xFF);
-      b[8] = (byte)((key.getUrlHash() >>> 24) & 0xFF);
-      b[9] = (byte)((key.getUrlHash() >>> 16) & 0xFF);
-      b[10] = (byte)((key.getUrlHash() >>> 8) & 0xFF);
-      b[11] = (byte)((key.getUrlHash()) & 0xFF);
-      
-      
-      int  hash1 = MurmurHash.hash(b, b.length, 0);
-      int hash2 = MurmurHash.hash(b, b.length, hash1);
-      for (int i = 0; i < hashCount; i++) {
-        hashResults[i] = Math.abs(((long)hash1 + i * (long)hash2) % max);
-      }
-      return hashResults;
-  }
-
-  final long[] getHashBuckets(URLFPV2 key, int hashCount, long max) {
-    byte[] b = new byte[16];
-    long domainHash = key.getDomainHash();
-    long urlHash = key.getUrlHash();
-    
-    b[0] = (byte)((domainHash >>> 56) & 0xFF);
-    b[1] = (byte)((domainHash>>> 48) & 0xFF);
-    b[2] = (byte)((domainHash >>> 40) & 0xFF);
-    b[3] = (byte)((domainHash >>> 32) & 0xFF);
-    b[4] = (byte)((domainHash >>> 24) & 0xFF);
-    b[5] = (byte)((domainHash >>> 16) & 0xFF);
-    b[6] = (byte)((domainHash >>> 8) & 0xFF);
-    b[7] = (byte)((domainHash) & 0xFF);
-    
-    b[8] = (byte)((urlHash >>> 56) & 0xFF);
-    b[9] = (byte)((urlHash>>> 48) & 0xFF);
-    b[10] = (byte)((urlHash >>> 40) & 0xFF);
-    b[11] = (byte)((urlHash >>> 32) & 0xFF);
-    b[12] = (byte)((urlHash >>> 24) & 0xFF);
-    b[13] = (byte)((urlHash >>> 16) & 0xFF);
-    b[14] = (byte)((urlHash >>> 8) & 0xFF);
-    b[15] = (byte)((urlHash) & 0xFF);
-    
-    
-    int  hash1 = MurmurHash.hash(b, b.length, 0);
-    int hash2 = MurmurHash.hash(b, b.length, hash1);
-    for (int i = 0; i < hashCount; i++) {
-      hashResults[i] = Math.abs(((long)hash1 + i * (long)hash2) % max);
-    }
-    return hashResults;
-  }
-
   public static void main(String[] args) {
 
     Configuration conf = new Configuration();
@@ -374,4 +447,8 @@ public class URLFPBloomFilter {
   public int getHashCount() {
     return hashCount;
   }
+  
+  public boolean isBlocked() { 
+    return blocked;
+  }
 }
@@ -0,0 +1,321 @@
+/**
+ * Copyright 2008 - CommonCrawl Foundation
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ **/
+package org.commoncrawl.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.commoncrawl.protocol.URLFP;
+import org.commoncrawl.protocol.URLFPV2;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Checks that URLFPBloomFilter sets exactly the bits the original
+ * (synchronized, byte[] hashing) implementation set, so existing checkpoints
+ * stay valid, and that concurrent and bulk adds don't lose keys.
+ *
+ * Run main to benchmark concurrent adds and lookups.
+ *
+ * @author rana
+ *
+ */
+public class URLFPBloomFilterUnitTest {
+
+  /** the original URLFPBloomFilter.getHashBuckets(URLFPV2) **/
+  static long[] legacyHashBuckets(URLFPV2 key, int hashCount, long max) {
+    byte[] b = new byte[16];
+    long domainHash = key.getDomainHash();
+    long urlHash = key.getUrlHash();
+
+    for (int i = 0; i < 8; ++i) {
+      b[i] = (byte) ((domainHash >>> (56 - i * 8)) & 0xFF);
+      b[i + 8] = (byte) ((urlHash >>> (56 - i * 8)) & 0xFF);
+    }
+
+    int hash1 = MurmurHash.hash(b, b.length, 0);
+    int hash2 = MurmurHash.hash(b, b.length, hash1);
+    long[] hashResults = new long[hashCount];
+    for (int i = 0; i < hashCount; i++) {
+      hashResults[i] = Math.abs(((long) hash1 + i * (long) hash2) % max);
+    }
+    return hashResults;
+  }
+
+  /** the original URLFPBloomFilter.getHashBuckets(URLFP) **/
+  static long[] legacyHashBuckets(URLFP key, int hashCount, long max) {
+    byte[] b = new byte[12];
+    int domainHash = key.getDomainHash();
+    long urlHash = key.getUrlHash();
+
+    for (int i = 0; i < 4; ++i) {
+      b[i] = (byte) ((domainHash >>> (24 - i * 8)) & 0xFF);
+    }
+    for (int i = 0; i < 8; ++i) {
+      b[i + 4] = (byte) ((urlHash >>> (56 - i * 8)) & 0xFF);
+    }
+
+    int hash1 = MurmurHash.hash(b, b.length, 0);
+    int hash2 = MurmurHash.hash(b, b.length, hash1);
+    long[] hashResults = new long[hashCount];
+    for (int i = 0; i < hashCount; i++) {
+      hashResults[i] = Math.abs(((long) hash1 + i * (long) hash2) % max);
+    }
+    return hashResults;
+  }
+
+  static URLFPV2 randomFP(Random random) {
+    URLFPV2 fp = new URLFPV2();
+    fp.setDomainHash(random.nextLong());
+    fp.setUrlHash(random.nextLong());
+    return fp;
+  }
+
+  static long[] randomPackedFPs(Random random, int count) {
+    long[] fingerprints = new long[count * 2];
+    for (int i = 0; i < fingerprints.length; ++i) {
+      fingerprints[i] = random.nextLong();
+    }
+    return fingerprints;
+  }
+
+  static void assertSameBits(URLFPBloomFilter expected, URLFPBloomFilter actual) {
+    Assert.assertEquals(expected.bits.getNumWords(), actual.bits.getNumWords());
+    int words = expected.bits.getNumWords();
+    for (int p = 0; p < expected.bits.getPageCount() && words > 0; ++p) {
+      long[] expectedPage = expected.bits.getPage(p);
+      long[] actualPage = actual.bits.getPage(p);
+      for (int i = 0; i < expected.bits.getPageSize() && words-- > 0; ++i) {
+        Assert.assertEquals(expectedPage[i], actualPage[i]);
+      }
+    }
+  }
+
+  @Test
+  public void testHashesMatchByteArrayHashes() {
+    Random random = new Random(42);
+    byte[] b = new byte[16];
+    for (int i = 0; i < 100000; ++i) {
+      long v1 = random.nextLong();
+      long v2 = random.nextLong();
+      int seed = random.nextInt();
+      for (int j = 0; j < 8; ++j) {
+        b[j] = (byte) (v1 >>> (56 - j * 8));
+        b[j + 8] = (byte) (v2 >>> (56 - j * 8));
+      }
+      Assert.assertEquals(MurmurHash.hash(b, 16, seed), MurmurHash.hashBigEndian(v1, v2, seed));
+      // int + long variant uses the last 12 bytes
+      Assert.assertEquals(MurmurHash.hash(b, 4, 12, seed), MurmurHash.hashBigEndian((int) v1, v2, seed));
+    }
+  }
+
+  @Test
+  public void testBitsMatchLegacyFilter() {
+    Random random = new Random(42);
+    int hashCount = 10;
+    URLFPBloomFilter filter = new URLFPBloomFilter(1 << 16, hashCount, 11);
+
+    for (int i = 0; i < 10000; ++i) {
+      filter.clear();
+
+      URLFPV2 fp = randomFP(random);
+      filter.add(fp);
+      long[] buckets = legacyHashBuckets(fp, hashCount, filter.nbits);
+      for (long bucket : buckets) {
+        Assert.assertTrue(filter.bits.fastGet(bucket));
+      }
+      long distinct = countDistinct(buckets);
+      Assert.assertEquals(distinct, filter.bits.cardinality());
+
+      filter.clear();
+
+      URLFP v1fp = new URLFP();
+      v1fp.setDomainHash(random.nextInt());
+      v1fp.setUrlHash(random.nextLong());
+      filter.add(v1fp);
+      buckets = legacyHashBuckets(v1fp, hashCount, filter.nbits);
+      for (long bucket : buckets) {
+        Assert.assertTrue(filter.bits.fastGet(bucket));
+      }
+      Assert.assertEquals(countDistinct(buckets), filter.bits.cardinality());
+      Assert.assertTrue(filter.isPresent(v1fp));
+    }
+  }
+
+  static long countDistinct(long[] values) {
+    long[] copy = values.clone();
+    java.util.Arrays.sort(copy);
+    long distinct = 0;
+    for (int i = 0; i < copy.length; ++i) {
+      if (i == 0 || copy[i] != copy[i - 1])
+        ++distinct;
+    }
+    return distinct;
+  }
+
+  @Test
+  public void testConcurrentAdds() throws Exception {
+    for (final boolean blocked : new boolean[] { false, true }) {
+      final int threadCount = 8;
+      final int keysPerThread = 50000;
+      final long[][] keys = new long[threadCount][];
+      Random random = new Random(42);
+      for (int i = 0; i < threadCount; ++i) {
+        keys[i] = randomPackedFPs(random, keysPerThread);
+      }
+      // small filter, so threads contend for the same words
+      final URLFPBloomFilter shared = new URLFPBloomFilter(threadCount * keysPerThread, 7, 10, blocked);
+      final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+      Thread threads[] = new Thread[threadCount];
+      for (int i = 0; i < threadCount; ++i) {
+        final int threadIdx = i;
+        threads[i] = new Thread() {
+          public void run() {
+            try {
+              long[] fingerprints = keys[threadIdx];
+              for (int j = 0; j < keysPerThread; ++j) {
+                shared.add(fingerprints[j * 2], fingerprints[j * 2 + 1]);
+                if (!shared.isPresent(fingerprints[j * 2], fingerprints[j * 2 + 1])) {
+                  throw new AssertionError("key not present after add");
+                }
+              }
+            } catch (Throwable t) {
+              failure.set(t);
+            }
+          }
+        };
+      }
+      for (Thread thread : threads)
+        thread.start();
+      for (Thread thread : threads)
+        thread.join();
+
+      Assert.assertNull(failure.get());
+
+      URLFPBloomFilter sequential = new URLFPBloomFilter(threadCount * keysPerThread, 7, 10, blocked);
+      for (int i = 0; i < threadCount; ++i) {
+        sequential.addAll(keys[i], 0, keysPerThread);
+        Assert.assertTrue(shared.containsAll(keys[i], 0, keysPerThread));
+      }
+      assertSameBits(sequential, shared);
+    }
+  }
+
+  @Test
+  public void testBulkAPIs() {
+    for (boolean blocked : new boolean[] { false, true }) {
+      Random random = new Random(42);
+      URLFPBloomFilter filter = new URLFPBloomFilter(100000, 10, 11, blocked);
+      long[] added = randomPackedFPs(random, 10000);
+      long[] notAdded = randomPackedFPs(random, 10000);
+
+      // offsets are in longs, counts are in fingerprints
+      filter.addAll(added, 2, 9999);
+      Assert.assertFalse(filter.isPresent(added[0], added[1]));
+      Assert.assertTrue(filter.containsAll(added, 2, 9999));
+      Assert.assertFalse(filter.containsAll(added, 0, 10000));
+
+      boolean[] present = new boolean[10000];
+      Assert.assertEquals(9999, filter.containsAll(added, 0, 10000, present));
+      Assert.assertFalse(present[0]);
+      for (int i = 1; i < present.length; ++i) {
+        Assert.assertTrue(present[i]);
+      }
+
+      URLFPV2 fp = new URLFPV2();
+      int falsePositives = filter.containsAll(notAdded, 0, 10000, present);
+      for (int i = 0; i < present.length; ++i) {
+        fp.setDomainHash(notAdded[i * 2]);
+        fp.setUrlHash(notAdded[i * 2 + 1]);
+        Assert.assertEquals(present[i], filter.isPresent(fp));
+      }
+      // ~0.05% expected for the standard layout, somewhat more for the blocked one
+      Assert.assertTrue("false positives:" + falsePositives, falsePositives < 100);
+    }
+  }
+
+  @Test
+  public void testSerialization() throws IOException {
+    for (boolean blocked : new boolean[] { false, true }) {
+      Random random = new Random(42);
+      URLFPBloomFilter filter = new URLFPBloomFilter(100000, 10, 11, blocked);
+      long[] added = randomPackedFPs(random, 10000);
+      filter.addAll(added, 0, 10000);
+
+      ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+      filter.serialize(outputStream);
+      byte[] data = outputStream.toByteArray();
+      // the version field is what flags a blocked filter
+      Assert.assertEquals((blocked) ? 1 : 0, data[3]);
+
+      URLFPBloomFilter loaded = URLFPBloomFilter.load(new ByteArrayInputStream(data));
+      Assert.assertEquals(blocked, loaded.isBlocked());
+      Assert.assertEquals(filter.getNumElements(), loaded.getNumElements());
+      Assert.assertEquals(filter.getHashCount(), loaded.getHashCount());
+      Assert.assertEquals(filter.getBucketsPerElement(), loaded.getBucketsPerElement());
+      Assert.assertTrue(loaded.containsAll(added, 0, 10000));
+      assertSameBits(filter, loaded);
+    }
+  }
+
+  /**
+   * concurrent add / lookup benchmark
+   *
+   * usage: URLFPBloomFilterUnitTest [threads] [keysPerThread] [blocked]
+   */
+  public static void main(String[] args) throws Exception {
+    final int threadCount = (args.length > 0) ? Integer.parseInt(args[0]) : 8;
+    final int keysPerThread = (args.length > 1) ? Integer.parseInt(args[1]) : 1000000;
+    boolean blocked = (args.length > 2) ? Boolean.parseBoolean(args[2]) : false;
+
+    final URLFPBloomFilter filter = new URLFPBloomFilter(threadCount * keysPerThread, 10, 11, blocked);
+    final long[][] keys = new long[threadCount][];
+    Random random = new Random(42);
+    for (int i = 0; i < threadCount; ++i) {
+      keys[i] = randomPackedFPs(random, keysPerThread);
+    }
+
+    for (final boolean lookup : new boolean[] { false, true }) {
+      Thread threads[] = new Thread[threadCount];
+      for (int i = 0; i < threadCount; ++i) {
+        final int threadIdx = i;
+        threads[i] = new Thread() {
+          public void run() {
+            if (lookup)
+              filter.containsAll(keys[threadIdx], 0, keysPerThread);
+            else
+              filter.addAll(keys[threadIdx], 0, keysPerThread);
+          }
+        };
+      }
+      long timeStart = System.nanoTime();
+      for (Thread thread : threads)
+        thread.start();
+      for (Thread thread : threads)
+        thread.join();
+      long timeEnd = System.nanoTime();
+      long totalKeys = (long) threadCount * keysPerThread;
+      System.out.println(((lookup) ? "Lookup" : "Add") + " of " + totalKeys + " keys on " + threadCount + " threads (blocked:"
+          + blocked + ") took:" + ((timeEnd - timeStart) / 1000000) + " MS (" + ((timeEnd - timeStart) / totalKeys) + " ns/key)");
+    }
+  }
+}
@@ -67,6 +67,16 @@ public class URLUtils {
   public static String canonicalizeURL(String incomingURL,
       boolean stripLeadingWWW) throws MalformedURLException {
 
+    // try the pure java canonicalizer first, it handles the common (ascii
+    // http/https) case without a trip through JNI
+    URLCanonicalizer canonicalizer = URLCanonicalizer.get();
+    int status = canonicalizer.canonicalize(incomingURL);
+    if (status == URLCanonicalizer.CANONICAL) {
+      return canonicalizer.getCCCanonicalURL(stripLeadingWWW);
+    } else if (status == URLCanonicalizer.INVALID) {
+      throw new MalformedURLException("URL:" + incomingURL + " is invalid");
+    }
+
     GoogleURL urlObject = new GoogleURL(incomingURL);
 
     if (!urlObject.isValid()) {
@@ -76,6 +86,21 @@ public class URLUtils {
     return canonicalizeURL(urlObject, stripLeadingWWW);
   }
 
+  /**
+   * canonicalize url using only the pure java canonicalizer
+   * 
+   * @return the canonical url, or null if the url is invalid or requires
+   *         GoogleURL (non-ascii input, escaped host names, other schemes)
+   */
+  public static String fastCanonicalizeURL(String incomingURL,
+      boolean stripLeadingWWW) throws MalformedURLException {
+    URLCanonicalizer canonicalizer = URLCanonicalizer.get();
+    if (canonicalizer.canonicalize(incomingURL) == URLCanonicalizer.CANONICAL) {
+      return canonicalizer.getCCCanonicalURL(stripLeadingWWW);
+    }
+    return null;
+  }
+
   public static String canonicalizeURL(GoogleURL urlObject,
       boolean stripLeadingWWW) throws MalformedURLException {
 
@@ -227,17 +252,30 @@ public class URLUtils {
   }
 
   public static URLFP getURLFPFromCanonicalURL(String canonicalURL) {
-    // get url object
-    GoogleURL urlObject = new GoogleURL(canonicalURL);
+    String hostName = null;
+    boolean isValid;
+
+    URLCanonicalizer canonicalizer = URLCanonicalizer.get();
+    int status = canonicalizer.canonicalize(canonicalURL);
+    if (status != URLCanonicalizer.UNSUPPORTED) {
+      isValid = (status == URLCanonicalizer.CANONICAL);
+      if (isValid)
+        hostName = canonicalizer.getHost();
+    } else {
+      // get url object
+      GoogleURL urlObject = new GoogleURL(canonicalURL);
+      isValid = urlObject.isValid();
+      if (isValid)
+        hostName = urlObject.getHost();
+    }
 
-    if (urlObject.isValid()) {
+    if (isValid) {
 
       // create a url fp record
       URLFP urlFP = new URLFP();
 
       urlFP.setUrlHash(URLFingerprint.generate64BitURLFPrint(canonicalURL));
 
-      String hostName = urlObject.getHost();
       String rootDomainName = URLUtils.extractRootDomainName(hostName);
 
       if (hostName != null && rootDomainName != null) {
@@ -735,84 +773,42 @@ public class URLUtils {
   }
 
   public static String extractRootDomainName(String candidate) {
+    return RootDomainMatcher.get().extractRootDomainName(candidate);
+  }
 
-    // special case for ip addresses
-    if (ipAddressRegEx.matcher(candidate).matches()) {
-      return candidate;
-    }
-
-    if (candidate.endsWith(".")) {
-      candidate = candidate.substring(0, candidate.length() - 1);
-    }
-    if (candidate.startsWith("*") && candidate.length() > 1) {
-      candidate = candidate.substring(1);
-    }
-    if (candidate.length() != 0) {
-      if (!invalidDomainCharactersRegEx.matcher(candidate).find()) {
-        String parts[] = candidate.split("\\.");
-        if (parts.length >= 2) {
-          Collection<String> secondaryNames = TLDNamesCollection
-              .getSecondaryNames(parts[parts.length - 1]);
-
-          if (secondaryNames.size() != 0) {
-            // see if second to last part matches secondary names for this TLD
-            // or there is a wildcard expression for secondary name in rule set
-            if (secondaryNames.contains(parts[parts.length - 2])
-                || secondaryNames.contains("*")) {
-              // ok secondary part is potentianlly part of secondary name ...
-
-              // check to see the part in not explicitly excluded ...
-              if (secondaryNames.contains("!" + parts[parts.length - 2])) {
-                // in this case, this is an explicit override. second to last
-                // part is NOT part of secondary name
-                return buildRootNameString(candidate, parts, parts.length - 2);
-              } else {
-                // otherwise, we need at least three parts
-                if (parts.length >= 3) {
-                  return buildRootNameString(candidate, parts, parts.length - 3);
-                }
-              }
-            }
-            // ok second to last part does not match set of known secondary
-            // names
-            else {
-              // make a wildcard string matching secondary name
-              String extendedWildcard = "*." + parts[parts.length - 2];
-              // if match, then this implies secondary name has two components
-              if (secondaryNames.contains(extendedWildcard)) {
-
-                if (parts.length >= 3) {
-                  // this implies that there must be four parts to the name to
-                  // extract root
-                  // unless exlusion rule applies
-                  String exclusionRule2 = "!" + parts[parts.length - 3] + "."
-                      + parts[parts.length - 2];
-
-                  // if exclusion rule is present ...
-                  if (secondaryNames.contains(exclusionRule2)) {
-                    // third part is NOT part of secondary name
-                    return buildRootNameString(candidate, parts,
-                        parts.length - 3);
-                  } else {
-                    // ok extended wildcard matched. we need 4 parts minimum
-                    if (parts.length >= 4) {
-                      return buildRootNameString(candidate, parts,
-                          parts.length - 4);
-                    }
-                  }
-                }
-              }
-              // at this point ... if the null name exists ...
-              else if (secondaryNames.contains("")) {
-                // return second part as root name
-                return buildRootNameString(candidate, parts, parts.length - 2);
-              }
-            }
-          }
-        }
+  /**
+   * extract the root domain of the host of the given url
+   * 
+   * @return true if the url is valid and its host has a root domain
+   */
+  public static boolean extractRootDomainNameGivenURL(TextBytes url,
+      TextBytes rootDomainOut) {
+    URLCanonicalizer canonicalizer = URLCanonicalizer.get();
+    int status = canonicalizer.canonicalize(url);
+    if (status == URLCanonicalizer.CANONICAL) {
+      byte[] hostBytes = canonicalizer.getCanonicalBytes();
+      int hostOffset = canonicalizer.getComponentBegin(URLCanonicalizer.HOST);
+      int hostLength = Math.max(0, canonicalizer
+          .getComponentLength(URLCanonicalizer.HOST));
+      int rootStart = RootDomainMatcher.get().findRootDomain(hostBytes,
+          hostOffset, hostLength);
+      if (rootStart != -1) {
+        // copy out of the (reused) canonicalizer buffer
+        rootDomainOut.clear();
+        rootDomainOut.append(hostBytes, rootStart, RootDomainMatcher
+            .rootDomainEnd(hostBytes, hostOffset, hostLength)
+            - rootStart);
+        return true;
+      }
+    } else if (status == URLCanonicalizer.UNSUPPORTED) {
+      String rootDomain = extractRootDomainName(new GoogleURL(url.toString())
+          .getHost());
+      if (rootDomain != null) {
+        rootDomainOut.set(rootDomain);
+        return true;
       }
     }
-    return null;
+    return false;
   }
 
   /** The maximum length of a Name */